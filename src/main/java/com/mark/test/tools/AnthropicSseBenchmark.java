@@ -0,0 +1,117 @@
+package com.mark.test.tools;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mark.llamacpp.server.service.AnthropicSseTranslator;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 	OpenAI 流式块翻译成 Anthropic SSE 的耗时和内存分配。合成一条和 llama-server 格式相同的流（思考、正文、工具调用），
+ * 	原来基于 JsonObject 的实现和 AnthropicSseTranslator 各跑多次，输出每个块的平均耗时和在当前线程上分配的字节数。
+ * 	输出缓冲都取自池化分配器并在写完后释放，和转发时一样。
+ * 	<p>
+ * 	用法：java ... com.mark.test.tools.AnthropicSseBenchmark [块数] [次数]
+ */
+public class AnthropicSseBenchmark {
+
+	private static final String PREFIX = "{\"choices\":[{\"finish_reason\":null,\"index\":0,\"delta\":";
+	private static final String SUFFIX = "}],\"created\":1760601234,\"id\":\"chatcmpl-Xq3v9aLk2\",\"model\":\"qwen3-30b-a3b\","
+			+ "\"system_fingerprint\":\"b6756-fb6c2d7a\",\"object\":\"chat.completion.chunk\"}";
+
+	public static void main(String[] args) throws Exception {
+		int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		List<String> stream = buildStream(chunks);
+		System.out.printf("每条流 %d 个块%n", stream.size());
+
+		run("LegacyAnthropicSseTranslator", stream, iterations, () -> {
+			LegacyAnthropicSseTranslator translator = new LegacyAnthropicSseTranslator();
+			long bytes = 0;
+			for (String data : stream) {
+				String out = translator.translate(data);
+				if (out != null && !out.isEmpty()) {
+					ByteBuf buf = Unpooled.copiedBuffer(out, StandardCharsets.UTF_8);
+					bytes += buf.readableBytes();
+					buf.release();
+				}
+			}
+			ByteBuf tail = Unpooled.copiedBuffer(translator.finish(), StandardCharsets.UTF_8);
+			bytes += tail.readableBytes();
+			tail.release();
+			return bytes;
+		});
+		run("AnthropicSseTranslator", stream, iterations, () -> {
+			AnthropicSseTranslator translator = new AnthropicSseTranslator();
+			long bytes = 0;
+			for (String data : stream) {
+				ByteBuf buf = PooledByteBufAllocator.DEFAULT.buffer();
+				bytes += Math.max(0, translator.translate(data, buf));
+				buf.release();
+			}
+			ByteBuf tail = PooledByteBufAllocator.DEFAULT.buffer();
+			bytes += translator.finish(tail);
+			tail.release();
+			return bytes;
+		});
+		System.exit(0);
+	}
+
+	@FunctionalInterface
+	private interface Task {
+		Object call() throws Exception;
+	}
+
+	private static void run(String name, List<String> stream, int iterations, Task task) throws Exception {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().threadId();
+		// 预热
+		for (int i = 0; i < Math.max(5, iterations / 3); i++) {
+			task.call();
+		}
+		long alloc0 = mx.getThreadAllocatedBytes(tid);
+		long t0 = System.nanoTime();
+		Object sink = null;
+		for (int i = 0; i < iterations; i++) {
+			sink = task.call();
+		}
+		long elapsed = System.nanoTime() - t0;
+		long alloc = mx.getThreadAllocatedBytes(tid) - alloc0;
+		long perStream = (long) iterations * stream.size();
+		System.out.printf("%-32s %9.2f µs/块 %10.1f B/块  (输出 %s 字节)%n", name, elapsed / 1e3 / perStream,
+				(double) alloc / perStream, sink);
+	}
+
+	/**
+	 * 	前 1/4 是思考，中间一半是正文，最后 1/4 是两个工具调用的参数，末尾带 finish_reason 和 usage。
+	 */
+	private static List<String> buildStream(int chunks) {
+		List<String> stream = new ArrayList<>();
+		stream.add(PREFIX + "{\"role\":\"assistant\",\"content\":null}" + SUFFIX);
+		int thinking = chunks / 4;
+		int text = chunks / 2;
+		int tools = chunks - thinking - text;
+		for (int i = 0; i < thinking; i++) {
+			stream.add(PREFIX + "{\"reasoning_content\":\" step " + i + ", check a<b\"}" + SUFFIX);
+		}
+		for (int i = 0; i < text; i++) {
+			stream.add(PREFIX + "{\"content\":\"" + (i % 3 == 0 ? "结果" : " token") + i + "\\n\"}" + SUFFIX);
+		}
+		for (int i = 0; i < tools; i++) {
+			int index = i < tools / 2 ? 0 : 1;
+			String head = i == 0 || i == tools / 2
+					? "\"id\":\"call_" + index + "\",\"type\":\"function\",\"function\":{\"name\":\"get_weather\",\"arguments\":"
+					: "\"function\":{\"arguments\":";
+			stream.add(PREFIX + "{\"tool_calls\":[{\"index\":" + index + "," + head + "\"{\\\"city\\\":\\\"" + i + "\\\"\"}}]}" + SUFFIX);
+		}
+		stream.add("{\"choices\":[{\"finish_reason\":\"tool_calls\",\"index\":0,\"delta\":{}}],\"created\":1760601234,"
+				+ "\"id\":\"chatcmpl-Xq3v9aLk2\",\"model\":\"qwen3-30b-a3b\",\"object\":\"chat.completion.chunk\","
+				+ "\"usage\":{\"completion_tokens\":" + chunks + ",\"prompt_tokens\":300,\"total_tokens\":" + (300 + chunks) + "}}");
+		return stream;
+	}
+}
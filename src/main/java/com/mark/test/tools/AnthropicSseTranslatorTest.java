@@ -0,0 +1,237 @@
+package com.mark.test.tools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.mark.llamacpp.server.service.AnthropicSseTranslator;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 	AnthropicSseTranslator 和原来基于 JsonObject 的翻译（{@link LegacyAnthropicSseTranslator}）逐字节一致：
+ * 	<ul>
+ * 	<li>golden 目录下每个 .sse 是录下来的 llama-server 流，.expected 是原来的实现对它的输出；</li>
+ * 	<li>再随机生成一批块（转义、代理对、各种字段类型）两边对比。</li>
+ * 	</ul>
+ * 	用法：java ... com.mark.test.tools.AnthropicSseTranslatorTest [golden目录] [--record]
+ * 	<br>
+ * 	--record 用原来的实现重新生成 .expected。
+ */
+public class AnthropicSseTranslatorTest {
+
+	private static final String DEFAULT_DIR = "src/main/java/com/mark/test/tools/golden/anthropic-sse";
+
+	public static void main(String[] args) throws Exception {
+		boolean record = Arrays.asList(args).contains("--record");
+		String dirName = args.length > 0 && !args[0].startsWith("--") ? args[0] : DEFAULT_DIR;
+		File dir = new File(dirName);
+		File[] inputs = dir.listFiles((d, n) -> n.endsWith(".sse"));
+		Checks.check(inputs != null && inputs.length > 0, "golden 目录里有 .sse 文件: " + dir.getAbsolutePath());
+		Arrays.sort(inputs);
+
+		for (File input : inputs) {
+			String stream = Files.readString(input.toPath(), StandardCharsets.UTF_8);
+			File expectedFile = new File(dir, input.getName().replace(".sse", ".expected"));
+			if (record) {
+				Files.write(expectedFile.toPath(), legacy(stream));
+				System.out.println("已录制: " + expectedFile.getName());
+				continue;
+			}
+			byte[] expected = Files.readAllBytes(expectedFile.toPath());
+			byte[] actual = translate(stream);
+			Checks.check(Arrays.equals(expected, actual), input.getName() + " 输出和 golden 一致（" + actual.length + " 字节）");
+		}
+		if (record) {
+			System.exit(0);
+		}
+
+		// 随机生成的流，两边对比
+		Random random = new Random(20240601L);
+		for (int round = 0; round < 300; round++) {
+			String stream = randomStream(random);
+			byte[] expected = legacy(stream);
+			byte[] actual = translate(stream);
+			if (!Arrays.equals(expected, actual)) {
+				System.out.println(stream);
+				System.out.println(new String(expected, StandardCharsets.UTF_8));
+				System.out.println(new String(actual, StandardCharsets.UTF_8));
+			}
+			Checks.check(Arrays.equals(expected, actual), "随机流 #" + round + " 输出一致", round % 100 == 99);
+		}
+
+		System.out.println("AnthropicSseTranslatorTest: OK");
+		System.exit(0);
+	}
+
+	/**
+	 * 	和 AnthropicService.handleAnthropicStreamFromOai 一样逐行处理。
+	 */
+	private static byte[] translate(String stream) throws IOException {
+		AnthropicSseTranslator translator = new AnthropicSseTranslator();
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		BufferedReader br = new BufferedReader(new StringReader(stream));
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (!line.startsWith("data: ")) {
+				continue;
+			}
+			String data = line.substring(6).trim();
+			if (data.isEmpty()) {
+				continue;
+			}
+			ByteBuf out = PooledByteBufAllocator.DEFAULT.buffer();
+			try {
+				if ("[DONE]".equals(data)) {
+					if (!translator.isFinished()) {
+						translator.finish(out);
+						result.write(ByteBufUtil.getBytes(out));
+					}
+					break;
+				}
+				if (translator.translate(data, out) > 0) {
+					result.write(ByteBufUtil.getBytes(out));
+				}
+			} finally {
+				out.release();
+			}
+		}
+		return result.toByteArray();
+	}
+
+	private static byte[] legacy(String stream) throws IOException {
+		LegacyAnthropicSseTranslator translator = new LegacyAnthropicSseTranslator();
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		BufferedReader br = new BufferedReader(new StringReader(stream));
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (!line.startsWith("data: ")) {
+				continue;
+			}
+			String data = line.substring(6).trim();
+			if (data.isEmpty()) {
+				continue;
+			}
+			if ("[DONE]".equals(data)) {
+				result.write(translator.finish().getBytes(StandardCharsets.UTF_8));
+				break;
+			}
+			String out = translator.translate(data);
+			if (out != null && !out.isEmpty()) {
+				ByteBuf buf = Unpooled.copiedBuffer(out, StandardCharsets.UTF_8);
+				result.write(ByteBufUtil.getBytes(buf));
+				buf.release();
+			}
+		}
+		return result.toByteArray();
+	}
+
+	private static final String[] PIECES = { "a", "你好", "\"", "\\", "/", "<tag>", "&", "=", "'", "\n", "\t", "\r", "\b", "\f",
+			"\u0001", "\u001f", "\u007f", "\u2028", "\u2029", "😀", "\ud83d", "\ude00", "é", "{\"k\":1}", " ", "null" };
+
+	private static final String[] FINISH = { null, null, null, "stop", "length", "tool_calls", "function_call", "null", "" };
+
+	private static String randomStream(Random random) {
+		StringBuilder sb = new StringBuilder();
+		int chunks = 1 + random.nextInt(12);
+		for (int i = 0; i < chunks; i++) {
+			JsonObject chunk = new JsonObject();
+			chunk.addProperty("id", "chatcmpl-" + randomText(random));
+			chunk.addProperty("object", "chat.completion.chunk");
+			chunk.addProperty("model", randomText(random));
+			JsonObject delta = new JsonObject();
+			switch (random.nextInt(5)) {
+			case 0:
+				delta.addProperty("reasoning_content", randomText(random));
+				break;
+			case 1:
+				delta.addProperty("content", randomText(random));
+				break;
+			case 2:
+				JsonArray toolCalls = new JsonArray();
+				JsonObject tc = new JsonObject();
+				tc.addProperty("index", random.nextInt(3));
+				if (random.nextBoolean()) {
+					tc.addProperty("id", "call_" + randomText(random));
+				}
+				JsonObject function = new JsonObject();
+				if (random.nextBoolean()) {
+					function.addProperty("name", randomText(random));
+				}
+				function.addProperty("arguments", randomText(random));
+				tc.add("function", function);
+				toolCalls.add(tc);
+				delta.add("tool_calls", toolCalls);
+				break;
+			case 3:
+				delta.addProperty("content", random.nextInt(1000));
+				break;
+			default:
+				delta.add("content", null);
+			}
+			JsonObject choice = new JsonObject();
+			choice.addProperty("index", 0);
+			choice.add("delta", delta);
+			String finish = FINISH[random.nextInt(FINISH.length)];
+			if (finish != null) {
+				choice.addProperty("finish_reason", finish);
+			}
+			JsonArray choices = new JsonArray();
+			choices.add(choice);
+			chunk.add("choices", choices);
+			if (random.nextInt(4) == 0) {
+				JsonObject usage = new JsonObject();
+				usage.addProperty("prompt_tokens", random.nextInt(5000));
+				usage.addProperty("completion_tokens", random.nextInt(500));
+				JsonObject details = new JsonObject();
+				details.addProperty("cached_tokens", random.nextInt(5000));
+				usage.add("prompt_tokens_details", details);
+				chunk.add("usage", usage);
+			}
+			// 一半用 Gson 默认的转义写出，一半把非 ASCII 字符写成 \\u 转义
+			String json = chunk.toString();
+			if (random.nextBoolean()) {
+				json = escapeNonAscii(json);
+			}
+			sb.append("data: ").append(json).append("\n\n");
+		}
+		if (random.nextBoolean()) {
+			sb.append("data: [DONE]\n\n");
+		}
+		return sb.toString();
+	}
+
+	private static String randomText(Random random) {
+		StringBuilder sb = new StringBuilder();
+		int n = random.nextInt(6);
+		for (int i = 0; i < n; i++) {
+			sb.append(PIECES[random.nextInt(PIECES.length)]);
+		}
+		return sb.toString();
+	}
+
+	private static String escapeNonAscii(String json) {
+		StringBuilder sb = new StringBuilder(json.length());
+		for (int i = 0; i < json.length(); i++) {
+			char c = json.charAt(i);
+			if (c < 0x80) {
+				sb.append(c);
+			} else {
+				sb.append(String.format("\\u%04X", (int) c));
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,79 @@
+package com.mark.test.tools;
+
+import java.util.List;
+import java.util.Map;
+
+import org.mark.llamacpp.server.service.BenchmarkLoadRunner;
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * 	对 {@link FakeLlamaServer} 跑一次并发压测，检查统计结果和模拟的时间一致：
+ * 	<ul>
+ * 	<li>没有失败的请求；</li>
+ * 	<li>token 间隔的 p50 接近 itlMs；</li>
+ * 	<li>首 token 时间的 p50 不小于 ttftMs（客户端比槽位多，还要排队）；</li>
+ * 	<li>提示词长度分档从 min 到 max，个数等于 promptVariants。</li>
+ * 	</ul>
+ * 	用法：java ... com.mark.test.tools.BenchmarkLoadTest
+ */
+public class BenchmarkLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		int slots = 4;
+		int ttftMs = 100;
+		int itlMs = 10;
+		FakeLlamaServer server = new FakeLlamaServer(0, slots, ttftMs, itlMs).start();
+		try {
+			BenchmarkLoadRunner.LoadOptions options = new BenchmarkLoadRunner.LoadOptions();
+			options.concurrency = 8;
+			options.rampUpSeconds = 1;
+			options.durationSeconds = 5;
+			options.promptTokensMin = 128;
+			options.promptTokensMax = 1024;
+			options.maxTokensMin = 32;
+			options.maxTokensMax = 64;
+			String url = "http://127.0.0.1:" + server.getPort() + "/v1/chat/completions";
+			BenchmarkLoadRunner runner = new BenchmarkLoadRunner(url, null, "fake", options, n -> {
+				JsonObject msg = new JsonObject();
+				msg.addProperty("role", "user");
+				msg.addProperty("content", " a".repeat(n));
+				JsonArray messages = new JsonArray();
+				messages.add(msg);
+				return messages;
+			});
+			Map<String, Object> results = runner.run();
+			System.out.println(JsonUtil.toJson(results));
+
+			int requests = ((Number) results.get("requests")).intValue();
+			Checks.check(requests > 0 && ((Number) results.get("failed")).intValue() == 0, requests + " 个请求没有失败");
+			double itl = p50(results, "itlMs");
+			Checks.check(Math.abs(itl - itlMs) <= itlMs * 0.5, "token 间隔 p50 " + itl + "ms 接近 " + itlMs + "ms");
+			double ttft = p50(results, "ttftMs");
+			Checks.check(ttft >= ttftMs, "首 token 时间 p50 " + ttft + "ms 不小于 " + ttftMs + "ms");
+			@SuppressWarnings("unchecked")
+			List<Integer> lengths = (List<Integer>) results.get("promptLengths");
+			boolean inRange = true;
+			for (int n : lengths) {
+				inRange &= n >= options.promptTokensMin && n <= options.promptTokensMax;
+			}
+			Checks.check(lengths.size() == options.promptVariants && inRange && lengths.get(0) == options.promptTokensMin
+					&& lengths.get(lengths.size() - 1) == options.promptTokensMax, "提示词长度分档 " + lengths);
+		} finally {
+			server.stop();
+		}
+		System.out.println("BenchmarkLoadTest: OK");
+		System.exit(0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static double p50(Map<String, Object> results, String key) {
+		Object v = ((Map<String, Object>) results.get(key)).get("p50");
+		if (v == null) {
+			throw new AssertionError("失败: " + key + " 没有数据");
+		}
+		return ((Number) v).doubleValue();
+	}
+}
@@ -0,0 +1,29 @@
+package com.mark.test.tools;
+
+/**
+ * 	测试主类共用的检查：通过时输出“通过: …”，失败时抛出 AssertionError，main 以非零状态退出。
+ */
+final class Checks {
+
+	private Checks() {
+
+	}
+
+	static void check(boolean ok, String what) {
+		check(ok, what, true);
+	}
+
+	/**
+	 * @param ok
+	 * @param what
+	 * @param print 通过时是否输出，循环里的检查传 false
+	 */
+	static void check(boolean ok, String what, boolean print) {
+		if (!ok) {
+			throw new AssertionError("失败: " + what);
+		}
+		if (print) {
+			System.out.println("通过: " + what);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.mark.test.tools;
+
+import java.nio.charset.StandardCharsets;
+
+import org.mark.llamacpp.server.io.ConsoleLineBuffer;
+
+/**
+ * 	控制台日志每追加一行的耗时。原来的做法是 StringBuilder 追加后整体编码成 UTF-8 检查 2MB 上限，
+ * 	缓冲越满每行越慢；现在是 {@link ConsoleLineBuffer}，每行只编码一次，超出上限整行丢弃。
+ * 	两种做法都从空缓冲开始写，每写满上限的 1/4 输出一次这一段的平均耗时，最后再看写满以后的稳定耗时。
+ * 	<p>
+ * 	用法：java ... com.mark.test.tools.ConsoleBufferBenchmark [上限字节数] [每行字节数]
+ */
+public class ConsoleBufferBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int maxBytes = args.length > 0 ? Integer.parseInt(args[0]) : 2 * 1024 * 1024;
+		int lineBytes = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		String[] lines = new String[256];
+		for (int i = 0; i < lines.length; i++) {
+			StringBuilder sb = new StringBuilder("srv  log_server_r: request: POST /v1/chat/completions 127.0.0.1 200 slot ").append(i).append(' ');
+			while (sb.length() < lineBytes - 1) {
+				sb.append((char) ('a' + i % 26));
+			}
+			lines[i] = sb.toString();
+		}
+		int perStep = maxBytes / lineBytes / 4;
+		System.out.printf("上限 %d 字节，每行约 %d 字节，每段 %d 行%n", maxBytes, lineBytes, perStep);
+
+		LegacyConsoleBuffer legacy = new LegacyConsoleBuffer(maxBytes);
+		ConsoleLineBuffer ring = new ConsoleLineBuffer(maxBytes);
+		// 预热，用单独的实例
+		LegacyConsoleBuffer warmLegacy = new LegacyConsoleBuffer(64 * 1024);
+		ConsoleLineBuffer warmRing = new ConsoleLineBuffer(64 * 1024);
+		for (int i = 0; i < 20_000; i++) {
+			warmLegacy.append(lines[i & 255]);
+			warmRing.append(lines[i & 255]);
+		}
+
+		for (int step = 1; step <= 6; step++) {
+			String label = step <= 4 ? "写到 " + (step * 25) + "%" : "写满以后 " + (step - 4);
+			double legacyNs = measure(perStep, i -> legacy.append(lines[i & 255]));
+			double ringNs = measure(perStep, i -> ring.append(lines[i & 255]));
+			System.out.printf("%-12s StringBuilder %10.2f µs/行   ConsoleLineBuffer %8.3f µs/行%n", label, legacyNs / 1e3, ringNs / 1e3);
+		}
+		System.out.printf("内容 %d / %d 字节%n", legacy.length(), ring.getBytes());
+		System.exit(0);
+	}
+
+	@FunctionalInterface
+	private interface Append {
+		void append(int i);
+	}
+
+	private static double measure(int n, Append append) {
+		long t0 = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			append.append(i);
+		}
+		return (double) (System.nanoTime() - t0) / n;
+	}
+
+	/**
+	 * 	原来 LlamaServer 里的控制台缓冲。
+	 */
+	private static class LegacyConsoleBuffer {
+
+		private final int maxBytes;
+
+		private final StringBuilder buffer = new StringBuilder();
+
+		LegacyConsoleBuffer(int maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized void append(String line) {
+			String entry = line == null ? "\n" : line + "\n";
+			this.buffer.append(entry);
+			String trimmed = this.trim(this.buffer.toString());
+			if (trimmed.length() != this.buffer.length()) {
+				this.buffer.setLength(0);
+				this.buffer.append(trimmed);
+			}
+		}
+
+		synchronized int length() {
+			return this.buffer.toString().getBytes(StandardCharsets.UTF_8).length;
+		}
+
+		private String trim(String text) {
+			if (text == null || text.isEmpty()) {
+				return "";
+			}
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			if (bytes.length <= this.maxBytes) {
+				return text;
+			}
+			int start = bytes.length - this.maxBytes;
+			while (start < bytes.length && (bytes[start] & 0xC0) == 0x80) {
+				start++;
+			}
+			if (start >= bytes.length) {
+				return "";
+			}
+			return new String(bytes, start, bytes.length - start, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.mark.test.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.mark.llamacpp.server.EmbeddingCache;
+import org.mark.llamacpp.server.service.EmbeddingService;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * 	嵌入缓存的检查。本地 HttpServer 模拟 llama-server 的 /v1/embeddings，记录每次收到的输入：
+ * 	<ul>
+ * 	<li>批量请求里部分命中时只把没命中的发给上游，同一批里重复的文本只发一次，结果按原顺序合并；</li>
+ * 	<li>模型文件、池化方式或者 embd_normalize 等参数不同时不会命中；</li>
+ * 	<li>内存层按访问顺序淘汰，磁盘层在新实例里仍然能命中，超过上限时删掉旧文件；</li>
+ * 	<li>base64 输出、上游报错、token 数组输入和流式接管的判断。</li>
+ * 	</ul>
+ */
+public class EmbeddingCacheTest {
+
+	private static final int DIM = 16;
+
+	private static final AtomicInteger calls = new AtomicInteger();
+
+	private static final List<List<String>> received = new CopyOnWriteArrayList<>();
+
+	public static void main(String[] args) throws Exception {
+		HttpServer upstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		upstream.createContext("/v1/embeddings", EmbeddingCacheTest::handleEmbeddings);
+		upstream.createContext("/broken/v1/embeddings", exchange -> {
+			calls.incrementAndGet();
+			exchange.getRequestBody().readAllBytes();
+			send(exchange, 503, "{\"error\":{\"message\":\"Loading model\",\"type\":\"unavailable_error\",\"code\":503}}");
+		});
+		upstream.start();
+		String url = "http://127.0.0.1:" + upstream.getAddress().getPort() + "/v1/embeddings";
+		String brokenUrl = "http://127.0.0.1:" + upstream.getAddress().getPort() + "/broken/v1/embeddings";
+
+		String identity = EmbeddingCache.modelIdentity("/models/bge-m3/bge-m3-Q8_0.gguf", 635_000_000L, 1_700_000_000_000L, "mean");
+		EmbeddingService service = new EmbeddingService(new EmbeddingCache(64L * 1024 * 1024, null, 0));
+
+		// 1. 全部没命中
+		EmbeddingService.Result r = service.embed(identity, "bge-m3", url, null, request("a", "b", "c"), null);
+		Checks.check(r.isSuccess() && calls.get() == 1 && received.get(0).equals(List.of("a", "b", "c")), "第一次请求全部发给上游");
+		checkVectors(r, "a", "b", "c");
+		Checks.check(r.getCachedCount() == 0 && r.getPromptTokens() == 3, "usage 是上游的 prompt_tokens: " + r.getPromptTokens());
+
+		// 2. 部分命中，重复的 d 只发一次
+		r = service.embed(identity, "bge-m3", url, null, request("b", "d", "a", "d"), null);
+		Checks.check(calls.get() == 2 && received.get(1).equals(List.of("d")), "部分命中时只发没命中的输入: " + received.get(1));
+		checkVectors(r, "b", "d", "a", "d");
+		Checks.check(r.getCachedCount() == 2 && r.getPromptTokens() == 1, "命中 2 条，usage 只算上游的 1 条");
+
+		// 3. 全部命中，单个字符串输入
+		JsonObject single = new JsonObject();
+		single.addProperty("model", "bge-m3");
+		single.addProperty("input", "c");
+		r = service.embed(identity, "bge-m3", url, null, single, null);
+		Checks.check(calls.get() == 2 && r.getVectors().length == 1 && r.getPromptTokens() == 0, "全部命中时不访问上游");
+		checkVectors(r, "c");
+
+		// 4. 选项、模型文件、池化方式不同都不命中
+		JsonObject normalized = request("a");
+		normalized.addProperty("embd_normalize", -1);
+		service.embed(identity, "bge-m3", url, null, normalized, null);
+		Checks.check(calls.get() == 3, "embd_normalize 不同时不命中");
+		JsonObject withUser = request("a");
+		withUser.addProperty("user", "someone");
+		withUser.addProperty("encoding_format", "float");
+		service.embed(identity, "bge-m3", url, null, withUser, null);
+		Checks.check(calls.get() == 3, "user、encoding_format 不影响命中");
+		String touched = EmbeddingCache.modelIdentity("/models/bge-m3/bge-m3-Q8_0.gguf", 635_000_000L, 1_700_000_000_001L, "mean");
+		service.embed(touched, "bge-m3", url, null, request("a"), null);
+		Checks.check(calls.get() == 4, "模型文件修改时间变了以后不命中");
+		String cls = EmbeddingCache.modelIdentity("/models/bge-m3/bge-m3-Q8_0.gguf", 635_000_000L, 1_700_000_000_000L, "cls");
+		service.embed(cls, "bge-m3", url, null, request("a"), null);
+		Checks.check(calls.get() == 5, "池化方式变了以后不命中");
+
+		// 5. base64 输出和 float 输出是同一组向量
+		r = service.embed(identity, "bge-m3", url, null, request("a", "b"), null);
+		JsonObject floats = JsonParser.parseString(r.toOpenAIJson(false)).getAsJsonObject();
+		JsonObject b64 = JsonParser.parseString(r.toOpenAIJson(true)).getAsJsonObject();
+		JsonArray data = floats.getAsJsonArray("data");
+		Checks.check(data.size() == 2 && data.get(1).getAsJsonObject().get("index").getAsInt() == 1
+				&& "list".equals(floats.get("object").getAsString()), "OpenAI 格式的响应");
+		for (int i = 0; i < 2; i++) {
+			JsonArray arr = data.get(i).getAsJsonObject().getAsJsonArray("embedding");
+			float[] fromFloat = new float[arr.size()];
+			for (int j = 0; j < arr.size(); j++) {
+				fromFloat[j] = arr.get(j).getAsFloat();
+			}
+			byte[] raw = Base64.getDecoder().decode(b64.getAsJsonArray("data").get(i).getAsJsonObject().get("embedding").getAsString());
+			float[] fromBase64 = new float[raw.length / 4];
+			ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(fromBase64);
+			Checks.check(Arrays.equals(fromFloat, vectorOf(i == 0 ? "a" : "b")) && Arrays.equals(fromBase64, fromFloat),
+					"第 " + i + " 条的 float 和 base64 输出一致");
+		}
+
+		// 6. token 数组不走缓存
+		JsonObject tokens = new JsonObject();
+		JsonArray ids = new JsonArray();
+		ids.add(1);
+		ids.add(2);
+		tokens.add("input", ids);
+		Checks.check(service.embed(identity, "bge-m3", url, null, tokens, null) == null && EmbeddingService.textInputs(tokens) == null,
+				"token 数组输入不走缓存");
+
+		// 7. 上游报错时原样返回，不缓存
+		int before = calls.get();
+		r = service.embed(identity, "bge-m3", brokenUrl, null, request("x"), null);
+		Checks.check(!r.isSuccess() && r.getStatusCode() == 503 && r.getErrorBody().contains("Loading model"), "上游的错误原样返回");
+		service.embed(identity, "bge-m3", url, null, request("x"), null);
+		Checks.check(calls.get() == before + 2, "出错的输入没有缓存下来");
+
+		// 8. 内存层按访问顺序淘汰：每条约 200 + 64 字节，上限放得下 3 条
+		EmbeddingCache small = new EmbeddingCache(3 * (200 + 4 * DIM), null, 0);
+		small.put("k1", vectorOf("1"));
+		small.put("k2", vectorOf("2"));
+		small.put("k3", vectorOf("3"));
+		small.get("k1");
+		small.put("k4", vectorOf("4"));
+		Checks.check(small.size() == 3 && small.get("k2") == null && small.get("k1") != null && small.get("k4") != null, "淘汰最久没用的 k2");
+
+		// 9. 磁盘层：新实例能读到，超过上限时删旧文件
+		Path dir = Files.createTempDirectory("embedding-cache");
+		EmbeddingService first = new EmbeddingService(new EmbeddingCache(0, dir, 1024L * 1024));
+		first.embed(identity, "bge-m3", url, null, request("p", "q"), null);
+		first.getCache().flush();
+		before = calls.get();
+		EmbeddingService second = new EmbeddingService(new EmbeddingCache(1024L * 1024, dir, 1024L * 1024));
+		r = second.embed(identity, "bge-m3", url, null, request("q", "p"), null);
+		Checks.check(calls.get() == before && r.getCachedCount() == 2, "磁盘层在新实例里命中");
+		checkVectors(r, "q", "p");
+
+		Path tiny = Files.createTempDirectory("embedding-cache-tiny");
+		long fileSize = 8 + 4 * DIM;
+		EmbeddingCache bounded = new EmbeddingCache(0, tiny, 10 * fileSize);
+		for (int i = 0; i < 40; i++) {
+			bounded.put(EmbeddingCache.key(identity, "{}", "t" + i), vectorOf("t" + i));
+		}
+		bounded.flush();
+		long total;
+		long count;
+		try (Stream<Path> files = Files.walk(tiny)) {
+			List<Path> list = files.filter(p -> p.toString().endsWith(".emb")).toList();
+			count = list.size();
+			total = 0;
+			for (Path p : list) {
+				total += Files.size(p);
+			}
+		}
+		Checks.check(total <= 10 * fileSize && count > 0, "磁盘层不超过上限: " + count + " 个文件, " + total + " 字节");
+		Checks.check(bounded.get(EmbeddingCache.key(identity, "{}", "t39")) != null, "最新写入的还在磁盘上");
+
+		// 10. 流式接管的判断
+		Checks.check(service.accepts(post(1000)), "长度已知的小请求体交给聚合处理");
+		Checks.check(!service.accepts(post(-1)), "chunked 请求体仍然流式转发");
+		Checks.check(!service.accepts(post(EmbeddingService.MAX_CACHEABLE_BODY_BYTES + 1L)), "超过上限的请求体仍然流式转发");
+		Checks.check(!new EmbeddingService(new EmbeddingCache(0, null, 0)).accepts(post(1000)), "缓存关闭时不拦截");
+
+		upstream.stop(0);
+		System.out.println("EmbeddingCacheTest: OK");
+		System.exit(0);
+	}
+
+	private static JsonObject request(String... inputs) {
+		JsonObject req = new JsonObject();
+		req.addProperty("model", "bge-m3");
+		JsonArray arr = new JsonArray();
+		for (String s : inputs) {
+			arr.add(s);
+		}
+		req.add("input", arr);
+		return req;
+	}
+
+	private static HttpRequest post(long contentLength) {
+		HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/v1/embeddings");
+		if (contentLength >= 0) {
+			req.headers().set(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+		}
+		return req;
+	}
+
+	/**
+	 * 	由文本确定的假向量。
+	 */
+	private static float[] vectorOf(String text) {
+		float[] v = new float[DIM];
+		int h = text.hashCode();
+		for (int i = 0; i < DIM; i++) {
+			h = h * 31 + i;
+			v[i] = (h % 10000) / 10000f;
+		}
+		return v;
+	}
+
+	private static void checkVectors(EmbeddingService.Result r, String... texts) {
+		float[][] vectors = r.getVectors();
+		boolean ok = vectors.length == texts.length;
+		for (int i = 0; ok && i < texts.length; i++) {
+			ok = Arrays.equals(vectors[i], vectorOf(texts[i]));
+		}
+		Checks.check(ok, "结果按输入顺序合并: " + Arrays.toString(texts));
+	}
+
+	/**
+	 * 	和 llama-server 的格式一样，只是 data 倒序排列，检查按 index 合并。
+	 */
+	private static void handleEmbeddings(HttpExchange exchange) throws IOException {
+		calls.incrementAndGet();
+		JsonObject req = JsonParser.parseString(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)).getAsJsonObject();
+		List<String> inputs = new ArrayList<>();
+		for (JsonElement e : req.getAsJsonArray("input")) {
+			inputs.add(e.getAsString());
+		}
+		received.add(inputs);
+		StringBuilder sb = new StringBuilder("{\"model\":\"bge-m3\",\"object\":\"list\",\"usage\":{\"prompt_tokens\":");
+		sb.append(inputs.size()).append(",\"total_tokens\":").append(inputs.size()).append("},\"data\":[");
+		for (int i = inputs.size() - 1; i >= 0; i--) {
+			sb.append("{\"embedding\":[");
+			float[] v = vectorOf(inputs.get(i));
+			for (int j = 0; j < v.length; j++) {
+				sb.append(j > 0 ? "," : "").append(v[j]);
+			}
+			sb.append("],\"index\":").append(i).append(",\"object\":\"embedding\"}").append(i > 0 ? "," : "");
+		}
+		sb.append("]}");
+		send(exchange, 200, sb.toString());
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package com.mark.test.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 	模拟 llama-server 的最小实现，用于在没有模型、没有GPU的机器上测试压测和转发逻辑。
+ * 	<p>
+ * 	支持 /v1/chat/completions（流式和非流式）、/apply-template、/tokenize、/health、/v1/models、/slots。
+ * 	每个请求先占一个槽位（相当于 -np），首 token 前等待 ttftMs，之后每 itlMs 输出一个 token，
+ * 	最后一个数据块带 llama.cpp 格式的 timings。tokenize 按空白分词，一个词算一个 token。
+ * 	<p>
+ * 	单独运行时和 llama-server 一样在就绪后输出 all slots are idle，可以放在假的 llama-server 脚本里代替它被 LlamaServerManager 启动。
+ * 	<p>
+ * 	用法：java ... com.mark.test.tools.FakeLlamaServer [port] [slots] [ttftMs] [itlMs]
+ */
+public class FakeLlamaServer {
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+	private final Semaphore slots;
+	private final int slotCount;
+	private final int ttftMs;
+	private final int itlMs;
+
+	/**
+	 *
+	 * @param port 0 表示随机端口
+	 * @param slots 同时处理的请求数，其余的排队
+	 * @param ttftMs 拿到槽位后到第一个 token 的时间
+	 * @param itlMs 每个 token 的间隔
+	 * @throws IOException
+	 */
+	public FakeLlamaServer(int port, int slots, int ttftMs, int itlMs) throws IOException {
+		this.slotCount = Math.max(1, slots);
+		this.slots = new Semaphore(this.slotCount, true);
+		this.ttftMs = Math.max(0, ttftMs);
+		this.itlMs = Math.max(0, itlMs);
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/v1/chat/completions", this::handleChat);
+		this.server.createContext("/apply-template", this::handleApplyTemplate);
+		this.server.createContext("/tokenize", this::handleTokenize);
+		this.server.createContext("/health", ex -> this.sendJson(ex, 200, "{\"status\":\"ok\"}"));
+		this.server.createContext("/v1/models", ex -> this.sendJson(ex, 200,
+				"{\"object\":\"list\",\"data\":[{\"id\":\"fake\",\"object\":\"model\",\"owned_by\":\"llamacpp\"}]}"));
+		this.server.createContext("/slots", this::handleSlots);
+	}
+
+	public FakeLlamaServer start() {
+		this.server.start();
+		return this;
+	}
+
+	public void stop() {
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+
+	public int getPort() {
+		return this.server.getAddress().getPort();
+	}
+
+	private void handleChat(HttpExchange ex) throws IOException {
+		JsonObject req = this.readJson(ex);
+		if (req == null) {
+			this.sendJson(ex, 400, "{\"error\":{\"code\":400,\"message\":\"invalid json\",\"type\":\"invalid_request_error\"}}");
+			return;
+		}
+		String model = JsonUtil.getJsonString(req, "model", "fake");
+		int maxTokens = JsonUtil.getJsonInt(req, "max_tokens", 16);
+		boolean stream = req.has("stream") && req.get("stream").getAsBoolean();
+		int promptTokens = countWords(concatMessages(req.get("messages")));
+		String id = "chatcmpl-fake" + ThreadLocalRandom.current().nextInt(1_000_000);
+		long created = System.currentTimeMillis() / 1000;
+
+		try {
+			this.slots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			ex.close();
+			return;
+		}
+		try {
+			long start = System.nanoTime();
+			if (!stream) {
+				sleep(this.ttftMs + (long) this.itlMs * Math.max(0, maxTokens - 1));
+				StringBuilder text = new StringBuilder();
+				for (int i = 0; i < maxTokens; i++) {
+					text.append(" tok").append(i);
+				}
+				JsonObject resp = new JsonObject();
+				resp.addProperty("id", id);
+				resp.addProperty("object", "chat.completion");
+				resp.addProperty("created", created);
+				resp.addProperty("model", model);
+				JsonObject message = new JsonObject();
+				message.addProperty("role", "assistant");
+				message.addProperty("content", text.toString());
+				JsonObject choice = new JsonObject();
+				choice.addProperty("index", 0);
+				choice.addProperty("finish_reason", "length");
+				choice.add("message", message);
+				JsonArray choices = new JsonArray();
+				choices.add(choice);
+				resp.add("choices", choices);
+				resp.add("usage", usage(promptTokens, maxTokens));
+				resp.add("timings", this.timings(promptTokens, maxTokens, start));
+				this.sendJson(ex, 200, JsonUtil.toJson(resp));
+				return;
+			}
+
+			ex.getResponseHeaders().set("Content-Type", "text/event-stream");
+			ex.getResponseHeaders().set("Cache-Control", "no-cache");
+			ex.sendResponseHeaders(200, 0);
+			try (OutputStream os = ex.getResponseBody()) {
+				String head = "{\"choices\":[{\"finish_reason\":null,\"index\":0,\"delta\":{\"role\":\"assistant\",\"content\":null}}],"
+						+ "\"created\":" + created + ",\"id\":\"" + id + "\",\"model\":\"" + model + "\",\"object\":\"chat.completion.chunk\"}";
+				writeEvent(os, head);
+				sleep(this.ttftMs);
+				for (int i = 0; i < maxTokens; i++) {
+					if (i > 0) {
+						sleep(this.itlMs);
+					}
+					writeEvent(os, "{\"choices\":[{\"finish_reason\":null,\"index\":0,\"delta\":{\"content\":\" tok" + i + "\"}}],"
+							+ "\"created\":" + created + ",\"id\":\"" + id + "\",\"model\":\"" + model + "\",\"object\":\"chat.completion.chunk\"}");
+				}
+				JsonObject last = new JsonObject();
+				JsonArray choices = new JsonArray();
+				JsonObject choice = new JsonObject();
+				choice.addProperty("finish_reason", "length");
+				choice.addProperty("index", 0);
+				choice.add("delta", new JsonObject());
+				choices.add(choice);
+				last.add("choices", choices);
+				last.addProperty("created", created);
+				last.addProperty("id", id);
+				last.addProperty("model", model);
+				last.addProperty("object", "chat.completion.chunk");
+				last.add("usage", usage(promptTokens, maxTokens));
+				last.add("timings", this.timings(promptTokens, maxTokens, start));
+				writeEvent(os, JsonUtil.toJson(last));
+				writeEvent(os, "[DONE]");
+			} catch (IOException e) {
+				// 客户端断开
+			}
+		} finally {
+			this.slots.release();
+		}
+	}
+
+	private void handleSlots(HttpExchange ex) throws IOException {
+		JsonArray slots = new JsonArray();
+		for (int i = 0; i < this.slotCount; i++) {
+			JsonObject slot = new JsonObject();
+			slot.addProperty("id", i);
+			slot.addProperty("n_ctx", 4096);
+			slot.addProperty("is_processing", false);
+			slots.add(slot);
+		}
+		this.sendJson(ex, 200, JsonUtil.toJson(slots));
+	}
+
+	private void handleApplyTemplate(HttpExchange ex) throws IOException {
+		JsonObject req = this.readJson(ex);
+		JsonObject resp = new JsonObject();
+		resp.addProperty("prompt", req == null ? "" : concatMessages(req.get("messages")));
+		this.sendJson(ex, 200, JsonUtil.toJson(resp));
+	}
+
+	private void handleTokenize(HttpExchange ex) throws IOException {
+		JsonObject req = this.readJson(ex);
+		int n = countWords(req == null ? "" : JsonUtil.getJsonString(req, "content", ""));
+		StringBuilder sb = new StringBuilder(16 + n * 4).append("{\"tokens\":[");
+		for (int i = 0; i < n; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(i % 32000);
+		}
+		sb.append("]}");
+		this.sendJson(ex, 200, sb.toString());
+	}
+
+	private JsonObject timings(int promptTokens, int predicted, long startNanos) {
+		double totalMs = (System.nanoTime() - startNanos) / 1e6;
+		double promptMs = Math.min(this.ttftMs, totalMs);
+		double predictedMs = Math.max(0.001, totalMs - promptMs);
+		JsonObject t = new JsonObject();
+		t.addProperty("prompt_n", promptTokens);
+		t.addProperty("prompt_ms", promptMs);
+		t.addProperty("prompt_per_second", promptMs <= 0 ? 0 : promptTokens * 1000.0 / promptMs);
+		t.addProperty("predicted_n", predicted);
+		t.addProperty("predicted_ms", predictedMs);
+		t.addProperty("predicted_per_second", predicted * 1000.0 / predictedMs);
+		return t;
+	}
+
+	private static JsonObject usage(int promptTokens, int completionTokens) {
+		JsonObject u = new JsonObject();
+		u.addProperty("prompt_tokens", promptTokens);
+		u.addProperty("completion_tokens", completionTokens);
+		u.addProperty("total_tokens", promptTokens + completionTokens);
+		return u;
+	}
+
+	private static void writeEvent(OutputStream os, String data) throws IOException {
+		os.write(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+		os.flush();
+	}
+
+	private static String concatMessages(JsonElement messages) {
+		if (messages == null || !messages.isJsonArray()) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (JsonElement el : messages.getAsJsonArray()) {
+			if (el.isJsonObject() && el.getAsJsonObject().has("content")) {
+				JsonElement c = el.getAsJsonObject().get("content");
+				if (c.isJsonPrimitive()) {
+					sb.append(c.getAsString()).append('\n');
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static int countWords(String text) {
+		int n = 0;
+		boolean inWord = false;
+		for (int i = 0; i < text.length(); i++) {
+			boolean ws = Character.isWhitespace(text.charAt(i));
+			if (!ws && !inWord) {
+				n++;
+			}
+			inWord = !ws;
+		}
+		return n;
+	}
+
+	private static void sleep(long ms) {
+		if (ms <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private JsonObject readJson(HttpExchange ex) throws IOException {
+		try (InputStream in = ex.getRequestBody()) {
+			return JsonUtil.tryParseObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+	}
+
+	private void sendJson(HttpExchange ex, int code, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		ex.sendResponseHeaders(code, bytes.length);
+		try (OutputStream os = ex.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 18080;
+		int slots = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int ttftMs = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int itlMs = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+		FakeLlamaServer server = new FakeLlamaServer(port, slots, ttftMs, itlMs).start();
+		System.out.println("FakeLlamaServer listening on 127.0.0.1:" + server.getPort()
+				+ " (slots=" + slots + ", ttft=" + ttftMs + "ms, itl=" + itlMs + "ms)");
+		System.out.println("srv  update_slots: all slots are idle");
+	}
+}
@@ -0,0 +1,106 @@
+package com.mark.test.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.mark.llamacpp.gguf.GGUFMetaData;
+import org.mark.llamacpp.gguf.GGUFMetadataCache;
+
+/**
+ * 	GGUFMetadataCache 的检查：替换文件后必须重新解析，索引文件重启后可以直接使用。
+ */
+public class GGUFMetadataCacheTest {
+
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("gguf-cache-test");
+		Path index = dir.resolve("cache/gguf-metadata.idx");
+		File model = dir.resolve("model.gguf").toFile();
+
+		writeGguf(model, "first", 4096, "{{ first }}", 50000);
+		GGUFMetadataCache cache = new GGUFMetadataCache(index);
+		GGUFMetaData md = cache.getMetaData(model);
+		Checks.check("first".equals(md.getName()), "读取name");
+		Checks.check(Integer.valueOf(4096).equals(md.getContextLength()), "读取context_length");
+		Checks.check("{{ first }}".equals(cache.getChatTemplate(model)), "读取chat_template");
+		Checks.check(Long.valueOf(50000).equals(cache.get(model).getArrayLengths().get("tokenizer.ggml.tokens")), "长数组只记录长度");
+		Checks.check(!cache.get(model).getMetadata().containsKey("tokenizer.ggml.tokens"), "长数组不缓存内容");
+
+		// 替换文件：内容和大小都变了
+		writeGguf(model, "second-model", 8192, "{{ second }}", 50000);
+		Checks.check("second-model".equals(cache.getMetaData(model).getName()), "替换文件后重新解析");
+		Checks.check("{{ second }}".equals(cache.getChatTemplate(model)), "替换文件后模板更新");
+
+		// 替换成大小相同的文件，只有修改时间不同
+		writeGguf(model, "third-model!", 8192, "{{ second }}", 50000);
+		Files.setLastModifiedTime(model.toPath(), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+		Checks.check("third-model!".equals(cache.getMetaData(model).getName()), "大小不变、修改时间变化时重新解析");
+
+		// 不是GGUF的文件
+		File bogus = dir.resolve("bogus.gguf").toFile();
+		Files.writeString(bogus.toPath(), "not a gguf file");
+		Checks.check(cache.get(bogus) == null, "非GGUF文件返回null");
+
+		// 写盘后用新实例载入，不需要再解析
+		cache.flush();
+		Checks.check(Files.isRegularFile(index), "索引文件已写入");
+		GGUFMetadataCache reloaded = new GGUFMetadataCache(index);
+		Checks.check(reloaded.size() == 2, "重新载入条目数");
+		Checks.check("third-model!".equals(reloaded.getMetaData(model).getName()), "重新载入后读取");
+
+		// 重启期间文件被替换
+		writeGguf(model, "fourth", 2048, "{{ fourth }}", 10);
+		GGUFMetadataCache afterReplace = new GGUFMetadataCache(index);
+		GGUFMetaData md4 = afterReplace.getMetaData(model);
+		Checks.check("fourth".equals(md4.getName()) && Integer.valueOf(2048).equals(md4.getContextLength()), "重启期间替换的文件重新解析");
+		Checks.check(Long.valueOf(10).equals(afterReplace.get(model).getArrayLengths().get("tokenizer.ggml.tokens")), "词表长度更新");
+
+		System.out.println("GGUFMetadataCacheTest: OK");
+	}
+
+	/**
+	 * 	写一个只有元数据、没有张量的GGUF文件。
+	 */
+	private static void writeGguf(File file, String name, int contextLength, String chatTemplate, int vocabSize) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write("GGUF".getBytes(StandardCharsets.US_ASCII));
+		out.write(le(4).putInt(3).array());
+		out.write(le(8).putLong(0).array());
+		out.write(le(8).putLong(5).array());
+		writeString(out, "general.architecture");
+		out.write(le(4).putInt(8).array());
+		writeString(out, "llama");
+		writeString(out, "general.name");
+		out.write(le(4).putInt(8).array());
+		writeString(out, name);
+		writeString(out, "llama.context_length");
+		out.write(le(4).putInt(4).array());
+		out.write(le(4).putInt(contextLength).array());
+		writeString(out, "tokenizer.chat_template");
+		out.write(le(4).putInt(8).array());
+		writeString(out, chatTemplate);
+		writeString(out, "tokenizer.ggml.tokens");
+		out.write(le(4).putInt(9).array());
+		out.write(le(4).putInt(8).array());
+		out.write(le(8).putLong(vocabSize).array());
+		for (int i = 0; i < vocabSize; i++) {
+			writeString(out, "t" + i);
+		}
+		Files.write(file.toPath(), out.toByteArray());
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String s) throws Exception {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.write(le(8).putLong(bytes.length).array());
+		out.write(bytes);
+	}
+
+	private static ByteBuffer le(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
@@ -0,0 +1,166 @@
+package com.mark.test.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.mark.llamacpp.gguf.GGUFFile;
+import org.mark.llamacpp.gguf.GGUFMetaData;
+import org.mark.llamacpp.gguf.GGUFMetaDataReader;
+import org.mark.llamacpp.gguf.MtpHelper;
+
+/**
+ * 	GGUF头部解析的耗时和内存分配。生成一个15万词表的合成文件（tokens、scores、token_type、merges、聊天模板），
+ * 	对每种读取方式重复多次，输出平均耗时和每次调用在当前线程上分配的字节数。
+ * 	<p>
+ * 	用法：java ... com.mark.test.tools.GGUFParserBenchmark [词表大小] [次数]
+ */
+public class GGUFParserBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int vocab = args.length > 0 ? Integer.parseInt(args[0]) : 150_000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+		File file = File.createTempFile("gguf-bench", ".gguf");
+		file.deleteOnExit();
+		writeSynthetic(file, vocab);
+		System.out.printf("文件: %s, %.1f MB, 词表 %d%n", file, file.length() / 1024.0 / 1024.0, vocab);
+
+		run("GGUFMetaDataReader.read", iterations, () -> GGUFMetaDataReader.read(file).size());
+		run("GGUFMetaDataReader.readHeader(4096)", iterations, () -> GGUFMetaDataReader.readHeader(file, 4096).metadata().size());
+		run("GGUFMetaData.readFile", iterations, () -> GGUFMetaData.readFile(file).getContextLength());
+		run("MtpHelper.detectMtpInfo", iterations, () -> MtpHelper.detectMtpInfo(file).blockCount());
+		run("GGUFFile.open + chat_template", iterations, () -> {
+			try (GGUFFile gguf = GGUFFile.open(file)) {
+				return gguf.getString("tokenizer.chat_template").length();
+			}
+		});
+		run("GGUFFile tokens.indexOf(last)", iterations, () -> {
+			try (GGUFFile gguf = GGUFFile.open(file)) {
+				return gguf.getStringArray("tokenizer.ggml.tokens").indexOf("tok_" + (vocab - 1));
+			}
+		});
+		run("GGUFFile scores + token_type", iterations, () -> {
+			try (GGUFFile gguf = GGUFFile.open(file)) {
+				return gguf.getFloatArray("tokenizer.ggml.scores").length + gguf.getIntArray("tokenizer.ggml.token_type").length;
+			}
+		});
+	}
+
+	@FunctionalInterface
+	private interface Task {
+		Object call() throws Exception;
+	}
+
+	private static void run(String name, int iterations, Task task) throws Exception {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().threadId();
+		// 预热
+		for (int i = 0; i < Math.max(5, iterations / 3); i++) {
+			task.call();
+		}
+		long alloc0 = mx.getThreadAllocatedBytes(tid);
+		long t0 = System.nanoTime();
+		Object sink = null;
+		for (int i = 0; i < iterations; i++) {
+			sink = task.call();
+		}
+		long elapsed = System.nanoTime() - t0;
+		long alloc = mx.getThreadAllocatedBytes(tid) - alloc0;
+		System.out.printf("%-40s %9.2f ms/op %12.1f KB/op  (%s)%n", name, elapsed / 1e6 / iterations,
+				alloc / 1024.0 / iterations, sink);
+	}
+
+	private static void writeSynthetic(File file, int vocab) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20))) {
+			out.write("GGUF".getBytes(StandardCharsets.US_ASCII));
+			u32(out, 3);
+			u64(out, 2);
+			u64(out, 13);
+			kvString(out, "general.architecture", "qwen35");
+			kvString(out, "general.name", "Synthetic Bench Model");
+			kvString(out, "general.size_label", "7B");
+			kvU32(out, "general.file_type", 15);
+			kvU32(out, "qwen35.context_length", 32768);
+			kvU32(out, "qwen35.block_count", 28);
+			kvU32(out, "qwen35.nextn_predict_layers", 1);
+			kvU32(out, "general.alignment", 32);
+			kvString(out, "tokenizer.chat_template", "{% for m in messages %}{{ m.content }}{% endfor %}".repeat(100));
+			// tokenizer.ggml.tokens
+			key(out, "tokenizer.ggml.tokens");
+			u32(out, 9);
+			u32(out, 8);
+			u64(out, vocab);
+			for (int i = 0; i < vocab; i++) {
+				str(out, "tok_" + i);
+			}
+			// tokenizer.ggml.scores
+			key(out, "tokenizer.ggml.scores");
+			u32(out, 9);
+			u32(out, 6);
+			u64(out, vocab);
+			for (int i = 0; i < vocab; i++) {
+				out.writeInt(Integer.reverseBytes(Float.floatToIntBits(-i)));
+			}
+			// tokenizer.ggml.token_type
+			key(out, "tokenizer.ggml.token_type");
+			u32(out, 9);
+			u32(out, 5);
+			u64(out, vocab);
+			for (int i = 0; i < vocab; i++) {
+				u32(out, 1);
+			}
+			// tokenizer.ggml.merges
+			key(out, "tokenizer.ggml.merges");
+			u32(out, 9);
+			u32(out, 8);
+			u64(out, vocab);
+			for (int i = 0; i < vocab; i++) {
+				str(out, "t" + i + " k" + i);
+			}
+			// 两个张量信息
+			for (int t = 0; t < 2; t++) {
+				str(out, "blk." + t + ".attn_output.weight");
+				u32(out, 2);
+				u64(out, 16);
+				u64(out, 16);
+				u32(out, 0);
+				u64(out, t * 1024L);
+			}
+			out.write(new byte[4096]);
+		}
+	}
+
+	private static void kvString(DataOutputStream out, String key, String value) throws IOException {
+		key(out, key);
+		u32(out, 8);
+		str(out, value);
+	}
+
+	private static void kvU32(DataOutputStream out, String key, int value) throws IOException {
+		key(out, key);
+		u32(out, 4);
+		u32(out, value);
+	}
+
+	private static void key(DataOutputStream out, String key) throws IOException {
+		str(out, key);
+	}
+
+	private static void str(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		u64(out, b.length);
+		out.write(b);
+	}
+
+	private static void u32(DataOutputStream out, int v) throws IOException {
+		out.writeInt(Integer.reverseBytes(v));
+	}
+
+	private static void u64(DataOutputStream out, long v) throws IOException {
+		out.writeLong(Long.reverseBytes(v));
+	}
+}
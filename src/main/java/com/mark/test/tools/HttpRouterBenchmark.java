@@ -0,0 +1,168 @@
+package com.mark.test.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mark.llamacpp.server.channel.BasicRouterHandler;
+import org.mark.llamacpp.server.channel.HttpRouter;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+/**
+ * 	路由表的检查和分发耗时。先确认全部控制器注册的每个路由都能找回自己、方法不对时返回405、路径参数能取到值，
+ * 	再对比原来按顺序逐个 startsWith 的控制器链和基数树的查找耗时：最前面的路由、最后面的路由、全部路由轮流、不存在的路径。
+ * 	<p>
+ * 	用法：java ... com.mark.test.tools.HttpRouterBenchmark [次数]
+ */
+public class HttpRouterBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+		HttpRouter router = BasicRouterHandler.getRouter();
+		List<HttpRouter.Route> routes = router.getRoutes();
+		System.out.println("路由数: " + routes.size());
+
+		// 1. 每个路由都能找回自己，带查询参数和结尾的 '/' 也一样
+		boolean all = true;
+		for (HttpRouter.Route route : routes) {
+			for (String uri : List.of(route.getPattern(), route.getPattern() + "?modelId=a%2Fb&x=1", route.getPattern() + "/")) {
+				HttpRouter.Match m = router.match(route.getMethod(), uri);
+				if (m.getStatus() != HttpRouter.Status.FOUND || m.getRoute() != route) {
+					System.out.println("找不到: " + route.getMethod() + " " + uri);
+					all = false;
+				}
+			}
+		}
+		Checks.check(all, "全部 " + routes.size() + " 个路由都能按 方法+路径 找到");
+		Checks.check(router.match(HttpMethod.GET, "/api/models/loaded").getRoute().getPattern().equals("/api/models/loaded")
+				&& router.match(HttpMethod.POST, "/api/models/load").getRoute().getPattern().equals("/api/models/load"),
+				"/api/models/load 和 /api/models/loaded 互不影响");
+		HttpRouter.Match wrong = router.match(HttpMethod.POST, "/api/models/list");
+		Checks.check(wrong.getStatus() == HttpRouter.Status.METHOD_NOT_ALLOWED && "GET".equals(wrong.getAllow()), "方法不对返回405，Allow: " + wrong.getAllow());
+		HttpRouter.Match setting = router.match(HttpMethod.PUT, "/api/sys/setting");
+		Checks.check(setting.getStatus() == HttpRouter.Status.METHOD_NOT_ALLOWED && "GET, POST".equals(setting.getAllow()), "同一路径两个方法，Allow: " + setting.getAllow());
+		Checks.check(router.match(HttpMethod.GET, "/api/models/lis").getStatus() == HttpRouter.Status.NOT_FOUND
+				&& router.match(HttpMethod.GET, "/api/models").getStatus() == HttpRouter.Status.NOT_FOUND
+				&& router.match(HttpMethod.POST, "/v1/chat/completions").getStatus() == HttpRouter.Status.NOT_FOUND,
+				"不存在的路径返回 NOT_FOUND（交给后面的处理器）");
+
+		// 2. 路径参数
+		HttpRouter params = new HttpRouter();
+		params.get("/api/node/list", (ctx, request) -> {});
+		params.add(HttpMethod.GET, "/api/node/{nodeId}/status", (ctx, request, match) -> {});
+		params.add(HttpMethod.GET, "/api/node/{nodeId}/models/{modelId}", (ctx, request, match) -> {});
+		params.compile();
+		HttpRouter.Match p = params.match(HttpMethod.GET, "/api/node/gpu%20box/models/qwen3?x=1");
+		Checks.check(p.getStatus() == HttpRouter.Status.FOUND && "gpu box".equals(p.getParam("nodeId")) && "qwen3".equals(p.getParam("modelId")),
+				"路径参数: nodeId=" + p.getParam("nodeId") + ", modelId=" + p.getParam("modelId"));
+		Checks.check(params.match(HttpMethod.GET, "/api/node/list").getRoute().getPattern().equals("/api/node/list")
+				&& params.match(HttpMethod.GET, "/api/node/list/status").getParam("nodeId").equals("list"),
+				"静态路径优先，不匹配时回退到参数");
+		Checks.check(params.match(HttpMethod.GET, "/api/node//status").getStatus() == HttpRouter.Status.NOT_FOUND, "参数不能为空");
+
+		// 3. 经过 BasicRouterHandler：405 带 Allow 头，分发计入路由计数
+		FullHttpResponse notAllowed = exchange(HttpMethod.POST, "/api/models/list");
+		Checks.check(notAllowed.status().equals(HttpResponseStatus.METHOD_NOT_ALLOWED)
+				&& "GET".equals(notAllowed.headers().get(HttpHeaderNames.ALLOW)), "BasicRouterHandler 返回 405 和 Allow 头");
+		notAllowed.release();
+		HttpRouter.Route metricsRoute = router.match(HttpMethod.GET, "/metrics").getRoute();
+		long before = metricsRoute.getRequestCount();
+		FullHttpResponse metrics = exchange(HttpMethod.GET, "/metrics");
+		String text = metrics.content().toString(CharsetUtil.UTF_8);
+		metrics.release();
+		Checks.check(metricsRoute.getRequestCount() == before + 1, "分发计入路由的请求数");
+		Checks.check(text.contains("llamahub_http_route_requests_total{method=\"GET\",route=\"/metrics\"} " + (before + 1)), "/metrics 输出路由计数");
+
+		// 4. 耗时
+		List<String> patterns = new ArrayList<>();
+		for (HttpRouter.Route route : routes) {
+			patterns.add(route.getPattern());
+		}
+		String[] uris = new String[routes.size()];
+		HttpMethod[] methods = new HttpMethod[routes.size()];
+		for (int i = 0; i < uris.length; i++) {
+			uris[i] = routes.get(i).getPattern() + "?modelId=Qwen3-30B-A3B-Q4_K_M";
+			methods[i] = routes.get(i).getMethod();
+		}
+		String first = uris[0];
+		String last = uris[uris.length - 1];
+		String miss = "/api/downloads/list";
+		System.out.printf("%-28s %14s %14s%n", "", "线性 startsWith", "基数树");
+		compare("第一个路由 " + routes.get(0).getPattern(), iterations,
+				i -> linear(patterns, first), i -> router.match(methods[0], first).getStatus().ordinal());
+		compare("最后一个路由 " + routes.get(routes.size() - 1).getPattern(), iterations,
+				i -> linear(patterns, last), i -> router.match(methods[methods.length - 1], last).getStatus().ordinal());
+		compare("全部路由轮流", iterations,
+				i -> linear(patterns, uris[i % uris.length]), i -> router.match(methods[i % uris.length], uris[i % uris.length]).getStatus().ordinal());
+		compare("不存在 " + miss, iterations,
+				i -> linear(patterns, miss), i -> router.match(HttpMethod.GET, miss).getStatus().ordinal());
+
+		System.out.println("HttpRouterBenchmark: OK");
+		System.exit(0);
+	}
+
+	/**
+	 * 	原来的做法：按控制器顺序逐个 startsWith，返回命中的下标。
+	 */
+	private static int linear(List<String> patterns, String uri) {
+		for (int i = 0; i < patterns.size(); i++) {
+			if (uri.startsWith(patterns.get(i))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@FunctionalInterface
+	private interface Task {
+		int call(int i);
+	}
+
+	private static void compare(String name, int iterations, Task linear, Task trie) {
+		System.out.printf("%-28s %11.1f ns %11.1f ns%n", name, time(iterations, linear), time(iterations, trie));
+	}
+
+	private static double time(int iterations, Task task) {
+		int sink = 0;
+		// 预热
+		for (int i = 0; i < iterations / 4; i++) {
+			sink += task.call(i);
+		}
+		long t0 = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += task.call(i);
+		}
+		long elapsed = System.nanoTime() - t0;
+		if (sink == 42) {
+			System.out.print("");
+		}
+		return (double) elapsed / iterations;
+	}
+
+	/**
+	 * 	把请求交给 BasicRouterHandler，等处理线程写出响应。
+	 */
+	private static FullHttpResponse exchange(HttpMethod method, String uri) throws InterruptedException {
+		EmbeddedChannel channel = new EmbeddedChannel(new BasicRouterHandler());
+		channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri, Unpooled.EMPTY_BUFFER));
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (System.currentTimeMillis() < deadline) {
+			channel.runPendingTasks();
+			Object out = channel.readOutbound();
+			if (out instanceof FullHttpResponse response) {
+				channel.finishAndReleaseAll();
+				return response;
+			}
+			Thread.sleep(5);
+		}
+		throw new AssertionError("失败: 等不到 " + uri + " 的响应");
+	}
+}
@@ -0,0 +1,212 @@
+package com.mark.test.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.mark.llamacpp.lmstudio.LMStudio;
+import org.mark.llamacpp.ollama.Ollama;
+import org.mark.llamacpp.server.LlamaServer;
+
+/**
+ * 	长连接的检查。在随机端口上打开 OpenAI、Ollama、LMStudio 三个监听，每个端口只建一条 TCP 连接：
+ * 	<ul>
+ * 	<li>在这条连接上顺序发大量请求（JSON 接口、静态文件、404 等），每个响应都带 Content-Length 或 chunked，Connection 是 keep-alive；</li>
+ * 	<li>全部请求走完以后连接仍然没有被服务端关闭；</li>
+ * 	<li>带 Connection: close 的请求响应以后服务端关闭连接。</li>
+ * 	</ul>
+ * 	用法：java ... com.mark.test.tools.KeepAliveTest [每个端口的请求数]
+ */
+public class KeepAliveTest {
+
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+		int openaiPort = freePort();
+		int ollamaPort = freePort();
+		int lmstudioPort = freePort();
+
+		Method bindOpenAI = LlamaServer.class.getDeclaredMethod("bindOpenAI", int.class);
+		bindOpenAI.setAccessible(true);
+		Thread openai = new Thread(() -> {
+			try {
+				bindOpenAI.invoke(null, openaiPort);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, "openai-test");
+		openai.setDaemon(true);
+		openai.start();
+		Ollama.getInstance().start(ollamaPort);
+		LMStudio.getInstance().start(lmstudioPort);
+		Checks.check(waitForPort(openaiPort) && waitForPort(ollamaPort) && waitForPort(lmstudioPort), "3 个端口都已绑定");
+
+		Map<String, Integer> ports = new LinkedHashMap<>();
+		ports.put("OpenAI", openaiPort);
+		ports.put("Ollama", ollamaPort);
+		ports.put("LMStudio", lmstudioPort);
+		Map<String, List<String>> paths = new LinkedHashMap<>();
+		paths.put("OpenAI", List.of("/api/models/list", "/api/models/loaded", "/v1/models", "/metrics", "/", "/no-such-file.js"));
+		paths.put("Ollama", List.of("/api/tags", "/api/ps", "/api/version", "/"));
+		paths.put("LMStudio", List.of("/api/v0/models", "/v1/models", "/api/v0/missing"));
+
+		for (Map.Entry<String, Integer> e : ports.entrySet()) {
+			String name = e.getKey();
+			List<String> list = paths.get(name);
+			try (Socket socket = new Socket("127.0.0.1", e.getValue())) {
+				socket.setSoTimeout(10_000);
+				int localPort = socket.getLocalPort();
+				for (int i = 0; i < rounds; i++) {
+					String path = list.get(i % list.size());
+					Response r = exchange(socket, path, false);
+					if (r.status <= 0 || !"keep-alive".equalsIgnoreCase(r.connection) || !r.framed) {
+						throw new AssertionError("失败: " + name + " 第 " + i + " 个请求 " + path + " 没有保持连接: "
+								+ r.status + " connection=" + r.connection + " framed=" + r.framed);
+					}
+				}
+				Checks.check(!socket.isClosed() && socket.getLocalPort() == localPort && isOpen(socket),
+						name + " 的 " + rounds + " 个请求都走同一条连接（本地端口 " + localPort + "）");
+			}
+
+			try (Socket socket = new Socket("127.0.0.1", e.getValue())) {
+				socket.setSoTimeout(10_000);
+				Response r = exchange(socket, list.get(0), true);
+				Checks.check("close".equalsIgnoreCase(r.connection) && !isOpen(socket), name + " 收到 Connection: close 后关闭连接");
+			}
+		}
+
+		LMStudio.getInstance().stop();
+		Ollama.getInstance().stop();
+		System.out.println("KeepAliveTest: OK");
+		System.exit(0);
+	}
+
+	private static class Response {
+		int status;
+		String connection;
+		/**
+		 * 	响应体的结束由 Content-Length 或 chunked 标记，不靠断开连接。
+		 */
+		boolean framed;
+	}
+
+	private static Response exchange(Socket socket, String path, boolean close) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		String head = "GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\nAccept: */*\r\n"
+				+ (close ? "Connection: close\r\n" : "") + "\r\n";
+		out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+
+		InputStream in = socket.getInputStream();
+		Response r = new Response();
+		String status = readLine(in);
+		r.status = Integer.parseInt(status.split(" ")[1]);
+		long length = -1;
+		boolean chunked = false;
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			int colon = line.indexOf(':');
+			String key = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+			String value = line.substring(colon + 1).trim();
+			if (key.equals("content-length")) {
+				length = Long.parseLong(value);
+			} else if (key.equals("transfer-encoding")) {
+				chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+			} else if (key.equals("connection")) {
+				r.connection = value;
+			}
+		}
+		r.framed = length >= 0 || chunked;
+		if (chunked) {
+			while (true) {
+				long size = Long.parseLong(readLine(in).split(";")[0].trim(), 16);
+				if (size == 0) {
+					while (!readLine(in).isEmpty()) {
+					}
+					break;
+				}
+				skip(in, size);
+				readLine(in);
+			}
+		} else if (length > 0) {
+			skip(in, length);
+		}
+		return r;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) != -1 && c != '\n') {
+			if (c != '\r') {
+				line.write(c);
+			}
+		}
+		if (c == -1 && line.size() == 0) {
+			throw new IOException("连接被关闭");
+		}
+		return line.toString(StandardCharsets.ISO_8859_1);
+	}
+
+	private static void skip(InputStream in, long n) throws IOException {
+		byte[] buf = new byte[8192];
+		while (n > 0) {
+			int read = in.read(buf, 0, (int) Math.min(buf.length, n));
+			if (read < 0) {
+				throw new IOException("响应体没读完连接就关闭了");
+			}
+			n -= read;
+		}
+	}
+
+	/**
+	 * 	服务端没有关闭连接：短时间内读不到 EOF。
+	 */
+	private static boolean isOpen(Socket socket) throws IOException {
+		int timeout = socket.getSoTimeout();
+		socket.setSoTimeout(300);
+		try {
+			return socket.getInputStream().read() != -1;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (!socket.isClosed()) {
+				socket.setSoTimeout(timeout);
+			}
+		}
+	}
+
+	/**
+	 * 	等到端口能连上，最多 10 秒。
+	 */
+	static boolean waitForPort(int port) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				new Socket("127.0.0.1", port).close();
+				return true;
+			} catch (IOException e) {
+				Thread.sleep(20);
+			}
+		}
+		return false;
+	}
+
+	private static int freePort() throws Exception {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
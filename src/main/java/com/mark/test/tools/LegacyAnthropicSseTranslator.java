@@ -0,0 +1,357 @@
+package com.mark.test.tools;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * 	AnthropicService 原来的流式翻译：每个块解析成 JsonObject，事件拼成 JsonObject 再序列化。
+ * 	留作 {@link org.mark.llamacpp.server.service.AnthropicSseTranslator} 的对照，
+ * 	AnthropicSseTranslatorTest 用它录制 golden 文件，AnthropicSseBenchmark 用它比较内存分配。
+ */
+public class LegacyAnthropicSseTranslator {
+
+	private final AnthropicStreamState state = new AnthropicStreamState();
+
+	/**
+	 * 	翻译一个块。
+	 * @param data "data: " 后面的内容
+	 * @return SSE 文本，不是 JSON 对象时返回 null
+	 */
+	public String translate(String data) {
+		JsonObject chunk;
+		try {
+			JsonElement root = JsonParser.parseString(data);
+			if (!root.isJsonObject()) {
+				return null;
+			}
+			chunk = root.getAsJsonObject();
+		} catch (Exception ignore) {
+			return null;
+		}
+		return convertOaiStreamChunkToAnthropicSse(chunk, this.state);
+	}
+
+	/**
+	 * 	收到 [DONE] 时补上结束事件。
+	 * @return
+	 */
+	public String finish() {
+		if (this.state.finished) {
+			return "";
+		}
+		return buildAnthropicStopEvents(this.state);
+	}
+
+	private String convertOaiStreamChunkToAnthropicSse(JsonObject chunk, AnthropicStreamState state) {
+		JsonObject choice = getChoice(chunk);
+		JsonObject delta = getObject(choice, "delta");
+
+		StringBuilder out = new StringBuilder();
+		if (!state.messageStarted) {
+			out.append(buildAnthropicEvent("message_start", buildMessageStartData(chunk)));
+			state.messageStarted = true;
+		}
+
+		String reasoningDelta = getString(delta, "reasoning_content");
+		if (!reasoningDelta.isEmpty()) {
+			state.hasThinking = true;
+			if (!state.thinkingStarted) {
+				out.append(buildAnthropicEvent("content_block_start", buildContentBlockStart(0, "thinking", "", "")));
+				state.thinkingStarted = true;
+			}
+			out.append(buildAnthropicEvent("content_block_delta", buildThinkingDelta(0, reasoningDelta)));
+			state.outputTokens++;
+		}
+
+		String textDelta = getString(delta, "content");
+		if (!textDelta.isEmpty()) {
+			if (!state.textStarted) {
+				state.hasText = true;
+				out.append(buildAnthropicEvent("content_block_start", buildContentBlockStart(state.getTextIndex(), "text", "", "")));
+				state.textStarted = true;
+			}
+			out.append(buildAnthropicEvent("content_block_delta", buildTextDelta(state.getTextIndex(), textDelta)));
+			state.outputTokens++;
+		}
+
+		JsonElement toolCallsEl = delta.get("tool_calls");
+		if (toolCallsEl != null && toolCallsEl.isJsonArray()) {
+			JsonArray toolCalls = toolCallsEl.getAsJsonArray();
+			for (int i = 0; i < toolCalls.size(); i++) {
+				JsonElement tcEl = toolCalls.get(i);
+				if (tcEl == null || !tcEl.isJsonObject()) {
+					continue;
+				}
+				JsonObject tc = tcEl.getAsJsonObject();
+				int idx = getInt(tc, "index", i);
+				ToolCallState toolState = state.toolStates.computeIfAbsent(idx, k -> new ToolCallState());
+				String id = getString(tc, "id");
+				if (!id.isEmpty()) {
+					toolState.id = id;
+				}
+				JsonObject function = getObject(tc, "function");
+				String name = getString(function, "name");
+				if (!name.isEmpty()) {
+					toolState.name = name;
+				}
+				int blockIndex = state.getToolIndex(idx);
+				if (!state.toolStartedIndexes.contains(idx) && !toolState.name.isEmpty()) {
+					out.append(buildAnthropicEvent("content_block_start", buildContentBlockStart(blockIndex, "tool_use", toolState.id, toolState.name)));
+					state.toolStartedIndexes.add(idx);
+				}
+				String argumentsDelta = getString(function, "arguments");
+				if (!argumentsDelta.isEmpty()) {
+					out.append(buildAnthropicEvent("content_block_delta", buildInputJsonDelta(blockIndex, argumentsDelta)));
+					state.outputTokens++;
+				}
+			}
+		}
+
+		JsonObject usage = getObject(chunk, "usage");
+		int completionTokens = getInt(usage, "completion_tokens", -1);
+		if (completionTokens >= 0) {
+			state.outputTokens = Math.max(state.outputTokens, completionTokens);
+		}
+
+		String finishReason = getString(choice, "finish_reason");
+		if (!finishReason.isEmpty() && !"null".equalsIgnoreCase(finishReason)) {
+			state.stopReason = mapStopReason(finishReason, null);
+			if (!state.finished) {
+				out.append(buildAnthropicStopEvents(state));
+				state.finished = true;
+			}
+		}
+
+		return out.toString();
+	}
+
+	private JsonObject buildMessageStartData(JsonObject chunk) {
+		JsonObject message = new JsonObject();
+		message.addProperty("id", getString(chunk, "id"));
+		message.addProperty("type", "message");
+		message.addProperty("role", "assistant");
+		message.add("content", new JsonArray());
+		message.addProperty("model", getString(chunk, "model"));
+		message.add("stop_reason", null);
+		message.add("stop_sequence", null);
+
+		JsonObject usage = getObject(chunk, "usage");
+		int promptTokens = getInt(usage, "prompt_tokens", 0);
+		int cachedTokens = 0;
+		JsonObject promptDetail = getObject(usage, "prompt_tokens_details");
+		if (promptDetail.has("cached_tokens")) {
+			cachedTokens = getInt(promptDetail, "cached_tokens", 0);
+		}
+		JsonObject msgUsage = new JsonObject();
+		msgUsage.addProperty("cache_read_input_tokens", Math.max(0, cachedTokens));
+		int inputTokens = Math.max(0, promptTokens - cachedTokens);
+		if (inputTokens == 0) {
+			inputTokens = 1;
+		}
+		msgUsage.addProperty("input_tokens", inputTokens);
+		msgUsage.addProperty("output_tokens", 0);
+		message.add("usage", msgUsage);
+
+		JsonObject data = new JsonObject();
+		data.addProperty("type", "message_start");
+		data.add("message", message);
+		return data;
+	}
+
+	private JsonObject buildContentBlockStart(int index, String type, String id, String name) {
+		JsonObject contentBlock = new JsonObject();
+		contentBlock.addProperty("type", type);
+		if ("thinking".equals(type)) {
+			contentBlock.addProperty("thinking", "");
+		} else if ("text".equals(type)) {
+			contentBlock.addProperty("text", "");
+		} else if ("tool_use".equals(type)) {
+			contentBlock.addProperty("id", id == null ? "" : id);
+			contentBlock.addProperty("name", name == null ? "" : name);
+		}
+		JsonObject data = new JsonObject();
+		data.addProperty("type", "content_block_start");
+		data.addProperty("index", index);
+		data.add("content_block", contentBlock);
+		return data;
+	}
+
+	private JsonObject buildThinkingDelta(int index, String deltaText) {
+		JsonObject delta = new JsonObject();
+		delta.addProperty("type", "thinking_delta");
+		delta.addProperty("thinking", deltaText);
+		JsonObject data = new JsonObject();
+		data.addProperty("type", "content_block_delta");
+		data.addProperty("index", index);
+		data.add("delta", delta);
+		return data;
+	}
+
+	private JsonObject buildTextDelta(int index, String deltaText) {
+		JsonObject delta = new JsonObject();
+		delta.addProperty("type", "text_delta");
+		delta.addProperty("text", deltaText);
+		JsonObject data = new JsonObject();
+		data.addProperty("type", "content_block_delta");
+		data.addProperty("index", index);
+		data.add("delta", delta);
+		return data;
+	}
+
+	private JsonObject buildInputJsonDelta(int index, String partialJson) {
+		JsonObject delta = new JsonObject();
+		delta.addProperty("type", "input_json_delta");
+		delta.addProperty("partial_json", partialJson);
+		JsonObject data = new JsonObject();
+		data.addProperty("type", "content_block_delta");
+		data.addProperty("index", index);
+		data.add("delta", delta);
+		return data;
+	}
+
+	private String buildAnthropicStopEvents(AnthropicStreamState state) {
+		StringBuilder out = new StringBuilder();
+		if (state.thinkingStarted) {
+			JsonObject signatureData = new JsonObject();
+			signatureData.addProperty("type", "content_block_delta");
+			signatureData.addProperty("index", 0);
+			JsonObject delta = new JsonObject();
+			delta.addProperty("type", "signature_delta");
+			delta.addProperty("signature", "");
+			signatureData.add("delta", delta);
+			out.append(buildAnthropicEvent("content_block_delta", signatureData));
+
+			JsonObject stopData = new JsonObject();
+			stopData.addProperty("type", "content_block_stop");
+			stopData.addProperty("index", 0);
+			out.append(buildAnthropicEvent("content_block_stop", stopData));
+		}
+		if (state.textStarted) {
+			JsonObject stopData = new JsonObject();
+			stopData.addProperty("type", "content_block_stop");
+			stopData.addProperty("index", state.getTextIndex());
+			out.append(buildAnthropicEvent("content_block_stop", stopData));
+		}
+		for (Integer idx : state.toolStartedIndexes) {
+			JsonObject stopData = new JsonObject();
+			stopData.addProperty("type", "content_block_stop");
+			stopData.addProperty("index", state.getToolIndex(idx));
+			out.append(buildAnthropicEvent("content_block_stop", stopData));
+		}
+
+		JsonObject messageDelta = new JsonObject();
+		messageDelta.addProperty("type", "message_delta");
+		JsonObject deltaObj = new JsonObject();
+		deltaObj.addProperty("stop_reason", state.stopReason == null ? "end_turn" : state.stopReason);
+		deltaObj.add("stop_sequence", null);
+		messageDelta.add("delta", deltaObj);
+		JsonObject usage = new JsonObject();
+		usage.addProperty("output_tokens", Math.max(1, state.outputTokens));
+		messageDelta.add("usage", usage);
+		out.append(buildAnthropicEvent("message_delta", messageDelta));
+
+		JsonObject messageStop = new JsonObject();
+		messageStop.addProperty("type", "message_stop");
+		out.append(buildAnthropicEvent("message_stop", messageStop));
+		return out.toString();
+	}
+
+	private String buildAnthropicEvent(String event, JsonObject data) {
+		return "event: " + event + "\n" + "data: " + JsonUtil.toJson(data) + "\n\n";
+	}
+
+	private JsonObject getChoice(JsonObject root) {
+		if (root == null || !root.has("choices") || !root.get("choices").isJsonArray()) {
+			return new JsonObject();
+		}
+		JsonArray choices = root.getAsJsonArray("choices");
+		if (choices.size() == 0 || !choices.get(0).isJsonObject()) {
+			return new JsonObject();
+		}
+		return choices.get(0).getAsJsonObject();
+	}
+
+	private String mapStopReason(String finishReason, JsonObject message) {
+		if ("length".equals(finishReason) || "max_tokens".equals(finishReason)) {
+			return "max_tokens";
+		}
+		boolean hasToolCalls = message != null && message.has("tool_calls") && message.get("tool_calls").isJsonArray() && message.getAsJsonArray("tool_calls").size() > 0;
+		if ("tool_calls".equals(finishReason) || "function_call".equals(finishReason) || hasToolCalls) {
+			return "tool_use";
+		}
+		return "end_turn";
+	}
+
+	private String getString(JsonObject obj, String key) {
+		if (obj == null || key == null || !obj.has(key)) {
+			return "";
+		}
+		JsonElement el = obj.get(key);
+		if (el == null || el.isJsonNull()) {
+			return "";
+		}
+		try {
+			return el.getAsString();
+		} catch (Exception ignore) {
+			return "";
+		}
+	}
+
+	private JsonObject getObject(JsonObject obj, String key) {
+		if (obj == null || key == null || !obj.has(key)) {
+			return new JsonObject();
+		}
+		JsonElement el = obj.get(key);
+		if (el == null || !el.isJsonObject()) {
+			return new JsonObject();
+		}
+		return el.getAsJsonObject();
+	}
+
+	private int getInt(JsonObject obj, String key, int fallback) {
+		if (obj == null || key == null || !obj.has(key) || obj.get(key).isJsonNull()) {
+			return fallback;
+		}
+		try {
+			return obj.get(key).getAsInt();
+		} catch (Exception e) {
+			return fallback;
+		}
+	}
+
+	private static class ToolCallState {
+		private String id = "";
+		private String name = "";
+	}
+
+	private static class AnthropicStreamState {
+		private boolean messageStarted = false;
+		private boolean hasThinking = false;
+		private boolean thinkingStarted = false;
+		private boolean hasText = false;
+		private boolean textStarted = false;
+		private boolean finished = false;
+		private String stopReason = "end_turn";
+		private int outputTokens = 0;
+		private final Map<Integer, ToolCallState> toolStates = new HashMap<>();
+		private final Set<Integer> toolStartedIndexes = new HashSet<>();
+
+		private int getTextIndex() {
+			return hasThinking ? 1 : 0;
+		}
+
+		private int getToolIndex(int toolCallIndex) {
+			int base = (hasThinking ? 1 : 0) + (hasText ? 1 : 0);
+			return base + toolCallIndex;
+		}
+	}
+}
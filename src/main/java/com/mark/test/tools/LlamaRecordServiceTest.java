@@ -0,0 +1,122 @@
+package com.mark.test.tools;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mark.llamacpp.server.service.LlamaRecordService;
+import org.mark.llamacpp.server.struct.ActiveRequest;
+import org.mark.llamacpp.server.struct.Timing;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * 	LlamaRecordService 并发写入的检查。多个线程同时对两个模型调用 handleStream 和 recordRequest，flush 以后：
+ * 	<ul>
+ * 	<li>累计的 prompt_n / predicted_n 正好等于所有调用的和，内存里和 .json 文件里一样；</li>
+ * 	<li>.log 的行数等于 handleStream 的次数，.requests.log 的行数等于 recordRequest 的次数，每行都是完整的 JSON；</li>
+ * 	<li>目录里没有留下临时文件。</li>
+ * 	</ul>
+ * 	工作目录会写入 cache/record，不要在仓库里运行。
+ * 	<p>
+ * 	用法：java ... com.mark.test.tools.LlamaRecordServiceTest [线程数] [每个线程的调用次数]
+ */
+public class LlamaRecordServiceTest {
+
+	private static final Path RECORD_DIR = Paths.get("cache/record");
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int calls = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		LlamaRecordService service = LlamaRecordService.getInstance();
+		String suffix = Long.toString(System.nanoTime(), 36);
+		String[] models = { "record-test-a-" + suffix, "record-test-b-" + suffix };
+
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		AtomicInteger failures = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			int id = t;
+			Thread thread = Thread.ofVirtual().unstarted(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < calls; i++) {
+						String model = models[(id + i) % 2];
+						Timing timing = service.handleStream(model, chunk(id + 1, i + 1));
+						if (timing == null || timing.getPrompt_n() != id + 1 || timing.getPredicted_n() != i + 1) {
+							failures.incrementAndGet();
+						}
+						ActiveRequest request = new ActiveRequest("req-" + id + "-" + i, model, "/v1/chat/completions");
+						request.setTiming(timing);
+						service.recordRequest(request);
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					failures.incrementAndGet();
+				} finally {
+					done.countDown();
+				}
+			});
+			thread.start();
+		}
+		long t0 = System.nanoTime();
+		start.countDown();
+		done.await();
+		Checks.check(service.flush(30_000), "flush 在超时前完成");
+		System.out.printf("%d 个线程 × %d 次，%.1f ms%n", threads, calls, (System.nanoTime() - t0) / 1e6);
+		Checks.check(failures.get() == 0, "handleStream 都返回了本次的 timings");
+
+		for (int m = 0; m < models.length; m++) {
+			long promptSum = 0, predictedSum = 0, count = 0;
+			for (int t = 0; t < threads; t++) {
+				for (int i = 0; i < calls; i++) {
+					if ((t + i) % 2 == m) {
+						promptSum += t + 1;
+						predictedSum += i + 1;
+						count++;
+					}
+				}
+			}
+			String model = models[m];
+			Timing record = service.getRecord(model);
+			Checks.check(record != null && record.getPrompt_n() == promptSum && record.getPredicted_n() == predictedSum,
+					model + " 累计 prompt_n=" + promptSum + " predicted_n=" + predictedSum);
+			JsonObject json = JsonParser.parseString(Files.readString(RECORD_DIR.resolve(model + ".json"))).getAsJsonObject();
+			Checks.check(json.get("prompt_n").getAsLong() == promptSum && json.get("predicted_n").getAsLong() == predictedSum,
+					model + ".json 和内存里的累计一致");
+			Checks.check(countJsonLines(RECORD_DIR.resolve(model + ".log")) == count, model + ".log 有 " + count + " 行");
+			Checks.check(countJsonLines(RECORD_DIR.resolve(model + ".requests.log")) == count, model + ".requests.log 有 " + count + " 行");
+			Checks.check(!Files.exists(RECORD_DIR.resolve(model + ".json.tmp")), model + " 没有留下临时文件");
+		}
+
+		for (String model : models) {
+			for (String ext : new String[] { ".json", ".log", ".requests.log" }) {
+				Files.deleteIfExists(RECORD_DIR.resolve(model + ext));
+			}
+		}
+		System.out.println("LlamaRecordServiceTest: OK");
+		System.exit(0);
+	}
+
+	private static String chunk(int promptN, int predictedN) {
+		return "{\"choices\":[{\"finish_reason\":\"stop\",\"index\":0,\"delta\":{}}],\"object\":\"chat.completion.chunk\","
+				+ "\"timings\":{\"cache_n\":0,\"prompt_n\":" + promptN + ",\"prompt_ms\":12.5,\"predicted_n\":" + predictedN
+				+ ",\"predicted_ms\":40.25}}";
+	}
+
+	/**
+	 * 	行数，每一行都必须能解析成 JSON 对象。
+	 */
+	private static long countJsonLines(Path path) throws Exception {
+		List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+		for (String line : lines) {
+			JsonParser.parseString(line).getAsJsonObject();
+		}
+		return lines.size();
+	}
+}
@@ -0,0 +1,113 @@
+package com.mark.test.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.mark.llamacpp.server.metrics.HubMetrics;
+import org.mark.llamacpp.server.metrics.RequestMetrics;
+import org.mark.llamacpp.server.service.ModelRequestTracker;
+import org.mark.llamacpp.server.service.OpenAIService;
+
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * 	/metrics 指标记录的开销，分两部分：
+ * 	<ul>
+ * 	<li>流式转发：和 {@link SseRelayBenchmark} 一样的 1000 个 token 经 OpenAIService.handleStreamResponse 转发，
+ * 	不带请求ID（{@link RequestMetrics#NOOP}）和带一个 ModelRequestTracker 里登记的请求（每个块记录首个 token/间隔直方图）交替跑几轮，
+ * 	输出每个 token 的耗时和分配；</li>
+ * 	<li>单独的 {@link RequestMetrics#onChunk}：多个线程的请求落在同一组标签上，同时记录，输出每次调用的耗时。</li>
+ * 	</ul>
+ * 	工作目录会写入统计记录，不要在仓库里运行。
+ * 	<p>
+ * 	用法：java ... com.mark.test.tools.MetricsOverheadBenchmark [token 数] [次数] [线程数]
+ */
+public class MetricsOverheadBenchmark {
+
+	private static final String MODEL = "qwen3-30b-a3b";
+
+	public static void main(String[] args) throws Exception {
+		int tokens = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		List<byte[]> events = SseRelayBenchmark.buildStream(tokens);
+		System.out.printf("每条流 %d 个 token，每轮 %d 次%n", tokens, iterations);
+
+		OpenAIService service = new OpenAIService();
+		Method relay = OpenAIService.class.getDeclaredMethod("handleStreamResponse", ChannelHandlerContext.class,
+				HttpURLConnection.class, int.class, String.class, String.class, String.class);
+		relay.setAccessible(true);
+		ModelRequestTracker tracker = ModelRequestTracker.getInstance();
+		SseRelayBenchmark.Relay noop = (ctx, connection) -> relay.invoke(service, ctx, connection, 200, MODEL, null, null);
+		SseRelayBenchmark.Relay recorded = (ctx, connection) -> {
+			String requestId = tracker.createRequest(ctx, MODEL, "/v1/chat/completions", null);
+			try {
+				tracker.onUpstreamResponse(requestId, 200);
+				relay.invoke(service, ctx, connection, 200, MODEL, requestId, null);
+			} finally {
+				tracker.removeRequest(requestId);
+			}
+		};
+		// 预热
+		for (int i = 0; i < Math.max(5, iterations / 3); i++) {
+			SseRelayBenchmark.once(noop, events);
+			SseRelayBenchmark.once(recorded, events);
+		}
+		for (int round = 1; round <= 3; round++) {
+			run("第 " + round + " 轮 不记录", tokens, iterations, noop, events);
+			run("第 " + round + " 轮 记录指标", tokens, iterations, recorded, events);
+		}
+
+		chunkContention(1, 2_000_000);
+		chunkContention(threads, 2_000_000);
+		System.exit(0);
+	}
+
+	private static void run(String name, int tokens, int iterations, SseRelayBenchmark.Relay relay, List<byte[]> events) throws Exception {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().threadId();
+		long alloc0 = mx.getThreadAllocatedBytes(tid);
+		long t0 = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			SseRelayBenchmark.once(relay, events);
+		}
+		long elapsed = System.nanoTime() - t0;
+		long alloc = mx.getThreadAllocatedBytes(tid) - alloc0;
+		long perRun = (long) iterations * tokens;
+		System.out.printf("%-20s %9.2f µs/token %10.1f B/token%n", name, elapsed / 1e3 / perRun, (double) alloc / perRun);
+	}
+
+	/**
+	 * 	每个线程一个请求，都在同一组标签下，各自调用 onChunk。按总耗时除以总次数算，CPU 核数少于线程数时也可比。
+	 */
+	private static void chunkContention(int threads, int chunks) throws Exception {
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			Thread thread = new Thread(() -> {
+				RequestMetrics metrics = HubMetrics.getInstance().start(MODEL, "/v1/chat/completions", null, 0L);
+				metrics.onUpstreamResponse(200);
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < chunks; i++) {
+					metrics.onChunk(240);
+				}
+				metrics.finish();
+				done.countDown();
+			}, "chunk-" + t);
+			thread.start();
+		}
+		Thread.sleep(50);
+		long t0 = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - t0;
+		System.out.printf("onChunk %2d 个线程    %9.1f ns/次%n", threads, (double) elapsed / threads / chunks);
+	}
+}
@@ -0,0 +1,217 @@
+package com.mark.test.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mark.llamacpp.server.ModelAdmissionQueue;
+import org.mark.llamacpp.server.exception.AdmissionRejectedException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 	ModelAdmissionQueue 的检查。本地 HttpServer 模拟一个有固定延迟的 llama-server，请求都先经过准入队列：
+ * 	<ul>
+ * 	<li>同时到达上游的请求数不超过槽位数；</li>
+ * 	<li>同一个客户端先来先服务，多个客户端轮流放行；</li>
+ * 	<li>排队数超过上限时立即拒绝，排队超时时拒绝，都带 Retry-After；</li>
+ * 	<li>槽位数变多时立即放行已经排队的请求。</li>
+ * 	</ul>
+ */
+public class ModelAdmissionQueueTest {
+
+	private static final String MODEL = "fake-model";
+
+	private static final int SLOTS = 2;
+
+	private static volatile int latencyMillis = 300;
+
+	private static final AtomicInteger concurrent = new AtomicInteger();
+
+	private static final AtomicInteger maxConcurrent = new AtomicInteger();
+
+	/**
+	 * 	上游收到请求的顺序
+	 */
+	private static final List<String> arrivals = Collections.synchronizedList(new ArrayList<>());
+
+	private static final HttpClient client = HttpClient.newHttpClient();
+
+	public static void main(String[] args) throws Exception {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/v1/chat/completions", ModelAdmissionQueueTest::serve);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		URI upstream = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/v1/chat/completions");
+
+		try {
+			// 1. 顺序和公平：A 先排 6 个，B 再排 2 个
+			ModelAdmissionQueue queue = new ModelAdmissionQueue();
+			List<Thread> threads = new ArrayList<>();
+			List<String> rejected = Collections.synchronizedList(new ArrayList<>());
+			// 先占满槽位
+			for (int i = 0; i < SLOTS; i++) {
+				threads.add(submit(queue, upstream, "A", "A-busy" + i, rejected));
+			}
+			waitInFlight(queue, SLOTS);
+			for (int i = 0; i < 6; i++) {
+				threads.add(submit(queue, upstream, "A", "A" + i, rejected));
+				waitQueued(queue, i + 1);
+			}
+			for (int i = 0; i < 2; i++) {
+				threads.add(submit(queue, upstream, "B", "B" + i, rejected));
+				waitQueued(queue, 7 + i);
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+			List<String> order = new ArrayList<>(arrivals);
+			System.out.println("上游收到的顺序: " + order);
+			Checks.check(rejected.isEmpty(), "没有请求被拒绝");
+			Checks.check(maxConcurrent.get() <= SLOTS, "同时到达上游的请求数不超过槽位数 (" + maxConcurrent.get() + ")");
+			List<String> fromA = order.stream().filter(s -> s.matches("A\\d")).toList();
+			Checks.check(fromA.equals(List.of("A0", "A1", "A2", "A3", "A4", "A5")), "同一个客户端先来先服务");
+			Checks.check(order.indexOf("B0") < order.indexOf("A2") && order.indexOf("B1") < order.indexOf("A3"), "B 不用等 A 的请求全部完成，轮流放行");
+			Checks.check(queue.getQueuedCount(MODEL) == 0 && queue.getInFlightCount(MODEL) == 0, "结束后队列和槽位都已归还");
+
+			// 2. 队列上限
+			arrivals.clear();
+			queue = new ModelAdmissionQueue();
+			queue.setMaxQueueDepth(3);
+			threads.clear();
+			rejected.clear();
+			CountDownLatch ready = new CountDownLatch(1);
+			for (int i = 0; i < 10; i++) {
+				ModelAdmissionQueue q = queue;
+				String id = "C" + i;
+				threads.add(Thread.ofVirtual().start(() -> {
+					try {
+						ready.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					call(q, upstream, "C", id, rejected);
+				}));
+			}
+			ready.countDown();
+			for (Thread t : threads) {
+				t.join();
+			}
+			Checks.check(rejected.size() == 10 - SLOTS - 3, "超过队列上限的请求被拒绝 (" + rejected.size() + " 个): " + rejected);
+			Checks.check(arrivals.size() == SLOTS + 3, "其余请求都到达上游 (" + arrivals.size() + ")");
+
+			// 3. 排队超时
+			arrivals.clear();
+			latencyMillis = 800;
+			queue = new ModelAdmissionQueue();
+			queue.setQueueTimeoutMillis(200);
+			threads.clear();
+			rejected.clear();
+			for (int i = 0; i < SLOTS; i++) {
+				threads.add(submit(queue, upstream, "D", "D-busy" + i, rejected));
+			}
+			waitInFlight(queue, SLOTS);
+			threads.add(submit(queue, upstream, "D", "D-late", rejected));
+			for (Thread t : threads) {
+				t.join();
+			}
+			Checks.check(rejected.size() == 1 && rejected.get(0).startsWith("D-late"), "排队超时被拒绝: " + rejected);
+			Checks.check(queue.getQueuedCount(MODEL) == 0, "超时的请求已经离开队列");
+
+			// 4. 模型重新加载后槽位变多，已经排队的请求立即放行
+			queue = new ModelAdmissionQueue();
+			ModelAdmissionQueue.Permit first = queue.acquire(MODEL, 1, "E");
+			CountDownLatch granted = new CountDownLatch(1);
+			ModelAdmissionQueue q = queue;
+			Thread queued = Thread.ofVirtual().start(() -> {
+				try {
+					ModelAdmissionQueue.Permit permit = q.acquire(MODEL, 1, "E");
+					granted.countDown();
+					permit.close();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			waitQueued(queue, 1);
+			ModelAdmissionQueue.Permit second = queue.acquire(MODEL, 3, "F");
+			Checks.check(granted.await(2, TimeUnit.SECONDS), "槽位变多后排队的请求不用等前面的归还");
+			queued.join();
+			second.close();
+			first.close();
+			Checks.check(queue.getQueuedCount(MODEL) == 0 && queue.getInFlightCount(MODEL) == 0, "槽位都已归还");
+		} finally {
+			server.stop(0);
+		}
+		System.out.println("ModelAdmissionQueueTest: OK");
+		System.exit(0);
+	}
+
+	private static Thread submit(ModelAdmissionQueue queue, URI upstream, String key, String id, List<String> rejected) {
+		return Thread.ofVirtual().start(() -> call(queue, upstream, key, id, rejected));
+	}
+
+	/**
+	 * 	和转发路径一样：先拿许可，再请求上游，响应读完后归还。
+	 */
+	private static void call(ModelAdmissionQueue queue, URI upstream, String key, String id, List<String> rejected) {
+		try {
+			ModelAdmissionQueue.Permit permit = queue.acquire(MODEL, SLOTS, key);
+			try {
+				HttpRequest request = HttpRequest.newBuilder(upstream).header("X-Request-Id", id).POST(HttpRequest.BodyPublishers.ofString("{}")).build();
+				HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+				try (InputStream in = response.body()) {
+					in.readAllBytes();
+				}
+			} finally {
+				permit.close();
+			}
+		} catch (AdmissionRejectedException e) {
+			Checks.check(e.getRetryAfterSeconds() >= 1, id + " 被拒绝，Retry-After: " + e.getRetryAfterSeconds());
+			rejected.add(id + ": " + e.getMessage());
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void waitQueued(ModelAdmissionQueue queue, int n) throws InterruptedException {
+		while (queue.getQueuedCount(MODEL) < n) {
+			Thread.sleep(5);
+		}
+	}
+
+	private static void waitInFlight(ModelAdmissionQueue queue, int n) throws InterruptedException {
+		while (queue.getInFlightCount(MODEL) < n || arrivals.size() < n) {
+			Thread.sleep(5);
+		}
+	}
+
+	private static void serve(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			int now = concurrent.incrementAndGet();
+			maxConcurrent.accumulateAndGet(now, Math::max);
+			arrivals.add(exchange.getRequestHeaders().getFirst("X-Request-Id"));
+			try {
+				Thread.sleep(latencyMillis);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} finally {
+				concurrent.decrementAndGet();
+			}
+			byte[] body = "{\"choices\":[]}".getBytes();
+			exchange.sendResponseHeaders(200, body.length);
+			exchange.getResponseBody().write(body);
+		}
+	}
+}
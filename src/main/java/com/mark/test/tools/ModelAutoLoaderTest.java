@@ -0,0 +1,168 @@
+package com.mark.test.tools;
+
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import org.mark.llamacpp.server.ConfigManager;
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ModelAutoLoader;
+import org.mark.llamacpp.server.ModelRoutingTable;
+import org.mark.llamacpp.server.service.ModelRequestTracker;
+import org.mark.llamacpp.server.struct.ModelPathDataStruct;
+
+/**
+ * 	ModelAutoLoader 的检查。llama-server 换成一个脚本：记下启动次数，再用当前的 classpath 启动 {@link FakeLlamaServer}：
+ * 	<ul>
+ * 	<li>未加载的模型在第一次请求时加载，返回的路由能访问；</li>
+ * 	<li>同时到达的请求只触发一次加载，拿到同一个路由；</li>
+ * 	<li>未知的模型、没有启动配置的模型直接返回null，不等超时；</li>
+ * 	<li>设置了空闲时间的模型有请求时不卸载，空闲超时后卸载。</li>
+ * 	</ul>
+ * 	只能在 Linux/macOS 上运行。工作目录会写入配置，不要在仓库里运行。
+ * 	<p>
+ * 	用法：java ... com.mark.test.tools.ModelAutoLoaderTest [并发请求数]
+ */
+public class ModelAutoLoaderTest {
+
+	private static final String MODEL = "auto-load-a";
+	private static final String NO_CONFIG = "auto-load-b";
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		Path dir = Files.createTempDirectory("model-auto-loader-test");
+		Path starts = dir.resolve("starts.log");
+		Path bin = fakeLlamaServer(dir, starts);
+		for (String name : new String[] { MODEL, NO_CONFIG }) {
+			Path modelDir = Files.createDirectories(dir.resolve("models").resolve(name));
+			ModelSchedulerTest.writeGguf(modelDir.resolve(name + ".gguf"), 1);
+		}
+
+		LlamaServer.updateVramSchedulerConfig(false, null);
+		LlamaServer.updateOnDemandLoadConfig(true, 60);
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		manager.setModelPaths(List.of(new ModelPathDataStruct(dir.resolve("models").toString(), "", "")));
+		manager.listModel(true);
+		Map<String, Object> launch = new HashMap<>();
+		launch.put("llamaBinPath", bin.toString());
+		launch.put("cmd", "");
+		launch.put("extraParams", "");
+		launch.put("device", new ArrayList<String>());
+		launch.put("enableVision", false);
+		ConfigManager config = ConfigManager.getInstance();
+		Checks.check(config.saveLaunchConfig(MODEL, launch), "保存启动配置");
+
+		ModelAutoLoader loader = ModelAutoLoader.getInstance();
+		Checks.check(loader.awaitRoute("auto-load-unknown") == null, "未知的模型返回null");
+		long t0 = System.nanoTime();
+		Checks.check(loader.awaitRoute(NO_CONFIG) == null && System.nanoTime() - t0 < 5_000_000_000L, "没有启动配置的模型直接返回null");
+
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(clients);
+		List<ModelRoutingTable.Route> routes = new ArrayList<>();
+		for (int i = 0; i < clients; i++) {
+			Thread.ofVirtual().start(() -> {
+				try {
+					start.await();
+					ModelRoutingTable.Route route = loader.awaitRoute(MODEL);
+					synchronized (routes) {
+						routes.add(route);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+		t0 = System.nanoTime();
+		start.countDown();
+		done.await();
+		System.out.printf("%d 个请求等待加载 %.1f ms%n", clients, (System.nanoTime() - t0) / 1e6);
+		ModelRoutingTable.Route route = routes.get(0);
+		boolean same = route != null;
+		for (ModelRoutingTable.Route r : routes) {
+			same &= r != null && r.getPort() == route.getPort();
+		}
+		Checks.check(routes.size() == clients && same, clients + " 个请求拿到同一个路由");
+		Checks.check(Files.readAllLines(starts).size() == 1, "只启动了一次 llama-server");
+		Checks.check(health(route.getPort()) == 200, "路由端口上的服务能访问");
+		Checks.check(loader.awaitRoute(MODEL) == route, "加载后直接返回路由");
+
+		// 有请求时不卸载，请求结束后超时才卸载
+		Checks.check(config.saveModelIdleTtl(MODEL, 1), "保存空闲时间");
+		Method unloadIdle = ModelAutoLoader.class.getDeclaredMethod("unloadIdleModels");
+		unloadIdle.setAccessible(true);
+		ModelRequestTracker tracker = ModelRequestTracker.getInstance();
+		String requestId = tracker.createRequest(MODEL, "/v1/chat/completions");
+		Thread.sleep(1500);
+		unloadIdle.invoke(loader);
+		Checks.check(manager.findRoute(MODEL) != null, "有请求的模型没有被卸载");
+		tracker.removeRequest(requestId);
+		unloadIdle.invoke(loader);
+		Checks.check(manager.findRoute(MODEL) != null, "请求刚结束时没有被卸载");
+		Thread.sleep(1500);
+		unloadIdle.invoke(loader);
+		Checks.check(manager.findRoute(MODEL) == null && !manager.getLoadedProcesses().containsKey(MODEL), "空闲超时后卸载");
+		Checks.check(health(route.getPort()) < 0, "进程已经退出");
+
+		config.saveModelIdleTtl(MODEL, 0);
+		try (Stream<Path> files = Files.walk(dir)) {
+			for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+				Files.delete(p);
+			}
+		}
+		System.out.println("ModelAutoLoaderTest: OK");
+		System.exit(0);
+	}
+
+	/**
+	 * 	bin 目录里放一个 llama-server 脚本，取出 --port，往 starts 里追加一行，再换成 FakeLlamaServer。
+	 * @return bin 目录
+	 */
+	private static Path fakeLlamaServer(Path dir, Path starts) throws Exception {
+		Path bin = Files.createDirectories(dir.resolve("bin"));
+		Path script = bin.resolve("llama-server");
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		Files.writeString(script, "#!/bin/sh\n"
+				+ "while [ $# -gt 0 ]; do\n"
+				+ "  if [ \"$1\" = \"--port\" ]; then PORT=\"$2\"; fi\n"
+				+ "  shift\n"
+				+ "done\n"
+				+ "echo \"$PORT\" >> '" + starts + "'\n"
+				+ "exec '" + java + "' -Xmx64m -cp '" + System.getProperty("java.class.path") + "' " + FakeLlamaServer.class.getName()
+				+ " \"$PORT\" 2 0 0\n");
+		Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwxr-xr-x"));
+		return bin;
+	}
+
+	/**
+	 * 	/health 的状态码，连不上返回-1。
+	 */
+	private static int health(int port) {
+		try {
+			HttpURLConnection conn = (HttpURLConnection) URI.create("http://127.0.0.1:" + port + "/health").toURL().openConnection();
+			conn.setConnectTimeout(2000);
+			conn.setReadTimeout(2000);
+			try {
+				return conn.getResponseCode();
+			} finally {
+				conn.disconnect();
+			}
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}
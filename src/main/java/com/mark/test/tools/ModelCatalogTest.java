@@ -0,0 +1,162 @@
+package com.mark.test.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import org.mark.llamacpp.gguf.GGUFMetaData;
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.mark.llamacpp.server.ModelCatalog;
+
+/**
+ * 	ModelCatalog 的检查：并行扫描时逐个目录发布结果，慢目录不挡住其他目录；
+ * 	扫描后新增、删除、改名目录和GGUF文件，列表在事件处理后收敛到磁盘上的实际状态。
+ */
+public class ModelCatalogTest {
+
+	private static final AtomicInteger active = new AtomicInteger();
+
+	private static final AtomicInteger maxActive = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		Path base = Files.createTempDirectory("model-catalog-test");
+		Path rootA = Files.createDirectories(base.resolve("rootA"));
+		Path rootB = Files.createDirectories(base.resolve("rootB"));
+		for (int i = 0; i < 8; i++) {
+			writeGguf(rootA.resolve("fast" + i).resolve("model.gguf"));
+		}
+		writeGguf(rootA.resolve("group/nested").resolve("model.gguf"));
+		Files.createDirectories(rootA.resolve("empty"));
+		writeGguf(rootB.resolve("slow").resolve("model.gguf"));
+
+		ModelCatalog catalog = new ModelCatalog(() -> List.of(rootA, rootB, base.resolve("missing")), ModelCatalogTest::load, 200);
+
+		// 扫描在后台进行，slow 目录要解析2秒
+		Thread scanner = Thread.ofVirtual().start(catalog::scan);
+		waitFor(() -> catalog.getModels().size() >= 9, 1500);
+		Checks.check(scanner.isAlive() && !names(catalog).contains("slow"), "慢目录还没解析完时已经能拿到其他目录的结果");
+		scanner.join();
+		Checks.check(names(catalog).equals(List.of("fast0", "fast1", "fast2", "fast3", "fast4", "fast5", "fast6", "fast7", "nested", "slow")),
+				"扫描结果: " + names(catalog));
+		Checks.check(maxActive.get() > 1, "目录并行解析 (最大并发 " + maxActive.get() + ")");
+
+		catalog.startWatching();
+
+		// 新增模型目录
+		writeGguf(rootA.resolve("added").resolve("model.gguf"));
+		waitFor(() -> names(catalog).contains("added"), 10000);
+		Checks.check(names(catalog).contains("added"), "新增目录");
+
+		// 删除模型目录
+		deleteTree(rootA.resolve("fast0"));
+		waitFor(() -> !names(catalog).contains("fast0"), 10000);
+		Checks.check(!names(catalog).contains("fast0"), "删除目录");
+
+		// 目录改名
+		Files.move(rootA.resolve("fast1"), rootA.resolve("renamed"));
+		waitFor(() -> names(catalog).contains("renamed") && !names(catalog).contains("fast1"), 10000);
+		Checks.check(names(catalog).contains("renamed") && !names(catalog).contains("fast1"), "目录改名");
+
+		// 删除目录里唯一的GGUF文件，再放回去
+		Files.delete(rootA.resolve("group/nested/model.gguf"));
+		waitFor(() -> !names(catalog).contains("nested"), 10000);
+		Checks.check(!names(catalog).contains("nested"), "删除GGUF文件");
+		writeGguf(rootA.resolve("group/nested").resolve("model.gguf"));
+		waitFor(() -> names(catalog).contains("nested"), 10000);
+		Checks.check(names(catalog).contains("nested"), "重新放入GGUF文件");
+
+		// 多层新目录一次性移入
+		Path staging = Files.createDirectories(base.resolve("staging"));
+		writeGguf(staging.resolve("deep/a").resolve("model.gguf"));
+		writeGguf(staging.resolve("deep/b").resolve("model.gguf"));
+		Files.move(staging.resolve("deep"), rootB.resolve("deep"));
+		waitFor(() -> names(catalog).containsAll(List.of("a", "b")), 10000);
+		Checks.check(names(catalog).containsAll(List.of("a", "b")), "移入的多层目录");
+
+		// 全量重扫结果和增量更新一致
+		List<String> incremental = names(catalog);
+		catalog.scan();
+		Checks.check(incremental.equals(names(catalog)), "重扫后一致: " + names(catalog));
+
+		catalog.close();
+		deleteTree(base);
+		System.out.println("ModelCatalogTest: OK");
+	}
+
+	private static GGUFModel load(Path dir) {
+		File[] files = dir.toFile().listFiles((d, name) -> name.endsWith(".gguf"));
+		if (files == null || files.length == 0) {
+			return null;
+		}
+		int now = active.incrementAndGet();
+		maxActive.accumulateAndGet(now, Math::max);
+		try {
+			Thread.sleep("slow".equals(dir.getFileName().toString()) ? 2000 : 100);
+			GGUFModel model = new GGUFModel(dir.getFileName().toString(), dir.toString());
+			GGUFMetaData md = GGUFMetaData.readFile(files[0]);
+			if (md != null) {
+				model.setPrimaryModel(md);
+			}
+			return model;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			active.decrementAndGet();
+		}
+	}
+
+	private static List<String> names(ModelCatalog catalog) {
+		return catalog.getModels().stream().map(GGUFModel::getModelId).sorted().toList();
+	}
+
+	private static void waitFor(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+	}
+
+	private static void deleteTree(Path path) throws Exception {
+		try (Stream<Path> paths = Files.walk(path)) {
+			for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.delete(p);
+			}
+		}
+	}
+
+	/**
+	 * 	写一个只有 general.architecture 的GGUF文件。
+	 */
+	private static void writeGguf(Path file) throws Exception {
+		Files.createDirectories(file.getParent());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write("GGUF".getBytes(StandardCharsets.US_ASCII));
+		out.write(le(4).putInt(3).array());
+		out.write(le(8).putLong(0).array());
+		out.write(le(8).putLong(1).array());
+		writeString(out, "general.architecture");
+		out.write(le(4).putInt(8).array());
+		writeString(out, "llama");
+		Files.write(file, out.toByteArray());
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String s) throws Exception {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.write(le(8).putLong(bytes.length).array());
+		out.write(bytes);
+	}
+
+	private static ByteBuffer le(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
@@ -0,0 +1,213 @@
+package com.mark.test.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.mark.llamacpp.gguf.GGUFMetaData;
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.ModelScheduler;
+import org.mark.llamacpp.server.service.ModelRequestTracker;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * 	ModelScheduler 的检查。llama-bench 换成一个只输出 --list-devices 结果的脚本，模型是只有文件头的GGUF
+ * 	（后面补零到指定大小，估算的权重就是文件大小），不启动 llama-server：
+ * 	<ul>
+ * 	<li>调度关闭、拿不到设备列表时放行但不登记占用；</li>
+ * 	<li>放得下时放行并登记；放不下时卸载最久未使用的空闲模型；</li>
+ * 	<li>有请求的模型和加载中的模型不会被卸载，没有可卸载的模型时拒绝，账上不变；</li>
+ * 	<li>模型停止、加载失败后释放占用，加载完成后用日志里的实际占用替换估算值。</li>
+ * 	</ul>
+ * 	只能在 Linux/macOS 上运行。工作目录会写入配置，不要在仓库里运行。
+ * 	<p>
+ * 	用法：java ... com.mark.test.tools.ModelSchedulerTest
+ */
+public class ModelSchedulerTest {
+
+	private static final int RESERVE_MIB = 512;
+
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("model-scheduler-test");
+		ModelScheduler scheduler = ModelScheduler.getInstance();
+		ModelRequestTracker tracker = ModelRequestTracker.getInstance();
+		GGUFModel a = model(dir, "sched-a", 1024);
+		GGUFModel b = model(dir, "sched-b", 1024);
+		GGUFModel c = model(dir, "sched-c", 1024);
+		GGUFModel d = model(dir, "sched-d", 1024);
+
+		LlamaServer.updateVramSchedulerConfig(false, RESERVE_MIB);
+		Checks.check(scheduler.admit(a, fakeBench(dir, "big", 65536), null, false, "", "") == null && !scheduler.hasPlacement("sched-a"),
+				"调度关闭时放行，不登记占用");
+		LlamaServer.updateVramSchedulerConfig(true, RESERVE_MIB);
+		Files.createDirectories(dir.resolve("empty"));
+		Checks.check(scheduler.admit(a, dir.resolve("empty").toString(), null, false, "", "") == null && !scheduler.hasPlacement("sched-a")
+				&& "skip".equals(lastDecision(scheduler).get("action").getAsString()), "拿不到设备列表时放行，不登记占用");
+
+		// 先在大显存上量出一个模型的估算值
+		Checks.check(scheduler.admit(a, fakeBench(dir, "big", 65536), null, false, "", "") == null && scheduler.hasPlacement("sched-a"),
+				"放得下时放行并登记");
+		long need = predictedMiB(scheduler, "sched-a");
+		scheduler.release("sched-a");
+		Checks.check(!scheduler.hasPlacement("sched-a") && "加载未完成".equals(lastDecision(scheduler).get("message").getAsString()),
+				"释放后账上没有，估算 " + need + " MiB");
+
+		// 预算放得下两个半模型
+		String bin = fakeBench(dir, "small", RESERVE_MIB + need * 5 / 2);
+		Checks.check(scheduler.admit(a, bin, null, false, "", "") == null, "放下第一个模型");
+		scheduler.onLoadFinished("sched-a", true);
+		Checks.check(scheduler.admit(b, bin, null, false, "", "") == null, "放下第二个模型");
+		scheduler.onLoadFinished("sched-b", true);
+		tracker.touch("sched-a");
+		Thread.sleep(20);
+		tracker.touch("sched-b");
+
+		Checks.check(scheduler.admit(c, bin, null, false, "", "") == null, "第三个模型放行");
+		Checks.check(hasDecision(scheduler, "evict", "sched-a") && !scheduler.hasPlacement("sched-a")
+				&& scheduler.hasPlacement("sched-b") && scheduler.hasPlacement("sched-c"), "卸载了最久未使用的 sched-a，sched-b 留着");
+
+		// sched-b 有请求，sched-c 还在加载，都不能卸载
+		String requestId = tracker.createRequest("sched-b", "/v1/chat/completions");
+		String rejected = scheduler.admit(d, bin, null, false, "", "");
+		tracker.removeRequest(requestId);
+		Checks.check(rejected != null && rejected.startsWith("显存不足") && "reject".equals(lastDecision(scheduler).get("action").getAsString()),
+				"没有可卸载的模型时拒绝: " + rejected);
+		Checks.check(!scheduler.hasPlacement("sched-d") && scheduler.hasPlacement("sched-b") && scheduler.hasPlacement("sched-c")
+				&& !hasDecision(scheduler, "evict", "sched-b"), "拒绝后账上不变");
+
+		// 停止和加载失败都释放占用
+		scheduler.release("sched-b");
+		Checks.check(!scheduler.hasPlacement("sched-b") && "模型已停止".equals(lastDecision(scheduler).get("message").getAsString()),
+				"模型停止后释放占用");
+		scheduler.onLoadFinished("sched-c", false);
+		Checks.check(!scheduler.hasPlacement("sched-c") && "加载未完成".equals(lastDecision(scheduler).get("message").getAsString()),
+				"加载失败后释放占用");
+		Checks.check(reservedMiB(scheduler, "small") == 0, "设备上没有占用");
+
+		// 实际占用替换估算值
+		Checks.check(scheduler.admit(d, bin, null, false, "", "") == null && "admit".equals(lastDecision(scheduler).get("action").getAsString()),
+				"释放后不用卸载就能放下");
+		Checks.check(reservedMiB(scheduler, "small") == need, "加载中按估算值记账");
+		scheduler.onProcessOutput("sched-d", "load_tensors:        CUDA0 model buffer size =   300.00 MiB");
+		scheduler.onProcessOutput("sched-d", "llama_kv_cache:      CUDA0 KV buffer size =   100.00 MiB");
+		scheduler.onProcessOutput("sched-d", "load_tensors:   CPU_Mapped model buffer size =  4096.00 MiB");
+		scheduler.onLoadFinished("sched-d", true);
+		Checks.check(reservedMiB(scheduler, "small") == 400, "加载完成后按日志里的显存占用记账");
+		scheduler.release("sched-d");
+
+		try (Stream<Path> files = Files.walk(dir)) {
+			for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+				Files.delete(p);
+			}
+		}
+		System.out.println("ModelSchedulerTest: OK");
+		System.exit(0);
+	}
+
+	/**
+	 * 	bin 目录里放一个 llama-bench 脚本，--list-devices 输出一张指定显存的卡。
+	 * @return bin 目录
+	 */
+	private static String fakeBench(Path dir, String name, long totalMiB) throws Exception {
+		Path bin = Files.createDirectories(dir.resolve(name));
+		Path script = bin.resolve("llama-bench");
+		Files.writeString(script, "#!/bin/sh\necho \"Available devices:\"\necho \"  CUDA0: Fake GPU " + name + " (" + totalMiB + " MiB, "
+				+ totalMiB + " MiB free)\"\n");
+		Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwxr-xr-x"));
+		return bin.toString();
+	}
+
+	private static GGUFModel model(Path dir, String name, int sizeMiB) throws Exception {
+		Path modelDir = Files.createDirectories(dir.resolve("models").resolve(name));
+		Path file = modelDir.resolve(name + ".gguf");
+		writeGguf(file, sizeMiB);
+		GGUFModel model = new GGUFModel(name, modelDir.toString());
+		model.setPrimaryModel(GGUFMetaData.readFile(file.toFile()));
+		return model;
+	}
+
+	private static JsonObject lastDecision(ModelScheduler scheduler) {
+		return scheduler.getStatus().getAsJsonArray("decisions").get(0).getAsJsonObject();
+	}
+
+	private static boolean hasDecision(ModelScheduler scheduler, String action, String modelId) {
+		for (JsonElement e : scheduler.getStatus().getAsJsonArray("decisions")) {
+			JsonObject item = e.getAsJsonObject();
+			if (action.equals(item.get("action").getAsString()) && modelId.equals(item.get("modelId").getAsString())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long predictedMiB(ModelScheduler scheduler, String modelId) {
+		for (JsonElement e : scheduler.getStatus().getAsJsonArray("models")) {
+			JsonObject item = e.getAsJsonObject();
+			if (modelId.equals(item.get("modelId").getAsString())) {
+				return item.getAsJsonObject("predictedMiB").get("CUDA0").getAsLong();
+			}
+		}
+		throw new AssertionError("失败: 没有 " + modelId + " 的占用");
+	}
+
+	private static long reservedMiB(ModelScheduler scheduler, String bin) {
+		JsonArray devices = scheduler.getStatus().getAsJsonArray("devices");
+		for (JsonElement e : devices) {
+			JsonObject item = e.getAsJsonObject();
+			if (item.get("llamaBinPath").getAsString().endsWith(bin)) {
+				return item.get("reservedMiB").getAsLong();
+			}
+		}
+		throw new AssertionError("失败: 没有设备 " + bin);
+	}
+
+	/**
+	 * 	只有架构参数、没有张量的GGUF文件，用零补到指定大小。
+	 */
+	static void writeGguf(Path file, int sizeMiB) throws Exception {
+		List<Object[]> kv = List.of(
+				new Object[] { "llama.block_count", 8 },
+				new Object[] { "llama.embedding_length", 1024 },
+				new Object[] { "llama.attention.head_count", 8 },
+				new Object[] { "llama.attention.head_count_kv", 8 });
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write("GGUF".getBytes(StandardCharsets.US_ASCII));
+		out.write(le(4).putInt(3).array());
+		out.write(le(8).putLong(0).array());
+		out.write(le(8).putLong(kv.size() + 1).array());
+		writeString(out, "general.architecture");
+		out.write(le(4).putInt(8).array());
+		writeString(out, "llama");
+		for (Object[] e : kv) {
+			writeString(out, (String) e[0]);
+			out.write(le(4).putInt(4).array());
+			out.write(le(4).putInt((Integer) e[1]).array());
+		}
+		Files.write(file, out.toByteArray());
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(sizeMiB * 1024L * 1024L);
+		}
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String s) throws Exception {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.write(le(8).putLong(bytes.length).array());
+		out.write(bytes);
+	}
+
+	private static ByteBuffer le(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
@@ -0,0 +1,159 @@
+package com.mark.test.tools;
+
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.mark.llamacpp.lmstudio.LMStudio;
+import org.mark.llamacpp.lmstudio.channel.LMStudioWebServer;
+import org.mark.llamacpp.ollama.Ollama;
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.channel.NettyTransport;
+import org.mark.test.mcp.DefaultMcpServiceImpl;
+
+/**
+ * 	共用事件循环的检查。在随机端口上同时打开 OpenAI、Ollama、LMStudio、LMStudio Web、MCP 五个监听：
+ * 	<ul>
+ * 	<li>每个端口都能收发请求；</li>
+ * 	<li>并发打开大量连接后，事件循环线程总数不超过 1 + worker 线程数，也没有各端口自己创建的线程组；</li>
+ * 	<li>Linux 上使用 epoll；</li>
+ * 	<li>停止一个端口不影响其他端口，重新打开后仍然可用。</li>
+ * 	</ul>
+ */
+public class NettyTransportTest {
+
+	private static final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+	public static void main(String[] args) throws Exception {
+		NettyTransport transport = NettyTransport.getInstance();
+		System.out.println("传输: " + transport.getTransportName() + "，worker线程数: " + transport.getWorkerThreads());
+		if (System.getProperty("os.name", "").toLowerCase().contains("linux") && LlamaServer.isNativeTransportEnabled()) {
+			Checks.check(transport.isNative(), "Linux 上使用 epoll");
+		}
+
+		int openaiPort = freePort();
+		int ollamaPort = freePort();
+		int lmstudioPort = freePort();
+		int webPort = freePort();
+		int mcpPort = freePort();
+
+		Method bindOpenAI = LlamaServer.class.getDeclaredMethod("bindOpenAI", int.class);
+		bindOpenAI.setAccessible(true);
+		Thread openai = new Thread(() -> {
+			try {
+				bindOpenAI.invoke(null, openaiPort);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, "openai-test");
+		openai.setDaemon(true);
+		openai.start();
+		Ollama.getInstance().start(ollamaPort);
+		LMStudio.getInstance().start(lmstudioPort);
+		LMStudioWebServer web = new LMStudioWebServer(webPort);
+		web.start().sync();
+		DefaultMcpServiceImpl mcp = new DefaultMcpServiceImpl(mcpPort);
+		mcp.start();
+
+		Map<String, String> urls = new LinkedHashMap<>();
+		urls.put("OpenAI", "http://127.0.0.1:" + openaiPort + "/metrics");
+		urls.put("Ollama", "http://127.0.0.1:" + ollamaPort + "/api/ps");
+		urls.put("LMStudio", "http://127.0.0.1:" + lmstudioPort + "/api/v0/models");
+		urls.put("LMStudio Web", "http://127.0.0.1:" + webPort + "/health");
+		urls.put("MCP", "http://127.0.0.1:" + mcpPort + "/missing");
+		waitBound(transport, 5);
+		Checks.check(transport.getBoundCount() == 5, "5 个端口都绑定在共用的线程组上");
+
+		// 1. 每个端口都能收发
+		for (Map.Entry<String, String> e : urls.entrySet()) {
+			int status = get(e.getValue());
+			Checks.check(status > 0, e.getKey() + " 有响应: " + status);
+		}
+
+		// 2. 并发请求，让每个 worker 都有连接
+		List<CompletableFuture<HttpResponse<String>>> futures = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			HttpClient c = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+			for (String url : urls.values()) {
+				futures.add(c.sendAsync(HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(20)).build(),
+						HttpResponse.BodyHandlers.ofString()));
+			}
+		}
+		int ok = 0;
+		for (CompletableFuture<HttpResponse<String>> f : futures) {
+			if (f.get().statusCode() > 0) {
+				ok++;
+			}
+		}
+		Checks.check(ok == futures.size(), "并发 " + futures.size() + " 个请求全部有响应");
+
+		int boss = countThreads("llamahub-boss");
+		int workers = countThreads("llamahub-worker");
+		int legacy = countThreads("nioEventLoopGroup") + countThreads("epollEventLoopGroup");
+		System.out.println("boss线程: " + boss + "，worker线程: " + workers + "，其他线程组: " + legacy);
+		Checks.check(boss == 1, "只有 1 个 boss 线程");
+		Checks.check(workers >= 1 && workers <= transport.getWorkerThreads(), "worker 线程数不超过配置的 " + transport.getWorkerThreads());
+		Checks.check(legacy == 0, "没有各端口自己创建的线程组");
+
+		// 3. 停止一个端口不影响其他端口
+		Ollama.getInstance().stop();
+		waitBound(transport, 4);
+		Checks.check(transport.getBoundCount() == 4 && get(urls.get("Ollama")) < 0, "Ollama 停止后端口关闭");
+		Checks.check(get(urls.get("LMStudio")) > 0 && get(urls.get("OpenAI")) > 0, "其他端口不受影响");
+		Ollama.getInstance().start(ollamaPort);
+		waitBound(transport, 5);
+		Checks.check(get(urls.get("Ollama")) > 0, "Ollama 重新打开后可用");
+		Checks.check(countThreads("llamahub-boss") == 1 && countThreads("llamahub-worker") <= transport.getWorkerThreads(), "重新打开没有增加线程");
+
+		mcp.stop();
+		web.close();
+		LMStudio.getInstance().stop();
+		Ollama.getInstance().stop();
+		System.out.println("NettyTransportTest: OK");
+		System.exit(0);
+	}
+
+	private static int freePort() throws Exception {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static void waitBound(NettyTransport transport, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (transport.getBoundCount() != count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * 	@return 状态码，连不上时返回 -1
+	 */
+	private static int get(String url) {
+		try {
+			HttpRequest request = HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(10)).build();
+			return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	private static int countThreads(String prefix) {
+		int n = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.isAlive() && t.getName().startsWith(prefix)) {
+				n++;
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,253 @@
+package com.mark.test.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.mark.llamacpp.download.BasicDownloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 	BasicDownloader 分段下载的端到端检查。本地 HttpServer 提供支持 Range 的文件，可以让某个分段变慢、
+ * 	让部分请求中途断开：
+ * 	<ul>
+ * 	<li>多线程下载的结果和源文件一致，过程中不产生 .partN 文件，完成后不留进度记录；</li>
+ * 	<li>慢分段会被其他线程窃取；</li>
+ * 	<li>暂停后续传只请求还没写入的字节；</li>
+ * 	<li>进度记录损坏时从头下载，结果仍然正确。</li>
+ * 	</ul>
+ */
+public class RangeDownloadTest {
+
+	private static final int SIZE = 24 * 1024 * 1024 + 12345;
+
+	private static final String ETAG = "\"range-download-test\"";
+
+	private static final byte[] DATA = new byte[SIZE];
+
+	/**
+	 * 	起点为0的分段每64KB暂停的毫秒数
+	 */
+	private static volatile int slowFirstRangeMillis;
+
+	/**
+	 * 	所有分段每64KB暂停的毫秒数
+	 */
+	private static volatile int throttleMillis;
+
+	/**
+	 * 	每隔多少个分段请求中途断开一次，0 表示不断开
+	 */
+	private static volatile int failEvery;
+
+	private static final AtomicInteger rangeRequests = new AtomicInteger();
+
+	private static final AtomicInteger injectedFailures = new AtomicInteger();
+
+	private static final AtomicLong bytesServed = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		new Random(42).nextBytes(DATA);
+		String expected = sha256(DATA);
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/model.gguf", RangeDownloadTest::serve);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/model.gguf");
+		Path dir = Files.createTempDirectory("range-download-test");
+
+		try {
+			// 1. 慢分段 + 中途断开
+			slowFirstRangeMillis = 20;
+			failEvery = 5;
+			Path target = dir.resolve("a").resolve("model.gguf");
+			BasicDownloader downloader = newDownloader(uri, target);
+			Thread watcher = Thread.ofVirtual().start(() -> watchNoPartFiles(target.getParent()));
+			downloader.download();
+			watcher.interrupt();
+			watcher.join();
+			Checks.check(expected.equals(sha256(Files.readAllBytes(target))), "多线程下载结果一致");
+			Checks.check(listNames(target.getParent()).equals(List.of("model.gguf")), "目录里只剩目标文件: " + listNames(target.getParent()));
+			Checks.check(injectedFailures.get() > 0, "注入了中途断开 (" + injectedFailures.get() + " 次) 并重试成功");
+			Checks.check(downloader.getProgress().getPartsTotal() > 4, "慢分段被窃取，分段数 4 -> " + downloader.getProgress().getPartsTotal());
+
+			// 2. 暂停后续传
+			slowFirstRangeMillis = 0;
+			failEvery = 0;
+			throttleMillis = 5;
+			Path resumed = dir.resolve("b").resolve("model.gguf");
+			BasicDownloader first = newDownloader(uri, resumed);
+			Thread runner = Thread.ofVirtual().start(() -> {
+				try {
+					first.download();
+				} catch (Exception ignored) {
+				}
+			});
+			while (first.getDownloadedBytes() < SIZE / 3 && runner.isAlive()) {
+				Thread.sleep(20);
+			}
+			first.requestStop();
+			runner.join();
+			Path downloading = resumed.resolveSibling("model.gguf.downloading");
+			long pausedAt = first.getDownloadedBytes();
+			Checks.check(Files.size(downloading) == SIZE, "暂停时目标文件已预分配为完整大小");
+			Checks.check(Files.exists(resumed.resolveSibling("model.gguf.downloading.ranges")), "暂停后保留进度记录");
+			Checks.check(pausedAt > 0 && pausedAt < SIZE, "暂停时已下载 " + pausedAt + " 字节");
+
+			throttleMillis = 0;
+			bytesServed.set(0);
+			BasicDownloader second = newDownloader(uri, resumed);
+			second.resume(pausedAt);
+			Checks.check(expected.equals(sha256(Files.readAllBytes(resumed))), "续传结果一致");
+			// 分段被窃取后，原来的连接在关闭前服务端可能已经多发了一些，每个线程最多算1MB
+			Checks.check(bytesServed.get() <= SIZE - pausedAt + 4 * 1024 * 1024 && bytesServed.get() < SIZE - SIZE / 4, "续传只请求剩余字节 (" + bytesServed.get() + " / " + (SIZE - pausedAt) + ")");
+			Checks.check(listNames(resumed.getParent()).equals(List.of("model.gguf")), "续传后不留进度记录");
+
+			// 3. 进度记录损坏
+			throttleMillis = 5;
+			Path corrupted = dir.resolve("c").resolve("model.gguf");
+			BasicDownloader third = newDownloader(uri, corrupted);
+			Thread runner3 = Thread.ofVirtual().start(() -> {
+				try {
+					third.download();
+				} catch (Exception ignored) {
+				}
+			});
+			while (third.getDownloadedBytes() < SIZE / 4 && runner3.isAlive()) {
+				Thread.sleep(20);
+			}
+			third.requestStop();
+			runner3.join();
+			Path journal = corrupted.resolveSibling("model.gguf.downloading.ranges");
+			byte[] bytes = Files.readAllBytes(journal);
+			bytes[bytes.length / 2] ^= 0x5A;
+			Files.write(journal, bytes);
+			throttleMillis = 0;
+			bytesServed.set(0);
+			newDownloader(uri, corrupted).resume(third.getDownloadedBytes());
+			Checks.check(expected.equals(sha256(Files.readAllBytes(corrupted))), "进度记录损坏时从头下载，结果一致");
+			Checks.check(bytesServed.get() >= SIZE, "进度记录损坏时重新请求了整个文件");
+		} finally {
+			server.stop(0);
+			deleteTree(dir);
+		}
+		System.out.println("RangeDownloadTest: OK");
+		System.exit(0);
+	}
+
+	private static BasicDownloader newDownloader(URI uri, Path target) {
+		BasicDownloader downloader = new BasicDownloader(uri, target);
+		downloader.setParallelism(4);
+		downloader.setMinPartSizeBytes(4L * 1024 * 1024);
+		downloader.setMaxRetries(3);
+		return downloader;
+	}
+
+	/**
+	 * 	下载过程中目录里不应该出现分片文件。
+	 */
+	private static void watchNoPartFiles(Path dir) {
+		while (!Thread.currentThread().isInterrupted()) {
+			if (Files.isDirectory(dir)) {
+				for (String name : listNames(dir)) {
+					if (name.contains(".part")) {
+						System.out.println("失败: 出现分片文件 " + name);
+						System.exit(1);
+					}
+				}
+			}
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private static void serve(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			exchange.getResponseHeaders().set("ETag", ETAG);
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			if ("HEAD".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Content-Range", "bytes 0-0/" + SIZE);
+				exchange.sendResponseHeaders(206, -1);
+				return;
+			}
+			if (range == null) {
+				exchange.sendResponseHeaders(200, SIZE);
+				write(exchange.getResponseBody(), 0, SIZE, false, 0);
+				return;
+			}
+			String[] se = range.substring("bytes=".length()).split("-", -1);
+			int start = Integer.parseInt(se[0]);
+			int end = se[1].isEmpty() ? SIZE - 1 : Math.min(SIZE - 1, Integer.parseInt(se[1]));
+			int length = end - start + 1;
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + SIZE);
+			exchange.sendResponseHeaders(206, length);
+			// bytes=0-0 是探测请求，不计入
+			boolean fail = length > 1 && failEvery > 0 && rangeRequests.incrementAndGet() % failEvery == 0;
+			int delay = throttleMillis + (start == 0 && length > 1 ? slowFirstRangeMillis : 0);
+			write(exchange.getResponseBody(), start, length, fail, delay);
+		} catch (IOException e) {
+			// 客户端暂停或分段被窃取后提前关闭连接
+		}
+	}
+
+	private static void write(OutputStream out, int start, int length, boolean fail, int delayMillis) throws IOException {
+		int limit = fail ? length / 2 : length;
+		int off = 0;
+		while (off < limit) {
+			int n = Math.min(64 * 1024, limit - off);
+			out.write(DATA, start + off, n);
+			bytesServed.addAndGet(n);
+			off += n;
+			if (delayMillis > 0) {
+				try {
+					Thread.sleep(delayMillis);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		}
+		if (fail) {
+			injectedFailures.incrementAndGet();
+			throw new IOException("injected failure");
+		}
+		out.flush();
+	}
+
+	private static List<String> listNames(Path dir) {
+		try (Stream<Path> s = Files.list(dir)) {
+			return s.map(p -> p.getFileName().toString()).sorted().toList();
+		} catch (IOException e) {
+			return List.of();
+		}
+	}
+
+	private static String sha256(byte[] data) throws Exception {
+		return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+	}
+
+	private static void deleteTree(Path path) throws IOException {
+		try (Stream<Path> paths = Files.walk(path)) {
+			for (Path p : paths.sorted((a, b) -> b.compareTo(a)).toList()) {
+				Files.deleteIfExists(p);
+			}
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package com.mark.test.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mark.llamacpp.ollama.Ollama;
+import org.mark.llamacpp.server.LlamaHubNode;
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.NodeManager;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 	集群模型索引的检查。两个本地的假节点各自加载了不同的模型，记录每个接口被调用的次数：
+ * 	<ul>
+ * 	<li>加入节点以后各拉一次 /v1/models，索引里有两个节点的模型；</li>
+ * 	<li>OpenAI 聊天（流式和非流式）、嵌入、Anthropic、Ollama 聊天和嵌入按模型转发到对应的节点，
+ * 	整个过程两个节点的 /v1/models 都没有再被调用，不存在的模型也一样；</li>
+ * 	<li>节点推送的模型加载事件立刻生效，节点健康检查失败后它的模型从索引里去掉。</li>
+ * 	</ul>
+ * 	工作目录会写入节点配置，不要在仓库里运行。
+ * 	<p>
+ * 	用法：java ... com.mark.test.tools.RemoteModelIndexTest [每种请求的次数]
+ */
+public class RemoteModelIndexTest {
+
+	private static final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		Field role = LlamaServer.class.getDeclaredField("nodeRole");
+		role.setAccessible(true);
+		role.set(null, "master");
+
+		FakeNode a = new FakeNode("alpha-7b");
+		FakeNode b = new FakeNode("beta-embed");
+		NodeManager nodes = NodeManager.getInstance();
+		nodes.addNode(a.toNode("index-test-a"));
+		nodes.addNode(b.toNode("index-test-b"));
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (nodes.getRemoteModelIndex().size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		Checks.check("index-test-a".equals(nodes.getRemoteModelIndex().get("alpha-7b"))
+				&& "index-test-b".equals(nodes.getRemoteModelIndex().get("beta-embed")), "索引: " + nodes.getRemoteModelIndex());
+		Checks.check(a.models.get() == 1 && b.models.get() == 1, "加入节点时各拉一次 /v1/models");
+
+		int openaiPort = freePort();
+		int ollamaPort = freePort();
+		Method bindOpenAI = LlamaServer.class.getDeclaredMethod("bindOpenAI", int.class);
+		bindOpenAI.setAccessible(true);
+		Thread openai = new Thread(() -> {
+			try {
+				bindOpenAI.invoke(null, openaiPort);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, "openai-test");
+		openai.setDaemon(true);
+		openai.start();
+		Ollama.getInstance().start(ollamaPort);
+		Checks.check(KeepAliveTest.waitForPort(openaiPort) && KeepAliveTest.waitForPort(ollamaPort), "OpenAI 和 Ollama 端口已绑定");
+		String hub = "http://127.0.0.1:" + openaiPort;
+		String ollama = "http://127.0.0.1:" + ollamaPort;
+
+		for (int i = 0; i < rounds; i++) {
+			expect(post(hub + "/v1/chat/completions", chat("alpha-7b", false)), 200, "from alpha-7b", "OpenAI 聊天转发到节点 A");
+			expect(post(hub + "/v1/chat/completions", chat("beta-embed", true)), 200, "from beta-embed", "OpenAI 流式聊天转发到节点 B");
+			expect(post(hub + "/v1/embeddings", "{\"model\":\"beta-embed\",\"input\":[\"hi\"]}"), 200, "embedding", "OpenAI 嵌入转发到节点 B");
+			expect(post(hub + "/v1/messages", "{\"model\":\"alpha-7b\",\"max_tokens\":16,\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}]}"),
+					200, "from alpha-7b", "Anthropic 转发到节点 A");
+			expect(post(ollama + "/api/chat", "{\"model\":\"beta-embed\",\"stream\":false,\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}]}"),
+					200, "from beta-embed", "Ollama 聊天转发到节点 B");
+			expect(post(ollama + "/api/embed", "{\"model\":\"alpha-7b\",\"input\":[\"hi\"]}"), 200, "embeddings", "Ollama 嵌入转发到节点 A");
+			expect(post(hub + "/v1/chat/completions", chat("gamma-missing", false)), 404, "gamma-missing", "不存在的模型返回 404");
+		}
+		System.out.printf("节点 A: chat %d, embeddings %d, /v1/models %d；节点 B: chat %d, embeddings %d, /v1/models %d%n",
+				a.chat.get(), a.embeddings.get(), a.models.get(), b.chat.get(), b.embeddings.get(), b.models.get());
+		Checks.check(a.chat.get() == 2 * rounds && b.chat.get() == 2 * rounds, "聊天请求都到了对应的节点");
+		Checks.check(a.embeddings.get() == rounds && b.embeddings.get() == rounds, "嵌入请求都到了对应的节点");
+		Checks.check(a.models.get() == 1 && b.models.get() == 1, "请求路径上没有调用 /v1/models");
+
+		// 节点推送的加载事件先直接改索引，再异步校正
+		b.loaded = List.of("beta-embed", "delta-3b");
+		nodes.onRemoteModelEvent("index-test-b", "modelLoad", "delta-3b", true);
+		LlamaHubNode delta = nodes.resolveRemoteModel("delta-3b");
+		Checks.check(delta != null && "index-test-b".equals(delta.getNodeId()), "加载事件立刻生效");
+
+		// 节点 A 下线，健康检查以后它的模型从索引里去掉
+		a.server.stop(0);
+		nodes.healthCheck("index-test-a");
+		Checks.check(nodes.resolveRemoteModel("alpha-7b") == null && nodes.resolveRemoteModel("beta-embed") != null, "节点 A 失联后只去掉它的模型");
+
+		nodes.removeNode("index-test-a");
+		nodes.removeNode("index-test-b");
+		Checks.check(nodes.getRemoteModelIndex().isEmpty(), "移除节点后索引为空");
+		b.server.stop(0);
+		Ollama.getInstance().stop();
+		System.out.println("RemoteModelIndexTest: OK");
+		System.exit(0);
+	}
+
+	/**
+	 * 	假的 LlamaHub 节点。
+	 */
+	private static class FakeNode {
+
+		final HttpServer server;
+		final AtomicInteger models = new AtomicInteger();
+		final AtomicInteger chat = new AtomicInteger();
+		final AtomicInteger embeddings = new AtomicInteger();
+		volatile List<String> loaded;
+
+		FakeNode(String model) throws IOException {
+			this.loaded = List.of(model);
+			this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			this.server.createContext("/api/sys/version", ex -> send(ex, 200, "application/json", "{\"version\":\"test\"}"));
+			this.server.createContext("/v1/models", ex -> {
+				this.models.incrementAndGet();
+				StringBuilder sb = new StringBuilder("{\"object\":\"list\",\"data\":[");
+				for (int i = 0; i < this.loaded.size(); i++) {
+					sb.append(i > 0 ? "," : "").append("{\"id\":\"").append(this.loaded.get(i)).append("\",\"object\":\"model\"}");
+				}
+				send(ex, 200, "application/json", sb.append("]}").toString());
+			});
+			this.server.createContext("/v1/chat/completions", ex -> {
+				this.chat.incrementAndGet();
+				JsonObject req = JsonParser.parseString(new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)).getAsJsonObject();
+				String name = req.get("model").getAsString();
+				String content = "from " + name;
+				if (req.has("stream") && req.get("stream").getAsBoolean()) {
+					send(ex, 200, "text/event-stream",
+							"data: {\"id\":\"c1\",\"object\":\"chat.completion.chunk\",\"model\":\"" + name
+									+ "\",\"choices\":[{\"index\":0,\"delta\":{\"role\":\"assistant\",\"content\":\"" + content + "\"}}]}\n\n"
+									+ "data: {\"id\":\"c1\",\"object\":\"chat.completion.chunk\",\"model\":\"" + name
+									+ "\",\"choices\":[{\"index\":0,\"delta\":{},\"finish_reason\":\"stop\"}]}\n\ndata: [DONE]\n\n");
+				} else {
+					send(ex, 200, "application/json", "{\"id\":\"c1\",\"object\":\"chat.completion\",\"model\":\"" + name
+							+ "\",\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\"" + content
+							+ "\"},\"finish_reason\":\"stop\"}],\"usage\":{\"prompt_tokens\":1,\"completion_tokens\":2,\"total_tokens\":3}}");
+				}
+			});
+			this.server.createContext("/v1/embeddings", ex -> {
+				this.embeddings.incrementAndGet();
+				ex.getRequestBody().readAllBytes();
+				send(ex, 200, "application/json", "{\"object\":\"list\",\"model\":\"" + this.loaded.get(0)
+						+ "\",\"data\":[{\"object\":\"embedding\",\"index\":0,\"embedding\":[0.25,0.5]}],\"usage\":{\"prompt_tokens\":1,\"total_tokens\":1}}");
+			});
+			this.server.start();
+		}
+
+		LlamaHubNode toNode(String nodeId) {
+			LlamaHubNode node = new LlamaHubNode();
+			node.setNodeId(nodeId);
+			node.setName(nodeId);
+			node.setBaseUrl("http://127.0.0.1:" + this.server.getAddress().getPort());
+			node.setEnabled(true);
+			return node;
+		}
+	}
+
+	private static String chat(String model, boolean stream) {
+		return "{\"model\":\"" + model + "\",\"stream\":" + stream + ",\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}]}";
+	}
+
+	private static HttpResponse<String> post(String url, String body) throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(20))
+				.header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(body)).build();
+		return client.send(request, HttpResponse.BodyHandlers.ofString());
+	}
+
+	private static void expect(HttpResponse<String> response, int status, String contains, String what) {
+		if (response.statusCode() != status || !response.body().contains(contains)) {
+			throw new AssertionError("失败: " + what + ": " + response.statusCode() + " " + response.body());
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+
+	private static int freePort() throws Exception {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
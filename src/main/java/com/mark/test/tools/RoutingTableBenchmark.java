@@ -0,0 +1,177 @@
+package com.mark.test.tools;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.mark.llamacpp.server.LlamaCppProcess;
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ModelRoutingTable;
+
+import com.google.gson.JsonObject;
+
+/**
+ * 	请求路径上查模型端口的耗时。原来的做法是 getLoadedProcesses() 在 processLock 下复制整个进程表，
+ * 	再 synchronized 取端口；现在是无锁读 {@link ModelRoutingTable} 快照。两种做法各跑两轮：
+ * 	<ul>
+ * 	<li>空闲：没有别的线程拿锁；</li>
+ * 	<li>加载中：另一个线程反复拿住管理器的锁（模拟模型加载时持锁），每次拿 50 毫秒。</li>
+ * 	</ul>
+ * 	输出每次查找的平均耗时和最长的一次。
+ * 	<p>
+ * 	用法：java ... com.mark.test.tools.RoutingTableBenchmark [模型数] [读线程数] [每轮毫秒数]
+ */
+public class RoutingTableBenchmark {
+
+	private static final long HOLD_MS = 50;
+
+	public static void main(String[] args) throws Exception {
+		int models = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		long millis = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+
+		LegacyRouting legacy = new LegacyRouting();
+		List<Object> routes = new ArrayList<>();
+		Constructor<?> routeCtor = ModelRoutingTable.Route.class.getDeclaredConstructor(String.class, String.class, int.class, int.class,
+				int.class, JsonObject.class, LlamaCppProcess.class);
+		routeCtor.setAccessible(true);
+		String[] ids = new String[models];
+		for (int i = 0; i < models; i++) {
+			ids[i] = "model-" + i + "-Q4_K_M";
+			LlamaCppProcess process = new LlamaCppProcess(ids[i], "llama-server -m " + ids[i], "/opt/llama");
+			legacy.loadedProcesses.put(ids[i], process);
+			legacy.modelPorts.put(ids[i], 8081 + i);
+			routes.add(routeCtor.newInstance(ids[i], "alias-" + i, 8081 + i, 4, 8192, new JsonObject(), process));
+		}
+		Constructor<ModelRoutingTable> tableCtor = ModelRoutingTable.class.getDeclaredConstructor(Collection.class);
+		tableCtor.setAccessible(true);
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		Field tableField = LlamaServerManager.class.getDeclaredField("routingTable");
+		tableField.setAccessible(true);
+		tableField.set(manager, tableCtor.newInstance(routes));
+		Field lockField = LlamaServerManager.class.getDeclaredField("processLock");
+		lockField.setAccessible(true);
+		Object processLock = lockField.get(manager);
+		System.out.printf("模型数 %d，读线程 %d，每轮 %d 毫秒%n", models, readers, millis);
+
+		Lookup oldPath = name -> {
+			// 原来的请求路径：先判断是否加载，再取端口
+			if (!legacy.getLoadedProcesses().containsKey(name)) {
+				return -1;
+			}
+			return legacy.getModelPort(name);
+		};
+		Lookup newPath = name -> {
+			ModelRoutingTable.Route route = manager.findRoute(name);
+			return route == null ? -1 : route.getPort();
+		};
+
+		// 预热
+		run("预热", oldPath, ids, readers, millis / 2, null);
+		run("预热", newPath, ids, readers, millis / 2, null);
+
+		run("复制进程表 空闲", oldPath, ids, readers, millis, null);
+		run("复制进程表 加载中", oldPath, ids, readers, millis, legacy.processLock);
+		run("路由快照 空闲", newPath, ids, readers, millis, null);
+		run("路由快照 加载中", newPath, ids, readers, millis, processLock);
+		System.exit(0);
+	}
+
+	@FunctionalInterface
+	private interface Lookup {
+		int port(String name);
+	}
+
+	/**
+	 * 	@param lock 不为 null 时另开一个线程反复拿住这个锁
+	 */
+	private static void run(String name, Lookup lookup, String[] ids, int readers, long millis, Object lock) throws Exception {
+		AtomicBoolean stop = new AtomicBoolean();
+		Thread holder = null;
+		if (lock != null) {
+			holder = new Thread(() -> {
+				while (!stop.get()) {
+					synchronized (lock) {
+						try {
+							Thread.sleep(HOLD_MS);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					Thread.onSpinWait();
+				}
+			}, "holder");
+			holder.start();
+			Thread.sleep(5);
+		}
+		long[] ops = new long[readers];
+		long[] maxNanos = new long[readers];
+		long[] sink = new long[readers];
+		CountDownLatch done = new CountDownLatch(readers);
+		for (int t = 0; t < readers; t++) {
+			int id = t;
+			Thread reader = new Thread(() -> {
+				long n = 0, max = 0, s = 0;
+				long end = System.nanoTime() + millis * 1_000_000L;
+				int i = id;
+				long now = System.nanoTime();
+				while (now < end) {
+					s += lookup.port(ids[i++ % ids.length]);
+					long after = System.nanoTime();
+					max = Math.max(max, after - now);
+					now = after;
+					n++;
+				}
+				ops[id] = n;
+				maxNanos[id] = max;
+				sink[id] = s;
+				done.countDown();
+			}, "reader-" + t);
+			reader.start();
+		}
+		done.await();
+		stop.set(true);
+		if (holder != null) {
+			holder.join();
+		}
+		long total = 0, max = 0, s = 0;
+		for (int t = 0; t < readers; t++) {
+			total += ops[t];
+			max = Math.max(max, maxNanos[t]);
+			s += sink[t];
+		}
+		double nsPerOp = total == 0 ? Double.NaN : (double) millis * 1_000_000L * readers / total;
+		System.out.printf("%-16s %12d 次  %10.1f ns/次  最长 %10.1f µs  (%d)%n", name, total, nsPerOp, max / 1e3, s % 10);
+	}
+
+	/**
+	 * 	原来 LlamaServerManager 里的查询方式。
+	 */
+	private static class LegacyRouting {
+
+		private final Object processLock = new Object();
+
+		private final Map<String, LlamaCppProcess> loadedProcesses = new LinkedHashMap<>();
+
+		private final Map<String, Integer> modelPorts = new HashMap<>();
+
+		public Map<String, LlamaCppProcess> getLoadedProcesses() {
+			synchronized (this.processLock) {
+				return new HashMap<>(this.loadedProcesses);
+			}
+		}
+
+		public Integer getModelPort(String modelId) {
+			synchronized (this.processLock) {
+				return this.modelPorts.get(modelId);
+			}
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.mark.test.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import org.mark.file.downloader.SimpleHttpDownloader;
+import org.mark.llamacpp.download.BasicDownloader;
+import org.mark.llamacpp.download.Sha256Hasher;
+import org.mark.llamacpp.gguf.GGUFMetadataCache;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 	下载时 SHA-256 校验的端到端检查。本地 HttpServer 提供两份支持 Range 的文件，其中一份在中间改坏了一个字节：
+ * 	<ul>
+ * 	<li>两种下载器下载正常的文件，校验通过，返回的 SHA-256 正确；</li>
+ * 	<li>下载被改坏的文件时校验失败，不留下目标文件和下载中的文件；</li>
+ * 	<li>校验结果记在 GGUF 元数据缓存里，再次校验同一个文件不重新计算。</li>
+ * 	</ul>
+ */
+public class Sha256VerifyTest {
+
+	private static final int SIZE = 20 * 1024 * 1024 + 777;
+
+	private static final byte[] DATA = new byte[SIZE];
+
+	private static final byte[] CORRUPTED = new byte[SIZE];
+
+	public static void main(String[] args) throws Exception {
+		new Random(7).nextBytes(DATA);
+		System.arraycopy(DATA, 0, CORRUPTED, 0, SIZE);
+		CORRUPTED[SIZE / 2 + 3] ^= 0x01;
+		String expected = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(DATA));
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/good.gguf", exchange -> serve(exchange, DATA));
+		server.createContext("/bad.gguf", exchange -> serve(exchange, CORRUPTED));
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		String base = "http://127.0.0.1:" + server.getAddress().getPort();
+		Path dir = Files.createTempDirectory("sha256-verify-test");
+
+		try {
+			// 1. BasicDownloader
+			Path good = dir.resolve("a").resolve("good.gguf");
+			BasicDownloader downloader = newDownloader(URI.create(base + "/good.gguf"), good);
+			downloader.setExpectedSha256("sha256:" + expected.toUpperCase());
+			downloader.download();
+			Checks.check(expected.equals(downloader.getSha256()), "BasicDownloader 校验通过: " + downloader.getSha256());
+
+			Path bad = dir.resolve("b").resolve("bad.gguf");
+			BasicDownloader badDownloader = newDownloader(URI.create(base + "/bad.gguf"), bad);
+			badDownloader.setExpectedSha256(expected);
+			checkFails(() -> badDownloader.download(), "BasicDownloader 下载被改坏的文件");
+			Checks.check(listNames(bad.getParent()).isEmpty(), "校验失败后不留文件: " + listNames(bad.getParent()));
+
+			// 2. SimpleHttpDownloader
+			Path simple = dir.resolve("c").resolve("good.gguf");
+			Files.createDirectories(simple.getParent());
+			SimpleHttpDownloader.DownloadResult result = new SimpleHttpDownloader(4).download(base + "/good.gguf", simple, expected);
+			Checks.check(expected.equals(result.sha256()), "SimpleHttpDownloader 校验通过，分段数 " + result.parts());
+			Checks.check(expected.equals(sha256(simple)), "SimpleHttpDownloader 结果一致");
+
+			Path simpleBad = dir.resolve("d").resolve("bad.gguf");
+			Files.createDirectories(simpleBad.getParent());
+			checkFails(() -> new SimpleHttpDownloader(4).download(base + "/bad.gguf", simpleBad, expected), "SimpleHttpDownloader 下载被改坏的文件");
+			Checks.check(listNames(simpleBad.getParent()).isEmpty(), "校验失败后不留文件: " + listNames(simpleBad.getParent()));
+
+			// 3. 缓存
+			File file = good.toFile();
+			GGUFMetadataCache.getInstance().putSha256(file, expected);
+			long t0 = System.nanoTime();
+			boolean ok = Sha256Hasher.verify(file, expected);
+			long cachedMillis = (System.nanoTime() - t0) / 1_000_000;
+			Checks.check(ok && cachedMillis < 50, "再次校验直接用缓存 (" + cachedMillis + " ms)");
+			Checks.check(!Sha256Hasher.verify(file, "0".repeat(64)), "缓存的值和期望不一致时校验失败");
+			Checks.check(expected.equals(Sha256Hasher.hashFile(good)), "hashFile 结果一致");
+			Checks.check(Sha256Hasher.normalize("abc") == null, "无效的值规范化为 null");
+		} finally {
+			server.stop(0);
+			deleteTree(dir);
+		}
+		System.out.println("Sha256VerifyTest: OK");
+		System.exit(0);
+	}
+
+	private static BasicDownloader newDownloader(URI uri, Path target) {
+		BasicDownloader downloader = new BasicDownloader(uri, target);
+		downloader.setParallelism(4);
+		downloader.setMinPartSizeBytes(4L * 1024 * 1024);
+		downloader.setMaxRetries(1);
+		return downloader;
+	}
+
+	private interface Action {
+		void run() throws Exception;
+	}
+
+	private static void checkFails(Action action, String what) {
+		try {
+			action.run();
+		} catch (Exception e) {
+			Checks.check(e.getMessage() != null && e.getMessage().contains("SHA-256校验失败"), what + "，失败原因: " + e.getMessage());
+			return;
+		}
+		Checks.check(false, what + " 应该失败");
+	}
+
+	private static void serve(HttpExchange exchange, byte[] data) throws IOException {
+		try (exchange) {
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			if ("HEAD".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Content-Length", String.valueOf(data.length));
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			if (range == null) {
+				exchange.sendResponseHeaders(200, data.length);
+				write(exchange.getResponseBody(), data, 0, data.length);
+				return;
+			}
+			String[] se = range.substring("bytes=".length()).split("-", -1);
+			int start = Integer.parseInt(se[0]);
+			int end = se[1].isEmpty() ? data.length - 1 : Math.min(data.length - 1, Integer.parseInt(se[1]));
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+			exchange.sendResponseHeaders(206, end - start + 1);
+			write(exchange.getResponseBody(), data, start, end - start + 1);
+		} catch (IOException e) {
+			// 客户端提前关闭连接
+		}
+	}
+
+	private static void write(OutputStream out, byte[] data, int start, int length) throws IOException {
+		int off = 0;
+		while (off < length) {
+			int n = Math.min(64 * 1024, length - off);
+			out.write(data, start + off, n);
+			off += n;
+		}
+		out.flush();
+	}
+
+	private static List<String> listNames(Path dir) {
+		try (Stream<Path> s = Files.list(dir)) {
+			return s.map(p -> p.getFileName().toString()).sorted().toList();
+		} catch (IOException e) {
+			return List.of();
+		}
+	}
+
+	private static String sha256(Path file) throws Exception {
+		return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file)));
+	}
+
+	private static void deleteTree(Path path) throws IOException {
+		try (Stream<Path> paths = Files.walk(path)) {
+			for (Path p : paths.sorted((a, b) -> b.compareTo(a)).toList()) {
+				Files.deleteIfExists(p);
+			}
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.mark.test.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+import org.mark.llamacpp.server.ModelAdmissionQueue;
+import org.mark.llamacpp.server.PrefixFingerprint;
+import org.mark.llamacpp.server.SlotAffinityTable;
+import org.mark.llamacpp.server.service.ChatRequestStreamingTransformer;
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 	SlotAffinityTable 的检查。本地 HttpServer 模拟一个 4 槽位的 llama-server，记录每个请求带来的 id_slot：
+ * 	<ul>
+ * 	<li>共用同一个长系统提示词的多个对话并发进行多轮，每个对话始终落在同一个槽位上；</li>
+ * 	<li>槽位不够时新对话挤掉最久没用的对话，被挤掉的前缀条目失效，其余对话不受影响；</li>
+ * 	<li>模型重新加载后记录清空；</li>
+ * 	<li>按字节流计算的指纹和解析后计算的一致，流式转换后的请求体带上 id_slot。</li>
+ * 	</ul>
+ */
+public class SlotAffinityTest {
+
+	private static final String MODEL = "fake-model";
+
+	private static final int SLOTS = 4;
+
+	private static final String SYSTEM_PROMPT = "You are a coding agent. ".repeat(2000);
+
+	/**
+	 * 	对话ID -> 上游按顺序收到的 id_slot
+	 */
+	private static final Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+
+	private static final HttpClient client = HttpClient.newHttpClient();
+
+	public static void main(String[] args) throws Exception {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/v1/chat/completions", SlotAffinityTest::serve);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		URI upstream = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/v1/chat/completions");
+
+		try {
+			// 1. 4 个对话并发，各 5 轮
+			ModelAdmissionQueue queue = new ModelAdmissionQueue();
+			SlotAffinityTable table = new SlotAffinityTable();
+			Object process = new Object();
+			Map<String, JsonObject> conversations = new ConcurrentHashMap<>();
+			List<Thread> threads = new ArrayList<>();
+			for (int c = 0; c < SLOTS; c++) {
+				String id = "conv" + c;
+				conversations.put(id, newConversation(id));
+				threads.add(Thread.ofVirtual().start(() -> {
+					for (int turn = 0; turn < 5; turn++) {
+						call(queue, table, process, upstream, id, conversations.get(id));
+					}
+				}));
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+			Map<String, Integer> slotOf = new ConcurrentHashMap<>();
+			for (int c = 0; c < SLOTS; c++) {
+				String id = "conv" + c;
+				List<Integer> slots = received.get(id);
+				System.out.println(id + " 收到的 id_slot: " + slots);
+				Checks.check(slots.size() == 5 && new HashSet<>(slots).size() == 1, id + " 每一轮都落在同一个槽位");
+				slotOf.put(id, slots.get(0));
+			}
+			Checks.check(new HashSet<>(slotOf.values()).size() == SLOTS, "不同对话分到不同槽位: " + slotOf);
+
+			// 2. 第 5 个对话挤掉最久没用的对话
+			for (String id : List.of("conv1", "conv2", "conv3", "conv0")) {
+				call(queue, table, process, upstream, id, conversations.get(id));
+			}
+			long[] conv1Prefix = PrefixFingerprint.of(conversations.get("conv1"));
+			conversations.put("conv4", newConversation("conv4"));
+			int newSlot = call(queue, table, process, upstream, "conv4", conversations.get("conv4"));
+			Checks.check(newSlot == slotOf.get("conv1"), "新对话用了最久没用的 conv1 的槽位 " + newSlot);
+			// 共用的系统提示词还在这个槽位里，conv1 自己的条目应该都没了
+			Checks.check(table.lookup(MODEL, Arrays.copyOfRange(conv1Prefix, 1, conv1Prefix.length)) == -1, "conv1 自己的前缀条目已经失效");
+			for (String id : List.of("conv0", "conv2", "conv3", "conv4")) {
+				int before = received.get(id).get(received.get(id).size() - 1);
+				int after = call(queue, table, process, upstream, id, conversations.get(id));
+				Checks.check(before == after, id + " 仍然落在槽位 " + after);
+			}
+			int entries = table.getEntryCount(MODEL);
+			Checks.check(entries <= SLOTS * 20, "条目数有上限 (" + entries + ")");
+
+			// 3. 模型重新加载
+			int sent = conversations.get("conv0").getAsJsonArray("messages").size();
+			int reloaded = call(queue, table, new Object(), upstream, "conv0", conversations.get("conv0"));
+			Checks.check(table.getEntryCount(MODEL) == sent,
+					"重新加载后只剩新请求的条目 (" + table.getEntryCount(MODEL) + ")，分到槽位 " + reloaded);
+
+			// 4. 字节流指纹
+			JsonObject request = conversations.get("conv2").deepCopy();
+			JsonArray tools = JsonParser.parseString("[{\"type\":\"function\",\"function\":{\"name\":\"read_file\"}}]").getAsJsonArray();
+			request.add("tools", tools);
+			String pretty = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(request.get("messages"));
+			PrefixFingerprint.Builder builder = new PrefixFingerprint.Builder();
+			builder.write(pretty.getBytes(StandardCharsets.UTF_8));
+			builder.setTools(tools);
+			Checks.check(Arrays.equals(builder.build(), PrefixFingerprint.of(request)), "字节流指纹和解析后的一致（忽略空白）");
+
+			ChatRequestStreamingTransformer transformer = new ChatRequestStreamingTransformer(1024 * 1024, 4 * 1024 * 1024);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ChatRequestStreamingTransformer.TransformResult result = transformer.transform(
+					new ByteArrayInputStream(JsonUtil.toJson(request).getBytes(StandardCharsets.UTF_8)), out, null);
+			transformer.finish(out, 2);
+			JsonObject rewritten = JsonParser.parseString(out.toString(StandardCharsets.UTF_8)).getAsJsonObject();
+			Checks.check(rewritten.get("id_slot").getAsInt() == 2, "流式转换后的请求体带上 id_slot");
+			Checks.check(rewritten.get("messages").equals(request.get("messages")), "messages 原样转发");
+			Checks.check(Arrays.equals(result.getPrefix(), PrefixFingerprint.of(request)), "流式转换算出的指纹一致");
+		} finally {
+			server.stop(0);
+		}
+		System.out.println("SlotAffinityTest: OK");
+		System.exit(0);
+	}
+
+	private static JsonObject newConversation(String id) {
+		JsonObject request = new JsonObject();
+		request.addProperty("model", MODEL);
+		JsonArray messages = new JsonArray();
+		messages.add(message("system", SYSTEM_PROMPT));
+		messages.add(message("user", "Task for " + id + ": fix the build."));
+		request.add("messages", messages);
+		return request;
+	}
+
+	private static JsonObject message(String role, String content) {
+		JsonObject message = new JsonObject();
+		message.addProperty("role", role);
+		message.addProperty("content", content);
+		return message;
+	}
+
+	/**
+	 * 	和转发路径一样：先拿准入许可，再按前缀选槽位写进 id_slot，响应读完后归还。
+	 * 	把上游的回答和下一条用户消息追加到对话里。
+	 * @return 使用的槽位
+	 */
+	private static int call(ModelAdmissionQueue queue, SlotAffinityTable table, Object process, URI upstream, String id, JsonObject conversation) {
+		JsonObject request = conversation.deepCopy();
+		try {
+			ModelAdmissionQueue.Permit permit = queue.acquire(MODEL, SLOTS, id);
+			try (SlotAffinityTable.Lease lease = table.assign(MODEL, process, SLOTS, PrefixFingerprint.of(request))) {
+				request.addProperty("id_slot", lease.getSlot());
+				HttpRequest httpRequest = HttpRequest.newBuilder(upstream).header("X-Conversation", id)
+						.POST(HttpRequest.BodyPublishers.ofString(JsonUtil.toJson(request))).build();
+				HttpResponse<InputStream> response = client.send(httpRequest, HttpResponse.BodyHandlers.ofInputStream());
+				String answer;
+				try (InputStream in = response.body()) {
+					answer = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+				}
+				JsonArray messages = conversation.getAsJsonArray("messages");
+				messages.add(message("assistant", answer));
+				messages.add(message("user", "Continue " + id + " turn " + messages.size()));
+				return lease.getSlot();
+			} finally {
+				permit.close();
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void serve(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			JsonObject body = JsonParser.parseString(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)).getAsJsonObject();
+			String id = exchange.getRequestHeaders().getFirst("X-Conversation");
+			received.computeIfAbsent(id, k -> Collections.synchronizedList(new ArrayList<>())).add(body.get("id_slot").getAsInt());
+			try {
+				Thread.sleep(new Random().nextInt(20));
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			byte[] answer = ("Done with step " + body.getAsJsonArray("messages").size()).getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, answer.length);
+			exchange.getResponseBody().write(answer);
+		}
+	}
+}
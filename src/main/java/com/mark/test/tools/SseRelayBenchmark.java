@@ -0,0 +1,239 @@
+package com.mark.test.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mark.llamacpp.server.service.LlamaRecordService;
+import org.mark.llamacpp.server.service.OpenAIService;
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 	OpenAI 流式响应转发（handleStreamResponse）每个 token 的 CPU 耗时和内存分配。合成一条和 llama-server 格式相同的 SSE 流
+ * 	（正文、工具调用，最后一个块带 timings），上游每次 read 只返回一个事件，和逐个 token 到达时一样；
+ * 	客户端是一个 EmbeddedChannel，写出的内容在每轮结束后释放。
+ * 	<p>
+ * 	原来的做法是 BufferedReader 逐行解码成字符串、每行都解析 JSON、每行单独 writeAndFlush；
+ * 	现在是 SseLineReader 按字节转发，只解析带 tool_calls 或 timings 的块。前者是下面的 legacyRelay，
+ * 	后者直接反射调用 OpenAIService 里的实现。
+ * 	<p>
+ * 	工作目录会写入统计记录，不要在仓库里运行。
+ * 	<p>
+ * 	用法：java ... com.mark.test.tools.SseRelayBenchmark [token 数] [次数]
+ */
+public class SseRelayBenchmark {
+
+	private static final String PREFIX = "data: {\"choices\":[{\"finish_reason\":null,\"index\":0,\"delta\":";
+	private static final String SUFFIX = "}],\"created\":1760601234,\"id\":\"chatcmpl-Xq3v9aLk2\",\"model\":\"qwen3-30b-a3b\","
+			+ "\"system_fingerprint\":\"b6756-fb6c2d7a\",\"object\":\"chat.completion.chunk\"}";
+
+	public static void main(String[] args) throws Exception {
+		int tokens = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		List<byte[]> events = buildStream(tokens);
+		System.out.printf("每条流 %d 个 token%n", tokens);
+
+		OpenAIService service = new OpenAIService();
+		Method relay = OpenAIService.class.getDeclaredMethod("handleStreamResponse", ChannelHandlerContext.class,
+				HttpURLConnection.class, int.class, String.class, String.class, String.class);
+		relay.setAccessible(true);
+
+		run("BufferedReader + 逐行写出", tokens, iterations, (ctx, connection) -> legacyRelay(ctx, connection, "qwen3-30b-a3b"), events);
+		run("SseLineReader + StreamRelayWriter", tokens, iterations,
+				(ctx, connection) -> relay.invoke(service, ctx, connection, 200, "qwen3-30b-a3b", null, null), events);
+		System.exit(0);
+	}
+
+	@FunctionalInterface
+	interface Relay {
+		void relay(ChannelHandlerContext ctx, HttpURLConnection connection) throws Exception;
+	}
+
+	private static void run(String name, int tokens, int iterations, Relay relay, List<byte[]> events) throws Exception {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().threadId();
+		// 预热
+		for (int i = 0; i < Math.max(5, iterations / 3); i++) {
+			once(relay, events);
+		}
+		long alloc0 = mx.getThreadAllocatedBytes(tid);
+		long t0 = System.nanoTime();
+		long bytes = 0;
+		for (int i = 0; i < iterations; i++) {
+			bytes = once(relay, events);
+		}
+		long elapsed = System.nanoTime() - t0;
+		long alloc = mx.getThreadAllocatedBytes(tid) - alloc0;
+		long perStream = (long) iterations * tokens;
+		System.out.printf("%-36s %9.2f µs/token %10.1f B/token  (输出 %d 字节)%n", name, elapsed / 1e3 / perStream,
+				(double) alloc / perStream, bytes);
+	}
+
+	/**
+	 * 	转发一条流，返回客户端收到的字节数。
+	 */
+	static long once(Relay relay, List<byte[]> events) throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		ChannelHandlerContext ctx = channel.pipeline().firstContext();
+		relay.relay(ctx, new FakeConnection(events));
+		long bytes = 0;
+		Object msg;
+		while ((msg = channel.readOutbound()) != null) {
+			if (msg instanceof ByteBufHolder) {
+				bytes += ((ByteBufHolder) msg).content().readableBytes();
+			}
+			ReferenceCountUtil.release(msg);
+		}
+		channel.finishAndReleaseAll();
+		return bytes;
+	}
+
+	/**
+	 * 	原来 OpenAIService.handleStreamResponse 的读写循环（去掉了响应头和日志）。
+	 */
+	private static void legacyRelay(ChannelHandlerContext ctx, HttpURLConnection connection, String modelName) throws IOException {
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			Map<Integer, String> toolCallIds = new HashMap<>();
+			while ((line = br.readLine()) != null) {
+				if (!ctx.channel().isActive() || !ctx.channel().isWritable()) {
+					break;
+				}
+				if (line.startsWith("data: ")) {
+					String data = line.substring(6);
+					if (data.equals("[DONE]")) {
+						break;
+					} else if (data.contains("\"timings\"")) {
+						LlamaRecordService.getInstance().handleStream(modelName, data);
+					}
+					String outLine = line;
+					JsonObject parsed = JsonUtil.tryParseObject(data);
+					if (parsed != null) {
+						if (JsonUtil.ensureToolCallIds(parsed, toolCallIds)) {
+							outLine = "data: " + JsonUtil.toJson(parsed);
+						}
+					}
+					ByteBuf content = ctx.alloc().buffer();
+					content.writeBytes(outLine.getBytes(StandardCharsets.UTF_8));
+					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+					ctx.writeAndFlush(new DefaultHttpContent(content)).addListener((ChannelFutureListener) future -> {
+						if (!future.isSuccess()) {
+							ctx.close();
+						}
+					});
+				} else if (line.startsWith("event: ")) {
+					ByteBuf content = ctx.alloc().buffer();
+					content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
+					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+					ctx.writeAndFlush(new DefaultHttpContent(content));
+				} else if (line.isEmpty()) {
+					ByteBuf content = ctx.alloc().buffer();
+					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+					ctx.writeAndFlush(new DefaultHttpContent(content));
+				}
+			}
+		}
+	}
+
+	/**
+	 * 	前 3/4 是正文，后 1/4 是一个工具调用的参数（不带 id，由转发补上），最后是带 timings 的块和 [DONE]。
+	 * 	每个元素是一次 read 返回的数据。
+	 */
+	static List<byte[]> buildStream(int tokens) {
+		List<String> stream = new ArrayList<>();
+		int text = tokens * 3 / 4;
+		for (int i = 0; i < text; i++) {
+			stream.add(PREFIX + "{\"content\":\"" + (i % 3 == 0 ? "结果" : " token") + i + "\"}" + SUFFIX);
+		}
+		for (int i = text; i < tokens; i++) {
+			String head = i == text ? "\"type\":\"function\",\"function\":{\"name\":\"get_weather\",\"arguments\":" : "\"function\":{\"arguments\":";
+			stream.add(PREFIX + "{\"tool_calls\":[{\"index\":0," + head + "\"{\\\"city\\\":\\\"" + i + "\\\"\"}}]}" + SUFFIX);
+		}
+		stream.add("data: {\"choices\":[{\"finish_reason\":\"tool_calls\",\"index\":0,\"delta\":{}}],\"created\":1760601234,"
+				+ "\"id\":\"chatcmpl-Xq3v9aLk2\",\"model\":\"qwen3-30b-a3b\",\"object\":\"chat.completion.chunk\","
+				+ "\"timings\":{\"prompt_n\":300,\"prompt_ms\":120.5,\"predicted_n\":" + tokens + ",\"predicted_ms\":9876.5}}");
+		stream.add("data: [DONE]");
+		List<byte[]> events = new ArrayList<>();
+		for (String s : stream) {
+			events.add((s + "\n\n").getBytes(StandardCharsets.UTF_8));
+		}
+		return events;
+	}
+
+	/**
+	 * 	上游连接，每次 read 最多返回一个事件。
+	 */
+	static class FakeConnection extends HttpURLConnection {
+
+		private final List<byte[]> events;
+
+		FakeConnection(List<byte[]> events) throws IOException {
+			super(URI.create("http://127.0.0.1/v1/chat/completions").toURL());
+			this.events = events;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new InputStream() {
+				private int event;
+				private int pos;
+
+				@Override
+				public int read() {
+					byte[] b = new byte[1];
+					return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) {
+					if (this.event >= FakeConnection.this.events.size()) {
+						return -1;
+					}
+					byte[] current = FakeConnection.this.events.get(this.event);
+					int n = Math.min(len, current.length - this.pos);
+					System.arraycopy(current, this.pos, b, off, n);
+					this.pos += n;
+					if (this.pos == current.length) {
+						this.event++;
+						this.pos = 0;
+					}
+					return n;
+				}
+			};
+		}
+
+		@Override
+		public void connect() {
+		}
+
+		@Override
+		public void disconnect() {
+		}
+
+		@Override
+		public boolean usingProxy() {
+			return false;
+		}
+	}
+}
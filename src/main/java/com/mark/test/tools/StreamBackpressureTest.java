@@ -0,0 +1,201 @@
+package com.mark.test.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.channel.HttpKeepAliveHandler;
+import org.mark.llamacpp.server.service.OpenAIService;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+
+/**
+ * 	流式转发背压的检查。本地 HttpServer 模拟一个一次性吐出大量 token 的 llama-server，
+ * 	经 OpenAIService 转发给一个接收缓冲很小、读得很慢的客户端：
+ * 	<ul>
+ * 	<li>客户端按顺序收到全部 token，没有丢失；</li>
+ * 	<li>通道写缓冲里积压的数据始终在高水位附近，不随响应大小增长；</li>
+ * 	<li>转发确实因为通道不可写暂停过。</li>
+ * 	</ul>
+ */
+public class StreamBackpressureTest {
+
+	private static final int TOKENS = 20000;
+
+	private static final Pattern TOKEN = Pattern.compile("tok-(\\d+)");
+
+	/**
+	 * 	采样到的通道写缓冲最大积压字节数
+	 */
+	private static final AtomicLong maxPending = new AtomicLong();
+
+	/**
+	 * 	采样时通道不可写的次数
+	 */
+	private static final AtomicLong unwritableSamples = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		HttpServer upstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		upstream.createContext("/v1/chat/completions", StreamBackpressureTest::serve);
+		upstream.setExecutor(Executors.newCachedThreadPool());
+		upstream.start();
+		URI upstreamUri = URI.create("http://127.0.0.1:" + upstream.getAddress().getPort() + "/v1/chat/completions");
+
+		OpenAIService service = new OpenAIService();
+		EventLoopGroup group = new NioEventLoopGroup(1);
+		int high = LlamaServer.getWriteBufferWaterMark().high();
+		try {
+			Channel server = new ServerBootstrap()
+					.group(group)
+					.channel(NioServerSocketChannel.class)
+					.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, LlamaServer.getWriteBufferWaterMark())
+					.childOption(ChannelOption.SO_SNDBUF, 8 * 1024)
+					.childHandler(new ChannelInitializer<SocketChannel>() {
+						@Override
+						protected void initChannel(SocketChannel ch) {
+							ch.pipeline()
+								.addLast(new HttpServerCodec())
+								.addLast(new HttpKeepAliveHandler())
+								.addLast(new HttpObjectAggregator(1024 * 1024))
+								.addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
+									@Override
+									protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest msg) {
+										Thread.ofVirtual().start(() -> relay(service, ctx, upstreamUri));
+									}
+								});
+						}
+					})
+					.bind("127.0.0.1", 0).sync().channel();
+			int port = ((InetSocketAddress) server.localAddress()).getPort();
+
+			String body = readSlowly(port);
+			Matcher m = TOKEN.matcher(body);
+			int expected = 0;
+			boolean inOrder = true;
+			while (m.find()) {
+				if (Integer.parseInt(m.group(1)) != expected) {
+					inOrder = false;
+					break;
+				}
+				expected++;
+			}
+			System.out.println("响应大小: " + body.length() + " 字节，写缓冲最大积压: " + maxPending.get() + " 字节，高水位: " + high);
+			Checks.check(inOrder && expected == TOKENS, "按顺序收到全部 token (" + expected + "/" + TOKENS + ")");
+			Checks.check(maxPending.get() <= high * 2L, "写缓冲积压不超过高水位太多 (" + maxPending.get() + ")");
+			Checks.check(body.length() > maxPending.get() * 10, "积压远小于响应大小");
+			Checks.check(unwritableSamples.get() > 0, "转发因为通道不可写暂停过 (" + unwritableSamples.get() + " 次采样)");
+			server.close().sync();
+		} finally {
+			group.shutdownGracefully();
+			upstream.stop(0);
+		}
+		System.out.println("StreamBackpressureTest: OK");
+		System.exit(0);
+	}
+
+	/**
+	 * 	和 forwardRequestToLlamaCpp 一样打开上游连接后交给 handleProxyResponse，同时采样通道的写缓冲。
+	 */
+	private static void relay(OpenAIService service, ChannelHandlerContext ctx, URI upstream) {
+		Channel channel = ctx.channel();
+		Thread sampler = Thread.ofVirtual().start(() -> {
+			while (channel.isActive()) {
+				ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+				if (buffer != null) {
+					maxPending.accumulateAndGet(buffer.totalPendingWriteBytes(), Math::max);
+				}
+				if (!channel.isWritable()) {
+					unwritableSamples.incrementAndGet();
+				}
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+		try {
+			HttpURLConnection connection = (HttpURLConnection) upstream.toURL().openConnection();
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write("{\"stream\":true}".getBytes(StandardCharsets.UTF_8));
+			}
+			service.handleProxyResponse(ctx, connection, connection.getResponseCode(), true, "fake-model");
+			ctx.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			sampler.interrupt();
+		}
+	}
+
+	/**
+	 * 	接收缓冲很小的客户端，每次读一点就停一下。
+	 */
+	private static String readSlowly(int port) throws Exception {
+		try (Socket socket = new Socket()) {
+			socket.setReceiveBufferSize(4 * 1024);
+			socket.connect(new InetSocketAddress("127.0.0.1", port));
+			OutputStream out = socket.getOutputStream();
+			out.write(("POST /v1/chat/completions HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Type: application/json\r\n"
+					+ "Content-Length: 2\r\nConnection: close\r\n\r\n{}").getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			InputStream in = socket.getInputStream();
+			ByteArrayOutputStream all = new ByteArrayOutputStream();
+			byte[] buf = new byte[2048];
+			int n;
+			int reads = 0;
+			while ((n = in.read(buf)) > 0) {
+				all.write(buf, 0, n);
+				if (++reads % 4 == 0) {
+					Thread.sleep(1);
+				}
+			}
+			return all.toString(StandardCharsets.UTF_8);
+		}
+	}
+
+	private static void serve(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			exchange.getRequestBody().readAllBytes();
+			exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+			exchange.sendResponseHeaders(200, 0);
+			OutputStream out = exchange.getResponseBody();
+			for (int i = 0; i < TOKENS; i++) {
+				String line = "data: {\"choices\":[{\"index\":0,\"delta\":{\"content\":\"tok-" + i + " \"}}]}\n\n";
+				out.write(line.getBytes(StandardCharsets.UTF_8));
+			}
+			out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			// 转发端提前断开
+		}
+	}
+}
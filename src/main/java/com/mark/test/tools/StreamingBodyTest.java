@@ -0,0 +1,339 @@
+package com.mark.test.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mark.llamacpp.server.LlamaHubNode;
+import org.mark.llamacpp.server.NodeManager;
+import org.mark.llamacpp.server.channel.NettyTransport;
+import org.mark.llamacpp.server.channel.OpenAIChatStreamingHandler;
+import org.mark.llamacpp.server.service.StreamingEndpoint;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * 	流式请求体的检查。一个假的上游（远程节点）只计算收到的请求体的哈希，前面是接管全部 {@link StreamingEndpoint} 的 Netty 端口，
+ * 	聚合器只有 1MB，请求体被聚合就会失败：
+ * 	<ul>
+ * 	<li>200MB 的 embeddings 请求边收边发，上游收到的字节和预期一致，客户端还没发完上游就已经在收；</li>
+ * 	<li>上游不读的时候暂停读取客户端，同一个事件循环上的其它请求照常响应；</li>
+ * 	<li>Anthropic /v1/messages 按条转换成 chat/completions，带上节点的密钥，响应转换回 Anthropic 格式；</li>
+ * 	<li>聊天补全的大请求体先缓冲再转发。</li>
+ * 	</ul>
+ * 	要在限制堆大小的情况下运行（比如 -Xmx64m），工作目录会写入节点配置，不要在仓库里运行。
+ */
+public class StreamingBodyTest {
+
+	private static final long EMBEDDING_BYTES = 200L * 1024 * 1024;
+	private static final long CHAT_BYTES = 32L * 1024 * 1024;
+	private static final String NODE_ID = "streaming-body-test";
+
+	private static final Map<String, JsonObject> received = new ConcurrentHashMap<>();
+	private static final AtomicLong upstreamBytes = new AtomicLong();
+	private static volatile long stallMillis;
+
+	public static void main(String[] args) throws Exception {
+		long maxHeap = Runtime.getRuntime().maxMemory();
+		System.out.println("最大堆: " + maxHeap / 1024 / 1024 + " MB");
+		Checks.check(maxHeap < EMBEDDING_BYTES, "最大堆小于请求体");
+
+		HttpServer upstream = startUpstream();
+		LlamaHubNode node = new LlamaHubNode();
+		node.setNodeId(NODE_ID);
+		node.setName(NODE_ID);
+		node.setBaseUrl("http://127.0.0.1:" + upstream.getAddress().getPort());
+		node.setApiKey("node-key");
+		node.setEnabled(true);
+		NodeManager.getInstance().addNode(node);
+		Channel server = null;
+		try {
+			int port = freePort();
+			server = NettyTransport.getInstance().bind("StreamingBodyTest", port, null, (ch, pipeline) -> {
+				pipeline.addLast(new HttpServerCodec())
+						.addLast(new OpenAIChatStreamingHandler(EnumSet.allOf(StreamingEndpoint.class)))
+						.addLast(new HttpObjectAggregator(1024 * 1024))
+						.addLast(new PingHandler());
+			}).sync().channel();
+			String base = "http://127.0.0.1:" + port;
+			HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+			// 1. 200MB embeddings，上游先停 2 秒不读
+			stallMillis = 2000;
+			upstreamBytes.set(0);
+			String head = "{\"model\":\"m\",\"nodeId\":\"" + NODE_ID + "\",\"input\":";
+			GeneratedBody body = new GeneratedBody(head, EMBEDDING_BYTES, "}");
+			long start = System.currentTimeMillis();
+			CompletableFuture<HttpResponse<String>> future = client.sendAsync(
+					HttpRequest.newBuilder(URI.create(base + "/v1/embeddings")).timeout(Duration.ofMinutes(5))
+							.POST(HttpRequest.BodyPublishers.ofInputStream(() -> body)).build(),
+					HttpResponse.BodyHandlers.ofString());
+			Thread.sleep(800);
+			long t = System.currentTimeMillis();
+			HttpResponse<String> ping = client.send(HttpRequest.newBuilder(URI.create(base + "/ping")).timeout(Duration.ofSeconds(5)).build(),
+					HttpResponse.BodyHandlers.ofString());
+			long pingMillis = System.currentTimeMillis() - t;
+			Checks.check(ping.statusCode() == 200 && pingMillis < 1000, "上游不读时其它请求照常响应: " + pingMillis + " ms");
+			HttpResponse<String> response = future.get();
+			long elapsed = System.currentTimeMillis() - start;
+			Checks.check(response.statusCode() == 200, "embeddings 返回 200: " + response.body());
+			JsonObject got = received.get("/v1/embeddings");
+			String expected = body.expectedForwardSha("{\"input\":", ",\"model\":\"m\"}");
+			Checks.check(got != null && expected.equals(got.get("sha").getAsString()), "上游收到的 " + got.get("bytes").getAsLong() / 1024 / 1024 + " MB 和预期一致");
+			Checks.check(body.upstreamBytesAtHalf > 0, "客户端发到一半时上游已经收到 " + body.upstreamBytesAtHalf / 1024 / 1024 + " MB");
+			System.out.printf("200MB 用时 %.1f 秒%n", elapsed / 1000.0);
+
+			// 2. Anthropic，按条转换
+			stallMillis = 0;
+			String anthropic = """
+					{"model":"claude-test","nodeId":"%s","max_tokens":64,
+					 "system":"be brief",
+					 "messages":[
+					  {"role":"user","content":"hi"},
+					  {"role":"assistant","content":[{"type":"text","text":"calling"},{"type":"tool_use","id":"t1","name":"f","input":{"a":1}}]},
+					  {"role":"user","content":[{"type":"tool_result","tool_use_id":"t1","content":"42"},{"type":"text","text":"next"}]}
+					 ],
+					 "tools":[{"name":"f","description":"d","input_schema":{"type":"object"}}]}
+					""".formatted(NODE_ID);
+			HttpResponse<String> messages = client.send(HttpRequest.newBuilder(URI.create(base + "/v1/messages"))
+					.header("x-api-key", "client-key").header("anthropic-version", "2023-06-01")
+					.POST(HttpRequest.BodyPublishers.ofString(anthropic)).build(), HttpResponse.BodyHandlers.ofString());
+			Checks.check(messages.statusCode() == 200, "/v1/messages 返回 200: " + messages.body());
+			JsonObject oai = received.get("/v1/chat/completions");
+			JsonObject forwarded = JsonParser.parseString(oai.get("body").getAsString()).getAsJsonObject();
+			JsonArray oaiMessages = forwarded.getAsJsonArray("messages");
+			StringBuilder roles = new StringBuilder();
+			for (int i = 0; i < oaiMessages.size(); i++) {
+				roles.append(oaiMessages.get(i).getAsJsonObject().get("role").getAsString()).append(' ');
+			}
+			Checks.check("system user assistant user tool ".equals(roles.toString()), "消息按条转换: " + roles.toString().trim());
+			Checks.check(oaiMessages.get(2).getAsJsonObject().has("tool_calls") && forwarded.has("tools") && !forwarded.has("nodeId")
+					&& !forwarded.has("system"), "tool_use 转成 tool_calls，tools 转换，去掉 nodeId 和 system");
+			Checks.check("Bearer node-key".equals(oai.get("authorization").getAsString()), "远程节点带上节点的密钥");
+			JsonObject reply = JsonParser.parseString(messages.body()).getAsJsonObject();
+			Checks.check("message".equals(reply.get("type").getAsString()), "响应转换回 Anthropic 格式");
+
+			// 3. 聊天补全的大请求体先缓冲
+			String chatHead = "{\"model\":\"m\",\"nodeId\":\"" + NODE_ID + "\",\"messages\":[{\"role\":\"user\",\"content\":";
+			GeneratedBody chatBody = new GeneratedBody(chatHead, CHAT_BYTES, "}]}");
+			HttpResponse<String> chat = client.send(HttpRequest.newBuilder(URI.create(base + "/v1/chat/completions"))
+					.POST(HttpRequest.BodyPublishers.ofInputStream(() -> chatBody)).build(), HttpResponse.BodyHandlers.ofString());
+			Checks.check(chat.statusCode() == 200, "聊天补全返回 200");
+			String chatExpected = chatBody.expectedForwardSha("{\"messages\":[{\"role\":\"user\",\"content\":", "}],\"model\":\"m\"}");
+			Checks.check(chatExpected.equals(received.get("/v1/chat/completions").get("sha").getAsString()), "聊天补全上游收到的字节和预期一致");
+
+			// 4. 坏请求体返回 400，连接上剩下的请求体丢掉
+			HttpResponse<String> bad = client.send(HttpRequest.newBuilder(URI.create(base + "/v1/completions"))
+					.POST(HttpRequest.BodyPublishers.ofString("{\"model\":\"m\",\"nodeId\":\"" + NODE_ID + "\",\"prompt\":\"x\" \"oops\"}")).build(), HttpResponse.BodyHandlers.ofString());
+			Checks.check(bad.statusCode() == 400, "坏请求体返回 400: " + bad.statusCode() + " " + bad.body());
+			Checks.check(client.send(HttpRequest.newBuilder(URI.create(base + "/ping")).build(), HttpResponse.BodyHandlers.ofString()).statusCode() == 200,
+					"之后的请求正常");
+		} finally {
+			NodeManager.getInstance().removeNode(NODE_ID);
+			if (server != null) {
+				server.close().sync();
+			}
+			upstream.stop(0);
+		}
+		System.out.println("StreamingBodyTest: OK");
+		System.exit(0);
+	}
+
+	/**
+	 * 	假的上游：按路径记录请求体的哈希和大小，小请求体原样记下来。
+	 */
+	private static HttpServer startUpstream() throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			try {
+				if (stallMillis > 0) {
+					Thread.sleep(stallMillis);
+				}
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				StringBuilder small = new StringBuilder();
+				long total = 0;
+				byte[] buffer = new byte[64 * 1024];
+				try (InputStream in = exchange.getRequestBody()) {
+					int n;
+					while ((n = in.read(buffer)) > 0) {
+						digest.update(buffer, 0, n);
+						if (total < 64 * 1024) {
+							small.append(new String(buffer, 0, n, StandardCharsets.UTF_8));
+						}
+						total += n;
+						upstreamBytes.addAndGet(n);
+					}
+				}
+				String path = exchange.getRequestURI().getPath();
+				JsonObject record = new JsonObject();
+				record.addProperty("sha", HexFormat.of().formatHex(digest.digest()));
+				record.addProperty("bytes", total);
+				record.addProperty("body", total < 64 * 1024 ? small.toString() : "");
+				String auth = exchange.getRequestHeaders().getFirst("Authorization");
+				record.addProperty("authorization", auth == null ? "" : auth);
+				received.put(path, record);
+				String response = path.contains("chat/completions")
+						? "{\"id\":\"c1\",\"object\":\"chat.completion\",\"model\":\"m\",\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\"ok\"},\"finish_reason\":\"stop\"}],\"usage\":{\"prompt_tokens\":1,\"completion_tokens\":1,\"total_tokens\":2}}"
+						: "{\"object\":\"list\",\"data\":[]}";
+				byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, bytes.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(bytes);
+				}
+			} catch (IOException e) {
+				// 请求体出错时转发方会断开连接
+			} catch (Exception e) {
+				e.printStackTrace();
+				exchange.sendResponseHeaders(500, -1);
+			} finally {
+				exchange.close();
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		return server;
+	}
+
+	/**
+	 * 	按需生成的请求体：head + 一个很长的 JSON 字符串 + tail，不占内存。
+	 */
+	private static class GeneratedBody extends InputStream {
+
+		private final byte[] head;
+		private final byte[] tail;
+		private final long valueBytes;
+		private final long total;
+		private long position;
+		private volatile long upstreamBytesAtHalf = -1;
+
+		private GeneratedBody(String head, long valueBytes, String tail) {
+			this.head = head.getBytes(StandardCharsets.UTF_8);
+			this.tail = tail.getBytes(StandardCharsets.UTF_8);
+			this.valueBytes = valueBytes;
+			this.total = this.head.length + valueBytes + this.tail.length;
+		}
+
+		/**
+		 * 	值的第 i 个字节：引号括起来的一串字母，中间夹着转义的引号
+		 */
+		private static int valueByte(long i, long length) {
+			if (i == 0 || i == length - 1) {
+				return '"';
+			}
+			long k = i % 1000;
+			if (k == 500) {
+				return '\\';
+			}
+			if (k == 501) {
+				return '"';
+			}
+			return 'a' + (int) (i % 26);
+		}
+
+		private int byteAt(long p) {
+			if (p < this.head.length) {
+				return this.head[(int) p];
+			}
+			p -= this.head.length;
+			if (p < this.valueBytes) {
+				return valueByte(p, this.valueBytes);
+			}
+			return this.tail[(int) (p - this.valueBytes)];
+		}
+
+		@Override
+		public int read() {
+			if (this.position >= this.total) {
+				return -1;
+			}
+			return this.byteAt(this.position++);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (this.position >= this.total) {
+				return -1;
+			}
+			int n = (int) Math.min(len, this.total - this.position);
+			for (int i = 0; i < n; i++) {
+				b[off + i] = (byte) this.byteAt(this.position++);
+			}
+			if (this.upstreamBytesAtHalf < 0 && this.position >= this.total / 2) {
+				this.upstreamBytesAtHalf = upstreamBytes.get();
+			}
+			return n;
+		}
+
+		/**
+		 * 	转发后的请求体 = forwardHead + 原样的值 + forwardTail
+		 */
+		private String expectedForwardSha(String forwardHead, String forwardTail) throws Exception {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(forwardHead.getBytes(StandardCharsets.UTF_8));
+			byte[] buffer = new byte[64 * 1024];
+			long p = 0;
+			while (p < this.valueBytes) {
+				int n = (int) Math.min(buffer.length, this.valueBytes - p);
+				for (int i = 0; i < n; i++) {
+					buffer[i] = (byte) valueByte(p + i, this.valueBytes);
+				}
+				digest.update(buffer, 0, n);
+				p += n;
+			}
+			digest.update(forwardTail.getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(digest.digest());
+		}
+	}
+
+	/**
+	 * 	没被接管的请求：GET /ping 返回 200。
+	 */
+	private static class PingHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+			FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+					Unpooled.copiedBuffer("pong", StandardCharsets.UTF_8));
+			response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 4);
+			ctx.writeAndFlush(response);
+		}
+	}
+
+	private static int freePort() throws Exception {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
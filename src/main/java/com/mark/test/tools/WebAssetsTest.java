@@ -0,0 +1,157 @@
+package com.mark.test.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.mark.llamacpp.server.channel.BasicRouterHandler;
+import org.mark.llamacpp.server.channel.WebAssets;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * 	内置网页资源内存表的检查，经过 BasicRouterHandler 请求：
+ * 	<ul>
+ * 	<li>resources/web 下每个文件都能取到，原样和 gzip 解压后的字节都和磁盘上的一致；</li>
+ * 	<li>带上一次的 ETag 请求返回 304，没有响应体；</li>
+ * 	<li>文本资源的压缩率；</li>
+ * 	<li>带内容哈希的文件长期缓存，其余的每次重新验证；首页按 UA 区分，目录 403，不存在 404。</li>
+ * 	</ul>
+ * 	运行时 classpath 要包含 src/main/resources。
+ */
+public class WebAssetsTest {
+
+	private static final Path WEB = Paths.get("src/main/resources/web");
+
+	public static void main(String[] args) throws Exception {
+		Path web = args.length > 0 ? Paths.get(args[0]) : WEB;
+		WebAssets assets = WebAssets.getInstance();
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(web)) {
+			files = walk.filter(Files::isRegularFile).toList();
+		}
+		Checks.check(assets.size() == files.size(), "加载了全部 " + files.size() + " 个文件 (" + assets.size() + ")");
+
+		// 1. 每个文件的字节
+		int gzipped = 0;
+		boolean same = true;
+		for (Path file : files) {
+			String path = "/" + web.relativize(file).toString().replace('\\', '/');
+			byte[] expected = Files.readAllBytes(file);
+			FullHttpResponse plain = exchange(path, Map.of());
+			FullHttpResponse gz = exchange(path, Map.of("Accept-Encoding", "gzip, deflate, br"));
+			byte[] plainBody = ByteBufUtil.getBytes(plain.content());
+			byte[] gzBody = ByteBufUtil.getBytes(gz.content());
+			if ("gzip".equals(gz.headers().get(HttpHeaderNames.CONTENT_ENCODING))) {
+				gzipped++;
+				gzBody = gunzip(gzBody);
+			}
+			if (!plain.status().equals(HttpResponseStatus.OK) || plain.headers().contains(HttpHeaderNames.CONTENT_ENCODING)
+					|| !Arrays.equals(plainBody, expected) || !Arrays.equals(gzBody, expected)) {
+				System.out.println("内容不一致: " + path);
+				same = false;
+			}
+			plain.release();
+			gz.release();
+		}
+		Checks.check(same, "原样和解压后的字节都和磁盘上的一致");
+		Checks.check(gzipped > 0, gzipped + " 个文件有 gzip 版本");
+		double ratio = (double) assets.getCompressedBytes() / assets.getRawBytes();
+		System.out.printf("原始 %d KB，压缩后 %d KB，比例 %.2f%n", assets.getRawBytes() / 1024, assets.getCompressedBytes() / 1024, ratio);
+		Checks.check(ratio < 0.5, "整体压缩到一半以下");
+		WebAssets.Asset tex = assets.get("/js/tex-svg.js");
+		Checks.check(tex.getCompressedSize() > 0 && tex.getCompressedSize() < tex.getSize() / 3,
+				"tex-svg.js " + tex.getSize() / 1024 + " KB -> " + tex.getCompressedSize() / 1024 + " KB");
+		Checks.check(assets.get("/icon/qwen.png").getCompressedSize() == -1, "png 不再压缩");
+
+		// 2. ETag 和 304
+		FullHttpResponse first = exchange("/js/model-list.js", Map.of("Accept-Encoding", "gzip"));
+		String etag = first.headers().get(HttpHeaderNames.ETAG);
+		Checks.check(etag != null && "no-cache".equals(first.headers().get(HttpHeaderNames.CACHE_CONTROL))
+				&& "accept-encoding".equalsIgnoreCase(first.headers().get(HttpHeaderNames.VARY)), "普通文件每次重新验证: ETag " + etag);
+		first.release();
+		FullHttpResponse again = exchange("/js/model-list.js", Map.of("Accept-Encoding", "gzip", "If-None-Match", etag));
+		Checks.check(again.status().equals(HttpResponseStatus.NOT_MODIFIED) && again.content().readableBytes() == 0
+				&& etag.equals(again.headers().get(HttpHeaderNames.ETAG)), "带 ETag 再次请求返回 304，没有响应体");
+		again.release();
+		FullHttpResponse plainAgain = exchange("/js/model-list.js", Map.of("If-None-Match", "\"other\", W/" + etag));
+		Checks.check(plainAgain.status().equals(HttpResponseStatus.NOT_MODIFIED), "不压缩的请求拿压缩版本的 ETag 也返回 304");
+		plainAgain.release();
+		FullHttpResponse changed = exchange("/js/model-list.js", Map.of("If-None-Match", "\"other\""));
+		Checks.check(changed.status().equals(HttpResponseStatus.OK) && changed.content().readableBytes() > 0, "ETag 不同时返回完整内容");
+		changed.release();
+		FullHttpResponse refused = exchange("/js/model-list.js", Map.of("Accept-Encoding", "gzip;q=0, identity"));
+		Checks.check(!refused.headers().contains(HttpHeaderNames.CONTENT_ENCODING), "gzip;q=0 时不压缩");
+		refused.release();
+
+		// 3. 缓存规则和路径
+		String font = Files.list(web.resolve("woff2")).findFirst().get().getFileName().toString();
+		FullHttpResponse fingerprinted = exchange("/woff2/" + font, Map.of());
+		Checks.check(fingerprinted.headers().get(HttpHeaderNames.CACHE_CONTROL).contains("immutable"), "带内容哈希的 " + font + " 长期缓存");
+		fingerprinted.release();
+		FullHttpResponse versioned = exchange("/js/i18n.js?v=20260101", Map.of());
+		Checks.check(versioned.headers().get(HttpHeaderNames.CACHE_CONTROL).contains("immutable"), "带 ?v= 的请求长期缓存");
+		versioned.release();
+		FullHttpResponse root = exchange("/", Map.of());
+		FullHttpResponse mobile = exchange("/", Map.of("User-Agent", "Mozilla/5.0 (iPhone; CPU iPhone OS 17_0 like Mac OS X)"));
+		Checks.check(Arrays.equals(ByteBufUtil.getBytes(root.content()), Files.readAllBytes(web.resolve("index.html")))
+				&& Arrays.equals(ByteBufUtil.getBytes(mobile.content()), Files.readAllBytes(web.resolve("index-mobile.html")))
+				&& root.headers().get(HttpHeaderNames.CONTENT_TYPE).startsWith("text/html"), "首页按 UA 返回桌面版或移动版");
+		root.release();
+		mobile.release();
+		FullHttpResponse dir = exchange("/js/", Map.of());
+		FullHttpResponse missing = exchange("/js/missing.js", Map.of());
+		FullHttpResponse escape = exchange("/../web/index.html", Map.of());
+		Checks.check(dir.status().equals(HttpResponseStatus.FORBIDDEN) && missing.status().equals(HttpResponseStatus.NOT_FOUND)
+				&& escape.status().equals(HttpResponseStatus.NOT_FOUND), "目录 403，不存在和越界的路径 404");
+		dir.release();
+		missing.release();
+		escape.release();
+
+		System.out.println("WebAssetsTest: OK");
+		System.exit(0);
+	}
+
+	private static byte[] gunzip(byte[] data) throws IOException {
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+			return in.readAllBytes();
+		}
+	}
+
+	/**
+	 * 	把请求交给 BasicRouterHandler，等处理线程写出响应。
+	 */
+	private static FullHttpResponse exchange(String uri, Map<String, String> headers) throws InterruptedException {
+		EmbeddedChannel channel = new EmbeddedChannel(new BasicRouterHandler());
+		FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri, Unpooled.EMPTY_BUFFER);
+		headers.forEach((k, v) -> request.headers().set(k, v));
+		channel.writeInbound(request);
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (System.currentTimeMillis() < deadline) {
+			channel.runPendingTasks();
+			Object out = channel.readOutbound();
+			if (out instanceof FullHttpResponse response) {
+				channel.finishAndReleaseAll();
+				return response;
+			}
+			Thread.sleep(1);
+		}
+		throw new AssertionError("失败: 等不到 " + uri + " 的响应");
+	}
+}
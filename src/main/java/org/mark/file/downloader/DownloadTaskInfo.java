@@ -23,6 +23,8 @@ public class DownloadTaskInfo implements Serializable {
 	private int partsCompleted;
 	private double progressRatio;
 	private String errorMessage;
+	private String expectedSha256;
+	private String sha256;
 
 	public DownloadTaskInfo() {
 	}
@@ -47,9 +49,12 @@ public class DownloadTaskInfo implements Serializable {
 	}
 
 	public DownloadTaskInfo copy() {
-		return new DownloadTaskInfo(this.taskId, this.sourceUrl, this.targetPath, this.threadCount, this.status,
+		DownloadTaskInfo copy = new DownloadTaskInfo(this.taskId, this.sourceUrl, this.targetPath, this.threadCount, this.status,
 				this.createdAt, this.updatedAt, this.finalUrl, this.totalBytes, this.downloadedBytes, this.partsTotal,
 				this.partsCompleted, this.progressRatio, this.errorMessage);
+		copy.expectedSha256 = this.expectedSha256;
+		copy.sha256 = this.sha256;
+		return copy;
 	}
 
 	public String getTaskId() {
@@ -163,4 +168,20 @@ public class DownloadTaskInfo implements Serializable {
 	public void setErrorMessage(String errorMessage) {
 		this.errorMessage = errorMessage;
 	}
+
+	public String getExpectedSha256() {
+		return expectedSha256;
+	}
+
+	public void setExpectedSha256(String expectedSha256) {
+		this.expectedSha256 = expectedSha256;
+	}
+
+	public String getSha256() {
+		return sha256;
+	}
+
+	public void setSha256(String sha256) {
+		this.sha256 = sha256;
+	}
 }
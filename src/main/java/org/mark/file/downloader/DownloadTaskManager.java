@@ -20,6 +20,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import org.mark.llamacpp.gguf.GGUFMetadataCache;
+
 public class DownloadTaskManager implements Closeable {
 
 	private final Path cacheFile;
@@ -46,6 +48,13 @@ public class DownloadTaskManager implements Closeable {
 	}
 
 	public DownloadTaskInfo createTask(String sourceUrl, Path targetFile, int threadCount) throws IOException {
+		return createTask(sourceUrl, targetFile, threadCount, null);
+	}
+
+	/**
+	 * 	创建下载任务，expectedSha256 不为空时下载完成后校验 SHA-256（比如 Hugging Face LFS 的 oid）。
+	 */
+	public DownloadTaskInfo createTask(String sourceUrl, Path targetFile, int threadCount, String expectedSha256) throws IOException {
 		Objects.requireNonNull(sourceUrl, "sourceUrl");
 		Objects.requireNonNull(targetFile, "targetFile");
 		if (threadCount < 1) {
@@ -55,6 +64,7 @@ public class DownloadTaskManager implements Closeable {
 		String taskId = UUID.randomUUID().toString();
 		DownloadTaskInfo task = new DownloadTaskInfo(taskId, sourceUrl, targetFile.toString(), threadCount, DownloadTaskStatus.PENDING,
 				now, now, null, -1L, 0L, threadCount, 0, 0D, null);
+		task.setExpectedSha256(expectedSha256);
 		this.taskStore.put(taskId, task);
 		persistToCache();
 		notifyStateChanged(task.copy(), null, DownloadTaskStatus.PENDING);
@@ -103,7 +113,7 @@ public class DownloadTaskManager implements Closeable {
 		Path targetPath = Path.of(task.getTargetPath());
 		Future<?> future = this.workerPool.submit(() -> {
 			try {
-				SimpleHttpDownloader.DownloadResult result = downloader.download(task.getSourceUrl(), targetPath);
+				SimpleHttpDownloader.DownloadResult result = downloader.download(task.getSourceUrl(), targetPath, task.getExpectedSha256());
 				DownloadTaskInfo snapshot;
 				synchronized (task) {
 					task.setStatus(DownloadTaskStatus.COMPLETED);
@@ -113,10 +123,15 @@ public class DownloadTaskManager implements Closeable {
 					task.setPartsCompleted(result.parts());
 					task.setPartsTotal(result.parts());
 					task.setProgressRatio(1D);
+					task.setSha256(result.sha256());
 					task.setErrorMessage(null);
 					task.setUpdatedAt(System.currentTimeMillis());
 					snapshot = task.copy();
 				}
+				if (result.sha256() != null) {
+					// 记下校验过的值，之后再校验同一个文件时不用重新计算
+					GGUFMetadataCache.getInstance().putSha256(targetPath.toFile(), result.sha256());
+				}
 				notifyStateChanged(snapshot, DownloadTaskStatus.RUNNING, DownloadTaskStatus.COMPLETED);
 				try {
 					handlePostDownloadExtraction(snapshot);
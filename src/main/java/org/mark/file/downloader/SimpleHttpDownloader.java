@@ -8,9 +8,11 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -24,6 +26,8 @@ import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.mark.llamacpp.download.Sha256Hasher;
+
 public class SimpleHttpDownloader {
 
 	private static final int DEFAULT_TIMEOUT_MS = 30_000;
@@ -65,8 +69,27 @@ public class SimpleHttpDownloader {
 	}
 
 	public DownloadResult download(String sourceUrl, Path targetFile) throws IOException {
+		return download(sourceUrl, targetFile, null);
+	}
+
+	/**
+	 * 	下载文件，给出期望的 SHA-256 时边下载边计算，完成后比对，不一致时删除已下载的内容并抛出异常。
+	 * @param sourceUrl
+	 * @param targetFile
+	 * @param expectedSha256 比如 Hugging Face LFS 的 oid，可以带 "sha256:" 前缀；null 表示不校验
+	 * @return
+	 * @throws IOException
+	 */
+	public DownloadResult download(String sourceUrl, Path targetFile, String expectedSha256) throws IOException {
 		Objects.requireNonNull(sourceUrl, "sourceUrl");
 		Objects.requireNonNull(targetFile, "targetFile");
+		String expected = null;
+		if (expectedSha256 != null && !expectedSha256.isBlank()) {
+			expected = Sha256Hasher.normalize(expectedSha256);
+			if (expected == null) {
+				throw new IllegalArgumentException("不是有效的SHA-256: " + expectedSha256);
+			}
+		}
 		this.stopRequested = false;
 
 		ProbeResult probe = probe(sourceUrl);
@@ -93,6 +116,7 @@ public class SimpleHttpDownloader {
 		if (!resumed) {
 			initFreshTempFile(tempFile, metadataFile, probe.contentLength);
 		}
+		Sha256Hasher hasher = expected != null ? new Sha256Hasher() : null;
 		boolean restartedAsSingle = false;
 		while (true) {
 			MetadataStore metadataStore = new MetadataStore(metadataFile, probe.finalUrl, probe.contentLength, probe.etag,
@@ -102,13 +126,21 @@ public class SimpleHttpDownloader {
 			fireProgress(tracker.snapshot());
 			try {
 				if (rangeStates.size() == 1) {
-					downloadRange(probe.finalUrl, tempFile, rangeStates.get(0), tracker);
+					downloadRange(probe.finalUrl, tempFile, rangeStates.get(0), tracker, hasher);
 				} else {
-					ExecutorService executor = Executors.newFixedThreadPool(rangeStates.size());
-					try {
+					ExecutorService executor = Executors.newFixedThreadPool(rangeStates.size() + (hasher != null ? 1 : 0));
+					try (FileChannel hashChannel = hasher != null ? FileChannel.open(tempFile, StandardOpenOption.READ) : null) {
 						List<Future<Void>> futures = new ArrayList<>();
+						if (hasher != null) {
+							// 第一个分段按顺序到达时直接计入，其余的跟在连续写完的前缀后面从文件读回来
+							List<RangeState> states = rangeStates;
+							futures.add(executor.submit(() -> {
+								hasher.follow(hashChannel, () -> committedPrefix(states, probe.contentLength), () -> allCompleted(states));
+								return null;
+							}));
+						}
 						for (RangeState rangeState : rangeStates) {
-							futures.add(executor.submit(new RangeTask(probe.finalUrl, tempFile, rangeState, tracker)));
+							futures.add(executor.submit(new RangeTask(probe.finalUrl, tempFile, rangeState, tracker, hasher)));
 						}
 						for (Future<Void> future : futures) {
 							future.get();
@@ -133,20 +165,36 @@ public class SimpleHttpDownloader {
 				ensureNotStopped();
 				tracker.forceEmit();
 				metadataStore.persist();
+				String sha256 = null;
+				if (hasher != null) {
+					sha256 = hasher.finish(tempFile, probe.contentLength);
+					if (!expected.equals(sha256)) {
+						// 内容已经不可信，下次从头下载
+						Files.deleteIfExists(metadataFile);
+						Files.deleteIfExists(tempFile);
+						throw new IOException("SHA-256校验失败，期望: " + expected + " 实际: " + sha256);
+					}
+				}
 				Files.move(tempFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
 				Files.deleteIfExists(metadataFile);
-				return new DownloadResult(probe.finalUrl, targetFile, probe.contentLength, rangeStates.size());
+				return new DownloadResult(probe.finalUrl, targetFile, probe.contentLength, rangeStates.size(), sha256);
 			} catch (RetryAsSingleDownloadException e) {
 				metadataStore.persistQuietly();
 				if (restartedAsSingle) {
 					throw e;
 				}
 				restartedAsSingle = true;
+				if (hasher != null) {
+					hasher.reset();
+				}
 				ranges = splitRanges(probe.contentLength, 1);
 				rangeStates = createRangeStates(ranges);
 				initFreshTempFile(tempFile, metadataFile, probe.contentLength);
 			} catch (IOException e) {
-				metadataStore.persistQuietly();
+				// 校验失败时临时文件已经删掉，不再写回进度
+				if (Files.exists(tempFile)) {
+					metadataStore.persistQuietly();
+				}
 				throw e;
 			}
 		}
@@ -244,7 +292,7 @@ public class SimpleHttpDownloader {
 		return connection;
 	}
 
-	private void downloadRange(String finalUrl, Path tempFile, RangeState rangeState, DownloadTracker tracker) throws IOException {
+	private void downloadRange(String finalUrl, Path tempFile, RangeState rangeState, DownloadTracker tracker, Sha256Hasher hasher) throws IOException {
 		long current = rangeState.currentOffset();
 		if (current > rangeState.end()) {
 			return;
@@ -280,6 +328,9 @@ public class SimpleHttpDownloader {
 						}
 						int writable = (int) Math.min(remaining, read);
 						raf.write(buffer, 0, writable);
+						if (hasher != null) {
+							hasher.offer(current, buffer, 0, writable);
+						}
 						current += writable;
 						rangeState.onBytes(writable);
 						tracker.onBytes(writable);
@@ -339,6 +390,27 @@ public class SimpleHttpDownloader {
 		return ranges;
 	}
 
+	/**
+	 * 	从文件开头起已经连续写完的字节数。
+	 */
+	private static long committedPrefix(List<RangeState> rangeStates, long contentLength) {
+		for (RangeState state : rangeStates) {
+			if (!state.isCompleted()) {
+				return state.currentOffset();
+			}
+		}
+		return contentLength;
+	}
+
+	private static boolean allCompleted(List<RangeState> rangeStates) {
+		for (RangeState state : rangeStates) {
+			if (!state.isCompleted()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private static Path buildTempFile(Path targetFile) {
 		return targetFile.resolveSibling(targetFile.getFileName().toString() + ".downloading");
 	}
@@ -526,17 +598,19 @@ public class SimpleHttpDownloader {
 		private final Path tempFile;
 		private final RangeState rangeState;
 		private final DownloadTracker tracker;
+		private final Sha256Hasher hasher;
 
-		private RangeTask(String finalUrl, Path tempFile, RangeState rangeState, DownloadTracker tracker) {
+		private RangeTask(String finalUrl, Path tempFile, RangeState rangeState, DownloadTracker tracker, Sha256Hasher hasher) {
 			this.finalUrl = finalUrl;
 			this.tempFile = tempFile;
 			this.rangeState = rangeState;
 			this.tracker = tracker;
+			this.hasher = hasher;
 		}
 
 		@Override
 		public Void call() throws Exception {
-			downloadRange(this.finalUrl, this.tempFile, this.rangeState, this.tracker);
+			downloadRange(this.finalUrl, this.tempFile, this.rangeState, this.tracker, this.hasher);
 			return null;
 		}
 	}
@@ -730,7 +804,10 @@ public class SimpleHttpDownloader {
 
 	public record ProbeResult(String finalUrl, long contentLength, boolean rangeSupported, String etag, String lastModified) {}
 
-	public record DownloadResult(String finalUrl, Path targetFile, long contentLength, int parts) {}
+	/**
+	 * 	下载结果。sha256 是校验通过的值，没有要求校验时为 null。
+	 */
+	public record DownloadResult(String finalUrl, Path targetFile, long contentLength, int parts, String sha256) {}
 
 	public static void main(String[] args) throws Exception {
 		if (args.length < 2) {
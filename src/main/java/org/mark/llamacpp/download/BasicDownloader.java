@@ -13,12 +13,13 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -35,8 +36,9 @@ import java.util.concurrent.atomic.AtomicLong;
 import org.mark.llamacpp.download.struct.DownloadProgress;
 import org.mark.llamacpp.download.struct.DownloadState;
 import org.mark.llamacpp.download.struct.Part;
-import org.mark.llamacpp.download.struct.PartDownloadTask;
-import org.mark.llamacpp.download.struct.PartWithFile;
+import org.mark.llamacpp.download.struct.RangeDownloadTask;
+import org.mark.llamacpp.download.struct.RangeJournal;
+import org.mark.llamacpp.gguf.GGUFMetadataCache;
 
 /**
  * 	基本下载器的实现。本来想自己改的，做了一半背疼。画了个工作流程让AI自己做了。
@@ -48,6 +50,11 @@ public class BasicDownloader {
 	 */
 	private static final String DOWNLOADING_SUFFIX = "downloading";
 	
+	/**
+	 * 	分段进度记录的后缀名
+	 */
+	private static final String JOURNAL_SUFFIX = "ranges";
+	
 	/**
 	 * 	输入的原始地址
 	 */
@@ -77,6 +84,18 @@ public class BasicDownloader {
 	private String etag;
 	boolean rangeSupported;
 	
+	/**
+	 * 	期望的 SHA-256（比如 Hugging Face LFS 的 oid），为空时不校验
+	 */
+	private String expectedSha256;
+	
+	/**
+	 * 	校验通过后的 SHA-256
+	 */
+	private volatile String sha256;
+	
+	private volatile Sha256Hasher hasher;
+	
 	private final HttpClient httpClient;
 	
 	private final AtomicLong downloadedBytes = new AtomicLong(0);
@@ -188,6 +207,34 @@ public class BasicDownloader {
 		return this.rangeSupported;
 	}
 	
+	/**
+	 * 	设置期望的 SHA-256，下载完成后校验，不一致时下载失败并删除已下载的内容。
+	 * @param expectedSha256 可以带 "sha256:" 前缀，null 表示不校验
+	 */
+	public void setExpectedSha256(String expectedSha256) {
+		if (expectedSha256 == null || expectedSha256.isBlank()) {
+			this.expectedSha256 = null;
+			return;
+		}
+		String normalized = Sha256Hasher.normalize(expectedSha256);
+		if (normalized == null) {
+			throw new IllegalArgumentException("不是有效的SHA-256: " + expectedSha256);
+		}
+		this.expectedSha256 = normalized;
+	}
+	
+	public String getExpectedSha256() {
+		return this.expectedSha256;
+	}
+	
+	/**
+	 * 	校验通过的 SHA-256，没有校验或还没完成时为 null。
+	 * @return
+	 */
+	public String getSha256() {
+		return this.sha256;
+	}
+	
 	public DownloadState getState() {
 		return this.state;
 	}
@@ -273,7 +320,9 @@ public class BasicDownloader {
 			ensureParentDirectory(downloadingTargetFile);
 			Files.deleteIfExists(this.targetFile);
 			Files.deleteIfExists(downloadingTargetFile);
+			Files.deleteIfExists(toJournalFile(downloadingTargetFile));
 			deletePartFiles(downloadingTargetFile);
+			this.resetHasher();
 			
 			this.state = DownloadState.DOWNLOADING;
 			if (this.rangeSupported && this.parallelism > 1) {
@@ -283,10 +332,11 @@ public class BasicDownloader {
 			}
 			
 			this.state = DownloadState.VERIFYING;
-			this.verifyIntegrity();
+			this.verifyIntegrity(downloadingTargetFile);
 			
 			Path finalFile = removeLastExtension(downloadingTargetFile);
 			Files.move(downloadingTargetFile, finalFile, StandardCopyOption.REPLACE_EXISTING);
+			this.rememberSha256(finalFile);
 			this.state = DownloadState.COMPLETED;
 		} catch (InterruptedException e) {
 			this.state = DownloadState.IDLE;
@@ -341,18 +391,24 @@ public class BasicDownloader {
 				}
 			}
 			
+			this.resetHasher();
 			this.state = DownloadState.DOWNLOADING;
 			if (this.rangeSupported && this.parallelism > 1) {
 				this.resumeMultipart(downloadingTargetFile);
 			} else {
+				// 分段下载的文件是预分配过的，大小不代表进度，单线程无法接续
+				if (Files.deleteIfExists(toJournalFile(downloadingTargetFile))) {
+					Files.deleteIfExists(downloadingTargetFile);
+				}
 				this.resumeSingle(downloadingTargetFile);
 			}
 			
 			this.state = DownloadState.VERIFYING;
-			this.verifyIntegrity();
+			this.verifyIntegrity(downloadingTargetFile);
 			
 			Path finalFile = removeLastExtension(downloadingTargetFile);
 			Files.move(downloadingTargetFile, finalFile, StandardCopyOption.REPLACE_EXISTING);
+			this.rememberSha256(finalFile);
 			this.state = DownloadState.COMPLETED;
 		} catch (InterruptedException e) {
 			this.state = DownloadState.IDLE;
@@ -532,10 +588,13 @@ public class BasicDownloader {
 				this.activeResources.add(out);
 				byte[] buffer = new byte[1024 * 256];
 				int read;
+				long offset = existingFileSize;
 				try {
 					while ((read = in.read(buffer)) != -1) {
 						this.checkStop();
 						out.write(buffer, 0, read);
+						this.offerToHasher(offset, buffer, read);
+						offset += read;
 						this.downloadedBytes.addAndGet(read);
 					}
 				} catch (IOException e) {
@@ -578,113 +637,20 @@ public class BasicDownloader {
 	}
 	
 	/**
-	 * 	多线程断点续传
+	 * 	多线程断点续传。根据进度记录跳过已经写进目标文件的字节；记录缺失、损坏或与目标文件对不上时从头下载。
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
 	private void resumeMultipart(Path targetFile) throws IOException, InterruptedException {
-		this.downloadedBytes.set(0);
-		List<Part> parts = splitParts(this.contentLength, this.parallelism, this.minPartSizeBytes);
-		this.partsTotal.set(parts.size());
-		this.partsCompleted.set(0);
-		
-		// 检查已存在的分片文件
-		List<Path> partFiles = new ArrayList<>();
-		int completedParts = 0;
-		
-		for (int i = 0; i < parts.size(); i++) {
-			Path partFile = targetFile.resolveSibling(targetFile.getFileName().toString() + ".part" + i);
-			partFiles.add(partFile);
-			Part part = parts.get(i);
-			if (Files.exists(partFile)) {
-				long partSize = Files.size(partFile);
-				if (partSize == part.length()) {
-					// 分片已完成
-					completedParts++;
-					this.downloadedBytes.addAndGet(partSize);
-					this.partsCompleted.incrementAndGet();
-				} else if (partSize > 0 && partSize < part.length()) {
-					this.downloadedBytes.addAndGet(partSize);
-				} else {
-					// 分片不完整，需要重新下载
-					Files.deleteIfExists(partFile);
-				}
-			} else {
-				// 分片不存在，需要下载
-			}
-		}
+		// 旧版本留下的 .partN 分片文件无法接续到新的写入方式，直接丢弃
+		deletePartFiles(targetFile);
 		
-		// 如果所有分片都已完成，直接合并
-		if (completedParts == parts.size()) {
-			this.state = DownloadState.MERGING;
-			this.mergeParts(parts, partFiles, targetFile);
-			
-			for (Path p : partFiles) {
-				Files.deleteIfExists(p);
-			}
-			
-			long size = Files.size(targetFile);
-			if (size != this.contentLength) {
-				throw new IOException("下载文件大小不匹配，期望: " + this.contentLength + " 实际: " + size);
-			}
+		RangeJournal journal = RangeJournal.load(toJournalFile(targetFile), this.contentLength);
+		if (journal == null || !Files.exists(targetFile) || Files.size(targetFile) != this.contentLength) {
+			this.downloadMultipart(targetFile);
 			return;
 		}
-		
-		// 确保目标文件存在并预分配空间
-		if (!Files.exists(targetFile)) {
-			this.preAllocateTargetFile(targetFile, this.contentLength);
-		}
-		
-		// 下载剩余的分片
-		ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
-		this.activePool = pool;
-		try {
-			List<Future<Void>> futures = new ArrayList<>();
-			for (int i = 0; i < parts.size(); i++) {
-				Part part = parts.get(i);
-				Path partFile = partFiles.get(i);
-				
-				// 跳过已完成的分片
-				if (Files.exists(partFile) && Files.size(partFile) == part.length()) {
-					continue;
-				}
-				
-				futures.add(pool.submit(new PartDownloadTask(this.httpClient, this.finalUri, this.userAgent, this.requestTimeout, part, partFile, this.maxRetries, this.downloadedBytes, this.partsCompleted, this.stopRequested, this.activeResources)));
-			}
-			
-			for (Future<Void> f : futures) {
-				try {
-					f.get();
-				} catch (ExecutionException e) {
-					Throwable cause = e.getCause();
-					if (cause instanceof InterruptedException ie) {
-						throw ie;
-					}
-					if (cause instanceof IOException io) {
-						throw io;
-					}
-					if (cause instanceof RuntimeException re) {
-						throw re;
-					}
-					throw new IOException(cause);
-				}
-			}
-		} finally {
-			pool.shutdownNow();
-			this.activePool = null;
-		}
-		
-		this.state = DownloadState.MERGING;
-		this.mergeParts(parts, partFiles, targetFile);
-		
-		for (Path p : partFiles) {
-			Files.deleteIfExists(p);
-		}
-		
-		long size = Files.size(targetFile);
-		if (size != this.contentLength) {
-			throw new IOException("下载文件大小不匹配，期望: " + this.contentLength + " 实际: " + size);
-		}
+		this.runRanges(targetFile, journal);
 	}
 	
 	/**
@@ -822,6 +788,9 @@ public class BasicDownloader {
 
 			this.downloadedBytes.set(0);
 			Files.deleteIfExists(targetFile);
+			if (this.hasher != null) {
+				this.hasher.reset();
+			}
 
 			HttpRequest get = HttpRequest.newBuilder()
 					.uri(this.finalUri)
@@ -842,10 +811,13 @@ public class BasicDownloader {
 					this.activeResources.add(out);
 					byte[] buffer = new byte[1024 * 256];
 					int read;
+					long offset = 0;
 					try {
 						while ((read = in.read(buffer)) != -1) {
 							this.checkStop();
 							out.write(buffer, 0, read);
+							this.offerToHasher(offset, buffer, read);
+							offset += read;
 							this.downloadedBytes.addAndGet(read);
 						}
 					} catch (IOException e) {
@@ -890,23 +862,44 @@ public class BasicDownloader {
 	 */
 	private void downloadMultipart(Path targetFile) throws IOException, InterruptedException {
 		List<Part> parts = splitParts(this.contentLength, this.parallelism, this.minPartSizeBytes);
-		this.partsTotal.set(parts.size());
-		this.partsCompleted.set(0);
+		Files.deleteIfExists(targetFile);
 		this.preAllocateTargetFile(targetFile, this.contentLength);
+		RangeJournal journal = RangeJournal.create(toJournalFile(targetFile), this.contentLength, parts);
+		journal.save();
+		this.runRanges(targetFile, journal);
+	}
+	
+	/**
+	 * 	按进度记录下载所有未完成的分段。每个工作线程把数据按偏移直接写进目标文件，
+	 * 	写完自己的分段后窃取剩余最多的分段的后一半，全部完成后删除进度记录。
+	 * @param targetFile 已经预分配好大小的目标文件
+	 * @param journal
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void runRanges(Path targetFile, RangeJournal journal) throws IOException, InterruptedException {
+		this.downloadedBytes.set(journal.getWrittenBytes());
+		this.partsTotal.set(journal.getRangeCount());
+		this.partsCompleted.set(journal.getCompletedCount());
 		
-		List<Path> partFiles = new ArrayList<>();
-		for (int i = 0; i < parts.size(); i++) {
-			partFiles.add(targetFile.resolveSibling(targetFile.getFileName().toString() + ".part" + i));
-		}
+		// 线程数和记录里的分段数无关：分段多于线程时轮流领取，少于线程时（比如续传到最后几段）多出来的线程去窃取
+		int workers = Math.max(1, Math.min(this.parallelism, 64));
+		long minSplit = Math.max(1, Math.min(this.minPartSizeBytes, 1024L * 1024));
 		
 		ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
 		this.activePool = pool;
-		try {
+		Sha256Hasher hasher = this.hasher;
+		try (FileChannel channel = FileChannel.open(targetFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
 			List<Future<Void>> futures = new ArrayList<>();
-			for (int i = 0; i < parts.size(); i++) {
-				Part part = parts.get(i);
-				Path partFile = partFiles.get(i);
-				futures.add(pool.submit(new PartDownloadTask(this.httpClient, this.finalUri, this.userAgent, this.requestTimeout, part, partFile, this.maxRetries, this.downloadedBytes, this.partsCompleted, this.stopRequested, this.activeResources)));
+			if (hasher != null) {
+				// 按顺序到达的数据由工作线程直接计入，其余的跟在连续写完的前缀后面从文件读回来
+				futures.add(pool.submit(() -> {
+					hasher.follow(channel, journal::getCommittedPrefix, journal::isComplete);
+					return null;
+				}));
+			}
+			for (int i = 0; i < workers; i++) {
+				futures.add(pool.submit(new RangeDownloadTask(this.httpClient, this.finalUri, this.userAgent, this.requestTimeout, channel, journal, hasher, minSplit, this.maxRetries, this.downloadedBytes, this.partsTotal, this.partsCompleted, this.stopRequested, this.activeResources)));
 			}
 			
 			for (Future<Void> f : futures) {
@@ -929,14 +922,14 @@ public class BasicDownloader {
 		} finally {
 			pool.shutdownNow();
 			this.activePool = null;
+			// 暂停或失败时保留进度，下次续传从这里开始
+			journal.save();
 		}
 		
-		this.state = DownloadState.MERGING;
-		this.mergeParts(parts, partFiles, targetFile);
-		
-		for (Path p : partFiles) {
-			Files.deleteIfExists(p);
+		if (!journal.isComplete()) {
+			throw new IOException("仍有分段未下载完成");
 		}
+		journal.delete();
 		
 		long size = Files.size(targetFile);
 		if (size != this.contentLength) {
@@ -957,46 +950,29 @@ public class BasicDownloader {
 	}
 	
 	/**
-	 * 	将下载后的文件合并。
-	 * @param parts
-	 * @param partFiles
-	 * @param target
+	 * 	校验：远程文件的ETag没有变化，设置了期望的 SHA-256 时计算并比对。
+	 * @param file 下载好的文件
 	 * @throws IOException
+	 * @throws InterruptedException
 	 */
-	private void mergeParts(List<Part> parts, List<Path> partFiles, Path target) throws IOException {
-		List<PartWithFile> ordered = new ArrayList<>();
-		for (int i = 0; i < parts.size(); i++) {
-			ordered.add(new PartWithFile(parts.get(i), partFiles.get(i)));
+	private void verifyIntegrity(Path file) throws IOException, InterruptedException {
+		this.checkStop();
+		this.verifyEtag();
+		if (this.expectedSha256 == null) {
+			return;
 		}
-		ordered.sort(Comparator.comparingLong(p -> p.getPart().getStartInclusive()));
-		
-		try (RandomAccessFile raf = new RandomAccessFile(target.toString(), "rw")) {
-			for (PartWithFile pwf : ordered) {
-				long expected = pwf.getPart().length();
-				long actual = Files.size(pwf.getFile());
-				if (actual != expected) {
-					throw new IOException("分片大小不匹配: " + pwf.getFile().getFileName() + " 期望: " + expected + " 实际: " + actual);
-				}
-				
-				raf.seek(pwf.getPart().getStartInclusive());
-				try (InputStream in = new BufferedInputStream(Files.newInputStream(pwf.getFile()))) {
-					byte[] buffer = new byte[1024 * 256];
-					int read;
-					while ((read = in.read(buffer)) != -1) {
-						raf.write(buffer, 0, read);
-					}
-				}
-			}
+		Sha256Hasher hasher = this.hasher != null ? this.hasher : new Sha256Hasher();
+		String actual = hasher.finish(file, Files.size(file));
+		if (!this.expectedSha256.equals(actual)) {
+			// 内容已经不可信，下次从头下载
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(toJournalFile(file));
+			throw new IOException("SHA-256校验失败，期望: " + this.expectedSha256 + " 实际: " + actual);
 		}
+		this.sha256 = actual;
 	}
 	
-	/**
-	 * 	校验
-	 * @throws IOException
-	 * @throws InterruptedException
-	 */
-	private void verifyIntegrity() throws IOException, InterruptedException {
-		this.checkStop();
+	private void verifyEtag() throws IOException, InterruptedException {
 		if (this.etag == null || this.etag.isBlank()) {
 			return;
 		}
@@ -1016,6 +992,28 @@ public class BasicDownloader {
 		}
 	}
 	
+	private void resetHasher() {
+		this.sha256 = null;
+		this.hasher = this.expectedSha256 != null ? new Sha256Hasher() : null;
+	}
+	
+	private void offerToHasher(long offset, byte[] buffer, int length) {
+		Sha256Hasher h = this.hasher;
+		if (h != null) {
+			h.offer(offset, buffer, 0, length);
+		}
+	}
+	
+	/**
+	 * 	校验通过的结果记进 GGUF 元数据缓存，文件不变就不用再算。
+	 * @param finalFile
+	 */
+	private void rememberSha256(Path finalFile) {
+		if (this.sha256 != null) {
+			GGUFMetadataCache.getInstance().putSha256(finalFile.toFile(), this.sha256);
+		}
+	}
+	
 	private static String normalizeEtag(String etag) {
 		if (etag == null) {
 			return null;
@@ -1103,6 +1101,15 @@ public class BasicDownloader {
 		}
 	}
 	
+	/**
+	 * 	分段下载的进度记录文件
+	 * @param downloadingTargetFile
+	 * @return
+	 */
+	static Path toJournalFile(Path downloadingTargetFile) {
+		return downloadingTargetFile.resolveSibling(downloadingTargetFile.getFileName().toString() + "." + JOURNAL_SUFFIX);
+	}
+	
 	private static Path toDownloadingTargetFile(Path targetFile) {
 		String fileName = targetFile.getFileName() != null ? targetFile.getFileName().toString() : "";
 		return targetFile.resolveSibling(fileName + "." + DOWNLOADING_SUFFIX);
@@ -265,6 +265,7 @@ public class DownloadManager {
 		try {
 			Files.deleteIfExists(target);
 			Files.deleteIfExists(downloadingTarget);
+			Files.deleteIfExists(BasicDownloader.toJournalFile(downloadingTarget));
 		} catch (IOException ignored) {
 		}
 		
@@ -342,6 +343,7 @@ public class DownloadManager {
 
 				// 创建下载器
 				BasicDownloader downloader = new BasicDownloader(task.getUrl(), task.getFullTargetPath());
+				downloader.setExpectedSha256(task.getExpectedSha256());
 				task.setDownloader(downloader);
 
 				// 检查是否可以断点续传
@@ -431,25 +433,8 @@ public class DownloadManager {
 		// 检查目标文件是否存在
 		java.nio.file.Path targetPath = task.getFullTargetPath();
 		java.nio.file.Path downloadingTargetPath = targetPath.resolveSibling(targetPath.getFileName().toString() + ".downloading");
+		// 分段下载直接写进预分配的 .downloading 文件，没有这个文件就没有可以接续的内容
 		if (!java.nio.file.Files.exists(targetPath) && !java.nio.file.Files.exists(downloadingTargetPath)) {
-			// 对于多线程下载，检查是否有分片文件
-			if (task.isRangeSupported() && task.getPartsTotal() > 1) {
-				String fileName = targetPath.getFileName().toString();
-				String downloadingFileName = downloadingTargetPath.getFileName().toString();
-				java.nio.file.Path parentDir = targetPath.getParent();
-				if (parentDir != null) {
-					boolean hasAnyPart = false;
-					for (int i = 0; i < task.getPartsTotal(); i++) {
-						java.nio.file.Path partFile = parentDir.resolve(fileName + ".part" + i);
-						java.nio.file.Path downloadingPartFile = parentDir.resolve(downloadingFileName + ".part" + i);
-						if (java.nio.file.Files.exists(partFile) || java.nio.file.Files.exists(downloadingPartFile)) {
-							hasAnyPart = true;
-							break;
-						}
-					}
-					return hasAnyPart;
-				}
-			}
 			return false;
 		}
 		
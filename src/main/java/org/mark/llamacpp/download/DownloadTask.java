@@ -33,6 +33,7 @@ public class DownloadTask {
     private String errorMessage;
     private String finalUri;
     private String etag;
+    private String expectedSha256;
     private boolean rangeSupported;
     private transient BasicDownloader downloader;
     private transient Thread downloadThread;
@@ -162,6 +163,18 @@ public class DownloadTask {
         this.updatedAt = LocalDateTime.now();
     }
     
+    /**
+     * 期望的SHA-256，下载完成后校验，为空时不校验
+     */
+    public String getExpectedSha256() {
+        return expectedSha256;
+    }
+    
+    public void setExpectedSha256(String expectedSha256) {
+        this.expectedSha256 = expectedSha256;
+        this.updatedAt = LocalDateTime.now();
+    }
+    
     public boolean isRangeSupported() {
         return rangeSupported;
     }
@@ -25,6 +25,7 @@ public class DownloadTaskDTO {
     private String errorMessage;
     private String finalUri;
     private String etag;
+    private String expectedSha256;
     private boolean rangeSupported;
     
     public DownloadTaskDTO() {
@@ -54,6 +55,7 @@ public class DownloadTaskDTO {
         this.errorMessage = task.getErrorMessage();
         this.finalUri = task.getFinalUri();
         this.etag = task.getEtag();
+        this.expectedSha256 = task.getExpectedSha256();
         this.rangeSupported = task.isRangeSupported();
     }
     
@@ -177,6 +179,7 @@ public class DownloadTaskDTO {
             task.setErrorMessage(errorMessage);
             task.setFinalUri(finalUri);
             task.setEtag(etag);
+            task.setExpectedSha256(expectedSha256);
             task.setRangeSupported(rangeSupported);
             
         } catch (Exception e) {
@@ -0,0 +1,257 @@
+package org.mark.llamacpp.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+import org.mark.llamacpp.gguf.GGUFMetadataCache;
+
+/**
+ * 	下载过程中计算文件的 SHA-256，用来和 Hugging Face LFS 的 oid 比对。
+ * 	<p>
+ * 	SHA-256 只能从头到尾顺序计算。下载线程写入数据后调用 {@link #offer}，偏移正好接在已计算部分后面的数据直接计入；
+ * 	其余的由 {@link #follow} 跟在已连续写完的前缀后面从文件里读回来补上，{@link #finish} 读完剩下的部分。
+ * 	从文件读的时候读盘和计算在两个线程上交替进行。
+ */
+public final class Sha256Hasher {
+
+	private static final int READ_CHUNK = 4 * 1024 * 1024;
+
+	private final MessageDigest digest;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * 	已经计入摘要的前缀长度
+	 */
+	private volatile long hashed;
+
+	public Sha256Hasher() {
+		this.digest = newDigest();
+	}
+
+	/**
+	 * 	已经计入摘要的字节数。
+	 * @return
+	 */
+	public long getHashedBytes() {
+		return this.hashed;
+	}
+
+	/**
+	 * 	从头开始重新计算。
+	 */
+	public void reset() {
+		this.lock.lock();
+		try {
+			this.digest.reset();
+			this.hashed = 0;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * 	刚写入文件的一段数据。正好接在已计算部分之后才计入，否则忽略，之后从文件补读；
+	 * 	其他线程正在从文件补读时也直接忽略，不让下载线程等待。
+	 * @param offset 数据在文件中的偏移
+	 * @param buffer
+	 * @param off
+	 * @param len
+	 */
+	public void offer(long offset, byte[] buffer, int off, int len) {
+		if (offset != this.hashed || !this.lock.tryLock()) {
+			return;
+		}
+		try {
+			if (offset == this.hashed) {
+				this.digest.update(buffer, off, len);
+				this.hashed += len;
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * 	跟随下载进度：已连续写完的前缀超过已计算部分时从文件读回来计算，直到 finished 为真。
+	 * @param channel 可读的目标文件
+	 * @param committedPrefix 从文件开头起已连续写完的字节数
+	 * @param finished
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void follow(FileChannel channel, LongSupplier committedPrefix, BooleanSupplier finished) throws IOException, InterruptedException {
+		while (!finished.getAsBoolean()) {
+			long limit = committedPrefix.getAsLong();
+			if (limit > this.hashed) {
+				this.catchUp(channel, limit);
+			} else {
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * 	把文件剩余部分计入摘要并返回结果。
+	 * @param file
+	 * @param length 文件长度
+	 * @return 小写十六进制
+	 * @throws IOException
+	 */
+	public String finish(Path file, long length) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			this.catchUp(channel, length);
+		}
+		this.lock.lock();
+		try {
+			return HexFormat.of().formatHex(this.digest.digest());
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * 	从文件读 [已计算位置, limit) 计入摘要。一个虚拟线程读盘，当前线程计算，两者之间最多隔两个块。
+	 * @param channel
+	 * @param limit
+	 * @throws IOException
+	 */
+	private void catchUp(FileChannel channel, long limit) throws IOException {
+		this.lock.lock();
+		try {
+			long from = this.hashed;
+			if (from >= limit) {
+				return;
+			}
+			BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(2);
+			BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(3);
+			for (int i = 0; i < 3; i++) {
+				free.add(ByteBuffer.allocate((int) Math.min(READ_CHUNK, limit - from)));
+			}
+			IOException[] readError = new IOException[1];
+			Thread reader = Thread.ofVirtual().start(() -> {
+				long pos = from;
+				try {
+					while (pos < limit) {
+						ByteBuffer buf = free.take();
+						buf.clear().limit((int) Math.min(buf.capacity(), limit - pos));
+						while (buf.hasRemaining()) {
+							int n = channel.read(buf, pos + buf.position());
+							if (n < 0) {
+								throw new IOException("文件长度不足，期望: " + limit + " 实际: " + (pos + buf.position()));
+							}
+						}
+						pos += buf.flip().remaining();
+						filled.put(buf);
+					}
+				} catch (IOException e) {
+					readError[0] = e;
+					filled.offer(ByteBuffer.allocate(0));
+				} catch (InterruptedException e) {
+					filled.offer(ByteBuffer.allocate(0));
+				}
+			});
+			try {
+				long pos = from;
+				while (pos < limit) {
+					ByteBuffer buf = filled.take();
+					if (!buf.hasRemaining()) {
+						break;
+					}
+					this.digest.update(buf.array(), 0, buf.remaining());
+					pos += buf.remaining();
+					this.hashed = pos;
+					free.put(buf);
+				}
+				reader.join();
+			} catch (InterruptedException e) {
+				reader.interrupt();
+				Thread.currentThread().interrupt();
+				throw new IOException("计算SHA-256时被中断", e);
+			}
+			if (readError[0] != null) {
+				throw readError[0];
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * 	计算整个文件的 SHA-256。
+	 * @param file
+	 * @return 小写十六进制
+	 * @throws IOException
+	 */
+	public static String hashFile(Path file) throws IOException {
+		return new Sha256Hasher().finish(file, Files.size(file));
+	}
+
+	/**
+	 * 	校验文件的 SHA-256。文件没变过并且算过的话直接用 GGUF 元数据缓存里的结果，否则计算后写回缓存。
+	 * @param file
+	 * @param expected 期望值，可以带 "sha256:" 前缀
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean verify(File file, String expected) throws IOException {
+		String want = normalize(expected);
+		if (want == null) {
+			throw new IllegalArgumentException("不是有效的SHA-256: " + expected);
+		}
+		GGUFMetadataCache cache = GGUFMetadataCache.getInstance();
+		String actual = cache.getSha256(file);
+		if (actual == null) {
+			actual = hashFile(file.toPath());
+			cache.putSha256(file, actual);
+		}
+		return want.equals(actual);
+	}
+
+	/**
+	 * 	把 LFS oid 之类的写法规范成64位小写十六进制。
+	 * @param value
+	 * @return 不是 SHA-256 时返回 null
+	 */
+	public static String normalize(String value) {
+		if (value == null) {
+			return null;
+		}
+		String v = value.trim().toLowerCase(Locale.ROOT);
+		if (v.startsWith("sha256:")) {
+			v = v.substring("sha256:".length());
+		}
+		if (v.length() != 64) {
+			return null;
+		}
+		for (int i = 0; i < v.length(); i++) {
+			char c = v.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return null;
+			}
+		}
+		return v;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
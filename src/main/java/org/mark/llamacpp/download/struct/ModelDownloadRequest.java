@@ -14,6 +14,10 @@ public class ModelDownloadRequest {
 	private Long size;
 	private String lfsOid;
 	private Long lfsSize;
+	/**
+	 * 	和 downloadUrl 一一对应的 LFS oid（SHA-256），用来校验下载结果
+	 */
+	private String[] lfsOids;
 	
 	public ModelDownloadRequest() {
 		
@@ -82,4 +86,12 @@ public class ModelDownloadRequest {
 	public void setLfsSize(Long lfsSize) {
 		this.lfsSize = lfsSize;
 	}
+
+	public String[] getLfsOids() {
+		return lfsOids;
+	}
+	
+	public void setLfsOids(String[] lfsOids) {
+		this.lfsOids = lfsOids;
+	}
 }
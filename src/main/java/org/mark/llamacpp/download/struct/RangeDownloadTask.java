@@ -0,0 +1,196 @@
+package org.mark.llamacpp.download.struct;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mark.llamacpp.download.Sha256Hasher;
+
+/**
+ * 	分段下载的工作线程。从响应里读到的数据按偏移直接写进共享的目标文件，不再生成 .partN 临时文件；
+ * 	手上的分段写完后从 {@link RangeJournal} 领取下一个分段，或者窃取剩余最多的分段的后一半继续下载，直到没有可分配的分段。
+ */
+public final class RangeDownloadTask implements Callable<Void> {
+	private final HttpClient httpClient;
+	private final URI uri;
+	private final String userAgent;
+	private final Duration timeout;
+	private final FileChannel channel;
+	private final RangeJournal journal;
+	private final Sha256Hasher hasher;
+	private final long minSplitBytes;
+	private final int maxRetries;
+	private final AtomicLong downloadedBytes;
+	private final AtomicInteger partsTotal;
+	private final AtomicInteger partsCompleted;
+	private final AtomicBoolean stopRequested;
+	private final Set<AutoCloseable> activeResources;
+
+	public RangeDownloadTask(
+			HttpClient httpClient,
+			URI uri,
+			String userAgent,
+			Duration timeout,
+			FileChannel channel,
+			RangeJournal journal,
+			Sha256Hasher hasher,
+			long minSplitBytes,
+			int maxRetries,
+			AtomicLong downloadedBytes,
+			AtomicInteger partsTotal,
+			AtomicInteger partsCompleted,
+			AtomicBoolean stopRequested,
+			Set<AutoCloseable> activeResources) {
+		this.httpClient = httpClient;
+		this.uri = uri;
+		this.userAgent = userAgent;
+		this.timeout = timeout;
+		this.channel = channel;
+		this.journal = journal;
+		this.hasher = hasher;
+		this.minSplitBytes = minSplitBytes;
+		this.maxRetries = maxRetries;
+		this.downloadedBytes = downloadedBytes;
+		this.partsTotal = partsTotal;
+		this.partsCompleted = partsCompleted;
+		this.stopRequested = stopRequested;
+		this.activeResources = activeResources;
+	}
+
+	@Override
+	public Void call() throws Exception {
+		RangeJournal.Range range;
+		while ((range = this.next()) != null) {
+			this.downloadRange(range);
+			this.partsCompleted.incrementAndGet();
+			this.journal.checkpoint();
+		}
+		return null;
+	}
+
+	private RangeJournal.Range next() throws InterruptedException {
+		this.checkStop();
+		RangeJournal.Range range = this.journal.next(this.minSplitBytes);
+		this.partsTotal.set(this.journal.getRangeCount());
+		return range;
+	}
+
+	/**
+	 * 	下载一个分段直到写到它的终点。失败后从已确认的位置重试，有进展的尝试不计入重试次数。
+	 * @param range
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void downloadRange(RangeJournal.Range range) throws IOException, InterruptedException {
+		long backoffMillis = 200;
+		int attempt = 0;
+		while (range.getPosition() <= range.getEnd()) {
+			this.checkStop();
+			attempt++;
+			long before = range.getPosition();
+			try {
+				this.downloadOnce(range);
+			} catch (InterruptedException e) {
+				this.journal.rollback(range);
+				throw e;
+			} catch (IOException e) {
+				this.journal.rollback(range);
+				if (this.stopRequested.get() || Thread.currentThread().isInterrupted()) {
+					throw new InterruptedException("下载已暂停");
+				}
+				if (range.getPosition() > before) {
+					attempt = 0;
+					backoffMillis = 200;
+				}
+				if (attempt > this.maxRetries) {
+					throw e;
+				}
+				Thread.sleep(backoffMillis);
+				backoffMillis = Math.min(backoffMillis * 2, 5_000);
+			}
+		}
+	}
+
+	private void downloadOnce(RangeJournal.Range range) throws IOException, InterruptedException {
+		long startInclusive = range.getPosition();
+		long endInclusive = range.getEnd();
+		if (startInclusive > endInclusive) {
+			return;
+		}
+
+		HttpRequest request = HttpRequest.newBuilder()
+				.uri(this.uri)
+				.timeout(this.timeout)
+				.header("User-Agent", this.userAgent)
+				.header("Range", "bytes=" + startInclusive + "-" + endInclusive)
+				.GET()
+				.build();
+
+		HttpResponse<InputStream> response = this.httpClient.send(request, BodyHandlers.ofInputStream());
+		try (InputStream in = response.body()) {
+			if (response.statusCode() != 206) {
+				throw new IOException("分片下载失败，HTTP状态码: " + response.statusCode());
+			}
+			this.activeResources.add(in);
+			byte[] buffer = new byte[1024 * 256];
+			ByteBuffer view = ByteBuffer.wrap(buffer);
+			try {
+				while (true) {
+					this.checkStop();
+					int read = in.readNBytes(buffer, 0, buffer.length);
+					if (read <= 0) {
+						break;
+					}
+					// 分段可能在读的同时被窃取切短，超出新终点的部分属于别的线程
+					long offset = range.getPosition();
+					int allowed = this.journal.claim(range, read);
+					if (allowed > 0) {
+						view.clear().limit(allowed);
+						long pos = offset;
+						while (view.hasRemaining()) {
+							pos += this.channel.write(view, pos);
+						}
+						this.journal.commit(range, allowed);
+						if (this.hasher != null) {
+							this.hasher.offer(offset, buffer, 0, allowed);
+						}
+						this.downloadedBytes.addAndGet(allowed);
+						this.journal.checkpoint();
+					}
+					if (allowed < read || range.getPosition() > range.getEnd()) {
+						return;
+					}
+				}
+			} catch (IOException e) {
+				if (this.stopRequested.get() || Thread.currentThread().isInterrupted()) {
+					throw new InterruptedException("下载已暂停");
+				}
+				throw e;
+			} finally {
+				this.activeResources.remove(in);
+			}
+		}
+
+		if (range.getPosition() <= range.getEnd()) {
+			throw new IOException("分片数据不完整，期望写到: " + range.getEnd() + " 实际: " + (range.getPosition() - 1));
+		}
+	}
+
+	private void checkStop() throws InterruptedException {
+		if (this.stopRequested.get() || Thread.currentThread().isInterrupted()) {
+			throw new InterruptedException("下载已暂停");
+		}
+	}
+}
@@ -0,0 +1,358 @@
+package org.mark.llamacpp.download.struct;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 	分段下载的进度记录。所有分段直接写进预分配好的目标文件，这里只记录每段的起止和已写到的位置，
+ * 	断点续传时据此跳过已写完的字节。
+ * 	<p>
+ * 	文件格式（大端，ByteBuffer 默认）：
+ * 	魔数 int、版本 int、文件总长 long、分段数 int，之后每段 起点 long、终点 long、已写到 long，最后是前面所有字节的 CRC32。
+ * 	先写临时文件再改名替换，任何时候磁盘上都是一份完整的记录。
+ */
+public final class RangeJournal {
+
+	private static final int MAGIC = 0x4C525347;
+
+	private static final int VERSION = 1;
+
+	/**
+	 * 	两次落盘之间的最短间隔
+	 */
+	private static final long CHECKPOINT_INTERVAL_NANOS = 1_000_000_000L;
+
+	private final Path file;
+
+	private final long contentLength;
+
+	/**
+	 * 	按起点排序
+	 */
+	private final List<Range> ranges = new ArrayList<>();
+
+	private final ReentrantLock saveLock = new ReentrantLock();
+
+	private volatile long lastSavedNanos = System.nanoTime();
+
+	private RangeJournal(Path file, long contentLength) {
+		this.file = file;
+		this.contentLength = contentLength;
+	}
+
+	/**
+	 * 	按给定的分段新建记录，还没有写任何字节。
+	 * @param file
+	 * @param contentLength
+	 * @param parts
+	 * @return
+	 */
+	public static RangeJournal create(Path file, long contentLength, List<Part> parts) {
+		RangeJournal journal = new RangeJournal(file, contentLength);
+		for (Part part : parts) {
+			journal.ranges.add(new Range(part.getStartInclusive(), part.getEndInclusive(), part.getStartInclusive()));
+		}
+		return journal;
+	}
+
+	/**
+	 * 	读取已有的记录。
+	 * @param file
+	 * @param contentLength 远程文件的长度，和记录里的不一致时视为无效
+	 * @return 文件不存在、损坏或者与当前文件长度不符时返回 null
+	 */
+	public static RangeJournal load(Path file, long contentLength) {
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+			if (buf.remaining() < 28 || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+				return null;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(buf.array(), 0, buf.limit() - 8);
+			if (buf.getLong(buf.limit() - 8) != crc.getValue()) {
+				return null;
+			}
+			if (buf.getLong() != contentLength) {
+				return null;
+			}
+			int count = buf.getInt();
+			if (count <= 0 || buf.remaining() != count * 24L + 8) {
+				return null;
+			}
+			RangeJournal journal = new RangeJournal(file, contentLength);
+			long expectedStart = 0;
+			List<Range> loaded = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				long start = buf.getLong();
+				long end = buf.getLong();
+				long position = buf.getLong();
+				if (start < 0 || end < start || end >= contentLength || position < start || position > end + 1) {
+					return null;
+				}
+				loaded.add(new Range(start, end, position));
+			}
+			// 分段必须无缝覆盖整个文件，否则有字节永远不会被下载
+			loaded.sort((a, b) -> Long.compare(a.start, b.start));
+			for (Range r : loaded) {
+				if (r.start != expectedStart) {
+					return null;
+				}
+				expectedStart = r.end + 1;
+			}
+			if (expectedStart != contentLength) {
+				return null;
+			}
+			journal.ranges.addAll(loaded);
+			return journal;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	public Path getFile() {
+		return this.file;
+	}
+
+	public long getContentLength() {
+		return this.contentLength;
+	}
+
+	/**
+	 * 	当前的分段数，包括工作窃取时拆出来的分段。
+	 * @return
+	 */
+	public synchronized int getRangeCount() {
+		return this.ranges.size();
+	}
+
+	/**
+	 * 	已经写完的分段数。
+	 * @return
+	 */
+	public synchronized int getCompletedCount() {
+		int n = 0;
+		for (Range r : this.ranges) {
+			if (r.isDone()) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * 	所有分段已经写入目标文件的字节数。
+	 * @return
+	 */
+	public synchronized long getWrittenBytes() {
+		long total = 0;
+		for (Range r : this.ranges) {
+			total += r.position - r.start;
+		}
+		return total;
+	}
+
+	/**
+	 * 	从文件开头起已经连续写完的字节数。
+	 * @return
+	 */
+	public synchronized long getCommittedPrefix() {
+		for (Range r : this.ranges) {
+			if (!r.isDone()) {
+				return r.position;
+			}
+		}
+		return this.contentLength;
+	}
+
+	/**
+	 * 	是否所有分段都已写完。
+	 * @return
+	 */
+	public synchronized boolean isComplete() {
+		for (Range r : this.ranges) {
+			if (!r.isDone()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 	给空闲的工作线程分配下一个分段：优先取还没有线程负责的未完成分段（续传时记录里的分段多于线程数），
+	 * 	没有的话就窃取，把剩余最多的分段从中间切开，后一半作为新分段返回。
+	 * 	原分段的持有者写到新的终点后自然结束，两半之间没有重叠。
+	 * @param minSplitBytes 剩余不足两倍这个值的分段不再切分
+	 * @return 没有可分配的分段时返回 null
+	 */
+	public synchronized Range next(long minSplitBytes) {
+		for (Range r : this.ranges) {
+			if (!r.owned && !r.isDone()) {
+				r.owned = true;
+				return r;
+			}
+		}
+		Range victim = null;
+		long most = 0;
+		for (Range r : this.ranges) {
+			long left = r.end - r.claimed + 1;
+			if (left > most) {
+				most = left;
+				victim = r;
+			}
+		}
+		if (victim == null || most < 2 * Math.max(1, minSplitBytes)) {
+			return null;
+		}
+		long splitAt = victim.claimed + most / 2;
+		Range stolen = new Range(splitAt, victim.end, splitAt);
+		stolen.owned = true;
+		victim.end = splitAt - 1;
+		// 保持按起点排序
+		this.ranges.add(this.ranges.indexOf(victim) + 1, stolen);
+		return stolen;
+	}
+
+	/**
+	 * 	为下一次写入占用分段中的字节，占用的部分不会再被窃取。
+	 * @param range
+	 * @param length 读到的字节数
+	 * @return 允许写入的字节数，分段已被切短时可能小于 length，为 0 表示分段已经写完
+	 */
+	public synchronized int claim(Range range, int length) {
+		long left = range.end - range.claimed + 1;
+		int allowed = (int) Math.max(0, Math.min(length, left));
+		range.claimed += allowed;
+		return allowed;
+	}
+
+	/**
+	 * 	确认占用的字节已经写入目标文件。
+	 * @param range
+	 * @param length
+	 */
+	public synchronized void commit(Range range, int length) {
+		range.position += length;
+	}
+
+	/**
+	 * 	写入失败后撤销还没确认的占用，下次从已确认的位置重新请求。
+	 * @param range
+	 */
+	public synchronized void rollback(Range range) {
+		range.claimed = range.position;
+	}
+
+	/**
+	 * 	距离上次落盘超过间隔时保存一次；其他线程正在保存时直接返回。
+	 * @throws IOException
+	 */
+	public void checkpoint() throws IOException {
+		if (System.nanoTime() - this.lastSavedNanos < CHECKPOINT_INTERVAL_NANOS) {
+			return;
+		}
+		if (!this.saveLock.tryLock()) {
+			return;
+		}
+		try {
+			this.writeFile();
+		} finally {
+			this.saveLock.unlock();
+		}
+	}
+
+	/**
+	 * 	立即保存。
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		this.saveLock.lock();
+		try {
+			this.writeFile();
+		} finally {
+			this.saveLock.unlock();
+		}
+	}
+
+	public void delete() throws IOException {
+		this.saveLock.lock();
+		try {
+			Files.deleteIfExists(this.file);
+			Files.deleteIfExists(tempFile(this.file));
+		} finally {
+			this.saveLock.unlock();
+		}
+	}
+
+	private void writeFile() throws IOException {
+		ByteBuffer buf;
+		synchronized (this) {
+			buf = ByteBuffer.allocate(20 + this.ranges.size() * 24 + 8);
+			buf.putInt(MAGIC).putInt(VERSION).putLong(this.contentLength).putInt(this.ranges.size());
+			for (Range r : this.ranges) {
+				buf.putLong(r.start).putLong(r.end).putLong(r.position);
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 0, buf.position());
+		buf.putLong(crc.getValue());
+
+		Path tmp = tempFile(this.file);
+		Files.write(tmp, buf.array());
+		try {
+			Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		this.lastSavedNanos = System.nanoTime();
+	}
+
+	private static Path tempFile(Path file) {
+		return file.resolveSibling(file.getFileName().toString() + ".tmp");
+	}
+
+	/**
+	 * 	一个分段。start 固定；end 可能因为被窃取而变小；position 是已写入目标文件的下一个字节，
+	 * 	claimed 是已经分配给写入线程的下一个字节，两者之间是正在写的数据；owned 表示已经有线程负责。
+	 */
+	public static final class Range {
+		private final long start;
+		private volatile long end;
+		private volatile long position;
+		private long claimed;
+		private boolean owned;
+
+		private Range(long start, long end, long position) {
+			this.start = start;
+			this.end = end;
+			this.position = position;
+			this.claimed = position;
+		}
+
+		public long getStart() {
+			return this.start;
+		}
+
+		public long getEnd() {
+			return this.end;
+		}
+
+		public long getPosition() {
+			return this.position;
+		}
+
+		private boolean isDone() {
+			return this.position > this.end;
+		}
+	}
+}
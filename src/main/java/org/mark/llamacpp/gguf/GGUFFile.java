@@ -0,0 +1,695 @@
+package org.mark.llamacpp.gguf;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 	用内存映射读取GGUF头部。
+ * 	<p>
+ * 	打开时顺序扫描一遍头部，只记下每个键值和张量信息在文件中的位置，不解码任何值；取值时才按位置解码。
+ * 	定长元素的数组直接跳过，不逐个读取。词表这类长数组可以用 {@link #getStringArray(String)}、
+ * 	{@link #getIntArray(String)}、{@link #getFloatArray(String)} 访问，不需要先生成整个 List。
+ * 	<p>
+ * 	映射在 {@link #close()} 时立即释放，否则 Windows 上要等到GC之后才能删除或替换模型文件。
+ * 	关闭后不能再访问，包括已经取得的 {@link StringArray}；一个实例只应在一个线程里使用。
+ */
+public final class GGUFFile implements AutoCloseable {
+
+	public static final int TYPE_UINT8 = 0;
+	public static final int TYPE_INT8 = 1;
+	public static final int TYPE_UINT16 = 2;
+	public static final int TYPE_INT16 = 3;
+	public static final int TYPE_UINT32 = 4;
+	public static final int TYPE_INT32 = 5;
+	public static final int TYPE_FLOAT32 = 6;
+	public static final int TYPE_BOOL = 7;
+	public static final int TYPE_STRING = 8;
+	public static final int TYPE_ARRAY = 9;
+	public static final int TYPE_UINT64 = 10;
+	public static final int TYPE_INT64 = 11;
+	public static final int TYPE_FLOAT64 = 12;
+
+	private static final int DEFAULT_ALIGNMENT = 32;
+
+	/**
+	 * 	magic + version + tensor_count + kv_count
+	 */
+	private static final int PREAMBLE_SIZE = 24;
+
+	private final File file;
+
+	private final long fileSize;
+
+	private ByteBuffer buffer;
+
+	private final int version;
+
+	private final long tensorCount;
+
+	private final long kvCount;
+
+	/**
+	 * 	键名，按文件中的顺序。
+	 */
+	private final String[] keys;
+
+	private final Map<String, Integer> keyIndex;
+
+	private final int[] valueTypes;
+
+	/**
+	 * 	每个值在文件中的位置（类型字段之后）。
+	 */
+	private final int[] valuePositions;
+
+	/**
+	 * 	每个张量信息在文件中的位置（名字长度字段处）。
+	 */
+	private final int[] tensorPositions;
+
+	private final long headerSize;
+
+	private final int alignment;
+
+	private GGUFFile(File file, long fileSize, ByteBuffer buffer) throws IOException {
+		this.file = file;
+		this.fileSize = fileSize;
+		this.buffer = buffer;
+		int limit = buffer.limit();
+
+		this.version = buffer.getInt(4);
+		this.tensorCount = buffer.getLong(8);
+		this.kvCount = buffer.getLong(16);
+		// 每个键值至少13字节、每个张量信息至少24字节，数量不可能超过剩余字节数，防止损坏的文件申请过大的数组
+		if (this.kvCount < 0 || this.kvCount > (limit - PREAMBLE_SIZE) / 13) {
+			throw new EOFException("GGUF kv_count 超出文件范围: " + this.kvCount);
+		}
+		if (this.tensorCount < 0 || this.tensorCount > (limit - PREAMBLE_SIZE) / 24) {
+			throw new EOFException("GGUF tensor_count 超出文件范围: " + this.tensorCount);
+		}
+
+		int n = (int) this.kvCount;
+		this.keys = new String[n];
+		this.keyIndex = new HashMap<>(Math.max(16, n * 2));
+		this.valueTypes = new int[n];
+		this.valuePositions = new int[n];
+		long p = PREAMBLE_SIZE;
+		for (int i = 0; i < n; i++) {
+			long len = buffer.getLong(need(p, 8, limit));
+			int keyStart = need(p + 8, len, limit);
+			this.keys[i] = decodeString(buffer, keyStart, (int) len);
+			p = keyStart + len;
+			int type = buffer.getInt(need(p, 4, limit));
+			p += 4;
+			this.valueTypes[i] = type;
+			this.valuePositions[i] = need(p, 0, limit);
+			p = skipValue(buffer, p, type, limit);
+			// 重复的键以第一个为准，和 llama.cpp 一致
+			this.keyIndex.putIfAbsent(this.keys[i], i);
+		}
+
+		int t = (int) this.tensorCount;
+		this.tensorPositions = new int[t];
+		for (int i = 0; i < t; i++) {
+			this.tensorPositions[i] = need(p, 0, limit);
+			long nameLen = buffer.getLong(need(p, 8, limit));
+			p = need(p + 8, nameLen, limit) + nameLen;
+			int nDims = buffer.getInt(need(p, 4, limit));
+			if (nDims < 0 || nDims > 8) {
+				throw new IOException("GGUF张量维数不正确: " + nDims);
+			}
+			p = need(p + 4, (long) nDims * 8 + 12, limit) + (long) nDims * 8 + 12;
+		}
+		this.headerSize = p;
+
+		long a = this.getLong("general.alignment", DEFAULT_ALIGNMENT);
+		this.alignment = a > 0 && a <= Integer.MAX_VALUE ? (int) a : DEFAULT_ALIGNMENT;
+	}
+
+	/**
+	 * 	打开GGUF文件并建立头部索引。
+	 * @param file
+	 * @return 不是GGUF文件时返回 null
+	 * @throws EOFException 头部不完整（文件被截断或还在下载）
+	 * @throws IOException
+	 */
+	public static GGUFFile open(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < PREAMBLE_SIZE) {
+				return null;
+			}
+			// 头部不会超过2GB，只需要映射开头这一段；没有访问到的页不会真正读盘
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+			mapped.order(ByteOrder.LITTLE_ENDIAN);
+			if (mapped.get(0) != 'G' || mapped.get(1) != 'G' || mapped.get(2) != 'U' || mapped.get(3) != 'F') {
+				unmap(mapped);
+				return null;
+			}
+			try {
+				return new GGUFFile(file, size, mapped);
+			} catch (IOException | RuntimeException e) {
+				unmap(mapped);
+				throw e;
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		ByteBuffer b = this.buffer;
+		this.buffer = null;
+		if (b instanceof MappedByteBuffer mapped) {
+			unmap(mapped);
+		}
+	}
+
+	public File getFile() {
+		return this.file;
+	}
+
+	public long getFileSize() {
+		return this.fileSize;
+	}
+
+	public int getVersion() {
+		return this.version;
+	}
+
+	public long getTensorCount() {
+		return this.tensorCount;
+	}
+
+	public long getKvCount() {
+		return this.kvCount;
+	}
+
+	/**
+	 * 	头部（键值和张量信息）结束的位置，不含对齐填充。
+	 * @return
+	 */
+	public long getHeaderSize() {
+		return this.headerSize;
+	}
+
+	/**
+	 * 	general.alignment，没有时为32。
+	 * @return
+	 */
+	public int getAlignment() {
+		return this.alignment;
+	}
+
+	/**
+	 * 	张量数据区的起始位置。
+	 * @return
+	 */
+	public long getDataOffset() {
+		long r = this.headerSize % this.alignment;
+		return r == 0 ? this.headerSize : this.headerSize + (this.alignment - r);
+	}
+
+	// ── 键值 ──────────────────────────────────────────────────────────────
+
+	/**
+	 * 	所有键名，按文件中的顺序。
+	 * @return
+	 */
+	public List<String> getKeys() {
+		return Collections.unmodifiableList(Arrays.asList(this.keys));
+	}
+
+	public boolean has(String key) {
+		return this.keyIndex.containsKey(key);
+	}
+
+	/**
+	 * 	值的类型。
+	 * @param key
+	 * @return 键不存在时返回 -1
+	 */
+	public int getType(String key) {
+		Integer i = this.keyIndex.get(key);
+		return i == null ? -1 : this.valueTypes[i];
+	}
+
+	/**
+	 * 	解码一个值。类型和 {@link GGUFMetaDataReader} 一致：UINT32 为 Long，UINT8/UINT16/INT32 为 Integer，
+	 * 	数组为 List。
+	 * @param key
+	 * @return 键不存在时返回 null
+	 */
+	public Object getValue(String key) {
+		Integer i = this.keyIndex.get(key);
+		if (i == null) {
+			return null;
+		}
+		return readValue(this.buf(), this.valuePositions[i], this.valueTypes[i]);
+	}
+
+	/**
+	 * 	字符串值。
+	 * @param key
+	 * @return 键不存在或不是字符串时返回 null
+	 */
+	public String getString(String key) {
+		Integer i = this.keyIndex.get(key);
+		if (i == null || this.valueTypes[i] != TYPE_STRING) {
+			return null;
+		}
+		ByteBuffer b = this.buf();
+		int p = this.valuePositions[i];
+		return decodeString(b, p + 8, (int) b.getLong(p));
+	}
+
+	/**
+	 * 	整数或浮点数值，浮点数截断为整数。
+	 * @param key
+	 * @param defaultValue 键不存在或不是数值时返回
+	 * @return
+	 */
+	public long getLong(String key, long defaultValue) {
+		Integer i = this.keyIndex.get(key);
+		if (i == null) {
+			return defaultValue;
+		}
+		int type = this.valueTypes[i];
+		if (type == TYPE_STRING || type == TYPE_ARRAY || type == TYPE_BOOL || fixedSize(type) <= 0) {
+			return defaultValue;
+		}
+		return ((Number) readValue(this.buf(), this.valuePositions[i], type)).longValue();
+	}
+
+	/**
+	 * 	数组的元素类型。
+	 * @param key
+	 * @return 键不存在或不是数组时返回 -1
+	 */
+	public int getArrayType(String key) {
+		Integer i = this.keyIndex.get(key);
+		if (i == null || this.valueTypes[i] != TYPE_ARRAY) {
+			return -1;
+		}
+		return this.buf().getInt(this.valuePositions[i]);
+	}
+
+	/**
+	 * 	数组长度。
+	 * @param key
+	 * @return 键不存在或不是数组时返回 -1
+	 */
+	public long getArrayLength(String key) {
+		Integer i = this.keyIndex.get(key);
+		if (i == null || this.valueTypes[i] != TYPE_ARRAY) {
+			return -1;
+		}
+		return this.buf().getLong(this.valuePositions[i] + 4);
+	}
+
+	/**
+	 * 	字符串数组，按下标取元素，只有取到的元素才生成字符串。
+	 * @param key
+	 * @return 键不存在或不是字符串数组时返回 null
+	 */
+	public StringArray getStringArray(String key) {
+		if (this.getArrayType(key) != TYPE_STRING) {
+			return null;
+		}
+		int p = this.valuePositions[this.keyIndex.get(key)];
+		return new StringArray(this, p + 12, (int) this.buf().getLong(p + 4));
+	}
+
+	/**
+	 * 	8/16/32位整数或布尔数组，如 tokenizer.ggml.token_type。UINT32 超过 int 范围的元素会溢出。
+	 * @param key
+	 * @return 键不存在或类型不符时返回 null
+	 */
+	public int[] getIntArray(String key) {
+		int type = this.getArrayType(key);
+		if (type != TYPE_UINT8 && type != TYPE_INT8 && type != TYPE_UINT16 && type != TYPE_INT16
+				&& type != TYPE_UINT32 && type != TYPE_INT32 && type != TYPE_BOOL) {
+			return null;
+		}
+		ByteBuffer b = this.buf();
+		int p = this.valuePositions[this.keyIndex.get(key)];
+		int n = (int) b.getLong(p + 4);
+		int size = fixedSize(type);
+		int[] out = new int[n];
+		p += 12;
+		for (int j = 0; j < n; j++, p += size) {
+			out[j] = switch (type) {
+			case TYPE_UINT8, TYPE_BOOL -> b.get(p) & 0xFF;
+			case TYPE_INT8 -> b.get(p);
+			case TYPE_UINT16 -> b.getShort(p) & 0xFFFF;
+			case TYPE_INT16 -> b.getShort(p);
+			default -> b.getInt(p);
+			};
+		}
+		return out;
+	}
+
+	/**
+	 * 	FLOAT32 数组，如 tokenizer.ggml.scores。
+	 * @param key
+	 * @return 键不存在或类型不符时返回 null
+	 */
+	public float[] getFloatArray(String key) {
+		if (this.getArrayType(key) != TYPE_FLOAT32) {
+			return null;
+		}
+		ByteBuffer b = this.buf();
+		int p = this.valuePositions[this.keyIndex.get(key)];
+		float[] out = new float[(int) b.getLong(p + 4)];
+		b.slice(p + 12, out.length * 4).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(out);
+		return out;
+	}
+
+	// ── 张量信息 ──────────────────────────────────────────────────────────
+
+	public String getTensorName(int index) {
+		ByteBuffer b = this.buf();
+		int p = this.tensorPositions[index];
+		return decodeString(b, p + 8, (int) b.getLong(p));
+	}
+
+	public long[] getTensorShape(int index) {
+		ByteBuffer b = this.buf();
+		int p = this.dimsPosition(index);
+		long[] shape = new long[b.getInt(p)];
+		for (int d = 0; d < shape.length; d++) {
+			shape[d] = b.getLong(p + 4 + d * 8);
+		}
+		return shape;
+	}
+
+	public int getTensorType(int index) {
+		ByteBuffer b = this.buf();
+		int p = this.dimsPosition(index);
+		return b.getInt(p + 4 + b.getInt(p) * 8);
+	}
+
+	/**
+	 * 	张量数据相对于数据区起始位置的偏移。
+	 * @param index
+	 * @return
+	 */
+	public long getTensorOffset(int index) {
+		ByteBuffer b = this.buf();
+		int p = this.dimsPosition(index);
+		return b.getLong(p + 8 + b.getInt(p) * 8);
+	}
+
+	private int dimsPosition(int index) {
+		int p = this.tensorPositions[index];
+		return p + 8 + (int) this.buf().getLong(p);
+	}
+
+	private ByteBuffer buf() {
+		ByteBuffer b = this.buffer;
+		if (b == null) {
+			throw new IllegalStateException("GGUF文件已关闭: " + this.file);
+		}
+		return b;
+	}
+
+	/**
+	 * 	字符串数组的视图。第一次按下标访问时记录一遍各元素的位置。
+	 */
+	public static final class StringArray {
+
+		private final GGUFFile owner;
+
+		private final int start;
+
+		private final int size;
+
+		private int[] positions;
+
+		private StringArray(GGUFFile owner, int start, int size) {
+			this.owner = owner;
+			this.start = start;
+			this.size = size;
+		}
+
+		public int size() {
+			return this.size;
+		}
+
+		/**
+		 * 	元素的UTF-8字节数。
+		 * @param index
+		 * @return
+		 */
+		public int byteLength(int index) {
+			return (int) this.owner.buf().getLong(this.position(index));
+		}
+
+		public String get(int index) {
+			ByteBuffer b = this.owner.buf();
+			int p = this.position(index);
+			return decodeString(b, p + 8, (int) b.getLong(p));
+		}
+
+		/**
+		 * 	元素的UTF-8字节。
+		 * @param index
+		 * @return
+		 */
+		public byte[] getBytes(int index) {
+			ByteBuffer b = this.owner.buf();
+			int p = this.position(index);
+			byte[] bytes = new byte[(int) b.getLong(p)];
+			b.get(p + 8, bytes);
+			return bytes;
+		}
+
+		/**
+		 * 	按UTF-8字节比较查找元素，不生成字符串。
+		 * @param value
+		 * @return 找不到时返回 -1
+		 */
+		public int indexOf(String value) {
+			byte[] target = value.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer b = this.owner.buf();
+			int p = this.start;
+			for (int i = 0; i < this.size; i++) {
+				int len = (int) b.getLong(p);
+				if (len == target.length && equalsAt(b, p + 8, target)) {
+					return i;
+				}
+				p += 8 + len;
+			}
+			return -1;
+		}
+
+		/**
+		 * 	解码全部元素。
+		 * @return
+		 */
+		public List<String> toList() {
+			List<String> list = new ArrayList<>(this.size);
+			ByteBuffer b = this.owner.buf();
+			int p = this.start;
+			for (int i = 0; i < this.size; i++) {
+				int len = (int) b.getLong(p);
+				list.add(decodeString(b, p + 8, len));
+				p += 8 + len;
+			}
+			return list;
+		}
+
+		private static boolean equalsAt(ByteBuffer b, int p, byte[] target) {
+			for (int k = 0; k < target.length; k++) {
+				if (b.get(p + k) != target[k]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int position(int index) {
+			if (index < 0 || index >= this.size) {
+				throw new IndexOutOfBoundsException(index);
+			}
+			if (this.positions == null) {
+				ByteBuffer b = this.owner.buf();
+				int[] pos = new int[this.size];
+				int p = this.start;
+				for (int i = 0; i < this.size; i++) {
+					pos[i] = p;
+					p += 8 + (int) b.getLong(p);
+				}
+				this.positions = pos;
+			}
+			return this.positions[index];
+		}
+	}
+
+	// ── 解码 ──────────────────────────────────────────────────────────────
+
+	/**
+	 * 	定长类型的字节数，变长类型（字符串、数组）和未知类型返回 -1。
+	 */
+	private static int fixedSize(int type) {
+		return switch (type) {
+		case TYPE_UINT8, TYPE_INT8, TYPE_BOOL -> 1;
+		case TYPE_UINT16, TYPE_INT16 -> 2;
+		case TYPE_UINT32, TYPE_INT32, TYPE_FLOAT32 -> 4;
+		case TYPE_UINT64, TYPE_INT64, TYPE_FLOAT64 -> 8;
+		default -> -1;
+		};
+	}
+
+	/**
+	 * 	检查 [p, p+n) 在映射范围内。
+	 * @return p
+	 */
+	private static int need(long p, long n, int limit) throws EOFException {
+		if (n < 0 || p < 0 || p > limit || n > limit - p) {
+			throw new EOFException("GGUF头部超出文件末尾");
+		}
+		return (int) p;
+	}
+
+	/**
+	 * 	跳过一个值，定长元素的数组一次跳过。
+	 * @return 值之后的位置
+	 */
+	private static long skipValue(ByteBuffer b, long p, int type, int limit) throws IOException {
+		int size = fixedSize(type);
+		if (size > 0) {
+			return need(p, size, limit) + size;
+		}
+		if (type == TYPE_STRING) {
+			long len = b.getLong(need(p, 8, limit));
+			return need(p + 8, len, limit) + len;
+		}
+		if (type == TYPE_ARRAY) {
+			int elemType = b.getInt(need(p, 12, limit));
+			long len = b.getLong((int) p + 4);
+			p += 12;
+			int elemSize = fixedSize(elemType);
+			if (elemSize > 0) {
+				if (len < 0 || len > Long.MAX_VALUE / elemSize) {
+					throw new EOFException("GGUF数组长度不正确: " + len);
+				}
+				return need(p, len * elemSize, limit) + len * elemSize;
+			}
+			if (len < 0 || len > limit - p) {
+				throw new EOFException("GGUF数组长度不正确: " + len);
+			}
+			for (long j = 0; j < len; j++) {
+				p = skipValue(b, p, elemType, limit);
+			}
+			return p;
+		}
+		throw new IOException("未知的GGUF值类型: " + type);
+	}
+
+	private static Object readValue(ByteBuffer b, int p, int type) {
+		switch (type) {
+		case TYPE_UINT8:
+			return b.get(p) & 0xFF;
+		case TYPE_INT8:
+			return b.get(p);
+		case TYPE_UINT16:
+			return b.getShort(p) & 0xFFFF;
+		case TYPE_INT16:
+			return b.getShort(p);
+		case TYPE_UINT32:
+			return b.getInt(p) & 0xFFFFFFFFL;
+		case TYPE_INT32:
+			return b.getInt(p);
+		case TYPE_FLOAT32:
+			return b.getFloat(p);
+		case TYPE_BOOL:
+			return b.get(p) != 0;
+		case TYPE_STRING:
+			return decodeString(b, p + 8, (int) b.getLong(p));
+		case TYPE_ARRAY: {
+			int elemType = b.getInt(p);
+			int len = (int) b.getLong(p + 4);
+			int q = p + 12;
+			List<Object> list = new ArrayList<>(len);
+			int size = fixedSize(elemType);
+			for (int j = 0; j < len; j++) {
+				list.add(readValue(b, q, elemType));
+				q = size > 0 ? q + size : (int) skipValidated(b, q, elemType);
+			}
+			return list;
+		}
+		case TYPE_UINT64:
+		case TYPE_INT64:
+			return b.getLong(p);
+		case TYPE_FLOAT64:
+			return b.getDouble(p);
+		default:
+			throw new IllegalArgumentException("Unknown GGUF value type: " + type);
+		}
+	}
+
+	/**
+	 * 	跳过建立索引时已经检查过边界的变长值。
+	 */
+	private static long skipValidated(ByteBuffer b, int p, int type) {
+		try {
+			return skipValue(b, p, type, b.limit());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decodeString(ByteBuffer b, int p, int len) {
+		byte[] bytes = new byte[len];
+		b.get(p, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// ── 释放映射 ──────────────────────────────────────────────────────────
+
+	private static final Object UNSAFE;
+
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			unsafe = f.get(null);
+			invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Throwable e) {
+			// 拿不到时映射由GC释放
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private static void unmap(MappedByteBuffer buffer) {
+		if (INVOKE_CLEANER == null) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		} catch (Throwable e) {
+			// 交给GC
+		}
+	}
+}
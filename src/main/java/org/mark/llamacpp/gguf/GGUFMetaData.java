@@ -1,13 +1,9 @@
 package org.mark.llamacpp.gguf;
 
-import java.io.BufferedInputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.mark.llamacpp.gguf.MtpHelper.MtpInfo;
 
@@ -70,97 +66,58 @@ public class GGUFMetaData {
         if (file == null || !file.exists() || !file.isFile()) {
             return null;
         }
-
-        String architecture = null;
-        Integer contextLength = null;
-        Integer fileType = null;
-        String baseName = null;
-        String name = null;
-        String sizeLabel = null;
-        boolean supportsAudio = false;
-        boolean supportsVision = false;
-
-        // 使用 BufferedInputStream 提高读取性能
-        try (FileInputStream fis = new FileInputStream(file);
-             BufferedInputStream bis = new BufferedInputStream(fis, 128 * 1024); // 128KB buffer
-             DataInputStream dis = new DataInputStream(bis)) {
-            
-            byte[] magicBytes = new byte[4];
-            dis.readFully(magicBytes);
-            String magic = new String(magicBytes, StandardCharsets.US_ASCII);
-            if (!"GGUF".equals(magic)) {
+        // 只解码需要的键，词表等数组只在建立索引时跳过
+        try (GGUFFile gguf = GGUFFile.open(file)) {
+            if (gguf == null) {
                 return null;
             }
-
-            // Version
-            readUInt32(dis);
-            // TensorCount
-            readUInt64(dis);
-            // KVCount
-            long kvCount = readUInt64(dis);
-
-            for (long i = 0; i < kvCount; i++) {
-                long keyLength = readUInt64(dis);
-                String key = readString(dis, (int) keyLength);
-                int valueTypeId = readUInt32(dis);
-                GgufType valueType = GgufType.fromId(valueTypeId);
-
-                boolean handled = false;
-                if ("general.architecture".equals(key)) {
-                    Object value = readValue(dis, valueType);
-                    architecture = value instanceof String ? (String) value : null;
-                    handled = true;
-                } else if ("general.basename".equals(key)) {
-                    Object value = readValue(dis, valueType);
-                    baseName = value instanceof String ? (String) value : null;
-                    handled = true;
-                } else if ("general.name".equals(key)) {
-                    Object value = readValue(dis, valueType);
-                    name = value instanceof String ? (String) value : null;
-                    handled = true;
-                } else if ("general.size_label".equals(key)) {
-                    Object value = readValue(dis, valueType);
-                    sizeLabel = value instanceof String ? (String) value : null;
-                    handled = true;
-                } else if ("general.file_type".equals(key)) {
-                    Object value = readValue(dis, valueType);
-                    if (value instanceof Number) {
-                        fileType = ((Number) value).intValue();
-                    }
-                    handled = true;
-                } else if (key.endsWith(".context_length")) {
-                    // 简单的策略：读取任何以 .context_length 结尾的键
-                    Object value = readValue(dis, valueType);
-                    if (contextLength == null) {
-                        contextLength = value instanceof Integer ? (Integer) value :
-                                        (value instanceof Long ? ((Long) value).intValue() : null);
-                    }
-                    handled = true;
-                } else if ("clip.has_audio_encoder".equals(key)) {
-                    Object value = readValue(dis, valueType);
-                    if (value instanceof Boolean && (Boolean) value) {
-                        supportsAudio = true;
-                    }
-                    handled = true;
-                } else if ("clip.has_vision_encoder".equals(key)) {
-                    Object value = readValue(dis, valueType);
-                    if (value instanceof Boolean && (Boolean) value) {
-                        supportsVision = true;
-                    }
-                    handled = true;
-                }
-
-                if (!handled) {
-                    skipValue(dis, valueType);
+            Map<String, Object> metadata = new LinkedHashMap<>();
+            for (String key : gguf.getKeys()) {
+                if (isReadFileKey(key)) {
+                    metadata.putIfAbsent(key, gguf.getValue(key));
                 }
             }
-
+            return fromMetadata(file, metadata);
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
+    }
 
-        return new GGUFMetaData(file.getName(), file.getAbsolutePath(), architecture, contextLength, fileType, baseName, name, sizeLabel, supportsAudio, supportsVision, MtpHelper.detectMtpInfo(file));
+    /**
+     * 	{@link #readFile(File)} 用到的键，包括 MTP 检测需要的 block_count 和 nextn_predict_layers。
+     */
+    private static boolean isReadFileKey(String key) {
+        return key.startsWith("general.") || key.startsWith("clip.has_") || key.endsWith(".context_length")
+                || key.endsWith(".block_count") || key.endsWith(".nextn_predict_layers");
+    }
+
+    /**
+     * 	从已经解析好的键值构造，和 {@link #readFile(File)} 取相同的字段。
+     * @param file
+     * @param metadata GGUF头部的键值，按文件中的顺序
+     * @return
+     */
+    public static GGUFMetaData fromMetadata(File file, Map<String, Object> metadata) {
+        String architecture = stringOf(metadata.get("general.architecture"));
+        Integer fileType = metadata.get("general.file_type") instanceof Number n ? n.intValue() : null;
+        Integer contextLength = null;
+        for (Map.Entry<String, Object> e : metadata.entrySet()) {
+            if (e.getKey().endsWith(".context_length") && e.getValue() instanceof Number n) {
+                contextLength = n.intValue();
+                break;
+            }
+        }
+        boolean supportsAudio = Boolean.TRUE.equals(metadata.get("clip.has_audio_encoder"));
+        boolean supportsVision = Boolean.TRUE.equals(metadata.get("clip.has_vision_encoder"));
+        return new GGUFMetaData(file.getName(), file.getAbsolutePath(), architecture, contextLength, fileType,
+                stringOf(metadata.get("general.basename")), stringOf(metadata.get("general.name")),
+                stringOf(metadata.get("general.size_label")), supportsAudio, supportsVision,
+                MtpHelper.detectMtpInfo(metadata));
+    }
+
+    private static String stringOf(Object value) {
+        return value instanceof String ? (String) value : null;
     }
 
     public String getFileName() {
@@ -276,129 +233,4 @@ public class GGUFMetaData {
     	default -> "UNKNOWN(" + fileType + ")";
     	};
     }
-
-    // --- 内部辅助方法和枚举 ---
-
-    private enum GgufType {
-        UINT8(0), INT8(1), UINT16(2), INT16(3), UINT32(4), INT32(5),
-        FLOAT32(6), BOOL(7), STRING(8), ARRAY(9), UINT64(10), INT64(11),
-        FLOAT64(12), UNKNOWN(-1);
-        private final int id;
-        GgufType(int id) { this.id = id; }
-        public static GgufType fromId(int id) {
-            for (GgufType type : values()) { if (type.id == id) return type; }
-            return UNKNOWN;
-        }
-    }
-
-    private static Object readValue(DataInput in, GgufType type) throws IOException {
-        switch (type) {
-            case UINT8:  return in.readUnsignedByte();
-            case INT8:   return in.readByte();
-            case UINT16: return readUInt16(in);
-            case INT16:  return in.readShort();
-            case UINT32: return readUInt32(in);
-            case INT32:  return in.readInt();
-            case UINT64: return readUInt64(in);
-            case INT64:  return in.readLong();
-            case FLOAT32:return in.readFloat();
-            case FLOAT64:return in.readDouble();
-            case BOOL:   return in.readByte() != 0;
-            case STRING:
-                long strLen = readUInt64(in);
-                return readString(in, (int) strLen);
-            case ARRAY:
-                GgufType elemType = GgufType.fromId(readUInt32(in));
-                long elemCount = readUInt64(in);
-                Object[] array = new Object[(int) elemCount];
-                for (int i = 0; i < elemCount; i++) {
-                    array[i] = readValue(in, elemType);
-                }
-                return array;
-            default:
-                // 对于不支持的类型，返回null
-                return null;
-        }
-    }
-
-    private static void skipValue(DataInput in, GgufType type) throws IOException {
-        switch (type) {
-            case UINT8:  skipBytes(in, 1); break;
-            case INT8:   skipBytes(in, 1); break;
-            case UINT16: skipBytes(in, 2); break;
-            case INT16:  skipBytes(in, 2); break;
-            case UINT32: skipBytes(in, 4); break;
-            case INT32:  skipBytes(in, 4); break;
-            case UINT64: skipBytes(in, 8); break;
-            case INT64:  skipBytes(in, 8); break;
-            case FLOAT32: skipBytes(in, 4); break;
-            case FLOAT64: skipBytes(in, 8); break;
-            case BOOL:   skipBytes(in, 1); break;
-            case STRING:
-                long strLen = readUInt64(in);
-                skipBytes(in, strLen);
-                break;
-            case ARRAY:
-                GgufType elemType = GgufType.fromId(readUInt32(in));
-                long elemCount = readUInt64(in);
-                for (int i = 0; i < elemCount; i++) {
-                    skipValue(in, elemType);
-                }
-                break;
-            default:
-                break;
-        }
-    }
-
-    private static void skipBytes(DataInput in, long n) throws IOException {
-        if (n <= 0) return;
-        
-        if (in instanceof RandomAccessFile) {
-           RandomAccessFile raf = (RandomAccessFile) in;
-           while (n > 0) {
-               int skipped = raf.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
-               if (skipped <= 0) break; 
-               n -= skipped;
-           }
-       } else if (in instanceof DataInputStream) {
-            long remaining = n;
-            while (remaining > 0) {
-                long skipped = ((DataInputStream) in).skip(remaining);
-                if (skipped <= 0) {
-                	// EOF or stream closed, but DataInputStream might not support skip correctly if wrapped?
-                	// fallback to read
-                	byte[] buffer = new byte[(int)Math.min(remaining, 4096)];
-                	int read = ((DataInputStream) in).read(buffer);
-                	if (read < 0) break;
-                	skipped = read;
-                }
-                remaining -= skipped;
-            }
-       } else {
-            // Fallback
-            while (n > 0) {
-                int skipped = in.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
-                if (skipped <= 0) break; 
-                n -= skipped;
-            }
-       }
-   }
-
-    private static String readString(DataInput in, int length) throws IOException {
-        byte[] bytes = new byte[length];
-        in.readFully(bytes);
-        return new String(bytes, StandardCharsets.UTF_8);
-    }
-
-    private static int readUInt16(DataInput in) throws IOException {
-        return Short.toUnsignedInt(Short.reverseBytes(in.readShort()));
-    }
-
-    private static int readUInt32(DataInput in) throws IOException {
-        return Integer.reverseBytes(in.readInt());
-    }
-
-    private static long readUInt64(DataInput in) throws IOException {
-        return Long.reverseBytes(in.readLong());
-    }
 }
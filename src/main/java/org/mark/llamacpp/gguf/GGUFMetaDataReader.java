@@ -3,156 +3,59 @@ package org.mark.llamacpp.gguf;
 public class GGUFMetaDataReader {
 
     public static java.util.Map<String, Object> read(java.io.File file) {
-        if (file == null || !file.exists() || !file.isFile()) {
-            return java.util.Collections.emptyMap();
-        }
-        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r");
-             java.nio.channels.FileChannel channel = raf.getChannel()) {
-            long size = channel.size();
-            int bufSize = (int) Math.min(size, 64L * 1024 * 1024);
-            java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(bufSize);
-            buffer.order(java.nio.ByteOrder.LITTLE_ENDIAN);
-            int totalRead = 0;
-            while (totalRead < bufSize) {
-                int n = channel.read(buffer);
-                if (n == -1) break;
-                totalRead += n;
-            }
-            buffer.flip();
-            byte[] magic = new byte[4];
-            buffer.get(magic);
-            String m = new String(magic, java.nio.charset.StandardCharsets.US_ASCII);
-            if (!"GGUF".equals(m)) {
-                return java.util.Collections.emptyMap();
-            }
-            buffer.getInt();
-            buffer.getLong();
-            long kvCount = buffer.getLong();
-            java.util.Map<String, Object> metadata = new java.util.HashMap<>();
-            for (long i = 0; i < kvCount; i++) {
-                String key = readString(buffer);
-                int type = buffer.getInt();
-                if ("tokenizer.ggml.tokens".equals(key) && type == 9) {
-                    int elemType = buffer.getInt();
-                    long len = buffer.getLong();
-                    for (long j = 0; j < len; j++) {
-                        skipValue(buffer, elemType);
-                    }
-                    metadata.put(key + ".size", len);
-                } else {
-                    Object value = readValue(buffer, type);
-                    metadata.put(key, value);
-                }
-            }
-            metadata.put("file.name", file.getName());
-            metadata.put("file.path", file.getAbsolutePath());
-            return metadata;
-        } catch (Exception e) {
+        Header header = readHeader(file, Integer.MAX_VALUE);
+        if (header == null) {
             return java.util.Collections.emptyMap();
         }
-    }
-
-    private static String readString(java.nio.ByteBuffer buffer) {
-        long len = buffer.getLong();
-        byte[] bytes = new byte[(int) len];
-        buffer.get(bytes);
-        return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
-    }
-
-    private static Object readValue(java.nio.ByteBuffer buffer, int type) {
-        switch (type) {
-            case 0:
-                return buffer.get() & 0xFF;
-            case 1:
-                return buffer.get();
-            case 2:
-                return buffer.getShort() & 0xFFFF;
-            case 3:
-                return buffer.getShort();
-            case 4:
-                return buffer.getInt() & 0xFFFFFFFFL;
-            case 5:
-                return buffer.getInt();
-            case 6:
-                return buffer.getFloat();
-            case 7:
-                return buffer.get() != 0;
-            case 8:
-                return readString(buffer);
-            case 9:
-                return readArray(buffer);
-            case 10:
-                return buffer.getLong();
-            case 11:
-                return buffer.getLong();
-            case 12:
-                return buffer.getDouble();
-            default:
-                throw new IllegalArgumentException("Unknown GGUF value type: " + type);
+        java.util.Map<String, Object> metadata = new java.util.HashMap<>(header.metadata());
+        Long tokens = header.arrayLengths().get("tokenizer.ggml.tokens");
+        if (tokens != null) {
+            metadata.put("tokenizer.ggml.tokens.size", tokens);
         }
+        metadata.put("file.name", file.getName());
+        metadata.put("file.path", file.getAbsolutePath());
+        return metadata;
     }
 
-    private static java.util.List<Object> readArray(java.nio.ByteBuffer buffer) {
-        int t = buffer.getInt();
-        long len = buffer.getLong();
-        java.util.List<Object> list = new java.util.ArrayList<>((int) len);
-        for (int i = 0; i < len; i++) {
-            list.add(readValue(buffer, t));
+    /**
+     * 	读取GGUF头部的全部键值。
+     * @param file
+     * @param maxArrayLength 超过这个长度的数组不解码，只在 arrayLengths 里记录长度；tokenizer.ggml.tokens 总是只记长度
+     * @return 不是GGUF文件或读取失败时返回 null
+     */
+    public static Header readHeader(java.io.File file, int maxArrayLength) {
+        if (file == null || !file.exists() || !file.isFile()) {
+            return null;
         }
-        return list;
-    }
-
-    private static void skipValue(java.nio.ByteBuffer buffer, int type) {
-        switch (type) {
-            case 0:
-                buffer.get();
-                return;
-            case 1:
-                buffer.get();
-                return;
-            case 2:
-                buffer.getShort();
-                return;
-            case 3:
-                buffer.getShort();
-                return;
-            case 4:
-                buffer.getInt();
-                return;
-            case 5:
-                buffer.getInt();
-                return;
-            case 6:
-                buffer.getFloat();
-                return;
-            case 7:
-                buffer.get();
-                return;
-            case 8: {
-                long len = buffer.getLong();
-                int n = (int) len;
-                buffer.position(buffer.position() + n);
-                return;
+        try (GGUFFile gguf = GGUFFile.open(file)) {
+            if (gguf == null) {
+                return null;
             }
-            case 9: {
-                int t = buffer.getInt();
-                long len = buffer.getLong();
-                for (long i = 0; i < len; i++) {
-                    skipValue(buffer, t);
+            java.util.Map<String, Object> metadata = new java.util.LinkedHashMap<>();
+            java.util.Map<String, Long> arrayLengths = new java.util.LinkedHashMap<>();
+            for (String key : gguf.getKeys()) {
+                long len = gguf.getArrayLength(key);
+                if (len >= 0 && ("tokenizer.ggml.tokens".equals(key) || len > maxArrayLength)) {
+                    arrayLengths.put(key, len);
+                } else {
+                    metadata.putIfAbsent(key, gguf.getValue(key));
                 }
-                return;
             }
-            case 10:
-                buffer.getLong();
-                return;
-            case 11:
-                buffer.getLong();
-                return;
-            case 12:
-                buffer.getDouble();
-                return;
-            default:
-                return;
+            return new Header(gguf.getVersion(), gguf.getTensorCount(), gguf.getKvCount(), metadata, arrayLengths);
+        } catch (Exception e) {
+            return null;
         }
     }
+
+    /**
+     * 	GGUF头部。
+     * @param version
+     * @param tensorCount
+     * @param kvCount
+     * @param metadata 键值，按文件中的顺序
+     * @param arrayLengths 没有解码的数组及其长度
+     */
+    public record Header(int version, long tensorCount, long kvCount, java.util.Map<String, Object> metadata,
+            java.util.Map<String, Long> arrayLengths) {
+    }
 }
@@ -0,0 +1,529 @@
+package org.mark.llamacpp.gguf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 	GGUF头部元数据的缓存，所有需要读取GGUF元数据的地方都从这里取。
+ * 	<p>
+ * 	以规范路径为键，文件大小和修改时间任一变化就重新解析。超过 {@value #MAX_ARRAY_LENGTH} 个元素的数组
+ * 	（词表、merges 等）只记录长度。缓存保存在 cache/gguf-metadata.idx，启动后第一次使用时载入，
+ * 	有新解析的文件时延迟几秒整体重写一次。下载校验过的文件还会记下 SHA-256，文件不变就不用再算。
+ */
+public class GGUFMetadataCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(GGUFMetadataCache.class);
+
+	/**
+	 * 	缓存的数组最大长度，和 VramEstimator 读取元数据时的上限一致。
+	 */
+	public static final int MAX_ARRAY_LENGTH = 4096;
+
+	private static final String INDEX_FILE = "cache/gguf-metadata.idx";
+
+	private static final int INDEX_MAGIC = 0x474D4358; // "GMCX"
+
+	private static final int INDEX_VERSION = 2;
+
+	/**
+	 * 	有新条目后延迟多久写盘，扫描目录时的大量解析合并成一次写入。
+	 */
+	private static final long SAVE_DELAY_MS = 3000;
+
+	private static final GGUFMetadataCache INSTANCE = create();
+
+	public static GGUFMetadataCache getInstance() {
+		return INSTANCE;
+	}
+
+	private final Path indexPath;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+	private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+
+	private final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "gguf-metadata-cache");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * 	共享实例，退出时把没写盘的改动写入。
+	 */
+	private static GGUFMetadataCache create() {
+		GGUFMetadataCache cache = new GGUFMetadataCache(Paths.get(INDEX_FILE));
+		Runtime.getRuntime().addShutdownHook(new Thread(cache::flush, "gguf-metadata-cache-shutdown"));
+		return cache;
+	}
+
+	/**
+	 * 	使用指定索引文件的独立实例，正常情况下用 {@link #getInstance()}。
+	 * 	退出时不会自动写盘，需要的话自己调用 {@link #flush()}。
+	 * @param indexPath
+	 */
+	public GGUFMetadataCache(Path indexPath) {
+		this.indexPath = indexPath;
+		this.load();
+	}
+
+	/**
+	 * 	取文件的缓存条目，文件变化或没有缓存时重新解析。
+	 * @param file
+	 * @return 不是GGUF文件或无法读取时返回 null
+	 */
+	public Entry get(File file) {
+		Entry entry = this.lookup(file);
+		return entry != null && entry.valid ? entry : null;
+	}
+
+	/**
+	 * 	文件的 SHA-256。
+	 * @param file
+	 * @return 没算过或者文件之后变过时返回 null
+	 */
+	public String getSha256(File file) {
+		Entry entry = this.lookup(file);
+		return entry == null ? null : entry.sha256;
+	}
+
+	/**
+	 * 	记下文件的 SHA-256，和当前的大小、修改时间绑定。
+	 * @param file
+	 * @param sha256 小写十六进制
+	 */
+	public void putSha256(File file, String sha256) {
+		Entry entry = this.lookup(file);
+		if (entry != null && !sha256.equals(entry.sha256)) {
+			entry.sha256 = sha256;
+			this.markDirty();
+		}
+	}
+
+	/**
+	 * 	取文件的缓存条目（包括不是GGUF的文件），文件变化或没有缓存时重新解析。
+	 * @param file
+	 * @return 文件不存在时返回 null
+	 */
+	private Entry lookup(File file) {
+		if (file == null) {
+			return null;
+		}
+		String key;
+		BasicFileAttributes attrs;
+		try {
+			key = file.getCanonicalPath();
+			attrs = Files.readAttributes(Paths.get(key), BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+		if (!attrs.isRegularFile()) {
+			return null;
+		}
+		long size = attrs.size();
+		long mtime = attrs.lastModifiedTime().toMillis();
+		Entry cached = this.entries.get(key);
+		if (cached != null && cached.size == size && cached.mtime == mtime) {
+			return cached;
+		}
+		GGUFMetaDataReader.Header header = GGUFMetaDataReader.readHeader(new File(key), MAX_ARRAY_LENGTH);
+		Entry entry = header == null
+				? new Entry(key, size, mtime, false, 0, 0L, 0L, Collections.emptyMap(), Collections.emptyMap())
+				: new Entry(key, size, mtime, true, header.version(), header.tensorCount(), header.kvCount(),
+						Collections.unmodifiableMap(header.metadata()), Collections.unmodifiableMap(header.arrayLengths()));
+		this.entries.put(key, entry);
+		this.markDirty();
+		return entry;
+	}
+
+	/**
+	 * 	和 {@link GGUFMetaDataReader#read(File)} 相同格式的元数据（可修改的副本），但不包含长数组。
+	 * @param file
+	 * @return 无法读取时返回空Map
+	 */
+	public Map<String, Object> readMetadata(File file) {
+		Entry entry = this.get(file);
+		if (entry == null) {
+			return new HashMap<>();
+		}
+		Map<String, Object> out = new HashMap<>(entry.metadata);
+		Long tokens = entry.arrayLengths.get("tokenizer.ggml.tokens");
+		if (tokens != null) {
+			out.put("tokenizer.ggml.tokens.size", tokens);
+		}
+		out.put("file.name", file.getName());
+		out.put("file.path", file.getAbsolutePath());
+		return out;
+	}
+
+	/**
+	 * 	文件的 {@link GGUFMetaData}。
+	 * @param file
+	 * @return 不是GGUF文件时返回 null
+	 */
+	public GGUFMetaData getMetaData(File file) {
+		Entry entry = this.get(file);
+		return entry == null ? null : entry.toMetaData(file);
+	}
+
+	/**
+	 * 	内置的聊天模板。
+	 * @param file
+	 * @return 没有时返回 null
+	 */
+	public String getChatTemplate(File file) {
+		Entry entry = this.get(file);
+		Object tpl = entry == null ? null : entry.metadata.get("tokenizer.chat_template");
+		return tpl == null ? null : String.valueOf(tpl);
+	}
+
+	/**
+	 * 	去掉某个文件的缓存。
+	 * @param file
+	 */
+	public void invalidate(File file) {
+		try {
+			if (this.entries.remove(file.getCanonicalPath()) != null) {
+				this.markDirty();
+			}
+		} catch (IOException ignore) {
+		}
+	}
+
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * 	立即把缓存写入磁盘（有改动时）。
+	 */
+	public void flush() {
+		if (!this.dirty.compareAndSet(true, false)) {
+			return;
+		}
+		try {
+			this.save();
+		} catch (Exception e) {
+			this.dirty.set(true);
+			logger.info("保存GGUF元数据缓存失败: {}", e.getMessage());
+		}
+	}
+
+	private void markDirty() {
+		this.dirty.set(true);
+		if (this.saveScheduled.compareAndSet(false, true)) {
+			this.saver.schedule(() -> {
+				this.saveScheduled.set(false);
+				this.flush();
+			}, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized void save() throws IOException {
+		List<Entry> snapshot = new ArrayList<>(this.entries.values());
+		Path parent = this.indexPath.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		Path temp = this.indexPath.resolveSibling(this.indexPath.getFileName() + ".tmp");
+		// 跳过已经不存在的文件
+		List<Entry> alive = new ArrayList<>(snapshot.size());
+		for (Entry e : snapshot) {
+			if (Files.exists(Paths.get(e.path))) {
+				alive.add(e);
+			} else {
+				this.entries.remove(e.path, e);
+			}
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(alive.size());
+			for (Entry e : alive) {
+				e.writeTo(out);
+			}
+		}
+		try {
+			Files.move(temp, this.indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, this.indexPath, StandardCopyOption.REPLACE_EXISTING);
+		}
+		logger.debug("GGUF元数据缓存已保存: {} 个文件", alive.size());
+	}
+
+	private void load() {
+		if (!Files.isRegularFile(this.indexPath)) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.indexPath), 64 * 1024))) {
+			if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+				logger.info("GGUF元数据缓存格式不匹配，忽略: {}", this.indexPath);
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Entry e = Entry.readFrom(in);
+				this.entries.put(e.path, e);
+			}
+			logger.info("已载入GGUF元数据缓存: {} 个文件", count);
+		} catch (Exception e) {
+			this.entries.clear();
+			logger.info("读取GGUF元数据缓存失败，将重新解析: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * 	一个文件的元数据。
+	 */
+	public static final class Entry {
+		private final String path;
+		private final long size;
+		private final long mtime;
+		private final boolean valid;
+		private final int version;
+		private final long tensorCount;
+		private final long kvCount;
+		private final Map<String, Object> metadata;
+		private final Map<String, Long> arrayLengths;
+		private volatile String sha256;
+		private volatile GGUFMetaData metaData;
+
+		private Entry(String path, long size, long mtime, boolean valid, int version, long tensorCount, long kvCount,
+				Map<String, Object> metadata, Map<String, Long> arrayLengths) {
+			this.path = path;
+			this.size = size;
+			this.mtime = mtime;
+			this.valid = valid;
+			this.version = version;
+			this.tensorCount = tensorCount;
+			this.kvCount = kvCount;
+			this.metadata = metadata;
+			this.arrayLengths = arrayLengths;
+		}
+
+		public String getPath() {
+			return this.path;
+		}
+
+		public long getSize() {
+			return this.size;
+		}
+
+		public long getMtime() {
+			return this.mtime;
+		}
+
+		public int getVersion() {
+			return this.version;
+		}
+
+		public long getTensorCount() {
+			return this.tensorCount;
+		}
+
+		public long getKvCount() {
+			return this.kvCount;
+		}
+
+		/**
+		 * 	头部键值，按文件中的顺序，只读。
+		 * @return
+		 */
+		public Map<String, Object> getMetadata() {
+			return this.metadata;
+		}
+
+		/**
+		 * 	校验过的 SHA-256，没算过时为 null。
+		 * @return
+		 */
+		public String getSha256() {
+			return this.sha256;
+		}
+
+		/**
+		 * 	没有缓存内容的长数组及其长度。
+		 * @return
+		 */
+		public Map<String, Long> getArrayLengths() {
+			return this.arrayLengths;
+		}
+
+		private GGUFMetaData toMetaData(File file) {
+			GGUFMetaData md = this.metaData;
+			if (md == null || !md.getFilePath().equals(file.getAbsolutePath())) {
+				md = GGUFMetaData.fromMetadata(file, this.metadata);
+				this.metaData = md;
+			}
+			return md;
+		}
+
+		private void writeTo(DataOutputStream out) throws IOException {
+			writeString(out, this.path);
+			out.writeLong(this.size);
+			out.writeLong(this.mtime);
+			out.writeBoolean(this.valid);
+			out.writeInt(this.version);
+			out.writeLong(this.tensorCount);
+			out.writeLong(this.kvCount);
+			out.writeInt(this.metadata.size());
+			for (Map.Entry<String, Object> e : this.metadata.entrySet()) {
+				writeString(out, e.getKey());
+				writeValue(out, e.getValue());
+			}
+			out.writeInt(this.arrayLengths.size());
+			for (Map.Entry<String, Long> e : this.arrayLengths.entrySet()) {
+				writeString(out, e.getKey());
+				out.writeLong(e.getValue());
+			}
+			writeString(out, this.sha256 == null ? "" : this.sha256);
+		}
+
+		private static Entry readFrom(DataInputStream in) throws IOException {
+			String path = readString(in);
+			long size = in.readLong();
+			long mtime = in.readLong();
+			boolean valid = in.readBoolean();
+			int version = in.readInt();
+			long tensorCount = in.readLong();
+			long kvCount = in.readLong();
+			int n = in.readInt();
+			Map<String, Object> metadata = new LinkedHashMap<>(Math.max(16, n * 2));
+			for (int i = 0; i < n; i++) {
+				String key = readString(in);
+				metadata.put(key, readValue(in));
+			}
+			int m = in.readInt();
+			Map<String, Long> arrayLengths = new LinkedHashMap<>();
+			for (int i = 0; i < m; i++) {
+				String key = readString(in);
+				arrayLengths.put(key, in.readLong());
+			}
+			Entry entry = new Entry(path, size, mtime, valid, version, tensorCount, kvCount,
+					Collections.unmodifiableMap(metadata), Collections.unmodifiableMap(arrayLengths));
+			String sha256 = readString(in);
+			entry.sha256 = sha256.isEmpty() ? null : sha256;
+			return entry;
+		}
+	}
+
+	// 值按Java类型打标记保存，读回来的类型和 GGUFMetaDataReader 解析出的完全一致
+
+	private static void writeValue(DataOutputStream out, Object v) throws IOException {
+		if (v == null) {
+			out.writeByte('N');
+		} else if (v instanceof Integer i) {
+			out.writeByte('I');
+			out.writeInt(i);
+		} else if (v instanceof Long l) {
+			out.writeByte('J');
+			out.writeLong(l);
+		} else if (v instanceof Short s) {
+			out.writeByte('S');
+			out.writeShort(s);
+		} else if (v instanceof Byte b) {
+			out.writeByte('B');
+			out.writeByte(b);
+		} else if (v instanceof Float f) {
+			out.writeByte('F');
+			out.writeFloat(f);
+		} else if (v instanceof Double d) {
+			out.writeByte('D');
+			out.writeDouble(d);
+		} else if (v instanceof Boolean z) {
+			out.writeByte('Z');
+			out.writeBoolean(z);
+		} else if (v instanceof List<?> list) {
+			out.writeByte('L');
+			out.writeInt(list.size());
+			for (Object o : list) {
+				writeValue(out, o);
+			}
+		} else {
+			out.writeByte('T');
+			writeString(out, String.valueOf(v));
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		int tag = in.readByte();
+		switch (tag) {
+		case 'N':
+			return null;
+		case 'I':
+			return in.readInt();
+		case 'J':
+			return in.readLong();
+		case 'S':
+			return in.readShort();
+		case 'B':
+			return in.readByte();
+		case 'F':
+			return in.readFloat();
+		case 'D':
+			return in.readDouble();
+		case 'Z':
+			return in.readBoolean();
+		case 'T':
+			return readString(in);
+		case 'L': {
+			int n = in.readInt();
+			List<Object> list = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				list.add(readValue(in));
+			}
+			return list;
+		}
+		default:
+			throw new IOException("未知的值类型: " + tag);
+		}
+	}
+
+	/**
+	 * 	长度前缀的UTF-8字符串；聊天模板可能超过 writeUTF 的64KB限制。
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0) {
+			throw new IOException("字符串长度无效: " + len);
+		}
+		byte[] bytes = in.readNBytes(len);
+		if (bytes.length != len) {
+			throw new IOException("索引文件不完整");
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
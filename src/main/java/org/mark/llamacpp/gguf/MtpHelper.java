@@ -24,11 +24,6 @@ import com.google.gson.*;
  */
 public final class MtpHelper {
 
-    @FunctionalInterface
-    private interface BufferParser<T> {
-        T parse(ByteBuffer buffer) throws IOException;
-    }
-
     private MtpHelper() {}
 
     // ── GGUF value type constants ──────────────────────────────────────────
@@ -77,8 +72,32 @@ public final class MtpHelper {
      * @return MtpInfo with detection results, or {@link MtpInfo#none()} if no MTP
      */
     public static MtpInfo detectMtpInfo(File file) {
-        Map<String, Object> meta = readMetadata(file);
-        if (meta.isEmpty()) return MtpInfo.none();
+        if (file == null || !file.isFile()) return MtpInfo.none();
+        try (GGUFFile gguf = GGUFFile.open(file)) {
+            if (gguf == null) return MtpInfo.none();
+            String arch = gguf.getString("general.architecture");
+            if (arch == null) return MtpInfo.none();
+            // only the three keys used by detection are decoded
+            Map<String, Object> meta = new HashMap<>();
+            meta.put("general.architecture", arch);
+            for (String key : List.of(arch + ".block_count", arch + ".nextn_predict_layers")) {
+                Object value = gguf.getValue(key);
+                if (value != null) meta.put(key, value);
+            }
+            return detectMtpInfo(meta);
+        } catch (IOException e) {
+            return MtpInfo.none();
+        }
+    }
+
+    /**
+     * Detect MTP layers from already parsed KV metadata.
+     *
+     * @param meta the GGUF KV metadata
+     * @return MtpInfo with detection results, or {@link MtpInfo#none()} if no MTP
+     */
+    public static MtpInfo detectMtpInfo(Map<String, Object> meta) {
+        if (meta == null || meta.isEmpty()) return MtpInfo.none();
 
         String arch = (String) meta.get("general.architecture");
         if (arch == null) return MtpInfo.none();
@@ -427,66 +446,40 @@ public final class MtpHelper {
 
     /**
      * Parse a GGUF file into metadata, tensor info, and on-disk sizes.
+     * <p>
+     * KVs are decoded in full because they are written back by {@link #mergeDonor}.
      */
     static void parseGguf(
         File file, long fileSize, int alignment,
         Map<String, Object> metaOut, Map<String, Integer> kvTypesOut,
         List<TensorInfo> tensorsOut, List<Long> onDiskSizesOut
     ) throws IOException {
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
-             FileChannel channel = raf.getChannel()) {
-            ParsedGguf parsed = parseWithGrowingBuffer(channel, fileSize, buffer -> {
-                skipMagic(buffer);
-                buffer.getInt(); // version
-                long tensorCount = readULE64(buffer);
-                long kvCount = readULE64(buffer);
-
-                LinkedHashMap<String, Object> meta = new LinkedHashMap<>();
-                LinkedHashMap<String, Integer> kvTypes = new LinkedHashMap<>();
-                for (long i = 0; i < kvCount; i++) {
-                    String key = readString(buffer);
-                    int type = buffer.getInt();
-                    kvTypes.put(key, type);
-                    Object value = readValue(buffer, type);
-                    meta.put(key, value);
-                }
-
-                List<TensorInfo> tensors = new ArrayList<>((int) tensorCount);
-                for (long i = 0; i < tensorCount; i++) {
-                    String tname = readString(buffer);
-                    int nDims = buffer.getInt();
-                    List<Long> shape = new ArrayList<>(nDims);
-                    for (int j = 0; j < nDims; j++) shape.add(readULE64(buffer));
-                    int ttype = buffer.getInt();
-                    long off = readULE64(buffer);
-                    tensors.add(new TensorInfo(tname, shape, ttype, off, 0));
-                }
-
-                int effectiveAlignment = meta.containsKey("general.alignment")
-                    ? ((Number) meta.get("general.alignment")).intValue()
-                    : alignment;
-                long posAfterTi = buffer.position();
-                long padToAlign = (effectiveAlignment - (posAfterTi % effectiveAlignment)) % effectiveAlignment;
-                long dataSectionStart = posAfterTi + padToAlign;
-
-                List<TensorInfo> tensorsWithSizes = new ArrayList<>(tensors.size());
-                for (int i = 0; i < tensors.size(); i++) {
-                    TensorInfo t = tensors.get(i);
-                    long absOff = dataSectionStart + t.dataOffset;
-                    long sz = (i < tensors.size() - 1)
-                        ? (dataSectionStart + tensors.get(i + 1).dataOffset) - absOff
-                        : fileSize - absOff;
-                    tensorsWithSizes.add(new TensorInfo(t.name, t.shape, t.tensorType, absOff, sz));
+        try (GGUFFile gguf = GGUFFile.open(file)) {
+            if (gguf == null) {
+                throw new IOException("Not a GGUF file: " + file);
+            }
+            for (String key : gguf.getKeys()) {
+                if (!metaOut.containsKey(key)) {
+                    kvTypesOut.put(key, gguf.getType(key));
+                    metaOut.put(key, gguf.getValue(key));
                 }
+            }
 
-                return new ParsedGguf(meta, kvTypes, tensorsWithSizes);
-            });
-
-            metaOut.putAll(parsed.meta());
-            kvTypesOut.putAll(parsed.kvTypes());
-            tensorsOut.addAll(parsed.tensors());
-            for (TensorInfo t : parsed.tensors()) {
-                onDiskSizesOut.add(t.dataSize);
+            int effectiveAlignment = gguf.has("general.alignment") ? gguf.getAlignment() : alignment;
+            long posAfterTi = gguf.getHeaderSize();
+            long padToAlign = (effectiveAlignment - (posAfterTi % effectiveAlignment)) % effectiveAlignment;
+            long dataSectionStart = posAfterTi + padToAlign;
+
+            int tensorCount = (int) gguf.getTensorCount();
+            for (int i = 0; i < tensorCount; i++) {
+                long absOff = dataSectionStart + gguf.getTensorOffset(i);
+                long sz = (i < tensorCount - 1)
+                    ? (dataSectionStart + gguf.getTensorOffset(i + 1)) - absOff
+                    : fileSize - absOff;
+                List<Long> shape = new ArrayList<>();
+                for (long d : gguf.getTensorShape(i)) shape.add(d);
+                tensorsOut.add(new TensorInfo(gguf.getTensorName(i), shape, gguf.getTensorType(i), absOff, sz));
+                onDiskSizesOut.add(sz);
             }
         }
     }
@@ -498,84 +491,23 @@ public final class MtpHelper {
         if (file == null || !file.exists() || !file.isFile()) {
             return Collections.emptyMap();
         }
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
-             FileChannel channel = raf.getChannel()) {
-            long size = channel.size();
-            Map<String, Object> metadata = parseWithGrowingBuffer(channel, size, buffer -> {
-                byte[] magic = new byte[4];
-                buffer.get(magic);
-                if (!"GGUF".equals(new String(magic, StandardCharsets.US_ASCII))) {
-                    return Collections.emptyMap();
-                }
-                buffer.getInt(); // version
-                readULE64(buffer); // tensor count (skip)
-                long kvCount = readULE64(buffer);
-
-                Map<String, Object> result = new HashMap<>();
-                for (long i = 0; i < kvCount; i++) {
-                    String key = readString(buffer);
-                    int type = buffer.getInt();
-                    if ("tokenizer.ggml.tokens".equals(key) && type == ARRAY) {
-                        int elemType = buffer.getInt();
-                        long len = readULE64(buffer);
-                        for (long j = 0; j < len; j++) {
-                            skipValue(buffer, elemType);
-                        }
-                        result.put(key + ".size", len);
-                    } else {
-                        Object value = readValue(buffer, type);
-                        result.put(key, value);
-                    }
-                }
-                return result;
-            });
-            metadata.put("file.name", file.getName());
-            metadata.put("file.path", file.getAbsolutePath());
-            return metadata;
-        } catch (Exception e) {
-            return Collections.emptyMap();
-        }
-    }
-
-    static <T> T parseWithGrowingBuffer(
-        FileChannel channel,
-        long fileSize,
-        BufferParser<T> parser
-    ) throws IOException {
-        if (fileSize <= 0) {
-            throw new EOFException("Empty GGUF file");
-        }
-
-        long maxReadableSize = Math.min(fileSize, (long) Integer.MAX_VALUE);
-        long bufSize = Math.min(maxReadableSize, 8L * 1024 * 1024);
-        if (bufSize <= 0) {
-            bufSize = maxReadableSize;
-        }
-
-        while (true) {
-            ByteBuffer buffer = ByteBuffer.allocate((int) bufSize);
-            buffer.order(ByteOrder.LITTLE_ENDIAN);
-            channel.position(0);
-            while (buffer.hasRemaining()) {
-                int n = channel.read(buffer);
-                if (n == -1) {
-                    break;
-                }
+        try (GGUFFile gguf = GGUFFile.open(file)) {
+            if (gguf == null) {
+                return Collections.emptyMap();
             }
-            buffer.flip();
-
-            try {
-                return parser.parse(buffer);
-            } catch (BufferUnderflowException e) {
-                if (bufSize >= maxReadableSize) {
-                    throw new IOException("GGUF header exceeds readable prefix size: " + fileSize, e);
-                }
-                long nextSize = Math.min(maxReadableSize, Math.max(bufSize * 2, bufSize + 8L * 1024 * 1024));
-                if (nextSize <= bufSize) {
-                    throw new IOException("Failed to grow GGUF header buffer", e);
+            Map<String, Object> result = new HashMap<>();
+            for (String key : gguf.getKeys()) {
+                if ("tokenizer.ggml.tokens".equals(key) && gguf.getType(key) == ARRAY) {
+                    result.put(key + ".size", gguf.getArrayLength(key));
+                } else {
+                    result.putIfAbsent(key, gguf.getValue(key));
                 }
-                bufSize = nextSize;
             }
+            result.put("file.name", file.getName());
+            result.put("file.path", file.getAbsolutePath());
+            return result;
+        } catch (Exception e) {
+            return Collections.emptyMap();
         }
     }
 
@@ -650,92 +582,6 @@ public final class MtpHelper {
         return JsonNull.INSTANCE;
     }
 
-    // ── ByteBuffer read helpers ────────────────────────────────────────────
-
-    static void skipMagic(ByteBuffer buffer) {
-        ensureRemaining(buffer, 4);
-        buffer.position(buffer.position() + 4);
-    }
-
-    static long readULE64(ByteBuffer buffer) {
-        return buffer.getLong();
-    }
-
-    static String readString(ByteBuffer buffer) {
-        long len = readULE64(buffer);
-        ensureRemaining(buffer, len);
-        byte[] bytes = new byte[(int) len];
-        buffer.get(bytes);
-        return new String(bytes, StandardCharsets.UTF_8);
-    }
-
-    static void skipString(ByteBuffer buffer) {
-        long len = readULE64(buffer);
-        ensureRemaining(buffer, len);
-        buffer.position(buffer.position() + (int) len);
-    }
-
-    static Object readValue(ByteBuffer buffer, int type) {
-        switch (type) {
-            case UINT8:  return buffer.get() & 0xFF;
-            case INT8:   return buffer.get();
-            case UINT16: return Short.toUnsignedInt(buffer.getShort());
-            case INT16:  return buffer.getShort();
-            case UINT32: return buffer.getInt() & 0xFFFFFFFFL;
-            case INT32:  return buffer.getInt();
-            case FLOAT32: return buffer.getFloat();
-            case BOOL:   return buffer.get() != 0;
-            case STRING: return readString(buffer);
-            case ARRAY: {
-                int subType = buffer.getInt();
-                long len = readULE64(buffer);
-                List<Object> list = new ArrayList<>((int) len);
-                for (int i = 0; i < len; i++) {
-                    list.add(readValue(buffer, subType));
-                }
-                return list;
-            }
-            case UINT64: return buffer.getLong();
-            case INT64:  return buffer.getLong();
-            case FLOAT64: return buffer.getDouble();
-            default: throw new IllegalArgumentException("Unknown GGUF value type: " + type);
-        }
-    }
-
-    static void skipValue(ByteBuffer buffer, int type) {
-        switch (type) {
-            case UINT8: case INT8: case BOOL:
-                buffer.get(); break;
-            case UINT16: case INT16:
-                buffer.getShort(); break;
-            case UINT32: case INT32: case FLOAT32:
-                buffer.getInt(); break;
-            case UINT64: case INT64: case FLOAT64:
-                buffer.getLong(); break;
-            case STRING: {
-                long len = readULE64(buffer);
-                ensureRemaining(buffer, len);
-                buffer.position(buffer.position() + (int) len);
-                break;
-            }
-            case ARRAY: {
-                int subType = buffer.getInt();
-                long len = readULE64(buffer);
-                for (int i = 0; i < len; i++) {
-                    skipValue(buffer, subType);
-                }
-                break;
-            }
-            default: break;
-        }
-    }
-
-    static void ensureRemaining(ByteBuffer buffer, long needed) {
-        if (needed < 0 || needed > Integer.MAX_VALUE || buffer.remaining() < (int) needed) {
-            throw new BufferUnderflowException();
-        }
-    }
-
     // ── RandomAccessFile write helpers ─────────────────────────────────────
 
     static void writeULE32(RandomAccessFile raf, int v) throws IOException {
@@ -922,10 +768,4 @@ public final class MtpHelper {
     private static record TensorInfo(
         String name, List<Long> shape, int tensorType, long dataOffset, long dataSize
     ) {}
-
-    private static record ParsedGguf(
-        Map<String, Object> meta,
-        Map<String, Integer> kvTypes,
-        List<TensorInfo> tensors
-    ) {}
 }
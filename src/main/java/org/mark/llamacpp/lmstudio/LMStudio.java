@@ -2,28 +2,20 @@ package org.mark.llamacpp.lmstudio;
 
 import org.mark.llamacpp.lmstudio.channel.LMStudioRouterHandler;
 import org.mark.llamacpp.lmstudio.websocket.LMStudioWsPathSelectHandler;
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.channel.HttpKeepAliveHandler;
+import org.mark.llamacpp.server.channel.NettyTransport;
 import org.mark.llamacpp.server.channel.OpenAIChatStreamingHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.stream.ChunkedWriteHandler;
 
-import javax.net.ssl.SSLEngine;
-
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -60,8 +52,6 @@ public class LMStudio {
 	private final AtomicLong generation = new AtomicLong(0L);
 	private volatile long activeGeneration = 0L;
 	
-	private volatile EventLoopGroup bossGroup;
-	private volatile EventLoopGroup workerGroup;
 	private volatile Channel serverChannel;
 	
 	
@@ -107,55 +97,18 @@ public class LMStudio {
 	}
 	
 	private void runServer(long gen) {
-		EventLoopGroup localBossGroup = new NioEventLoopGroup();
-		EventLoopGroup localWorkerGroup = new NioEventLoopGroup();
-		
-		synchronized (lifecycleLock) {
-			if (this.activeGeneration == gen) {
-				this.bossGroup = localBossGroup;
-				this.workerGroup = localWorkerGroup;
-			}
-		}
-		
 		try {
-			ServerBootstrap bootstrap = new ServerBootstrap();
-			bootstrap.group(localBossGroup, localWorkerGroup)
-					.channel(NioServerSocketChannel.class)
-					.option(ChannelOption.SO_BACKLOG, 1024)
-					.childOption(ChannelOption.SO_KEEPALIVE, true)
-					.childHandler(new ChannelInitializer<SocketChannel>() {
-						@Override
-						protected void initChannel(SocketChannel ch) throws Exception {
-							SslContext sslContext = org.mark.llamacpp.server.LlamaServer.getHttpsSslContext();
-							if (sslContext != null) {
-								SSLEngine engine = sslContext.newEngine(ch.alloc());
-								ch.pipeline()
-										.addLast(new SslHandler(engine))
-										.addLast(new HttpServerCodec())
-										.addLast(new OpenAIChatStreamingHandler())
-										.addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
-										.addLast(new ChunkedWriteHandler())
-										.addLast(new LMStudioWsPathSelectHandler())
-										.addLast(new LMStudioRouterHandler());
-							} else {
-								ch.pipeline()
-										.addLast(new HttpServerCodec())
-										.addLast(new OpenAIChatStreamingHandler())
-										.addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
-										.addLast(new ChunkedWriteHandler())
-										.addLast(new LMStudioWsPathSelectHandler())
-										.addLast(new LMStudioRouterHandler());
-							}
-						}
-						@Override
-						public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-							logger.info("Failed to initialize a channel. Closing: " + ctx.channel(), cause);
-							ctx.close();
-						}
-					});
-			
 			int bindPort = this.port;
-			ChannelFuture future = bootstrap.bind(bindPort).sync();
+			ChannelFuture future = NettyTransport.getInstance().bind("LMStudio", bindPort, LlamaServer.getHttpsSslContext(), (ch, pipeline) -> {
+				pipeline.addLast(new HttpServerCodec())
+						.addLast(HttpKeepAliveHandler.newIdleStateHandler())
+						.addLast(new HttpKeepAliveHandler())
+						.addLast(new OpenAIChatStreamingHandler())
+						.addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
+						.addLast(new ChunkedWriteHandler())
+						.addLast(new LMStudioWsPathSelectHandler())
+						.addLast(new LMStudioRouterHandler());
+			}).sync();
 			synchronized (lifecycleLock) {
 				if (this.activeGeneration == gen) {
 					this.serverChannel = future.channel();
@@ -176,20 +129,9 @@ public class LMStudio {
 		} catch (Exception e) {
 			logger.info("服务器启动失败", e);
 		} finally {
-			try {
-				localBossGroup.shutdownGracefully();
-			} catch (Exception ignore) {
-			}
-			try {
-				localWorkerGroup.shutdownGracefully();
-			} catch (Exception ignore) {
-			}
-			
 			synchronized (lifecycleLock) {
 				if (this.activeGeneration == gen) {
 					this.serverChannel = null;
-					this.bossGroup = null;
-					this.workerGroup = null;
 					this.worker = null;
 				}
 			}
@@ -209,22 +151,6 @@ public class LMStudio {
 				} catch (Exception ignore) {
 				}
 			}
-			
-			EventLoopGroup bg = this.bossGroup;
-			if (bg != null) {
-				try {
-					bg.shutdownGracefully();
-				} catch (Exception ignore) {
-				}
-			}
-			
-			EventLoopGroup wg = this.workerGroup;
-			if (wg != null) {
-				try {
-					wg.shutdownGracefully();
-				} catch (Exception ignore) {
-				}
-			}
 		}
 	}
 }
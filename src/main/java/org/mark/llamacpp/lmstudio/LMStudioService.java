@@ -22,6 +22,11 @@ import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ModelAdmissionQueue;
+import org.mark.llamacpp.server.ModelAutoLoader;
+import org.mark.llamacpp.server.ModelRoutingTable;
+import org.mark.llamacpp.server.io.UpstreamConnectionPool;
+import org.mark.llamacpp.server.exception.AdmissionRejectedException;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.service.ModelSamplingService;
 import org.mark.llamacpp.server.service.OpenAIService;
@@ -36,7 +41,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 
-import org.mark.llamacpp.server.struct.ActiveRequest.Phase;
+import org.mark.llamacpp.server.metrics.RequestMetrics;
 import org.mark.llamacpp.server.struct.Timing;
 import org.mark.llamacpp.server.service.ModelRequestTracker;
 
@@ -228,21 +233,16 @@ public class LMStudioService {
 			LlamaServerManager manager = LlamaServerManager.getInstance();
 			
 			// 检查模型是否已加载
-			if (!manager.getLoadedProcesses().containsKey(modelName)) {
+			ModelRoutingTable.Route route = ModelAutoLoader.getInstance().awaitRoute(modelName);
+			if (route == null) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
 				return;
 			}
 
 			String body = JsonUtil.toJson(requestJson);
 			
-			// 获取模型端口
-			Integer modelPort = manager.getModelPort(modelName);
-			if (modelPort == null) {
-				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
-				return;
-			}
 			// 转发请求到对应的llama.cpp进程
-			this.forwardRequestChatCompletionToLlamaCpp(ctx, request, modelName, modelPort, isStream, body);
+			this.forwardRequestChatCompletionToLlamaCpp(ctx, request, route.getModelId(), route.getPort(), isStream, body);
 		} catch (Exception e) {
 			logger.info("处理OpenAI聊天补全请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -278,18 +278,13 @@ public class LMStudioService {
 			}
 			
 			LlamaServerManager manager = LlamaServerManager.getInstance();
-			if (!manager.getLoadedProcesses().containsKey(modelName)) {
+			ModelRoutingTable.Route route = ModelAutoLoader.getInstance().awaitRoute(modelName);
+			if (route == null) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
 				return;
 			}
 			
-			Integer modelPort = manager.getModelPort(modelName);
-			if (modelPort == null) {
-				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
-				return;
-			}
-			
-			this.forwardRequestTextCompletionToLlamaCpp(ctx, request, modelName, modelPort.intValue(), isStream, content);
+			this.forwardRequestTextCompletionToLlamaCpp(ctx, request, route.getModelId(), route.getPort(), isStream, content);
 		} catch (Exception e) {
 			logger.info("处理OpenAI文本补全请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -318,25 +313,25 @@ public class LMStudioService {
 			String requestedModelName = requestJson.get("model").getAsString();
 			String loadedModelName = requestedModelName;
 			LlamaServerManager manager = LlamaServerManager.getInstance();
-			if (!manager.getLoadedProcesses().containsKey(loadedModelName)) {
+			ModelRoutingTable routing = manager.getRoutingTable();
+			ModelRoutingTable.Route route = routing.resolve(loadedModelName);
+			if (route == null) {
 				String mapped = this.tryMapToLoadedModelId(manager, loadedModelName);
-				if (mapped != null && manager.getLoadedProcesses().containsKey(mapped)) {
-					loadedModelName = mapped;
+				if (mapped != null) {
+					route = routing.get(mapped);
 				}
 			}
-
-			if (!manager.getLoadedProcesses().containsKey(loadedModelName)) {
-				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + requestedModelName, "model");
-				return;
+			if (route == null) {
+				route = ModelAutoLoader.getInstance().awaitRoute(loadedModelName);
 			}
 
-			Integer modelPort = manager.getModelPort(loadedModelName);
-			if (modelPort == null) {
-				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + requestedModelName, null);
+			if (route == null) {
+				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + requestedModelName, "model");
 				return;
 			}
+			loadedModelName = route.getModelId();
 
-			this.forwardRequestEmbeddingsToLlamaCpp(ctx, request, requestedModelName, loadedModelName, modelPort.intValue(), content);
+			this.forwardRequestEmbeddingsToLlamaCpp(ctx, request, requestedModelName, loadedModelName, route.getPort(), content);
 		} catch (Exception e) {
 			logger.info("处理OpenAI嵌入请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -377,7 +372,7 @@ public class LMStudioService {
 
 	private HttpURLConnection openAndTrack(ChannelHandlerContext ctx, String targetUrl) throws IOException {
 		URL url = URI.create(targetUrl).toURL();
-		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		HttpURLConnection connection = UpstreamConnectionPool.getInstance().openConnection(url);
 		synchronized (this.channelConnectionMap) {
 			this.channelConnectionMap.put(ctx, connection);
 		}
@@ -422,8 +417,11 @@ public class LMStudioService {
 		worker.execute(() -> {
 			HttpURLConnection connection = null;
 			String requestId = null;
+			ModelAdmissionQueue.Permit permit = null;
 			try {
-				requestId = ModelRequestTracker.getInstance().createRequest(modelName, "/v1/chat/completions");
+				// 槽位满了在这里排队，放行之后才算开始处理
+				permit = ModelAdmissionQueue.getInstance().acquire(modelName, ModelAdmissionQueue.clientKeyOf(ctx, headers));
+				requestId = ModelRequestTracker.getInstance().createRequest(ctx, modelName, "/v1/chat/completions", null);
 				String targetUrl = String.format("http://localhost:%d/v1/chat/completions", port);
 				logger.info("连接到llama.cpp进程: {}", targetUrl);
 				connection = openAndTrack(ctx, targetUrl);
@@ -432,13 +430,16 @@ public class LMStudioService {
 				long t = System.currentTimeMillis();
 				int responseCode = connection.getResponseCode();
 				logger.info("llama.cpp进程响应码: {}，等待时间：{}", responseCode, System.currentTimeMillis() - t);
-				ModelRequestTracker.getInstance().updatePhase(requestId, Phase.GENERATION);
+				ModelRequestTracker.getInstance().onUpstreamResponse(requestId, responseCode);
 
 				if (isStream) {
 					this.handleStreamResponse(ctx, connection, responseCode, modelName, requestId);
 				} else {
 					this.handleNonStreamResponse(ctx, connection, responseCode, modelName, requestId);
 				}
+			} catch (AdmissionRejectedException e) {
+				logger.info("模型请求队列拒绝: {}", e.getMessage());
+				this.sendOpenAIRateLimitResponse(ctx, e);
 			} catch (Exception e) {
 				logger.info("转发请求到llama.cpp进程时发生错误", e);
 				if (e.getMessage() != null && e.getMessage().contains("Connection reset by peer")) {
@@ -455,6 +456,9 @@ public class LMStudioService {
 				synchronized (this.channelConnectionMap) {
 					this.channelConnectionMap.remove(ctx);
 				}
+				if (permit != null) {
+					permit.close();
+				}
 			}
 		});
 	}
@@ -475,8 +479,11 @@ public class LMStudioService {
 		worker.execute(() -> {
 			HttpURLConnection connection = null;
 			String requestId = null;
+			ModelAdmissionQueue.Permit permit = null;
 			try {
-				requestId = ModelRequestTracker.getInstance().createRequest(loadedModelName, "/v1/embeddings");
+				// 槽位满了在这里排队，放行之后才算开始处理
+				permit = ModelAdmissionQueue.getInstance().acquire(loadedModelName, ModelAdmissionQueue.clientKeyOf(ctx, headers));
+				requestId = ModelRequestTracker.getInstance().createRequest(ctx, loadedModelName, "/v1/embeddings", null);
 				String targetUrl = String.format("http://localhost:%d/v1/embeddings", port);
 				logger.info("连接到llama.cpp进程: {}", targetUrl);
 
@@ -485,8 +492,11 @@ public class LMStudioService {
 				long t = System.currentTimeMillis();
 				int responseCode = connection.getResponseCode();
 				logger.info("llama.cpp进程响应码: {}，等待时间：{}", responseCode, System.currentTimeMillis() - t);
-				ModelRequestTracker.getInstance().updatePhase(requestId, Phase.GENERATION);
+				ModelRequestTracker.getInstance().onUpstreamResponse(requestId, responseCode);
 				this.handleEmbeddingsNonStreamResponse(ctx, connection, responseCode, requestedModelName, loadedModelName, requestId);
+			} catch (AdmissionRejectedException e) {
+				logger.info("模型请求队列拒绝: {}", e.getMessage());
+				this.sendOpenAIRateLimitResponse(ctx, e);
 			} catch (Exception e) {
 				logger.info("转发嵌入请求到llama.cpp进程时发生错误", e);
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -500,6 +510,9 @@ public class LMStudioService {
 				synchronized (this.channelConnectionMap) {
 					this.channelConnectionMap.remove(ctx);
 				}
+				if (permit != null) {
+					permit.close();
+				}
 			}
 		});
 	}
@@ -518,8 +531,11 @@ public class LMStudioService {
 		worker.execute(() -> {
 			HttpURLConnection connection = null;
 			String requestId = null;
+			ModelAdmissionQueue.Permit permit = null;
 			try {
-				requestId = ModelRequestTracker.getInstance().createRequest(modelName, "/v1/completions");
+				// 槽位满了在这里排队，放行之后才算开始处理
+				permit = ModelAdmissionQueue.getInstance().acquire(modelName, ModelAdmissionQueue.clientKeyOf(ctx, headers));
+				requestId = ModelRequestTracker.getInstance().createRequest(ctx, modelName, "/v1/completions", null);
 				String targetUrl = String.format("http://localhost:%d/v1/completions", port);
 				logger.info("连接到llama.cpp进程: {}", targetUrl);
 				connection = openAndTrack(ctx, targetUrl);
@@ -527,13 +543,16 @@ public class LMStudioService {
 				long t = System.currentTimeMillis();
 				int responseCode = connection.getResponseCode();
 				logger.info("llama.cpp进程响应码: {}，等待时间：{}", responseCode, System.currentTimeMillis() - t);
-				ModelRequestTracker.getInstance().updatePhase(requestId, Phase.GENERATION);
+				ModelRequestTracker.getInstance().onUpstreamResponse(requestId, responseCode);
 				
 				if (isStream) {
 					this.handleTextCompletionStreamResponse(ctx, connection, responseCode, modelName, requestId);
 				} else {
 					this.handleTextCompletionNonStreamResponse(ctx, connection, responseCode, modelName, requestId);
 				}
+			} catch (AdmissionRejectedException e) {
+				logger.info("模型请求队列拒绝: {}", e.getMessage());
+				this.sendOpenAIRateLimitResponse(ctx, e);
 			} catch (Exception e) {
 				logger.info("转发文本补全请求到llama.cpp进程时发生错误", e);
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -547,6 +566,9 @@ public class LMStudioService {
 				synchronized (this.channelConnectionMap) {
 					this.channelConnectionMap.remove(ctx);
 				}
+				if (permit != null) {
+					permit.close();
+				}
 			}
 		});
 	}
@@ -715,6 +737,7 @@ public class LMStudioService {
 		)) {
 			String line;
 			int chunkCount = 0;
+			RequestMetrics metrics = ModelRequestTracker.getInstance().getMetrics(requestId);
 			Map<Integer, String> toolCallIds = new HashMap<>();
 			String completionId = null;
 			Long created = null;
@@ -795,6 +818,7 @@ public class LMStudioService {
 					content.writeBytes(outLine.getBytes(StandardCharsets.UTF_8));
 					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
 					
+					metrics.onChunk(content.readableBytes());
 					// 创建HTTP内容块
 					HttpContent httpContent = new DefaultHttpContent(content);
 					
@@ -843,6 +867,7 @@ public class LMStudioService {
 				String out = "data: " + JsonUtil.toJson(completion) + "\r\n\r\n";
 				ByteBuf buf = ctx.alloc().buffer();
 				buf.writeBytes(out.getBytes(StandardCharsets.UTF_8));
+				metrics.addBytes(buf.readableBytes());
 				ctx.writeAndFlush(new DefaultHttpContent(buf));
 				chunkCount++;
 
@@ -871,12 +896,7 @@ public class LMStudioService {
 		
 		// 发送结束标记
 		LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-		ctx.writeAndFlush(lastContent).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(lastContent);
 	}
 	
 	private void handleTextCompletionStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName, String requestId) throws IOException {
@@ -900,6 +920,7 @@ public class LMStudioService {
 		)) {
 			String line;
 			int chunkCount = 0;
+			RequestMetrics metrics = ModelRequestTracker.getInstance().getMetrics(requestId);
 			String completionId = null;
 			Long created = null;
 			StringBuilder fullText = new StringBuilder();
@@ -964,6 +985,7 @@ public class LMStudioService {
 					ByteBuf content = ctx.alloc().buffer();
 					content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
 					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+					metrics.onChunk(content.readableBytes());
 					HttpContent httpContent = new DefaultHttpContent(content);
 					ChannelFuture future = ctx.writeAndFlush(httpContent);
 					future.addListener((ChannelFutureListener) channelFuture -> {
@@ -991,6 +1013,7 @@ public class LMStudioService {
 				String out = "data: " + JsonUtil.toJson(completion) + "\r\n\r\n";
 				ByteBuf buf = ctx.alloc().buffer();
 				buf.writeBytes(out.getBytes(StandardCharsets.UTF_8));
+				metrics.addBytes(buf.readableBytes());
 				ctx.writeAndFlush(new DefaultHttpContent(buf));
 				chunkCount++;
 				
@@ -1016,12 +1039,7 @@ public class LMStudioService {
 		}
 		
 		LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-		ctx.writeAndFlush(lastContent).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(lastContent);
 	}
 	
 	/**
@@ -1058,7 +1076,22 @@ public class LMStudioService {
 	}
 	
 	
+	/**
+	 * 	模型请求队列已满或排队超时，返回 429 并带上 Retry-After。
+	 * @param ctx
+	 * @param e
+	 */
+	private void sendOpenAIRateLimitResponse(ChannelHandlerContext ctx, AdmissionRejectedException e) {
+		Map<String, Object> error = new HashMap<>();
+		error.put("message", e.getMessage());
+		error.put("type", "rate_limit_error");
+		error.put("code", "model_overloaded");
+		error.put("param", null);
 
+		Map<String, Object> response = new HashMap<>();
+		response.put("error", error);
+		LlamaServer.sendExpressJsonResponse(ctx, HttpResponseStatus.TOO_MANY_REQUESTS, response, true, e.getRetryAfterSeconds());
+	}
 	
 	/**
 	 * 发送OpenAI格式的JSON响应
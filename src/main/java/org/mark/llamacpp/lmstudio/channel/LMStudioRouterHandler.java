@@ -13,6 +13,8 @@ import org.mark.llamacpp.server.struct.ApiResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonObject;
+
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.FullHttpRequest;
@@ -93,7 +95,10 @@ public class LMStudioRouterHandler extends SimpleChannelInboundHandler<FullHttpR
 		try {
 			boolean handled = this.handleRequest(uri, ctx, request);
 			if(!handled) {
-				ctx.fireChannelRead(request.retain());
+				// 后面没有别的Handler了，不回应的话这条长连接会一直挂着
+				JsonObject error = new JsonObject();
+				error.addProperty("error", "Unexpected endpoint or method. (" + request.method().name() + " " + stripQuery(uri) + ")");
+				LlamaServer.sendExpressJsonResponse(ctx, HttpResponseStatus.NOT_FOUND, error, true);
 			}
 		} catch (RequestMethodException e) {
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.error(e.getMessage()));
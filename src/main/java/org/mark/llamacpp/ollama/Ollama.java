@@ -5,23 +5,19 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.mark.llamacpp.ollama.channel.OllamaRouterHandler;
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.channel.HttpKeepAliveHandler;
+import org.mark.llamacpp.server.channel.NettyTransport;
 import org.mark.llamacpp.server.channel.OpenAIChatStreamingHandler;
+import org.mark.llamacpp.server.exception.AdmissionRejectedException;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.tools.ParamTool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
@@ -30,11 +26,8 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.stream.ChunkedWriteHandler;
 
-import javax.net.ssl.SSLEngine;
-
 import java.util.concurrent.atomic.AtomicLong;
 
 
@@ -56,8 +49,6 @@ public class Ollama {
 	private final AtomicLong generation = new AtomicLong(0L);
 	private volatile long activeGeneration = 0L;
 	
-	private volatile EventLoopGroup bossGroup;
-	private volatile EventLoopGroup workerGroup;
 	private volatile Channel serverChannel;
 	
 	/**
@@ -122,53 +113,17 @@ public class Ollama {
 	}
 	
 	private void runServer(long gen) {
-		EventLoopGroup localBossGroup = new NioEventLoopGroup(1);
-		EventLoopGroup localWorkerGroup = new NioEventLoopGroup();
-		
-		synchronized (lifecycleLock) {
-			if (this.activeGeneration == gen) {
-				this.bossGroup = localBossGroup;
-				this.workerGroup = localWorkerGroup;
-			}
-		}
-		
 		try {
-			ServerBootstrap bootstrap = new ServerBootstrap();
-			bootstrap.group(localBossGroup, localWorkerGroup)
-					.channel(NioServerSocketChannel.class)
-					.option(ChannelOption.SO_BACKLOG, 1024)
-					.childOption(ChannelOption.SO_KEEPALIVE, true)
-					.childHandler(new ChannelInitializer<SocketChannel>() {
-						@Override
-						protected void initChannel(SocketChannel ch) throws Exception {
-							SslContext sslContext = org.mark.llamacpp.server.LlamaServer.getHttpsSslContext();
-							if (sslContext != null) {
-								SSLEngine engine = sslContext.newEngine(ch.alloc());
-								ch.pipeline()
-										.addLast(new SslHandler(engine))
-										.addLast(new HttpServerCodec())
-										.addLast(new OpenAIChatStreamingHandler())
-										.addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
-										.addLast(new ChunkedWriteHandler())
-										.addLast(new OllamaRouterHandler());
-							} else {
-								ch.pipeline()
-										.addLast(new HttpServerCodec())
-										.addLast(new OpenAIChatStreamingHandler())
-										.addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
-										.addLast(new ChunkedWriteHandler())
-										.addLast(new OllamaRouterHandler());
-							}
-						}
-						@Override
-						public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-							logger.info("Failed to initialize a channel. Closing: " + ctx.channel(), cause);
-							ctx.close();
-						}
-					});
-			
 			int bindPort = this.port;
-			ChannelFuture future = bootstrap.bind(bindPort).sync();
+			ChannelFuture future = NettyTransport.getInstance().bind("Ollama", bindPort, LlamaServer.getHttpsSslContext(), (ch, pipeline) -> {
+				pipeline.addLast(new HttpServerCodec())
+						.addLast(HttpKeepAliveHandler.newIdleStateHandler())
+						.addLast(new HttpKeepAliveHandler())
+						.addLast(new OpenAIChatStreamingHandler())
+						.addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
+						.addLast(new ChunkedWriteHandler())
+						.addLast(new OllamaRouterHandler());
+			}).sync();
 			synchronized (lifecycleLock) {
 				if (this.activeGeneration == gen) {
 					this.serverChannel = future.channel();
@@ -189,20 +144,9 @@ public class Ollama {
 		} catch (Exception e) {
 			logger.info("服务器启动失败", e);
 		} finally {
-			try {
-				localBossGroup.shutdownGracefully();
-			} catch (Exception ignore) {
-			}
-			try {
-				localWorkerGroup.shutdownGracefully();
-			} catch (Exception ignore) {
-			}
-			
 			synchronized (lifecycleLock) {
 				if (this.activeGeneration == gen) {
 					this.serverChannel = null;
-					this.bossGroup = null;
-					this.workerGroup = null;
 					this.worker = null;
 				}
 			}
@@ -219,22 +163,6 @@ public class Ollama {
 				} catch (Exception ignore) {
 				}
 			}
-			
-			EventLoopGroup bg = this.bossGroup;
-			if (bg != null) {
-				try {
-					bg.shutdownGracefully();
-				} catch (Exception ignore) {
-				}
-			}
-			
-			EventLoopGroup wg = this.workerGroup;
-			if (wg != null) {
-				try {
-					wg.shutdownGracefully();
-				} catch (Exception ignore) {
-				}
-			}
 		}
 	}
 	
@@ -250,6 +178,17 @@ public class Ollama {
 		sendOllamaJson(ctx, status == null ? HttpResponseStatus.INTERNAL_SERVER_ERROR : status, payload);
 	}
 	
+	/**
+	 * 	模型请求队列已满或排队超时，返回 429 并带上 Retry-After。
+	 * @param ctx
+	 * @param e
+	 */
+	public static void sendOllamaRateLimitError(ChannelHandlerContext ctx, AdmissionRejectedException e) {
+		Map<String, Object> payload = new HashMap<>();
+		payload.put("error", e.getMessage() == null ? "" : e.getMessage());
+		sendOllamaJson(ctx, HttpResponseStatus.TOO_MANY_REQUESTS, payload, e.getRetryAfterSeconds());
+	}
+	
 	/**
 	 * 	发送JSON消息。
 	 * @param ctx
@@ -257,6 +196,13 @@ public class Ollama {
 	 * @param data
 	 */
 	public static void sendOllamaJson(ChannelHandlerContext ctx, HttpResponseStatus status, Object data) {
+		sendOllamaJson(ctx, status, data, 0);
+	}
+	
+	/**
+	 * 	发送JSON消息，retryAfterSeconds 大于0时带上 Retry-After。
+	 */
+	private static void sendOllamaJson(ChannelHandlerContext ctx, HttpResponseStatus status, Object data, int retryAfterSeconds) {
 		String json = JsonUtil.toJson(data);
 		byte[] content = json.getBytes(StandardCharsets.UTF_8);
 		
@@ -264,14 +210,12 @@ public class Ollama {
 		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
 		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
 		response.headers().set(HttpHeaderNames.DATE, ParamTool.getDate());
+		if (retryAfterSeconds > 0) {
+			response.headers().set(HttpHeaderNames.RETRY_AFTER, retryAfterSeconds);
+		}
 		response.content().writeBytes(content);
 		
-		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(response);
 	}
 	
 	/**
@@ -291,11 +235,6 @@ public class Ollama {
 		response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, "chunked");
 		response.content().writeBytes(content);
 		
-		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(response);
 	}
 }
@@ -174,12 +174,10 @@ public final class OllamaApiTool {
 	}
 	
 	public static Map<String, Object> toOllamaEmbedResponse(String modelName, JsonObject openAiResp, long totalDurationNs) {
-		Map<String, Object> out = new HashMap<>();
 		String resolvedModel = modelName;
 		if ((resolvedModel == null || resolvedModel.isBlank()) && openAiResp != null) {
 			resolvedModel = JsonUtil.getJsonString(openAiResp, "model", null);
 		}
-		out.put("model", resolvedModel == null ? "" : resolvedModel);
 
 		List<List<Double>> embeddings = new ArrayList<>();
 		long promptEvalCount = 0L;
@@ -226,6 +224,20 @@ public final class OllamaApiTool {
 			}
 		}
 
+		return toOllamaEmbedResponse(resolvedModel, embeddings, promptEvalCount, totalDurationNs);
+	}
+	
+	/**
+	 * 	由已经取出的向量构造 /api/embed 的响应。
+	 * @param modelName
+	 * @param embeddings
+	 * @param promptEvalCount
+	 * @param totalDurationNs
+	 * @return
+	 */
+	public static Map<String, Object> toOllamaEmbedResponse(String modelName, List<List<Double>> embeddings, long promptEvalCount, long totalDurationNs) {
+		Map<String, Object> out = new HashMap<>();
+		out.put("model", modelName == null ? "" : modelName);
 		out.put("embeddings", embeddings);
 		out.put("total_duration", Long.valueOf(Math.max(0L, totalDurationNs)));
 		out.put("load_duration", Long.valueOf(0L));
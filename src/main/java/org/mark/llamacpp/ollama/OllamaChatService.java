@@ -10,7 +10,6 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
@@ -20,12 +19,19 @@ import javax.net.ssl.HttpsURLConnection;
 
 import org.mark.llamacpp.server.LlamaHubNode;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ModelAdmissionQueue;
+import org.mark.llamacpp.server.ModelAutoLoader;
+import org.mark.llamacpp.server.ModelRoutingTable;
 import org.mark.llamacpp.server.NodeManager;
+import org.mark.llamacpp.server.exception.AdmissionRejectedException;
+import org.mark.llamacpp.server.io.StreamRelayWriter;
+import org.mark.llamacpp.server.io.UpstreamConnectionPool;
+import org.mark.llamacpp.server.metrics.HubMetrics;
+import org.mark.llamacpp.server.metrics.RequestMetrics;
 import org.mark.llamacpp.server.service.ChatTemplateKwargsService;
 import org.mark.llamacpp.server.service.LlamaRecordService;
 import org.mark.llamacpp.server.service.ModelRequestTracker;
 import org.mark.llamacpp.server.service.ModelSamplingService;
-import org.mark.llamacpp.server.struct.ActiveRequest;
 import org.mark.llamacpp.server.struct.Timing;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.tools.ParamTool;
@@ -37,13 +43,10 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponse;
@@ -132,12 +135,10 @@ public class OllamaChatService {
 			logger.info("[Ollama路由] 请求体指定 nodeId，直接路由远程节点: nodeId={}, model={}", nodeId, modelName);
 		} else {
 			LlamaServerManager manager = LlamaServerManager.getInstance();
-			if (manager.getLoadedProcesses().containsKey(modelName)) {
-				Integer port = manager.getModelPort(modelName);
-				if (port != null) {
-					targetUrl = String.format("http://localhost:%d/v1/chat/completions", port.intValue());
-					logger.info("[Ollama路由] 本地模型已加载: model={}, port={}", modelName, port);
-				}
+			ModelRoutingTable.Route route = manager.findRoute(modelName);
+			if (route != null) {
+				targetUrl = String.format("http://localhost:%d/v1/chat/completions", route.getPort());
+				logger.info("[Ollama路由] 本地模型已加载: model={}, port={}", modelName, route.getPort());
 			}
 			if (targetUrl == null) {
 				logger.info("[Ollama路由] 本地未找到模型，开始搜索远程节点: model={}", modelName);
@@ -147,6 +148,14 @@ public class OllamaChatService {
 					remoteApiKey = remote[1];
 				}
 			}
+			if (targetUrl == null) {
+				// 本地和远程都没有加载，按需加载本地模型，会等到加载结束
+				route = ModelAutoLoader.getInstance().awaitRoute(modelName);
+				if (route != null) {
+					targetUrl = String.format("http://localhost:%d/v1/chat/completions", route.getPort());
+					logger.info("[Ollama路由] 按需加载完成: model={}, port={}", modelName, route.getPort());
+				}
+			}
 		}
 
 		if (targetUrl == null) {
@@ -217,13 +226,25 @@ public class OllamaChatService {
 		logger.info("转发请求到目标: {} {} 请求体长度: {}", request.method().name(), finalTargetUrl, requestBodyLength);
 		
 		boolean finalIsStream = isStream;
+		Map<String, String> headers = new HashMap<>();
+		for (Map.Entry<String, String> entry : request.headers()) {
+			headers.put(entry.getKey(), entry.getValue());
+		}
+		String clientKey = ModelAdmissionQueue.clientKeyOf(ctx, headers);
 		this.worker.execute(() -> {
-			String requestId = ModelRequestTracker.getInstance().createRequest(modelName, "/api/chat");
+			String upstreamNode = HubMetrics.nodeOf(finalTargetUrl);
+			String requestId = null;
+			ModelAdmissionQueue.Permit permit = null;
 			try {
+				if (upstreamNode == null) {
+					// 本机模型槽位满了在这里排队，远程节点由对方自己控制
+					permit = ModelAdmissionQueue.getInstance().acquire(modelName, clientKey);
+				}
+				requestId = ModelRequestTracker.getInstance().createRequest(ctx, modelName, "/api/chat", upstreamNode);
 				logger.info("连接到目标: {}", finalTargetUrl);
 				
 				URL url = URI.create(finalTargetUrl).toURL();
-				this.connection = (HttpURLConnection) url.openConnection();
+				this.connection = UpstreamConnectionPool.getInstance().openConnection(url);
 				if (this.connection instanceof HttpsURLConnection) {
 					NodeManager.trustAllCerts((HttpsURLConnection) this.connection);
 				}
@@ -243,13 +264,16 @@ public class OllamaChatService {
 				long t = System.currentTimeMillis();
 				int responseCode = this.connection.getResponseCode();
 				logger.info("目标响应码: {}，等待时间：{}", responseCode, System.currentTimeMillis() - t);
-				ModelRequestTracker.getInstance().updatePhase(requestId, ActiveRequest.Phase.GENERATION);
+				ModelRequestTracker.getInstance().onUpstreamResponse(requestId, responseCode);
 				
 				if (finalIsStream) {
 					this.handleOllamaChatStreamResponse(ctx, this.connection, responseCode, modelName, requestId);
 				} else {
 					this.handleOllamaChatNonStreamResponse(ctx, this.connection, responseCode, modelName, requestId);
 				}
+			} catch (AdmissionRejectedException e) {
+				logger.info("模型请求队列拒绝: {}", e.getMessage());
+				Ollama.sendOllamaRateLimitError(ctx, e);
 			} catch (Exception e) {
 				logger.info("处理Ollama chat请求时发生错误", e);
 				Ollama.sendOllamaError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, e.getMessage());
@@ -260,6 +284,9 @@ public class OllamaChatService {
 				if (this.connection != null) {
 					this.connection.disconnect();
 				}
+				if (permit != null) {
+					permit.close();
+				}
 			}
 		});
 	}
@@ -385,6 +412,14 @@ public class OllamaChatService {
 		String functionCallName = null;
 		JsonObject timings = null;
 		int chunkCount = 0;
+		RequestMetrics metrics = ModelRequestTracker.getInstance().getMetrics(requestId);
+		// 客户端接收慢时由 writer 暂停读上游，恢复可写后把积攒的行合并写出
+		StreamRelayWriter writer = new StreamRelayWriter(ctx, future -> {
+			if (!future.isSuccess()) {
+				logger.info("写入流式数据失败，可能是客户端断开连接: {}", future.cause().getMessage());
+				ctx.close();
+			}
+		});
 		
 		try (BufferedReader br = new BufferedReader(
 			new InputStreamReader(
@@ -409,7 +444,7 @@ public class OllamaChatService {
 				if ("[DONE]".equals(data)) {
 					logger.info("收到流式响应结束标记");
 					Map<String, Object> timingFields = OllamaApiTool.buildOllamaTimingFields(timings);
-					this.writeOllamaStreamChunk(ctx, modelName, "", null, true, doneReason, timingFields);
+					metrics.addBytes(this.writeOllamaStreamChunk(writer, modelName, "", null, true, doneReason, timingFields));
 					chunkCount++;
 					break;
 				}
@@ -479,53 +514,55 @@ public class OllamaChatService {
 				boolean hasToolCalls = deltaToolCalls != null && !deltaToolCalls.isJsonNull();
 				if (hasContent || hasThinking || hasToolCalls) {
 					JsonElement ollamaToolCalls = hasToolCalls ? OllamaApiTool.toOllamaToolCalls(deltaToolCalls) : null;
-					this.writeOllamaStreamChunk(ctx, modelName, hasContent ? deltaContent : "", hasThinking ? deltaThinking : null, ollamaToolCalls, false, null, null);
+					metrics.onChunk(this.writeOllamaStreamChunk(writer, modelName, hasContent ? deltaContent : "", hasThinking ? deltaThinking : null, ollamaToolCalls, false, null, null));
 					chunkCount++;
 				}
+				if (writer.shouldFlush(br.ready())) {
+					writer.flush();
+				}
 			}
+			writer.flush();
 			logger.info("流式响应处理完成，共发送 {} 个数据块", chunkCount);
 		} catch (Exception e) {
 			logger.info("处理Ollama chat流式响应时发生错误", e);
 			// 检查是否是客户端断开连接导致的异常
-			if (e.getMessage() != null &&
+			if (!ctx.channel().isActive() || (e.getMessage() != null &&
 				(e.getMessage().contains("Connection reset by peer") ||
 				 e.getMessage().contains("Broken pipe") ||
-				 e.getMessage().contains("Connection closed"))) {
+				 e.getMessage().contains("Connection closed")))) {
 				logger.info("检测到客户端断开连接，尝试断开与llama.cpp的连接");
 				if (connection != null) {
 					connection.disconnect();
 				}
 			}
 			throw e;
+		} finally {
+			writer.close();
 		}
 		
 		LastHttpContent last = LastHttpContent.EMPTY_LAST_CONTENT;
-		ctx.writeAndFlush(last).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(last);
 	}
 	
 	
 	/**
 	 * 	写入Ollama流式传输的数据。
-	 * @param ctx
+	 * @param writer
 	 * @param modelName
 	 * @param content
 	 * @param toolCalls
 	 * @param done
 	 * @param doneReason
 	 * @param doneFields
+	 * @return 写出的字节数
 	 */
-	private void writeOllamaStreamChunk(ChannelHandlerContext ctx, String modelName, String content, JsonElement toolCalls, boolean done, String doneReason, Map<String, Object> doneFields) {
-		this.writeOllamaStreamChunk(ctx, modelName, content, null, toolCalls, done, doneReason, doneFields);
+	private int writeOllamaStreamChunk(StreamRelayWriter writer, String modelName, String content, JsonElement toolCalls, boolean done, String doneReason, Map<String, Object> doneFields) {
+		return this.writeOllamaStreamChunk(writer, modelName, content, null, toolCalls, done, doneReason, doneFields);
 	}
 	
 	/**
 	 * 	写入Ollama流式传输的数据。
-	 * @param ctx
+	 * @param writer
 	 * @param modelName
 	 * @param content
 	 * @param thinking
@@ -533,8 +570,9 @@ public class OllamaChatService {
 	 * @param done
 	 * @param doneReason
 	 * @param doneFields
+	 * @return 写出的字节数
 	 */
-	private void writeOllamaStreamChunk(ChannelHandlerContext ctx, String modelName, String content, String thinking, JsonElement toolCalls, boolean done, String doneReason, Map<String, Object> doneFields) {
+	private int writeOllamaStreamChunk(StreamRelayWriter writer, String modelName, String content, String thinking, JsonElement toolCalls, boolean done, String doneReason, Map<String, Object> doneFields) {
 		Map<String, Object> out = new HashMap<>();
 		out.put("model", modelName);
 		out.put("created_at", OllamaApiTool.formatOllamaTime(Instant.now()));
@@ -559,16 +597,10 @@ public class OllamaChatService {
 		}
 		
 		String json = JsonUtil.toJson(out) + "\n";
-		ByteBuf buf = ctx.alloc().buffer();
-		buf.writeBytes(json.getBytes(StandardCharsets.UTF_8));
-		HttpContent httpContent = new DefaultHttpContent(buf);
-		ChannelFuture f = ctx.writeAndFlush(httpContent);
-		f.addListener((ChannelFutureListener) future -> {
-			if (!future.isSuccess()) {
-				logger.info("写入流式数据失败，可能是客户端断开连接: {}", future.cause().getMessage());
-				ctx.close();
-			}
-		});
+		ByteBuf buf = Unpooled.copiedBuffer(json, StandardCharsets.UTF_8);
+		int size = buf.readableBytes();
+		writer.append(buf);
+		return size;
 	}
 	
 	
@@ -616,58 +648,13 @@ public class OllamaChatService {
 	 * 从远程节点中查找模型
 	 */
 	private String[] resolveFromRemoteNodes(String modelName) {
-		NodeManager nodeManager = NodeManager.getInstance();
-		List<LlamaHubNode> enabledNodes = nodeManager.listEnabledNodes();
-		logger.info("[Ollama路由] 远程节点列表: count={}", enabledNodes.size());
-
-		for (LlamaHubNode node : enabledNodes) {
-			logger.info("[Ollama路由] 检查远程节点: nodeId={}, baseUrl={}", node.getNodeId(), node.getBaseUrl());
-			try {
-				NodeManager.HttpResult result = nodeManager.callRemoteApi(node.getNodeId(), "GET", "/v1/models", null);
-				logger.info("[Ollama路由] 远程节点响应: nodeId={}, code={}", node.getNodeId(), result.getStatusCode());
-				if (!result.isSuccess()) {
-					logger.warn("[Ollama路由] 远程节点请求失败: nodeId={}, body={}", node.getNodeId(), result.getBody());
-					continue;
-				}
-
-				JsonObject root = JsonUtil.fromJson(result.getBody(), JsonObject.class);
-				if (root == null) continue;
-
-				if (root.has("models") && root.get("models").isJsonArray()) {
-					JsonArray remoteModels = root.getAsJsonArray("models");
-					for (JsonElement el : remoteModels) {
-						if (!el.isJsonObject()) continue;
-						JsonObject m = el.getAsJsonObject();
-						String remoteKey = JsonUtil.getJsonString(m, "model");
-						if (remoteKey.isEmpty()) remoteKey = JsonUtil.getJsonString(m, "name");
-						logger.info("[Ollama路由] 远程模型条目: nodeId={}, key={}", node.getNodeId(), remoteKey);
-						if (modelName.equals(remoteKey)) {
-							logger.info("[Ollama路由] 匹配成功: model={}, nodeId={}", modelName, node.getNodeId());
-							return new String[]{ node.getBaseUrl() + "/v1/chat/completions", node.getApiKey() };
-						}
-					}
-				}
-
-				if (root.has("data") && root.get("data").isJsonArray()) {
-					JsonArray dataArr = root.getAsJsonArray("data");
-					for (JsonElement el : dataArr) {
-						if (!el.isJsonObject()) continue;
-						JsonObject d = el.getAsJsonObject();
-						String id = JsonUtil.getJsonString(d, "id", "");
-						if (modelName.equals(id)) {
-							logger.info("[Ollama路由] data匹配成功: model={}, nodeId={}", modelName, node.getNodeId());
-							return new String[]{ node.getBaseUrl() + "/v1/chat/completions", node.getApiKey() };
-						}
-					}
-				}
-
-				logger.warn("[Ollama路由] 节点无匹配模型: nodeId={}, model={}", node.getNodeId(), modelName);
-			} catch (Exception e) {
-				logger.warn("[Ollama路由] 异常: nodeId={}, error={}", node.getNodeId(), e.getMessage());
-			}
+		LlamaHubNode node = NodeManager.getInstance().resolveRemoteModel(modelName);
+		if (node == null) {
+			logger.warn("[Ollama路由] 集群模型索引中未找到: model={}", modelName);
+			return null;
 		}
-		logger.warn("[Ollama路由] 所有远程节点均未找到: model={}", modelName);
-		return null;
+		logger.info("[Ollama路由] 匹配成功: model={}, nodeId={}", modelName, node.getNodeId());
+		return new String[]{ node.getBaseUrl() + "/v1/chat/completions", node.getApiKey() };
 	}
 
 	/**
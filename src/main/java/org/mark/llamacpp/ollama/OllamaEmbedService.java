@@ -5,7 +5,7 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -14,7 +14,13 @@ import javax.net.ssl.HttpsURLConnection;
 
 import org.mark.llamacpp.server.LlamaHubNode;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ModelAdmissionQueue;
+import org.mark.llamacpp.server.ModelAutoLoader;
+import org.mark.llamacpp.server.ModelRoutingTable;
 import org.mark.llamacpp.server.NodeManager;
+import org.mark.llamacpp.server.exception.AdmissionRejectedException;
+import org.mark.llamacpp.server.io.UpstreamConnectionPool;
+import org.mark.llamacpp.server.service.EmbeddingService;
 import org.mark.llamacpp.server.service.ModelRequestTracker;
 import org.mark.llamacpp.server.struct.ActiveRequest;
 import org.mark.llamacpp.server.struct.Timing;
@@ -22,8 +28,6 @@ import org.mark.llamacpp.server.tools.JsonUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import io.netty.channel.ChannelHandlerContext;
@@ -55,6 +59,7 @@ public class OllamaEmbedService {
 	
 	/**
 	 * 	处理嵌入请求。
+	 * 	本机模型的文本输入经过 {@link EmbeddingService}，缓存里有的不再发给 llama.cpp。
 	 * @param ctx
 	 * @param request
 	 */
@@ -96,6 +101,7 @@ public class OllamaEmbedService {
 
 		String targetUrl = null;
 		String remoteApiKey = null;
+		ModelRoutingTable.Route localRoute = null;
 
 		if (nodeId != null && !nodeId.isBlank()) {
 			NodeManager nodeManager = NodeManager.getInstance();
@@ -109,11 +115,10 @@ public class OllamaEmbedService {
 			logger.info("[OllamaEmbed路由] 请求体指定 nodeId，直接路由远程节点: nodeId={}, model={}", nodeId, modelName);
 		} else {
 			LlamaServerManager manager = LlamaServerManager.getInstance();
-			if (manager.getLoadedProcesses().containsKey(modelName)) {
-				Integer port = manager.getModelPort(modelName);
-				if (port != null) {
-					targetUrl = String.format("http://localhost:%d/v1/embeddings", port.intValue());
-				}
+			ModelRoutingTable.Route route = manager.findRoute(modelName);
+			if (route != null) {
+				targetUrl = String.format("http://localhost:%d/v1/embeddings", route.getPort());
+				localRoute = route;
 			}
 			if (targetUrl == null) {
 				logger.info("[OllamaEmbed路由] 本地未找到模型，开始搜索远程节点: model={}", modelName);
@@ -123,6 +128,15 @@ public class OllamaEmbedService {
 					remoteApiKey = remote[1];
 				}
 			}
+			if (targetUrl == null) {
+				// 本地和远程都没有加载，按需加载本地模型，会等到加载结束
+				route = ModelAutoLoader.getInstance().awaitRoute(modelName);
+				if (route != null) {
+					targetUrl = String.format("http://localhost:%d/v1/embeddings", route.getPort());
+					localRoute = route;
+					logger.info("[OllamaEmbed路由] 按需加载完成: model={}, port={}", modelName, route.getPort());
+				}
+			}
 		}
 
 		if (targetUrl == null) {
@@ -141,15 +155,40 @@ public class OllamaEmbedService {
 		openAiReq.addProperty("model", modelName);
 		
 		String requestBody = JsonUtil.toJson(openAiReq);
+		final ModelRoutingTable.Route cachedRoute = localRoute != null && EmbeddingService.getInstance().isCacheable(localRoute, openAiReq) ? localRoute : null;
+		final boolean local = localRoute != null;
+		Map<String, String> headers = new HashMap<>();
+		for (Map.Entry<String, String> entry : request.headers()) {
+			headers.put(entry.getKey(), entry.getValue());
+		}
+		String clientKey = ModelAdmissionQueue.clientKeyOf(ctx, headers);
 		
 		this.worker.execute(() -> {
 			String requestId = ModelRequestTracker.getInstance().createRequest(modelName, "/api/embed");
 			HttpURLConnection connection = null;
+			ModelAdmissionQueue.Permit permit = null;
 			try {
 				long startNs = System.nanoTime();
+				if (cachedRoute != null) {
+					// 只有缓存没命中的输入发给上游时才排队
+					EmbeddingService.Result result = EmbeddingService.getInstance().embed(cachedRoute, openAiReq, clientKey);
+					if (!result.isSuccess()) {
+						String msg = OllamaApiTool.extractOpenAIErrorMessage(result.getErrorBody());
+						Ollama.sendOllamaError(ctx, HttpResponseStatus.valueOf(result.getStatusCode()), msg == null ? result.getErrorBody() : msg);
+						return;
+					}
+					long totalDurationNs = Math.max(0L, System.nanoTime() - startNs);
+					Map<String, Object> out = OllamaApiTool.toOllamaEmbedResponse(modelName, result.toDoubleLists(), result.getPromptTokens(), totalDurationNs);
+					Ollama.sendOllamaChunkedJson(ctx, HttpResponseStatus.OK, out);
+					return;
+				}
+				if (local) {
+					// 本机模型槽位满了在这里排队，远程节点由对方自己控制
+					permit = ModelAdmissionQueue.getInstance().acquire(modelName, clientKey);
+				}
 				logger.info("连接到目标: {}", finalTargetUrl);
 				URL url = URI.create(finalTargetUrl).toURL();
-				connection = (HttpURLConnection) url.openConnection();
+				connection = UpstreamConnectionPool.getInstance().openConnection(url);
 				if (connection instanceof HttpsURLConnection) {
 					NodeManager.trustAllCerts((HttpsURLConnection) connection);
 				}
@@ -191,6 +230,9 @@ public class OllamaEmbedService {
 				// 回复客户端
 				Map<String, Object> out = OllamaApiTool.toOllamaEmbedResponse(modelName, parsed, totalDurationNs);
 				Ollama.sendOllamaChunkedJson(ctx, HttpResponseStatus.OK, out);
+			} catch (AdmissionRejectedException e) {
+				logger.info("模型请求队列拒绝: {}", e.getMessage());
+				Ollama.sendOllamaRateLimitError(ctx, e);
 			} catch (Exception e) {
 				logger.info("处理Ollama embed请求时发生错误", e);
 				Ollama.sendOllamaError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, e.getMessage());
@@ -201,6 +243,9 @@ public class OllamaEmbedService {
 				if (connection != null) {
 					connection.disconnect();
 				}
+				if (permit != null) {
+					permit.close();
+				}
 			}
 		});
 		
@@ -210,53 +255,12 @@ public class OllamaEmbedService {
 	 * 从远程节点中查找模型
 	 */
 	private String[] resolveFromRemoteNodes(String modelName) {
-		NodeManager nodeManager = NodeManager.getInstance();
-		List<LlamaHubNode> enabledNodes = nodeManager.listEnabledNodes();
-		logger.info("[OllamaEmbed路由] 远程节点列表: count={}", enabledNodes.size());
-
-		for (LlamaHubNode node : enabledNodes) {
-			logger.info("[OllamaEmbed路由] 检查远程节点: nodeId={}, baseUrl={}", node.getNodeId(), node.getBaseUrl());
-			try {
-				NodeManager.HttpResult result = nodeManager.callRemoteApi(node.getNodeId(), "GET", "/v1/models", null);
-				if (!result.isSuccess()) {
-					logger.warn("[OllamaEmbed路由] 远程节点请求失败: nodeId={}, body={}", node.getNodeId(), result.getBody());
-					continue;
-				}
-
-				JsonObject root = JsonUtil.fromJson(result.getBody(), JsonObject.class);
-				if (root == null) continue;
-
-				if (root.has("models") && root.get("models").isJsonArray()) {
-					JsonArray remoteModels = root.getAsJsonArray("models");
-					for (JsonElement el : remoteModels) {
-						if (!el.isJsonObject()) continue;
-						JsonObject m = el.getAsJsonObject();
-						String remoteKey = JsonUtil.getJsonString(m, "model");
-						if (remoteKey.isEmpty()) remoteKey = JsonUtil.getJsonString(m, "name");
-						if (modelName.equals(remoteKey)) {
-							logger.info("[OllamaEmbed路由] 匹配成功: model={}, nodeId={}", modelName, node.getNodeId());
-							return new String[]{ node.getBaseUrl() + "/v1/embeddings", node.getApiKey() };
-						}
-					}
-				}
-
-				if (root.has("data") && root.get("data").isJsonArray()) {
-					JsonArray dataArr = root.getAsJsonArray("data");
-					for (JsonElement el : dataArr) {
-						if (!el.isJsonObject()) continue;
-						JsonObject d = el.getAsJsonObject();
-						String id = JsonUtil.getJsonString(d, "id", "");
-						if (modelName.equals(id)) {
-							logger.info("[OllamaEmbed路由] data匹配成功: model={}, nodeId={}", modelName, node.getNodeId());
-							return new String[]{ node.getBaseUrl() + "/v1/embeddings", node.getApiKey() };
-						}
-					}
-				}
-			} catch (Exception e) {
-				logger.warn("[OllamaEmbed路由] 异常: nodeId={}, error={}", node.getNodeId(), e.getMessage());
-			}
+		LlamaHubNode node = NodeManager.getInstance().resolveRemoteModel(modelName);
+		if (node == null) {
+			logger.warn("[OllamaEmbed路由] 集群模型索引中未找到: model={}", modelName);
+			return null;
 		}
-		logger.warn("[OllamaEmbed路由] 所有远程节点均未找到: model={}", modelName);
-		return null;
+		logger.info("[OllamaEmbed路由] 匹配成功: model={}, nodeId={}", modelName, node.getNodeId());
+		return new String[]{ node.getBaseUrl() + "/v1/embeddings", node.getApiKey() };
 	}
 }
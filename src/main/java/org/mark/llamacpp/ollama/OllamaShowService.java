@@ -10,6 +10,7 @@ import java.util.Map;
 
 import org.mark.llamacpp.gguf.GGUFMetaData;
 import org.mark.llamacpp.gguf.GGUFMetaDataReader;
+import org.mark.llamacpp.gguf.GGUFMetadataCache;
 import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServerManager;
@@ -136,7 +137,8 @@ public class OllamaShowService {
 		}
 		// 存入一些基本的内容
 		File primaryFile = new File(primary.getFilePath());
-		Map<String, Object> m = GGUFMetaDataReader.read(primaryFile);
+		// 只有verbose时需要完整的tokenizer数组，其余情况从缓存取
+		Map<String, Object> m = verbose ? GGUFMetaDataReader.read(primaryFile) : GGUFMetadataCache.getInstance().readMetadata(primaryFile);
 		if (m != null) {
 			if (!verbose) {
 				m.remove("tokenizer.ggml.tokens.size");
@@ -219,7 +219,7 @@ public class OllamaRouterHandler extends SimpleChannelInboundHandler<FullHttpReq
 		response.headers().set("X-Powered-By", "Express");
 		
 		response.content().writeBytes(content);
-		ctx.writeAndFlush(response).addListener(f -> ctx.close());
+		ctx.writeAndFlush(response);
 	}
 
 	@Override
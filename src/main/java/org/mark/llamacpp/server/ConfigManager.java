@@ -387,6 +387,66 @@ public class ConfigManager {
         return favourites;
     }
 
+    /**
+     * 保存/更新模型的空闲卸载时间（秒），0 表示不自动卸载
+     */
+    public boolean saveModelIdleTtl(String modelId, long idleTtlSeconds) {
+        synchronized (modelsFileLock) {
+            try {
+                List<Map<String, Object>> models = new java.util.ArrayList<>(loadModelsConfigUnsafe());
+                boolean found = false;
+                for (Map<String, Object> m : models) {
+                    Object id = m.get("modelId");
+                    if (id != null && modelId.equals(String.valueOf(id))) {
+                        m.put("idleTtlSeconds", idleTtlSeconds);
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    Map<String, Object> minimal = new HashMap<>();
+                    minimal.put("modelId", modelId);
+                    minimal.put("idleTtlSeconds", idleTtlSeconds);
+                    models.add(minimal);
+                }
+                writeJsonFileAtomic(MODELS_CONFIG_FILE, models);
+                this.cachedModelsConfig = null;
+                this.cachedModelsConfigLastModified = -1L;
+                return true;
+            } catch (IOException e) {
+                logger.info("保存模型空闲卸载时间失败: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 加载模型空闲卸载时间映射，只包含大于 0 的项
+     */
+    public Map<String, Long> loadIdleTtlMap() {
+        Map<String, Long> ttls = new HashMap<>();
+        List<Map<String, Object>> models = loadModelsConfigCached();
+        for (Map<String, Object> m : models) {
+            Object id = m.get("modelId");
+            Object ttl = m.get("idleTtlSeconds");
+            if (id == null || ttl == null) continue;
+            long v;
+            if (ttl instanceof Number) {
+                v = ((Number) ttl).longValue();
+            } else {
+                try {
+                    v = Long.parseLong(String.valueOf(ttl).trim());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+            if (v > 0) {
+                ttls.put(String.valueOf(id), v);
+            }
+        }
+        return ttls;
+    }
+
     private List<Map<String, Object>> loadModelsConfigUnsafe() {
         File configFile = new File(MODELS_CONFIG_FILE);
         if (!configFile.exists()) {
@@ -0,0 +1,382 @@
+package org.mark.llamacpp.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 	嵌入向量的缓存，按内容寻址。
+ * 	<p>
+ * 	键是 SHA-256(模型标识、请求选项、输入文本)：模型标识由主模型文件的路径、大小、修改时间和启动参数里的 --pooling 组成，
+ * 	换了文件或者池化方式都不会命中旧的向量；请求选项是除 model、input 等以外的其余字段（比如 embd_normalize）。
+ * 	<ul>
+ * 	<li>内存层直接存 float[]，按访问顺序淘汰，总大小不超过 memoryBytes；</li>
+ * 	<li>磁盘层可选，每个向量一个文件，按键的前两位分子目录，写盘在后台线程进行。总大小超过 diskBytes 时删掉最久没用的文件，
+ * 	读到的文件会更新修改时间。</li>
+ * 	</ul>
+ * 	只缓存本机加载的模型，远程节点的模型文件看不到，不缓存。
+ */
+public class EmbeddingCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddingCache.class);
+
+	/**
+	 * 	内存层默认上限
+	 */
+	private static final long DEFAULT_MEMORY_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * 	磁盘层默认上限
+	 */
+	private static final long DEFAULT_DISK_BYTES = 2L * 1024 * 1024 * 1024;
+
+	private static final String DISK_DIR = "cache/embeddings";
+
+	private static final int FILE_MAGIC = 0x454D4231; // "EMB1"
+
+	/**
+	 * 	每个内存条目除了向量本身之外的大致开销（键、链表节点）
+	 */
+	private static final int ENTRY_OVERHEAD = 200;
+
+	private static final Pattern POOLING = Pattern.compile("--pooling[\\s=]+\"?([A-Za-z_]+)");
+
+	private static final EmbeddingCache INSTANCE = new EmbeddingCache(DEFAULT_MEMORY_BYTES, Paths.get(DISK_DIR), DEFAULT_DISK_BYTES);
+
+	public static EmbeddingCache getInstance() {
+		return INSTANCE;
+	}
+
+	private final long memoryBytes;
+	private final Path diskDir;
+	private final long diskBytes;
+
+	private final LinkedHashMap<String, float[]> memory = new LinkedHashMap<>(1024, 0.75f, true);
+	private long memoryUsed;
+
+	/**
+	 * 	磁盘层已用字节数，第一次写盘时扫描目录得到，-1 表示还没扫描
+	 */
+	private final AtomicLong diskUsed = new AtomicLong(-1);
+
+	private final ExecutorService diskWriter = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "embedding-cache-writer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 *
+	 * @param memoryBytes 内存层上限，0 表示不用内存层
+	 * @param diskDir 磁盘层目录，null 表示不用磁盘层
+	 * @param diskBytes 磁盘层上限
+	 */
+	public EmbeddingCache(long memoryBytes, Path diskDir, long diskBytes) {
+		this.memoryBytes = memoryBytes;
+		this.diskDir = diskDir;
+		this.diskBytes = diskBytes;
+	}
+
+	public boolean isEnabled() {
+		return this.memoryBytes > 0 || this.diskDir != null;
+	}
+
+	/**
+	 * 	本机模型的标识。
+	 * @param route
+	 * @return 找不到模型文件时返回 null，这时不缓存
+	 */
+	public static String modelIdentity(ModelRoutingTable.Route route) {
+		if (route == null) {
+			return null;
+		}
+		GGUFModel model = LlamaServerManager.getInstance().findModelById(route.getModelId());
+		if (model == null || model.getPrimaryModel() == null || model.getPrimaryModel().getFilePath() == null) {
+			return null;
+		}
+		File file = new File(model.getPrimaryModel().getFilePath());
+		if (!file.isFile()) {
+			return null;
+		}
+		String pooling = "";
+		LlamaCppProcess process = route.getProcess();
+		if (process != null && process.getCmd() != null) {
+			Matcher m = POOLING.matcher(process.getCmd());
+			if (m.find()) {
+				pooling = m.group(1);
+			}
+		}
+		return modelIdentity(file.getAbsolutePath(), file.length(), file.lastModified(), pooling);
+	}
+
+	public static String modelIdentity(String path, long size, long lastModified, String pooling) {
+		return path + "|" + size + "|" + lastModified + "|pooling=" + (pooling == null ? "" : pooling);
+	}
+
+	/**
+	 * 	缓存键，64 位小写十六进制。
+	 * @param modelIdentity {@link #modelIdentity}
+	 * @param options 影响结果的其余请求参数，规范化后的字符串
+	 * @param text 输入文本
+	 * @return
+	 */
+	public static String key(String modelIdentity, String options, String text) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update(modelIdentity.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(options == null ? new byte[0] : options.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(text.getBytes(StandardCharsets.UTF_8));
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = Character.forDigit((hash[i] >> 4) & 0xf, 16);
+			hex[i * 2 + 1] = Character.forDigit(hash[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * 	先查内存，再查磁盘，磁盘命中时放回内存。
+	 * @param key
+	 * @return 没有缓存时返回 null
+	 */
+	public float[] get(String key) {
+		float[] vector;
+		synchronized (this.memory) {
+			vector = this.memory.get(key);
+		}
+		if (vector == null && this.diskDir != null) {
+			vector = this.readDisk(key);
+			if (vector != null) {
+				this.putMemory(key, vector);
+			}
+		}
+		if (vector == null) {
+			this.misses.incrementAndGet();
+		} else {
+			this.hits.incrementAndGet();
+		}
+		return vector;
+	}
+
+	/**
+	 * 	放入缓存，向量之后不能再修改。
+	 * @param key
+	 * @param vector
+	 */
+	public void put(String key, float[] vector) {
+		this.putMemory(key, vector);
+		if (this.diskDir != null) {
+			this.diskWriter.execute(() -> this.writeDisk(key, vector));
+		}
+	}
+
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * 	内存层条目数。
+	 * @return
+	 */
+	public int size() {
+		synchronized (this.memory) {
+			return this.memory.size();
+		}
+	}
+
+	/**
+	 * 	内存层已用的大致字节数。
+	 * @return
+	 */
+	public long getMemoryUsed() {
+		synchronized (this.memory) {
+			return this.memoryUsed;
+		}
+	}
+
+	/**
+	 * 	等待已经提交的写盘完成，测试用。
+	 */
+	public void flush() {
+		try {
+			this.diskWriter.submit(() -> {}).get();
+		} catch (Exception e) {
+			logger.info("等待嵌入缓存写盘失败: {}", e.getMessage());
+		}
+	}
+
+	private void putMemory(String key, float[] vector) {
+		if (this.memoryBytes <= 0) {
+			return;
+		}
+		long size = sizeOf(vector);
+		if (size > this.memoryBytes) {
+			return;
+		}
+		synchronized (this.memory) {
+			float[] old = this.memory.put(key, vector);
+			if (old != null) {
+				this.memoryUsed -= sizeOf(old);
+			}
+			this.memoryUsed += size;
+			Iterator<Map.Entry<String, float[]>> it = this.memory.entrySet().iterator();
+			while (this.memoryUsed > this.memoryBytes && it.hasNext()) {
+				Map.Entry<String, float[]> eldest = it.next();
+				this.memoryUsed -= sizeOf(eldest.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	private static long sizeOf(float[] vector) {
+		return ENTRY_OVERHEAD + 4L * vector.length;
+	}
+
+	private Path fileOf(String key) {
+		return this.diskDir.resolve(key.substring(0, 2)).resolve(key + ".emb");
+	}
+
+	private float[] readDisk(String key) {
+		Path file = this.fileOf(key);
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != FILE_MAGIC) {
+				return null;
+			}
+			int length = in.readInt();
+			if (length < 0 || length > (Files.size(file) - 8) / 4) {
+				return null;
+			}
+			float[] vector = new float[length];
+			for (int i = 0; i < length; i++) {
+				vector[i] = in.readFloat();
+			}
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			return vector;
+		} catch (IOException e) {
+			logger.info("读取嵌入缓存文件失败: {}, {}", file, e.getMessage());
+			return null;
+		}
+	}
+
+	private void writeDisk(String key, float[] vector) {
+		Path file = this.fileOf(key);
+		try {
+			if (this.diskUsed.get() < 0) {
+				this.diskUsed.set(this.scanDisk(null));
+			}
+			if (Files.exists(file)) {
+				return;
+			}
+			Files.createDirectories(file.getParent());
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(FILE_MAGIC);
+				out.writeInt(vector.length);
+				for (float v : vector) {
+					out.writeFloat(v);
+				}
+			}
+			try {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (this.diskUsed.addAndGet(8 + 4L * vector.length) > this.diskBytes) {
+				this.trimDisk();
+			}
+		} catch (IOException e) {
+			logger.info("写入嵌入缓存文件失败: {}, {}", file, e.getMessage());
+		}
+	}
+
+	/**
+	 * 	删掉最久没用的文件，降到上限的九成。
+	 */
+	private void trimDisk() throws IOException {
+		List<Path> files = new ArrayList<>();
+		long total = this.scanDisk(files);
+		files.sort(Comparator.comparingLong(p -> p.toFile().lastModified()));
+		long target = this.diskBytes / 10 * 9;
+		int removed = 0;
+		for (Path p : files) {
+			if (total <= target) {
+				break;
+			}
+			long size = Files.size(p);
+			if (Files.deleteIfExists(p)) {
+				total -= size;
+				removed++;
+			}
+		}
+		this.diskUsed.set(total);
+		logger.info("嵌入缓存磁盘层超过上限，删除了 {} 个文件，剩余 {} MB", removed, total / 1024 / 1024);
+	}
+
+	/**
+	 * 	统计磁盘层的总大小。
+	 * @param files 不为 null 时收集所有缓存文件
+	 * @return
+	 */
+	private long scanDisk(List<Path> files) throws IOException {
+		if (!Files.isDirectory(this.diskDir)) {
+			return 0;
+		}
+		long total = 0;
+		try (Stream<Path> stream = Files.walk(this.diskDir, 2)) {
+			for (Path p : (Iterable<Path>) stream::iterator) {
+				if (p.getFileName().toString().endsWith(".emb") && Files.isRegularFile(p)) {
+					total += Files.size(p);
+					if (files != null) {
+						files.add(p);
+					}
+				}
+			}
+		}
+		return total;
+	}
+}
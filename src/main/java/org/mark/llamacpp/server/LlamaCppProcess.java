@@ -469,6 +469,14 @@ public class LlamaCppProcess {
 		return this.process;
 	}
 
+	/**
+	 * 	启动之后是否已经调用过 stop()，用来区分主动停止和进程自己退出。
+	 * @return
+	 */
+	public boolean isStopRequested() {
+		return !this.isRunning.get();
+	}
+
 	public Integer getExitCode() {
 		if (this.process != null && !this.process.isAlive()) {
 			return this.process.exitValue();
@@ -10,24 +10,30 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.KeyStore;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLEngine;
 
 import org.mark.llamacpp.lmstudio.LMStudio;
 import org.mark.llamacpp.ollama.Ollama;
 import org.mark.llamacpp.server.channel.BasicRouterHandler;
 import org.mark.llamacpp.server.channel.CompletionRouterHandler;
 import org.mark.llamacpp.server.channel.FileDownloadRouterHandler;
+import org.mark.llamacpp.server.channel.HttpKeepAliveHandler;
+import org.mark.llamacpp.server.channel.NettyTransport;
 import org.mark.llamacpp.server.channel.OpenAIChatStreamingHandler;
+import org.mark.llamacpp.server.channel.WebAssets;
 import org.mark.llamacpp.server.channel.LlamaRouterHandler;
 import org.mark.llamacpp.server.io.ConsoleBroadcastOutputStream;
 import org.mark.llamacpp.server.io.ConsoleBufferLogAppender;
+import org.mark.llamacpp.server.io.ConsoleLineBuffer;
 import org.mark.llamacpp.server.mcp.McpClientService;
 import org.mark.llamacpp.server.service.ModelSamplingService;
+import org.mark.llamacpp.server.service.StreamingEndpoint;
 import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.server.struct.LlamaCppConfig;
 import org.mark.llamacpp.server.struct.LlamaCppDataStruct;
@@ -44,16 +50,9 @@ import org.slf4j.LoggerFactory;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 
-import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
@@ -68,7 +67,6 @@ import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.stream.ChunkedFile;
 import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.CharsetUtil;
@@ -132,6 +130,12 @@ public class LlamaServer {
 
 		logger.info("正在初始化节点管理器...");
 		NodeManager.getInstance().initialize();
+		
+		// 按需加载 & 空闲卸载
+		ModelAutoLoader.getInstance();
+
+		// 网页资源读进内存并预先压缩
+		WebAssets.getInstance();
 
 		logger.info("系统初始化完成，启动Web服务器...");
 		
@@ -180,49 +184,12 @@ public class LlamaServer {
 				logger.error("错误：未找到名为 '{}' 的模型。请使用 /api/models 接口查看可用的模型列表。", modelName);
 				return;
 			}
-			// 获取启动配置
-			Map<String, Object> launchConfig = configManager.getModelLaunchConfigBundle(modelName);
-			if (launchConfig == null || launchConfig.isEmpty()) {
-				logger.error("错误：模型 '{}' 没有可用的启动配置。请先配置启动参数。", modelName);
-				return;
-			}
-			// 解析嵌套配置结构：configs -> selectedConfig
-			Map<String, Object> actualConfig = null;
-			Object configsObj = launchConfig.get("configs");
-			if (configsObj instanceof Map) {
-				Map<String, Object> configs = (Map<String, Object>) configsObj;
-				String selectedConfig = (String) launchConfig.getOrDefault("selectedConfig", "默认配置");
-				actualConfig = (Map<String, Object>) configs.get(selectedConfig);
-			}
-
-			if (actualConfig == null || actualConfig.isEmpty()) {
-				logger.error("错误：模型 '{}' 没有可用的启动配置。请先配置启动参数。", modelName);
+			// 按保存的启动配置启动
+			boolean started = serverManager.loadModelFromLaunchConfig(modelName);
+			if (started) {
+				logger.info("模型启动请求已提交");
 			} else {
-				// 提取启动参数
-				String llamaBinPath = (String) actualConfig.getOrDefault("llamaBinPath", "");
-				Object deviceObj = actualConfig.getOrDefault("device", new ArrayList<String>());
-				List<String> device = (deviceObj instanceof List) ? (List<String>) deviceObj : new ArrayList<String>();
-				Integer mg = null;
-				Object mgObj = actualConfig.get("mg");
-				if (mgObj instanceof Number) {
-					mg = ((Number) mgObj).intValue();
-				}
-				boolean enableVision = Boolean.parseBoolean(String.valueOf(actualConfig.getOrDefault("enableVision", false)));
-				String cmd = (String) actualConfig.getOrDefault("cmd", "");
-				String extraParams = (String) actualConfig.getOrDefault("extraParams", "");
-				String chatTemplateFilePath = (String) actualConfig.getOrDefault("chatTemplateFile", "");
-
-				if (llamaBinPath.isEmpty()) {
-					logger.error("错误：模型 '{}' 的启动配置中缺少 llamaBinPath 参数。", modelName);
-				} else {
-					// 启动模型
-					boolean started = serverManager.loadModelAsyncFromCmd(modelName, llamaBinPath, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath);
-					if (started) {
-						logger.info("模型启动请求已提交");
-					} else {
-						logger.error("启动模型 '{}' 失败，请查看日志获取详细信息。", modelName);
-					}
-				}
+				logger.error("启动模型 '{}' 失败，请检查启动配置或查看日志获取详细信息。", modelName);
 			}
 		}
 	}
@@ -270,6 +237,14 @@ public class LlamaServer {
 
 	private static final int DEFAULT_MCP_SERVER_PORT = 8075;
 
+	/**
+	 * 	客户端连接写缓冲的默认低、高水位（字节），和 Netty 的默认值一致。
+	 * 	超过高水位时流式转发暂停读上游，回落到低水位以下再继续，见 {@link org.mark.llamacpp.server.io.StreamRelayWriter}。
+	 */
+	private static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
+
+	private static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
+
 	/**
 	 * 默认下载目录
 	 */
@@ -289,8 +264,7 @@ public class LlamaServer {
 	private static final Path LOG_DIR = Paths.get("logs");
 	private static final Path APPLICATION_LOG_PATH = LOG_DIR.resolve("app.log");
 	private static final int CONSOLE_BUFFER_MAX_BYTES = 2 * 1024 * 1024;
-	private static final Object CONSOLE_BUFFER_LOCK = new Object();
-	private static final StringBuilder CONSOLE_BUFFER = new StringBuilder();
+	private static final ConsoleLineBuffer CONSOLE_BUFFER = new ConsoleLineBuffer(CONSOLE_BUFFER_MAX_BYTES);
 	
 	/**
 	 * 	WebSocket地址
@@ -302,6 +276,20 @@ public class LlamaServer {
 	private static int webPort = DEFAULT_WEB_PORT;
 	
 	private static int anthropicPort = DEFAULT_ANTHROPIC_PORT;
+
+	private static volatile int writeBufferLowWaterMark = DEFAULT_WRITE_BUFFER_LOW_WATER_MARK;
+
+	private static volatile int writeBufferHighWaterMark = DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK;
+
+	/**
+	 * 	共用的 worker 线程数，0 表示按 CPU 核数，见 {@link NettyTransport}
+	 */
+	private static volatile int eventLoopThreads = 0;
+
+	/**
+	 * 	是否在可用时使用 epoll
+	 */
+	private static volatile boolean nativeTransportEnabled = true;
 	
 	private static String downloadDirectory = DEFAULT_DOWNLOAD_DIRECTORY;
 
@@ -326,6 +314,26 @@ public class LlamaServer {
 	private static volatile DefaultMcpServiceImpl mcpServerService;
 
 	private static volatile boolean chatStreamingEnabled = true;
+	
+	/**
+	 * 	请求未加载的模型时，按保存的启动配置自动加载
+	 */
+	private static volatile boolean onDemandLoadEnabled = true;
+	
+	/**
+	 * 	按需加载时请求最多等待的秒数
+	 */
+	private static volatile int onDemandLoadTimeoutSeconds = 600;
+	
+	/**
+	 * 	加载前按显存预算检查，放不下时卸载最久未使用的模型
+	 */
+	private static volatile boolean vramSchedulerEnabled = true;
+	
+	/**
+	 * 	每个设备预留给系统和其他程序的显存（MiB）
+	 */
+	private static volatile int vramReserveMiB = 512;
 
 	private static volatile boolean httpsEnabled = false;
 	private static volatile String httpsCertPath = "ssl/keystore.p12";
@@ -411,6 +419,18 @@ public class LlamaServer {
 			if (server.has("anthropicPort")) {
 				anthropicPort = server.get("anthropicPort").getAsInt();
 			}
+			if (server.has("writeBufferLowWaterMark")) {
+				writeBufferLowWaterMark = server.get("writeBufferLowWaterMark").getAsInt();
+			}
+			if (server.has("writeBufferHighWaterMark")) {
+				writeBufferHighWaterMark = server.get("writeBufferHighWaterMark").getAsInt();
+			}
+			if (server.has("eventLoopThreads")) {
+				eventLoopThreads = server.get("eventLoopThreads").getAsInt();
+			}
+			if (server.has("nativeTransport")) {
+				nativeTransportEnabled = server.get("nativeTransport").getAsBoolean();
+			}
 		}
 
 		if (root.has("download")) {
@@ -502,6 +522,24 @@ public class LlamaServer {
 			}
 		}
 
+		if (root.has("models")) {
+			JsonObject models = root.getAsJsonObject("models");
+			if (models != null) {
+				if (models.has("onDemandLoad")) {
+					onDemandLoadEnabled = models.get("onDemandLoad").getAsBoolean();
+				}
+				if (models.has("onDemandLoadTimeoutSeconds")) {
+					onDemandLoadTimeoutSeconds = models.get("onDemandLoadTimeoutSeconds").getAsInt();
+				}
+				if (models.has("vramScheduler")) {
+					vramSchedulerEnabled = models.get("vramScheduler").getAsBoolean();
+				}
+				if (models.has("vramReserveMiB")) {
+					vramReserveMiB = models.get("vramReserveMiB").getAsInt();
+				}
+			}
+		}
+
 		if (root.has("nodeRole")) {
 			nodeRole = root.get("nodeRole").getAsString();
 		}
@@ -522,6 +560,10 @@ public class LlamaServer {
 				JsonObject server = new JsonObject();
 				server.addProperty("webPort", webPort);
 				server.addProperty("anthropicPort", anthropicPort);
+				server.addProperty("writeBufferLowWaterMark", writeBufferLowWaterMark);
+				server.addProperty("writeBufferHighWaterMark", writeBufferHighWaterMark);
+				server.addProperty("eventLoopThreads", eventLoopThreads);
+				server.addProperty("nativeTransport", nativeTransportEnabled);
 				root.add("server", server);
 	
 				JsonObject download = new JsonObject();
@@ -561,6 +603,13 @@ public class LlamaServer {
 				https.addProperty("keystorePath", httpsCertPath);
 				https.addProperty("keystorePassword", httpsPassword);
 				root.add("https", https);
+				
+				JsonObject models = new JsonObject();
+				models.addProperty("onDemandLoad", onDemandLoadEnabled);
+				models.addProperty("onDemandLoadTimeoutSeconds", onDemandLoadTimeoutSeconds);
+				models.addProperty("vramScheduler", vramSchedulerEnabled);
+				models.addProperty("vramReserveMiB", vramReserveMiB);
+				root.add("models", models);
 	
 				String json = GSON.toJson(root);
 	
@@ -622,6 +671,30 @@ public class LlamaServer {
         return anthropicPort;
     }
     
+    /**
+     * 客户端连接写缓冲的水位，配置不合理时（低水位不小于高水位等）退回默认值
+     */
+    public static WriteBufferWaterMark getWriteBufferWaterMark() {
+        int low = writeBufferLowWaterMark;
+        int high = writeBufferHighWaterMark;
+        if (low <= 0 || high <= low) {
+            low = DEFAULT_WRITE_BUFFER_LOW_WATER_MARK;
+            high = DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK;
+        }
+        return new WriteBufferWaterMark(low, high);
+    }
+    
+    /**
+     * 共用的 worker 线程数，0 表示按 CPU 核数
+     */
+    public static int getEventLoopThreads() {
+        return eventLoopThreads;
+    }
+    
+    public static boolean isNativeTransportEnabled() {
+        return nativeTransportEnabled;
+    }
+    
     public static void setAnthropicPort(int anthropicPort) {
         if (anthropicPort > 0 && anthropicPort <= 65535) {
             LlamaServer.anthropicPort = anthropicPort;
@@ -792,6 +865,46 @@ public static boolean isMcpServerRunning() {
     	}
     }
     
+    public static boolean isOnDemandLoadEnabled() {
+    	return onDemandLoadEnabled;
+    }
+    
+    public static int getOnDemandLoadTimeoutSeconds() {
+    	return onDemandLoadTimeoutSeconds;
+    }
+    
+    public static void updateOnDemandLoadConfig(Boolean enabled, Integer timeoutSeconds) {
+    	synchronized (APPLICATION_CONFIG_LOCK) {
+    		if (enabled != null) {
+    			onDemandLoadEnabled = enabled.booleanValue();
+    		}
+    		if (timeoutSeconds != null && timeoutSeconds.intValue() > 0) {
+    			onDemandLoadTimeoutSeconds = timeoutSeconds.intValue();
+    		}
+    		saveApplicationConfig();
+    	}
+    }
+    
+    public static boolean isVramSchedulerEnabled() {
+    	return vramSchedulerEnabled;
+    }
+    
+    public static int getVramReserveMiB() {
+    	return vramReserveMiB;
+    }
+    
+    public static void updateVramSchedulerConfig(Boolean enabled, Integer reserveMiB) {
+    	synchronized (APPLICATION_CONFIG_LOCK) {
+    		if (enabled != null) {
+    			vramSchedulerEnabled = enabled.booleanValue();
+    		}
+    		if (reserveMiB != null && reserveMiB.intValue() >= 0) {
+    			vramReserveMiB = reserveMiB.intValue();
+    		}
+    		saveApplicationConfig();
+    	}
+    }
+    
     public static void updateRequestLogConfig(Boolean urlEnabled, Boolean headerEnabled, Boolean bodyEnabled) {
     	synchronized (APPLICATION_CONFIG_LOCK) {
     		if (urlEnabled != null) {
@@ -930,49 +1043,16 @@ public static String getDefaultModelsPath() {
     
     
 //    private static void bindAnthropic(int port) {
-//        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-//        EventLoopGroup workerGroup = new NioEventLoopGroup();
-//        
 //        try {
-//            ServerBootstrap bootstrap = new ServerBootstrap();
-//            bootstrap.group(bossGroup, workerGroup)
-//                    .channel(NioServerSocketChannel.class)
-//                    .option(ChannelOption.SO_BACKLOG, 1024)
-//                    .childOption(ChannelOption.SO_KEEPALIVE, true)
-//                    .childHandler(new ChannelInitializer<SocketChannel>() {
-//                        @Override
-//                        protected void initChannel(SocketChannel ch) throws Exception {
-//                            if (httpsSslContext != null) {
-//                            	SSLEngine engine = httpsSslContext.newEngine(ch.alloc());
-//                                ch.pipeline()
-//                                		.addLast(new SslHandler(engine))
-//                                        .addLast(new HttpServerCodec())
-//                                        .addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
-//                                        .addLast(new ChunkedWriteHandler())
-//                                        .addLast(new BasicRouterHandler())
-//                                        .addLast(new CompletionRouterHandler())
-//                                        .addLast(new AnthropicRouterHandler())
-//                                        .addLast(new FileDownloadRouterHandler());
-//                            } else {
-//                                ch.pipeline()
-//                                        .addLast(new HttpServerCodec())
-//                                        .addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
-//                                        .addLast(new ChunkedWriteHandler())
-//                                        .addLast(new BasicRouterHandler())
-//                                        .addLast(new CompletionRouterHandler())
-//                                        .addLast(new AnthropicRouterHandler())
-//                                        .addLast(new FileDownloadRouterHandler());
-//                            }
-//                        }
-//                        
-//                        @Override
-//                        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-//                        		logger.info("Failed to initialize a channel. Closing: " + ctx.channel(), cause);
-//                            ctx.close();
-//                        }
-//                    });
-//            
-//            ChannelFuture future = bootstrap.bind(port).sync();
+//            ChannelFuture future = NettyTransport.getInstance().bind("Anthropic", port, httpsSslContext, (ch, pipeline) -> {
+//                pipeline.addLast(new HttpServerCodec())
+//                        .addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
+//                        .addLast(new ChunkedWriteHandler())
+//                        .addLast(new BasicRouterHandler())
+//                        .addLast(new CompletionRouterHandler())
+//                        .addLast(new AnthropicRouterHandler())
+//                        .addLast(new FileDownloadRouterHandler());
+//            }).sync();
 //            logger.info("Anthropic服务启动成功，端口: {}", port);
 //            String protocol = httpsSslContext != null ? "https" : "http";
 //            logger.info("访问地址: {}://localhost:{}", protocol, port);
@@ -984,65 +1064,28 @@ public static String getDefaultModelsPath() {
 //        } catch (Exception e) {
 //            logger.info("服务器启动失败", e);
 //        } finally {
-//            bossGroup.shutdownGracefully();
-//            workerGroup.shutdownGracefully();
-//            
 //            logger.info("服务器已关闭");
 //        }
 //    }
     
     
     private static void bindOpenAI(int port) {
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
-        
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .option(ChannelOption.SO_BACKLOG, 1024)
-                    .childOption(ChannelOption.SO_KEEPALIVE, true)
-                    .childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel ch) throws Exception {
-                            if (httpsSslContext != null) {
-                            	SSLEngine engine = httpsSslContext.newEngine(ch.alloc());
-                                ch.pipeline()
-                                		.addLast(new SslHandler(engine))
-                                        .addLast(new HttpServerCodec())
-                                        .addLast(new OpenAIChatStreamingHandler())
-                                        .addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
-                                        .addLast(new ChunkedWriteHandler())
-                                        .addLast(new WebSocketServerProtocolHandler(WEBSOCKET_PATH, null, true, Integer.MAX_VALUE))
-                                        .addLast(new WebSocketServerHandler())
-                                        
-                                        .addLast(new BasicRouterHandler())
-                                        .addLast(new CompletionRouterHandler())
-                                        .addLast(new FileDownloadRouterHandler())
-                                        .addLast(new LlamaRouterHandler());
-                            } else {
-                                ch.pipeline()
-                                        .addLast(new HttpServerCodec())
-                                        .addLast(new OpenAIChatStreamingHandler())
-                                        .addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
-                                        .addLast(new ChunkedWriteHandler())
-                                        .addLast(new WebSocketServerProtocolHandler(WEBSOCKET_PATH, null, true, Integer.MAX_VALUE))
-                                        .addLast(new WebSocketServerHandler())
-                                        
-                                        .addLast(new BasicRouterHandler())
-                                        .addLast(new CompletionRouterHandler())
-                                        .addLast(new FileDownloadRouterHandler())
-                                        .addLast(new LlamaRouterHandler());
-                            }
-                        }
-                        @Override
-                        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-                        		logger.info("Failed to initialize a channel. Closing: " + ctx.channel(), cause);
-                            ctx.close();
-                        }
-                    });
-            
-            ChannelFuture future = bootstrap.bind(port).sync();
+            ChannelFuture future = NettyTransport.getInstance().bind("OpenAI", port, httpsSslContext, (ch, pipeline) -> {
+                pipeline.addLast(new HttpServerCodec())
+                        .addLast(HttpKeepAliveHandler.newIdleStateHandler())
+                        .addLast(new HttpKeepAliveHandler())
+                        .addLast(new OpenAIChatStreamingHandler(EnumSet.allOf(StreamingEndpoint.class)))
+                        .addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
+                        .addLast(new ChunkedWriteHandler())
+                        .addLast(new WebSocketServerProtocolHandler(WEBSOCKET_PATH, null, true, Integer.MAX_VALUE))
+                        .addLast(new WebSocketServerHandler())
+                        
+                        .addLast(new BasicRouterHandler())
+                        .addLast(new CompletionRouterHandler())
+                        .addLast(new FileDownloadRouterHandler())
+                        .addLast(new LlamaRouterHandler());
+            }).sync();
             logger.info("OpenAI服务启动成功，端口: {}", port);
             String protocol = httpsSslContext != null ? "https" : "http";
             logger.info("访问地址: {}://localhost:{}", protocol, port);
@@ -1054,9 +1097,6 @@ public static String getDefaultModelsPath() {
         } catch (Exception e) {
             logger.info("服务器启动失败", e);
         } finally {
-            bossGroup.shutdownGracefully();
-            workerGroup.shutdownGracefully();
-            
             logger.info("服务器已关闭");
         }
     }
@@ -1089,9 +1129,17 @@ public static String getDefaultModelsPath() {
     }
 
     public static String getConsoleBufferText() {
-        synchronized (CONSOLE_BUFFER_LOCK) {
-            return CONSOLE_BUFFER.toString();
-        }
+        return CONSOLE_BUFFER.toText();
+    }
+
+    /**
+     * 	读取序号大于 afterSeq 的控制台日志。
+     * @param afterSeq
+     * @param limit
+     * @return
+     */
+    public static ConsoleLineBuffer.Slice readConsoleBuffer(long afterSeq, int limit) {
+        return CONSOLE_BUFFER.read(afterSeq, limit);
     }
 
     private static void preloadConsoleBufferFromAppLog() {
@@ -1103,44 +1151,16 @@ public static String getDefaultModelsPath() {
             if (text == null || text.isEmpty()) {
                 return;
             }
-            synchronized (CONSOLE_BUFFER_LOCK) {
-                CONSOLE_BUFFER.setLength(0);
-                CONSOLE_BUFFER.append(trimConsoleBufferToMaxBytes(text));
+            List<String> lines = new ArrayList<>(Arrays.asList(text.split("\\R", -1)));
+            // 最后一个换行后面是空串
+            if (!lines.isEmpty() && lines.get(lines.size() - 1).isEmpty()) {
+                lines.remove(lines.size() - 1);
             }
+            CONSOLE_BUFFER.reset(lines);
         } catch (Exception ignore) {
         }
     }
 
-    private static void appendConsoleBufferLine(String line) {
-        String entry = line == null ? "\n" : line + "\n";
-        synchronized (CONSOLE_BUFFER_LOCK) {
-            CONSOLE_BUFFER.append(entry);
-            String trimmed = trimConsoleBufferToMaxBytes(CONSOLE_BUFFER.toString());
-            if (trimmed.length() != CONSOLE_BUFFER.length()) {
-                CONSOLE_BUFFER.setLength(0);
-                CONSOLE_BUFFER.append(trimmed);
-            }
-        }
-    }
-
-    private static String trimConsoleBufferToMaxBytes(String text) {
-        if (text == null || text.isEmpty()) {
-            return "";
-        }
-        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
-        if (bytes.length <= CONSOLE_BUFFER_MAX_BYTES) {
-            return text;
-        }
-        int start = bytes.length - CONSOLE_BUFFER_MAX_BYTES;
-        while (start < bytes.length && (bytes[start] & 0xC0) == 0x80) {
-            start++;
-        }
-        if (start >= bytes.length) {
-            return "";
-        }
-        return new String(bytes, start, bytes.length - start, StandardCharsets.UTF_8);
-    }
-
     private static String readTailUtf8(Path path, int maxBytes) throws IOException {
         if (path == null || maxBytes <= 0) {
             return "";
@@ -1203,8 +1223,8 @@ public static String getDefaultModelsPath() {
     }
     
     public static void sendConsoleLineEvent(String modelId, String line) {
-        appendConsoleBufferLine(line);
-        WebSocketManager.getInstance().sendConsoleLineEvent(modelId, line);
+        long seq = CONSOLE_BUFFER.append(line);
+        WebSocketManager.getInstance().sendConsoleLineEvent(modelId, line, seq);
     }
     
     public static void sendModelSlotsEvent(String modelId, com.google.gson.JsonArray slots) {
@@ -1350,7 +1370,7 @@ public static String getDefaultModelsPath() {
 	
 	//================================================================================================
 	
-	private static void setCorsHeaders(HttpHeaders headers) {
+	public static void setCorsHeaders(HttpHeaders headers) {
 		headers.set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
 		headers.set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
 		headers.set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, POST, PUT, DELETE, OPTIONS");
@@ -1376,15 +1396,17 @@ public static String getDefaultModelsPath() {
 		setCorsHeaders(response.headers());
 		response.content().writeBytes(content);
 
-		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(response);
 	}
 
 	public static void sendExpressJsonResponse(ChannelHandlerContext ctx, HttpResponseStatus status, Object data, boolean allowAllMethods) {
+		sendExpressJsonResponse(ctx, status, data, allowAllMethods, 0);
+	}
+
+	/**
+	 * 	同上，retryAfterSeconds 大于0时带上 Retry-After。
+	 */
+	public static void sendExpressJsonResponse(ChannelHandlerContext ctx, HttpResponseStatus status, Object data, boolean allowAllMethods, int retryAfterSeconds) {
 		String json = JsonUtil.toJson(data);
 		byte[] content = json.getBytes(CharsetUtil.UTF_8);
 
@@ -1400,15 +1422,13 @@ public static String getDefaultModelsPath() {
 		response.headers().set(HttpHeaderNames.DATE, ParamTool.getDate());
 		response.headers().set(HttpHeaderNames.ETAG, ParamTool.buildEtag(content));
 		response.headers().set("X-Powered-By", "Express");
+		if (retryAfterSeconds > 0) {
+			response.headers().set(HttpHeaderNames.RETRY_AFTER, retryAfterSeconds);
+		}
 
 		response.content().writeBytes(content);
 
-		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(response);
 	}
 
 	public static void sendExpressRawJsonResponse(ChannelHandlerContext ctx, HttpResponseStatus status, byte[] content, boolean allowAllMethods) {
@@ -1428,12 +1448,26 @@ public static String getDefaultModelsPath() {
 		response.headers().set("X-Powered-By", "Express");
 		response.content().writeBytes(bytes);
 
-		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(response);
+	}
+
+	/**
+	 * 	路径存在但不支持这个请求方法，返回405和Allow头。
+	 * @param ctx
+	 * @param allow 允许的方法，逗号分隔
+	 * @param data
+	 */
+	public static void sendMethodNotAllowedResponse(ChannelHandlerContext ctx, String allow, Object data) {
+		byte[] content = GSON.toJson(data).getBytes(CharsetUtil.UTF_8);
+
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED);
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
+		response.headers().set(HttpHeaderNames.ALLOW, allow);
+		setCorsHeaders(response.headers());
+		response.content().writeBytes(content);
+
+		ctx.writeAndFlush(response);
 	}
 
 	public static void sendJsonErrorResponse(ChannelHandlerContext ctx, HttpResponseStatus status, String message) {
@@ -1465,15 +1499,8 @@ public static String getDefaultModelsPath() {
 		// 使用ChunkedFile传输文件内容
 		ctx.write(new ChunkedFile(raf, 0, fileLength, 8192), ctx.newProgressivePromise());
 
-		ChannelFuture lastContentFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
-
-		// 传输完成后关闭连接
-		lastContentFuture.addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		// 连接是否保持由HttpKeepAliveHandler决定
+		ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
 	}
 	
 	/**
@@ -1491,12 +1518,7 @@ public static String getDefaultModelsPath() {
         setCorsHeaders(response.headers());
         response.content().writeBytes(content);
 
-        ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) {
-                ctx.close();
-            }
-        });
+        ctx.writeAndFlush(response);
     }
 	
     /**
@@ -1511,12 +1533,7 @@ public static String getDefaultModelsPath() {
 		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
 		setCorsHeaders(response.headers());
 		response.content().writeBytes(content);
-		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(response);
 	}
     
     
@@ -1526,12 +1543,7 @@ public static String getDefaultModelsPath() {
 		setCorsHeaders(response.headers());
 		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
 
-		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(response);
     }
 	
 	/**
@@ -1564,6 +1576,16 @@ public static String getDefaultModelsPath() {
 			return "image/gif";
 		case "txt":
 			return "text/plain; charset=UTF-8";
+		case "md":
+			return "text/markdown; charset=UTF-8";
+		case "svg":
+			return "image/svg+xml";
+		case "ico":
+			return "image/x-icon";
+		case "woff2":
+			return "font/woff2";
+		case "ttf":
+			return "font/ttf";
 		default:
 			return "application/octet-stream";
 		}
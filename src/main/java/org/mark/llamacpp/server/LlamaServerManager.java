@@ -16,7 +16,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -29,12 +28,15 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Stream;
 
 import org.mark.llamacpp.gguf.GGUFBundle;
 import org.mark.llamacpp.gguf.GGUFMetaData;
 import org.mark.llamacpp.gguf.GGUFModel;
-import org.mark.llamacpp.gguf.GGUFMetaDataReader;
+import org.mark.llamacpp.gguf.GGUFMetadataCache;
+import org.mark.llamacpp.server.io.UpstreamConnectionPool;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.struct.ModelPathConfig;
 import org.mark.llamacpp.server.struct.ModelPathDataStruct;
@@ -95,9 +97,9 @@ public class LlamaServerManager {
 	
 	
 	/**
-	 * 	所有GGUF模型的列表
+	 * 	所有GGUF模型。扫描时逐个目录发布，之后按文件事件增量更新。
 	 */
-	private List<GGUFModel> list = new LinkedList<>();
+	private final ModelCatalog catalog = new ModelCatalog(this::getScanRoots, this::loadModelDirectory);
 	
 	/**
 	 * 已加载的模型进程列表
@@ -121,6 +123,11 @@ public class LlamaServerManager {
 	 * 模型ID到端口映射
 	 */
 	private Map<String, Integer> modelPorts = new HashMap<>();
+	
+	/**
+	 * 	路由快照。请求转发路径无锁读取，只在持有processLock时整体替换。
+	 */
+	private volatile ModelRoutingTable routingTable = ModelRoutingTable.EMPTY;
 
 	private final Map<String, JsonObject> loadedModelInfos = new ConcurrentHashMap<>();
 	
@@ -130,9 +137,15 @@ public class LlamaServerManager {
 	private Set<String> loadingModels = new HashSet<>();
 	
 	/**
-	 * 线程池，用于异步执行模型加载任务
+	 * 	加载任务。显存由 {@link ModelScheduler} 把关，不同模型的加载可以并行，见 {@link #loadLock}。
 	 */
-	private final ExecutorService executorService = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("llama-loader-", 0).factory());
+	private final ExecutorService executorService = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("llama-loader-", 0).factory());
+	
+	/**
+	 * 	加载期间持有。{@link ModelScheduler} 登记了显存占用的加载拿读锁，可以并行；
+	 * 	没有登记的（调度关闭、拿不到设备列表、估算失败、只用CPU）拿写锁，和其他加载都不并行，跟原来单线程加载一样。
+	 */
+	private final ReentrantReadWriteLock loadLock = new ReentrantReadWriteLock();
 	
 //	private final ScheduledExecutorService slotsScheduler = new ScheduledThreadPoolExecutor(1, Thread.ofVirtual().name("llama-slots-", 0).factory());
 	
@@ -188,6 +201,10 @@ public class LlamaServerManager {
                 if (p != null && !p.getPath().trim().isEmpty()) this.modelPaths.add(p);
             }
         }
+        // 根目录变了，按新的路径重新注册监听
+        if (this.catalog.isWatching()) {
+            this.catalog.startWatching();
+        }
     }
 
     /**
@@ -262,80 +279,64 @@ public class LlamaServerManager {
 	
 	
 	/**
-	 * 	获取模型列表 
-	 * @param reload 是否重新加载
+	 * 	获取模型列表。第一次调用时扫描所有模型目录，之后由目录监听增量更新；
+	 * 	扫描进行中时其他线程直接拿到目前为止已经扫描到的模型，不会等待。
+	 * @param reload 是否全量重新扫描（会等待扫描结束）
+	 * @return 不可修改的快照
+	 */
+	public List<GGUFModel> listModel(boolean reload) {
+		if (reload) {
+			this.catalog.scan();
+		} else {
+			this.catalog.ensureScanned();
+		}
+		if (this.catalog.isScanned() && !this.catalog.isWatching()) {
+			this.catalog.startWatching();
+		}
+		return this.catalog.getModels();
+	}
+
+	/**
+	 * 	要扫描的根目录：配置的模型路径和默认目录。
 	 * @return
 	 */
-    public List<GGUFModel> listModel(boolean reload) {
-        synchronized (this.list) {
-            // 如果列表是空的，就去检索
-            if(this.list.size() == 0 || reload) {
-                this.list.clear();
-                // 新建一个临时集合
-                List<ModelPathDataStruct> list = new ArrayList<>(this.modelPaths);
-                // 扫描默认目录
-                list.add(new ModelPathDataStruct(LlamaServer.getDefaultModelsPath(), "", ""));
-                
-                for (ModelPathDataStruct root : list) {
-                    if (root == null || root.getPath().trim().isEmpty()) continue;
-                    Path modelDir = Paths.get(root.getPath().trim());
-                    if (!Files.exists(modelDir) || !Files.isDirectory(modelDir)) {
-                        continue;
-                    }
-                    try (Stream<Path> paths = Files.walk(modelDir)) {
-                        List<Path> files = paths.filter(Files::isDirectory).sorted().toList();
-                        for (Path e : files) {
-                            GGUFModel model = this.handleDirectory(e);
-                            if (model != null) this.list.add(model);
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                List<Map<String, Object>> persisted = this.configManager.loadModelsConfigCached();
-                Map<String, String> aliasMap = new HashMap<>();
-                Map<String, Boolean> favouriteMap = new HashMap<>();
-                for (Map<String, Object> rec : persisted) {
-                    if (rec == null) continue;
-                    Object id = rec.get("modelId");
-                    if (id == null) continue;
-                    String modelId = String.valueOf(id);
-                    Object alias = rec.get("alias");
-                    if (alias != null) {
-                        String a = String.valueOf(alias);
-                        if (!a.isEmpty()) aliasMap.put(modelId, a);
-                    }
-                    Object fav = rec.get("favourite");
-                    if (fav != null) {
-                        boolean v;
-                        if (fav instanceof Boolean) {
-                            v = (Boolean) fav;
-                        } else {
-                            v = Boolean.parseBoolean(String.valueOf(fav));
-                        }
-                        favouriteMap.put(modelId, v);
-                    }
-                }
-                for (GGUFModel m : this.list) {
-                    String alias = aliasMap.get(m.getModelId());
-                    if (alias != null && !alias.isEmpty()) {
-                        m.setAlias(alias);
-                    }
-                    Boolean fav = favouriteMap.get(m.getModelId());
-                    if (fav != null) {
-                        m.setFavourite(fav);
-                    }
-                }
-				this.ensureCapabilitiesFilesExistForCurrentList();
-            }
-            // 如果集合不是空的，就直接返回。
-            else {
-				this.ensureCapabilitiesFilesExistForCurrentList();
-                return this.list;
-            }
-        }
-        return this.list;
-    }
+	private List<Path> getScanRoots() {
+		List<Path> roots = new ArrayList<>();
+		List<ModelPathDataStruct> list = new ArrayList<>(this.modelPaths);
+		list.add(new ModelPathDataStruct(LlamaServer.getDefaultModelsPath(), "", ""));
+		for (ModelPathDataStruct root : list) {
+			if (root == null || root.getPath() == null || root.getPath().trim().isEmpty()) continue;
+			Path p = Paths.get(root.getPath().trim()).toAbsolutePath().normalize();
+			if (!roots.contains(p)) roots.add(p);
+		}
+		return roots;
+	}
+
+	/**
+	 * 	解析一个目录，并套用 models.json 中保存的别名和收藏，能力信息文件不存在时生成。
+	 * 	全量扫描和目录监听的增量更新都走这里，读取列表时不再检查；扫描时会在多个虚拟线程里同时调用。
+	 * @param dir
+	 * @return 不是模型目录时返回null
+	 */
+	private GGUFModel loadModelDirectory(Path dir) {
+		GGUFModel model = this.handleDirectory(dir);
+		if (model == null) {
+			return null;
+		}
+		for (Map<String, Object> rec : this.configManager.loadModelsConfigCached()) {
+			if (rec == null || !model.getModelId().equals(String.valueOf(rec.get("modelId")))) continue;
+			Object alias = rec.get("alias");
+			if (alias != null && !String.valueOf(alias).isEmpty()) {
+				model.setAlias(String.valueOf(alias));
+			}
+			Object fav = rec.get("favourite");
+			if (fav != null) {
+				model.setFavourite(fav instanceof Boolean ? (Boolean) fav : Boolean.parseBoolean(String.valueOf(fav)));
+			}
+		}
+		this.ensureCapabilitiesFileExistsForModel(model);
+		return model;
+	}
     
     /**
      * 	锁定文件。
@@ -417,9 +418,8 @@ public class LlamaServerManager {
 		String chatTemplate = "";
 		try {
 			if (primaryFile != null && primaryFile.exists() && primaryFile.isFile()) {
-				Map<String, Object> full = GGUFMetaDataReader.read(primaryFile);
-				Object tpl = full == null ? null : full.get("tokenizer.chat_template");
-				if (tpl != null) chatTemplate = String.valueOf(tpl);
+				String tpl = GGUFMetadataCache.getInstance().getChatTemplate(primaryFile);
+				if (tpl != null) chatTemplate = tpl;
 			}
 		} catch (Exception ignore) {
 		}
@@ -487,12 +487,6 @@ public class LlamaServerManager {
 		}
 	}
 
-	private void ensureCapabilitiesFilesExistForCurrentList() {
-		for (GGUFModel m : this.list) {
-			this.ensureCapabilitiesFileExistsForModel(m);
-		}
-	}
-	
 	private void ensureCapabilitiesFileExistsForModel(GGUFModel model) {
 		if (model == null) return;
 		GGUFMetaData primary = model.getPrimaryModel();
@@ -634,6 +628,9 @@ public class LlamaServerManager {
 		synchronized (this.lockForCapabilitiesFile(id)) {
 			Files.write(filePath, saved.toString().getBytes(StandardCharsets.UTF_8));
 		}
+		if (this.routingTable.contains(id)) {
+			this.refreshRoutingTable();
+		}
 
 		JsonObject out = new JsonObject();
 		out.addProperty("modelId", id);
@@ -656,7 +653,7 @@ public class LlamaServerManager {
      * @param path
      * @return
      */
-	private synchronized GGUFModel handleDirectory(Path path) {
+	private GGUFModel handleDirectory(Path path) {
 		File dir = path.toFile();
 		if (dir.getName().startsWith("."))
 			return null;
@@ -712,7 +709,7 @@ public class LlamaServerManager {
 			File primaryFile = bundle.getPrimaryFile();
 			GGUFMetaData primaryMeta = null;
 			if(primaryFile != null && primaryFile.exists()) {
-				GGUFMetaData md = GGUFMetaData.readFile(primaryFile);
+				GGUFMetaData md = GGUFMetadataCache.getInstance().getMetaData(primaryFile);
 				if (md != null) {
 					primaryMeta = md;
 					model.setPrimaryModel(md);
@@ -724,7 +721,7 @@ public class LlamaServerManager {
 			// 处理mmproj文件
 			File mmprojFile = bundle.getMmprojFile();
 			if(mmprojFile != null && mmprojFile.exists()) {
-				GGUFMetaData md = GGUFMetaData.readFile(mmprojFile);
+				GGUFMetaData md = GGUFMetadataCache.getInstance().getMetaData(mmprojFile);
 				if (md != null) {
 					model.setMmproj(md);
 					model.addMetaData(md);
@@ -775,13 +772,34 @@ public class LlamaServerManager {
 	 * @return
 	 */
 	public GGUFModel findModelById(String modelId) {
-		for(GGUFModel e : this.list) {
+		for(GGUFModel e : this.catalog.getModels()) {
 			if(e.getModelId().equals(modelId))
 				return e;
 		}
 		return null;
 	}
 	
+	/**
+	 * 	按模型ID或别名查找模型。
+	 * @param name
+	 * @return
+	 */
+	public GGUFModel findModelByName(String name) {
+		if (name == null || name.isEmpty()) {
+			return null;
+		}
+		GGUFModel model = this.findModelById(name);
+		if (model != null) {
+			return model;
+		}
+		for (GGUFModel e : this.catalog.getModels()) {
+			if (name.equals(e.getAlias())) {
+				return e;
+			}
+		}
+		return null;
+	}
+	
 	/**
 	 * 获取下一个可用端口
 	 * 使用PortChecker工具类检查端口是否真正可用
@@ -810,9 +828,25 @@ public class LlamaServerManager {
 	 * @return 已加载的模型进程列表
 	 */
 	public Map<String, LlamaCppProcess> getLoadedProcesses() {
-		synchronized (this.processLock) {
-			return new HashMap<>(this.loadedProcesses);
-		}
+		// 快照本身不可变，直接返回，不再复制
+		return this.routingTable.getProcesses();
+	}
+	
+	/**
+	 * 	获取当前的路由快照。同一次请求里多次查询时应该先拿到快照再查，保证看到的是同一个版本。
+	 * @return
+	 */
+	public ModelRoutingTable getRoutingTable() {
+		return this.routingTable;
+	}
+	
+	/**
+	 * 	按模型ID或别名查找已加载模型的路由。
+	 * @param name
+	 * @return 未加载时返回null
+	 */
+	public ModelRoutingTable.Route findRoute(String name) {
+		return this.routingTable.resolve(name);
 	}
 	
 	/**
@@ -820,13 +854,49 @@ public class LlamaServerManager {
 	 * @return
 	 */
 	public String getFirstModelName() {
+		return this.routingTable.getFirstModelId();
+	}
+	
+	/**
+	 * 	重建路由快照，别名或能力配置修改后调用。
+	 */
+	public void refreshRoutingTable() {
 		synchronized (this.processLock) {
-			if (this.loadedProcesses.isEmpty()) {
-				return null;
+			this.publishRoutingTable(true);
+		}
+	}
+	
+	/**
+	 * 	按当前的进程表重建路由快照。调用方必须持有processLock。
+	 * @param reloadCapabilities 是否重新读取所有模型的能力配置，否则只读新加入的模型
+	 */
+	private void publishRoutingTable(boolean reloadCapabilities) {
+		ModelRoutingTable previous = this.routingTable;
+		List<ModelRoutingTable.Route> routes = new ArrayList<>(this.loadedProcesses.size());
+		for (Map.Entry<String, LlamaCppProcess> e : this.loadedProcesses.entrySet()) {
+			String id = e.getKey();
+			LlamaCppProcess process = e.getValue();
+			Integer port = this.modelPorts.get(id);
+			if (port == null || process == null) {
+				continue;
+			}
+			ModelRoutingTable.Route old = previous.get(id);
+			JsonObject caps;
+			if (!reloadCapabilities && old != null && old.getProcess() == process) {
+				caps = old.getCapabilities();
+			} else {
+				try {
+					caps = this.getModelCapabilities(id);
+				} catch (Exception ex) {
+					logger.info("读取模型能力配置失败: {}", id, ex);
+					caps = null;
+				}
 			}
-			Map.Entry<String, LlamaCppProcess> firstEntry = this.loadedProcesses.entrySet().iterator().next();
-			return firstEntry.getKey();
+			GGUFModel model = this.findModelById(id);
+			String alias = model == null ? null : model.getAlias();
+			routes.add(new ModelRoutingTable.Route(id, alias, port.intValue(), process.getSlotNum(), process.getCtxSize(), caps, process));
 		}
+		this.routingTable = new ModelRoutingTable(routes);
 	}
 	
 	/**
@@ -835,12 +905,9 @@ public class LlamaServerManager {
 	 * @return
 	 */
 	public String getModelStartCmd(String modelId) {
-		LlamaCppProcess process;
-		synchronized (this.processLock) {
-			process = this.loadedProcesses.get(modelId);
-		}
-		if (process == null) return "";
-		return process.getCmd();
+		ModelRoutingTable.Route route = this.routingTable.get(modelId);
+		if (route == null) return "";
+		return route.getProcess().getCmd();
 	}
 	
 	/**
@@ -849,9 +916,8 @@ public class LlamaServerManager {
 	 * @return 端口号，如果模型未加载则返回null
 	 */
 	public Integer getModelPort(String modelId) {
-		synchronized (this.processLock) {
-			return this.modelPorts.get(modelId);
-		}
+		ModelRoutingTable.Route route = this.routingTable.get(modelId);
+		return route == null ? null : Integer.valueOf(route.getPort());
 	}
 	
 	/**
@@ -870,11 +936,17 @@ public class LlamaServerManager {
 		if (process != null) {
 			boolean stopped = process.stop();
 			if (stopped) {
+				Integer port;
 				synchronized (this.processLock) {
 					this.loadedProcesses.remove(id);
-					this.modelPorts.remove(id);
+					port = this.modelPorts.remove(id);
+					this.publishRoutingTable(false);
 				}
 				this.loadedModelInfos.remove(id);
+				if (port != null) {
+					UpstreamConnectionPool.getInstance().closeRoutesForPort(port.intValue());
+				}
+				ModelScheduler.getInstance().release(id);
 			}
 			return stopped;
 		}
@@ -904,11 +976,13 @@ public class LlamaServerManager {
 				this.loadingProcesses.remove(id);
 				this.loadingTasks.remove(id);
 				this.modelPorts.remove(id);
+				this.publishRoutingTable(false);
 			}
 			synchronized (this.loadingModels) {
 				this.loadingModels.remove(id);
 			}
 			this.loadedModelInfos.remove(id);
+			ModelAutoLoader.getInstance().onLoadFinished(id);
 		}
 		return stopped;
 	}
@@ -950,11 +1024,9 @@ public class LlamaServerManager {
 		}
 		this.configManager.saveLaunchConfig(modelId, launchConfig);
 
-		synchronized (this.processLock) {
-			if (this.loadedProcesses.containsKey(modelId)) {
-				LlamaServer.sendModelLoadEvent(modelId, false, "模型已经加载");
-				return false;
-			}
+		if (this.routingTable.contains(modelId)) {
+			LlamaServer.sendModelLoadEvent(modelId, false, "模型已经加载");
+			return false;
 		}
 
 		GGUFModel targetModel = this.findModelById(modelId);
@@ -1003,6 +1075,49 @@ public class LlamaServerManager {
 		}
 	}
 	
+	/**
+	 * 	按保存的启动配置（当前选中的那一套）异步加载模型。
+	 * 	命令行参数启动和按需加载都走这里。
+	 * @param modelId
+	 * @return 是否已提交加载任务
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean loadModelFromLaunchConfig(String modelId) {
+		Map<String, Object> launchConfig = this.configManager.getModelLaunchConfigBundle(modelId);
+		Map<String, Object> actualConfig = null;
+		Object configsObj = launchConfig == null ? null : launchConfig.get("configs");
+		if (configsObj instanceof Map) {
+			Map<String, Object> configs = (Map<String, Object>) configsObj;
+			Object selectedConfig = launchConfig.get("selectedConfig");
+			Object selected = configs.get(selectedConfig == null ? "" : String.valueOf(selectedConfig));
+			if (selected instanceof Map) {
+				actualConfig = (Map<String, Object>) selected;
+			}
+		}
+		if (actualConfig == null || actualConfig.isEmpty()) {
+			logger.info("模型 {} 没有可用的启动配置", modelId);
+			return false;
+		}
+		Object binObj = actualConfig.get("llamaBinPath");
+		String llamaBinPath = binObj == null ? "" : String.valueOf(binObj);
+		if (llamaBinPath.isEmpty()) {
+			logger.info("模型 {} 的启动配置中缺少 llamaBinPath 参数", modelId);
+			return false;
+		}
+		Object deviceObj = actualConfig.get("device");
+		List<String> device = (deviceObj instanceof List) ? (List<String>) deviceObj : new ArrayList<String>();
+		Integer mg = null;
+		Object mgObj = actualConfig.get("mg");
+		if (mgObj instanceof Number) {
+			mg = ((Number) mgObj).intValue();
+		}
+		boolean enableVision = Boolean.parseBoolean(String.valueOf(actualConfig.getOrDefault("enableVision", false)));
+		String cmd = String.valueOf(actualConfig.getOrDefault("cmd", ""));
+		String extraParams = String.valueOf(actualConfig.getOrDefault("extraParams", ""));
+		String chatTemplateFilePath = String.valueOf(actualConfig.getOrDefault("chatTemplateFile", ""));
+		return this.loadModelAsyncFromCmd(modelId, llamaBinPath, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath);
+	}
+	
 	/**
 	 * 	后台启动llama-server进程。
 	 * @param modelId
@@ -1017,7 +1132,25 @@ public class LlamaServerManager {
 	 */
 	private void loadModelInBackgroundFromCmd(String modelId, GGUFModel targetModel, String llamaBinPath, List<String> device,
 			Integer mg, boolean enableVision, String cmd, String extraParams, String chatTemplateFilePath) {
+		Lock loadSlot = null;
 		try {
+			if (this.isLoadCanceled(modelId)) {
+				return;
+			}
+			ModelScheduler scheduler = ModelScheduler.getInstance();
+			String rejected = scheduler.admit(targetModel, llamaBinPath, device, enableVision, cmd, extraParams);
+			if (rejected != null) {
+				LlamaServer.sendModelLoadEvent(modelId, false, rejected);
+				return;
+			}
+			Lock lock = scheduler.hasPlacement(modelId) ? this.loadLock.readLock() : this.loadLock.writeLock();
+			try {
+				lock.lockInterruptibly();
+				loadSlot = lock;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
 			if (this.isLoadCanceled(modelId)) {
 				return;
 			}
@@ -1033,6 +1166,7 @@ public class LlamaServerManager {
 
 			process.setOutputHandler(line -> {
 				LlamaServer.sendConsoleLineEvent(modelId, line);
+				ModelScheduler.getInstance().onProcessOutput(modelId, line);
 				if (line.contains("srv  update_slots: all slots are idle")) {
 					loadSuccess.set(true);
 					latch.countDown();
@@ -1044,20 +1178,14 @@ public class LlamaServerManager {
 				if (line.contains("Inferior") && line.contains("detached")) {
 					logger.info("检测到模型进程异常终止: {}", line);
 					loadSuccess.set(false);
-					synchronized (this.processLock) {
-						this.loadedProcesses.remove(modelId);
-						this.modelPorts.remove(modelId);
-					}
+					this.removeCrashedProcess(modelId, process);
 					LlamaServer.sendModelStopEvent(modelId, false, "模型进程异常终止: " + line);
 					latch.countDown();
 				}
 				if (line.startsWith("error")) {
 					logger.info("检测到模型进程异常终止: {}", line);
 					loadSuccess.set(false);
-					synchronized (this.processLock) {
-						this.loadedProcesses.remove(modelId);
-						this.modelPorts.remove(modelId);
-					}
+					this.removeCrashedProcess(modelId, process);
 					latch.countDown();
 				}
 			});
@@ -1101,7 +1229,9 @@ public class LlamaServerManager {
 					synchronized (this.processLock) {
 						this.loadedProcesses.put(modelId, process);
 						this.modelPorts.put(modelId, port);
+						this.publishRoutingTable(false);
 					}
+					this.watchProcessExit(modelId, process);
 					LlamaServer.sendModelLoadEvent(modelId, true, "模型加载成功", port);
 //					// 这里请求一次
 //					try {
@@ -1147,6 +1277,10 @@ public class LlamaServerManager {
 						e.printStackTrace();
 						process.setCtxSize(0);
 					}
+					// 槽位数和上下文长度拿到之后再发布一次
+					synchronized (this.processLock) {
+						this.publishRoutingTable(false);
+					}
 					try {
 						this.handleModelInfo(modelId);
 					} catch (Exception e) {
@@ -1176,7 +1310,57 @@ public class LlamaServerManager {
 			synchronized (this.loadingModels) {
 				this.loadingModels.remove(targetModel.getModelId());
 			}
+			ModelScheduler.getInstance().onLoadFinished(modelId, this.routingTable.contains(modelId));
+			if (loadSlot != null) {
+				loadSlot.unlock();
+			}
+			ModelAutoLoader.getInstance().onLoadFinished(modelId);
+		}
+	}
+	
+	/**
+	 * 	模型进程异常退出时把它从进程表和路由快照中移除。进程已经被替换的话不处理。
+	 * @param modelId
+	 * @param process
+	 * @return 是否移除
+	 */
+	private boolean removeCrashedProcess(String modelId, LlamaCppProcess process) {
+		Integer port;
+		synchronized (this.processLock) {
+			if (this.loadedProcesses.get(modelId) != process) {
+				return false;
+			}
+			this.loadedProcesses.remove(modelId);
+			port = this.modelPorts.remove(modelId);
+			this.publishRoutingTable(false);
+		}
+		this.loadedModelInfos.remove(modelId);
+		if (port != null) {
+			UpstreamConnectionPool.getInstance().closeRoutesForPort(port.intValue());
+		}
+		ModelScheduler.getInstance().release(modelId);
+		return true;
+	}
+	
+	/**
+	 * 	监听进程退出，没有经过stopModel就退出的视为崩溃。
+	 * @param modelId
+	 * @param process
+	 */
+	private void watchProcessExit(String modelId, LlamaCppProcess process) {
+		Process p = process.getProcess();
+		if (p == null) {
+			return;
 		}
+		p.onExit().thenRun(() -> {
+			if (process.isStopRequested()) {
+				return;
+			}
+			if (this.removeCrashedProcess(modelId, process)) {
+				logger.info("检测到模型进程退出: {}, exitCode={}", modelId, process.getExitCode());
+				LlamaServer.sendModelStopEvent(modelId, false, "模型进程异常退出");
+			}
+		});
 	}
 	
 	private boolean isLoadCanceled(String modelId) {
@@ -1314,14 +1498,11 @@ public class LlamaServerManager {
 		if (id.isEmpty()) {
 			throw new IllegalArgumentException("缺少必需的modelId参数");
 		}
-		if (!this.getLoadedProcesses().containsKey(id)) {
+		ModelRoutingTable.Route route = this.routingTable.get(id);
+		if (route == null) {
 			throw new IllegalArgumentException("模型未加载: " + id);
 		}
-		Integer port = this.getModelPort(id);
-		if (port == null) {
-			throw new IllegalStateException("未找到模型端口: " + id);
-		}
-		return port.intValue();
+		return route.getPort();
 	}
 
 	private static String readAll(BufferedReader br) throws IOException {
@@ -1339,7 +1520,7 @@ public class LlamaServerManager {
 	private HttpResult callLocalModelEndpoint(int port, String method, String endpoint, JsonObject body, int connectTimeoutMs, int readTimeoutMs) throws Exception {
 		String urlStr = String.format("http://localhost:%d%s", port, endpoint);
 		URL url = URI.create(urlStr).toURL();
-		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		HttpURLConnection connection = UpstreamConnectionPool.getInstance().openConnection(url);
 		try {
 			connection.setRequestMethod(method);
 			connection.setConnectTimeout(connectTimeoutMs);
@@ -1713,9 +1894,7 @@ public class LlamaServerManager {
 	public void shutdownAll() {
 		logger.info("开始停止所有模型进程...");
 		Map<String, LlamaCppProcess> processes;
-		synchronized (this.processLock) {
-			processes = new HashMap<>(this.loadedProcesses);
-		}
+		processes = this.routingTable.getProcesses();
 		for (Map.Entry<String, LlamaCppProcess> entry : processes.entrySet()) {
 			String modelId = entry.getKey();
 			LlamaCppProcess process = entry.getValue();
@@ -1732,8 +1911,10 @@ public class LlamaServerManager {
 		synchronized (this.processLock) {
 			this.loadedProcesses.clear();
 			this.modelPorts.clear();
+			this.publishRoutingTable(false);
 		}
 		this.executorService.shutdown();
+		this.catalog.close();
 	}
 
 	/**
@@ -0,0 +1,321 @@
+package org.mark.llamacpp.server;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.mark.llamacpp.server.exception.AdmissionRejectedException;
+import org.mark.llamacpp.server.service.ModelRequestTracker;
+
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * 	转发到本机 llama-server 之前的准入控制，每个模型一个队列。
+ * 	<p>
+ * 	同时转发的请求数不超过模型的槽位数（{@link ModelRoutingTable.Route#getSlotNum()}），多出来的在这里排队，
+ * 	而不是堆到 llama-server 内部看不见的队列里。排队的请求按客户端（API Key，没有时按来源地址）轮流放行，
+ * 	同一个客户端内先来先服务，一个客户端一次发很多请求不会把别人饿死。
+ * 	排队数超过上限或者等待超时时抛出 {@link AdmissionRejectedException}，由调用方返回 429 和 Retry-After。
+ * 	<p>
+ * 	调用方在转发的虚拟线程里调用 {@link #acquire}，拿到的 {@link Permit} 要在响应写完后关闭。
+ */
+public class ModelAdmissionQueue {
+
+	/**
+	 * 	每个模型最多排队的请求数
+	 */
+	private static final int DEFAULT_MAX_QUEUE_DEPTH = 64;
+
+	/**
+	 * 	最长排队时间
+	 */
+	private static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 120_000L;
+
+	/**
+	 * 	还没有统计到耗时的模型，估算 Retry-After 时假设每个请求占用槽位的时间
+	 */
+	private static final long DEFAULT_SERVICE_MILLIS = 5_000L;
+
+	private static final ModelAdmissionQueue INSTANCE = new ModelAdmissionQueue();
+
+	public static ModelAdmissionQueue getInstance() {
+		return INSTANCE;
+	}
+
+	private final Map<String, ModelQueue> queues = new ConcurrentHashMap<>();
+
+	private volatile int maxQueueDepth = DEFAULT_MAX_QUEUE_DEPTH;
+
+	private volatile long queueTimeoutMillis = DEFAULT_QUEUE_TIMEOUT_MILLIS;
+
+	public ModelAdmissionQueue() {
+
+	}
+
+	public int getMaxQueueDepth() {
+		return this.maxQueueDepth;
+	}
+
+	public void setMaxQueueDepth(int maxQueueDepth) {
+		this.maxQueueDepth = Math.max(0, maxQueueDepth);
+	}
+
+	public long getQueueTimeoutMillis() {
+		return this.queueTimeoutMillis;
+	}
+
+	public void setQueueTimeoutMillis(long queueTimeoutMillis) {
+		this.queueTimeoutMillis = Math.max(0L, queueTimeoutMillis);
+	}
+
+	/**
+	 * 	按路由表里模型当前的槽位数申请，name 可以是别名。
+	 * @param name
+	 * @param clientKey
+	 * @return
+	 * @throws AdmissionRejectedException
+	 * @throws InterruptedException
+	 */
+	public Permit acquire(String name, String clientKey) throws AdmissionRejectedException, InterruptedException {
+		ModelRoutingTable.Route route = LlamaServerManager.getInstance().getRoutingTable().resolve(name);
+		if (route == null) {
+			return this.acquire(name, 1, clientKey);
+		}
+		return this.acquire(route.getModelId(), route.getSlotNum(), clientKey);
+	}
+
+	/**
+	 * 	申请一个槽位，槽位已满时排队等待。
+	 * @param modelId
+	 * @param slots 模型当前的槽位数，不大于0时按1处理
+	 * @param clientKey 公平排队用的客户端标识，见 {@link #clientKeyOf}
+	 * @return
+	 * @throws AdmissionRejectedException 队列已满或者等待超时
+	 * @throws InterruptedException
+	 */
+	public Permit acquire(String modelId, int slots, String clientKey) throws AdmissionRejectedException, InterruptedException {
+		ModelQueue queue = this.queues.computeIfAbsent(modelId, ModelQueue::new);
+		return queue.acquire(Math.max(1, slots), clientKey == null ? "" : clientKey, this.maxQueueDepth, this.queueTimeoutMillis);
+	}
+
+	/**
+	 * 	正在排队的请求数。
+	 * @param modelId
+	 * @return
+	 */
+	public int getQueuedCount(String modelId) {
+		ModelQueue queue = modelId == null ? null : this.queues.get(modelId);
+		return queue == null ? 0 : queue.queued;
+	}
+
+	/**
+	 * 	已经放行、还没有结束的请求数。
+	 * @param modelId
+	 * @return
+	 */
+	public int getInFlightCount(String modelId) {
+		ModelQueue queue = modelId == null ? null : this.queues.get(modelId);
+		return queue == null ? 0 : queue.inFlight;
+	}
+
+	/**
+	 * 	公平排队用的客户端标识：优先用 API Key（Authorization 或 x-api-key），没有时用来源地址。
+	 * @param ctx
+	 * @param headers 请求头，可以为 null
+	 * @return
+	 */
+	public static String clientKeyOf(ChannelHandlerContext ctx, Map<String, String> headers) {
+		if (headers != null) {
+			for (Map.Entry<String, String> entry : headers.entrySet()) {
+				String name = entry.getKey();
+				String value = entry.getValue();
+				if (value == null || value.isBlank()) {
+					continue;
+				}
+				if ("Authorization".equalsIgnoreCase(name) || "x-api-key".equalsIgnoreCase(name)) {
+					return "key:" + value.trim();
+				}
+			}
+		}
+		SocketAddress remote = ctx == null || ctx.channel() == null ? null : ctx.channel().remoteAddress();
+		if (remote instanceof InetSocketAddress inet && inet.getAddress() != null) {
+			return "ip:" + inet.getAddress().getHostAddress();
+		}
+		return remote == null ? "" : "addr:" + remote;
+	}
+
+	/**
+	 * 	一次放行，关闭后归还槽位，重复关闭没有影响。
+	 */
+	public static final class Permit implements AutoCloseable {
+		private final ModelQueue queue;
+		private final long grantedNanos;
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+		private Permit(ModelQueue queue) {
+			this.queue = queue;
+			this.grantedNanos = System.nanoTime();
+		}
+
+		@Override
+		public void close() {
+			if (this.closed.compareAndSet(false, true)) {
+				this.queue.release(System.nanoTime() - this.grantedNanos);
+			}
+		}
+	}
+
+	private static final class Waiter {
+		private final Condition condition;
+		private boolean granted;
+
+		private Waiter(Condition condition) {
+			this.condition = condition;
+		}
+	}
+
+	/**
+	 * 	单个模型的队列。waiting 按客户端第一次排队的顺序排列，每放行一个就把该客户端挪到最后，实现轮流放行。
+	 */
+	private static final class ModelQueue {
+		private final String modelId;
+		private final ReentrantLock lock = new ReentrantLock(true);
+		private final LinkedHashMap<String, ArrayDeque<Waiter>> waiting = new LinkedHashMap<>();
+		private volatile int slots = 1;
+		private volatile int inFlight;
+		private volatile int queued;
+		/**
+		 * 	请求占用槽位时间的指数滑动平均，用来估算 Retry-After
+		 */
+		private volatile long avgServiceMillis = DEFAULT_SERVICE_MILLIS;
+
+		private ModelQueue(String modelId) {
+			this.modelId = modelId;
+		}
+
+		private Permit acquire(int slots, String clientKey, int maxQueueDepth, long timeoutMillis) throws AdmissionRejectedException, InterruptedException {
+			Waiter waiter;
+			this.lock.lock();
+			try {
+				// 模型重新加载后槽位数可能变了，变多时先放行已经在排队的
+				this.slots = slots;
+				this.dispatch();
+				if (this.inFlight < this.slots && this.queued == 0) {
+					this.inFlight++;
+					return new Permit(this);
+				}
+				if (this.queued >= maxQueueDepth) {
+					throw new AdmissionRejectedException("Model " + this.modelId + " is overloaded: " + this.queued
+							+ " requests already queued", this.retryAfterSeconds(this.queued));
+				}
+				waiter = new Waiter(this.lock.newCondition());
+				this.waiting.computeIfAbsent(clientKey, k -> new ArrayDeque<>()).addLast(waiter);
+				this.queued++;
+			} finally {
+				this.lock.unlock();
+			}
+			ModelRequestTracker.getInstance().onQueueChanged(this.modelId);
+
+			boolean timedOut = false;
+			this.lock.lock();
+			try {
+				long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+				try {
+					while (!waiter.granted && remaining > 0) {
+						remaining = waiter.condition.awaitNanos(remaining);
+					}
+				} catch (InterruptedException e) {
+					if (!this.cancel(clientKey, waiter)) {
+						// 已经放行了，把槽位让给下一个
+						this.inFlight--;
+						this.dispatch();
+					}
+					throw e;
+				}
+				if (!waiter.granted) {
+					this.cancel(clientKey, waiter);
+					timedOut = true;
+				}
+			} finally {
+				this.lock.unlock();
+				ModelRequestTracker.getInstance().onQueueChanged(this.modelId);
+			}
+			if (timedOut) {
+				throw new AdmissionRejectedException("Timed out after " + timeoutMillis + " ms waiting for a free slot of model "
+						+ this.modelId, this.retryAfterSeconds(this.queued));
+			}
+			return new Permit(this);
+		}
+
+		private void release(long heldNanos) {
+			this.lock.lock();
+			try {
+				long millis = TimeUnit.NANOSECONDS.toMillis(heldNanos);
+				this.avgServiceMillis = (this.avgServiceMillis * 7 + millis) / 8;
+				this.inFlight--;
+				this.dispatch();
+			} finally {
+				this.lock.unlock();
+			}
+			ModelRequestTracker.getInstance().onQueueChanged(this.modelId);
+		}
+
+		/**
+		 * 	有空闲槽位时按客户端轮流放行。调用时持有锁。
+		 */
+		private void dispatch() {
+			while (this.inFlight < this.slots && !this.waiting.isEmpty()) {
+				Iterator<Map.Entry<String, ArrayDeque<Waiter>>> it = this.waiting.entrySet().iterator();
+				Map.Entry<String, ArrayDeque<Waiter>> first = it.next();
+				ArrayDeque<Waiter> deque = first.getValue();
+				Waiter next = deque.pollFirst();
+				it.remove();
+				if (!deque.isEmpty()) {
+					this.waiting.put(first.getKey(), deque);
+				}
+				if (next == null) {
+					continue;
+				}
+				this.queued--;
+				this.inFlight++;
+				next.granted = true;
+				next.condition.signal();
+			}
+		}
+
+		/**
+		 * 	从队列里移除还没放行的等待者。调用时持有锁。
+		 * @return 移除成功返回 true，已经放行了返回 false
+		 */
+		private boolean cancel(String clientKey, Waiter waiter) {
+			if (waiter.granted) {
+				return false;
+			}
+			ArrayDeque<Waiter> deque = this.waiting.get(clientKey);
+			if (deque != null && deque.remove(waiter)) {
+				this.queued--;
+				if (deque.isEmpty()) {
+					this.waiting.remove(clientKey);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * 	按平均占用时间估算排在 ahead 个请求之后多久能轮到。
+		 */
+		private int retryAfterSeconds(int ahead) {
+			long rounds = (ahead + this.slots) / Math.max(1, this.slots);
+			long millis = this.avgServiceMillis * Math.max(1, rounds);
+			return (int) Math.max(1, Math.min(3600, (millis + 999) / 1000));
+		}
+	}
+}
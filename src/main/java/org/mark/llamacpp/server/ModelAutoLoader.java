@@ -0,0 +1,188 @@
+package org.mark.llamacpp.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.mark.llamacpp.server.service.ModelRequestTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 	按需加载与空闲卸载。
+ * 	<p>
+ * 	请求的模型已经在模型列表里但还没有加载时，按保存的启动配置触发加载，
+ * 	请求线程（虚拟线程）在这里挂起，等加载结束后再继续转发；同一个模型的多个请求只触发一次加载。
+ * 	<p>
+ * 	设置了空闲卸载时间（models.json 的 idleTtlSeconds）的模型，
+ * 	在 {@link ModelRequestTracker} 中没有进行中的请求、且超过该时间没有活动时自动停止。
+ */
+public class ModelAutoLoader {
+
+	private static final Logger logger = LoggerFactory.getLogger(ModelAutoLoader.class);
+
+	/**
+	 * 	空闲检查间隔。
+	 */
+	private static final long IDLE_CHECK_INTERVAL_SECONDS = 15;
+
+	private static final ModelAutoLoader INSTANCE = new ModelAutoLoader();
+
+	public static ModelAutoLoader getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 	模型ID -> 等待加载结果的请求。
+	 */
+	private final Map<String, CompletableFuture<Void>> waiters = new HashMap<>();
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "model-idle-reaper");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private ModelAutoLoader() {
+		this.scheduler.scheduleWithFixedDelay(this::unloadIdleModels, IDLE_CHECK_INTERVAL_SECONDS, IDLE_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * 	查找本地路由，模型未加载时按需加载并等待。会阻塞调用线程，只能在虚拟线程/工作线程里调用。
+	 * @param name 模型ID或别名
+	 * @return 路由；模型未知、没有启动配置、加载失败或超时返回null
+	 */
+	public ModelRoutingTable.Route awaitRoute(String name) {
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		ModelRoutingTable.Route route = manager.findRoute(name);
+		if (route != null || !LlamaServer.isOnDemandLoadEnabled()) {
+			return route;
+		}
+		GGUFModel model = manager.findModelByName(name);
+		if (model == null) {
+			return null;
+		}
+		String modelId = model.getModelId();
+
+		CompletableFuture<Void> waiter;
+		boolean starter;
+		synchronized (this.waiters) {
+			waiter = this.waiters.get(modelId);
+			starter = waiter == null;
+			if (starter) {
+				waiter = new CompletableFuture<>();
+				this.waiters.put(modelId, waiter);
+			}
+		}
+		// 先登记再检查，避免加载恰好在两步之间结束
+		route = manager.findRoute(modelId);
+		if (route != null) {
+			this.completeWaiter(modelId, waiter);
+			return route;
+		}
+		// 只由登记的那个请求触发加载。加载要拿管理器的锁，放在监视器外面，
+		// 否则会钉住虚拟线程的载体线程，其他模型的按需查找也要排在后面
+		if (starter && !manager.isLoading(modelId)) {
+			logger.info("按需加载模型: {}", modelId);
+			if (!manager.loadModelFromLaunchConfig(modelId) && !manager.isLoading(modelId)) {
+				// 没有提交加载也可能是别处（比如页面上）刚把它加载好了
+				this.completeWaiter(modelId, waiter);
+				return manager.findRoute(modelId);
+			}
+		}
+
+		long timeout = LlamaServer.getOnDemandLoadTimeoutSeconds();
+		try {
+			waiter.get(timeout, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			logger.info("等待模型加载超时: {}, {}s", modelId, timeout);
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (Exception e) {
+			return null;
+		}
+		route = manager.findRoute(modelId);
+		if (route == null) {
+			logger.info("按需加载模型失败: {}", modelId);
+		}
+		return route;
+	}
+
+	/**
+	 * 	一次加载结束（成功、失败或取消），唤醒等待该模型的请求。由 {@link LlamaServerManager} 调用。
+	 * @param modelId
+	 */
+	void onLoadFinished(String modelId) {
+		// 加载完成也算一次活动，空闲计时从这里开始
+		ModelRequestTracker.getInstance().touch(modelId);
+		synchronized (this.waiters) {
+			this.completeWaiter(modelId);
+		}
+	}
+
+	private void completeWaiter(String modelId) {
+		CompletableFuture<Void> waiter = this.waiters.remove(modelId);
+		if (waiter != null) {
+			waiter.complete(null);
+		}
+	}
+
+	/**
+	 * 	唤醒指定的等待者；它已经被加载结束时换掉的话只唤醒，不动新登记的。
+	 */
+	private void completeWaiter(String modelId, CompletableFuture<Void> waiter) {
+		synchronized (this.waiters) {
+			this.waiters.remove(modelId, waiter);
+		}
+		waiter.complete(null);
+	}
+
+	/**
+	 * 	停止超过空闲时间的模型。
+	 */
+	private void unloadIdleModels() {
+		try {
+			Map<String, Long> ttls = ConfigManager.getInstance().loadIdleTtlMap();
+			if (ttls.isEmpty()) {
+				return;
+			}
+			LlamaServerManager manager = LlamaServerManager.getInstance();
+			ModelRequestTracker tracker = ModelRequestTracker.getInstance();
+			long now = System.currentTimeMillis();
+			for (ModelRoutingTable.Route route : manager.getRoutingTable().getRoutes()) {
+				Long ttl = ttls.get(route.getModelId());
+				if (ttl == null) {
+					continue;
+				}
+				// 请求里写的可能是别名，两个都看
+				String id = route.getModelId();
+				String alias = route.getAlias();
+				if (tracker.isModelBusy(id) || tracker.isModelBusy(alias)) {
+					continue;
+				}
+				long last = Math.max(tracker.getLastActivityTime(id), tracker.getLastActivityTime(alias));
+				if (last <= 0) {
+					// 没有记录（比如重启前就在运行），从现在开始计时
+					tracker.touch(id);
+					continue;
+				}
+				if (now - last < ttl.longValue() * 1000L) {
+					continue;
+				}
+				logger.info("模型空闲超过 {} 秒，自动停止: {}", ttl, id);
+				if (manager.stopModel(id)) {
+					LlamaServer.sendModelStopEvent(id, true, "模型空闲超时，已自动停止");
+				}
+			}
+		} catch (Exception e) {
+			logger.info("空闲模型检查失败: {}", e.getMessage());
+		}
+	}
+}
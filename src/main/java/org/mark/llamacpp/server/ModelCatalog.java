@@ -0,0 +1,486 @@
+package org.mark.llamacpp.server;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 	模型目录的扫描结果。
+ * 	<p>
+ * 	全量扫描时每个根目录在自己的虚拟线程里遍历，找到的子目录再分别交给虚拟线程解析，
+ * 	每解析完一个目录就发布一次新的列表快照，读取方不需要等整个扫描结束，某个网络盘很慢也只影响它自己。
+ * 	<p>
+ * 	扫描完成后用 {@link WatchService} 监听所有根目录，GGUF文件和子目录的增加、删除、改名
+ * 	只重新处理涉及的目录。同一目录的事件合并后延迟处理，避免下载过程中反复解析。
+ */
+public class ModelCatalog {
+
+	private static final Logger logger = LoggerFactory.getLogger(ModelCatalog.class);
+
+	/**
+	 * 	同时解析的目录数。
+	 */
+	private static final int SCAN_PARALLELISM = 16;
+
+	/**
+	 * 	同一目录的文件事件合并等待时间。
+	 */
+	private static final long DEFAULT_DEBOUNCE_MS = 1500;
+
+	/**
+	 * 	取得要扫描的根目录。
+	 */
+	private final Supplier<List<Path>> rootsSupplier;
+
+	/**
+	 * 	把一个目录解析成模型，不是模型目录时返回null。
+	 */
+	private final Function<Path, GGUFModel> directoryLoader;
+
+	private final long debounceMs;
+
+	/**
+	 * 	目录 -> 模型，按路径排序。
+	 */
+	private final ConcurrentSkipListMap<Path, GGUFModel> models = new ConcurrentSkipListMap<>();
+
+	/**
+	 * 	当前发布的列表，只整体替换。
+	 */
+	private volatile List<GGUFModel> snapshot = List.of();
+
+	/**
+	 * 	全量扫描和监听触发的增量更新互斥，保证扫描结束时清理掉的条目不会和增量更新交错。
+	 * 	持有期间要等待解析任务，用 ReentrantLock 而不是 synchronized，避免虚拟线程占住载体线程。
+	 */
+	private final ReentrantLock scanLock = new ReentrantLock();
+
+	private volatile boolean scanStarted = false;
+
+	private volatile boolean scanned = false;
+
+	private long requestedScans = 0;
+
+	private long completedScans = 0;
+
+	private WatchService watchService;
+
+	private final Map<WatchKey, Path> watchKeys = new ConcurrentHashMap<>();
+
+	private final Map<Path, PendingRefresh> pending = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "model-catalog-refresh");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public ModelCatalog(Supplier<List<Path>> rootsSupplier, Function<Path, GGUFModel> directoryLoader) {
+		this(rootsSupplier, directoryLoader, DEFAULT_DEBOUNCE_MS);
+	}
+
+	/**
+	 *
+	 * @param rootsSupplier 要扫描和监听的根目录，每次扫描时重新取
+	 * @param directoryLoader 解析一个目录，不是模型目录时返回null；会在多个线程里同时调用
+	 * @param debounceMs 同一目录的文件事件合并等待时间
+	 */
+	public ModelCatalog(Supplier<List<Path>> rootsSupplier, Function<Path, GGUFModel> directoryLoader, long debounceMs) {
+		this.rootsSupplier = rootsSupplier;
+		this.directoryLoader = directoryLoader;
+		this.debounceMs = Math.max(0, debounceMs);
+	}
+
+	/**
+	 * 	当前的模型列表，按目录路径排序，不可修改。
+	 * @return
+	 */
+	public List<GGUFModel> getModels() {
+		return this.snapshot;
+	}
+
+	/**
+	 * 	是否完成过至少一次全量扫描。
+	 * @return
+	 */
+	public boolean isScanned() {
+		return this.scanned;
+	}
+
+	/**
+	 * 	还没有扫描过时扫描一次；已经有扫描在进行时直接返回，调用方拿到的是目前为止的结果。
+	 */
+	public void ensureScanned() {
+		if (this.scanStarted) {
+			return;
+		}
+		this.scan();
+	}
+
+	/**
+	 * 	全量扫描，返回时已经完成。多个线程同时请求时，在等待期间开始的扫描已经覆盖了本次请求的，不再重复扫描。
+	 */
+	public void scan() {
+		long ticket;
+		synchronized (this) {
+			ticket = ++this.requestedScans;
+		}
+		this.scanStarted = true;
+		this.scanLock.lock();
+		try {
+			long upTo;
+			synchronized (this) {
+				if (this.completedScans >= ticket) {
+					return;
+				}
+				upTo = this.requestedScans;
+			}
+			long start = System.currentTimeMillis();
+			this.doScan(this.rootsSupplier.get());
+			synchronized (this) {
+				this.completedScans = upTo;
+			}
+			this.scanned = true;
+			logger.info("模型目录扫描完成: {} 个模型, 耗时 {}ms", this.snapshot.size(), System.currentTimeMillis() - start);
+		} finally {
+			this.scanLock.unlock();
+		}
+	}
+
+	private void doScan(List<Path> roots) {
+		Set<Path> seen = ConcurrentHashMap.newKeySet();
+		Semaphore permits = new Semaphore(SCAN_PARALLELISM);
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			List<Future<List<Future<?>>>> walkers = new ArrayList<>();
+			for (Path root : roots) {
+				walkers.add(executor.submit(() -> this.walkRoot(root, executor, permits, seen)));
+			}
+			for (Future<List<Future<?>>> walker : walkers) {
+				for (Future<?> task : walker.get()) {
+					task.get();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			logger.info("扫描模型目录失败: {}", e.getCause() == null ? e.getMessage() : e.getCause().getMessage());
+		}
+		// 这次没有出现的目录（已删除、不再是模型目录、根目录已移除）
+		boolean changed = this.models.keySet().removeIf(dir -> !seen.contains(dir));
+		if (changed) {
+			this.publish();
+		}
+	}
+
+	/**
+	 * 	遍历一个根目录，每个子目录提交一个解析任务。
+	 * @return 提交的任务
+	 */
+	private List<Future<?>> walkRoot(Path root, ExecutorService executor, Semaphore permits, Set<Path> seen) {
+		List<Future<?>> tasks = new ArrayList<>();
+		if (!Files.isDirectory(root)) {
+			return tasks;
+		}
+		try (Stream<Path> paths = Files.walk(root)) {
+			paths.filter(Files::isDirectory).forEach(dir -> tasks.add(executor.submit(() -> {
+				permits.acquireUninterruptibly();
+				try {
+					if (this.loadDirectory(dir)) {
+						seen.add(this.key(dir));
+					}
+				} finally {
+					permits.release();
+				}
+			})));
+		} catch (IOException | RuntimeException e) {
+			logger.info("遍历模型目录失败 {}: {}", root, e.getMessage());
+		}
+		return tasks;
+	}
+
+	/**
+	 * 	重新解析一个目录并发布。
+	 * @return 是否是模型目录
+	 */
+	private boolean loadDirectory(Path dir) {
+		GGUFModel model = null;
+		try {
+			model = this.directoryLoader.apply(dir);
+		} catch (Exception e) {
+			logger.info("处理目录失败 {}: {}", dir, e.getMessage());
+		}
+		Path key = this.key(dir);
+		if (model != null) {
+			this.models.put(key, model);
+			this.publish();
+			return true;
+		}
+		if (this.models.remove(key) != null) {
+			this.publish();
+		}
+		return false;
+	}
+
+	/**
+	 * 	重新处理一个路径及其下所有子目录；路径已经不存在时移除其下的所有模型。
+	 * @param path
+	 */
+	public void refreshTree(Path path) {
+		this.scanLock.lock();
+		try {
+			Path key = this.key(path);
+			Set<Path> found = new HashSet<>();
+			if (Files.isDirectory(path)) {
+				try (Stream<Path> paths = Files.walk(path)) {
+					paths.filter(Files::isDirectory).forEach(dir -> {
+						if (this.loadDirectory(dir)) {
+							found.add(this.key(dir));
+						}
+					});
+				} catch (IOException | RuntimeException e) {
+					logger.info("遍历模型目录失败 {}: {}", path, e.getMessage());
+				}
+			}
+			boolean changed = this.models.keySet().removeIf(dir -> dir.startsWith(key) && !found.contains(dir));
+			if (changed) {
+				this.publish();
+			}
+		} finally {
+			this.scanLock.unlock();
+		}
+	}
+
+	/**
+	 * 	重新处理单个目录（目录里的GGUF文件有变化）。
+	 * @param dir
+	 */
+	public void refreshDirectory(Path dir) {
+		this.scanLock.lock();
+		try {
+			if (Files.isDirectory(dir)) {
+				this.loadDirectory(dir);
+			} else {
+				this.refreshTree(dir);
+			}
+		} finally {
+			this.scanLock.unlock();
+		}
+	}
+
+	/**
+	 * 	复制和替换放在同一个锁里，并发发布时后发布的一定包含更新的内容。
+	 */
+	private synchronized void publish() {
+		this.snapshot = List.copyOf(this.models.values());
+	}
+
+	private Path key(Path dir) {
+		return dir.toAbsolutePath().normalize();
+	}
+
+	// ── 监听 ──────────────────────────────────────────────────────────────
+
+	/**
+	 * 	是否在监听。
+	 * @return
+	 */
+	public synchronized boolean isWatching() {
+		return this.watchService != null;
+	}
+
+	/**
+	 * 	开始监听根目录；已经在监听时按当前的根目录重新注册。
+	 */
+	public synchronized void startWatching() {
+		this.stopWatching();
+		WatchService ws;
+		try {
+			ws = FileSystems.getDefault().newWatchService();
+		} catch (IOException | UnsupportedOperationException e) {
+			logger.info("无法监听模型目录: {}", e.getMessage());
+			return;
+		}
+		this.watchService = ws;
+		for (Path root : this.rootsSupplier.get()) {
+			if (Files.isDirectory(root)) {
+				this.registerTree(ws, root);
+			}
+		}
+		Thread.ofPlatform().daemon().name("model-catalog-watcher").start(() -> this.watchLoop(ws));
+	}
+
+	/**
+	 * 	停止监听。
+	 */
+	public synchronized void stopWatching() {
+		WatchService ws = this.watchService;
+		this.watchService = null;
+		this.watchKeys.clear();
+		if (ws != null) {
+			try {
+				ws.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * 	停止监听并丢弃还没处理的事件。
+	 */
+	public void close() {
+		this.stopWatching();
+		this.scheduler.shutdownNow();
+	}
+
+	/**
+	 * 	注册目录及其所有子目录。
+	 */
+	private void registerTree(WatchService ws, Path start) {
+		try {
+			Files.walkFileTree(start, new SimpleFileVisitor<>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					try {
+						WatchKey key = dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+								StandardWatchEventKinds.ENTRY_MODIFY);
+						ModelCatalog.this.watchKeys.put(key, dir);
+					} catch (ClosedWatchServiceException e) {
+						return FileVisitResult.TERMINATE;
+					} catch (IOException | RuntimeException e) {
+						logger.debug("无法监听目录 {}: {}", dir, e.getMessage());
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			logger.debug("无法监听目录 {}: {}", start, e.getMessage());
+		}
+	}
+
+	private void watchLoop(WatchService ws) {
+		while (true) {
+			WatchKey key;
+			try {
+				key = ws.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			Path dir = this.watchKeys.get(key);
+			if (dir != null) {
+				for (WatchEvent<?> event : key.pollEvents()) {
+					this.onEvent(ws, dir, event);
+				}
+			}
+			if (!key.reset()) {
+				// 目录本身已经不存在
+				this.watchKeys.remove(key);
+				if (dir != null) {
+					this.schedule(dir, true);
+				}
+			}
+		}
+	}
+
+	private void onEvent(WatchService ws, Path dir, WatchEvent<?> event) {
+		WatchEvent.Kind<?> kind = event.kind();
+		if (kind == StandardWatchEventKinds.OVERFLOW) {
+			// 事件丢失，只能全量扫描
+			this.scheduler.execute(() -> {
+				this.scan();
+				this.startWatching();
+			});
+			return;
+		}
+		Path child = dir.resolve((Path) event.context());
+		boolean gguf = child.getFileName().toString().toLowerCase().endsWith(".gguf");
+		if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+			// 新目录（包括改名后的目录），注册后整棵处理
+			this.registerTree(ws, child);
+			this.schedule(child, true);
+		} else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+			// 删除的可能是文件也可能是目录
+			if (gguf) {
+				this.schedule(dir, false);
+			} else {
+				this.schedule(child, true);
+			}
+		} else if (gguf) {
+			this.schedule(dir, false);
+		}
+	}
+
+	/**
+	 * 	合并同一路径的事件，最后一个事件之后等待 debounceMs 再处理。合并后只要有一个事件需要处理整棵目录就处理整棵。
+	 */
+	private void schedule(Path path, boolean tree) {
+		Path key = this.key(path);
+		try {
+			this.pending.compute(key, (k, old) -> {
+				boolean wholeTree = tree;
+				if (old != null) {
+					old.future().cancel(false);
+					wholeTree |= old.tree();
+				}
+				boolean t = wholeTree;
+				ScheduledFuture<?> future = this.scheduler.schedule(() -> {
+					this.pending.remove(k);
+					try {
+						if (t) {
+							this.refreshTree(path);
+						} else {
+							this.refreshDirectory(path);
+						}
+					} catch (Exception e) {
+						logger.info("更新模型目录失败 {}: {}", path, e.getMessage());
+					}
+				}, this.debounceMs, TimeUnit.MILLISECONDS);
+				return new PendingRefresh(future, t);
+			});
+		} catch (RejectedExecutionException e) {
+			// 已关闭
+		}
+	}
+
+	private record PendingRefresh(ScheduledFuture<?> future, boolean tree) {
+	}
+}
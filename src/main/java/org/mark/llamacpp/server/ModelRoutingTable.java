@@ -0,0 +1,169 @@
+package org.mark.llamacpp.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+/**
+ * 	已加载模型的路由快照，不可变。
+ * 	<p>
+ * 	由 {@link LlamaServerManager} 在模型加载、停止、进程崩溃时整体重建并替换，
+ * 	请求转发路径上只读这个快照，不需要拿任何锁。
+ */
+public final class ModelRoutingTable {
+
+	public static final ModelRoutingTable EMPTY = new ModelRoutingTable(Collections.emptyList());
+
+	/**
+	 * 	模型ID -> 路由，保持加载顺序。
+	 */
+	private final Map<String, Route> byId;
+
+	/**
+	 * 	别名 -> 路由。
+	 */
+	private final Map<String, Route> byAlias;
+
+	/**
+	 * 	模型ID -> 进程，给 {@link LlamaServerManager#getLoadedProcesses()} 用。
+	 */
+	private final Map<String, LlamaCppProcess> processes;
+
+	private final String firstModelId;
+
+	ModelRoutingTable(Collection<Route> routes) {
+		Map<String, Route> ids = new LinkedHashMap<>();
+		Map<String, LlamaCppProcess> procs = new LinkedHashMap<>();
+		for (Route route : routes) {
+			ids.put(route.getModelId(), route);
+			procs.put(route.getModelId(), route.getProcess());
+		}
+		Map<String, Route> aliases = new LinkedHashMap<>();
+		for (Route route : routes) {
+			String alias = route.getAlias();
+			// 别名不能盖掉真实的模型ID，重名时先加载的优先
+			if (alias != null && !alias.isEmpty() && !ids.containsKey(alias)) {
+				aliases.putIfAbsent(alias, route);
+			}
+		}
+		this.byId = Collections.unmodifiableMap(ids);
+		this.byAlias = Collections.unmodifiableMap(aliases);
+		this.processes = Collections.unmodifiableMap(procs);
+		this.firstModelId = ids.isEmpty() ? null : ids.keySet().iterator().next();
+	}
+
+	/**
+	 * 	按模型ID精确查找。
+	 * @param modelId
+	 * @return
+	 */
+	public Route get(String modelId) {
+		if (modelId == null) {
+			return null;
+		}
+		return this.byId.get(modelId);
+	}
+
+	/**
+	 * 	按模型ID或别名查找。
+	 * @param name
+	 * @return
+	 */
+	public Route resolve(String name) {
+		if (name == null) {
+			return null;
+		}
+		Route route = this.byId.get(name);
+		if (route != null) {
+			return route;
+		}
+		return this.byAlias.get(name);
+	}
+
+	public boolean contains(String modelId) {
+		return modelId != null && this.byId.containsKey(modelId);
+	}
+
+	public String getFirstModelId() {
+		return this.firstModelId;
+	}
+
+	public Route getFirstRoute() {
+		return this.firstModelId == null ? null : this.byId.get(this.firstModelId);
+	}
+
+	public Collection<Route> getRoutes() {
+		return this.byId.values();
+	}
+
+	public Map<String, LlamaCppProcess> getProcesses() {
+		return this.processes;
+	}
+
+	public int size() {
+		return this.byId.size();
+	}
+
+	public boolean isEmpty() {
+		return this.byId.isEmpty();
+	}
+
+	/**
+	 * 	单个模型的路由信息。
+	 */
+	public static final class Route {
+
+		private final String modelId;
+		private final String alias;
+		private final int port;
+		private final int slotNum;
+		private final int ctxSize;
+		private final JsonObject capabilities;
+		private final LlamaCppProcess process;
+
+		Route(String modelId, String alias, int port, int slotNum, int ctxSize, JsonObject capabilities, LlamaCppProcess process) {
+			this.modelId = modelId;
+			this.alias = alias;
+			this.port = port;
+			this.slotNum = slotNum;
+			this.ctxSize = ctxSize;
+			this.capabilities = capabilities == null ? new JsonObject() : capabilities;
+			this.process = process;
+		}
+
+		public String getModelId() {
+			return this.modelId;
+		}
+
+		public String getAlias() {
+			return this.alias;
+		}
+
+		public int getPort() {
+			return this.port;
+		}
+
+		public int getSlotNum() {
+			return this.slotNum;
+		}
+
+		public int getCtxSize() {
+			return this.ctxSize;
+		}
+
+		/**
+		 * 	能力信息的副本，调用方可以随意修改。
+		 * @return
+		 */
+		public JsonObject getCapabilities() {
+			return this.capabilities.deepCopy();
+		}
+
+		public LlamaCppProcess getProcess() {
+			return this.process;
+		}
+	}
+}
@@ -0,0 +1,629 @@
+package org.mark.llamacpp.server;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mark.llamacpp.gguf.GGUFMetaData;
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.mark.llamacpp.server.service.ModelRequestTracker;
+import org.mark.llamacpp.server.tools.ParamTool;
+import org.mark.llamacpp.server.tools.VramEstimator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * 	按显存预算放置模型。
+ * 	<p>
+ * 	每次加载前用 {@link VramEstimator} 估算模型需要的显存，按启动参数（--device、-ngl、-ts）拆到各个设备上，
+ * 	和已加载/加载中模型的占用一起与设备的显存预算比较：放得下就登记占用并放行；放不下时按最近使用时间
+ * 	卸载空闲的模型，直到放得下为止；没有可以卸载的模型时直接拒绝，不再等几分钟后才发现显存不足。
+ * 	<p>
+ * 	设备的总显存来自 {@code llama-bench --list-devices}，预算 = 总显存 - 预留。
+ * 	模型加载完成后用llama-server日志里的 buffer size 作为实际占用，替换估算值。
+ * 	估算失败或拿不到设备信息时不做限制，只记录一条决策；这样的加载没有登记占用（{@link #hasPlacement}），
+ * 	由 {@link LlamaServerManager} 和其他加载错开。
+ */
+public class ModelScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(ModelScheduler.class);
+
+	private static final long MIB = 1024L * 1024L;
+
+	/**
+	 * 	保留的决策记录条数。
+	 */
+	private static final int MAX_DECISIONS = 200;
+
+	/**
+	 * 	未指定 -c 时 llama-server 的默认上下文长度。
+	 */
+	private static final int DEFAULT_CTX_SIZE = 4096;
+
+	/**
+	 * 	设备列表的一行：CUDA0: NVIDIA GeForce RTX 4090 (24111 MiB, 23718 MiB free)
+	 */
+	private static final Pattern DEVICE_PATTERN = Pattern.compile("^(\\S+?):\\s.*\\((\\d+) MiB,\\s*(\\d+) MiB free\\)");
+
+	/**
+	 * 	llama-server 的显存分配日志：load_tensors: CUDA0 model buffer size = 4403.49 MiB。
+	 * 	CPU、CPU_Mapped、CUDA_Host 这类主机内存不匹配。
+	 */
+	private static final Pattern BUFFER_PATTERN = Pattern.compile(
+			"\\b([A-Za-z]+\\d+)(?:_Mapped)? (?:model|KV|compute|RS|output) buffer size =\\s*([\\d.]+) MiB");
+
+	private static final ModelScheduler INSTANCE = new ModelScheduler();
+
+	public static ModelScheduler getInstance() {
+		return INSTANCE;
+	}
+
+	private final Object lock = new Object();
+
+	/**
+	 * 	模型ID -> 占用（加载中和已加载的都在这里）。
+	 */
+	private final Map<String, Placement> placements = new LinkedHashMap<>();
+
+	/**
+	 * 	llamaBinPath -> 设备名 -> 设备。总显存不会变，拿到一次就一直用。
+	 */
+	private final Map<String, Map<String, Device>> devicesByBinPath = new LinkedHashMap<>();
+
+	/**
+	 * 	最近的决策，新的在后面。
+	 */
+	private final ArrayDeque<JsonObject> decisions = new ArrayDeque<>();
+
+	private ModelScheduler() {
+
+	}
+
+	/**
+	 * 	加载前申请显存。放不下时会卸载最久未使用的空闲模型。在加载线程里调用，可能阻塞。
+	 * @param model
+	 * @param llamaBinPath
+	 * @param device 启动配置里选择的设备，空或All表示不限制
+	 * @param enableVision
+	 * @param cmd
+	 * @param extraParams
+	 * @return 拒绝原因；null表示放行
+	 */
+	public String admit(GGUFModel model, String llamaBinPath, List<String> device, boolean enableVision, String cmd, String extraParams) {
+		String modelId = model.getModelId();
+		if (!LlamaServer.isVramSchedulerEnabled()) {
+			return null;
+		}
+		List<String> args = ParamTool.splitCmdArgs(joinArgs(cmd, extraParams));
+
+		Map<String, Device> devices = this.getDevices(llamaBinPath);
+		if (devices.isEmpty()) {
+			this.record("skip", modelId, "无法获取设备列表，不做显存限制", null, null);
+			return null;
+		}
+		List<Device> targets = this.resolveTargets(devices, device, args);
+		if (targets.isEmpty()) {
+			this.record("skip", modelId, "模型不使用GPU", null, null);
+			return null;
+		}
+
+		long need;
+		try {
+			need = this.estimateBytes(model, enableVision, args);
+		} catch (Exception e) {
+			logger.info("[显存调度] 估算失败: modelId={}, error={}", modelId, e.getMessage());
+			this.record("skip", modelId, "显存估算失败: " + e.getMessage(), null, null);
+			return null;
+		}
+		if (need <= 0) {
+			this.record("skip", modelId, "模型不使用GPU", null, null);
+			return null;
+		}
+		Map<String, Long> split = this.split(need, targets, args);
+
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		List<Placement> victims = new ArrayList<>();
+		synchronized (this.lock) {
+			while (true) {
+				Map<String, Long> shortfall = this.shortfall(modelId, devices, split);
+				if (shortfall.isEmpty()) {
+					break;
+				}
+				String victim = this.pickVictim(modelId, shortfall.keySet());
+				if (victim == null) {
+					// 腾不出足够的显存就一个都不卸载
+					for (Placement p : victims) {
+						this.placements.put(p.modelId, p);
+					}
+					String message = "显存不足: 需要 " + toMiB(split) + " MiB，缺少 " + toMiB(shortfall) + " MiB，且没有可卸载的空闲模型";
+					this.record("reject", modelId, message, split, null);
+					return message;
+				}
+				this.record("evict", victim, "为 " + modelId + " 腾出显存，缺少 " + toMiB(shortfall) + " MiB", null, null);
+				// 先从账上去掉：其他加载不会再选中它，stopModel 回调 release 时也不会重复记录
+				victims.add(this.placements.remove(victim));
+			}
+			// 先占住预算，卸载期间腾出来的显存不会被其他加载拿走
+			this.placements.put(modelId, new Placement(modelId, split));
+			if (victims.isEmpty()) {
+				this.record("admit", modelId, "显存预算充足", split, null);
+				return null;
+			}
+		}
+
+		// 停止进程最多要等十几秒，不能拿着锁，否则其他模型的输出、状态查询都会卡在这里
+		List<Placement> failed = new ArrayList<>();
+		for (Placement victim : victims) {
+			if (manager.stopModel(victim.modelId)) {
+				LlamaServer.sendModelStopEvent(victim.modelId, true, "显存不足，已自动卸载最久未使用的模型");
+			} else if (manager.getRoutingTable().contains(victim.modelId)) {
+				failed.add(victim);
+			}
+		}
+		synchronized (this.lock) {
+			if (failed.isEmpty()) {
+				this.record("admit", modelId, "已卸载 " + victims.size() + " 个空闲模型", split, null);
+				return null;
+			}
+			// 没停下来的模型还占着显存，记回账上，这次加载放弃
+			List<String> names = new ArrayList<>();
+			for (Placement p : failed) {
+				this.placements.putIfAbsent(p.modelId, p);
+				names.add(p.modelId);
+			}
+			this.placements.remove(modelId);
+			String message = "显存不足: 卸载模型失败 " + names;
+			this.record("reject", modelId, message, split, null);
+			return message;
+		}
+	}
+
+	/**
+	 * 	模型是否登记了显存占用。admit 放行但没有登记（调度关闭、拿不到设备列表、估算失败、只用CPU）时为 false，
+	 * 	这样的加载不能和其他加载并行。
+	 * @param modelId
+	 * @return
+	 */
+	public boolean hasPlacement(String modelId) {
+		synchronized (this.lock) {
+			return this.placements.containsKey(modelId);
+		}
+	}
+
+	/**
+	 * 	处理加载中模型的一行输出，收集实际显存占用。
+	 * @param modelId
+	 * @param line
+	 */
+	public void onProcessOutput(String modelId, String line) {
+		if (line == null || !line.contains("buffer size")) {
+			return;
+		}
+		Matcher m = BUFFER_PATTERN.matcher(line);
+		if (!m.find()) {
+			return;
+		}
+		long bytes = (long) (Double.parseDouble(m.group(2)) * MIB);
+		String device = m.group(1);
+		synchronized (this.lock) {
+			Placement p = this.placements.get(modelId);
+			if (p != null && !p.loaded) {
+				p.actual.merge(device, bytes, Long::sum);
+			}
+		}
+	}
+
+	/**
+	 * 	一次加载结束。成功时用实际占用替换估算值，失败时释放占用。
+	 * @param modelId
+	 * @param loaded
+	 */
+	public void onLoadFinished(String modelId, boolean loaded) {
+		if (!loaded) {
+			this.release(modelId);
+			return;
+		}
+		synchronized (this.lock) {
+			Placement p = this.placements.get(modelId);
+			if (p == null || p.loaded) {
+				return;
+			}
+			p.loaded = true;
+			this.record("loaded", modelId, "加载完成", p.predicted, p.actual);
+		}
+	}
+
+	/**
+	 * 	模型停止或崩溃后释放占用。
+	 * @param modelId
+	 */
+	public void release(String modelId) {
+		synchronized (this.lock) {
+			Placement p = this.placements.remove(modelId);
+			if (p != null) {
+				this.record("release", modelId, p.loaded ? "模型已停止" : "加载未完成", p.predicted, p.actual);
+			}
+		}
+	}
+
+	/**
+	 * 	设备预算、各模型占用和最近的决策。
+	 * @return
+	 */
+	public JsonObject getStatus() {
+		JsonObject out = new JsonObject();
+		out.addProperty("enabled", LlamaServer.isVramSchedulerEnabled());
+		out.addProperty("reserveMiB", LlamaServer.getVramReserveMiB());
+		synchronized (this.lock) {
+			JsonArray devices = new JsonArray();
+			for (Map.Entry<String, Map<String, Device>> e : this.devicesByBinPath.entrySet()) {
+				for (Device d : e.getValue().values()) {
+					long used = this.reserved(d.name, null);
+					JsonObject item = new JsonObject();
+					item.addProperty("llamaBinPath", e.getKey());
+					item.addProperty("name", d.name);
+					item.addProperty("totalMiB", d.totalBytes / MIB);
+					item.addProperty("budgetMiB", d.budgetBytes() / MIB);
+					item.addProperty("reservedMiB", used / MIB);
+					item.addProperty("availableMiB", Math.max(0, d.budgetBytes() - used) / MIB);
+					devices.add(item);
+				}
+			}
+			out.add("devices", devices);
+
+			ModelRequestTracker tracker = ModelRequestTracker.getInstance();
+			JsonArray models = new JsonArray();
+			for (Placement p : this.placements.values()) {
+				JsonObject item = new JsonObject();
+				item.addProperty("modelId", p.modelId);
+				item.addProperty("loaded", p.loaded);
+				item.add("predictedMiB", toJson(p.predicted));
+				item.add("actualMiB", toJson(p.actual));
+				item.addProperty("lastActivity", tracker.getLastActivityTime(p.modelId));
+				models.add(item);
+			}
+			out.add("models", models);
+
+			JsonArray history = new JsonArray();
+			Iterator<JsonObject> it = this.decisions.descendingIterator();
+			while (it.hasNext()) {
+				history.add(it.next().deepCopy());
+			}
+			out.add("decisions", history);
+		}
+		return out;
+	}
+
+	/**
+	 * 	重新读取设备列表，下次加载时生效。
+	 */
+	public void clearDeviceCache() {
+		synchronized (this.lock) {
+			this.devicesByBinPath.clear();
+		}
+	}
+
+	//================================================================================================
+
+	private Map<String, Device> getDevices(String llamaBinPath) {
+		String key = llamaBinPath == null ? "" : llamaBinPath.trim();
+		synchronized (this.lock) {
+			Map<String, Device> cached = this.devicesByBinPath.get(key);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		Map<String, Device> devices = new LinkedHashMap<>();
+		for (String line : LlamaServerManager.getInstance().handleListDevices(key)) {
+			Matcher m = DEVICE_PATTERN.matcher(line.trim());
+			if (m.find()) {
+				String name = m.group(1);
+				devices.put(name.toLowerCase(Locale.ROOT), new Device(name, Long.parseLong(m.group(2)) * MIB));
+			}
+		}
+		// 拿不到就不缓存，下次再试
+		if (!devices.isEmpty()) {
+			synchronized (this.lock) {
+				this.devicesByBinPath.putIfAbsent(key, devices);
+				return this.devicesByBinPath.get(key);
+			}
+		}
+		return devices;
+	}
+
+	/**
+	 * 	模型会用到的设备：启动配置选择的设备优先，其次是命令行里的 --device，都没有就是全部设备。
+	 */
+	private List<Device> resolveTargets(Map<String, Device> devices, List<String> device, List<String> args) {
+		List<String> names = new ArrayList<>();
+		if (device != null && !device.isEmpty() && !(device.size() == 1 && "All".equals(device.get(0)))) {
+			names.addAll(device);
+		} else {
+			String value = argValue(args, "-dev", "--device");
+			if (value != null) {
+				for (String s : value.split(",")) {
+					names.add(s.trim());
+				}
+			}
+		}
+		List<Device> targets = new ArrayList<>();
+		if (names.isEmpty()) {
+			targets.addAll(devices.values());
+			return targets;
+		}
+		for (String name : names) {
+			Device d = devices.get(name.toLowerCase(Locale.ROOT));
+			if (d != null && !targets.contains(d)) {
+				targets.add(d);
+			}
+		}
+		return targets;
+	}
+
+	/**
+	 * 	估算需要的显存（字节），考虑上下文长度、KV类型、flash attention 和 -ngl 部分卸载。
+	 * 	<p>
+	 * 	{@link VramEstimator} 已标记为过时，页面上的估算改成了启动 llama-fit-params 去算；
+	 * 	这里每次加载前都要算一遍，还可能在加载线程里连着算几次，只读GGUF头、不启动进程的估算更合适，所以继续用它。
+	 */
+	@SuppressWarnings("deprecation")
+	private long estimateBytes(GGUFModel model, boolean enableVision, List<String> args) throws Exception {
+		GGUFMetaData primary = model.getPrimaryModel();
+		File file = Paths.get(model.getPath(), primary.getFileName()).toFile();
+
+		int ctx = DEFAULT_CTX_SIZE;
+		String ctxValue = argValue(args, "-c", "--ctx-size");
+		if (ctxValue != null) {
+			ctx = Integer.parseInt(ctxValue.trim());
+			if (ctx <= 0) {
+				Integer trained = primary.getContextLength();
+				ctx = trained != null && trained.intValue() > 0 ? trained.intValue() : DEFAULT_CTX_SIZE;
+			}
+		}
+		VramEstimator.KvCacheType typeK = kvType(argValue(args, "-ctk", "--cache-type-k"));
+		VramEstimator.KvCacheType typeV = kvType(argValue(args, "-ctv", "--cache-type-v"));
+		String fa = argValue(args, "-fa", "--flash-attn");
+		boolean flashAttention = fa != null && !"off".equalsIgnoreCase(fa) && !"false".equalsIgnoreCase(fa) && !"0".equals(fa);
+
+		VramEstimator.Estimate est = VramEstimator.estimate(file, ctx, typeK, typeV, flashAttention);
+		long weights = est.modelWeightsBytes();
+		long kv = est.kvCacheBytes();
+
+		String ngl = argValue(args, "-ngl", "--n-gpu-layers", "--gpu-layers");
+		if (ngl != null && ngl.matches("\\d+") && est.nLayer() > 0) {
+			long layers = Long.parseLong(ngl);
+			if (layers == 0) {
+				return 0;
+			}
+			if (layers < est.nLayer()) {
+				// 输出层算一层，其余按比例
+				weights = weights * layers / (est.nLayer() + 1);
+				kv = kv * layers / est.nLayer();
+			}
+		}
+		long total = weights + kv + est.runtimeOverheadBytes();
+		if (enableVision && model.getMmproj() != null) {
+			total += new File(model.getMmproj().getFilePath()).length();
+		}
+		return total;
+	}
+
+	/**
+	 * 	把需求拆到各个设备上：有 -ts 时按比例，否则按设备总显存的比例。
+	 */
+	private Map<String, Long> split(long need, List<Device> targets, List<String> args) {
+		Map<String, Long> out = new LinkedHashMap<>();
+		if (targets.size() == 1) {
+			out.put(targets.get(0).name, need);
+			return out;
+		}
+		double[] weights = new double[targets.size()];
+		String ts = argValue(args, "-ts", "--tensor-split");
+		String[] parts = ts == null ? new String[0] : ts.split("[,/]");
+		double sum = 0;
+		for (int i = 0; i < weights.length; i++) {
+			double w = targets.get(i).totalBytes;
+			if (parts.length == weights.length) {
+				try {
+					w = Double.parseDouble(parts[i].trim());
+				} catch (NumberFormatException e) {
+					w = targets.get(i).totalBytes;
+				}
+			}
+			weights[i] = w;
+			sum += w;
+		}
+		for (int i = 0; i < weights.length; i++) {
+			long bytes = sum <= 0 ? need / weights.length : (long) (need * (weights[i] / sum));
+			if (bytes > 0) {
+				out.put(targets.get(i).name, bytes);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * 	每个设备还差多少显存，全部放得下时为空。
+	 */
+	private Map<String, Long> shortfall(String modelId, Map<String, Device> devices, Map<String, Long> split) {
+		Map<String, Long> out = new LinkedHashMap<>();
+		for (Map.Entry<String, Long> e : split.entrySet()) {
+			Device d = devices.get(e.getKey().toLowerCase(Locale.ROOT));
+			long free = d.budgetBytes() - this.reserved(d.name, modelId);
+			if (e.getValue() > free) {
+				out.put(d.name, e.getValue() - free);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * 	设备上已经登记的占用。已加载的模型有实际值时用实际值。
+	 */
+	private long reserved(String device, String excludeModelId) {
+		long sum = 0;
+		for (Placement p : this.placements.values()) {
+			if (p.modelId.equals(excludeModelId)) {
+				continue;
+			}
+			Map<String, Long> usage = p.loaded && !p.actual.isEmpty() ? p.actual : p.predicted;
+			Long v = usage.get(device);
+			if (v != null) {
+				sum += v.longValue();
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * 	选出最久未使用、没有进行中请求、占用了缺口设备的已加载模型。
+	 */
+	private String pickVictim(String modelId, Iterable<String> shortDevices) {
+		ModelRequestTracker tracker = ModelRequestTracker.getInstance();
+		ModelRoutingTable table = LlamaServerManager.getInstance().getRoutingTable();
+		String victim = null;
+		long oldest = Long.MAX_VALUE;
+		for (Placement p : this.placements.values()) {
+			if (!p.loaded || p.modelId.equals(modelId)) {
+				continue;
+			}
+			boolean relevant = false;
+			for (String device : shortDevices) {
+				if (p.predicted.containsKey(device) || p.actual.containsKey(device)) {
+					relevant = true;
+					break;
+				}
+			}
+			if (!relevant) {
+				continue;
+			}
+			ModelRoutingTable.Route route = table.get(p.modelId);
+			String alias = route == null ? null : route.getAlias();
+			if (tracker.isModelBusy(p.modelId) || tracker.isModelBusy(alias)) {
+				continue;
+			}
+			long last = Math.max(tracker.getLastActivityTime(p.modelId), tracker.getLastActivityTime(alias));
+			if (last < oldest) {
+				oldest = last;
+				victim = p.modelId;
+			}
+		}
+		return victim;
+	}
+
+	private void record(String action, String modelId, String message, Map<String, Long> predicted, Map<String, Long> actual) {
+		JsonObject item = new JsonObject();
+		item.addProperty("time", System.currentTimeMillis());
+		item.addProperty("action", action);
+		item.addProperty("modelId", modelId);
+		item.addProperty("message", message);
+		if (predicted != null) {
+			item.add("predictedMiB", toJson(predicted));
+		}
+		if (actual != null) {
+			item.add("actualMiB", toJson(actual));
+		}
+		logger.info("[显存调度] {}: modelId={}, {}, predicted={}, actual={}", action, modelId, message,
+				predicted == null ? "-" : toJson(predicted), actual == null ? "-" : toJson(actual));
+		synchronized (this.lock) {
+			this.decisions.addLast(item);
+			while (this.decisions.size() > MAX_DECISIONS) {
+				this.decisions.pollFirst();
+			}
+		}
+	}
+
+	private static JsonObject toJson(Map<String, Long> usage) {
+		JsonObject out = new JsonObject();
+		for (Map.Entry<String, Long> e : usage.entrySet()) {
+			out.addProperty(e.getKey(), e.getValue() / MIB);
+		}
+		return out;
+	}
+
+	private static String toMiB(Map<String, Long> usage) {
+		return toJson(usage).toString();
+	}
+
+	@SuppressWarnings("deprecation")
+	private static VramEstimator.KvCacheType kvType(String value) {
+		try {
+			return VramEstimator.KvCacheType.from(value);
+		} catch (IllegalArgumentException e) {
+			return VramEstimator.KvCacheType.F16;
+		}
+	}
+
+	private static String joinArgs(String cmd, String extraParams) {
+		String a = cmd == null ? "" : cmd.trim();
+		String b = extraParams == null ? "" : extraParams.trim();
+		return a.isEmpty() ? b : (b.isEmpty() ? a : a + " " + b);
+	}
+
+	/**
+	 * 	取参数值，支持 "--flag value" 和 "--flag=value"，后出现的优先。
+	 */
+	private static String argValue(List<String> args, String... flags) {
+		String value = null;
+		for (int i = 0; i < args.size(); i++) {
+			String a = args.get(i);
+			for (String flag : flags) {
+				if (a.equals(flag)) {
+					value = i + 1 < args.size() && isValue(args.get(i + 1)) ? args.get(i + 1) : "";
+				} else if (a.startsWith(flag + "=")) {
+					value = a.substring(flag.length() + 1);
+				}
+			}
+		}
+		return value;
+	}
+
+	private static boolean isValue(String arg) {
+		return !arg.startsWith("-") || arg.matches("-\\d+");
+	}
+
+	/**
+	 * 	一个计算设备。
+	 */
+	private static final class Device {
+
+		final String name;
+		final long totalBytes;
+
+		Device(String name, long totalBytes) {
+			this.name = name;
+			this.totalBytes = totalBytes;
+		}
+
+		long budgetBytes() {
+			return Math.max(0, this.totalBytes - LlamaServer.getVramReserveMiB() * MIB);
+		}
+	}
+
+	/**
+	 * 	一个模型在各设备上的占用。
+	 */
+	private static final class Placement {
+
+		final String modelId;
+		final Map<String, Long> predicted;
+		final Map<String, Long> actual = new LinkedHashMap<>();
+		boolean loaded;
+
+		Placement(String modelId, Map<String, Long> predicted) {
+			this.modelId = modelId;
+			this.predicted = predicted;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package org.mark.llamacpp.server;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.websocket.RemoteWebSocketClient;
@@ -21,10 +23,15 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -40,6 +47,15 @@ public class NodeManager {
     private final ConcurrentHashMap<String, LlamaHubNode> nodes = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, Object> nodeLocks = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, RemoteWebSocketClient> wsClients = new ConcurrentHashMap<>();
+    /**
+     * 集群模型索引：模型名 -> 节点ID，不可变快照，请求路径上只读
+     */
+    private volatile Map<String, String> remoteModelIndex = Collections.emptyMap();
+    /**
+     * 每个节点最近一次上报的模型名
+     */
+    private final ConcurrentHashMap<String, Set<String>> nodeModels = new ConcurrentHashMap<>();
+    private final Object modelIndexLock = new Object();
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
         Thread t = new Thread(r, "node-health-check");
         t.setDaemon(true);
@@ -109,6 +125,7 @@ public class NodeManager {
         saveNodesConfig();
         if (LlamaServer.isMasterNode() && node.isEnabled() && node.baseUrl != null) {
             startWebSocketClient(node.nodeId, node.baseUrl);
+            scheduleModelIndexRefresh(node.nodeId);
         }
         logger.info("添加节点: {} ({})", node.nodeId, node.name);
         return true;
@@ -121,6 +138,7 @@ public class NodeManager {
         LlamaHubNode removed = nodes.remove(nodeId);
         if (removed != null) {
             stopWebSocketClient(nodeId);
+            invalidateModelIndex(nodeId);
             saveNodesConfig();
             logger.info("移除节点: {}", nodeId);
             return true;
@@ -144,8 +162,10 @@ public class NodeManager {
         saveNodesConfig();
 
         stopWebSocketClient(nodeId);
+        invalidateModelIndex(nodeId);
         if (LlamaServer.isMasterNode() && existing.isEnabled() && existing.baseUrl != null) {
             startWebSocketClient(nodeId, existing.baseUrl);
+            scheduleModelIndexRefresh(nodeId);
         }
         logger.info("更新节点: {}", nodeId);
         return true;
@@ -364,10 +384,10 @@ public class NodeManager {
     // ==================== 健康检查 ====================
 
     /**
-     * 启动 30s 间隔的定时健康检查
+     * 启动 30s 间隔的定时健康检查，首轮立即执行以填充集群模型索引
      */
     private void startHealthCheck() {
-        scheduler.scheduleAtFixedRate(this::healthCheckRound, 30, 30, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(this::healthCheckRound, 0, 30, TimeUnit.SECONDS);
         logger.info("健康检查定时任务已启动，间隔 30 秒");
     }
 
@@ -394,9 +414,11 @@ public class NodeManager {
                     if (oldStatus != LlamaHubNode.NodeStatus.ONLINE) {
                         onNodeStatusChanged(node, oldStatus);
                     }
+                    refreshModelIndex(nodeId);
                 } else {
                     LlamaHubNode.NodeStatus oldStatus = node.status;
                     node.status = LlamaHubNode.NodeStatus.OFFLINE;
+                    invalidateModelIndex(nodeId);
                     if (oldStatus != LlamaHubNode.NodeStatus.OFFLINE) {
                         onNodeStatusChanged(node, oldStatus);
                     }
@@ -404,6 +426,7 @@ public class NodeManager {
             } catch (Exception e) {
                 LlamaHubNode.NodeStatus oldStatus = node.status;
                 node.status = LlamaHubNode.NodeStatus.OFFLINE;
+                invalidateModelIndex(nodeId);
                 if (oldStatus != LlamaHubNode.NodeStatus.OFFLINE) {
                     onNodeStatusChanged(node, oldStatus);
                 }
@@ -445,6 +468,155 @@ public class NodeManager {
         }
     }
 
+    // ==================== 集群模型索引 ====================
+
+    /**
+     * 从集群模型索引中查找模型所在的远程节点，不发起任何网络请求。
+     * 索引由健康检查和远程节点的模型加载/停止事件维护，节点失联时对应条目会被清除。
+     *
+     * @return 节点；未找到或节点已停用时返回 null
+     */
+    public LlamaHubNode resolveRemoteModel(String modelName) {
+        if (modelName == null || modelName.isEmpty() || !LlamaServer.isMasterNode()) {
+            return null;
+        }
+        String nodeId = remoteModelIndex.get(modelName);
+        if (nodeId == null) {
+            return null;
+        }
+        LlamaHubNode node = nodes.get(nodeId);
+        if (node == null || !node.isEnabled() || node.baseUrl == null) {
+            return null;
+        }
+        return node;
+    }
+
+    /**
+     * 集群模型索引的只读视图：模型名 -> 节点ID
+     */
+    public Map<String, String> getRemoteModelIndex() {
+        return remoteModelIndex;
+    }
+
+    /**
+     * 拉取节点的 /v1/models 并更新索引；拉取失败时清除该节点的条目
+     */
+    public void refreshModelIndex(String nodeId) {
+        LlamaHubNode node = getNode(nodeId);
+        if (node == null || !node.isEnabled()) {
+            invalidateModelIndex(nodeId);
+            return;
+        }
+        HttpResult result = callRemoteApi(nodeId, "GET", "/v1/models", null, 2000, 10000);
+        if (!result.isSuccess()) {
+            logger.warn("刷新节点模型索引失败: nodeId={}, code={}", nodeId, result.getStatusCode());
+            invalidateModelIndex(nodeId);
+            return;
+        }
+        JsonObject root;
+        try {
+            root = JsonUtil.fromJson(result.getBody(), JsonObject.class);
+        } catch (Exception e) {
+            root = null;
+        }
+        if (root == null) {
+            logger.warn("刷新节点模型索引失败: nodeId={}, 响应不是JSON", nodeId);
+            invalidateModelIndex(nodeId);
+            return;
+        }
+        Set<String> names = new LinkedHashSet<>();
+        if (root.has("models") && root.get("models").isJsonArray()) {
+            for (JsonElement el : root.getAsJsonArray("models")) {
+                if (!el.isJsonObject()) continue;
+                JsonObject m = el.getAsJsonObject();
+                String key = JsonUtil.getJsonString(m, "model");
+                if (key.isEmpty()) key = JsonUtil.getJsonString(m, "name");
+                if (!key.isEmpty()) names.add(key);
+            }
+        }
+        if (root.has("data") && root.get("data").isJsonArray()) {
+            JsonArray data = root.getAsJsonArray("data");
+            for (JsonElement el : data) {
+                if (!el.isJsonObject()) continue;
+                String id = JsonUtil.getJsonString(el.getAsJsonObject(), "id", "");
+                if (!id.isEmpty()) names.add(id);
+            }
+        }
+        synchronized (modelIndexLock) {
+            // 拉取期间节点可能已被移除或停用
+            LlamaHubNode current = nodes.get(nodeId);
+            if (current == null || !current.isEnabled()) {
+                nodeModels.remove(nodeId);
+            } else {
+                nodeModels.put(nodeId, Collections.unmodifiableSet(names));
+            }
+            rebuildModelIndex();
+        }
+    }
+
+    /**
+     * 清除节点在索引中的全部条目
+     */
+    public void invalidateModelIndex(String nodeId) {
+        if (nodeId == null) return;
+        synchronized (modelIndexLock) {
+            if (nodeModels.remove(nodeId) != null) {
+                rebuildModelIndex();
+            }
+        }
+    }
+
+    /**
+     * 远程节点通过 WebSocket 推送的模型加载/停止事件。
+     * 先按事件里的模型ID直接修改索引，再异步拉一次完整列表校正。
+     */
+    public void onRemoteModelEvent(String nodeId, String type, String modelId, boolean success) {
+        if (nodeId == null || !nodes.containsKey(nodeId)) return;
+        if (success && modelId != null && !modelId.isEmpty()) {
+            synchronized (modelIndexLock) {
+                Set<String> names = new LinkedHashSet<>(nodeModels.getOrDefault(nodeId, Collections.emptySet()));
+                boolean changed = "modelLoad".equals(type) ? names.add(modelId) : names.remove(modelId);
+                if (changed) {
+                    nodeModels.put(nodeId, Collections.unmodifiableSet(names));
+                    rebuildModelIndex();
+                }
+            }
+        }
+        scheduleModelIndexRefresh(nodeId);
+    }
+
+    /**
+     * 在健康检查线程上异步刷新某个节点的索引
+     */
+    private void scheduleModelIndexRefresh(String nodeId) {
+        try {
+            scheduler.execute(() -> {
+                try {
+                    refreshModelIndex(nodeId);
+                } catch (Exception e) {
+                    logger.warn("刷新节点模型索引异常: nodeId={}, error={}", nodeId, e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("NodeManager 已关闭，跳过模型索引刷新: {}", nodeId);
+        }
+    }
+
+    /**
+     * 按节点顺序重建索引，同名模型先出现的节点优先。调用方需持有 modelIndexLock。
+     */
+    private void rebuildModelIndex() {
+        Map<String, String> index = new LinkedHashMap<>();
+        for (LlamaHubNode node : nodes.values()) {
+            Set<String> names = nodeModels.get(node.nodeId);
+            if (names == null || !node.isEnabled()) continue;
+            for (String name : names) {
+                index.putIfAbsent(name, node.nodeId);
+            }
+        }
+        remoteModelIndex = Collections.unmodifiableMap(index);
+    }
+
 	/**
 	 * 将远程 API 调用结果直接写回 Netty 通道（透传 JSON 响应，带 CORS 头）。
 	 * 替代多处重复的 DefaultFullHttpResponse + writeBytes + CLOSE 模式。
@@ -476,7 +648,7 @@ public class NodeManager {
 			response.headers().set(io.netty.handler.codec.http.HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
 			response.headers().set(io.netty.handler.codec.http.HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
 			response.content().writeBytes(bytes);
-			ctx.writeAndFlush(response).addListener(io.netty.channel.ChannelFutureListener.CLOSE);
+			ctx.writeAndFlush(response);
 		} catch (Exception e) {
 			logger.warn("{} 写入响应失败: {}", logTag != null ? logTag : "[代理]", e.getMessage());
 		}
@@ -494,7 +666,7 @@ public class NodeManager {
 			response.headers().set(io.netty.handler.codec.http.HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
 			response.headers().set(io.netty.handler.codec.http.HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
 			response.content().writeBytes(bytes);
-			ctx.writeAndFlush(response).addListener(io.netty.channel.ChannelFutureListener.CLOSE);
+			ctx.writeAndFlush(response);
 		} catch (Exception e) {
 			logger.warn("写入响应失败: {}", e.getMessage());
 		}
@@ -0,0 +1,196 @@
+package org.mark.llamacpp.server;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * 	聊天请求前缀的指纹，给 {@link SlotAffinityTable} 找上一轮用过的槽位。
+ * 	<p>
+ * 	对 messages 里每条消息的紧凑 JSON 文本（去掉字符串外的空白）算 64 位哈希，再按顺序滚动累加：
+ * 	第 i 个值代表前 i+1 条消息组成的前缀。tools 会被模板渲染进提示词开头，所以也混进每个值里。
+ * 	同一个会话下一轮请求的前几个值和这一轮相同，最长的相同前缀就是 llama-server 能复用的 KV 缓存。
+ * 	<p>
+ * 	请求体已经解析成 JsonObject 时用 {@link #of(JsonObject)}；按字节流透传 messages 时把字节写进 {@link Builder}。
+ * 	两种方式对同样的紧凑 JSON 文本得到相同的结果。
+ */
+public final class PrefixFingerprint {
+
+	private static final long[] EMPTY = new long[0];
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private PrefixFingerprint() {
+
+	}
+
+	/**
+	 * 	计算已解析请求的前缀指纹。
+	 * @param request OpenAI chat/completions 请求
+	 * @return 每条消息结束处的累计哈希，没有 messages 时返回空数组
+	 */
+	public static long[] of(JsonObject request) {
+		if (request == null || !request.has("messages") || !request.get("messages").isJsonArray()) {
+			return EMPTY;
+		}
+		JsonArray messages = request.getAsJsonArray("messages");
+		long[] chain = new long[messages.size()];
+		long h = 0L;
+		for (int i = 0; i < messages.size(); i++) {
+			byte[] text = messages.get(i).toString().getBytes(StandardCharsets.UTF_8);
+			long m = FNV_OFFSET;
+			for (byte b : text) {
+				m = (m ^ (b & 0xff)) * FNV_PRIME;
+			}
+			h = roll(h, m);
+			chain[i] = h;
+		}
+		return withTools(chain, request.get("tools"));
+	}
+
+	private static long roll(long prefix, long message) {
+		return mix(prefix * 31 + message);
+	}
+
+	private static long[] withTools(long[] chain, JsonElement tools) {
+		if (tools == null || tools.isJsonNull()) {
+			return chain;
+		}
+		byte[] text = tools.toString().getBytes(StandardCharsets.UTF_8);
+		long t = FNV_OFFSET;
+		for (byte b : text) {
+			t = (t ^ (b & 0xff)) * FNV_PRIME;
+		}
+		for (int i = 0; i < chain.length; i++) {
+			chain[i] = mix(chain[i] ^ t);
+		}
+		return chain;
+	}
+
+	/**
+	 * 	splitmix64 的收尾混合，让相近的输入分散开。
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * 	按字节计算 messages 数组的前缀指纹，写入的是数组本身的 JSON 文本（从 '[' 到 ']'）。
+	 * 	只跟踪嵌套层次和字符串边界，不解析内容，多大的 base64 图片也只是顺序过一遍。
+	 */
+	public static final class Builder extends OutputStream {
+
+		private long[] chain = new long[16];
+		private int count;
+		private long prefix;
+		private long message = FNV_OFFSET;
+		private boolean inMessage;
+		private int depth;
+		private boolean inString;
+		private boolean escaped;
+		private boolean invalid;
+		private JsonElement tools;
+
+		public Builder() {
+
+		}
+
+		@Override
+		public void write(int value) {
+			int b = value & 0xff;
+			if (this.invalid) {
+				return;
+			}
+			if (this.inString) {
+				this.update(b);
+				if (this.escaped) {
+					this.escaped = false;
+				} else if (b == '\\') {
+					this.escaped = true;
+				} else if (b == '"') {
+					this.inString = false;
+				}
+				return;
+			}
+			if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+				return;
+			}
+			if (this.depth == 0) {
+				// 数组本身的 '['，之前出现别的字符说明不是数组
+				if (b == '[' && this.count == 0 && !this.inMessage) {
+					this.depth = 1;
+				} else {
+					this.invalid = true;
+				}
+				return;
+			}
+			if (this.depth == 1 && (b == ',' || b == ']')) {
+				this.endMessage();
+				if (b == ']') {
+					this.depth = 0;
+				}
+				return;
+			}
+			this.inMessage = true;
+			this.update(b);
+			if (b == '"') {
+				this.inString = true;
+			} else if (b == '{' || b == '[') {
+				this.depth++;
+			} else if (b == '}' || b == ']') {
+				this.depth--;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			for (int i = 0; i < len; i++) {
+				this.write(b[off + i]);
+			}
+		}
+
+		/**
+		 * 	请求里的 tools 字段，可以在 messages 之后才设置。
+		 * @param tools
+		 */
+		public void setTools(JsonElement tools) {
+			this.tools = tools;
+		}
+
+		/**
+		 * 	写入的内容不是完整的数组时返回空数组。
+		 * @return
+		 */
+		public long[] build() {
+			if (this.invalid || this.depth != 0 || this.inString) {
+				return EMPTY;
+			}
+			return withTools(Arrays.copyOf(this.chain, this.count), this.tools);
+		}
+
+		private void update(int b) {
+			this.message = (this.message ^ b) * FNV_PRIME;
+		}
+
+		private void endMessage() {
+			if (!this.inMessage) {
+				return;
+			}
+			this.prefix = roll(this.prefix, this.message);
+			if (this.count == this.chain.length) {
+				this.chain = Arrays.copyOf(this.chain, this.count * 2);
+			}
+			this.chain[this.count++] = this.prefix;
+			this.message = FNV_OFFSET;
+			this.inMessage = false;
+		}
+	}
+}
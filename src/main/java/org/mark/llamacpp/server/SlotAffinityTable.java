@@ -0,0 +1,311 @@
+package org.mark.llamacpp.server;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 	本机模型的槽位亲和表：记住每个槽位的 KV 缓存里放的是哪个对话前缀，把同一个前缀的请求送回同一个槽位。
+ * 	<p>
+ * 	llama-server 只有在请求落到已经缓存了相同前缀的槽位上时才能跳过这部分预填充。Agent 类客户端每一轮都会带上
+ * 	很长的系统提示词和全部历史，落到别的槽位上就要重新算一遍。这里用 {@link PrefixFingerprint} 找出匹配最长的槽位，
+ * 	调用方把槽位号作为 id_slot 写进请求体。
+ * 	<ul>
+ * 	<li>请求是某个槽位上一次前缀的延续（同一个对话的下一轮）时直接用这个槽位；</li>
+ * 	<li>只共用了一部分前缀（比如同一个系统提示词的另一个对话）时优先放到没有缓存的槽位，免得挤掉别人更长的缓存，
+ * 	没有空槽位时在缓存了这部分前缀的槽位里挑最久没用的；</li>
+ * 	<li>匹配到的槽位正在处理别的请求时改用空闲槽位，不让请求在 llama-server 里排队；</li>
+ * 	<li>都没有匹配时用没有缓存的槽位，其次是最久没用的槽位；</li>
+ * 	<li>槽位被新前缀占用后，原来指向它、又不是新前缀一部分的条目立即失效；</li>
+ * 	<li>模型重新加载（进程变了）或者槽位数变了时整张表清空。</li>
+ * 	</ul>
+ * 	调用方在拿到 {@link ModelAdmissionQueue} 的许可之后调用 {@link #assign}，请求结束时关闭返回的 {@link Lease}。
+ */
+public class SlotAffinityTable {
+
+	private static final SlotAffinityTable INSTANCE = new SlotAffinityTable();
+
+	public static SlotAffinityTable getInstance() {
+		return INSTANCE;
+	}
+
+	private final Map<String, ModelSlots> models = new ConcurrentHashMap<>();
+
+	public SlotAffinityTable() {
+
+	}
+
+	/**
+	 * 	按路由表里模型当前的进程和槽位数分配，name 可以是别名。模型不在本机时返回 null。
+	 * @param name
+	 * @param prefix {@link PrefixFingerprint} 的结果
+	 * @return
+	 */
+	public Lease assign(String name, long[] prefix) {
+		ModelRoutingTable.Route route = LlamaServerManager.getInstance().getRoutingTable().resolve(name);
+		if (route == null) {
+			return null;
+		}
+		return this.assign(route.getModelId(), route.getProcess(), route.getSlotNum(), prefix);
+	}
+
+	/**
+	 * 	为请求选一个槽位。
+	 * @param modelId
+	 * @param instance 模型当前的进程，变化时清空这个模型的记录
+	 * @param slots 模型的槽位数
+	 * @param prefix {@link PrefixFingerprint} 的结果
+	 * @return 只有一个槽位或者没有前缀时返回 null，不需要指定 id_slot
+	 */
+	public Lease assign(String modelId, Object instance, int slots, long[] prefix) {
+		if (modelId == null || slots <= 1 || prefix == null || prefix.length == 0) {
+			return null;
+		}
+		ModelSlots table = this.models.computeIfAbsent(modelId, k -> new ModelSlots());
+		return table.assign(instance, slots, prefix);
+	}
+
+	/**
+	 * 	查询前缀当前缓存在哪个槽位，只看记录，不分配。
+	 * @param modelId
+	 * @param prefix
+	 * @return 没有匹配时返回 -1
+	 */
+	public int lookup(String modelId, long[] prefix) {
+		ModelSlots table = modelId == null ? null : this.models.get(modelId);
+		if (table == null || prefix == null) {
+			return -1;
+		}
+		return table.lookup(prefix);
+	}
+
+	/**
+	 * 	模型当前记录的前缀条目数。
+	 * @param modelId
+	 * @return
+	 */
+	public int getEntryCount(String modelId) {
+		ModelSlots table = modelId == null ? null : this.models.get(modelId);
+		return table == null ? 0 : table.size();
+	}
+
+	/**
+	 * 	丢弃模型的全部记录。
+	 * @param modelId
+	 */
+	public void invalidate(String modelId) {
+		if (modelId != null) {
+			this.models.remove(modelId);
+		}
+	}
+
+	/**
+	 * 	一次分配，关闭后槽位重新算作空闲，重复关闭没有影响。
+	 */
+	public static final class Lease implements AutoCloseable {
+		private final ModelSlots table;
+		private final int generation;
+		private final int slot;
+		private final int matchedMessages;
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+		private Lease(ModelSlots table, int generation, int slot, int matchedMessages) {
+			this.table = table;
+			this.generation = generation;
+			this.slot = slot;
+			this.matchedMessages = matchedMessages;
+		}
+
+		/**
+		 * 	要写进请求体的 id_slot。
+		 * @return
+		 */
+		public int getSlot() {
+			return this.slot;
+		}
+
+		/**
+		 * 	槽位里已经缓存的前缀消息数，0 表示没有命中。
+		 * @return
+		 */
+		public int getMatchedMessages() {
+			return this.matchedMessages;
+		}
+
+		@Override
+		public void close() {
+			if (this.closed.compareAndSet(false, true)) {
+				this.table.release(this.generation, this.slot);
+			}
+		}
+	}
+
+	/**
+	 * 	单个模型的记录。前缀哈希 -> 槽位，以及每个槽位当前缓存的前缀集合，用来在槽位被占用时让旧条目失效。
+	 */
+	private static final class ModelSlots {
+		private Object instance;
+		private int slots;
+		private int[] busy = new int[0];
+		private long[] lastUsed = new long[0];
+		/**
+		 * 	每个槽位最近一次放进去的完整前缀的哈希
+		 */
+		private long[] tips = new long[0];
+		private Set<Long>[] residents = newResidents(0);
+		private final Map<Long, Integer> owners = new HashMap<>();
+		private long clock;
+		/**
+		 * 	每次清空加一，清空之前发出去的 Lease 关闭时不再影响忙碌计数
+		 */
+		private int generation;
+
+		private synchronized Lease assign(Object instance, int slots, long[] prefix) {
+			if (this.instance != instance || this.slots != slots) {
+				this.reset(instance, slots);
+			}
+			int hit = -1;
+			int depth = 0;
+			for (int i = prefix.length - 1; i >= 0; i--) {
+				Integer owner = this.owners.get(prefix[i]);
+				if (owner != null) {
+					hit = owner.intValue();
+					depth = i + 1;
+					break;
+				}
+			}
+			int slot = -1;
+			if (hit >= 0 && this.busy[hit] == 0 && this.isContinuation(hit, prefix, depth)) {
+				slot = hit;
+			} else if (depth > 0 && !this.hasEmptyIdle()) {
+				slot = this.pickIdleHolding(prefix[depth - 1]);
+			}
+			if (slot < 0) {
+				slot = this.pickIdle(hit);
+			}
+
+			// 槽位换成新前缀，旧前缀里不是新前缀一部分的条目失效
+			Set<Long> current = new HashSet<>(prefix.length * 2);
+			for (long h : prefix) {
+				current.add(h);
+			}
+			for (Long h : this.residents[slot]) {
+				if (!current.contains(h)) {
+					this.owners.remove(h, Integer.valueOf(slot));
+				}
+			}
+			this.residents[slot] = current;
+			this.tips[slot] = prefix[prefix.length - 1];
+			for (long h : prefix) {
+				this.owners.put(h, Integer.valueOf(slot));
+			}
+			this.busy[slot]++;
+			this.lastUsed[slot] = ++this.clock;
+			return new Lease(this, this.generation, slot, slot == hit ? depth : 0);
+		}
+
+		private synchronized int lookup(long[] prefix) {
+			for (int i = prefix.length - 1; i >= 0; i--) {
+				Integer owner = this.owners.get(prefix[i]);
+				if (owner != null) {
+					return owner.intValue();
+				}
+			}
+			return -1;
+		}
+
+		private synchronized int size() {
+			return this.owners.size();
+		}
+
+		private synchronized void release(int generation, int slot) {
+			if (generation == this.generation && this.busy[slot] > 0) {
+				this.busy[slot]--;
+			}
+		}
+
+		/**
+		 * 	请求的前 depth 条消息正好是槽位上一次的完整前缀。
+		 */
+		private boolean isContinuation(int slot, long[] prefix, int depth) {
+			return depth > 0 && prefix[depth - 1] == this.tips[slot];
+		}
+
+		private boolean hasEmptyIdle() {
+			for (int i = 0; i < this.slots; i++) {
+				if (this.busy[i] == 0 && this.residents[i].isEmpty()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * 	缓存了指定前缀的空闲槽位里最久没用的，没有时返回 -1。
+		 */
+		private int pickIdleHolding(long hash) {
+			int best = -1;
+			for (int i = 0; i < this.slots; i++) {
+				if (this.busy[i] == 0 && this.residents[i].contains(hash)
+						&& (best < 0 || this.lastUsed[i] < this.lastUsed[best])) {
+					best = i;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * 	选空闲槽位：没有缓存的优先，其次最久没用的。都在忙时（槽位数和准入队列不一致）退回匹配到的槽位或者最久没用的。
+		 */
+		private int pickIdle(int hit) {
+			int best = -1;
+			for (int i = 0; i < this.slots; i++) {
+				if (this.busy[i] > 0) {
+					continue;
+				}
+				if (this.residents[i].isEmpty()) {
+					return i;
+				}
+				if (best < 0 || this.lastUsed[i] < this.lastUsed[best]) {
+					best = i;
+				}
+			}
+			if (best >= 0) {
+				return best;
+			}
+			if (hit >= 0) {
+				return hit;
+			}
+			best = 0;
+			for (int i = 1; i < this.slots; i++) {
+				if (this.lastUsed[i] < this.lastUsed[best]) {
+					best = i;
+				}
+			}
+			return best;
+		}
+
+		private void reset(Object instance, int slots) {
+			this.generation++;
+			this.instance = instance;
+			this.slots = slots;
+			this.busy = new int[slots];
+			this.lastUsed = new long[slots];
+			this.tips = new long[slots];
+			this.residents = newResidents(slots);
+			this.owners.clear();
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private static Set<Long>[] newResidents(int slots) {
+			Set<Long>[] sets = new Set[slots];
+			for (int i = 0; i < slots; i++) {
+				sets[i] = new HashSet<>();
+			}
+			return sets;
+		}
+	}
+}
@@ -1,8 +1,5 @@
 package org.mark.llamacpp.server.channel;
 
-import java.io.File;
-import java.nio.file.Paths;
-import java.net.URL;
 import java.net.URLDecoder;
 import java.util.LinkedList;
 import java.util.List;
@@ -23,6 +20,7 @@ import org.mark.llamacpp.server.controller.SystemController;
 import org.mark.llamacpp.server.controller.ToolController;
 import org.mark.llamacpp.server.controller.UsageReportController;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.metrics.HubMetrics;
 import org.mark.llamacpp.server.struct.ApiResponse;
 
 import org.slf4j.Logger;
@@ -48,6 +46,11 @@ public class BasicRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 	
 	private static final List<BaseController> pipeline = new LinkedList<>();
 	
+	/**
+	 * 	全部控制器的路由，启动时编译好，之后只读
+	 */
+	private static final HttpRouter router = new HttpRouter();
+	
 	
 	static {
 		pipeline.add(new EasyChatController());
@@ -61,6 +64,19 @@ public class BasicRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 		pipeline.add(new ToolController());
 		pipeline.add(new SystemController());
 		pipeline.add(new UsageReportController());
+		for (BaseController c : pipeline) {
+			c.registerRoutes(router);
+		}
+		router.compile();
+		HubMetrics.getInstance().setRouter(router);
+	}
+	
+	/**
+	 * 	控制器的路由表。
+	 * @return
+	 */
+	public static HttpRouter getRouter() {
+		return router;
 	}
 	
 	
@@ -118,18 +134,20 @@ public class BasicRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 			return;
 		}
 		try {
-			// 处理模型API请求
+			// 控制器的接口
+			HttpRouter.Match match = router.match(request.method(), uri);
+			if (match.getStatus() == HttpRouter.Status.FOUND) {
+				match.dispatch(ctx, request);
+				return;
+			}
+			if (match.getStatus() == HttpRouter.Status.METHOD_NOT_ALLOWED) {
+				LlamaServer.sendMethodNotAllowedResponse(ctx, match.getAllow(),
+						ApiResponse.error("只支持" + match.getAllow() + "请求"));
+				return;
+			}
+			// 其余的API请求交给后面的处理器（补全、下载、OpenAI兼容接口），都不处理时由最后一个返回404
 			if (this.isApiRequest(uri)) {
-				boolean handled = false;
-				for (BaseController c : pipeline) {
-					handled = c.handleRequest(uri, ctx, request);
-					if (handled) {
-						break;
-					}
-				}
-				if (!handled) {
-					ctx.fireChannelRead(request.retain());
-				}
+				ctx.fireChannelRead(request.retain());
 				return;
 			}
 			// 断言一下请求方式
@@ -144,25 +162,16 @@ public class BasicRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 			if (isRootRequest) {
 				path = isMobileRequest(request) ? "/index-mobile.html" : "/index.html";
 			}
-			// 
-			URL url = LlamaServer.class.getResource("/web" + path);
-
-			if (url == null) {
-				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.NOT_FOUND, "文件不存在: " + path);
-				return;
-			}
 			// 对于非API请求，只允许访问静态文件，不允许目录浏览
-			// 首先尝试从resources目录获取文件
-			File file = Paths.get(url.toURI()).toFile();
-			if (!file.exists()) {
-				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.NOT_FOUND, "文件不存在: " + path);
-				return;
-			}
-			if (file.isDirectory()) {
+			WebAssets assets = WebAssets.getInstance();
+			WebAssets.Asset asset = assets.get(path);
+			if (asset != null) {
+				assets.send(ctx, request, asset);
+			} else if (assets.isDirectory(path)) {
 				// 不允许直接访问目录，必须通过API
 				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.FORBIDDEN, "不允许直接访问目录，请使用API获取文件列表");
 			} else {
-				LlamaServer.sendFile(ctx, file);
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.NOT_FOUND, "文件不存在: " + path);
 			}
 		} catch (RequestMethodException e) {
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.error(e.getMessage()));
@@ -234,7 +243,9 @@ public class BasicRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 				uri.startsWith("/session") || 
 				uri.startsWith("/tokenize") || 
 				uri.startsWith("/apply-template") || 
-				uri.startsWith("/infill")) {
+				uri.startsWith("/infill") ||
+				uri.equals("/metrics") ||
+				uri.startsWith("/metrics?")) {
 			return true;
 		}
 		// 2. OpenAI 标准协议路径 (/v1/... 覆盖所有 v1 前缀的变体)
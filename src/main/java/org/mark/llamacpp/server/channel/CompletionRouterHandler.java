@@ -289,7 +289,6 @@ public class CompletionRouterHandler extends SimpleChannelInboundHandler<FullHtt
 					raf.close();
 				} catch (Exception ignore) {
 				}
-				ctx.close();
 			}
 		});
 	}
@@ -394,7 +393,6 @@ public class CompletionRouterHandler extends SimpleChannelInboundHandler<FullHtt
 					raf.close();
 				} catch (Exception ignore) {
 				}
-				ctx.close();
 			}
 		});
 	}
@@ -19,6 +19,7 @@ import java.util.stream.Stream;
 import org.mark.file.downloader.DownloadTaskInfo;
 import org.mark.file.downloader.DownloadTaskManager;
 import org.mark.file.downloader.DownloadTaskStatus;
+import org.mark.llamacpp.download.Sha256Hasher;
 import org.mark.llamacpp.download.struct.ModelDownloadRequest;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.NodeManager;
@@ -139,6 +140,10 @@ public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullH
 			String author = trimToNull(req.getAuthor());
 			String modelId = trimToNull(req.getModelId());
 			String[] downloadUrl = req.getDownloadUrl();
+			String[] lfsOids = req.getLfsOids();
+			if (lfsOids == null && downloadUrl != null && downloadUrl.length == 1 && req.getLfsOid() != null) {
+				lfsOids = new String[] { req.getLfsOid() };
+			}
 			String ggufPath = trimToNull(req.getPath());
 			if (author == null) {
 				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "author不能为空");
@@ -233,7 +238,8 @@ public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullH
 //				if (i == 0) {
 //					fileName = sanitizeFileName(req.getName());
 //				}
-				Map<String, Object> r = createAndStartTask(url, targetDir.toString(), null, null);
+				String lfsOid = lfsOids != null && i < lfsOids.length ? trimToNull(lfsOids[i]) : null;
+				Map<String, Object> r = createAndStartTask(url, targetDir.toString(), null, null, lfsOid);
 				if (!Boolean.TRUE.equals(r.get("success"))) {
 					allSuccess = false;
 				}
@@ -599,8 +605,18 @@ public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullH
 	}
 
 	private Map<String, Object> createAndStartTask(String url, String path, String fileName, String folderName) {
+		return createAndStartTask(url, path, fileName, folderName, null);
+	}
+
+	/**
+	 * 	创建并启动下载任务。expectedSha256 不为空时下载完成后校验，目标文件已存在时也先校验它。
+	 */
+	private Map<String, Object> createAndStartTask(String url, String path, String fileName, String folderName, String expectedSha256) {
 		Map<String, Object> result = new HashMap<>();
 		try {
+			if (expectedSha256 != null && Sha256Hasher.normalize(expectedSha256) == null) {
+				throw new IllegalArgumentException("lfsOid不是有效的SHA-256: " + expectedSha256);
+			}
 			String selectedName = trimToNull(fileName);
 			if (selectedName == null) {
 				selectedName = inferFileName(url);
@@ -639,11 +655,18 @@ public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullH
 			lock.lock();
 			try {
 				if (Files.exists(targetFile)) {
+					// 已有的文件和期望的一致就不用重新下载，算过的话直接用缓存的结果
+					if (expectedSha256 != null && Sha256Hasher.verify(targetFile.toFile(), expectedSha256)) {
+						result.put("success", true);
+						result.put("verified", true);
+						result.put("message", "文件已存在且SHA-256校验通过: " + selectedName);
+						return result;
+					}
 					result.put("success", false);
 					result.put("error", "文件已存在: " + selectedName);
 					return result;
 				}
-				DownloadTaskInfo created = taskManager.createTask(url, targetFile, 8);
+				DownloadTaskInfo created = taskManager.createTask(url, targetFile, 8, expectedSha256);
 				taskManager.startTask(created.getTaskId());
 				result.put("success", true);
 				result.put("taskId", created.getTaskId());
@@ -769,6 +792,12 @@ public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullH
 		if (task.getErrorMessage() != null) {
 			view.put("errorMessage", task.getErrorMessage());
 		}
+		if (task.getExpectedSha256() != null) {
+			view.put("expectedSha256", task.getExpectedSha256());
+		}
+		if (task.getSha256() != null) {
+			view.put("sha256", task.getSha256());
+		}
 		return view;
 	}
 
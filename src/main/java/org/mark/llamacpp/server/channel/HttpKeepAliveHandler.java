@@ -0,0 +1,202 @@
+package org.mark.llamacpp.server.channel;
+
+import org.mark.llamacpp.server.io.StreamRelayWriter;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+
+/**
+ * 	HTTP/1.1 长连接的统一处理，放在 {@link io.netty.handler.codec.http.HttpServerCodec} 后面。
+ * 	<p>
+ * 	各个业务代码只管写响应，不再自己关闭连接；这里根据请求的 Connection 头决定响应结束后是否关闭：
+ * 	<ul>
+ * 	<li>客户端要求关闭、HTTP/1.0 未声明 keep-alive、请求体还没读完就已经响应的，发完最后一块后关闭；</li>
+ * 	<li>没有 Content-Length 的流式响应（SSE）改成 chunked 编码，这样不需要靠断开连接来标记结束；</li>
+ * 	<li>统一改写 Connection 响应头；</li>
+ * 	<li>连接空闲超过 {@link #IDLE_TIMEOUT_SECONDS} 秒且没有正在处理的请求时关闭；</li>
+ * 	<li>通道可写状态变化时通知 {@link StreamRelayWriter}。</li>
+ * 	</ul>
+ * 	WebSocket 升级（101）之后不再干预。
+ */
+public class HttpKeepAliveHandler extends ChannelDuplexHandler {
+
+	/**
+	 * 	长连接的空闲超时。
+	 */
+	public static final int IDLE_TIMEOUT_SECONDS = 60;
+
+	/**
+	 * 	当前请求开始接收的时间（{@link System#nanoTime()}），用来统计排队时间。
+	 */
+	public static final AttributeKey<Long> REQUEST_RECEIVED_NANOS = AttributeKey.valueOf("llamahub.requestReceivedNanos");
+
+	/**
+	 * 	当前请求是否允许复用连接。
+	 */
+	private boolean keepAlive = true;
+
+	/**
+	 * 	当前请求是不是 HTTP/1.0，这种请求不能用 chunked 编码。
+	 */
+	private boolean http10;
+
+	/**
+	 * 	当前请求的请求体是否已经读完。
+	 */
+	private boolean requestComplete = true;
+
+	/**
+	 * 	是否有请求还没有写完响应。
+	 */
+	private boolean inFlight;
+
+	/**
+	 * 	响应头已经写出，还没有写最后一块。
+	 */
+	private boolean responseStarted;
+
+	/**
+	 * 	本次响应结束后关闭连接。
+	 */
+	private boolean closeAfterResponse;
+
+	/**
+	 * 	已经升级成WebSocket。
+	 */
+	private boolean upgraded;
+
+	public HttpKeepAliveHandler() {
+
+	}
+
+	/**
+	 * 	空闲检测，和本Handler一起加到管线里。
+	 * @return
+	 */
+	public static IdleStateHandler newIdleStateHandler() {
+		return new IdleStateHandler(0, 0, IDLE_TIMEOUT_SECONDS);
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (!this.upgraded) {
+			if (msg instanceof HttpRequest request) {
+				this.keepAlive = HttpUtil.isKeepAlive(request);
+				this.http10 = request.protocolVersion() == HttpVersion.HTTP_1_0;
+				this.requestComplete = false;
+				this.inFlight = true;
+				this.responseStarted = false;
+				this.closeAfterResponse = !this.keepAlive;
+				ctx.channel().attr(REQUEST_RECEIVED_NANOS).set(System.nanoTime());
+			}
+			if (msg instanceof LastHttpContent) {
+				this.requestComplete = true;
+			}
+		}
+		ctx.fireChannelRead(msg);
+	}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		if (this.upgraded) {
+			ctx.write(msg, promise);
+			return;
+		}
+		if (msg instanceof HttpResponse response) {
+			if (response.status().code() == HttpResponseStatus.SWITCHING_PROTOCOLS.code()) {
+				this.upgraded = true;
+				ctx.write(msg, promise);
+				return;
+			}
+			this.prepareResponse(response);
+		}
+		if (msg instanceof LastHttpContent) {
+			boolean close = this.closeAfterResponse || !this.requestComplete;
+			this.inFlight = false;
+			this.responseStarted = false;
+			if (close) {
+				ctx.write(msg, promise.unvoid()).addListener(ChannelFutureListener.CLOSE);
+				return;
+			}
+		}
+		ctx.write(msg, promise);
+	}
+
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		// 唤醒因为写缓冲满了而暂停读上游的流式转发
+		StreamRelayWriter.onWritabilityChanged(ctx.channel());
+		ctx.fireChannelWritabilityChanged();
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		StreamRelayWriter.onWritabilityChanged(ctx.channel());
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+		if (evt instanceof IdleStateEvent) {
+			if (!this.upgraded && !this.inFlight) {
+				ctx.close();
+			}
+			return;
+		}
+		ctx.fireUserEventTriggered(evt);
+	}
+
+	/**
+	 * 	当前请求开始接收的时间。
+	 * @param ctx
+	 * @return 没有经过本Handler时返回0
+	 */
+	public static long getRequestReceivedNanos(ChannelHandlerContext ctx) {
+		if (ctx == null) {
+			return 0L;
+		}
+		Long nanos = ctx.channel().attr(REQUEST_RECEIVED_NANOS).get();
+		return nanos == null ? 0L : nanos.longValue();
+	}
+
+	/**
+	 * 	补齐响应头：长度或chunked，以及Connection。
+	 * @param response
+	 */
+	private void prepareResponse(HttpResponse response) {
+		// 上一个响应还没写完又来了一个，连接状态已经说不清了，结束后直接关闭。
+		if (this.responseStarted || !this.requestComplete) {
+			this.closeAfterResponse = true;
+		}
+		this.responseStarted = true;
+
+		boolean hasLength = HttpUtil.isContentLengthSet(response);
+		boolean chunked = HttpUtil.isTransferEncodingChunked(response);
+		if (!hasLength && !chunked) {
+			if (response instanceof FullHttpResponse full) {
+				HttpUtil.setContentLength(response, full.content().readableBytes());
+			} else if (this.http10) {
+				// HTTP/1.0 只能靠断开连接来标记响应结束
+				this.closeAfterResponse = true;
+			} else {
+				HttpUtil.setTransferEncodingChunked(response, true);
+			}
+		}
+		response.headers().set(HttpHeaderNames.CONNECTION,
+				this.closeAfterResponse ? HttpHeaderValues.CLOSE : HttpHeaderValues.KEEP_ALIVE);
+	}
+}
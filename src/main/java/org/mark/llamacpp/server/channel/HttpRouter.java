@@ -0,0 +1,392 @@
+package org.mark.llamacpp.server.channel;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mark.llamacpp.server.exception.RequestMethodException;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+
+/**
+ * 	基于基数树（radix trie）的路由表。控制器在 {@link org.mark.llamacpp.server.controller.BaseController#registerRoutes}
+ * 	里按 请求方法 + 路径 注册处理函数，全部注册完以后调用 {@link #compile()} 把单链的节点合并成一段，之后只读。
+ * 	<p>
+ * 	查找按路径逐段下降，耗时只和路径长度有关，和注册了多少路由、注册顺序都无关：
+ * 	<ul>
+ * 	<li>查询参数和结尾的 '/' 不参与匹配；</li>
+ * 	<li>{name} 匹配到下一个 '/' 为止，值通过 {@link Match#getParam} 取得（已做 URL 解码）；</li>
+ * 	<li>同一个位置静态路径优先于参数；</li>
+ * 	<li>路径存在但请求方法不对时返回 {@link Status#METHOD_NOT_ALLOWED} 和允许的方法。</li>
+ * 	</ul>
+ * 	每个路由带一个请求计数，由 /metrics 输出。
+ */
+public final class HttpRouter {
+
+	/**
+	 * 	只需要请求本身的处理函数。
+	 */
+	@FunctionalInterface
+	public interface Handler {
+		void handle(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException;
+	}
+
+	/**
+	 * 	需要路径参数的处理函数。
+	 */
+	@FunctionalInterface
+	public interface ParamHandler {
+		void handle(ChannelHandlerContext ctx, FullHttpRequest request, Match match) throws RequestMethodException;
+	}
+
+	public enum Status {
+		FOUND,
+		NOT_FOUND,
+		METHOD_NOT_ALLOWED
+	}
+
+	private static final Match NOT_FOUND = new Match(Status.NOT_FOUND, null, null, null);
+
+	private final Node root = new Node("");
+
+	private final List<Route> routes = new ArrayList<>();
+
+	private int maxParams;
+
+	private volatile boolean compiled;
+
+	public HttpRouter() {
+
+	}
+
+	public void get(String pattern, Handler handler) {
+		this.add(HttpMethod.GET, pattern, handler);
+	}
+
+	public void post(String pattern, Handler handler) {
+		this.add(HttpMethod.POST, pattern, handler);
+	}
+
+	public void add(HttpMethod method, String pattern, Handler handler) {
+		this.add(method, pattern, (ctx, request, match) -> handler.handle(ctx, request));
+	}
+
+	/**
+	 * 	注册一个路由。
+	 * @param method
+	 * @param pattern 以 '/' 开头，参数段写成 {name}，例如 /api/node/{nodeId}/status
+	 * @param handler
+	 */
+	public synchronized void add(HttpMethod method, String pattern, ParamHandler handler) {
+		if (this.compiled) {
+			throw new IllegalStateException("路由表已经编译，不能再注册: " + pattern);
+		}
+		if (method == null || handler == null || pattern == null || !pattern.startsWith("/")) {
+			throw new IllegalArgumentException("无效的路由: " + method + " " + pattern);
+		}
+		String path = trimTrailingSlash(pattern);
+		List<String> names = new ArrayList<>();
+		Node node = this.root;
+		int i = 0;
+		while (i < path.length()) {
+			char c = path.charAt(i);
+			if (c == '{') {
+				int close = path.indexOf('}', i);
+				if (path.charAt(i - 1) != '/' || close < 0 || close == i + 1
+						|| (close + 1 < path.length() && path.charAt(close + 1) != '/')) {
+					throw new IllegalArgumentException("参数必须占据一整段: " + pattern);
+				}
+				if (node.param == null) {
+					node.param = new Node("");
+				}
+				node = node.param;
+				names.add(path.substring(i + 1, close));
+				i = close + 1;
+			} else {
+				node = node.child(c);
+				i++;
+			}
+		}
+		if (node.routes.containsKey(method)) {
+			throw new IllegalStateException("重复的路由: " + method + " " + pattern);
+		}
+		Route route = new Route(method, path, handler, names.toArray(new String[0]));
+		node.routes.put(method, route);
+		this.routes.add(route);
+		this.maxParams = Math.max(this.maxParams, names.size());
+	}
+
+	/**
+	 * 	合并单链节点并冻结路由表，注册完全部路由后调用一次。
+	 */
+	public synchronized void compile() {
+		if (!this.compiled) {
+			this.root.compact();
+			this.compiled = true;
+		}
+	}
+
+	/**
+	 * 	查找请求对应的路由。
+	 * @param method
+	 * @param uri 请求行里的 URI，可以带查询参数
+	 * @return 不会返回 null
+	 */
+	public Match match(HttpMethod method, String uri) {
+		if (!this.compiled || uri == null || uri.isEmpty() || uri.charAt(0) != '/') {
+			return NOT_FOUND;
+		}
+		int end = uri.length();
+		for (int i = 0; i < end; i++) {
+			char c = uri.charAt(i);
+			if (c == '?' || c == '#') {
+				end = i;
+				break;
+			}
+		}
+		while (end > 1 && uri.charAt(end - 1) == '/') {
+			end--;
+		}
+		String[] values = this.maxParams == 0 ? null : new String[this.maxParams];
+		// 根节点的标签是空串，从第 0 个字符开始
+		Node node = find(this.root, uri, 0, end, values, 0);
+		if (node == null) {
+			return NOT_FOUND;
+		}
+		Route route = node.routes.get(method);
+		if (route == null) {
+			return new Match(Status.METHOD_NOT_ALLOWED, null, null, node.allow);
+		}
+		return new Match(Status.FOUND, route, values, node.allow);
+	}
+
+	/**
+	 * 	全部路由，按注册顺序。
+	 * @return
+	 */
+	public List<Route> getRoutes() {
+		return Collections.unmodifiableList(this.routes);
+	}
+
+	private static Node find(Node node, String path, int pos, int end, String[] values, int depth) {
+		if (pos == end) {
+			return node.routes.isEmpty() ? null : node;
+		}
+		int k = Arrays.binarySearch(node.keys, path.charAt(pos));
+		if (k >= 0) {
+			Node child = node.children[k];
+			String label = child.label;
+			if (end - pos >= label.length() && path.regionMatches(pos, label, 0, label.length())) {
+				Node found = find(child, path, pos + label.length(), end, values, depth);
+				if (found != null) {
+					return found;
+				}
+			}
+		}
+		if (node.param != null) {
+			int stop = path.indexOf('/', pos);
+			if (stop < 0 || stop > end) {
+				stop = end;
+			}
+			if (stop > pos) {
+				Node found = find(node.param, path, stop, end, values, depth + 1);
+				if (found != null) {
+					values[depth] = path.substring(pos, stop);
+					return found;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String trimTrailingSlash(String path) {
+		int end = path.length();
+		while (end > 1 && path.charAt(end - 1) == '/') {
+			end--;
+		}
+		return path.substring(0, end);
+	}
+
+	/**
+	 * 	树的节点。label 是从父节点到这里的静态字符串，参数节点的 label 为空。
+	 */
+	private static final class Node {
+		private String label;
+		private char[] keys = new char[0];
+		private Node[] children = new Node[0];
+		private Node param;
+		private final Map<HttpMethod, Route> routes = new LinkedHashMap<>(2);
+		/**
+		 * 	Allow 头的值
+		 */
+		private String allow;
+
+		private Node(String label) {
+			this.label = label;
+		}
+
+		private Node child(char c) {
+			for (int i = 0; i < this.keys.length; i++) {
+				if (this.keys[i] == c) {
+					return this.children[i];
+				}
+			}
+			Node node = new Node(String.valueOf(c));
+			this.keys = Arrays.copyOf(this.keys, this.keys.length + 1);
+			this.children = Arrays.copyOf(this.children, this.children.length + 1);
+			this.keys[this.keys.length - 1] = c;
+			this.children[this.children.length - 1] = node;
+			return node;
+		}
+
+		private void compact() {
+			for (Node child : this.children) {
+				// 只有一个静态子节点、自己又不是路由终点的节点并进子节点
+				while (child.children.length == 1 && child.param == null && child.routes.isEmpty()) {
+					Node only = child.children[0];
+					child.label = child.label + only.label;
+					child.keys = only.keys;
+					child.children = only.children;
+					child.param = only.param;
+					child.routes.putAll(only.routes);
+				}
+				child.compact();
+			}
+			if (this.param != null) {
+				this.param.compact();
+			}
+			// 按首字符排序，查找时二分
+			Integer[] order = new Integer[this.keys.length];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> Character.compare(this.keys[a], this.keys[b]));
+			char[] keys = new char[order.length];
+			Node[] children = new Node[order.length];
+			for (int i = 0; i < order.length; i++) {
+				keys[i] = this.keys[order[i]];
+				children[i] = this.children[order[i]];
+			}
+			this.keys = keys;
+			this.children = children;
+			if (!this.routes.isEmpty()) {
+				StringBuilder allow = new StringBuilder();
+				for (HttpMethod method : this.routes.keySet()) {
+					if (allow.length() > 0) {
+						allow.append(", ");
+					}
+					allow.append(method.name());
+				}
+				this.allow = allow.toString();
+			}
+		}
+	}
+
+	/**
+	 * 	注册的一个路由。
+	 */
+	public static final class Route {
+		private final HttpMethod method;
+		private final String pattern;
+		private final ParamHandler handler;
+		private final String[] paramNames;
+		private final LongAdder requests = new LongAdder();
+
+		private Route(HttpMethod method, String pattern, ParamHandler handler, String[] paramNames) {
+			this.method = method;
+			this.pattern = pattern;
+			this.handler = handler;
+			this.paramNames = paramNames;
+		}
+
+		public HttpMethod getMethod() {
+			return this.method;
+		}
+
+		public String getPattern() {
+			return this.pattern;
+		}
+
+		/**
+		 * 	分发到这个路由的请求数。
+		 * @return
+		 */
+		public long getRequestCount() {
+			return this.requests.sum();
+		}
+	}
+
+	/**
+	 * 	一次查找的结果。
+	 */
+	public static final class Match {
+		private final Status status;
+		private final Route route;
+		private final String[] values;
+		private final String allow;
+
+		private Match(Status status, Route route, String[] values, String allow) {
+			this.status = status;
+			this.route = route;
+			this.values = values;
+			this.allow = allow;
+		}
+
+		public Status getStatus() {
+			return this.status;
+		}
+
+		/**
+		 * 	匹配到的路由，只有 {@link Status#FOUND} 时不为 null。
+		 * @return
+		 */
+		public Route getRoute() {
+			return this.route;
+		}
+
+		/**
+		 * 	路径上允许的请求方法，逗号分隔，用作 Allow 头。
+		 * @return
+		 */
+		public String getAllow() {
+			return this.allow;
+		}
+
+		/**
+		 * 	取路径参数。
+		 * @param name 注册时 {name} 里的名字
+		 * @return 没有这个参数时返回 null
+		 */
+		public String getParam(String name) {
+			if (this.route == null) {
+				return null;
+			}
+			String[] names = this.route.paramNames;
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name)) {
+					return URLDecoder.decode(this.values[i], StandardCharsets.UTF_8);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * 	计数并调用路由的处理函数。
+		 * @param ctx
+		 * @param request
+		 * @throws RequestMethodException
+		 */
+		public void dispatch(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+			this.route.requests.increment();
+			this.route.handler.handle(ctx, request, this);
+		}
+	}
+}
@@ -1,7 +1,5 @@
 package org.mark.llamacpp.server.channel;
 
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
@@ -132,7 +130,7 @@ public class LlamaRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 				return;
 			}
 			
-			this.sendJsonResponse(ctx, ApiResponse.error("404 Not Found"));
+			this.sendJsonResponse(ctx, HttpResponseStatus.NOT_FOUND, ApiResponse.error("404 Not Found"));
 		} catch (Exception e) {
 			logger.info("处理API请求时发生错误", e);
 			this.sendJsonResponse(ctx, ApiResponse.error("服务器内部错误"));
@@ -149,12 +147,7 @@ public class LlamaRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
         response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "Content-Type, Authorization");
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
         
-        ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) {
-                ctx.close();
-            }
-        });
+        ctx.writeAndFlush(response);
     }
 
  /**
@@ -163,10 +156,14 @@ public class LlamaRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
   * @param data
   */
  private void sendJsonResponse(ChannelHandlerContext ctx, Object data) {
+		this.sendJsonResponse(ctx, HttpResponseStatus.OK, data);
+	}
+
+	private void sendJsonResponse(ChannelHandlerContext ctx, HttpResponseStatus status, Object data) {
 		String json = JsonUtil.toJson(data);
 		byte[] content = json.getBytes(CharsetUtil.UTF_8);
 
-		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
 		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
 		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
 		// 添加CORS头
@@ -175,12 +172,7 @@ public class LlamaRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "Content-Type, Authorization");
 		response.content().writeBytes(content);
 
-		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(response);
 	}
 
 	@Override
@@ -0,0 +1,223 @@
+package org.mark.llamacpp.server.channel;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.net.ssl.SSLEngine;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+/**
+ * 	所有监听端口共用的 Netty 线程组。
+ * 	<p>
+ * 	OpenAI、Anthropic、Ollama、LMStudio、MCP 各个端口原来各自创建一对 boss/worker 线程组，
+ * 	每组默认 CPU 核数 x2 个线程，全部打开时光空闲的事件循环线程就有几十个。这里只保留一个 boss 线程组（1 个线程，负责 accept）
+ * 	和一个按配置大小创建的 worker 线程组，各端口通过 {@link #bind} 绑定，只需要提供自己的 pipeline。
+ * 	<p>
+ * 	Linux 上 netty-all 自带的 epoll 本地库可用时使用 epoll，否则（Windows、macOS、本地库加载失败、配置关闭）使用 NIO。
+ * 	单个端口停止时只关闭自己的 Channel 和上面的连接，线程组在进程退出时统一关闭。
+ */
+public class NettyTransport {
+
+	private static final Logger logger = LoggerFactory.getLogger(NettyTransport.class);
+
+	private static volatile NettyTransport instance;
+
+	public static NettyTransport getInstance() {
+		if (instance == null) {
+			synchronized (NettyTransport.class) {
+				if (instance == null) {
+					instance = create(LlamaServer.getEventLoopThreads(), LlamaServer.isNativeTransportEnabled());
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * 	由各端口提供的 pipeline，HTTPS 的 SslHandler 已经加在最前面。
+	 */
+	@FunctionalInterface
+	public interface PipelineInitializer {
+		void initPipeline(SocketChannel ch, ChannelPipeline pipeline) throws Exception;
+	}
+
+	private final boolean nativeTransport;
+
+	private final int workerThreads;
+
+	private final EventLoopGroup bossGroup;
+
+	private final EventLoopGroup workerGroup;
+
+	private final Class<? extends ServerChannel> serverChannelClass;
+
+	/**
+	 * 	当前绑定着的端口
+	 */
+	private final List<Channel> serverChannels = new CopyOnWriteArrayList<>();
+
+	/**
+	 * 	创建线程组。
+	 * @param workerThreads worker 线程数，小于等于 0 时使用 CPU 核数
+	 * @param preferNative 为 true 时在 epoll 可用的情况下使用 epoll
+	 * @return
+	 */
+	public static NettyTransport create(int workerThreads, boolean preferNative) {
+		int threads = workerThreads > 0 ? workerThreads : Runtime.getRuntime().availableProcessors();
+		boolean nativeTransport = preferNative && isEpollAvailable();
+		DefaultThreadFactory bossFactory = new DefaultThreadFactory("llamahub-boss", true);
+		DefaultThreadFactory workerFactory = new DefaultThreadFactory("llamahub-worker", true);
+		NettyTransport transport;
+		if (nativeTransport) {
+			transport = new NettyTransport(true, threads, new EpollEventLoopGroup(1, bossFactory),
+					new EpollEventLoopGroup(threads, workerFactory), EpollServerSocketChannel.class);
+		} else {
+			transport = new NettyTransport(false, threads, new NioEventLoopGroup(1, bossFactory),
+					new NioEventLoopGroup(threads, workerFactory), NioServerSocketChannel.class);
+		}
+		logger.info("Netty传输: {}，worker线程数: {}", transport.getTransportName(), threads);
+		return transport;
+	}
+
+	private NettyTransport(boolean nativeTransport, int workerThreads, EventLoopGroup bossGroup, EventLoopGroup workerGroup,
+			Class<? extends ServerChannel> serverChannelClass) {
+		this.nativeTransport = nativeTransport;
+		this.workerThreads = workerThreads;
+		this.bossGroup = bossGroup;
+		this.workerGroup = workerGroup;
+		this.serverChannelClass = serverChannelClass;
+	}
+
+	private static boolean isEpollAvailable() {
+		try {
+			if (Epoll.isAvailable()) {
+				return true;
+			}
+			Throwable cause = Epoll.unavailabilityCause();
+			if (cause != null && System.getProperty("os.name", "").toLowerCase().contains("linux")) {
+				logger.info("epoll不可用，使用NIO: {}", cause.toString());
+			}
+		} catch (Throwable e) {
+			logger.info("epoll不可用，使用NIO: {}", e.toString());
+		}
+		return false;
+	}
+
+	/**
+	 * 	绑定一个端口。
+	 * @param name 日志里用的名字
+	 * @param host 为 null 时监听所有地址
+	 * @param port
+	 * @param sslContext 不为 null 时在 pipeline 最前面加上 SslHandler
+	 * @param initializer 端口自己的 pipeline
+	 * @return 绑定的结果，失败时 cause 不为 null
+	 */
+	public ChannelFuture bind(String name, String host, int port, SslContext sslContext, PipelineInitializer initializer) {
+		// 这个端口上的连接，端口关闭时一起关闭（原来关闭线程组时会连带关闭）
+		ChannelGroup children = new DefaultChannelGroup(name, GlobalEventExecutor.INSTANCE);
+		ServerBootstrap bootstrap = new ServerBootstrap();
+		bootstrap.group(this.bossGroup, this.workerGroup)
+				.channel(this.serverChannelClass)
+				.option(ChannelOption.SO_BACKLOG, 1024)
+				.childOption(ChannelOption.SO_KEEPALIVE, true)
+				.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, LlamaServer.getWriteBufferWaterMark())
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) throws Exception {
+						children.add(ch);
+						ChannelPipeline pipeline = ch.pipeline();
+						if (sslContext != null) {
+							SSLEngine engine = sslContext.newEngine(ch.alloc());
+							pipeline.addLast(new SslHandler(engine));
+						}
+						initializer.initPipeline(ch, pipeline);
+					}
+					@Override
+					public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+						logger.info("Failed to initialize a channel. Closing: " + ctx.channel(), cause);
+						ctx.close();
+					}
+				});
+		ChannelFuture future = host == null ? bootstrap.bind(port) : bootstrap.bind(new InetSocketAddress(host, port));
+		future.addListener((ChannelFuture f) -> {
+			if (f.isSuccess()) {
+				Channel channel = f.channel();
+				this.serverChannels.add(channel);
+				channel.closeFuture().addListener(c -> {
+					this.serverChannels.remove(channel);
+					children.close();
+				});
+				logger.info("{}服务已绑定端口 {}（{}）", name, port, this.getTransportName());
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * 	绑定一个端口，监听所有地址。
+	 */
+	public ChannelFuture bind(String name, int port, SslContext sslContext, PipelineInitializer initializer) {
+		return this.bind(name, null, port, sslContext, initializer);
+	}
+
+	public boolean isNative() {
+		return this.nativeTransport;
+	}
+
+	public String getTransportName() {
+		return this.nativeTransport ? "epoll" : "nio";
+	}
+
+	public int getWorkerThreads() {
+		return this.workerThreads;
+	}
+
+	public EventLoopGroup getWorkerGroup() {
+		return this.workerGroup;
+	}
+
+	/**
+	 * 	当前绑定着的端口数。
+	 * @return
+	 */
+	public int getBoundCount() {
+		return this.serverChannels.size();
+	}
+
+	/**
+	 * 	关闭全部端口和线程组，只在进程退出时调用。
+	 */
+	public void shutdown() {
+		for (Channel channel : this.serverChannels) {
+			channel.close().syncUninterruptibly();
+		}
+		this.bossGroup.shutdownGracefully().syncUninterruptibly();
+		this.workerGroup.shutdownGracefully().syncUninterruptibly();
+	}
+}
@@ -1,17 +1,21 @@
 package org.mark.llamacpp.server.channel;
 
 import java.io.IOException;
+import java.util.EnumSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.service.AnthropicService;
 import org.mark.llamacpp.server.service.ChatStreamSession;
+import org.mark.llamacpp.server.service.EmbeddingService;
 import org.mark.llamacpp.server.service.OpenAIService;
+import org.mark.llamacpp.server.service.StreamingEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.DecoderException;
@@ -31,6 +35,8 @@ import io.netty.util.ReferenceCountUtil;
  * 负责在 Netty 管线里拦截 OpenAI 聊天接口的分块请求体。
  * 这个 Handler 自己不直接解析完整 JSON，而是把每个 HttpContent 片段转交给 ChatStreamSession，
  * 让后者一边接收请求体、一边解析 model / stream 等关键字段，并尽早建立到 llama.cpp 的转发连接。
+ * 除了聊天补全，构造时给出的其它 {@link StreamingEndpoint} 也在这里接管。
+ * 会话的输入队列快满时暂停读取这个连接，不阻塞事件循环（所有端口共用）。
  */
 public class OpenAIChatStreamingHandler extends ChannelInboundHandlerAdapter {
 
@@ -38,6 +44,13 @@ public class OpenAIChatStreamingHandler extends ChannelInboundHandlerAdapter {
 
 	private final OpenAIService openAIService = new OpenAIService();
 	
+	private final AnthropicService anthropicService = new AnthropicService();
+	
+	/**
+	 * 	接管的端点
+	 */
+	private final Set<StreamingEndpoint> endpoints;
+	
 	/**
 	 * 	当前连接正在处理的聊天流式会话；当本次请求符合聊天补全+超大长度时才会创建。
 	 */
@@ -49,8 +62,19 @@ public class OpenAIChatStreamingHandler extends ChannelInboundHandlerAdapter {
 	private boolean intercepting;
 	
 	
+	/**
+	 * 	接管聊天补全、文本补全和嵌入，Ollama、LM Studio 端口用。
+	 */
 	public OpenAIChatStreamingHandler() {
-		
+		this(EnumSet.of(StreamingEndpoint.CHAT_COMPLETIONS, StreamingEndpoint.COMPLETIONS, StreamingEndpoint.EMBEDDINGS));
+	}
+	
+	/**
+	 * 	
+	 * @param endpoints 接管的端点
+	 */
+	public OpenAIChatStreamingHandler(Set<StreamingEndpoint> endpoints) {
+		this.endpoints = endpoints;
 	}
 
 	@Override
@@ -64,8 +88,14 @@ public class OpenAIChatStreamingHandler extends ChannelInboundHandlerAdapter {
 		HttpObject httpObject = (HttpObject) msg;
 		// 1、没有启用接管
 		if (!this.intercepting && httpObject instanceof HttpRequest request) {
-			// 只有开启聊天流式能力，且命中 chat completion 路径时，才进入“边收边转发”模式。
-			if (!LlamaServer.isChatStreamingEnabled() || !this.isChatUri(request.uri())) {
+			// 只有开启聊天流式能力，且命中接管的端点时，才进入“边收边转发”模式。
+			StreamingEndpoint endpoint = StreamingEndpoint.of(request.uri());
+			if (!LlamaServer.isChatStreamingEnabled() || endpoint == null || !this.endpoints.contains(endpoint)) {
+				ctx.fireChannelRead(msg);
+				return;
+			}
+			// 嵌入缓存要看到完整的 input，长度已知且不大的嵌入请求交给后面聚合以后处理
+			if (endpoint == StreamingEndpoint.EMBEDDINGS && EmbeddingService.getInstance().accepts(request)) {
 				ctx.fireChannelRead(msg);
 				return;
 			}
@@ -89,7 +119,8 @@ public class OpenAIChatStreamingHandler extends ChannelInboundHandlerAdapter {
 			}
 
 			// 会话启动后会在独立线程中读取 requestBodyStream，并在识别出 model 后连接目标 llama.cpp 进程。
-			this.currentSession = new ChatStreamSession(ctx, this.openAIService, request.method(), this.copyHeaders(request));
+			this.currentSession = new ChatStreamSession(ctx, this.openAIService, this.anthropicService, endpoint, request.uri(),
+					request.method(), this.copyHeaders(request));
 			this.currentSession.start();
 		}
 		// 2. 没有启用接管，也没有相应的会话，直接跳过。
@@ -102,7 +133,14 @@ public class OpenAIChatStreamingHandler extends ChannelInboundHandlerAdapter {
 		try {
 			if (httpObject instanceof HttpContent content) {
 				// Netty 可能把请求体拆成多个 chunk，这里逐块喂给 ChatStreamSession。
-				this.currentSession.offer(content.content());
+				ChatStreamSession session = this.currentSession;
+				session.offer(content.content());
+				if (session.isSaturated() && ctx.channel().config().isAutoRead()) {
+					// 后台线程跟不上，先停止读取，队列消费下去以后再恢复
+					Channel channel = ctx.channel();
+					channel.config().setAutoRead(false);
+					session.onDrained(() -> channel.eventLoop().execute(() -> channel.config().setAutoRead(true)));
+				}
 				// 请求结束的处理。
 				if (httpObject instanceof LastHttpContent) {
 					// 收到最后一个分块后通知会话“输入结束”，让后台线程继续完成转发和响应回写。
@@ -146,20 +184,6 @@ public class OpenAIChatStreamingHandler extends ChannelInboundHandlerAdapter {
 		ctx.close();
 	}
 	
-	/**
-	 * 	是否为聊天补全的端点。
-	 * @param uri
-	 * @return
-	 */
-	private boolean isChatUri(String uri) {
-		if (uri == null) {
-			return false;
-		}
-		return uri.startsWith("/v1/chat/completions")
-				|| uri.startsWith("/v1/chat/completion")
-				|| uri.startsWith("/chat/completion");
-	}
-	
 	/**
 	 * 	复制请求头。
 	 * @param request
@@ -174,7 +198,7 @@ public class OpenAIChatStreamingHandler extends ChannelInboundHandlerAdapter {
 	}
 	
 	/**
-	 * 	验证API的密钥，但是实际没啥用。
+	 * 	验证API的密钥，但是实际没啥用。和 LlamaRouterHandler 一样也接受 Anthropic 的 x-api-key。
 	 * @param request
 	 * @return
 	 */
@@ -187,11 +211,15 @@ public class OpenAIChatStreamingHandler extends ChannelInboundHandlerAdapter {
 			return false;
 		}
 		String auth = request.headers().get(HttpHeaderNames.AUTHORIZATION);
-		if (auth == null) {
-			return false;
+		if (auth != null) {
+			auth = auth.replace("Bearer ", "");
+			return expected.equals(auth);
+		}
+		String apiKey = request.headers().get("x-api-key");
+		if (apiKey != null && !apiKey.isBlank()) {
+			return expected.equals(apiKey);
 		}
-		auth = auth.replace("Bearer ", "");
-		return expected.equals(auth);
+		return false;
 	}
 
 	private void sendCorsPreflight(ChannelHandlerContext ctx) {
@@ -201,13 +229,7 @@ public class OpenAIChatStreamingHandler extends ChannelInboundHandlerAdapter {
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "Content-Type, Authorization");
 		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
 
-		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				// 预检响应发完即可关闭连接，避免保留一个空闲 HTTP 通道。
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(response);
 	}
 
 	private void resetSession() {
@@ -0,0 +1,386 @@
+package org.mark.llamacpp.server.channel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * 	内置网页资源（classpath 下的 /web）的内存表。启动时读一遍，之后只读。
+ * 	<p>
+ * 	每个文件保存：
+ * 	<ul>
+ * 	<li>原始字节和预先压缩好的 gzip 字节（图片、字体这类已经压缩过的格式，或者压缩后省不了多少的不保存 gzip）；</li>
+ * 	<li>按内容计算的 ETag，浏览器带 If-None-Match 回来时内容没变就返回 304；</li>
+ * 	<li>Cache-Control：文件名里带内容哈希的（比如 woff2 目录下的字体），或者请求带了 ?v= 版本号的，
+ * 	可以长期缓存；其余的每次用 ETag 重新验证，升级后马上生效。</li>
+ * 	</ul>
+ * 	响应是一次写出的 FullHttpResponse，字节数组直接包装，不复制。
+ */
+public class WebAssets {
+
+	private static final Logger logger = LoggerFactory.getLogger(WebAssets.class);
+
+	private static final String ROOT = "/web";
+
+	private static final String CACHE_IMMUTABLE = "public, max-age=31536000, immutable";
+
+	private static final String CACHE_REVALIDATE = "no-cache";
+
+	/**
+	 * 	gzip 至少要省下这么多才保存
+	 */
+	private static final double MIN_SAVING = 0.1;
+
+	/**
+	 * 	本身已经压缩过的格式
+	 */
+	private static final Set<String> PRECOMPRESSED = Set.of("png", "jpg", "jpeg", "gif", "webp", "woff", "woff2", "zip", "gz");
+
+	private static volatile WebAssets instance;
+
+	public static WebAssets getInstance() {
+		if (instance == null) {
+			synchronized (WebAssets.class) {
+				if (instance == null) {
+					instance = new WebAssets(ROOT);
+				}
+			}
+		}
+		return instance;
+	}
+
+	private final Map<String, Asset> assets;
+
+	private final Set<String> directories;
+
+	private final long rawBytes;
+
+	private final long compressedBytes;
+
+	/**
+	 * 	读取 classpath 下指定目录里的全部文件。
+	 * @param root 例如 /web
+	 */
+	public WebAssets(String root) {
+		Map<String, Asset> assets = new HashMap<>();
+		Set<String> directories = new HashSet<>();
+		long raw = 0;
+		long compressed = 0;
+		long t0 = System.currentTimeMillis();
+		try {
+			URL url = WebAssets.class.getResource(root);
+			if (url == null) {
+				logger.info("找不到网页资源目录: {}", root);
+			} else {
+				URI uri = url.toURI();
+				FileSystem jar = null;
+				Path base;
+				if ("jar".equals(uri.getScheme())) {
+					try {
+						jar = FileSystems.newFileSystem(uri, Map.of());
+					} catch (FileSystemAlreadyExistsException e) {
+						jar = FileSystems.getFileSystem(uri);
+					}
+					base = jar.getPath(root);
+				} else {
+					base = Paths.get(uri);
+				}
+				try (Stream<Path> walk = Files.walk(base)) {
+					for (Path p : (Iterable<Path>) walk::iterator) {
+						String rel = base.relativize(p).toString().replace('\\', '/');
+						String path = "/" + rel;
+						if (Files.isDirectory(p)) {
+							directories.add(rel.isEmpty() ? "/" : path);
+							continue;
+						}
+						Asset asset = load(path, Files.readAllBytes(p));
+						assets.put(path, asset);
+						raw += asset.raw.length;
+						compressed += asset.gzip == null ? asset.raw.length : asset.gzip.length;
+					}
+				}
+			}
+		} catch (Exception e) {
+			logger.info("加载网页资源失败", e);
+		}
+		this.assets = Collections.unmodifiableMap(assets);
+		this.directories = Collections.unmodifiableSet(directories);
+		this.rawBytes = raw;
+		this.compressedBytes = compressed;
+		logger.info("网页资源已加载: {} 个文件，{} KB，压缩后 {} KB，耗时 {} ms", assets.size(), raw / 1024, compressed / 1024,
+				System.currentTimeMillis() - t0);
+	}
+
+	/**
+	 * 	按请求路径（已解码、不带查询参数）取文件。
+	 * @param path
+	 * @return 不存在时返回 null
+	 */
+	public Asset get(String path) {
+		return this.assets.get(path);
+	}
+
+	/**
+	 * 	路径是不是一个目录。
+	 * @param path
+	 * @return
+	 */
+	public boolean isDirectory(String path) {
+		if (path.length() > 1 && path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return this.directories.contains(path);
+	}
+
+	public int size() {
+		return this.assets.size();
+	}
+
+	/**
+	 * 	全部文件的原始大小。
+	 * @return
+	 */
+	public long getRawBytes() {
+		return this.rawBytes;
+	}
+
+	/**
+	 * 	全部文件按能压缩就压缩计算的大小。
+	 * @return
+	 */
+	public long getCompressedBytes() {
+		return this.compressedBytes;
+	}
+
+	/**
+	 * 	按请求头回复一个文件：If-None-Match 命中时 304，客户端接受 gzip 并且有压缩版本时发压缩版本。
+	 * @param ctx
+	 * @param request
+	 * @param asset
+	 */
+	public void send(ChannelHandlerContext ctx, FullHttpRequest request, Asset asset) {
+		boolean gzip = asset.gzip != null && acceptsGzip(request.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+		String etag = gzip ? asset.gzipEtag : asset.etag;
+		String cacheControl = asset.fingerprinted || hasVersion(request.uri()) ? CACHE_IMMUTABLE : CACHE_REVALIDATE;
+
+		FullHttpResponse response;
+		if (this.notModified(request.headers().get(HttpHeaderNames.IF_NONE_MATCH), asset)) {
+			response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+			response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+		} else {
+			byte[] body = gzip ? asset.gzip : asset.raw;
+			response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.wrappedBuffer(body));
+			response.headers().set(HttpHeaderNames.CONTENT_TYPE, asset.contentType);
+			response.headers().set(HttpHeaderNames.CONTENT_LENGTH, body.length);
+			if (gzip) {
+				response.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+			}
+		}
+		response.headers().set(HttpHeaderNames.ETAG, etag);
+		response.headers().set(HttpHeaderNames.CACHE_CONTROL, cacheControl);
+		if (asset.gzip != null) {
+			response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+		}
+		LlamaServer.setCorsHeaders(response.headers());
+		ctx.writeAndFlush(response);
+	}
+
+	/**
+	 * 	If-None-Match 里有这个文件任一版本的 ETag。两个版本内容相同，只是编码不同。
+	 */
+	private boolean notModified(String ifNoneMatch, Asset asset) {
+		if (ifNoneMatch == null || ifNoneMatch.isBlank()) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(asset.etag) || tag.equals(asset.gzipEtag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String part : acceptEncoding.split(",")) {
+			String[] kv = part.trim().split(";");
+			String coding = kv[0].trim().toLowerCase(Locale.ROOT);
+			if (!coding.equals("gzip") && !coding.equals("*")) {
+				continue;
+			}
+			for (int i = 1; i < kv.length; i++) {
+				String param = kv[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						if (Double.parseDouble(param.substring(2)) <= 0) {
+							return false;
+						}
+					} catch (NumberFormatException e) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 	查询参数里有 v=，页面引用时带了版本号。
+	 */
+	private static boolean hasVersion(String uri) {
+		int q = uri.indexOf('?');
+		if (q < 0) {
+			return false;
+		}
+		for (String kv : uri.substring(q + 1).split("&")) {
+			if (kv.startsWith("v=") && kv.length() > 2) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Asset load(String path, byte[] raw) throws IOException, NoSuchAlgorithmException {
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		String ext = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+		byte[] gzip = null;
+		if (!PRECOMPRESSED.contains(ext) && raw.length > 0) {
+			byte[] compressed = gzip(raw);
+			if (compressed.length <= raw.length * (1 - MIN_SAVING)) {
+				gzip = compressed;
+			}
+		}
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest(raw);
+		String hash = Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 12));
+		return new Asset(path, LlamaServer.getContentType(name), raw, gzip, "\"" + hash + "\"", "\"" + hash + "-gz\"",
+				isFingerprinted(name));
+	}
+
+	private static byte[] gzip(byte[] raw) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 3 + 64);
+		try (GZIPOutputStream gz = new GZIPOutputStream(out, 8192) {
+			{
+				this.def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		}) {
+			gz.write(raw);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * 	文件名里有一段至少 8 个字符、字母数字混合的内容哈希，例如 L0x5DF4xlVMF-BfR8bXMIjhEq3-OXg.woff2。
+	 */
+	static boolean isFingerprinted(String name) {
+		int dot = name.lastIndexOf('.');
+		String stem = dot > 0 ? name.substring(0, dot) : name;
+		for (String token : stem.split("[-_.]")) {
+			if (token.length() < 8) {
+				continue;
+			}
+			boolean letter = false;
+			boolean digit = false;
+			for (int i = 0; i < token.length(); i++) {
+				char c = token.charAt(i);
+				letter |= Character.isLetter(c);
+				digit |= Character.isDigit(c);
+			}
+			if (letter && digit) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 	一个文件。
+	 */
+	public static final class Asset {
+		private final String path;
+		private final String contentType;
+		private final byte[] raw;
+		private final byte[] gzip;
+		private final String etag;
+		private final String gzipEtag;
+		private final boolean fingerprinted;
+
+		private Asset(String path, String contentType, byte[] raw, byte[] gzip, String etag, String gzipEtag, boolean fingerprinted) {
+			this.path = path;
+			this.contentType = contentType;
+			this.raw = raw;
+			this.gzip = gzip;
+			this.etag = etag;
+			this.gzipEtag = gzipEtag;
+			this.fingerprinted = fingerprinted;
+		}
+
+		public String getPath() {
+			return this.path;
+		}
+
+		public String getContentType() {
+			return this.contentType;
+		}
+
+		public int getSize() {
+			return this.raw.length;
+		}
+
+		/**
+		 * 	压缩后的大小，没有压缩版本时返回 -1。
+		 * @return
+		 */
+		public int getCompressedSize() {
+			return this.gzip == null ? -1 : this.gzip.length;
+		}
+
+		public String getEtag() {
+			return this.etag;
+		}
+
+		public boolean isFingerprinted() {
+			return this.fingerprinted;
+		}
+	}
+}
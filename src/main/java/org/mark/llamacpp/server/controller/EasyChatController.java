@@ -13,6 +13,7 @@ import java.util.UUID;
 import java.util.stream.Stream;
 
 import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.channel.HttpRouter;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.JsonUtil;
@@ -48,25 +49,11 @@ public class EasyChatController implements BaseController {
 	private static final String PATH_SYNC = "/api/easy-chat/sync";
 
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request)
-			throws RequestMethodException {
-		if (uri.startsWith(PATH_STATE_REVISION)) {
-			this.handleRevisionRequest(ctx, request);
-			return true;
-		}
-		if (uri.startsWith(PATH_CONVERSATION)) {
-			this.handleConversationRequest(ctx, request);
-			return true;
-		}
-		if (uri.startsWith(PATH_SYNC)) {
-			this.handleSyncRequest(ctx, request);
-			return true;
-		}
-		if (uri.startsWith(PATH_STATE)) {
-			this.handleStateRequest(ctx, request);
-			return true;
-		}
-		return false;
+	public void registerRoutes(HttpRouter router) {
+		router.get(PATH_STATE_REVISION, this::handleRevisionRequest);
+		router.get(PATH_CONVERSATION, this::handleConversationRequest);
+		router.post(PATH_SYNC, this::handleSyncRequest);
+		router.get(PATH_STATE, this::handleStateRequest);
 	}
 
 	private void handleStateRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
@@ -4,6 +4,7 @@ import java.util.Map;
 
 import org.mark.llamacpp.crawler.HuggingFaceModelCrawler;
 import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.channel.HttpRouter;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.ParamTool;
@@ -25,17 +26,9 @@ public class HuggingFaceController implements BaseController {
 	}
 	
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
-		if (uri.startsWith("/api/hf/search")) {
-			this.handleHFSearchRequest(ctx, request);
-			return true;
-		}
-		if (uri.startsWith("/api/hf/gguf")) {
-			this.handleHFGGUFRequest(ctx, request);
-			return true;
-		}
-		
-		return false;
+	public void registerRoutes(HttpRouter router) {
+		router.get("/api/hf/search", this::handleHFSearchRequest);
+		router.get("/api/hf/gguf", this::handleHFGGUFRequest);
 	}
 	
 	
@@ -25,6 +25,7 @@ import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
 import org.mark.llamacpp.server.NodeManager;
+import org.mark.llamacpp.server.channel.HttpRouter;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.struct.LlamaCppConfig;
@@ -60,52 +61,27 @@ public class LlamacppController implements BaseController {
 	/**
 	 * 	
 	 */
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+	@Override
+	public void registerRoutes(HttpRouter router) {
 		// 添加一个llamacpp
-		if (uri.startsWith("/api/llamacpp/add")) {
-			this.handleLlamaCppAdd(ctx, request);
-			return true;
-		}
+		router.post("/api/llamacpp/add", this::handleLlamaCppAdd);
 		// 移除
-		if (uri.startsWith("/api/llamacpp/remove")) {
-			this.handleLlamaCppRemove(ctx, request);
-			return true;
-		}
+		router.post("/api/llamacpp/remove", this::handleLlamaCppRemove);
 		// 列出全部
-		if (uri.startsWith("/api/llamacpp/list")) {
-			this.handleLlamaCppList(ctx, request);
-			return true;
-		}
+		router.get("/api/llamacpp/list", this::handleLlamaCppList);
 		// 执行测试
-		if (uri.startsWith("/api/llamacpp/test")) {
-			this.handleLlamaCppTest(ctx, request);
-			return true;
-		}
+		router.post("/api/llamacpp/test", this::handleLlamaCppTest);
 		
 		// 代码补全
-		if (uri.startsWith("/infill")) {
-			this.handleInfillRequest(ctx, request);
-			return true;
-		}
+		router.post("/infill", this::handleInfillRequest);
 		
 		// 获取最新 release
-		if (uri.startsWith("/api/llamacpp/release/latest")) {
-			this.handleLlamaCppReleaseLatest(ctx, request);
-			return true;
-		}
+		router.get("/api/llamacpp/release/latest", this::handleLlamaCppReleaseLatest);
 		
 		// 处理分词
-		if (uri.startsWith("/tokenize")) {
-			this.handleTokenizeRequest(ctx, request);
-			return true;
-		}
+		router.post("/tokenize", this::handleTokenizeRequest);
 		// 处理模板
-		if (uri.startsWith("/apply-template")) {
-			this.handleApplyTemplateRequest(ctx, request);
-			return true;
-		}
-		
-		return false;
+		router.post("/apply-template", this::handleApplyTemplateRequest);
 	}
 	
 	
@@ -21,11 +21,13 @@ import java.util.concurrent.TimeUnit;
 
 import org.mark.llamacpp.gguf.GGUFMetaData;
 import org.mark.llamacpp.gguf.GGUFModel;
+import org.mark.llamacpp.server.ConfigManager;
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaHubNode;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
 import org.mark.llamacpp.server.NodeManager;
+import org.mark.llamacpp.server.channel.HttpRouter;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.service.BenchmarkService;
 import org.mark.llamacpp.server.service.ModelRequestTracker;
@@ -67,79 +69,36 @@ public class ModelActionController implements BaseController {
 	}
 	
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+	public void registerRoutes(HttpRouter router) {
 		// 强制刷新模型列表API
-		if (uri.startsWith("/api/models/refresh")) {
-			this.handleRefreshModelListRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/models/refresh", this::handleRefreshModelListRequest);
 		// 列出全部的模型
-		if (uri.startsWith("/api/models/list")) {
-			this.handleModelListRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/models/list", this::handleModelListRequest);
 		// 查询已经被加载的模型
-		if (uri.startsWith("/api/models/loaded")) {
-			this.handleLoadedModelsRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/models/loaded", this::handleLoadedModelsRequest);
 		// 加载指定的模型
-		if (uri.startsWith("/api/models/load")) {
-			this.handleLoadModelRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/models/load", this::handleLoadModelRequest);
 		// 停止指定的运行中的模型
-		if (uri.startsWith("/api/models/stop")) {
-			this.handleStopModelRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/models/stop", this::handleStopModelRequest);
 		// 执行benchmark
-		if (uri.equals("/api/models/benchmark")) {
-			this.handleModelBenchmark(ctx, request);
-			return true;
-		}
+		router.post("/api/models/benchmark", this::handleModelBenchmark);
 		// 获取指定模型的测试记录
-		if (uri.startsWith("/api/models/benchmark/list")) {
-			this.handleModelBenchmarkList(ctx, request);
-			return true;
-		}
+		router.get("/api/models/benchmark/list", this::handleModelBenchmarkList);
 		// 查询指定的测试记录
-		if (uri.startsWith("/api/models/benchmark/get")) {
-			this.handleModelBenchmarkGet(ctx, request);
-			return true;
-		}
+		router.get("/api/models/benchmark/get", this::handleModelBenchmarkGet);
 		// 删除指定的测试记录
-		if (uri.startsWith("/api/models/benchmark/delete")) {
-			this.handleModelBenchmarkDelete(ctx, request);
-			return true;
-		}
-		if (uri.equals("/api/v2/models/benchmark")) {
-			this.handleModelBenchmarkV2(ctx, request);
-			return true;
-		}
+		router.post("/api/models/benchmark/delete", this::handleModelBenchmarkDelete);
+		router.post("/api/v2/models/benchmark", this::handleModelBenchmarkV2);
 
-		if (uri.startsWith("/api/v2/models/benchmark/get")) {
-			this.handleModelBenchmarkV2Get(ctx, request);
-			return true;
-		}
-		if (uri.startsWith("/api/v2/models/benchmark/delete")) {
-			this.handleModelBenchmarkV2Delete(ctx, request);
-			return true;
-		}
+		router.post("/api/v2/models/benchmark/load", this::handleModelBenchmarkV2Load);
+		router.get("/api/v2/models/benchmark/get", this::handleModelBenchmarkV2Get);
+		router.post("/api/v2/models/benchmark/delete", this::handleModelBenchmarkV2Delete);
 		
 		// 对应URL-GET：/metrics
 		// 客户端传入modelId作为参数
-		if (uri.startsWith("/api/models/metrics")) {
-			this.handleModelMetrics(ctx, request);
-			return true;
-		}
+		router.get("/api/models/metrics", this::handleModelMetrics);
 		// 对应URL-GET：/props
-		if (uri.startsWith("/api/models/props")) {
-			this.handleModelProps(ctx, request);
-			return true;
-		}
-		
-		return false;
+		router.get("/api/models/props", this::handleModelProps);
 	}
 	
 	/**
@@ -257,6 +216,7 @@ public class ModelActionController implements BaseController {
 	private List<Map<String, Object>> buildLocalModelList() {
 		LlamaServerManager manager = LlamaServerManager.getInstance();
 		List<GGUFModel> models = manager.listModel();
+		Map<String, Long> idleTtls = ConfigManager.getInstance().loadIdleTtlMap();
 
 		List<Map<String, Object>> modelList = new ArrayList<>();
 		for (GGUFModel model : models) {
@@ -280,6 +240,7 @@ public class ModelActionController implements BaseController {
 			modelInfo.put("name", modelName);
 			modelInfo.put("alias", model.getAlias());
 			modelInfo.put("favourite", model.isFavourite());
+			modelInfo.put("idleTtlSeconds", idleTtls.getOrDefault(modelId, 0L));
 			modelInfo.put("size", model.getSize());
 
 			boolean isMultimodal = mmproj != null;
@@ -539,6 +500,7 @@ public class ModelActionController implements BaseController {
 			modelData.put("nodeId", "local");
 			modelData.put("nodeName", "本机");
 			modelData.put("busy", ModelRequestTracker.getInstance().isModelBusy(modelId));
+			modelData.put("queuedCount", ModelRequestTracker.getInstance().getModelQueuedCount(modelId));
 
 			loadedModels.add(modelData);
 		}
@@ -958,6 +920,49 @@ public class ModelActionController implements BaseController {
 			}
 		}
 	}
+
+	/**
+	 * 	并发压测：多个客户端同时发送流式请求，统计首token时间、token间隔和端到端耗时的分位数。
+	 * 
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleModelBenchmarkV2Load(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.POST, "只支持POST请求");
+		try {
+			String content = request.content().toString(CharsetUtil.UTF_8);
+			if (content == null || content.trim().isEmpty()) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("请求体为空"));
+				return;
+			}
+			JsonObject json = JsonUtil.fromJson(content, JsonObject.class);
+			if (json == null) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("请求体解析失败"));
+				return;
+			}
+
+			String nodeId = JsonUtil.getJsonString(json, "nodeId");
+			if (nodeId != null && !nodeId.isBlank() && !"local".equals(nodeId)) {
+				json.remove("nodeId");
+				NodeManager.HttpResult result = callRemoteApiTracked(ctx, nodeId, "POST", "api/v2/models/benchmark/load", json);
+				writeRemoteResult(ctx, result);
+				return;
+			}
+
+			Map<String, Object> data = this.benchmarkService.handleLoadBenchmark(ctx, json);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+		} catch (IllegalArgumentException | IllegalStateException e) {
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error(e.getMessage()));
+		} catch (Exception e) {
+			String msg = e.getMessage();
+			if (msg != null && msg.startsWith("执行模型基准测试失败")) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error(msg));
+			} else {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("执行模型基准测试失败: " + e.getMessage()));
+			}
+		}
+	}
 	
 	
 	/**
@@ -7,13 +7,15 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.mark.llamacpp.gguf.GGUFMetaData;
-import org.mark.llamacpp.gguf.GGUFMetaDataReader;
+import org.mark.llamacpp.gguf.GGUFMetadataCache;
 import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.server.ConfigManager;
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ModelScheduler;
 import org.mark.llamacpp.server.NodeManager;
+import org.mark.llamacpp.server.channel.HttpRouter;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.service.ChatTemplateKwargsService;
 import org.mark.llamacpp.server.service.LlamaRecordService;
@@ -51,118 +53,60 @@ public class ModelInfoController implements BaseController {
 	
 	
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+	public void registerRoutes(HttpRouter router) {
 		
 		// 获取模型。
-		if(uri.startsWith("/api/models/openai/list")) {
-			this.handleOpenAIModelsRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/models/openai/list", this::handleOpenAIModelsRequest);
 		
 		// 设置模型的别名
-		if (uri.startsWith("/api/models/alias/set")) {
-			this.handleSetModelAliasRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/models/alias/set", this::handleSetModelAliasRequest);
+		// 设置模型的空闲卸载时间
+		router.post("/api/models/ttl/set", this::handleSetModelIdleTtlRequest);
 		// 获取偏好模型的API
-		if (uri.startsWith("/api/models/favourite")) {
-			this.handleModelFavouriteRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/models/favourite", this::handleModelFavouriteRequest);
 		// 查询指定模型启动参数的API
-		if (uri.startsWith("/api/models/config/get")) {
-			this.handleModelConfigRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/models/config/get", this::handleModelConfigRequest);
 		// 用于更新启动参数的API
-		if (uri.startsWith("/api/models/config/set")) {
-			this.handleModelConfigSetRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/models/config/set", this::handleModelConfigSetRequest);
 		// 用于删除指定配置项的API
-		if (uri.startsWith("/api/models/config/delete")) {
-			this.handleModelConfigDeleteRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/models/config/delete", this::handleModelConfigDeleteRequest);
 		// 获取指定模型详情的API
-		if (uri.startsWith("/api/models/details")) {
-			this.handleModelDetailsRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/models/details", this::handleModelDetailsRequest);
+		// 显存调度：设备预算、模型占用、最近的决策
+		router.get("/api/models/scheduler", this::handleModelSchedulerRequest);
 		// 模型的能力设定
-		if(uri.startsWith("/api/models/capabilities/set")) {
-			this.handleModelCapabilitiesSetRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/models/capabilities/set", this::handleModelCapabilitiesSetRequest);
 		// 模型的能力获取
-		if(uri.startsWith("/api/models/capabilities/get")) {
-			this.handleModelCapabilitiesGetRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/models/capabilities/get", this::handleModelCapabilitiesGetRequest);
 		
 		//============================聊天模板相关============================
 		// 
-		if (uri.startsWith("/api/model/template/get")) {
-			this.handleModelTemplateGetRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/model/template/get", this::handleModelTemplateGetRequest);
 		
-		if (uri.startsWith("/api/model/template/set")) {
-			this.handleModelTemplateSetRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/model/template/set", this::handleModelTemplateSetRequest);
 
-		if (uri.startsWith("/api/model/template/delete")) {
-			this.handleModelTemplateDeleteRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/model/template/delete", this::handleModelTemplateDeleteRequest);
 
-		if (uri.startsWith("/api/model/template/default")) {
-			this.handleModelTemplateDefaultRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/model/template/default", this::handleModelTemplateDefaultRequest);
 		
-		if (uri.startsWith("/api/model/chat_template_kwargs/set")) {
-			this.handleChatTemplateKwargsSet(ctx, request);
-			return true;
-		}
+		router.post("/api/model/chat_template_kwargs/set", this::handleChatTemplateKwargsSet);
 		
-		if (uri.startsWith("/api/model/chat_template_kwargs/get")) {
-			this.handleChatTemplateKwargsGet(ctx, request);
-			return true;
-		}
+		router.get("/api/model/chat_template_kwargs/get", this::handleChatTemplateKwargsGet);
 
-		if (uri.startsWith("/api/model/chat_template_kwargs/delete")) {
-			this.handleChatTemplateKwargsDelete(ctx, request);
-			return true;
-		}
+		router.post("/api/model/chat_template_kwargs/delete", this::handleChatTemplateKwargsDelete);
 		
 		
 		//============================用量信息============================
 		// 查询对应模型的用量记录
-		if (uri.startsWith("/api/models/record")) {
-			this.handleModelRecordRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/models/record", this::handleModelRecordRequest);
 		//============================运行时信息============================
 		// 查询对应模型的/solts的API
-		if (uri.startsWith("/api/models/slots/get")) {
-			this.handleModelSlotsGet(ctx, request);
-			return true;
-		}
+		router.get("/api/models/slots/get", this::handleModelSlotsGet);
 		// 对应URL-POST：/slots/{solt_id}?action=save
-		if (uri.startsWith("/api/models/slots/save")) {
-			this.handleModelSlotsSave(ctx, request);
-			return true;
-		}
+		router.post("/api/models/slots/save", this::handleModelSlotsSave);
 		// 对应URL-POST：/slots/{slot_id}?action=load
-		if (uri.startsWith("/api/models/slots/load")) {
-			this.handleModelSlotsLoad(ctx, request);
-			return true;
-		}
+		router.post("/api/models/slots/load", this::handleModelSlotsLoad);
 		//============================其它============================
-		
-		return false;
 	}
 	
 	/**
@@ -255,6 +199,32 @@ public class ModelInfoController implements BaseController {
 	}
 	
 	
+	/**
+	 * 	查看显存调度状态。带 refreshDevices=true 时重新读取设备列表。
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleModelSchedulerRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		try {
+			Map<String, String> params = ParamTool.getQueryParam(request.uri());
+			String nodeId = params.get("nodeId");
+			if (nodeId != null && !nodeId.isBlank()) {
+				this.proxyGetRemote(ctx, request, nodeId, "api/models/scheduler");
+				return;
+			}
+			if ("true".equalsIgnoreCase(params.get("refreshDevices"))) {
+				ModelScheduler.getInstance().clearDeviceCache();
+			}
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(ModelScheduler.getInstance().getStatus()));
+		} catch (Exception e) {
+			logger.info("获取显存调度状态时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取显存调度状态失败: " + e.getMessage()));
+		}
+	}
+	
+	
 	/**
 	 * 	处理模型列表请求
 	 * 	/api/models
@@ -388,6 +358,7 @@ public class ModelInfoController implements BaseController {
 			if (model != null) {
 				model.setAlias(alias);
 			}
+			manager.refreshRoutingTable();
 			Map<String, Object> data = new HashMap<>();
 			data.put("modelId", modelId);
 			data.put("alias", alias);
@@ -456,6 +427,67 @@ public class ModelInfoController implements BaseController {
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("设置模型喜好失败: " + e.getMessage()));
 		}
 	}
+
+	/**
+	 * 设置模型的空闲卸载时间（秒），0 表示不自动卸载。
+	 * 
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException 
+	 */
+	private void handleSetModelIdleTtlRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.POST, "只支持POST请求");
+
+		try {
+			String content = request.content().toString(CharsetUtil.UTF_8);
+			if (content == null || content.trim().isEmpty()) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("请求体为空"));
+				return;
+			}
+			JsonObject json = JsonUtil.fromJson(content, JsonObject.class);
+			if (json == null || !json.has("modelId") || !json.has("idleTtlSeconds")) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("缺少必需的参数: modelId 或 idleTtlSeconds"));
+				return;
+			}
+			String modelId = json.get("modelId").getAsString();
+			if (modelId == null || modelId.trim().isEmpty()) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("modelId不能为空"));
+				return;
+			}
+			String nodeId = JsonUtil.getJsonString(json, "nodeId", "");
+			if (nodeId != null && !nodeId.isBlank()) {
+				logger.info("[模型信息] 远程代理设置空闲卸载时间: nodeId={}, modelId={}", nodeId, modelId);
+				this.proxyPostRemote(ctx, request, nodeId, "api/models/ttl/set");
+				return;
+			}
+			long ttl;
+			try {
+				ttl = json.get("idleTtlSeconds").getAsLong();
+			} catch (Exception e) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("idleTtlSeconds参数不合法"));
+				return;
+			}
+			if (ttl < 0) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("idleTtlSeconds不能小于0"));
+				return;
+			}
+			LlamaServerManager manager = LlamaServerManager.getInstance();
+			if (manager.findModelById(modelId) == null) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("未找到指定模型: " + modelId));
+				return;
+			}
+			boolean saved = ConfigManager.getInstance().saveModelIdleTtl(modelId, ttl);
+
+			Map<String, Object> data = new HashMap<>();
+			data.put("modelId", modelId);
+			data.put("idleTtlSeconds", ttl);
+			data.put("saved", saved);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+		} catch (Exception e) {
+			logger.info("设置模型空闲卸载时间时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("设置模型空闲卸载时间失败: " + e.getMessage()));
+		}
+	}
 	
 	/**
 	 * 处理获取模型启动配置请求
@@ -882,13 +914,10 @@ public class ModelInfoController implements BaseController {
 			String chatTemplate = "";
 			GGUFMetaData primary = model.getPrimaryModel();
 			if (primary != null) {
-				Map<String, Object> m = GGUFMetaDataReader.read(new File(primary.getFilePath()));
-				if (m != null) {
-					Object tpl = m.get("tokenizer.chat_template");
-					if (tpl != null) {
-						exists = true;
-						chatTemplate = String.valueOf(tpl);
-					}
+				String tpl = GGUFMetadataCache.getInstance().getChatTemplate(new File(primary.getFilePath()));
+				if (tpl != null) {
+					exists = true;
+					chatTemplate = tpl;
 				}
 			}
 
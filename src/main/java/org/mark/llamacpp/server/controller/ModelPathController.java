@@ -11,6 +11,7 @@ import java.util.Map;
 
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.channel.HttpRouter;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.struct.ModelPathConfig;
@@ -41,28 +42,14 @@ public class ModelPathController implements BaseController {
 	
 	
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
-		if (uri.startsWith("/api/model/path/add")) {
-			this.handleModelPathAdd(ctx, request);
-			return true;
-		}
+	public void registerRoutes(HttpRouter router) {
+		router.post("/api/model/path/add", this::handleModelPathAdd);
 
-		if (uri.startsWith("/api/model/path/remove")) {
-			this.handleModelPathRemove(ctx, request);
-			return true;
-		}
+		router.post("/api/model/path/remove", this::handleModelPathRemove);
 
-		if (uri.startsWith("/api/model/path/update")) {
-			this.handleModelPathUpdate(ctx, request);
-			return true;
-		}
+		router.post("/api/model/path/update", this::handleModelPathUpdate);
 
-		if (uri.startsWith("/api/model/path/list")) {
-			this.handleModelPathList(ctx, request);
-			return true;
-		}
-		
-		return false;
+		router.get("/api/model/path/list", this::handleModelPathList);
 	}
 	
 	
@@ -8,6 +8,7 @@ import io.netty.handler.codec.http.HttpMethod;
 import org.mark.llamacpp.server.LlamaHubNode;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.NodeManager;
+import org.mark.llamacpp.server.channel.HttpRouter;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.JsonUtil;
@@ -23,36 +24,14 @@ public class NodeController implements BaseController {
     private static final Logger logger = LoggerFactory.getLogger(NodeController.class);
 
     @Override
-    public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
-        if (uri.startsWith("/api/node/list")) {
-            handleNodeListRequest(ctx, request);
-            return true;
-        }
-        if (uri.startsWith("/api/node/add")) {
-            handleNodeAddRequest(ctx, request);
-            return true;
-        }
-        if (uri.startsWith("/api/node/remove")) {
-            handleNodeRemoveRequest(ctx, request);
-            return true;
-        }
-        if (uri.startsWith("/api/node/update")) {
-            handleNodeUpdateRequest(ctx, request);
-            return true;
-        }
-        if (uri.startsWith("/api/node/test")) {
-            handleNodeTestRequest(ctx, request);
-            return true;
-        }
-        if (uri.startsWith("/api/node/status")) {
-            handleNodeStatusRequest(ctx, request);
-            return true;
-        }
-        if (uri.startsWith("/api/node/info")) {
-            handleNodeInfoRequest(ctx, request);
-            return true;
-        }
-        return false;
+    public void registerRoutes(HttpRouter router) {
+        router.get("/api/node/list", this::handleNodeListRequest);
+        router.post("/api/node/add", this::handleNodeAddRequest);
+        router.post("/api/node/remove", this::handleNodeRemoveRequest);
+        router.post("/api/node/update", this::handleNodeUpdateRequest);
+        router.post("/api/node/test", this::handleNodeTestRequest);
+        router.get("/api/node/status", this::handleNodeStatusRequest);
+        router.get("/api/node/info", this::handleNodeInfoRequest);
     }
 
     private void handleNodeListRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
@@ -6,6 +6,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.channel.HttpRouter;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.JsonUtil;
@@ -30,21 +31,12 @@ public class ParamController implements BaseController {
 	
 
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request)
-			throws RequestMethodException {
+	public void registerRoutes(HttpRouter router) {
 		
 		// 列出Server可用的参数API
-		if (uri.startsWith("/api/models/param/server/list")) {
-			this.handleParamServerListRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/models/param/server/list", this::handleParamServerListRequest);
 		// 列出benchmark可用参数的API
-		if (uri.startsWith("/api/models/param/benchmark/list")) {
-			this.handleParamBenchmarkListRequest(ctx, request);
-			return true;
-		}
-		
-		return false;
+		router.get("/api/models/param/benchmark/list", this::handleParamBenchmarkListRequest);
 	}
 
 	
@@ -20,7 +20,11 @@ import org.mark.llamacpp.server.BuildInfo;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
 import org.mark.llamacpp.server.NodeManager;
+import org.mark.llamacpp.server.channel.HttpRouter;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.io.ConsoleLineBuffer;
+import org.mark.llamacpp.server.io.UpstreamConnectionPool;
+import org.mark.llamacpp.server.metrics.HubMetrics;
 import org.mark.llamacpp.server.service.GpuService;
 import org.mark.llamacpp.server.service.ModelSamplingService;
 import org.mark.llamacpp.server.tools.FastFetchHelper;
@@ -65,144 +69,68 @@ public class SystemController implements BaseController {
 	 * 	依旧请求入口。
 	 */
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+	public void registerRoutes(HttpRouter router) {
 		// 停止服务API
-		if (uri.startsWith("/api/shutdown")) {
-			this.handleShutdownRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/shutdown", this::handleShutdownRequest);
+		// Prometheus 指标
+		router.get("/metrics", this::handleMetricsRequest);
 		// 控制台
-		if (uri.startsWith("/api/sys/console")) {
-			this.handleSysConsoleRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/sys/console", this::handleSysConsoleRequest);
 		
 		// 列出可用的设备，基于当前选择的llamacpp
-		if (uri.startsWith("/api/model/device/list")) {
-			this.handleDeviceListRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/model/device/list", this::handleDeviceListRequest);
 		
 		// 显存估算API
-		if (uri.startsWith("/api/models/vram/estimate")) {
-			this.handleVramEstimateRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/models/vram/estimate", this::handleVramEstimateRequest);
 		// 启用、禁用ollama兼容api
-		if (uri.startsWith("/api/sys/ollama")) {
-			this.handleOllamaEnableRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/sys/ollama", this::handleOllamaEnableRequest);
 		// 启用、禁用lmstudio
-		if (uri.startsWith("/api/sys/lmstudio")) {
-			this.handleLmstudioEnableRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/sys/lmstudio", this::handleLmstudioEnableRequest);
 		// 启用、禁用内置MCP服务
-		if (uri.startsWith("/api/sys/mcp")) {
-			this.handleMcpEnableRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/sys/mcp", this::handleMcpEnableRequest);
 		// 获取兼容服务状态
-		if (uri.startsWith("/api/sys/compat/status")) {
-			this.handleCompatStatusRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/sys/compat/status", this::handleCompatStatusRequest);
 		// 获取构建版本信息
-		if (uri.startsWith("/api/sys/version")) {
-			this.handleVersionInfoRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/sys/version", this::handleVersionInfoRequest);
 		// 获取GPU服务信息（初始化快照）
-		if (uri.startsWith("/api/sys/gpu/info")) {
-			this.handleGpuInfoRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/sys/gpu/info", this::handleGpuInfoRequest);
 		// 查询GPU实时状态
-		if (uri.startsWith("/api/sys/gpu/status")) {
-			this.handleGpuStatusRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/sys/gpu/status", this::handleGpuStatusRequest);
 		// 获取系统设置
-		if (uri.startsWith("/api/sys/setting") && request.method() == HttpMethod.GET) {
-			this.handleSysSettingGetRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/sys/setting", this::handleSysSettingGetRequest);
 		// 保存系统设置
-		if (uri.startsWith("/api/sys/setting")) {
-			this.handleSysSettingRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/sys/setting", this::handleSysSettingRequest);
 		// 保存搜索设置
-		if (uri.startsWith("/api/search/setting")) {
-			this.handleSearchSettingRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/search/setting", this::handleSearchSettingRequest);
 		// 获取指定模型的采样配置
-		if (uri.startsWith("/api/sys/model/sampling/setting/get")) {
-			this.handleModelSamplingSettingGetRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/sys/model/sampling/setting/get", this::handleModelSamplingSettingGetRequest);
 		
-		if (uri.startsWith("/api/sys/model/sampling/setting/add")) {
-			this.handleModelSamplingSettingAddRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/sys/model/sampling/setting/add", this::handleModelSamplingSettingAddRequest);
 		// 获取的采样配置
-		if (uri.startsWith("/api/sys/model/sampling/setting/list")) {
-			this.handleModelSamplingSettingListRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/sys/model/sampling/setting/list", this::handleModelSamplingSettingListRequest);
 		// 删除指定的采样
-		if (uri.startsWith("/api/sys/model/sampling/setting/delete")) {
-			this.handleModelSamplingSettingDeleteRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/sys/model/sampling/setting/delete", this::handleModelSamplingSettingDeleteRequest);
 		// 设置指定模型的采样配置
-		if (uri.startsWith("/api/sys/model/sampling/setting/set")) {
-			this.handleModelSamplingSettingRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/sys/model/sampling/setting/set", this::handleModelSamplingSettingRequest);
 		
 		// 文件系统：目录浏览
-		if (uri.startsWith("/api/sys/fs/list")) {
-			this.handleFsListRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/sys/fs/list", this::handleFsListRequest);
 		
 		// 检查更新
-		if (uri.startsWith("/api/sys/update/check")) {
-			this.handleUpdateCheckRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/sys/update/check", this::handleUpdateCheckRequest);
 		// 下载更新
-		if (uri.startsWith("/api/sys/update/download")) {
-			this.handleUpdateDownloadRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/sys/update/download", this::handleUpdateDownloadRequest);
 		// 应用更新
-		if (uri.startsWith("/api/sys/update/apply")) {
-			this.handleUpdateApplyRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/sys/update/apply", this::handleUpdateApplyRequest);
 		// 更新状态查询
-		if (uri.startsWith("/api/sys/update/status")) {
-			this.handleUpdateStatusRequest(ctx, request);
-			return true;
-		}
+		router.get("/api/sys/update/status", this::handleUpdateStatusRequest);
 		// 取消下载
-		if (uri.startsWith("/api/sys/update/cancel")) {
-			this.handleUpdateCancelRequest(ctx, request);
-			return true;
-		}
+		router.post("/api/sys/update/cancel", this::handleUpdateCancelRequest);
 
 		// 获取计算机信息（fastfetch）
-		if (uri.startsWith("/api/sys/fastfetch")) {
-			this.handleFastFetchRequest(ctx, request);
-			return true;
-		}
-
-		return false;
+		router.get("/api/sys/fastfetch", this::handleFastFetchRequest);
+		// 上游连接池状态
+		router.get("/api/sys/upstream/pools", this::handleUpstreamPoolsRequest);
 	}
 	
 	/**
@@ -508,6 +436,22 @@ public class SystemController implements BaseController {
 		}
 	}
 	
+	/**
+	 * 	查询到llama-server等上游的连接池状态（空闲、借出、新建、复用数）
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleUpstreamPoolsRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		try {
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(UpstreamConnectionPool.getInstance().getStats()));
+		} catch (Exception e) {
+			logger.info("获取连接池状态时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取连接池状态失败: " + e.getMessage()));
+		}
+	}
+	
 	/**
 	 * 	启用、禁用ollama兼容api
 	 * @param ctx
@@ -702,6 +646,13 @@ public class SystemController implements BaseController {
 			https.put("keystorePassword", LlamaServer.getHttpsPassword());
 			data.put("https", https);
 			
+			Map<String, Object> models = new HashMap<>();
+			models.put("onDemandLoad", LlamaServer.isOnDemandLoadEnabled());
+			models.put("onDemandLoadTimeoutSeconds", LlamaServer.getOnDemandLoadTimeoutSeconds());
+			models.put("vramScheduler", LlamaServer.isVramSchedulerEnabled());
+			models.put("vramReserveMiB", LlamaServer.getVramReserveMiB());
+			data.put("models", models);
+			
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
 		} catch (Exception e) {
 			logger.info("获取系统设置时发生错误", e);
@@ -741,11 +692,16 @@ public class SystemController implements BaseController {
 			String httpsCertPath = JsonUtil.getJsonString(obj, "httpsCertPath", null);
 			String httpsPassword = JsonUtil.getJsonString(obj, "httpsPassword", null);
 			String downloadDirectory = JsonUtil.getJsonString(obj, "downloadDirectory", null);
+			Boolean onDemandLoad = firstBoolean(obj, "onDemandLoad", "on_demand_load");
+			Integer onDemandLoadTimeout = JsonUtil.getJsonInt(obj, "onDemandLoadTimeoutSeconds", null);
+			Boolean vramScheduler = firstBoolean(obj, "vramScheduler", "vram_scheduler");
+			Integer vramReserveMiB = JsonUtil.getJsonInt(obj, "vramReserveMiB", null);
 
 			if (ollamaPort == null && lmstudioPort == null && logRequestUrl == null && logRequestHeader == null && logRequestBody == null
 				&& webPort == null && anthropicPort == null && apiKeyEnabled == null && apiKey == null
 				&& httpsEnabled == null && httpsCertPath == null && httpsPassword == null
-				&& downloadDirectory == null) {
+				&& downloadDirectory == null && onDemandLoad == null && onDemandLoadTimeout == null
+				&& vramScheduler == null && vramReserveMiB == null) {
 				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("缺少可保存参数"));
 				return;
 			}
@@ -793,6 +749,22 @@ public class SystemController implements BaseController {
 			if (downloadDirectory != null && !downloadDirectory.isEmpty()) {
 				LlamaServer.setDownloadDirectory(downloadDirectory);
 			}
+			
+			if (onDemandLoad != null || onDemandLoadTimeout != null) {
+				if (onDemandLoadTimeout != null && onDemandLoadTimeout.intValue() <= 0) {
+					LlamaServer.sendJsonResponse(ctx, ApiResponse.error("onDemandLoadTimeoutSeconds参数不合法"));
+					return;
+				}
+				LlamaServer.updateOnDemandLoadConfig(onDemandLoad, onDemandLoadTimeout);
+			}
+			
+			if (vramScheduler != null || vramReserveMiB != null) {
+				if (vramReserveMiB != null && vramReserveMiB.intValue() < 0) {
+					LlamaServer.sendJsonResponse(ctx, ApiResponse.error("vramReserveMiB参数不合法"));
+					return;
+				}
+				LlamaServer.updateVramSchedulerConfig(vramScheduler, vramReserveMiB);
+			}
 
 			Map<String, Object> data = new HashMap<>();
 			Map<String, Object> ollama = new HashMap<>();
@@ -1498,15 +1470,37 @@ public class SystemController implements BaseController {
 			Map<String, String> params = ParamTool.getQueryParam(request.uri());
 			String nodeId = params.get("nodeId");
 			if (nodeId != null && !nodeId.isBlank() && !"local".equals(nodeId)) {
+				String after = params.get("after");
+				String path = after == null ? "api/sys/console" : "api/sys/console?after=" + after
+						+ (params.get("limit") == null ? "" : "&limit=" + params.get("limit"));
 				NodeManager.HttpResult result = NodeManager.getInstance().callRemoteApi(
-						nodeId, "GET", "api/sys/console", null);
+						nodeId, "GET", path, null);
 				if (result.isSuccess()) {
-					LlamaServer.sendTextResponse(ctx, result.getBody());
+					if (after == null) {
+						LlamaServer.sendTextResponse(ctx, result.getBody());
+					} else {
+						NodeManager.writeHttpResultToChannel(ctx, result, "[控制台日志远程]");
+					}
 				} else {
 					LlamaServer.sendJsonResponse(ctx, ApiResponse.error("远程节点调用失败: code=" + result.getStatusCode()));
 				}
 				return;
 			}
+			// 带 after 参数时只返回该序号之后的行
+			String after = params.get("after");
+			if (after != null) {
+				long afterSeq = Long.parseLong(after.trim());
+				int limit = params.get("limit") == null ? 0 : Integer.parseInt(params.get("limit").trim());
+				ConsoleLineBuffer.Slice slice = LlamaServer.readConsoleBuffer(afterSeq, limit);
+				Map<String, Object> data = new HashMap<>();
+				data.put("firstSeq", slice.firstSeq());
+				data.put("lastSeq", slice.lastSeq());
+				data.put("latestSeq", slice.latestSeq());
+				data.put("truncated", slice.truncated());
+				data.put("lines", slice.lines());
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+				return;
+			}
 			LlamaServer.sendTextResponse(ctx, LlamaServer.getConsoleBufferText());
 		} catch (Exception e) {
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("读取控制台日志失败: " + e.getMessage()));
@@ -1514,6 +1508,18 @@ public class SystemController implements BaseController {
 	}
 	
 	
+	/**
+	 * 	本服务自身的请求指标，Prometheus 文本格式。
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleMetricsRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		LlamaServer.sendTextResponse(ctx, HubMetrics.getInstance().render());
+	}
+	
+	
 	/**
 	 * 处理设备列表请求 执行 llama-bench --list-devices 命令获取可用设备列表
 	 * 
@@ -7,6 +7,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.channel.HttpRouter;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.mcp.McpClientService;
 import org.mark.llamacpp.server.struct.ApiResponse;
@@ -46,34 +47,17 @@ public class ToolController implements BaseController {
 	private static final String PATH_MCP_RENAME = "/api/mcp/rename";
 
 	/**
-	 * 实现 BaseController 的 handleRequest 方法，分发不同的工具相关请求。
+	 * 实现 BaseController 的 registerRoutes 方法，注册工具相关的接口。
 	 * 
-	 * @param uri     请求的 URI
-	 * @param ctx     Netty 通道上下文
-	 * @param request HTTP 请求对象
-	 * @return 如果请求被处理则返回 true，否则返回 false
-	 * @throws RequestMethodException 请求方法不正确时抛出异常
+	 * @param router 路由表
 	 */
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
-		if (uri.startsWith(PATH_TOOL_EXECUTE)) {
-			this.handleToolExecute(ctx, request);
-			return true;
-		} else if (uri.startsWith(PATH_MCP_ADD)) {
-			this.handleMcpAdd(ctx, request);
-			return true;
-		} else if (uri.startsWith(PATH_MCP_TOOLS)) {
-			this.handleMcpTools(ctx, request);
-			return true;
-		} else if (uri.startsWith(PATH_MCP_REMOVE)) {
-			this.handleMcpRemove(ctx, request);
-			return true;
-		} else if (uri.startsWith(PATH_MCP_RENAME)) {
-			this.handleMcpRename(ctx, request);
-			return true;
-		}
-
-		return false;
+	public void registerRoutes(HttpRouter router) {
+		router.post(PATH_TOOL_EXECUTE, this::handleToolExecute);
+		router.post(PATH_MCP_ADD, this::handleMcpAdd);
+		router.get(PATH_MCP_TOOLS, this::handleMcpTools);
+		router.post(PATH_MCP_REMOVE, this::handleMcpRemove);
+		router.post(PATH_MCP_RENAME, this::handleMcpRename);
 	}
 
 	/**
@@ -1,6 +1,7 @@
 package org.mark.llamacpp.server.controller;
 
 import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.channel.HttpRouter;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.service.UsageReportService;
 import org.mark.llamacpp.server.struct.ApiResponse;
@@ -16,16 +17,9 @@ public class UsageReportController implements BaseController {
 	private static final Logger logger = LoggerFactory.getLogger(UsageReportController.class);
 
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
-		if (uri.startsWith("/api/report/token-summary")) {
-			this.handleTokenSummary(ctx, request);
-			return true;
-		}
-		if (uri.startsWith("/api/report/request-logs")) {
-			this.handleRequestLogs(ctx, request);
-			return true;
-		}
-		return false;
+	public void registerRoutes(HttpRouter router) {
+		router.get("/api/report/token-summary", this::handleTokenSummary);
+		router.get("/api/report/request-logs", this::handleRequestLogs);
 	}
 
 	private void handleTokenSummary(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
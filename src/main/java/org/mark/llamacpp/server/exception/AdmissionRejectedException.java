@@ -0,0 +1,29 @@
+package org.mark.llamacpp.server.exception;
+
+
+
+/**
+ * 	模型的请求队列已满或排队超时，应当以 429 拒绝并带上 Retry-After。
+ */
+public class AdmissionRejectedException extends Exception {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 	建议客户端多少秒后重试
+	 */
+	private final int retryAfterSeconds;
+
+
+	public AdmissionRejectedException(String message, int retryAfterSeconds) {
+		super(message);
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	public int getRetryAfterSeconds() {
+		return this.retryAfterSeconds;
+	}
+}
@@ -6,14 +6,24 @@ import java.util.Arrays;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * 	写端（Netty 事件循环）逐块放入、读端（虚拟线程）按流读取的有界队列。
+ * 	<p>
+ * 	队列快满时写端不应阻塞在 {@link #offer} 上（事件循环是所有端口共用的），而是用 {@link #isNearlyFull} 判断后暂停读取，
+ * 	再用 {@link #onDrained} 登记恢复读取的回调，读端消费到一半以下时调用。
+ */
 public class BoundedQueueInputStream extends InputStream {
 
 	private static final byte[] EOF = new byte[0];
 
 	private final ArrayBlockingQueue<byte[]> queue;
+	private final int lowWater;
 	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private final AtomicReference<Runnable> drainListener = new AtomicReference<>();
 	private volatile IOException failure;
+	private volatile boolean discarding;
 
 	private byte[] currentChunk;
 	private int currentIndex;
@@ -23,10 +33,11 @@ public class BoundedQueueInputStream extends InputStream {
 			throw new IllegalArgumentException("capacity must be > 0");
 		}
 		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.lowWater = capacity / 2;
 	}
 
 	public void offer(byte[] chunk) throws IOException {
-		if (chunk == null || chunk.length == 0) {
+		if (chunk == null || chunk.length == 0 || discarding) {
 			return;
 		}
 		if (closed.get()) {
@@ -49,6 +60,42 @@ public class BoundedQueueInputStream extends InputStream {
 		throw new IOException("stream closed");
 	}
 
+	/**
+	 * 	剩余空间不超过 reserve 时返回 true。reserve 要留够一次读取拆出来的块数，暂停读取后这些块仍会到达。
+	 * @param reserve
+	 * @return
+	 */
+	public boolean isNearlyFull(int reserve) {
+		return queue.remainingCapacity() <= reserve;
+	}
+
+	/**
+	 * 	登记一个回调，队列消费到一半以下时调用一次；现在已经低于一半或者正在丢弃时立即调用。
+	 * @param listener
+	 */
+	public void onDrained(Runnable listener) {
+		drainListener.set(listener);
+		if (discarding || queue.size() <= lowWater) {
+			fireDrained();
+		}
+	}
+
+	/**
+	 * 	读端不再读取（比如请求已经出错返回），之后放入的数据直接丢弃，让连接上剩下的请求体照常收完。
+	 */
+	public void discard() {
+		discarding = true;
+		queue.clear();
+		fireDrained();
+	}
+
+	private void fireDrained() {
+		Runnable listener = drainListener.getAndSet(null);
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
 	public void complete() {
 		if (closed.compareAndSet(false, true)) {
 			queue.offer(EOF);
@@ -120,6 +167,9 @@ public class BoundedQueueInputStream extends InputStream {
 			}
 			currentChunk = next;
 			currentIndex = 0;
+			if (queue.size() <= lowWater) {
+				fireDrained();
+			}
 		}
 		return currentChunk;
 	}
@@ -0,0 +1,150 @@
+package org.mark.llamacpp.server.io;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 	控制台日志的环形缓冲，按字节数限制大小。
+ * 	<p>
+ * 	每行只在写入时编码一次，超出上限时从最旧的行开始整行丢弃，追加的代价和缓冲区里已有多少内容无关。
+ * 	每行有一个单调递增的序号（从1开始），读取方带上已经拿到的最后一个序号，只取之后的行。
+ */
+public final class ConsoleLineBuffer {
+
+	private final long maxBytes;
+
+	/**
+	 * 	环形数组，容量总是2的幂。
+	 */
+	private byte[][] ring = new byte[1024][];
+
+	/**
+	 * 	最旧一行在数组里的位置。
+	 */
+	private int head;
+
+	private int count;
+
+	private long bytes;
+
+	/**
+	 * 	下一行的序号。
+	 */
+	private long nextSeq = 1;
+
+	public ConsoleLineBuffer(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * 	追加一行（不含换行符）。
+	 * @param line
+	 * @return 这一行的序号
+	 */
+	public synchronized long append(String line) {
+		byte[] data = line == null ? new byte[0] : line.getBytes(StandardCharsets.UTF_8);
+		if (this.count == this.ring.length) {
+			this.grow();
+		}
+		this.ring[(this.head + this.count) & (this.ring.length - 1)] = data;
+		this.count++;
+		this.bytes += data.length + 1;
+		// 至少保留最新的一行
+		while (this.bytes > this.maxBytes && this.count > 1) {
+			this.dropOldest();
+		}
+		return this.nextSeq++;
+	}
+
+	/**
+	 * 	清空并重新填入。
+	 * @param lines
+	 */
+	public synchronized void reset(List<String> lines) {
+		Arrays.fill(this.ring, null);
+		this.head = 0;
+		this.count = 0;
+		this.bytes = 0;
+		for (String line : lines) {
+			this.append(line);
+		}
+	}
+
+	/**
+	 * 	读取序号大于 afterSeq 的行。
+	 * @param afterSeq 已经拿到的最后一个序号，0表示从头读
+	 * @param limit 最多返回的行数，<=0 不限制
+	 * @return
+	 */
+	public synchronized Slice read(long afterSeq, int limit) {
+		long firstSeq = this.nextSeq - this.count;
+		long from = Math.max(afterSeq + 1, firstSeq);
+		int n = (int) Math.max(0, this.nextSeq - from);
+		if (limit > 0 && n > limit) {
+			n = limit;
+		}
+		List<String> lines = new ArrayList<>(n);
+		int start = (int) (from - firstSeq);
+		for (int i = 0; i < n; i++) {
+			byte[] data = this.ring[(this.head + start + i) & (this.ring.length - 1)];
+			lines.add(new String(data, StandardCharsets.UTF_8));
+		}
+		// 请求的起点已经被覆盖，中间有行丢失
+		boolean truncated = afterSeq + 1 < firstSeq;
+		return new Slice(firstSeq, from + n - 1, this.nextSeq - 1, truncated, lines);
+	}
+
+	/**
+	 * 	全部内容，每行以换行结尾。
+	 * @return
+	 */
+	public synchronized String toText() {
+		byte[] out = new byte[(int) this.bytes];
+		int pos = 0;
+		for (int i = 0; i < this.count; i++) {
+			byte[] data = this.ring[(this.head + i) & (this.ring.length - 1)];
+			System.arraycopy(data, 0, out, pos, data.length);
+			pos += data.length;
+			out[pos++] = '\n';
+		}
+		return new String(out, 0, pos, StandardCharsets.UTF_8);
+	}
+
+	public synchronized long getLastSeq() {
+		return this.nextSeq - 1;
+	}
+
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+
+	private void dropOldest() {
+		byte[] data = this.ring[this.head];
+		this.ring[this.head] = null;
+		this.head = (this.head + 1) & (this.ring.length - 1);
+		this.count--;
+		this.bytes -= data.length + 1;
+	}
+
+	private void grow() {
+		byte[][] bigger = new byte[this.ring.length * 2][];
+		for (int i = 0; i < this.count; i++) {
+			bigger[i] = this.ring[(this.head + i) & (this.ring.length - 1)];
+		}
+		this.ring = bigger;
+		this.head = 0;
+	}
+
+	/**
+	 * 	一次读取的结果。
+	 * @param firstSeq 缓冲区里最旧一行的序号
+	 * @param lastSeq 本次返回的最后一行的序号，没有新行时等于请求的序号或更小
+	 * @param latestSeq 缓冲区里最新一行的序号
+	 * @param truncated 请求的起点之后有行已经被丢弃
+	 * @param lines
+	 */
+	public record Slice(long firstSeq, long lastSeq, long latestSeq, boolean truncated, List<String> lines) {
+	}
+}
@@ -0,0 +1,779 @@
+package org.mark.llamacpp.server.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 	基于 {@link UpstreamConnectionPool} 的 {@link HttpURLConnection} 实现。
+ * 	<p>
+ * 	行为尽量和JDK自带的实现保持一致（getInputStream 在 4xx/5xx 时抛异常，错误体走 getErrorStream），
+ * 	区别只在连接的生命周期：
+ * 	<ul>
+ * 	<li>响应体读到结尾时，连接自动归还到池里；</li>
+ * 	<li>在工作线程里提前 {@code disconnect()}/关闭流时，会在很短的时间内尝试把剩余的响应读完再归还，读不完就关闭；</li>
+ * 	<li>在其他线程里 {@code disconnect()}（比如客户端断开）一律直接关闭套接字，让上游停止生成。</li>
+ * 	</ul>
+ */
+public class PooledHttpURLConnection extends HttpURLConnection {
+
+	/**
+	 * 	提前结束时，最多花多少时间、读多少字节去排空剩余的响应。
+	 */
+	private static final long DRAIN_TIMEOUT_MS = 100;
+	private static final int DRAIN_MAX_BYTES = 64 * 1024;
+
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	/**
+	 * 	这些请求头由连接自己维护，调用方传进来的直接忽略（和JDK的限制头部一致）。
+	 */
+	private static final Set<String> RESTRICTED_HEADERS = Set.of(
+			"host", "connection", "content-length", "transfer-encoding", "keep-alive",
+			"upgrade", "expect", "te", "trailer", "proxy-connection");
+
+	private final UpstreamConnectionPool.Route route;
+	private final Object lock = new Object();
+
+	private UpstreamConnectionPool.Connection conn;
+	private Thread owner;
+	private Map<String, List<String>> requestHeaders;
+
+	private ByteArrayOutputStream bufferedBody;
+	private OutputStream streamingBody;
+	private boolean requestSent;
+
+	/**
+	 * 	是否已经从上游读到过响应的字节。
+	 */
+	private boolean responseStarted;
+
+	private boolean responseRead;
+	private IOException responseFailure;
+	private String statusLine;
+	private final List<String[]> responseHeaders = new ArrayList<>();
+	private InputStream body;
+	private boolean keepAlive;
+	private boolean finished;
+
+	PooledHttpURLConnection(URL url, UpstreamConnectionPool.Route route) {
+		super(url);
+		this.route = route;
+	}
+
+	@Override
+	public void connect() throws IOException {
+		synchronized (this.lock) {
+			if (this.connected) {
+				return;
+			}
+			if (this.finished) {
+				throw new IOException("connection already closed");
+			}
+			// 连接之后就不能再读请求头了，这里先拷一份
+			this.requestHeaders = new LinkedHashMap<>(this.getRequestProperties());
+			this.conn = this.route.lease(this.getConnectTimeout());
+			this.conn.socket.setSoTimeout(Math.max(0, this.getReadTimeout()));
+			this.owner = Thread.currentThread();
+			this.connected = true;
+		}
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		if (!this.doOutput) {
+			throw new ProtocolException("cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+		}
+		if (this.streamingBody != null) {
+			return this.streamingBody;
+		}
+		if (this.bufferedBody != null) {
+			return this.bufferedBody;
+		}
+		if (this.responseRead) {
+			throw new ProtocolException("Cannot write output after reading input.");
+		}
+		if ("GET".equals(this.method)) {
+			this.method = "POST";
+		}
+		this.connect();
+		if (this.chunkLength > 0) {
+			this.writeHead(-1, true);
+			this.streamingBody = new ChunkedOutputStream(this.conn.out, this.chunkLength);
+			return this.streamingBody;
+		}
+		long fixed = this.fixedContentLengthLong >= 0 ? this.fixedContentLengthLong : this.fixedContentLength;
+		if (fixed >= 0) {
+			this.writeHead(fixed, false);
+			this.streamingBody = new FixedLengthOutputStream(this.conn.out, fixed);
+			return this.streamingBody;
+		}
+		this.bufferedBody = new ByteArrayOutputStream();
+		return this.bufferedBody;
+	}
+
+	@Override
+	public int getResponseCode() throws IOException {
+		this.readResponse();
+		return this.responseCode;
+	}
+
+	@Override
+	public String getResponseMessage() throws IOException {
+		this.readResponse();
+		return this.responseMessage;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		this.readResponse();
+		if (this.responseCode >= 400) {
+			if (this.responseCode == 404 || this.responseCode == 410) {
+				throw new FileNotFoundException(this.url.toString());
+			}
+			throw new IOException("Server returned HTTP response code: " + this.responseCode + " for URL: " + this.url);
+		}
+		return this.body;
+	}
+
+	@Override
+	public InputStream getErrorStream() {
+		if (!this.responseRead || this.responseFailure != null || this.responseCode < 400) {
+			return null;
+		}
+		return this.body;
+	}
+
+	@Override
+	public String getHeaderField(String name) {
+		if (!this.ensureResponseQuietly() || name == null) {
+			return null;
+		}
+		for (int i = this.responseHeaders.size() - 1; i >= 0; i--) {
+			String[] h = this.responseHeaders.get(i);
+			if (h[0].equalsIgnoreCase(name)) {
+				return h[1];
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String getHeaderFieldKey(int n) {
+		if (!this.ensureResponseQuietly() || n <= 0 || n > this.responseHeaders.size()) {
+			return null;
+		}
+		return this.responseHeaders.get(n - 1)[0];
+	}
+
+	@Override
+	public String getHeaderField(int n) {
+		if (!this.ensureResponseQuietly() || n < 0 || n > this.responseHeaders.size()) {
+			return null;
+		}
+		return n == 0 ? this.statusLine : this.responseHeaders.get(n - 1)[1];
+	}
+
+	@Override
+	public Map<String, List<String>> getHeaderFields() {
+		if (!this.ensureResponseQuietly()) {
+			return Collections.emptyMap();
+		}
+		Map<String, List<String>> out = new LinkedHashMap<>();
+		out.put(null, List.of(this.statusLine));
+		for (String[] h : this.responseHeaders) {
+			out.computeIfAbsent(h[0], k -> new ArrayList<>()).add(h[1]);
+		}
+		return Collections.unmodifiableMap(out);
+	}
+
+	@Override
+	public boolean usingProxy() {
+		return false;
+	}
+
+	/**
+	 * 	在工作线程中调用时，先尝试排空响应，成功则归还连接；否则直接关闭。
+	 */
+	@Override
+	public void disconnect() {
+		synchronized (this.lock) {
+			if (this.finished) {
+				return;
+			}
+			if (this.conn == null) {
+				this.finished = true;
+				return;
+			}
+		}
+		if (Thread.currentThread() == this.owner && this.drain()) {
+			return;
+		}
+		this.abort();
+	}
+
+	//##########################################################################################
+
+	private boolean ensureResponseQuietly() {
+		try {
+			this.readResponse();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void readResponse() throws IOException {
+		if (this.responseRead) {
+			if (this.responseFailure != null) {
+				throw this.responseFailure;
+			}
+			return;
+		}
+		this.connect();
+		try {
+			// 复用的连接可能刚好被上游关掉了；请求体还在内存里的话可以换一条新连接重发一次
+			boolean retryable = this.conn.reused && this.streamingBody == null;
+			try {
+				this.sendRequest();
+				this.readStatusAndHeaders();
+			} catch (IOException e) {
+				if (!retryable || this.responseStarted || !isStaleConnection(e)) {
+					throw e;
+				}
+				this.route.discard(this.conn, true);
+				synchronized (this.lock) {
+					if (this.finished) {
+						throw e;
+					}
+					this.conn = this.route.open(this.getConnectTimeout());
+					this.conn.socket.setSoTimeout(Math.max(0, this.getReadTimeout()));
+				}
+				this.requestSent = false;
+				this.sendRequest();
+				this.readStatusAndHeaders();
+			}
+			this.setupBody();
+		} catch (IOException e) {
+			this.responseFailure = e;
+			this.abort();
+			throw e;
+		} finally {
+			this.responseRead = true;
+		}
+		if (this.body == EmptyInputStream.INSTANCE) {
+			this.onBodyComplete();
+		}
+	}
+
+	private void sendRequest() throws IOException {
+		if (this.requestSent) {
+			return;
+		}
+		if (this.streamingBody != null) {
+			this.streamingBody.close();
+		} else {
+			byte[] payload = this.bufferedBody == null ? null : this.bufferedBody.toByteArray();
+			boolean hasBody = payload != null || (this.doOutput && !"GET".equals(this.method) && !"HEAD".equals(this.method));
+			this.writeHead(hasBody ? (payload == null ? 0 : payload.length) : -1, false);
+			if (payload != null && payload.length > 0) {
+				this.conn.out.write(payload);
+			}
+			this.conn.out.flush();
+		}
+		this.requestSent = true;
+	}
+
+	private void writeHead(long contentLength, boolean chunked) throws IOException {
+		StringBuilder sb = new StringBuilder(256);
+		String file = this.url.getFile();
+		sb.append(this.method).append(' ').append(file == null || file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n");
+		sb.append("Host: ").append(this.url.getHost());
+		if (this.url.getPort() > 0 && this.url.getPort() != this.url.getDefaultPort()) {
+			sb.append(':').append(this.url.getPort());
+		}
+		sb.append("\r\n");
+		boolean hasUserAgent = false, hasAccept = false, hasContentType = false;
+		for (Map.Entry<String, List<String>> e : this.requestHeaders.entrySet()) {
+			String key = e.getKey();
+			if (key == null || e.getValue() == null) {
+				continue;
+			}
+			String lower = key.toLowerCase(Locale.ROOT);
+			if (RESTRICTED_HEADERS.contains(lower)) {
+				continue;
+			}
+			hasUserAgent |= lower.equals("user-agent");
+			hasAccept |= lower.equals("accept");
+			hasContentType |= lower.equals("content-type");
+			for (String v : e.getValue()) {
+				sb.append(key).append(": ").append(v == null ? "" : v).append("\r\n");
+			}
+		}
+		if (!hasUserAgent) {
+			sb.append("User-Agent: Java/").append(System.getProperty("java.version")).append("\r\n");
+		}
+		if (!hasAccept) {
+			sb.append("Accept: */*\r\n");
+		}
+		if ((chunked || contentLength >= 0) && !hasContentType) {
+			sb.append("Content-Type: application/x-www-form-urlencoded\r\n");
+		}
+		if (chunked) {
+			sb.append("Transfer-Encoding: chunked\r\n");
+		} else if (contentLength >= 0) {
+			sb.append("Content-Length: ").append(contentLength).append("\r\n");
+		}
+		sb.append("\r\n");
+		this.conn.out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private void readStatusAndHeaders() throws IOException {
+		while (true) {
+			String line = this.readLine(true);
+			int sp1 = line.indexOf(' ');
+			if (!line.startsWith("HTTP/") || sp1 < 0) {
+				throw new IOException("Invalid Http response: " + line);
+			}
+			int sp2 = line.indexOf(' ', sp1 + 1);
+			String codeStr = sp2 < 0 ? line.substring(sp1 + 1) : line.substring(sp1 + 1, sp2);
+			int code;
+			try {
+				code = Integer.parseInt(codeStr.trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid Http response: " + line);
+			}
+			this.responseHeaders.clear();
+			String headerLine;
+			while (!(headerLine = this.readLine(false)).isEmpty()) {
+				int colon = headerLine.indexOf(':');
+				if (colon <= 0) {
+					continue;
+				}
+				this.responseHeaders.add(new String[] { headerLine.substring(0, colon).trim(), headerLine.substring(colon + 1).trim() });
+			}
+			// 跳过 100-continue 之类的中间响应
+			if (code >= 100 && code < 200 && code != 101) {
+				continue;
+			}
+			this.statusLine = line;
+			this.responseCode = code;
+			this.responseMessage = sp2 < 0 ? "" : line.substring(sp2 + 1);
+			String connection = this.getHeaderValue("Connection");
+			this.keepAlive = line.startsWith("HTTP/1.1") && (connection == null || !connection.toLowerCase(Locale.ROOT).contains("close"));
+			return;
+		}
+	}
+
+	private void setupBody() {
+		int code = this.responseCode;
+		if ("HEAD".equals(this.method) || code == 204 || code == 304) {
+			this.body = EmptyInputStream.INSTANCE;
+			return;
+		}
+		String te = this.getHeaderValue("Transfer-Encoding");
+		if (te != null && te.toLowerCase(Locale.ROOT).contains("chunked")) {
+			this.body = new ChunkedInputStream();
+			return;
+		}
+		String cl = this.getHeaderValue("Content-Length");
+		if (cl != null) {
+			try {
+				long len = Long.parseLong(cl.trim());
+				this.body = len <= 0 ? EmptyInputStream.INSTANCE : new FixedLengthInputStream(len);
+				return;
+			} catch (NumberFormatException ignore) {
+			}
+		}
+		// 没有长度信息，只能读到连接关闭为止，这条连接不能复用
+		this.keepAlive = false;
+		this.body = new UntilCloseInputStream();
+	}
+
+	private String getHeaderValue(String name) {
+		for (int i = this.responseHeaders.size() - 1; i >= 0; i--) {
+			String[] h = this.responseHeaders.get(i);
+			if (h[0].equalsIgnoreCase(name)) {
+				return h[1];
+			}
+		}
+		return null;
+	}
+
+	private String readLine(boolean first) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int c;
+		while ((c = this.conn.in.read()) != -1) {
+			this.responseStarted = true;
+			if (c == '\n') {
+				break;
+			}
+			if (c != '\r') {
+				line.write(c);
+			}
+			if (line.size() > MAX_LINE_LENGTH) {
+				throw new IOException("Http response line too long");
+			}
+		}
+		if (c == -1 && (first || line.size() == 0)) {
+			throw new EOFException("Unexpected end of file from server");
+		}
+		return line.toString(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * 	连接在上游回任何字节之前就被关掉了（读到 EOF、连接被重置、写的时候管道断开），说明上游没有处理这个请求，可以重发。
+	 * 	读超时不算：请求可能已经在生成了，重发会让同一个生成跑两遍。
+	 */
+	private static boolean isStaleConnection(IOException e) {
+		return e instanceof EOFException || e instanceof SocketException;
+	}
+
+	/**
+	 * 	响应体读到结尾：能复用就归还，不能复用就关闭。
+	 */
+	private void onBodyComplete() {
+		synchronized (this.lock) {
+			if (this.finished) {
+				return;
+			}
+			this.finished = true;
+		}
+		if (this.keepAlive) {
+			this.route.release(this.conn);
+		} else {
+			this.route.discard(this.conn, true);
+		}
+	}
+
+	private void abort() {
+		synchronized (this.lock) {
+			if (this.finished) {
+				return;
+			}
+			this.finished = true;
+		}
+		if (this.conn != null) {
+			this.route.discard(this.conn, true);
+		}
+	}
+
+	/**
+	 * 	在很短的时间内读完剩余响应。
+	 * @return 连接是否已经正常归还
+	 */
+	private boolean drain() {
+		if (!this.responseRead || this.responseFailure != null || !this.keepAlive || this.body == null) {
+			return false;
+		}
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+		byte[] scratch = new byte[8192];
+		int total = 0;
+		try {
+			while (true) {
+				synchronized (this.lock) {
+					if (this.finished) {
+						return true;
+					}
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0 || total > DRAIN_MAX_BYTES) {
+					return false;
+				}
+				this.conn.socket.setSoTimeout((int) remaining);
+				int n = this.body.read(scratch, 0, scratch.length);
+				if (n < 0) {
+					synchronized (this.lock) {
+						return this.finished;
+					}
+				}
+				total += n;
+			}
+		} catch (SocketTimeoutException e) {
+			return false;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	//##########################################################################################
+
+	private static final class EmptyInputStream extends InputStream {
+
+		static final EmptyInputStream INSTANCE = new EmptyInputStream();
+
+		@Override
+		public int read() {
+			return -1;
+		}
+	}
+
+	/**
+	 * 	响应体流的公共部分：读到结尾时回调，提前关闭时排空或丢弃连接。
+	 */
+	private abstract class BodyInputStream extends InputStream {
+
+		protected boolean eof;
+		private boolean closed;
+
+		protected abstract int readBody(byte[] b, int off, int len) throws IOException;
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			int n = this.read(one, 0, 1);
+			return n < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (this.closed) {
+				throw new IOException("stream is closed");
+			}
+			if (len == 0) {
+				return 0;
+			}
+			if (this.eof) {
+				return -1;
+			}
+			int n = this.readBody(b, off, len);
+			if (n < 0) {
+				this.eof = true;
+				onBodyComplete();
+			}
+			return n;
+		}
+
+		@Override
+		public void close() {
+			if (this.closed) {
+				return;
+			}
+			if (!this.eof) {
+				disconnect();
+			}
+			this.closed = true;
+		}
+	}
+
+	private final class FixedLengthInputStream extends BodyInputStream {
+
+		private long remaining;
+
+		FixedLengthInputStream(long length) {
+			this.remaining = length;
+		}
+
+		@Override
+		protected int readBody(byte[] b, int off, int len) throws IOException {
+			if (this.remaining <= 0) {
+				return -1;
+			}
+			int n = conn.in.read(b, off, (int) Math.min(len, this.remaining));
+			if (n < 0) {
+				throw new IOException("Premature EOF");
+			}
+			this.remaining -= n;
+			if (this.remaining == 0) {
+				// 最后一段数据读完就可以归还了，不必等调用方再读一次
+				this.eof = true;
+				onBodyComplete();
+			}
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return this.eof ? 0 : (int) Math.min(conn.in.available(), this.remaining);
+		}
+	}
+
+	private final class ChunkedInputStream extends BodyInputStream {
+
+		private long chunkRemaining;
+		private boolean started;
+
+		@Override
+		protected int readBody(byte[] b, int off, int len) throws IOException {
+			if (this.chunkRemaining == 0) {
+				if (this.started) {
+					String crlf = readLine(false);
+					if (!crlf.isEmpty()) {
+						throw new IOException("Malformed chunked encoding");
+					}
+				}
+				this.started = true;
+				String sizeLine = readLine(false);
+				int semi = sizeLine.indexOf(';');
+				String hex = (semi >= 0 ? sizeLine.substring(0, semi) : sizeLine).trim();
+				try {
+					this.chunkRemaining = Long.parseLong(hex, 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed chunk size: " + sizeLine);
+				}
+				if (this.chunkRemaining == 0) {
+					// 读掉 trailer
+					while (!readLine(false).isEmpty()) {
+					}
+					return -1;
+				}
+			}
+			int n = conn.in.read(b, off, (int) Math.min(len, this.chunkRemaining));
+			if (n < 0) {
+				throw new IOException("Premature EOF");
+			}
+			this.chunkRemaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return this.eof ? 0 : (int) Math.min(conn.in.available(), this.chunkRemaining);
+		}
+	}
+
+	private final class UntilCloseInputStream extends BodyInputStream {
+
+		@Override
+		protected int readBody(byte[] b, int off, int len) throws IOException {
+			return conn.in.read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return this.eof ? 0 : conn.in.available();
+		}
+	}
+
+	/**
+	 * 	分块发送请求体，和JDK的chunked streaming模式一样，攒满一块就发出去。
+	 */
+	private static final class ChunkedOutputStream extends OutputStream {
+
+		private final OutputStream out;
+		private final byte[] buf;
+		private int count;
+		private boolean closed;
+
+		ChunkedOutputStream(OutputStream out, int chunkLength) {
+			this.out = out;
+			this.buf = new byte[chunkLength];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (this.closed) {
+				throw new IOException("Stream is closed");
+			}
+			while (len > 0) {
+				int n = Math.min(len, this.buf.length - this.count);
+				System.arraycopy(b, off, this.buf, this.count, n);
+				this.count += n;
+				off += n;
+				len -= n;
+				if (this.count == this.buf.length) {
+					this.writeChunk();
+					this.out.flush();
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (this.closed) {
+				return;
+			}
+			this.writeChunk();
+			this.out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.closed) {
+				return;
+			}
+			this.writeChunk();
+			this.out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			this.out.flush();
+			this.closed = true;
+		}
+
+		private void writeChunk() throws IOException {
+			if (this.count == 0) {
+				return;
+			}
+			this.out.write((Integer.toHexString(this.count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			this.out.write(this.buf, 0, this.count);
+			this.out.write('\r');
+			this.out.write('\n');
+			this.count = 0;
+		}
+	}
+
+	private static final class FixedLengthOutputStream extends OutputStream {
+
+		private final OutputStream out;
+		private long remaining;
+		private boolean closed;
+
+		FixedLengthOutputStream(OutputStream out, long length) {
+			this.out = out;
+			this.remaining = length;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (this.closed) {
+				throw new IOException("Stream is closed");
+			}
+			if (len > this.remaining) {
+				throw new IOException("too many bytes to write to stream");
+			}
+			this.out.write(b, off, len);
+			this.remaining -= len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			this.out.flush();
+			if (this.remaining > 0) {
+				throw new IOException("insufficient data written");
+			}
+		}
+	}
+}
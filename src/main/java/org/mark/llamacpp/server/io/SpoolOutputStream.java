@@ -0,0 +1,108 @@
+package org.mark.llamacpp.server.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 	先写内存，超过上限后整体转到临时文件的输出流。写完以后用 {@link #writeTo} 一次性拷贝出去，
+ * 	{@link #close} 删除临时文件。不是线程安全的。
+ */
+public class SpoolOutputStream extends OutputStream {
+
+	private final int memoryLimit;
+	private final String prefix;
+	private final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+	private OutputStream fileOutput;
+	private Path file;
+	private long size;
+	private boolean closed;
+
+	/**
+	 *
+	 * @param memoryLimit 内存里最多保留的字节数
+	 * @param prefix 临时文件名前缀
+	 */
+	public SpoolOutputStream(int memoryLimit, String prefix) {
+		this.memoryLimit = memoryLimit;
+		this.prefix = prefix;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (this.closed) {
+			throw new IOException("stream already closed");
+		}
+		if (len <= 0) {
+			return;
+		}
+		this.size += len;
+		if (this.fileOutput != null) {
+			this.fileOutput.write(b, off, len);
+			return;
+		}
+		if (this.memory.size() + len <= this.memoryLimit) {
+			this.memory.write(b, off, len);
+			return;
+		}
+		this.file = Files.createTempFile(this.prefix, ".tmp");
+		this.fileOutput = Files.newOutputStream(this.file);
+		this.memory.writeTo(this.fileOutput);
+		this.memory.reset();
+		this.fileOutput.write(b, off, len);
+	}
+
+	/**
+	 * 	已写入的字节数。
+	 * @return
+	 */
+	public long size() {
+		return this.size;
+	}
+
+	/**
+	 * 	是否已经转到临时文件。
+	 * @return
+	 */
+	public boolean isSpooled() {
+		return this.file != null;
+	}
+
+	/**
+	 * 	把写入的全部内容拷贝到 target。
+	 * @param target
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream target) throws IOException {
+		if (this.fileOutput != null) {
+			this.fileOutput.flush();
+			Files.copy(this.file, target);
+		} else {
+			this.memory.writeTo(target);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		try {
+			if (this.fileOutput != null) {
+				this.fileOutput.close();
+			}
+		} finally {
+			if (this.file != null) {
+				Files.deleteIfExists(this.file);
+			}
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package org.mark.llamacpp.server.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 	按行读取SSE流，直接在字节上操作，不解码成字符串。
+ * 	<p>
+ * 	每次 {@link #next()} 把下一行（不含行尾的 \r\n 或 \n）放进内部缓冲区，下一次调用时会被覆盖。
+ * 	转发时用 {@link #writeTo(ByteBuf)} 原样拷贝；只有需要看内容的行才调用 {@link #toString(int)}。
+ * 	非线程安全，一个流一个实例。
+ */
+public final class SseLineReader {
+
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+	private final InputStream in;
+
+	private final byte[] buf = new byte[READ_BUFFER_SIZE];
+	private int pos;
+	private int limit;
+	private boolean eof;
+
+	private byte[] line = new byte[1024];
+	private int length;
+
+	public SseLineReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * 	读取下一行。
+	 * @return 流结束且没有剩余数据时返回false
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		this.length = 0;
+		boolean any = false;
+		while (true) {
+			if (this.pos >= this.limit) {
+				if (this.eof || !this.fill()) {
+					return any;
+				}
+			}
+			any = true;
+			int start = this.pos;
+			int end = start;
+			while (end < this.limit && this.buf[end] != '\n') {
+				end++;
+			}
+			this.append(start, end);
+			if (end < this.limit) {
+				// 跳过 \n，并去掉行尾的 \r
+				this.pos = end + 1;
+				if (this.length > 0 && this.line[this.length - 1] == '\r') {
+					this.length--;
+				}
+				return true;
+			}
+			this.pos = end;
+		}
+	}
+
+	/**
+	 * 	缓冲区里是否还有没读的数据。没有时下一次 {@link #next()} 会阻塞在网络读上，调用方可以借此决定何时flush。
+	 * @return
+	 */
+	public boolean hasBuffered() {
+		return this.pos < this.limit;
+	}
+
+	public int length() {
+		return this.length;
+	}
+
+	public boolean isEmpty() {
+		return this.length == 0;
+	}
+
+	public boolean startsWith(byte[] prefix) {
+		return this.regionEquals(0, prefix);
+	}
+
+	/**
+	 * 	从 offset 开始到行尾是否正好等于 value。
+	 * @param offset
+	 * @param value
+	 * @return
+	 */
+	public boolean equalsAt(int offset, byte[] value) {
+		return this.length - offset == value.length && this.regionEquals(offset, value);
+	}
+
+	/**
+	 * 	从 offset 开始是否包含 needle。
+	 * @param needle
+	 * @param offset
+	 * @return
+	 */
+	public boolean contains(byte[] needle, int offset) {
+		int last = this.length - needle.length;
+		byte first = needle[0];
+		for (int i = Math.max(0, offset); i <= last; i++) {
+			if (this.line[i] == first && this.regionEquals(i, needle)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 	从 offset 开始的内容，按UTF-8解码。
+	 * @param offset
+	 * @return
+	 */
+	public String toString(int offset) {
+		int from = Math.min(Math.max(0, offset), this.length);
+		return new String(this.line, from, this.length - from, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return this.toString(0);
+	}
+
+	/**
+	 * 	把当前行原样写入 out（不含行尾）。
+	 * @param out
+	 */
+	public void writeTo(ByteBuf out) {
+		out.writeBytes(this.line, 0, this.length);
+	}
+
+	private boolean regionEquals(int offset, byte[] value) {
+		if (offset < 0 || offset + value.length > this.length) {
+			return false;
+		}
+		for (int i = 0; i < value.length; i++) {
+			if (this.line[offset + i] != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean fill() throws IOException {
+		int n;
+		do {
+			n = this.in.read(this.buf, 0, this.buf.length);
+		} while (n == 0);
+		if (n < 0) {
+			this.eof = true;
+			this.pos = 0;
+			this.limit = 0;
+			return false;
+		}
+		this.pos = 0;
+		this.limit = n;
+		return true;
+	}
+
+	private void append(int start, int end) {
+		int n = end - start;
+		if (n <= 0) {
+			return;
+		}
+		if (this.length + n > this.line.length) {
+			this.line = Arrays.copyOf(this.line, Math.max(this.line.length * 2, this.length + n));
+		}
+		System.arraycopy(this.buf, start, this.line, this.length, n);
+		this.length += n;
+	}
+}
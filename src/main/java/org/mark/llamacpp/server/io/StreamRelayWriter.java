@@ -0,0 +1,216 @@
+package org.mark.llamacpp.server.io;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.util.AttributeKey;
+
+/**
+ * 	流式响应（SSE、NDJSON）转发时的写出端，按通道的可写状态做背压。
+ * 	<p>
+ * 	转发线程（虚拟线程）逐行读上游，每行用 {@link #append} 追加，{@link #shouldFlush} 返回 true 时调用 {@link #flush}。
+ * 	通道写缓冲超过高水位（不可写）以后：
+ * 	<ul>
+ * 	<li>上游已经读进缓冲的行继续追加，不单独写出；</li>
+ * 	<li>需要再从上游读取之前，{@link #flush} 阻塞到写缓冲回落到低水位以下，这期间不读上游，由 TCP 把压力传回 llama-server；</li>
+ * 	<li>恢复可写后，积攒的数据合并成一个 HttpContent 写出。</li>
+ * 	</ul>
+ * 	客户端断开或者长时间不接收数据时 {@link #flush} 抛出 IOException，调用方据此断开上游。
+ * 	<p>
+ * 	通道可写状态变化由 {@link org.mark.llamacpp.server.channel.HttpKeepAliveHandler} 通过 {@link #onWritabilityChanged} 通知。
+ */
+public final class StreamRelayWriter {
+
+	private static final AttributeKey<StreamRelayWriter> WRITER = AttributeKey.valueOf("llamahub.streamRelayWriter");
+
+	/**
+	 * 	可写时积攒到这么多就写出，要小于写缓冲的低水位
+	 */
+	public static final int DEFAULT_FLUSH_THRESHOLD = 16 * 1024;
+
+	/**
+	 * 	客户端一直不接收数据的最长等待时间
+	 */
+	private static final long DEFAULT_STALL_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+
+	private final ChannelHandlerContext ctx;
+
+	private final ChannelFutureListener writeListener;
+
+	private final int flushThreshold;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition writable = this.lock.newCondition();
+
+	private long stallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MILLIS;
+
+	private CompositeByteBuf pending;
+
+	private int pendingBytes;
+
+	/**
+	 * 	因为通道不可写暂停读上游的次数
+	 */
+	private int pauseCount;
+
+	/**
+	 * 	暂停读上游的累计时间
+	 */
+	private long pausedNanos;
+
+	public StreamRelayWriter(ChannelHandlerContext ctx, ChannelFutureListener writeListener) {
+		this(ctx, writeListener, DEFAULT_FLUSH_THRESHOLD);
+	}
+
+	/**
+	 *
+	 * @param ctx
+	 * @param writeListener 每次写出都加上的监听器，可以为 null
+	 * @param flushThreshold
+	 */
+	public StreamRelayWriter(ChannelHandlerContext ctx, ChannelFutureListener writeListener, int flushThreshold) {
+		this.ctx = ctx;
+		this.writeListener = writeListener;
+		this.flushThreshold = flushThreshold;
+		ctx.channel().attr(WRITER).set(this);
+	}
+
+	public void setStallTimeoutMillis(long stallTimeoutMillis) {
+		this.stallTimeoutMillis = stallTimeoutMillis;
+	}
+
+	/**
+	 * 	追加一段要发给客户端的数据，所有权转交给这里。
+	 * @param content
+	 */
+	public void append(ByteBuf content) {
+		if (this.pending == null) {
+			this.pending = this.ctx.alloc().compositeBuffer(Integer.MAX_VALUE);
+		}
+		this.pendingBytes += content.readableBytes();
+		this.pending.addComponent(true, content);
+	}
+
+	/**
+	 * 	还没写出的字节数。
+	 * @return
+	 */
+	public int getPendingBytes() {
+		return this.pendingBytes;
+	}
+
+	public int getPauseCount() {
+		return this.pauseCount;
+	}
+
+	public long getPausedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.pausedNanos);
+	}
+
+	/**
+	 * 	是否应该写出：接下来要从上游读取（上游缓冲里没有现成的数据）时必须写出，否则客户端要等下一批数据；
+	 * 	可写并且积攒够了也写出。不可写时尽量把上游已经到达的数据合并到一起。
+	 * @param upstreamBuffered 上游读取器里还有没处理的数据
+	 * @return
+	 */
+	public boolean shouldFlush(boolean upstreamBuffered) {
+		if (this.pendingBytes == 0) {
+			return false;
+		}
+		if (!upstreamBuffered) {
+			return true;
+		}
+		return this.pendingBytes >= this.flushThreshold && this.ctx.channel().isWritable();
+	}
+
+	/**
+	 * 	等通道可写后把积攒的数据作为一个 HttpContent 写出。
+	 * @throws IOException 客户端已断开或者长时间不接收数据
+	 */
+	public void flush() throws IOException {
+		if (this.pending == null) {
+			return;
+		}
+		this.awaitWritable();
+		ByteBuf out = this.pending;
+		this.pending = null;
+		this.pendingBytes = 0;
+		ChannelFuture future = this.ctx.writeAndFlush(new DefaultHttpContent(out));
+		if (this.writeListener != null) {
+			future.addListener(this.writeListener);
+		}
+	}
+
+	/**
+	 * 	释放没写出的数据并解除和通道的关联，转发结束时调用。
+	 */
+	public void close() {
+		if (this.pending != null) {
+			this.pending.release();
+			this.pending = null;
+			this.pendingBytes = 0;
+		}
+		Channel channel = this.ctx.channel();
+		channel.attr(WRITER).compareAndSet(this, null);
+	}
+
+	private void awaitWritable() throws IOException {
+		Channel channel = this.ctx.channel();
+		if (channel.isWritable()) {
+			return;
+		}
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(this.stallTimeoutMillis);
+		this.pauseCount++;
+		this.lock.lock();
+		try {
+			while (!channel.isWritable()) {
+				if (!channel.isActive()) {
+					throw new IOException("Connection closed");
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new IOException("Client stopped reading for " + this.stallTimeoutMillis + " ms");
+				}
+				// 通知可能错过（比如通道关闭），最多等一秒重新检查
+				this.writable.awaitNanos(Math.min(remaining, TimeUnit.SECONDS.toNanos(1)));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the client", e);
+		} finally {
+			this.lock.unlock();
+			this.pausedNanos += System.nanoTime() - start;
+		}
+	}
+
+	private void signal() {
+		this.lock.lock();
+		try {
+			this.writable.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * 	通道可写状态变化或者关闭时调用，唤醒等待的转发线程。
+	 * @param channel
+	 */
+	public static void onWritabilityChanged(Channel channel) {
+		StreamRelayWriter writer = channel.attr(WRITER).get();
+		if (writer != null) {
+			writer.signal();
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package org.mark.llamacpp.server.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * 	到上游（本机llama-server、远程节点）的HTTP/1.1长连接池。
+ * 	<p>
+ * 	每个 host:port 一个池，只缓存空闲连接，数量有上限；超出上限或超时的空闲连接直接关闭。
+ * 	通过 {@link #openConnection(URL)} 拿到的对象是一个 {@link HttpURLConnection}，
+ * 	原有的读写代码不需要改动，{@code disconnect()} 时如果响应已经读完，套接字会回到池里。
+ * 	https 的地址不走池，仍然交给JDK处理。
+ */
+public class UpstreamConnectionPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(UpstreamConnectionPool.class);
+
+	/**
+	 * 	每个上游最多保留的空闲连接数。
+	 */
+	private static final int MAX_IDLE_PER_ROUTE = 64;
+
+	/**
+	 * 	空闲连接的存活时间。llama-server（cpp-httplib）默认5秒关闭空闲连接，这里要比它短。
+	 */
+	private static final long IDLE_TIMEOUT_MS = 3000;
+
+	private static final int SOCKET_BUFFER_SIZE = 16 * 1024;
+
+	private static final UpstreamConnectionPool INSTANCE = new UpstreamConnectionPool();
+
+	public static UpstreamConnectionPool getInstance() {
+		return INSTANCE;
+	}
+
+	private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+	private UpstreamConnectionPool() {
+
+	}
+
+	/**
+	 * 	打开一个到上游的连接。http地址走连接池，其他协议回退到 {@link URL#openConnection()}。
+	 * @param url
+	 * @return
+	 * @throws IOException
+	 */
+	public HttpURLConnection openConnection(URL url) throws IOException {
+		if (url == null) {
+			throw new IOException("url is null");
+		}
+		if (!"http".equalsIgnoreCase(url.getProtocol())) {
+			return (HttpURLConnection) url.openConnection();
+		}
+		return new PooledHttpURLConnection(url, this.route(url));
+	}
+
+	/**
+	 * 	关闭指定端口上的所有空闲连接，模型停止后调用。
+	 * @param port
+	 */
+	public void closeRoutesForPort(int port) {
+		for (Route route : this.routes.values()) {
+			if (route.port == port) {
+				route.closeIdle();
+			}
+		}
+	}
+
+	/**
+	 * 	各个池的统计信息。
+	 * @return
+	 */
+	public JsonObject getStats() {
+		JsonArray pools = new JsonArray();
+		long idle = 0, leased = 0, created = 0, reused = 0;
+		for (Route route : this.routes.values()) {
+			JsonObject item = route.toJson();
+			pools.add(item);
+			idle += route.idleCount();
+			leased += route.leased.get();
+			created += route.created.get();
+			reused += route.reused.get();
+		}
+		JsonObject out = new JsonObject();
+		out.addProperty("maxIdlePerRoute", MAX_IDLE_PER_ROUTE);
+		out.addProperty("idleTimeoutMs", IDLE_TIMEOUT_MS);
+		out.addProperty("idle", idle);
+		out.addProperty("leased", leased);
+		out.addProperty("created", created);
+		out.addProperty("reused", reused);
+		out.add("pools", pools);
+		return out;
+	}
+
+	private Route route(URL url) {
+		String host = url.getHost() == null ? "localhost" : url.getHost().toLowerCase(Locale.ROOT);
+		int port = url.getPort() > 0 ? url.getPort() : url.getDefaultPort();
+		String key = host + ":" + port;
+		return this.routes.computeIfAbsent(key, k -> new Route(host, port));
+	}
+
+	/**
+	 * 	一个上游地址对应的池。
+	 */
+	static final class Route {
+
+		final String host;
+		final int port;
+
+		private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+		final AtomicInteger leased = new AtomicInteger();
+		final AtomicLong created = new AtomicLong();
+		final AtomicLong reused = new AtomicLong();
+		final AtomicLong closed = new AtomicLong();
+
+		private Route(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		/**
+		 * 	借出一个连接：优先复用空闲连接，否则新建。
+		 * @param connectTimeout
+		 * @return
+		 * @throws IOException
+		 */
+		Connection lease(int connectTimeout) throws IOException {
+			while (true) {
+				Connection conn;
+				synchronized (this.idle) {
+					conn = this.idle.pollLast();
+				}
+				if (conn == null) {
+					break;
+				}
+				if (conn.isReusable()) {
+					this.reused.incrementAndGet();
+					this.leased.incrementAndGet();
+					conn.reused = true;
+					return conn;
+				}
+				this.discard(conn, false);
+			}
+			return this.open(connectTimeout);
+		}
+
+		/**
+		 * 	新建一个连接并借出，不使用空闲连接。
+		 * @param connectTimeout
+		 * @return
+		 * @throws IOException
+		 */
+		Connection open(int connectTimeout) throws IOException {
+			Connection conn = Connection.open(this.host, this.port, connectTimeout);
+			this.created.incrementAndGet();
+			this.leased.incrementAndGet();
+			return conn;
+		}
+
+		/**
+		 * 	归还连接。
+		 * @param conn
+		 */
+		void release(Connection conn) {
+			this.leased.decrementAndGet();
+			conn.idleSince = System.currentTimeMillis();
+			Connection evicted = null;
+			synchronized (this.idle) {
+				this.idle.addLast(conn);
+				if (this.idle.size() > MAX_IDLE_PER_ROUTE) {
+					evicted = this.idle.pollFirst();
+				}
+			}
+			if (evicted != null) {
+				this.discard(evicted, false);
+			}
+		}
+
+		/**
+		 * 	丢弃一个连接。
+		 * @param conn
+		 * @param wasLeased
+		 */
+		void discard(Connection conn, boolean wasLeased) {
+			if (wasLeased) {
+				this.leased.decrementAndGet();
+			}
+			this.closed.incrementAndGet();
+			conn.close();
+		}
+
+		void closeIdle() {
+			synchronized (this.idle) {
+				Iterator<Connection> it = this.idle.iterator();
+				while (it.hasNext()) {
+					Connection conn = it.next();
+					it.remove();
+					this.closed.incrementAndGet();
+					conn.close();
+				}
+			}
+		}
+
+		int idleCount() {
+			synchronized (this.idle) {
+				return this.idle.size();
+			}
+		}
+
+		JsonObject toJson() {
+			JsonObject item = new JsonObject();
+			item.addProperty("host", this.host);
+			item.addProperty("port", this.port);
+			item.addProperty("idle", this.idleCount());
+			item.addProperty("leased", this.leased.get());
+			item.addProperty("created", this.created.get());
+			item.addProperty("reused", this.reused.get());
+			item.addProperty("closed", this.closed.get());
+			return item;
+		}
+	}
+
+	/**
+	 * 	池里的一条TCP连接。
+	 */
+	static final class Connection {
+
+		final SocketChannel channel;
+		final Socket socket;
+		final BufferedInputStream in;
+		final BufferedOutputStream out;
+		volatile long idleSince;
+		volatile boolean reused;
+
+		private Connection(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			this.socket = channel.socket();
+			this.in = new BufferedInputStream(this.socket.getInputStream(), SOCKET_BUFFER_SIZE);
+			this.out = new BufferedOutputStream(this.socket.getOutputStream(), SOCKET_BUFFER_SIZE);
+		}
+
+		static Connection open(String host, int port, int connectTimeout) throws IOException {
+			SocketChannel channel = SocketChannel.open();
+			try {
+				Socket socket = channel.socket();
+				socket.setTcpNoDelay(true);
+				socket.setKeepAlive(true);
+				socket.connect(new InetSocketAddress(host, port), Math.max(0, connectTimeout));
+				return new Connection(channel);
+			} catch (IOException e) {
+				try {
+					channel.close();
+				} catch (IOException ignore) {
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * 	判断空闲连接是否还能用：没超时，对端没有关闭，也没有多余的数据。
+		 * 	用非阻塞读探测一下，不会额外等待。
+		 * @return
+		 */
+		boolean isReusable() {
+			if (System.currentTimeMillis() - this.idleSince > IDLE_TIMEOUT_MS) {
+				return false;
+			}
+			if (!this.channel.isOpen() || this.socket.isInputShutdown() || this.socket.isOutputShutdown()) {
+				return false;
+			}
+			try {
+				if (this.in.available() > 0) {
+					return false;
+				}
+				this.channel.configureBlocking(false);
+				try {
+					return this.channel.read(ByteBuffer.allocate(1)) == 0;
+				} finally {
+					this.channel.configureBlocking(true);
+				}
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		void close() {
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				logger.debug("关闭上游连接失败: {}", e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package org.mark.llamacpp.server.metrics;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.mark.llamacpp.server.LlamaHubNode;
+import org.mark.llamacpp.server.NodeManager;
+import org.mark.llamacpp.server.channel.HttpRouter;
+import org.mark.llamacpp.server.service.ModelRequestTracker;
+
+/**
+ * 	本服务自身请求路径上的指标，输出 Prometheus 文本格式（/metrics）。
+ * 	<p>
+ * 	按 模型 + 端点 + 节点 分组，每组是一个 {@link Series}；记录路径上只有一次 ConcurrentHashMap 查找（请求开始时），
+ * 	之后都是对 {@link LatencyHistogram} 和 {@link LongAdder} 的无锁累加。
+ */
+public class HubMetrics {
+
+	private static final HubMetrics INSTANCE = new HubMetrics();
+
+	/**
+	 * 	本机节点的标签值。
+	 */
+	public static final String LOCAL_NODE = "local";
+
+	private static final String PREFIX = "llamahub_";
+
+	private final Map<SeriesKey, Series> series = new ConcurrentHashMap<>();
+
+	/**
+	 * 	管理接口的路由表，输出每个路由的请求数
+	 */
+	private volatile HttpRouter router;
+
+	public static HubMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	private HubMetrics() {
+
+	}
+
+	/**
+	 * 	开始记录一个请求。
+	 * @param modelId
+	 * @param endpoint 请求路径，查询参数会被去掉
+	 * @param nodeId 转发到的节点，null 表示本机
+	 * @param receivedNanos 收到请求的时间（{@link System#nanoTime()}），0 表示未知，不记排队时间
+	 * @return
+	 */
+	public RequestMetrics start(String modelId, String endpoint, String nodeId, long receivedNanos) {
+		SeriesKey key = new SeriesKey(
+				modelId == null ? "" : modelId,
+				normalizeEndpoint(endpoint),
+				nodeId == null || nodeId.isBlank() ? LOCAL_NODE : nodeId);
+		Series s = this.series.computeIfAbsent(key, k -> new Series());
+		long now = System.nanoTime();
+		if (receivedNanos > 0L) {
+			s.queue.observeNanos(now - receivedNanos);
+		}
+		return new RequestMetrics(s, now);
+	}
+
+	/**
+	 * 	设置要输出请求计数的路由表。
+	 * @param router
+	 */
+	public void setRouter(HttpRouter router) {
+		this.router = router;
+	}
+
+	/**
+	 * 	根据转发的目标地址判断是哪个节点。
+	 * @param targetUrl
+	 * @return 节点ID；本机或无法识别时返回 null
+	 */
+	public static String nodeOf(String targetUrl) {
+		if (targetUrl == null) {
+			return null;
+		}
+		try {
+			String host = URI.create(targetUrl).getHost();
+			if (host == null || "localhost".equalsIgnoreCase(host) || "127.0.0.1".equals(host)) {
+				return null;
+			}
+			for (LlamaHubNode node : NodeManager.getInstance().listNodes()) {
+				String base = node.getBaseUrl();
+				if (base != null && !base.isBlank() && targetUrl.startsWith(base)) {
+					return node.getNodeId();
+				}
+			}
+			int port = URI.create(targetUrl).getPort();
+			return port > 0 ? host + ":" + port : host;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 	输出全部指标。
+	 * @return Prometheus 文本格式
+	 */
+	public String render() {
+		List<Map.Entry<SeriesKey, Series>> entries = new ArrayList<>(this.series.entrySet());
+		entries.sort(Comparator.comparing((Map.Entry<SeriesKey, Series> e) -> e.getKey().model())
+				.thenComparing(e -> e.getKey().endpoint())
+				.thenComparing(e -> e.getKey().node()));
+		List<String> labels = new ArrayList<>(entries.size());
+		for (Map.Entry<SeriesKey, Series> e : entries) {
+			labels.add(e.getKey().labels());
+		}
+		StringBuilder out = new StringBuilder(4096 + entries.size() * 4096);
+
+		this.writeHistograms(out, entries, labels, "queue_seconds",
+				"收到请求到开始转发的时间（请求体接收、路由、按需加载模型）", s -> s.queue);
+		this.writeHistograms(out, entries, labels, "upstream_connect_seconds",
+				"开始转发到上游返回响应头的时间（连接、发送请求体、上游接受请求）", s -> s.upstreamConnect);
+		this.writeHistograms(out, entries, labels, "time_to_first_token_seconds",
+				"开始转发到向客户端发出第一个数据块的时间，只统计流式响应", s -> s.timeToFirstToken);
+		this.writeHistograms(out, entries, labels, "inter_token_latency_seconds",
+				"流式响应中相邻两个数据块的间隔", s -> s.interTokenLatency);
+		this.writeHistograms(out, entries, labels, "request_duration_seconds",
+				"开始转发到请求结束的总时间", s -> s.duration);
+
+		this.writeCounters(out, entries, labels, "requests_total", "结束的请求数", s -> s.requests);
+		this.writeCounters(out, entries, labels, "request_errors_total",
+				"失败的请求数（上游返回 4xx/5xx 或没有等到上游响应）", s -> s.errors);
+		this.writeCounters(out, entries, labels, "response_bytes_total", "转发给客户端的响应字节数", s -> s.bytes);
+
+		// 正在处理的请求数，直接取 ModelRequestTracker 的实时值
+		out.append("# HELP ").append(PREFIX).append("requests_active 正在处理的请求数\n");
+		out.append("# TYPE ").append(PREFIX).append("requests_active gauge\n");
+		ModelRequestTracker tracker = ModelRequestTracker.getInstance();
+		List<String> busy = new ArrayList<>(tracker.getBusyModels());
+		busy.sort(null);
+		for (String modelId : busy) {
+			out.append(PREFIX).append("requests_active{model=\"").append(escape(modelId)).append("\"} ")
+					.append(tracker.getModelActiveCount(modelId)).append('\n');
+		}
+
+		HttpRouter router = this.router;
+		if (router != null) {
+			out.append("# HELP ").append(PREFIX).append("http_route_requests_total 管理接口按路由统计的请求数\n");
+			out.append("# TYPE ").append(PREFIX).append("http_route_requests_total counter\n");
+			for (HttpRouter.Route route : router.getRoutes()) {
+				out.append(PREFIX).append("http_route_requests_total{method=\"").append(route.getMethod().name())
+						.append("\",route=\"").append(escape(route.getPattern())).append("\"} ")
+						.append(route.getRequestCount()).append('\n');
+			}
+		}
+		return out.toString();
+	}
+
+	private void writeHistograms(StringBuilder out, List<Map.Entry<SeriesKey, Series>> entries, List<String> labels,
+			String name, String help, Function<Series, LatencyHistogram> getter) {
+		String full = PREFIX + name;
+		out.append("# HELP ").append(full).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(full).append(" histogram\n");
+		for (int i = 0; i < entries.size(); i++) {
+			getter.apply(entries.get(i).getValue()).writeTo(out, full, labels.get(i));
+		}
+	}
+
+	private void writeCounters(StringBuilder out, List<Map.Entry<SeriesKey, Series>> entries, List<String> labels,
+			String name, String help, Function<Series, LongAdder> getter) {
+		String full = PREFIX + name;
+		out.append("# HELP ").append(full).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(full).append(" counter\n");
+		for (int i = 0; i < entries.size(); i++) {
+			out.append(full).append('{').append(labels.get(i)).append("} ")
+					.append(getter.apply(entries.get(i).getValue()).sum()).append('\n');
+		}
+	}
+
+	private static String normalizeEndpoint(String endpoint) {
+		if (endpoint == null || endpoint.isEmpty()) {
+			return "";
+		}
+		int q = endpoint.indexOf('?');
+		return q >= 0 ? endpoint.substring(0, q) : endpoint;
+	}
+
+	/**
+	 * 	标签值转义：反斜杠、双引号、换行。
+	 * @param value
+	 * @return
+	 */
+	private static String escape(String value) {
+		StringBuilder sb = null;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			String rep = c == '\\' ? "\\\\" : c == '"' ? "\\\"" : c == '\n' ? "\\n" : null;
+			if (rep != null && sb == null) {
+				sb = new StringBuilder(value.length() + 8).append(value, 0, i);
+			}
+			if (sb != null) {
+				if (rep != null) {
+					sb.append(rep);
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb == null ? value : sb.toString();
+	}
+
+	private record SeriesKey(String model, String endpoint, String node) {
+
+		String labels() {
+			return "model=\"" + escape(this.model) + "\",endpoint=\"" + escape(this.endpoint) + "\",node=\"" + escape(this.node) + "\"";
+		}
+	}
+
+	/**
+	 * 	一组标签下的全部指标。
+	 */
+	static final class Series {
+		final LatencyHistogram queue = new LatencyHistogram(LatencyHistogram.REQUEST_BUCKETS);
+		final LatencyHistogram upstreamConnect = new LatencyHistogram(LatencyHistogram.REQUEST_BUCKETS);
+		final LatencyHistogram timeToFirstToken = new LatencyHistogram(LatencyHistogram.REQUEST_BUCKETS);
+		final LatencyHistogram interTokenLatency = new LatencyHistogram(LatencyHistogram.TOKEN_BUCKETS);
+		final LatencyHistogram duration = new LatencyHistogram(LatencyHistogram.REQUEST_BUCKETS);
+		final LongAdder requests = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+	}
+}
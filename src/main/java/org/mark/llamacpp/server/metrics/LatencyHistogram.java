@@ -0,0 +1,95 @@
+package org.mark.llamacpp.server.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 	固定分桶的延迟直方图，无锁。
+ * 	<p>
+ * 	每个桶只记自己区间内的次数（不累加），输出成 Prometheus 格式时再做前缀和；
+ * 	记录一次只是一次二分查找加两次 {@link LongAdder#increment()}，可以放在逐 token 的路径上。
+ */
+public final class LatencyHistogram {
+
+	/**
+	 * 	请求级别的延迟分桶（秒）：排队、连接、首 token、总耗时。
+	 */
+	public static final double[] REQUEST_BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300 };
+
+	/**
+	 * 	token 间隔的分桶（秒）。
+	 */
+	public static final double[] TOKEN_BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.02, 0.03, 0.05, 0.075, 0.1, 0.2, 0.5, 1, 2.5 };
+
+	/**
+	 * 	桶上界，单位纳秒，升序。
+	 */
+	private final long[] boundsNanos;
+
+	private final double[] boundsSeconds;
+
+	/**
+	 * 	比上界数多一个，最后一个是 +Inf。
+	 */
+	private final LongAdder[] counts;
+
+	private final LongAdder sumNanos = new LongAdder();
+
+	public LatencyHistogram(double[] bucketsSeconds) {
+		this.boundsSeconds = bucketsSeconds.clone();
+		this.boundsNanos = new long[bucketsSeconds.length];
+		for (int i = 0; i < bucketsSeconds.length; i++) {
+			this.boundsNanos[i] = (long) (bucketsSeconds[i] * 1_000_000_000L);
+		}
+		this.counts = new LongAdder[bucketsSeconds.length + 1];
+		for (int i = 0; i < this.counts.length; i++) {
+			this.counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * 	记录一次耗时。
+	 * @param nanos 纳秒，负数按0算
+	 */
+	public void observeNanos(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		int i = Arrays.binarySearch(this.boundsNanos, nanos);
+		// 正好落在上界上属于这个桶；否则是第一个比它大的上界
+		if (i < 0) {
+			i = -i - 1;
+		}
+		this.counts[i].increment();
+		this.sumNanos.add(nanos);
+	}
+
+	/**
+	 * 	按 Prometheus 文本格式输出 _bucket、_sum、_count 三组样本。
+	 * @param out
+	 * @param name 指标名，不含后缀
+	 * @param labels 已经转义好的标签，形如 model="a",node="local"
+	 */
+	void writeTo(StringBuilder out, String name, String labels) {
+		long cumulative = 0;
+		for (int i = 0; i < this.counts.length; i++) {
+			cumulative += this.counts[i].sum();
+			out.append(name).append("_bucket{").append(labels).append(",le=\"");
+			if (i < this.boundsSeconds.length) {
+				out.append(formatBound(this.boundsSeconds[i]));
+			} else {
+				out.append("+Inf");
+			}
+			out.append("\"} ").append(cumulative).append('\n');
+		}
+		out.append(name).append("_sum{").append(labels).append("} ").append(this.sumNanos.sum() / 1e9).append('\n');
+		out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+	}
+
+	private static String formatBound(double v) {
+		if (v == Math.rint(v)) {
+			return Long.toString((long) v);
+		}
+		return Double.toString(v);
+	}
+}
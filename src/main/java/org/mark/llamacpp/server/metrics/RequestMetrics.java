@@ -0,0 +1,93 @@
+package org.mark.llamacpp.server.metrics;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 	单个请求的计时。由 {@link HubMetrics#start} 创建，跟着请求走，结束时调用 {@link #finish()} 一次。
+ * 	<p>
+ * 	时间点：收到请求 → 创建（排队结束）→ 上游返回响应头 → 第一个数据块 → 之后每个数据块 → 结束。
+ * 	除了 {@link #finish()}，其余方法只应由转发这个请求的线程调用。
+ */
+public class RequestMetrics {
+
+	/**
+	 * 	不记录任何东西，拿不到请求ID时用它，调用方不用判空。
+	 */
+	public static final RequestMetrics NOOP = new RequestMetrics(null, 0L);
+
+	private final HubMetrics.Series series;
+
+	private final long startNanos;
+
+	private long lastChunkNanos;
+
+	private boolean responded;
+
+	private boolean failed;
+
+	/**
+	 * 	转发给客户端的字节数，结束时一次性累加到指标上。
+	 */
+	private long bytes;
+
+	private final AtomicBoolean finished = new AtomicBoolean(false);
+
+	RequestMetrics(HubMetrics.Series series, long startNanos) {
+		this.series = series;
+		this.startNanos = startNanos;
+	}
+
+	/**
+	 * 	上游返回了响应头。
+	 * @param responseCode
+	 */
+	public void onUpstreamResponse(int responseCode) {
+		if (this.series == null || this.responded) {
+			return;
+		}
+		this.responded = true;
+		this.failed = responseCode >= 400;
+		this.series.upstreamConnect.observeNanos(System.nanoTime() - this.startNanos);
+	}
+
+	/**
+	 * 	向客户端转发了一个数据块（流式响应里基本是一个 token）。
+	 * @param size 字节数
+	 */
+	public void onChunk(int size) {
+		if (this.series == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (this.lastChunkNanos == 0L) {
+			this.series.timeToFirstToken.observeNanos(now - this.startNanos);
+		} else {
+			this.series.interTokenLatency.observeNanos(now - this.lastChunkNanos);
+		}
+		this.lastChunkNanos = now;
+		this.bytes += size;
+	}
+
+	/**
+	 * 	转发了不算 token 的数据（事件行、分隔符、非流式响应体）。
+	 * @param size 字节数
+	 */
+	public void addBytes(long size) {
+		this.bytes += size;
+	}
+
+	/**
+	 * 	请求结束，重复调用只算一次。没等到上游响应就结束的算作失败。
+	 */
+	public void finish() {
+		if (this.series == null || !this.finished.compareAndSet(false, true)) {
+			return;
+		}
+		this.series.duration.observeNanos(System.nanoTime() - this.startNanos);
+		this.series.requests.increment();
+		if (this.failed || !this.responded) {
+			this.series.errors.increment();
+		}
+		this.series.bytes.add(this.bytes);
+	}
+}
@@ -0,0 +1,234 @@
+package org.mark.llamacpp.server.service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.PrefixFingerprint;
+import org.mark.llamacpp.server.io.SpoolOutputStream;
+import org.mark.llamacpp.server.tools.ParamTool;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+
+
+/**
+ * 	Anthropic /v1/messages 请求体的流式转换，输出 OpenAI /v1/chat/completions 的请求体。
+ * 	<p>
+ * 	messages 数组按条读取，每条单独解析、用 {@link AnthropicService#appendOaiMessages} 转换后写进临时缓冲（超过 1MB 落盘），
+ * 	内存里同时只有一条消息；其余顶层小字段缓冲下来，最后交给 {@link AnthropicService#convertAnthropicToOai} 生成 system 消息、
+ * 	tools 等字段。单条消息（比如带一张很大的 base64 图片）不能超过 maxMessageBytes。
+ * 	<p>
+ * 	转换前后的消息一一对应，所以要等整个请求体收完才能写出，和聊天补全一样由调用方先缓冲、路由确定后再发出去。
+ */
+public class AnthropicRequestStreamingTransformer extends ChatRequestStreamingTransformer {
+
+	private static final int MESSAGE_SPOOL_MEMORY = 1024 * 1024;
+
+	private final AnthropicService anthropicService;
+	private final int maxBufferedBytes;
+	private final int maxMessageBytes;
+
+
+
+	/**
+	 *
+	 * @param anthropicService 消息格式转换
+	 * @param maxFieldBytes 单个顶层小字段的上限
+	 * @param maxBufferedBytes 全部顶层小字段的上限
+	 * @param maxMessageBytes 单条消息的上限
+	 */
+	public AnthropicRequestStreamingTransformer(AnthropicService anthropicService, int maxFieldBytes, int maxBufferedBytes, int maxMessageBytes) {
+		super(StreamingEndpoint.ANTHROPIC_MESSAGES, maxFieldBytes, maxBufferedBytes);
+		this.anthropicService = anthropicService;
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.maxMessageBytes = maxMessageBytes;
+	}
+
+	/**
+	 * 	输出的 JSON 对象同样不带结尾的 '}'，由 {@link #finish} 补上。
+	 */
+	@Override
+	public TransformResult transform(InputStream input, OutputStream target, ModelResolvedCallback callback) throws IOException {
+		JsonObject bufferedFields = new JsonObject();
+		int totalBufferedBytes = 0;
+		boolean modelResolved = false;
+		boolean hasMessages = false;
+		int messageCount = 0;
+
+		try (SpoolOutputStream messages = new SpoolOutputStream(MESSAGE_SPOOL_MEMORY, "llama-anthropic-messages-")) {
+			PushbackInputStream stream = new PushbackInputStream(input, 1);
+			if (this.nextNonWhitespace(stream) != '{') {
+				throw new StreamingRequestException(400, "Invalid JSON body", null);
+			}
+			boolean firstField = true;
+			while (true) {
+				int token = this.nextNonWhitespace(stream);
+				if (token == '}') {
+					break;
+				}
+				if (!firstField) {
+					if (token != ',') {
+						throw new StreamingRequestException(400, "Invalid JSON body", null);
+					}
+					token = this.nextNonWhitespace(stream);
+				}
+				firstField = false;
+				if (token != '"') {
+					throw new StreamingRequestException(400, "Invalid JSON body", null);
+				}
+				String fieldName = this.readJsonString(stream);
+				if (this.nextNonWhitespace(stream) != ':') {
+					throw new StreamingRequestException(400, "Invalid JSON body", null);
+				}
+				int valueStart = this.nextNonWhitespace(stream);
+				if (valueStart < 0) {
+					throw new StreamingRequestException(400, "Invalid JSON body", null);
+				}
+
+				if ("messages".equals(fieldName) && valueStart == '[') {
+					hasMessages = true;
+					messageCount += this.convertMessages(stream, messages, messageCount);
+					continue;
+				}
+
+				byte[] rawBytes = this.readCurrentValue(stream, valueStart, fieldName);
+				totalBufferedBytes += rawBytes.length;
+				if (totalBufferedBytes > this.maxBufferedBytes) {
+					throw new StreamingRequestException(400, "Request contains oversized top-level fields", null);
+				}
+				JsonElement element = this.parse(rawBytes);
+				bufferedFields.add(fieldName, element);
+				if ("model".equals(fieldName) && !modelResolved) {
+					String candidate = this.readModelName(element);
+					if (candidate != null && !candidate.isBlank() && callback != null) {
+						modelResolved = true;
+						callback.onModelResolved(candidate);
+					}
+				}
+			}
+			if (!hasMessages) {
+				throw new StreamingRequestException(400, "Missing required parameter: messages", "messages");
+			}
+
+			// messages 已经单独转换过，这里只用来生成 system 消息和其它字段
+			bufferedFields.add("messages", new JsonArray());
+			JsonObject oaiReq = this.anthropicService.convertAnthropicToOai(bufferedFields);
+			ParamTool.handleThinking(oaiReq);
+			ChatTemplateKwargsService.getInstance().handleOpenAI(oaiReq);
+			ModelSamplingService.getInstance().handleOpenAI(oaiReq);
+
+			String nodeId = null;
+			JsonElement nodeEl = bufferedFields.get("nodeId");
+			if (nodeEl != null && nodeEl.isJsonPrimitive()) {
+				nodeId = nodeEl.getAsString();
+			}
+			oaiReq.remove("nodeId");
+			String modelName = this.readModelName(oaiReq.get("model"));
+			if (modelName == null || modelName.isBlank()) {
+				modelName = LlamaServerManager.getInstance().getFirstModelName();
+				if (modelName == null) {
+					throw new StreamingRequestException(404, "No models loaded", null);
+				}
+				oaiReq.addProperty("model", modelName);
+			}
+			Boolean streamValue = this.readBooleanLenient(oaiReq.get("stream"));
+			boolean isStream = streamValue != null && streamValue.booleanValue();
+
+			// messages 写在最前面，顺便算前缀指纹
+			OutputStream output = new BufferedOutputStream(target, COPY_BUFFER_SIZE);
+			PrefixFingerprint.Builder fingerprint = new PrefixFingerprint.Builder();
+			OutputStream tee = new TeeOutputStream(output, fingerprint);
+			output.write("{\"messages\":".getBytes(StandardCharsets.UTF_8));
+			tee.write('[');
+			JsonArray systemMessages = oaiReq.getAsJsonArray("messages");
+			boolean first = true;
+			for (JsonElement system : systemMessages) {
+				if (!first) {
+					tee.write(',');
+				}
+				tee.write(system.toString().getBytes(StandardCharsets.UTF_8));
+				first = false;
+			}
+			if (messageCount > 0) {
+				if (!first) {
+					tee.write(',');
+				}
+				messages.writeTo(tee);
+			}
+			tee.write(']');
+			oaiReq.remove("messages");
+			for (Map.Entry<String, JsonElement> entry : oaiReq.entrySet()) {
+				output.write(',');
+				this.writeBufferedField(output, entry.getKey(), entry.getValue());
+			}
+			output.flush();
+			fingerprint.setTools(oaiReq.get("tools"));
+			long[] prefix = oaiReq.has("id_slot") ? new long[0] : fingerprint.build();
+			return new TransformResult(modelName, isStream, nodeId, prefix);
+		}
+	}
+
+	/**
+	 * 	逐条读取 messages 数组，转换后用逗号分隔写入 out。
+	 * @param stream 已经读过了开头的 '['
+	 * @param out
+	 * @param written 之前已经写入的消息数
+	 * @return 本次写入的消息数
+	 * @throws IOException
+	 */
+	private int convertMessages(PushbackInputStream stream, OutputStream out, int written) throws IOException {
+		int count = 0;
+		boolean firstElement = true;
+		JsonArray converted = new JsonArray();
+		while (true) {
+			int token = this.nextNonWhitespace(stream);
+			if (token == ']') {
+				return count;
+			}
+			if (!firstElement) {
+				if (token != ',') {
+					throw new StreamingRequestException(400, "Invalid JSON body", "messages");
+				}
+				token = this.nextNonWhitespace(stream);
+			}
+			firstElement = false;
+			if (token < 0) {
+				throw new StreamingRequestException(400, "Invalid JSON body", "messages");
+			}
+			byte[] raw = this.readCurrentValue(stream, token, "messages", this.maxMessageBytes);
+			JsonElement element = this.parse(raw);
+			if (!element.isJsonObject()) {
+				continue;
+			}
+			this.anthropicService.appendOaiMessages(element.getAsJsonObject(), converted);
+			for (JsonElement message : converted) {
+				if (written + count > 0) {
+					out.write(',');
+				}
+				out.write(message.toString().getBytes(StandardCharsets.UTF_8));
+				count++;
+			}
+			converted = new JsonArray();
+		}
+	}
+
+	private JsonElement parse(byte[] rawBytes) throws StreamingRequestException {
+		try {
+			JsonElement element = JsonParser.parseString(new String(rawBytes, StandardCharsets.UTF_8));
+			if (element != null) {
+				return element;
+			}
+		} catch (Exception e) {
+		}
+		throw new StreamingRequestException(400, "Invalid JSON body", null);
+	}
+}
@@ -8,15 +8,21 @@ import com.google.gson.JsonParser;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import io.netty.util.CharsetUtil;
 import org.mark.llamacpp.server.LlamaHubNode;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ModelAdmissionQueue;
+import org.mark.llamacpp.server.ModelAutoLoader;
+import org.mark.llamacpp.server.ModelRoutingTable;
 import org.mark.llamacpp.server.NodeManager;
-import org.mark.llamacpp.server.struct.ActiveRequest.Phase;
+import org.mark.llamacpp.server.PrefixFingerprint;
+import org.mark.llamacpp.server.SlotAffinityTable;
+import org.mark.llamacpp.server.exception.AdmissionRejectedException;
+import org.mark.llamacpp.server.metrics.HubMetrics;
+import org.mark.llamacpp.server.metrics.RequestMetrics;
 import org.mark.llamacpp.server.struct.Timing;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.tools.ParamTool;
@@ -33,9 +39,7 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
-import java.util.HashSet;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
@@ -47,6 +51,8 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
 import org.mark.llamacpp.server.LlamaCppProcess;
+import org.mark.llamacpp.server.io.StreamRelayWriter;
+import org.mark.llamacpp.server.io.UpstreamConnectionPool;
 
 /**
  * 	Anthropic API
@@ -188,20 +194,13 @@ public class AnthropicService {
             }
         }
         
-        if (!manager.getLoadedProcesses().containsKey(modelName)) {
-            if (manager.getLoadedProcesses().size() == 1) {
-                modelName = manager.getFirstModelName();
-            } else {
-                this.sendError(ctx, HttpResponseStatus.NOT_FOUND, "Model not found: " + modelName);
-                return;
-            }
-        }
-        
-        Integer port = manager.getModelPort(modelName);
-        if (port == null) {
-            this.sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "Model port not found for " + modelName);
+        ModelRoutingTable.Route route = this.resolveLocalRoute(modelName);
+        if (route == null) {
+            this.sendError(ctx, HttpResponseStatus.NOT_FOUND, "Model not found: " + modelName);
             return;
         }
+        modelName = route.getModelId();
+        int port = route.getPort();
 
         boolean isStream = false;
         if (anthropicReq.has("stream") && anthropicReq.get("stream").isJsonPrimitive()) {
@@ -270,30 +269,18 @@ public class AnthropicService {
             } catch (Exception ignore) {}
         }
 
-        if (manager.getLoadedProcesses().containsKey(modelName)) {
-            Integer port = manager.getModelPort(modelName);
-            if (port == null) {
-                this.sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "Model port not found for " + modelName);
+        ModelRoutingTable.Route route = manager.findRoute(modelName);
+        if (route == null) {
+            String[] remoteResult = resolveModelOnRemoteNodes(modelName);
+            if (remoteResult != null) {
+                this.forwardMessagesToChatCompletions(ctx, request, oaiReq, remoteResult[0], remoteResult[1], isStream, modelName);
                 return;
             }
-            String targetUrl = String.format("http://localhost:%d/v1/chat/completions", port.intValue());
-            this.forwardMessagesToChatCompletions(ctx, request, JsonUtil.toJson(oaiReq), targetUrl, null, isStream, modelName);
-            return;
+            route = this.resolveLocalRoute(modelName);
         }
-
-        if (manager.getLoadedProcesses().size() == 1) {
-            modelName = manager.getFirstModelName();
-            Integer port = manager.getModelPort(modelName);
-            if (port != null) {
-                String targetUrl = String.format("http://localhost:%d/v1/chat/completions", port.intValue());
-                this.forwardMessagesToChatCompletions(ctx, request, JsonUtil.toJson(oaiReq), targetUrl, null, isStream, modelName);
-                return;
-            }
-        }
-
-        String[] remoteResult = resolveModelOnRemoteNodes(modelName);
-        if (remoteResult != null) {
-            this.forwardMessagesToChatCompletions(ctx, request, JsonUtil.toJson(oaiReq), remoteResult[0], remoteResult[1], isStream, modelName);
+        if (route != null) {
+            String targetUrl = String.format("http://localhost:%d/v1/chat/completions", route.getPort());
+            this.forwardMessagesToChatCompletions(ctx, request, oaiReq, targetUrl, null, isStream, route.getModelId());
             return;
         }
 
@@ -339,20 +326,13 @@ public class AnthropicService {
             }
         }
 
-        if (!manager.getLoadedProcesses().containsKey(modelName)) {
-            if (manager.getLoadedProcesses().size() == 1) {
-                modelName = manager.getFirstModelName();
-            } else {
-            	this.sendError(ctx, HttpResponseStatus.NOT_FOUND, "Model not found: " + modelName);
-                return;
-            }
-        }
-
-        Integer port = manager.getModelPort(modelName);
-        if (port == null) {
-        	this.sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "Model port not found for " + modelName);
+        ModelRoutingTable.Route route = this.resolveLocalRoute(modelName);
+        if (route == null) {
+            this.sendError(ctx, HttpResponseStatus.NOT_FOUND, "Model not found: " + modelName);
             return;
         }
+        modelName = route.getModelId();
+        int port = route.getPort();
 
         forwardRequestToLlamaCpp(ctx, request, content, port, "/v1/messages/count_tokens", false, modelName);
     }
@@ -379,11 +359,11 @@ public class AnthropicService {
             String requestId = null;
             try {
                 if (modelName != null) {
-                    requestId = ModelRequestTracker.getInstance().createRequest(modelName, endpoint);
+                    requestId = ModelRequestTracker.getInstance().createRequest(ctx, modelName, endpoint, null);
                 }
                 String targetUrl = String.format("http://localhost:%d%s", port, endpoint);
                 URL url = URI.create(targetUrl).toURL();
-                connection = (HttpURLConnection) url.openConnection();
+                connection = UpstreamConnectionPool.getInstance().openConnection(url);
 
                 synchronized (this.channelConnectionMap) {
                     this.channelConnectionMap.put(ctx, connection);
@@ -412,7 +392,7 @@ public class AnthropicService {
                 
                 long t = System.currentTimeMillis();
                 int responseCode = connection.getResponseCode();
-                if (requestId != null) ModelRequestTracker.getInstance().updatePhase(requestId, Phase.GENERATION);
+                ModelRequestTracker.getInstance().onUpstreamResponse(requestId, responseCode);
 
                 if (isStream) {
                 	logger.info("llama.cpp进程响应码: {}，，等待时间：{}", responseCode, System.currentTimeMillis() - t);
@@ -455,68 +435,34 @@ public class AnthropicService {
         }
 
         String apiKey = node.getApiKey();
-        this.forwardMessagesToChatCompletions(ctx, request, JsonUtil.toJson(oaiReq), targetUrl, apiKey, isStream, modelName);
+        this.forwardMessagesToChatCompletions(ctx, request, oaiReq, targetUrl, apiKey, isStream, modelName);
     }
 
-    private String[] resolveModelOnRemoteNodes(String modelName) {
-        NodeManager nodeManager = NodeManager.getInstance();
-        List<LlamaHubNode> enabledNodes = nodeManager.listEnabledNodes();
-        logger.info("[Anthropic路由] 远程节点数量: {}", enabledNodes.size());
-
-        for (LlamaHubNode node : enabledNodes) {
-            logger.info("[Anthropic路由] 检查远程节点: nodeId={}, baseUrl={}", node.getNodeId(), node.getBaseUrl());
-            try {
-                NodeManager.HttpResult result = nodeManager.callRemoteApi(node.getNodeId(), "GET", "/v1/models", null);
-                logger.info("[Anthropic路由] 远程响应: nodeId={}, code={}", node.getNodeId(), result.getStatusCode());
-                if (!result.isSuccess()) {
-                    logger.warn("[Anthropic路由] 远程请求失败: nodeId={}, body={}", node.getNodeId(), result.getBody());
-                    continue;
-                }
-
-                JsonObject root = JsonUtil.fromJson(result.getBody(), JsonObject.class);
-                if (root == null) {
-                    logger.warn("[Anthropic路由] JSON解析失败: nodeId={}", node.getNodeId());
-                    continue;
-                }
-
-                if (root.has("models") && root.get("models").isJsonArray()) {
-                    JsonArray remoteModels = root.getAsJsonArray("models");
-                    for (JsonElement el : remoteModels) {
-                        if (!el.isJsonObject()) continue;
-                        JsonObject m = el.getAsJsonObject();
-                        String remoteKey = JsonUtil.getJsonString(m, "model");
-                        if (remoteKey.isEmpty()) remoteKey = JsonUtil.getJsonString(m, "name");
-                        logger.info("[Anthropic路由] 远程模型条目: nodeId={}, key={}", node.getNodeId(), remoteKey);
-                        if (modelName.equals(remoteKey)) {
-                            logger.info("[Anthropic路由] 匹配成功: model={}, nodeId={}", modelName, node.getNodeId());
-                            return new String[]{ node.getBaseUrl() + "/v1/chat/completions", node.getApiKey() };
-                        }
-                    }
-                }
-
-                if (root.has("data") && root.get("data").isJsonArray()) {
-                    JsonArray dataArr = root.getAsJsonArray("data");
-                    for (JsonElement el : dataArr) {
-                        if (!el.isJsonObject()) continue;
-                        JsonObject d = el.getAsJsonObject();
-                        String id = JsonUtil.getJsonString(d, "id", "");
-                        if (modelName.equals(id)) {
-                            logger.info("[Anthropic路由] data匹配成功: model={}, nodeId={}", modelName, node.getNodeId());
-                            return new String[]{ node.getBaseUrl() + "/v1/chat/completions", node.getApiKey() };
-                        }
-                    }
-                }
-
-                logger.warn("[Anthropic路由] 节点无匹配模型: nodeId={}, model={}", node.getNodeId(), modelName);
-            } catch (Exception e) {
-                logger.warn("[Anthropic路由] 异常: nodeId={}, error={}", node.getNodeId(), e.getMessage());
+    /**
+     * 本地路由：模型未加载时按需加载（会等到加载结束），仍然找不到且只加载了一个模型时用它兜底。
+     */
+    private ModelRoutingTable.Route resolveLocalRoute(String modelName) {
+        ModelRoutingTable.Route route = ModelAutoLoader.getInstance().awaitRoute(modelName);
+        if (route == null) {
+            ModelRoutingTable routing = LlamaServerManager.getInstance().getRoutingTable();
+            if (routing.size() == 1) {
+                route = routing.getFirstRoute();
             }
         }
-        logger.warn("[Anthropic路由] 所有远程节点均未找到: model={}", modelName);
-        return null;
+        return route;
     }
 
-    private void forwardMessagesToChatCompletions(ChannelHandlerContext ctx, FullHttpRequest request, String requestBody, String targetUrl, String apiKey, boolean isStream, String modelName) {
+    private String[] resolveModelOnRemoteNodes(String modelName) {
+        LlamaHubNode node = NodeManager.getInstance().resolveRemoteModel(modelName);
+        if (node == null) {
+            logger.warn("[Anthropic路由] 集群模型索引中未找到: model={}", modelName);
+            return null;
+        }
+        logger.info("[Anthropic路由] 匹配成功: model={}, nodeId={}", modelName, node.getNodeId());
+        return new String[]{ node.getBaseUrl() + "/v1/chat/completions", node.getApiKey() };
+    }
+
+    private void forwardMessagesToChatCompletions(ChannelHandlerContext ctx, FullHttpRequest request, JsonObject oaiReq, String targetUrl, String apiKey, boolean isStream, String modelName) {
         HttpMethod method = request.method();
         Map<String, String> headers = new HashMap<>();
         for (Map.Entry<String, String> entry : request.headers()) {
@@ -526,10 +472,25 @@ public class AnthropicService {
         worker.execute(() -> {
             HttpURLConnection connection = null;
             String requestId = null;
+            ModelAdmissionQueue.Permit permit = null;
+            SlotAffinityTable.Lease lease = null;
             try {
-                requestId = ModelRequestTracker.getInstance().createRequest(modelName, "/v1/messages");
+                String nodeId = HubMetrics.nodeOf(targetUrl);
+                if (nodeId == null) {
+                    // 本机模型先排队，再按前缀选槽位；远程节点由对方自己控制
+                    permit = ModelAdmissionQueue.getInstance().acquire(modelName, ModelAdmissionQueue.clientKeyOf(ctx, headers));
+                    if (!oaiReq.has("id_slot")) {
+                        lease = SlotAffinityTable.getInstance().assign(modelName, PrefixFingerprint.of(oaiReq));
+                    }
+                    if (lease != null) {
+                        oaiReq.addProperty("id_slot", lease.getSlot());
+                        logger.info("槽位亲和: model={}, id_slot={}, 命中前缀消息数={}", modelName, lease.getSlot(), lease.getMatchedMessages());
+                    }
+                }
+                String requestBody = JsonUtil.toJson(oaiReq);
+                requestId = ModelRequestTracker.getInstance().createRequest(ctx, modelName, "/v1/messages", nodeId);
                 URL url = URI.create(targetUrl).toURL();
-                connection = (HttpURLConnection) url.openConnection();
+                connection = UpstreamConnectionPool.getInstance().openConnection(url);
 
                 if (connection instanceof HttpsURLConnection) {
                     ((HttpsURLConnection) connection).setSSLSocketFactory(TRUST_ALL_SOCKET_FACTORY);
@@ -567,12 +528,15 @@ public class AnthropicService {
                 }
 
                 int responseCode = connection.getResponseCode();
-                ModelRequestTracker.getInstance().updatePhase(requestId, Phase.GENERATION);
+                ModelRequestTracker.getInstance().onUpstreamResponse(requestId, responseCode);
                 if (isStream) {
                     this.handleAnthropicStreamFromOai(ctx, connection, responseCode, modelName, requestId);
                 } else {
                     this.handleAnthropicNonStreamFromOai(ctx, connection, responseCode, modelName, requestId);
                 }
+            } catch (AdmissionRejectedException e) {
+                logger.info("模型请求队列拒绝: {}", e.getMessage());
+                this.sendRateLimitError(ctx, e);
             } catch (Exception e) {
                 logger.info("Error forwarding Anthropic->OpenAI request to llama.cpp", e);
                 this.sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, e.getMessage());
@@ -580,6 +544,8 @@ public class AnthropicService {
                 logger.error("虚拟线程异常已兜底: {}", t.getMessage(), t);
             } finally {
                 if (requestId != null) ModelRequestTracker.getInstance().removeRequest(requestId);
+                if (lease != null) lease.close();
+                if (permit != null) permit.close();
                 if (connection != null) {
                     connection.disconnect();
                 }
@@ -628,16 +594,24 @@ public class AnthropicService {
         );
 
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
-        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, responseBody.getBytes(StandardCharsets.UTF_8).length);
+        byte[] responseBytes = responseBody.getBytes(StandardCharsets.UTF_8);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, responseBytes.length);
 
-        response.content().writeBytes(responseBody.getBytes(StandardCharsets.UTF_8));
+        response.content().writeBytes(responseBytes);
 
-        ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) {
-                ctx.close();
-            }
-        });
+        ctx.writeAndFlush(response);
+        ModelRequestTracker.getInstance().getMetrics(requestId).addBytes(responseBytes.length);
+    }
+
+    /**
+     * 	把 llama-server /v1/chat/completions 的响应按 Anthropic 的格式写回客户端，流式转换请求体的会话用。
+     */
+    public void handleChatCompletionsResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, boolean isStream, String modelName, String requestId) throws IOException {
+        if (isStream) {
+            this.handleAnthropicStreamFromOai(ctx, connection, responseCode, modelName, requestId);
+        } else {
+            this.handleAnthropicNonStreamFromOai(ctx, connection, responseCode, modelName, requestId);
+        }
     }
 
     private void handleAnthropicNonStreamFromOai(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName, String requestId) throws IOException {
@@ -688,12 +662,8 @@ public class AnthropicService {
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, responseBytes.length);
         response.content().writeBytes(responseBytes);
 
-        ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) {
-                ctx.close();
-            }
-        });
+        ctx.writeAndFlush(response);
+        ModelRequestTracker.getInstance().getMetrics(requestId).addBytes(responseBytes.length);
     }
 
     private void handleStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String requestId) throws IOException {
@@ -707,6 +677,7 @@ public class AnthropicService {
         ctx.write(response);
         ctx.flush();
 
+        StreamRelayWriter writer = new StreamRelayWriter(ctx, this.streamWriteListener(ctx));
         try (BufferedReader br = new BufferedReader(
             new InputStreamReader(
                 responseCode >= 200 && responseCode < 300 ?
@@ -716,6 +687,7 @@ public class AnthropicService {
         )) {
             String line;
             int chunkCount = 0;
+            RequestMetrics metrics = ModelRequestTracker.getInstance().getMetrics(requestId);
             while ((line = br.readLine()) != null) {
                 if (!ctx.channel().isActive()) {
                     logger.info("检测到客户端连接已断开，停止流式响应处理");
@@ -746,57 +718,47 @@ public class AnthropicService {
                     ByteBuf content = ctx.alloc().buffer();
                     content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
                     content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-
-                    HttpContent httpContent = new DefaultHttpContent(content);
-
-                    ChannelFuture future = ctx.writeAndFlush(httpContent);
-
-                    future.addListener((ChannelFutureListener) channelFuture -> {
-                        if (!channelFuture.isSuccess()) {
-                            logger.info("写入流式数据失败，可能是客户端断开连接: {}", channelFuture.cause().getMessage());
-                            ctx.close();
-                        }
-                    });
+                    metrics.onChunk(content.readableBytes());
+                    writer.append(content);
 
                     chunkCount++;
                 } else if (line.startsWith("event: ")) {
                     ByteBuf content = ctx.alloc().buffer();
                     content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
                     content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-
-                    HttpContent httpContent = new DefaultHttpContent(content);
-                    ctx.writeAndFlush(httpContent);
+                    metrics.addBytes(content.readableBytes());
+                    writer.append(content);
                 } else if (line.isEmpty()) {
                     ByteBuf content = ctx.alloc().buffer();
                     content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-
-                    HttpContent httpContent = new DefaultHttpContent(content);
-                    ctx.writeAndFlush(httpContent);
+                    metrics.addBytes(content.readableBytes());
+                    writer.append(content);
+                }
+                if (writer.shouldFlush(br.ready())) {
+                    writer.flush();
                 }
             }
+            writer.flush();
 
             logger.info("Anthropic 流式响应处理完成，共发送 {} 个数据块", chunkCount);
         } catch (Exception e) {
             logger.info("处理 Anthropic 流式响应时发生错误", e);
-            if (e.getMessage() != null &&
+            if (!ctx.channel().isActive() || (e.getMessage() != null &&
                 (e.getMessage().contains("Connection reset by peer") ||
                  e.getMessage().contains("Broken pipe") ||
-                 e.getMessage().contains("Connection closed"))) {
+                 e.getMessage().contains("Connection closed")))) {
                 logger.info("检测到客户端断开连接，尝试断开与llama.cpp的连接");
                 if (connection != null) {
                     connection.disconnect();
                 }
             }
             throw e;
+        } finally {
+            writer.close();
         }
 
         LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-        ctx.writeAndFlush(lastContent).addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) {
-                ctx.close();
-            }
-        });
+        ctx.writeAndFlush(lastContent);
     }
 
     private void handleAnthropicStreamFromOai(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName, String requestId) throws IOException {
@@ -810,7 +772,9 @@ public class AnthropicService {
         ctx.write(response);
         ctx.flush();
 
-        AnthropicStreamState streamState = new AnthropicStreamState();
+        AnthropicSseTranslator translator = new AnthropicSseTranslator();
+        RequestMetrics metrics = ModelRequestTracker.getInstance().getMetrics(requestId);
+        StreamRelayWriter writer = new StreamRelayWriter(ctx, this.streamWriteListener(ctx));
 
         try (BufferedReader br = new BufferedReader(
             new InputStreamReader(
@@ -835,11 +799,10 @@ public class AnthropicService {
                     continue;
                 }
                 if ("[DONE]".equals(data)) {
-                    if (!streamState.finished) {
-                        String tail = buildAnthropicStopEvents(streamState);
-                        if (!tail.isEmpty()) {
-                            writeSseChunk(ctx, tail);
-                        }
+                    if (!translator.isFinished()) {
+                        ByteBuf tail = ctx.alloc().buffer();
+                        metrics.addBytes(translator.finish(tail));
+                        writer.append(tail);
                     }
                     break;
                 }
@@ -855,34 +818,42 @@ public class AnthropicService {
 					} catch (Exception ignore) {}
 				}
 
-                JsonObject chunk;
-                try {
-                    JsonElement root = JsonParser.parseString(data);
-                    if (!root.isJsonObject()) {
-                        continue;
-                    }
-                    chunk = root.getAsJsonObject();
-                } catch (Exception ignore) {
+                // 直接扫描 JSON 文本写出事件，不再为每个块建 JsonObject
+                ByteBuf out = ctx.alloc().buffer();
+                int written = translator.translate(data, out);
+                if (written < 0) {
+                    out.release();
                     continue;
                 }
-
-                String out = convertOaiStreamChunkToAnthropicSse(chunk, streamState);
-                if (!out.isEmpty()) {
-                    writeSseChunk(ctx, out);
+                if (written > 0) {
+                    metrics.onChunk(written);
+                    writer.append(out);
+                } else {
+                    out.release();
+                }
+                if (writer.shouldFlush(br.ready())) {
+                    writer.flush();
                 }
             }
+            writer.flush();
+        } catch (IOException e) {
+            if (!ctx.channel().isActive() && connection != null) {
+                connection.disconnect();
+            }
+            throw e;
+        } finally {
+            writer.close();
         }
 
         LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-        ctx.writeAndFlush(lastContent).addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) {
-                ctx.close();
-            }
-        });
+        ctx.writeAndFlush(lastContent);
     }
 
     private void sendJsonResponse(ChannelHandlerContext ctx, JsonObject json, HttpResponseStatus status) {
+        sendJsonResponse(ctx, json, status, 0);
+    }
+
+    private void sendJsonResponse(ChannelHandlerContext ctx, JsonObject json, HttpResponseStatus status, int retryAfterSeconds) {
         String jsonStr = gson.toJson(json);
         logger.info("Anthropic response status={} body={}", status.code(), jsonStr);
         FullHttpResponse response = new DefaultFullHttpResponse(
@@ -894,11 +865,14 @@ public class AnthropicService {
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         // Add CORS headers if needed, or rely on global handler
         response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+        if (retryAfterSeconds > 0) {
+            response.headers().set(HttpHeaderNames.RETRY_AFTER, retryAfterSeconds);
+        }
         
         ctx.writeAndFlush(response);
     }
 
-    private void sendError(ChannelHandlerContext ctx, HttpResponseStatus status, String msg) {
+    public void sendError(ChannelHandlerContext ctx, HttpResponseStatus status, String msg) {
         JsonObject err = new JsonObject();
         JsonObject errorDetail = new JsonObject();
         errorDetail.addProperty("type", "error");
@@ -907,13 +881,27 @@ public class AnthropicService {
         
         sendJsonResponse(ctx, err, status);
     }
+
+    /**
+     * 模型请求队列已满或排队超时，按 Anthropic 的格式返回 429
+     */
+    public void sendRateLimitError(ChannelHandlerContext ctx, AdmissionRejectedException e) {
+        JsonObject err = new JsonObject();
+        err.addProperty("type", "error");
+        JsonObject errorDetail = new JsonObject();
+        errorDetail.addProperty("type", "rate_limit_error");
+        errorDetail.addProperty("message", e.getMessage());
+        err.add("error", errorDetail);
+
+        sendJsonResponse(ctx, err, HttpResponseStatus.TOO_MANY_REQUESTS, e.getRetryAfterSeconds());
+    }
     
     /**
      * 	将/v1/messages请求转换为OpenAI的/v1/chat/completions请求
      * @param body
      * @return
      */
-    private JsonObject convertAnthropicToOai(JsonObject body) {
+    JsonObject convertAnthropicToOai(JsonObject body) {
         if (body == null || body.isJsonNull()) {
             throw new IllegalArgumentException("Request body cannot be null");
         }
@@ -956,132 +944,7 @@ public class AnthropicService {
                 if (msgEl == null || !msgEl.isJsonObject()) {
                     continue;
                 }
-                JsonObject msg = msgEl.getAsJsonObject();
-                String role = getString(msg, "role");
-
-                if (!msg.has("content")) {
-                    if ("assistant".equals(role)) {
-                        continue;
-                    }
-                    oaiMessages.add(msg.deepCopy());
-                    continue;
-                }
-
-                JsonElement contentEl = msg.get("content");
-                if (contentEl != null && contentEl.isJsonPrimitive() && contentEl.getAsJsonPrimitive().isString()) {
-                    oaiMessages.add(msg.deepCopy());
-                    continue;
-                }
-
-                if (contentEl == null || !contentEl.isJsonArray()) {
-                    oaiMessages.add(msg.deepCopy());
-                    continue;
-                }
-
-                JsonArray content = contentEl.getAsJsonArray();
-                JsonArray toolCalls = new JsonArray();
-                JsonArray convertedContent = new JsonArray();
-                JsonArray toolResults = new JsonArray();
-                StringBuilder reasoningContent = new StringBuilder();
-                boolean hasToolCalls = false;
-
-                for (int j = 0; j < content.size(); j++) {
-                    JsonElement blockEl = content.get(j);
-                    if (blockEl == null || !blockEl.isJsonObject()) {
-                        continue;
-                    }
-                    JsonObject block = blockEl.getAsJsonObject();
-                    String type = getString(block, "type");
-
-                    if ("text".equals(type)) {
-                        convertedContent.add(block.deepCopy());
-                    } else if ("thinking".equals(type)) {
-                        reasoningContent.append(getString(block, "thinking"));
-                    } else if ("image".equals(type)) {
-                        JsonObject source = getObject(block, "source");
-                        String sourceType = getString(source, "type");
-                        if ("base64".equals(sourceType)) {
-                            String mediaType = getString(source, "media_type");
-                            if (mediaType.isEmpty()) {
-                                mediaType = "image/jpeg";
-                            }
-                            String data = getString(source, "data");
-                            JsonObject imageUrl = new JsonObject();
-                            imageUrl.addProperty("url", "data:" + mediaType + ";base64," + data);
-                            JsonObject imageBlock = new JsonObject();
-                            imageBlock.addProperty("type", "image_url");
-                            imageBlock.add("image_url", imageUrl);
-                            convertedContent.add(imageBlock);
-                        } else if ("url".equals(sourceType)) {
-                            JsonObject imageUrl = new JsonObject();
-                            imageUrl.addProperty("url", getString(source, "url"));
-                            JsonObject imageBlock = new JsonObject();
-                            imageBlock.addProperty("type", "image_url");
-                            imageBlock.add("image_url", imageUrl);
-                            convertedContent.add(imageBlock);
-                        }
-                    } else if ("tool_use".equals(type)) {
-                        JsonObject function = new JsonObject();
-                        function.addProperty("name", getString(block, "name"));
-                        JsonObject inputObj = getObject(block, "input");
-                        function.addProperty("arguments", inputObj.toString());
-
-                        JsonObject toolCall = new JsonObject();
-                        toolCall.addProperty("id", getString(block, "id"));
-                        toolCall.addProperty("type", "function");
-                        toolCall.add("function", function);
-                        toolCalls.add(toolCall);
-                        hasToolCalls = true;
-                    } else if ("tool_result".equals(type)) {
-                        String toolUseId = getString(block, "tool_use_id");
-                        JsonElement resultContentEl = block.get("content");
-                        StringBuilder resultText = new StringBuilder();
-                        if (resultContentEl != null) {
-                            if (resultContentEl.isJsonPrimitive() && resultContentEl.getAsJsonPrimitive().isString()) {
-                                resultText.append(resultContentEl.getAsString());
-                            } else if (resultContentEl.isJsonArray()) {
-                                JsonArray resultArray = resultContentEl.getAsJsonArray();
-                                for (int k = 0; k < resultArray.size(); k++) {
-                                    JsonElement cEl = resultArray.get(k);
-                                    if (cEl == null || !cEl.isJsonObject()) {
-                                        continue;
-                                    }
-                                    JsonObject cObj = cEl.getAsJsonObject();
-                                    if ("text".equals(getString(cObj, "type"))) {
-                                        resultText.append(getString(cObj, "text"));
-                                    }
-                                }
-                            }
-                        }
-
-                        JsonObject toolMsg = new JsonObject();
-                        toolMsg.addProperty("role", "tool");
-                        toolMsg.addProperty("tool_call_id", toolUseId);
-                        toolMsg.addProperty("content", resultText.toString());
-                        toolResults.add(toolMsg);
-                    }
-                }
-
-                if (convertedContent.size() > 0 || hasToolCalls || reasoningContent.length() > 0) {
-                    JsonObject newMsg = new JsonObject();
-                    newMsg.addProperty("role", role);
-                    if (convertedContent.size() > 0) {
-                        newMsg.add("content", convertedContent);
-                    } else if (hasToolCalls || reasoningContent.length() > 0) {
-                        newMsg.addProperty("content", "");
-                    }
-                    if (toolCalls.size() > 0) {
-                        newMsg.add("tool_calls", toolCalls);
-                    }
-                    if (reasoningContent.length() > 0) {
-                        newMsg.addProperty("reasoning_content", reasoningContent.toString());
-                    }
-                    oaiMessages.add(newMsg);
-                }
-
-                for (int j = 0; j < toolResults.size(); j++) {
-                    oaiMessages.add(toolResults.get(j));
-                }
+                this.appendOaiMessages(msgEl.getAsJsonObject(), oaiMessages);
             }
         }
 
@@ -1164,6 +1027,138 @@ public class AnthropicService {
         return oaiBody;
     }
 
+    /**
+     * 	把一条 Anthropic 消息转换成 OpenAI 格式追加到 oaiMessages，tool_result 会拆成单独的 tool 消息。
+     * 	流式转换请求体时按条调用，见 {@link AnthropicRequestStreamingTransformer}。
+     */
+    void appendOaiMessages(JsonObject msg, JsonArray oaiMessages) {
+        String role = getString(msg, "role");
+
+        if (!msg.has("content")) {
+            if ("assistant".equals(role)) {
+                return;
+            }
+            oaiMessages.add(msg.deepCopy());
+            return;
+        }
+
+        JsonElement contentEl = msg.get("content");
+        if (contentEl != null && contentEl.isJsonPrimitive() && contentEl.getAsJsonPrimitive().isString()) {
+            oaiMessages.add(msg.deepCopy());
+            return;
+        }
+
+        if (contentEl == null || !contentEl.isJsonArray()) {
+            oaiMessages.add(msg.deepCopy());
+            return;
+        }
+
+        JsonArray content = contentEl.getAsJsonArray();
+        JsonArray toolCalls = new JsonArray();
+        JsonArray convertedContent = new JsonArray();
+        JsonArray toolResults = new JsonArray();
+        StringBuilder reasoningContent = new StringBuilder();
+        boolean hasToolCalls = false;
+
+        for (int j = 0; j < content.size(); j++) {
+            JsonElement blockEl = content.get(j);
+            if (blockEl == null || !blockEl.isJsonObject()) {
+                continue;
+            }
+            JsonObject block = blockEl.getAsJsonObject();
+            String type = getString(block, "type");
+
+            if ("text".equals(type)) {
+                convertedContent.add(block.deepCopy());
+            } else if ("thinking".equals(type)) {
+                reasoningContent.append(getString(block, "thinking"));
+            } else if ("image".equals(type)) {
+                JsonObject source = getObject(block, "source");
+                String sourceType = getString(source, "type");
+                if ("base64".equals(sourceType)) {
+                    String mediaType = getString(source, "media_type");
+                    if (mediaType.isEmpty()) {
+                        mediaType = "image/jpeg";
+                    }
+                    String data = getString(source, "data");
+                    JsonObject imageUrl = new JsonObject();
+                    imageUrl.addProperty("url", "data:" + mediaType + ";base64," + data);
+                    JsonObject imageBlock = new JsonObject();
+                    imageBlock.addProperty("type", "image_url");
+                    imageBlock.add("image_url", imageUrl);
+                    convertedContent.add(imageBlock);
+                } else if ("url".equals(sourceType)) {
+                    JsonObject imageUrl = new JsonObject();
+                    imageUrl.addProperty("url", getString(source, "url"));
+                    JsonObject imageBlock = new JsonObject();
+                    imageBlock.addProperty("type", "image_url");
+                    imageBlock.add("image_url", imageUrl);
+                    convertedContent.add(imageBlock);
+                }
+            } else if ("tool_use".equals(type)) {
+                JsonObject function = new JsonObject();
+                function.addProperty("name", getString(block, "name"));
+                JsonObject inputObj = getObject(block, "input");
+                function.addProperty("arguments", inputObj.toString());
+
+                JsonObject toolCall = new JsonObject();
+                toolCall.addProperty("id", getString(block, "id"));
+                toolCall.addProperty("type", "function");
+                toolCall.add("function", function);
+                toolCalls.add(toolCall);
+                hasToolCalls = true;
+            } else if ("tool_result".equals(type)) {
+                String toolUseId = getString(block, "tool_use_id");
+                JsonElement resultContentEl = block.get("content");
+                StringBuilder resultText = new StringBuilder();
+                if (resultContentEl != null) {
+                    if (resultContentEl.isJsonPrimitive() && resultContentEl.getAsJsonPrimitive().isString()) {
+                        resultText.append(resultContentEl.getAsString());
+                    } else if (resultContentEl.isJsonArray()) {
+                        JsonArray resultArray = resultContentEl.getAsJsonArray();
+                        for (int k = 0; k < resultArray.size(); k++) {
+                            JsonElement cEl = resultArray.get(k);
+                            if (cEl == null || !cEl.isJsonObject()) {
+                                continue;
+                            }
+                            JsonObject cObj = cEl.getAsJsonObject();
+                            if ("text".equals(getString(cObj, "type"))) {
+                                resultText.append(getString(cObj, "text"));
+                            }
+                        }
+                    }
+                }
+
+                JsonObject toolMsg = new JsonObject();
+                toolMsg.addProperty("role", "tool");
+                toolMsg.addProperty("tool_call_id", toolUseId);
+                toolMsg.addProperty("content", resultText.toString());
+                toolResults.add(toolMsg);
+            }
+        }
+
+        if (convertedContent.size() > 0 || hasToolCalls || reasoningContent.length() > 0) {
+            JsonObject newMsg = new JsonObject();
+            newMsg.addProperty("role", role);
+            if (convertedContent.size() > 0) {
+                newMsg.add("content", convertedContent);
+            } else if (hasToolCalls || reasoningContent.length() > 0) {
+                newMsg.addProperty("content", "");
+            }
+            if (toolCalls.size() > 0) {
+                newMsg.add("tool_calls", toolCalls);
+            }
+            if (reasoningContent.length() > 0) {
+                newMsg.addProperty("reasoning_content", reasoningContent.toString());
+            }
+            oaiMessages.add(newMsg);
+        }
+
+        for (int j = 0; j < toolResults.size(); j++) {
+            oaiMessages.add(toolResults.get(j));
+        }
+    }
+
     public JsonObject convertAnthropicToOai(String body) {
         if (body == null || body.trim().isEmpty()) {
             throw new IllegalArgumentException("Request body cannot be empty");
@@ -1278,232 +1273,16 @@ public class AnthropicService {
         return result;
     }
 
-    private String convertOaiStreamChunkToAnthropicSse(JsonObject chunk, AnthropicStreamState state) {
-        JsonObject choice = getChoice(chunk);
-        JsonObject delta = getObject(choice, "delta");
-
-        StringBuilder out = new StringBuilder();
-        if (!state.messageStarted) {
-            out.append(buildAnthropicEvent("message_start", buildMessageStartData(chunk)));
-            state.messageStarted = true;
-        }
-
-        String reasoningDelta = getString(delta, "reasoning_content");
-        if (!reasoningDelta.isEmpty()) {
-            state.hasThinking = true;
-            if (!state.thinkingStarted) {
-                out.append(buildAnthropicEvent("content_block_start", buildContentBlockStart(0, "thinking", "", "")));
-                state.thinkingStarted = true;
-            }
-            out.append(buildAnthropicEvent("content_block_delta", buildThinkingDelta(0, reasoningDelta)));
-            state.outputTokens++;
-        }
-
-        String textDelta = getString(delta, "content");
-        if (!textDelta.isEmpty()) {
-            if (!state.textStarted) {
-                state.hasText = true;
-                out.append(buildAnthropicEvent("content_block_start", buildContentBlockStart(state.getTextIndex(), "text", "", "")));
-                state.textStarted = true;
-            }
-            out.append(buildAnthropicEvent("content_block_delta", buildTextDelta(state.getTextIndex(), textDelta)));
-            state.outputTokens++;
-        }
-
-        JsonElement toolCallsEl = delta.get("tool_calls");
-        if (toolCallsEl != null && toolCallsEl.isJsonArray()) {
-            JsonArray toolCalls = toolCallsEl.getAsJsonArray();
-            for (int i = 0; i < toolCalls.size(); i++) {
-                JsonElement tcEl = toolCalls.get(i);
-                if (tcEl == null || !tcEl.isJsonObject()) {
-                    continue;
-                }
-                JsonObject tc = tcEl.getAsJsonObject();
-                int idx = getInt(tc, "index", i);
-                ToolCallState toolState = state.toolStates.computeIfAbsent(idx, k -> new ToolCallState());
-                String id = getString(tc, "id");
-                if (!id.isEmpty()) {
-                    toolState.id = id;
-                }
-                JsonObject function = getObject(tc, "function");
-                String name = getString(function, "name");
-                if (!name.isEmpty()) {
-                    toolState.name = name;
-                }
-                int blockIndex = state.getToolIndex(idx);
-                if (!state.toolStartedIndexes.contains(idx) && !toolState.name.isEmpty()) {
-                    out.append(buildAnthropicEvent("content_block_start", buildContentBlockStart(blockIndex, "tool_use", toolState.id, toolState.name)));
-                    state.toolStartedIndexes.add(idx);
-                }
-                String argumentsDelta = getString(function, "arguments");
-                if (!argumentsDelta.isEmpty()) {
-                    out.append(buildAnthropicEvent("content_block_delta", buildInputJsonDelta(blockIndex, argumentsDelta)));
-                    state.outputTokens++;
-                }
-            }
-        }
-
-        JsonObject usage = getObject(chunk, "usage");
-        int completionTokens = getInt(usage, "completion_tokens", -1);
-        if (completionTokens >= 0) {
-            state.outputTokens = Math.max(state.outputTokens, completionTokens);
-        }
-
-        String finishReason = getString(choice, "finish_reason");
-        if (!finishReason.isEmpty() && !"null".equalsIgnoreCase(finishReason)) {
-            state.stopReason = mapStopReason(finishReason, null);
-            if (!state.finished) {
-                out.append(buildAnthropicStopEvents(state));
-                state.finished = true;
+    /**
+     * 流式写入失败时关闭连接，多半是客户端已经断开。
+     */
+    private ChannelFutureListener streamWriteListener(ChannelHandlerContext ctx) {
+        return future -> {
+            if (!future.isSuccess()) {
+                logger.info("写入流式数据失败，可能是客户端断开连接: {}", future.cause().getMessage());
+                ctx.close();
             }
-        }
-
-        return out.toString();
-    }
-
-    private JsonObject buildMessageStartData(JsonObject chunk) {
-        JsonObject message = new JsonObject();
-        message.addProperty("id", getString(chunk, "id"));
-        message.addProperty("type", "message");
-        message.addProperty("role", "assistant");
-        message.add("content", new JsonArray());
-        message.addProperty("model", getString(chunk, "model"));
-        message.add("stop_reason", null);
-        message.add("stop_sequence", null);
-
-        JsonObject usage = getObject(chunk, "usage");
-        int promptTokens = getInt(usage, "prompt_tokens", 0);
-        int cachedTokens = 0;
-        JsonObject promptDetail = getObject(usage, "prompt_tokens_details");
-        if (promptDetail.has("cached_tokens")) {
-            cachedTokens = getInt(promptDetail, "cached_tokens", 0);
-        }
-        JsonObject msgUsage = new JsonObject();
-        msgUsage.addProperty("cache_read_input_tokens", Math.max(0, cachedTokens));
-        int inputTokens = Math.max(0, promptTokens - cachedTokens);
-        if (inputTokens == 0) {
-            inputTokens = 1;
-        }
-        msgUsage.addProperty("input_tokens", inputTokens);
-        msgUsage.addProperty("output_tokens", 0);
-        message.add("usage", msgUsage);
-
-        JsonObject data = new JsonObject();
-        data.addProperty("type", "message_start");
-        data.add("message", message);
-        return data;
-    }
-
-    private JsonObject buildContentBlockStart(int index, String type, String id, String name) {
-        JsonObject contentBlock = new JsonObject();
-        contentBlock.addProperty("type", type);
-        if ("thinking".equals(type)) {
-            contentBlock.addProperty("thinking", "");
-        } else if ("text".equals(type)) {
-            contentBlock.addProperty("text", "");
-        } else if ("tool_use".equals(type)) {
-            contentBlock.addProperty("id", id == null ? "" : id);
-            contentBlock.addProperty("name", name == null ? "" : name);
-        }
-        JsonObject data = new JsonObject();
-        data.addProperty("type", "content_block_start");
-        data.addProperty("index", index);
-        data.add("content_block", contentBlock);
-        return data;
-    }
-
-    private JsonObject buildThinkingDelta(int index, String deltaText) {
-        JsonObject delta = new JsonObject();
-        delta.addProperty("type", "thinking_delta");
-        delta.addProperty("thinking", deltaText);
-        JsonObject data = new JsonObject();
-        data.addProperty("type", "content_block_delta");
-        data.addProperty("index", index);
-        data.add("delta", delta);
-        return data;
-    }
-
-    private JsonObject buildTextDelta(int index, String deltaText) {
-        JsonObject delta = new JsonObject();
-        delta.addProperty("type", "text_delta");
-        delta.addProperty("text", deltaText);
-        JsonObject data = new JsonObject();
-        data.addProperty("type", "content_block_delta");
-        data.addProperty("index", index);
-        data.add("delta", delta);
-        return data;
-    }
-
-    private JsonObject buildInputJsonDelta(int index, String partialJson) {
-        JsonObject delta = new JsonObject();
-        delta.addProperty("type", "input_json_delta");
-        delta.addProperty("partial_json", partialJson);
-        JsonObject data = new JsonObject();
-        data.addProperty("type", "content_block_delta");
-        data.addProperty("index", index);
-        data.add("delta", delta);
-        return data;
-    }
-
-    private String buildAnthropicStopEvents(AnthropicStreamState state) {
-        StringBuilder out = new StringBuilder();
-        if (state.thinkingStarted) {
-            JsonObject signatureData = new JsonObject();
-            signatureData.addProperty("type", "content_block_delta");
-            signatureData.addProperty("index", 0);
-            JsonObject delta = new JsonObject();
-            delta.addProperty("type", "signature_delta");
-            delta.addProperty("signature", "");
-            signatureData.add("delta", delta);
-            out.append(buildAnthropicEvent("content_block_delta", signatureData));
-
-            JsonObject stopData = new JsonObject();
-            stopData.addProperty("type", "content_block_stop");
-            stopData.addProperty("index", 0);
-            out.append(buildAnthropicEvent("content_block_stop", stopData));
-        }
-        if (state.textStarted) {
-            JsonObject stopData = new JsonObject();
-            stopData.addProperty("type", "content_block_stop");
-            stopData.addProperty("index", state.getTextIndex());
-            out.append(buildAnthropicEvent("content_block_stop", stopData));
-        }
-        for (Integer idx : state.toolStartedIndexes) {
-            JsonObject stopData = new JsonObject();
-            stopData.addProperty("type", "content_block_stop");
-            stopData.addProperty("index", state.getToolIndex(idx));
-            out.append(buildAnthropicEvent("content_block_stop", stopData));
-        }
-
-        JsonObject messageDelta = new JsonObject();
-        messageDelta.addProperty("type", "message_delta");
-        JsonObject deltaObj = new JsonObject();
-        deltaObj.addProperty("stop_reason", state.stopReason == null ? "end_turn" : state.stopReason);
-        deltaObj.add("stop_sequence", null);
-        messageDelta.add("delta", deltaObj);
-        JsonObject usage = new JsonObject();
-        usage.addProperty("output_tokens", Math.max(1, state.outputTokens));
-        messageDelta.add("usage", usage);
-        out.append(buildAnthropicEvent("message_delta", messageDelta));
-
-        JsonObject messageStop = new JsonObject();
-        messageStop.addProperty("type", "message_stop");
-        out.append(buildAnthropicEvent("message_stop", messageStop));
-        return out.toString();
-    }
-
-    private void writeSseChunk(ChannelHandlerContext ctx, String sseData) {
-        if (sseData == null || sseData.isEmpty()) {
-            return;
-        }
-        ByteBuf content = ctx.alloc().buffer();
-        content.writeBytes(sseData.getBytes(StandardCharsets.UTF_8));
-        HttpContent httpContent = new DefaultHttpContent(content);
-        ctx.writeAndFlush(httpContent);
-    }
-
-    private String buildAnthropicEvent(String event, JsonObject data) {
-        return "event: " + event + "\n" + "data: " + JsonUtil.toJson(data) + "\n\n";
+        };
     }
 
     private JsonObject getChoice(JsonObject root) {
@@ -1587,33 +1366,6 @@ public class AnthropicService {
         }
     }
 
-    private static class ToolCallState {
-        private String id = "";
-        private String name = "";
-    }
-
-    private static class AnthropicStreamState {
-        private boolean messageStarted = false;
-        private boolean hasThinking = false;
-        private boolean thinkingStarted = false;
-        private boolean hasText = false;
-        private boolean textStarted = false;
-        private boolean finished = false;
-        private String stopReason = "end_turn";
-        private int outputTokens = 0;
-        private final Map<Integer, ToolCallState> toolStates = new HashMap<>();
-        private final Set<Integer> toolStartedIndexes = new HashSet<>();
-
-        private int getTextIndex() {
-            return hasThinking ? 1 : 0;
-        }
-
-        private int getToolIndex(int toolCallIndex) {
-            int base = (hasThinking ? 1 : 0) + (hasText ? 1 : 0);
-            return base + toolCallIndex;
-        }
-    }
-    
     
     
     
@@ -0,0 +1,1073 @@
+package org.mark.llamacpp.server.service;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import io.netty.buffer.ByteBuf;
+
+
+
+/**
+ * 	把 llama-server 的 OpenAI 流式块（chat.completion.chunk）翻译成 Anthropic 的 SSE 事件，一个流一个实例，不是线程安全的。
+ * 	<p>
+ * 	原来每个块都要解析成 JsonObject、按事件再拼 JsonObject、再序列化成字符串、再编码成 UTF-8。这里换成手写的扫描：
+ * 	<ul>
+ * 	<li>只认 id、model、usage、choices[0].delta（reasoning_content、content、tool_calls）和 finish_reason，其余字段只校验跳过；</li>
+ * 	<li>字符串不解码成 Java String，直接从原文的转义形式转成和 Gson 一样的转义形式（HTML 安全、 / ），按 UTF-8 写进 ByteBuf；</li>
+ * 	<li>事件的固定部分是预先编码好的字节。</li>
+ * 	</ul>
+ * 	扫描器只接受标准 JSON 和常见的类型。遇到 Gson 宽松模式才接受的写法（单引号、注释等）、字段类型不寻常（字符串字段是数组、整数字段是字符串）
+ * 	时退回到 Gson 解析，取值的规则和原来的 getString / getInt 相同，所以输出和原来的实现逐字节一致。
+ */
+public class AnthropicSseTranslator {
+
+	private static final byte[] MESSAGE_START_1 = bytes("event: message_start\ndata: {\"type\":\"message_start\",\"message\":{\"id\":");
+	private static final byte[] MESSAGE_START_2 = bytes(",\"type\":\"message\",\"role\":\"assistant\",\"content\":[],\"model\":");
+	private static final byte[] MESSAGE_START_3 = bytes(",\"usage\":{\"cache_read_input_tokens\":");
+	private static final byte[] MESSAGE_START_4 = bytes(",\"input_tokens\":");
+	private static final byte[] MESSAGE_START_5 = bytes(",\"output_tokens\":0}}}\n\n");
+	private static final byte[] BLOCK_START = bytes("event: content_block_start\ndata: {\"type\":\"content_block_start\",\"index\":");
+	private static final byte[] BLOCK_THINKING = bytes(",\"content_block\":{\"type\":\"thinking\",\"thinking\":\"\"}}\n\n");
+	private static final byte[] BLOCK_TEXT = bytes(",\"content_block\":{\"type\":\"text\",\"text\":\"\"}}\n\n");
+	private static final byte[] BLOCK_TOOL_1 = bytes(",\"content_block\":{\"type\":\"tool_use\",\"id\":");
+	private static final byte[] BLOCK_TOOL_2 = bytes(",\"name\":");
+	private static final byte[] BLOCK_TOOL_3 = bytes("}}\n\n");
+	private static final byte[] DELTA = bytes("event: content_block_delta\ndata: {\"type\":\"content_block_delta\",\"index\":");
+	private static final byte[] DELTA_THINKING = bytes(",\"delta\":{\"type\":\"thinking_delta\",\"thinking\":");
+	private static final byte[] DELTA_TEXT = bytes(",\"delta\":{\"type\":\"text_delta\",\"text\":");
+	private static final byte[] DELTA_INPUT = bytes(",\"delta\":{\"type\":\"input_json_delta\",\"partial_json\":");
+	private static final byte[] DELTA_END = bytes("}}\n\n");
+	private static final byte[] SIGNATURE = bytes("event: content_block_delta\ndata: {\"type\":\"content_block_delta\",\"index\":0,\"delta\":{\"type\":\"signature_delta\",\"signature\":\"\"}}\n\n");
+	private static final byte[] BLOCK_STOP = bytes("event: content_block_stop\ndata: {\"type\":\"content_block_stop\",\"index\":");
+	private static final byte[] BLOCK_STOP_END = bytes("}\n\n");
+	private static final byte[] MESSAGE_DELTA_1 = bytes("event: message_delta\ndata: {\"type\":\"message_delta\",\"delta\":{\"stop_reason\":");
+	private static final byte[] MESSAGE_DELTA_2 = bytes("},\"usage\":{\"output_tokens\":");
+	private static final byte[] MESSAGE_DELTA_3 = bytes("}}\n\n");
+	private static final byte[] MESSAGE_STOP = bytes("event: message_stop\ndata: {\"type\":\"message_stop\"}\n\n");
+	private static final byte[] ESCAPE_2028 = bytes("\\u2028");
+	private static final byte[] ESCAPE_2029 = bytes("\\u2029");
+
+	/**
+	 * 	Gson（HTML 安全）对 ASCII 字符的转义，null 表示原样输出
+	 */
+	private static final String[] ESCAPES = new String[128];
+
+	static {
+		for (int i = 0; i < 0x20; i++) {
+			ESCAPES[i] = String.format("\\u%04x", i);
+		}
+		ESCAPES['"'] = "\\\"";
+		ESCAPES['\\'] = "\\\\";
+		ESCAPES['\t'] = "\\t";
+		ESCAPES['\b'] = "\\b";
+		ESCAPES['\n'] = "\\n";
+		ESCAPES['\r'] = "\\r";
+		ESCAPES['\f'] = "\\f";
+		ESCAPES['<'] = "\\u003c";
+		ESCAPES['>'] = "\\u003e";
+		ESCAPES['&'] = "\\u0026";
+		ESCAPES['='] = "\\u003d";
+		ESCAPES['\''] = "\\u0027";
+	}
+
+	private static final int TOP = 0;
+	private static final int USAGE = 1;
+	private static final int DETAILS = 2;
+	private static final int CHOICE = 3;
+	private static final int DELTA_OBJECT = 4;
+	private static final int TOOL = 5;
+	private static final int FUNCTION = 6;
+
+	// 整个流的状态
+	private boolean messageStarted;
+	private boolean hasThinking;
+	private boolean thinkingStarted;
+	private boolean hasText;
+	private boolean textStarted;
+	private boolean finished;
+	private String stopReason = "end_turn";
+	private int outputTokens;
+	private final Map<Integer, ToolCallState> toolStates = new HashMap<>();
+	private final Set<Integer> toolStartedIndexes = new HashSet<>();
+
+	// 当前块，每块重用
+	private String data;
+	private int pos;
+	private boolean keyEscaped;
+	private final Text id = new Text();
+	private final Text model = new Text();
+	private int promptTokens;
+	private int cachedTokens;
+	private int completionTokens;
+	private final Text reasoning = new Text();
+	private final Text content = new Text();
+	private final Text finishReason = new Text();
+	private ToolCall[] toolCalls = new ToolCall[4];
+	private int toolCount;
+	private ToolCall currentTool;
+
+	/**
+	 * 	UTF-8 编码时还没配对的高位代理
+	 */
+	private char pendingHigh;
+
+	/**
+	 * 	翻译一个块。
+	 * @param data "data: " 后面的内容，已经去掉首尾空白
+	 * @param out 事件写到这里
+	 * @return 写入的字节数，不是 JSON 对象时返回 -1，什么也不写
+	 */
+	public int translate(String data, ByteBuf out) {
+		if (!this.scan(data) && !this.parseFallback(data)) {
+			return -1;
+		}
+		int start = out.writerIndex();
+		if (!this.messageStarted) {
+			this.writeMessageStart(out);
+			this.messageStarted = true;
+		}
+
+		if (!this.reasoning.isEmpty()) {
+			this.hasThinking = true;
+			if (!this.thinkingStarted) {
+				this.writeBlockStart(out, 0, BLOCK_THINKING);
+				this.thinkingStarted = true;
+			}
+			this.writeDelta(out, 0, DELTA_THINKING, this.reasoning);
+			this.outputTokens++;
+		}
+
+		if (!this.content.isEmpty()) {
+			if (!this.textStarted) {
+				this.hasText = true;
+				this.writeBlockStart(out, this.getTextIndex(), BLOCK_TEXT);
+				this.textStarted = true;
+			}
+			this.writeDelta(out, this.getTextIndex(), DELTA_TEXT, this.content);
+			this.outputTokens++;
+		}
+
+		for (int i = 0; i < this.toolCount; i++) {
+			ToolCall tc = this.toolCalls[i];
+			ToolCallState toolState = this.toolStates.computeIfAbsent(tc.index, k -> new ToolCallState());
+			if (!tc.id.isEmpty()) {
+				toolState.id = tc.id.toString();
+			}
+			if (!tc.name.isEmpty()) {
+				toolState.name = tc.name.toString();
+			}
+			int blockIndex = this.getToolIndex(tc.index);
+			if (!this.toolStartedIndexes.contains(tc.index) && !toolState.name.isEmpty()) {
+				out.writeBytes(BLOCK_START);
+				writeInt(out, blockIndex);
+				out.writeBytes(BLOCK_TOOL_1);
+				this.writeString(out, toolState.id);
+				out.writeBytes(BLOCK_TOOL_2);
+				this.writeString(out, toolState.name);
+				out.writeBytes(BLOCK_TOOL_3);
+				this.toolStartedIndexes.add(tc.index);
+			}
+			if (!tc.arguments.isEmpty()) {
+				this.writeDelta(out, blockIndex, DELTA_INPUT, tc.arguments);
+				this.outputTokens++;
+			}
+		}
+
+		if (this.completionTokens >= 0) {
+			this.outputTokens = Math.max(this.outputTokens, this.completionTokens);
+		}
+
+		if (!this.finishReason.isEmpty()) {
+			String reason = this.finishReason.toString();
+			if (!"null".equalsIgnoreCase(reason)) {
+				this.stopReason = mapStopReason(reason);
+				if (!this.finished) {
+					this.writeStopEvents(out);
+					this.finished = true;
+				}
+			}
+		}
+		this.data = null;
+		return out.writerIndex() - start;
+	}
+
+	/**
+	 * 	收到 [DONE] 时调用，还没结束的话补上结束事件。
+	 * @param out
+	 * @return 写入的字节数
+	 */
+	public int finish(ByteBuf out) {
+		if (this.finished) {
+			return 0;
+		}
+		int start = out.writerIndex();
+		this.writeStopEvents(out);
+		this.finished = true;
+		return out.writerIndex() - start;
+	}
+
+	public boolean isFinished() {
+		return this.finished;
+	}
+
+	private int getTextIndex() {
+		return this.hasThinking ? 1 : 0;
+	}
+
+	private int getToolIndex(int toolCallIndex) {
+		int base = (this.hasThinking ? 1 : 0) + (this.hasText ? 1 : 0);
+		return base + toolCallIndex;
+	}
+
+	private static String mapStopReason(String finishReason) {
+		if ("length".equals(finishReason) || "max_tokens".equals(finishReason)) {
+			return "max_tokens";
+		}
+		if ("tool_calls".equals(finishReason) || "function_call".equals(finishReason)) {
+			return "tool_use";
+		}
+		return "end_turn";
+	}
+
+	//
+	// 输出
+	//
+
+	private void writeMessageStart(ByteBuf out) {
+		out.writeBytes(MESSAGE_START_1);
+		this.writeText(out, this.id);
+		out.writeBytes(MESSAGE_START_2);
+		this.writeText(out, this.model);
+		out.writeBytes(MESSAGE_START_3);
+		int inputTokens = Math.max(0, this.promptTokens - this.cachedTokens);
+		if (inputTokens == 0) {
+			inputTokens = 1;
+		}
+		writeInt(out, Math.max(0, this.cachedTokens));
+		out.writeBytes(MESSAGE_START_4);
+		writeInt(out, inputTokens);
+		out.writeBytes(MESSAGE_START_5);
+	}
+
+	private void writeBlockStart(ByteBuf out, int index, byte[] block) {
+		out.writeBytes(BLOCK_START);
+		writeInt(out, index);
+		out.writeBytes(block);
+	}
+
+	private void writeDelta(ByteBuf out, int index, byte[] type, Text value) {
+		out.writeBytes(DELTA);
+		writeInt(out, index);
+		out.writeBytes(type);
+		this.writeText(out, value);
+		out.writeBytes(DELTA_END);
+	}
+
+	private void writeStopEvents(ByteBuf out) {
+		if (this.thinkingStarted) {
+			out.writeBytes(SIGNATURE);
+			this.writeBlockStop(out, 0);
+		}
+		if (this.textStarted) {
+			this.writeBlockStop(out, this.getTextIndex());
+		}
+		for (Integer idx : this.toolStartedIndexes) {
+			this.writeBlockStop(out, this.getToolIndex(idx));
+		}
+		out.writeBytes(MESSAGE_DELTA_1);
+		this.writeString(out, this.stopReason == null ? "end_turn" : this.stopReason);
+		out.writeBytes(MESSAGE_DELTA_2);
+		writeInt(out, Math.max(1, this.outputTokens));
+		out.writeBytes(MESSAGE_DELTA_3);
+		out.writeBytes(MESSAGE_STOP);
+	}
+
+	private void writeBlockStop(ByteBuf out, int index) {
+		out.writeBytes(BLOCK_STOP);
+		writeInt(out, index);
+		out.writeBytes(BLOCK_STOP_END);
+	}
+
+	/**
+	 * 	写一个 JSON 字符串值：原文里的转义先还原成字符，再按 Gson 的规则转义。
+	 */
+	private void writeText(ByteBuf out, Text text) {
+		if (text.value != null || text.start == text.end) {
+			this.writeString(out, text.value == null ? "" : text.value);
+			return;
+		}
+		String s = this.data;
+		out.writeByte('"');
+		int i = text.start;
+		while (i < text.end) {
+			char c = s.charAt(i++);
+			if (c == '\\' && text.escaped) {
+				char e = s.charAt(i++);
+				switch (e) {
+				case 'b': c = '\b'; break;
+				case 'f': c = '\f'; break;
+				case 'n': c = '\n'; break;
+				case 'r': c = '\r'; break;
+				case 't': c = '\t'; break;
+				case 'u':
+					c = (char) Integer.parseInt(s, i, i + 4, 16);
+					i += 4;
+					break;
+				default: c = e; break;
+				}
+			}
+			this.writeChar(out, c);
+		}
+		this.flushPendingHigh(out);
+		out.writeByte('"');
+	}
+
+	private void writeString(ByteBuf out, String value) {
+		out.writeByte('"');
+		for (int i = 0; i < value.length(); i++) {
+			this.writeChar(out, value.charAt(i));
+		}
+		this.flushPendingHigh(out);
+		out.writeByte('"');
+	}
+
+	/**
+	 * 	按 Gson 的规则转义一个字符，再按 UTF-8 编码。不成对的代理和 String.getBytes 一样写成 '?'。
+	 */
+	private void writeChar(ByteBuf out, char c) {
+		if (this.pendingHigh != 0) {
+			char high = this.pendingHigh;
+			this.pendingHigh = 0;
+			if (Character.isLowSurrogate(c)) {
+				int cp = Character.toCodePoint(high, c);
+				out.writeByte(0xf0 | (cp >> 18));
+				out.writeByte(0x80 | ((cp >> 12) & 0x3f));
+				out.writeByte(0x80 | ((cp >> 6) & 0x3f));
+				out.writeByte(0x80 | (cp & 0x3f));
+				return;
+			}
+			out.writeByte('?');
+		}
+		if (c < 0x80) {
+			String escape = ESCAPES[c];
+			if (escape == null) {
+				out.writeByte(c);
+			} else {
+				for (int i = 0; i < escape.length(); i++) {
+					out.writeByte(escape.charAt(i));
+				}
+			}
+		} else if (c == '\u2028') {
+			out.writeBytes(ESCAPE_2028);
+		} else if (c == '\u2029') {
+			out.writeBytes(ESCAPE_2029);
+		} else if (c < 0x800) {
+			out.writeByte(0xc0 | (c >> 6));
+			out.writeByte(0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c)) {
+			this.pendingHigh = c;
+		} else if (Character.isLowSurrogate(c)) {
+			out.writeByte('?');
+		} else {
+			out.writeByte(0xe0 | (c >> 12));
+			out.writeByte(0x80 | ((c >> 6) & 0x3f));
+			out.writeByte(0x80 | (c & 0x3f));
+		}
+	}
+
+	private void flushPendingHigh(ByteBuf out) {
+		if (this.pendingHigh != 0) {
+			this.pendingHigh = 0;
+			out.writeByte('?');
+		}
+	}
+
+	private static void writeInt(ByteBuf out, int value) {
+		if (value >= 0 && value < 10) {
+			out.writeByte('0' + value);
+			return;
+		}
+		String s = Integer.toString(value);
+		for (int i = 0; i < s.length(); i++) {
+			out.writeByte(s.charAt(i));
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	//
+	// 扫描
+	//
+
+	/**
+	 * 	扫描一个块，取出需要的字段。遇到不支持的写法返回 false，由 {@link #parseFallback} 处理。
+	 */
+	private boolean scan(String data) {
+		this.reset();
+		this.data = data;
+		this.pos = 0;
+		try {
+			this.skipWhitespace();
+			if (this.peek() != '{') {
+				return false;
+			}
+			this.scanObject(TOP);
+			this.skipWhitespace();
+			return this.pos == data.length();
+		} catch (Unsupported | IndexOutOfBoundsException e) {
+			return false;
+		}
+	}
+
+	private void reset() {
+		this.id.clear();
+		this.model.clear();
+		this.resetUsage();
+		this.resetChoice();
+	}
+
+	private void resetUsage() {
+		this.promptTokens = 0;
+		this.cachedTokens = 0;
+		this.completionTokens = -1;
+	}
+
+	private void resetChoice() {
+		this.finishReason.clear();
+		this.resetDelta();
+	}
+
+	private void resetDelta() {
+		this.reasoning.clear();
+		this.content.clear();
+		this.toolCount = 0;
+	}
+
+	private void scanObject(int type) {
+		this.pos++;
+		this.skipWhitespace();
+		if (this.peek() == '}') {
+			this.pos++;
+			return;
+		}
+		while (true) {
+			this.skipWhitespace();
+			if (this.peek() != '"') {
+				throw Unsupported.INSTANCE;
+			}
+			int keyStart = this.pos + 1;
+			int keyEnd = this.scanString();
+			if (this.keyEscaped) {
+				throw Unsupported.INSTANCE;
+			}
+			this.skipWhitespace();
+			if (this.data.charAt(this.pos++) != ':') {
+				throw Unsupported.INSTANCE;
+			}
+			this.skipWhitespace();
+			this.scanField(type, keyStart, keyEnd - keyStart);
+			this.skipWhitespace();
+			char c = this.data.charAt(this.pos++);
+			if (c == '}') {
+				return;
+			}
+			if (c != ',') {
+				throw Unsupported.INSTANCE;
+			}
+		}
+	}
+
+	private void scanField(int type, int keyStart, int keyLength) {
+		switch (type) {
+		case TOP:
+			if (this.keyIs(keyStart, keyLength, "id")) {
+				this.scanText(this.id);
+			} else if (this.keyIs(keyStart, keyLength, "model")) {
+				this.scanText(this.model);
+			} else if (this.keyIs(keyStart, keyLength, "usage")) {
+				this.resetUsage();
+				this.scanNested(USAGE);
+			} else if (this.keyIs(keyStart, keyLength, "choices")) {
+				this.resetChoice();
+				if (this.peek() == '[') {
+					this.scanChoices();
+				} else {
+					this.skipValue();
+				}
+			} else {
+				this.skipValue();
+			}
+			return;
+		case USAGE:
+			if (this.keyIs(keyStart, keyLength, "prompt_tokens")) {
+				this.promptTokens = this.scanInt(0);
+			} else if (this.keyIs(keyStart, keyLength, "completion_tokens")) {
+				this.completionTokens = this.scanInt(-1);
+			} else if (this.keyIs(keyStart, keyLength, "prompt_tokens_details")) {
+				this.cachedTokens = 0;
+				this.scanNested(DETAILS);
+			} else {
+				this.skipValue();
+			}
+			return;
+		case DETAILS:
+			if (this.keyIs(keyStart, keyLength, "cached_tokens")) {
+				this.cachedTokens = this.scanInt(0);
+			} else {
+				this.skipValue();
+			}
+			return;
+		case CHOICE:
+			if (this.keyIs(keyStart, keyLength, "delta")) {
+				this.resetDelta();
+				this.scanNested(DELTA_OBJECT);
+			} else if (this.keyIs(keyStart, keyLength, "finish_reason")) {
+				this.scanText(this.finishReason);
+			} else {
+				this.skipValue();
+			}
+			return;
+		case DELTA_OBJECT:
+			if (this.keyIs(keyStart, keyLength, "reasoning_content")) {
+				this.scanText(this.reasoning);
+			} else if (this.keyIs(keyStart, keyLength, "content")) {
+				this.scanText(this.content);
+			} else if (this.keyIs(keyStart, keyLength, "tool_calls")) {
+				this.toolCount = 0;
+				if (this.peek() == '[') {
+					this.scanToolCalls();
+				} else {
+					this.skipValue();
+				}
+			} else {
+				this.skipValue();
+			}
+			return;
+		case TOOL:
+			if (this.keyIs(keyStart, keyLength, "index")) {
+				this.currentTool.index = this.scanInt(this.currentTool.position);
+			} else if (this.keyIs(keyStart, keyLength, "id")) {
+				this.scanText(this.currentTool.id);
+			} else if (this.keyIs(keyStart, keyLength, "function")) {
+				this.currentTool.name.clear();
+				this.currentTool.arguments.clear();
+				this.scanNested(FUNCTION);
+			} else {
+				this.skipValue();
+			}
+			return;
+		case FUNCTION:
+			if (this.keyIs(keyStart, keyLength, "name")) {
+				this.scanText(this.currentTool.name);
+			} else if (this.keyIs(keyStart, keyLength, "arguments")) {
+				this.scanText(this.currentTool.arguments);
+			} else {
+				this.skipValue();
+			}
+			return;
+		default:
+			this.skipValue();
+		}
+	}
+
+	/**
+	 * 	期望是对象的字段，不是对象时当作空对象。
+	 */
+	private void scanNested(int type) {
+		if (this.peek() == '{') {
+			this.scanObject(type);
+		} else {
+			this.skipValue();
+		}
+	}
+
+	/**
+	 * 	只看第一个元素，不是对象时当作空的 choice。
+	 */
+	private void scanChoices() {
+		this.pos++;
+		this.skipWhitespace();
+		if (this.peek() == ']') {
+			this.pos++;
+			return;
+		}
+		boolean first = true;
+		while (true) {
+			this.skipWhitespace();
+			if (first && this.peek() == '{') {
+				this.scanObject(CHOICE);
+			} else {
+				this.skipValue();
+			}
+			first = false;
+			this.skipWhitespace();
+			char c = this.data.charAt(this.pos++);
+			if (c == ']') {
+				return;
+			}
+			if (c != ',') {
+				throw Unsupported.INSTANCE;
+			}
+		}
+	}
+
+	/**
+	 * 	不是对象的元素跳过，但占一个位置（没有 index 时用位置）。
+	 */
+	private void scanToolCalls() {
+		this.pos++;
+		this.skipWhitespace();
+		if (this.peek() == ']') {
+			this.pos++;
+			return;
+		}
+		int position = 0;
+		while (true) {
+			this.skipWhitespace();
+			if (this.peek() == '{') {
+				this.currentTool = this.addToolCall(position);
+				this.scanObject(TOOL);
+			} else {
+				this.skipValue();
+			}
+			position++;
+			this.skipWhitespace();
+			char c = this.data.charAt(this.pos++);
+			if (c == ']') {
+				return;
+			}
+			if (c != ',') {
+				throw Unsupported.INSTANCE;
+			}
+		}
+	}
+
+	private ToolCall addToolCall(int position) {
+		if (this.toolCount == this.toolCalls.length) {
+			ToolCall[] grown = new ToolCall[this.toolCalls.length * 2];
+			System.arraycopy(this.toolCalls, 0, grown, 0, this.toolCount);
+			this.toolCalls = grown;
+		}
+		ToolCall tc = this.toolCalls[this.toolCount];
+		if (tc == null) {
+			tc = new ToolCall();
+			this.toolCalls[this.toolCount] = tc;
+		}
+		this.toolCount++;
+		tc.position = position;
+		tc.index = position;
+		tc.id.clear();
+		tc.name.clear();
+		tc.arguments.clear();
+		return tc;
+	}
+
+	/**
+	 * 	按 getString 的规则取字符串：null 和对象是空串，数字和布尔值取原文，数组交给 Gson。
+	 */
+	private void scanText(Text target) {
+		char c = this.peek();
+		if (c == '"') {
+			int start = this.pos + 1;
+			int end = this.scanString();
+			target.setSpan(start, end, this.keyEscaped);
+			return;
+		}
+		if (c == '[') {
+			throw Unsupported.INSTANCE;
+		}
+		if (c == '{' || c == 'n') {
+			this.skipValue();
+			target.clear();
+			return;
+		}
+		int start = this.pos;
+		this.skipValue();
+		target.setSpan(start, this.pos, false);
+	}
+
+	/**
+	 * 	按 getInt 的规则取整数：数字按 Gson 的 LazilyParsedNumber 转换，null、布尔值和对象取默认值，字符串和数组交给 Gson。
+	 */
+	private int scanInt(int fallback) {
+		char c = this.peek();
+		if (c == '"' || c == '[') {
+			throw Unsupported.INSTANCE;
+		}
+		if (c != '-' && (c < '0' || c > '9')) {
+			this.skipValue();
+			return fallback;
+		}
+		int start = this.pos;
+		this.skipNumber();
+		int end = this.pos;
+		boolean plain = end - start <= 18;
+		for (int i = start; i < end && plain; i++) {
+			char d = this.data.charAt(i);
+			plain = (d >= '0' && d <= '9') || (d == '-' && i == start);
+		}
+		if (plain) {
+			return (int) Long.parseLong(this.data, start, end, 10);
+		}
+		return lazilyParsedInt(this.data.substring(start, end));
+	}
+
+	private static int lazilyParsedInt(String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			try {
+				return (int) Long.parseLong(value);
+			} catch (NumberFormatException nfe) {
+				return new BigDecimal(value).intValue();
+			}
+		}
+	}
+
+	private boolean keyIs(int start, int length, String key) {
+		return length == key.length() && this.data.regionMatches(start, key, 0, length);
+	}
+
+	private char peek() {
+		return this.data.charAt(this.pos);
+	}
+
+	private void skipWhitespace() {
+		String s = this.data;
+		int n = s.length();
+		while (this.pos < n) {
+			char c = s.charAt(this.pos);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return;
+			}
+			this.pos++;
+		}
+	}
+
+	/**
+	 * 	当前位置是 '"'，走到结尾的 '"' 之后，返回结尾 '"' 的位置。keyEscaped 记录有没有转义。
+	 * 	和 Gson 一样接受未转义的控制字符，其它转义之外的写法交给 Gson。
+	 */
+	private int scanString() {
+		String s = this.data;
+		int i = this.pos + 1;
+		boolean escaped = false;
+		while (true) {
+			char c = s.charAt(i++);
+			if (c == '"') {
+				this.pos = i;
+				this.keyEscaped = escaped;
+				return i - 1;
+			}
+			if (c == '\\') {
+				escaped = true;
+				char e = s.charAt(i++);
+				if (e == 'u') {
+					for (int k = 0; k < 4; k++) {
+						if (Character.digit(s.charAt(i++), 16) < 0) {
+							throw Unsupported.INSTANCE;
+						}
+					}
+				} else if (e != '"' && e != '\\' && e != '/' && e != 'b' && e != 'f' && e != 'n' && e != 'r' && e != 't') {
+					throw Unsupported.INSTANCE;
+				}
+			}
+		}
+	}
+
+	private void skipValue() {
+		char c = this.peek();
+		switch (c) {
+		case '"':
+			this.scanString();
+			return;
+		case '{':
+			this.scanObject(-1);
+			return;
+		case '[':
+			this.pos++;
+			this.skipWhitespace();
+			if (this.peek() == ']') {
+				this.pos++;
+				return;
+			}
+			while (true) {
+				this.skipWhitespace();
+				this.skipValue();
+				this.skipWhitespace();
+				char d = this.data.charAt(this.pos++);
+				if (d == ']') {
+					return;
+				}
+				if (d != ',') {
+					throw Unsupported.INSTANCE;
+				}
+			}
+		case 't':
+			this.skipLiteral("true");
+			return;
+		case 'f':
+			this.skipLiteral("false");
+			return;
+		case 'n':
+			this.skipLiteral("null");
+			return;
+		default:
+			this.skipNumber();
+		}
+	}
+
+	private void skipLiteral(String literal) {
+		if (!this.data.startsWith(literal, this.pos)) {
+			throw Unsupported.INSTANCE;
+		}
+		this.pos += literal.length();
+		this.checkValueEnd();
+	}
+
+	/**
+	 * 	标准 JSON 数字：-?(0|[1-9]\d*)(\.\d+)?([eE][+-]?\d+)?
+	 */
+	private void skipNumber() {
+		String s = this.data;
+		int n = s.length();
+		int i = this.pos;
+		if (i < n && s.charAt(i) == '-') {
+			i++;
+		}
+		if (i >= n || !isDigit(s.charAt(i))) {
+			throw Unsupported.INSTANCE;
+		}
+		if (s.charAt(i) == '0') {
+			i++;
+		} else {
+			while (i < n && isDigit(s.charAt(i))) {
+				i++;
+			}
+		}
+		if (i < n && s.charAt(i) == '.') {
+			i++;
+			if (i >= n || !isDigit(s.charAt(i))) {
+				throw Unsupported.INSTANCE;
+			}
+			while (i < n && isDigit(s.charAt(i))) {
+				i++;
+			}
+		}
+		if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+			i++;
+			if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+				i++;
+			}
+			if (i >= n || !isDigit(s.charAt(i))) {
+				throw Unsupported.INSTANCE;
+			}
+			while (i < n && isDigit(s.charAt(i))) {
+				i++;
+			}
+		}
+		this.pos = i;
+		this.checkValueEnd();
+	}
+
+	/**
+	 * 	字面量和数字后面必须是分隔符，否则（比如 01、truex）交给 Gson。
+	 */
+	private void checkValueEnd() {
+		if (this.pos >= this.data.length()) {
+			return;
+		}
+		char c = this.data.charAt(this.pos);
+		if (c != ',' && c != '}' && c != ']' && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+			throw Unsupported.INSTANCE;
+		}
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	//
+	// Gson 兜底
+	//
+
+	/**
+	 * 	用 Gson（宽松模式）解析，取值规则和原来的 getString / getObject / getInt 一样。
+	 * @return 不是 JSON 对象时返回 false
+	 */
+	private boolean parseFallback(String data) {
+		this.reset();
+		this.data = null;
+		JsonObject chunk;
+		try {
+			JsonElement root = JsonParser.parseString(data);
+			if (!root.isJsonObject()) {
+				return false;
+			}
+			chunk = root.getAsJsonObject();
+		} catch (Exception e) {
+			return false;
+		}
+		this.id.set(getString(chunk, "id"));
+		this.model.set(getString(chunk, "model"));
+		JsonObject usage = getObject(chunk, "usage");
+		this.promptTokens = getInt(usage, "prompt_tokens", 0);
+		this.completionTokens = getInt(usage, "completion_tokens", -1);
+		this.cachedTokens = getInt(getObject(usage, "prompt_tokens_details"), "cached_tokens", 0);
+
+		JsonObject choice = new JsonObject();
+		JsonElement choicesEl = chunk.get("choices");
+		if (choicesEl != null && choicesEl.isJsonArray()) {
+			JsonArray choices = choicesEl.getAsJsonArray();
+			if (choices.size() > 0 && choices.get(0).isJsonObject()) {
+				choice = choices.get(0).getAsJsonObject();
+			}
+		}
+		JsonObject delta = getObject(choice, "delta");
+		this.finishReason.set(getString(choice, "finish_reason"));
+		this.reasoning.set(getString(delta, "reasoning_content"));
+		this.content.set(getString(delta, "content"));
+		JsonElement toolCallsEl = delta.get("tool_calls");
+		if (toolCallsEl != null && toolCallsEl.isJsonArray()) {
+			JsonArray array = toolCallsEl.getAsJsonArray();
+			for (int i = 0; i < array.size(); i++) {
+				JsonElement tcEl = array.get(i);
+				if (tcEl == null || !tcEl.isJsonObject()) {
+					continue;
+				}
+				JsonObject tc = tcEl.getAsJsonObject();
+				ToolCall toolCall = this.addToolCall(i);
+				toolCall.index = getInt(tc, "index", i);
+				toolCall.id.set(getString(tc, "id"));
+				JsonObject function = getObject(tc, "function");
+				toolCall.name.set(getString(function, "name"));
+				toolCall.arguments.set(getString(function, "arguments"));
+			}
+		}
+		return true;
+	}
+
+	private static String getString(JsonObject obj, String key) {
+		if (obj == null || !obj.has(key)) {
+			return "";
+		}
+		JsonElement el = obj.get(key);
+		if (el == null || el.isJsonNull()) {
+			return "";
+		}
+		try {
+			return el.getAsString();
+		} catch (Exception ignore) {
+			return "";
+		}
+	}
+
+	private static JsonObject getObject(JsonObject obj, String key) {
+		if (obj == null || !obj.has(key)) {
+			return new JsonObject();
+		}
+		JsonElement el = obj.get(key);
+		if (el == null || !el.isJsonObject()) {
+			return new JsonObject();
+		}
+		return el.getAsJsonObject();
+	}
+
+	private static int getInt(JsonObject obj, String key, int fallback) {
+		if (obj == null || !obj.has(key) || obj.get(key).isJsonNull()) {
+			return fallback;
+		}
+		try {
+			return obj.get(key).getAsInt();
+		} catch (Exception e) {
+			return fallback;
+		}
+	}
+
+	/**
+	 * 	字符串字段的值：扫描时是原文里的一段（引号之内，可能带转义），Gson 兜底时是解码后的字符串。
+	 */
+	private final class Text {
+
+		private int start;
+		private int end;
+		private boolean escaped;
+		private String value;
+
+		private void clear() {
+			this.start = 0;
+			this.end = 0;
+			this.escaped = false;
+			this.value = null;
+		}
+
+		private void setSpan(int start, int end, boolean escaped) {
+			this.start = start;
+			this.end = end;
+			this.escaped = escaped;
+			this.value = null;
+		}
+
+		private void set(String value) {
+			this.clear();
+			this.value = value;
+		}
+
+		private boolean isEmpty() {
+			return this.value == null ? this.start == this.end : this.value.isEmpty();
+		}
+
+		/**
+		 * 	解码后的字符串，只用在 finish_reason 和工具的 id、name 上。
+		 */
+		@Override
+		public String toString() {
+			if (this.value != null) {
+				return this.value;
+			}
+			String s = AnthropicSseTranslator.this.data;
+			if (!this.escaped) {
+				return s.substring(this.start, this.end);
+			}
+			return JsonParser.parseString(s.substring(this.start - 1, this.end + 1)).getAsString();
+		}
+	}
+
+	private final class ToolCall {
+		private int position;
+		private int index;
+		private final Text id = new Text();
+		private final Text name = new Text();
+		private final Text arguments = new Text();
+	}
+
+	private static class ToolCallState {
+		private String id = "";
+		private String name = "";
+	}
+
+	/**
+	 * 	扫描器不支持的写法，转给 Gson。
+	 */
+	private static final class Unsupported extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final Unsupported INSTANCE = new Unsupported();
+
+		private Unsupported() {
+			super(null, null, false, false);
+		}
+	}
+}
@@ -0,0 +1,573 @@
+package org.mark.llamacpp.server.service;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import org.mark.llamacpp.server.NodeManager;
+import org.mark.llamacpp.server.io.SseLineReader;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * 	并发压测：N 个客户端同时发送流式的 /v1/chat/completions 请求，统计首 token 时间、token 间隔、
+ * 	端到端耗时的分位数，以及总吞吐和错误率。
+ * 	<p>
+ * 	每个客户端一个虚拟线程，按 rampUp 均匀错开启动，之后循环发请求直到时间用完（或达到总请求数）。
+ * 	提示词在开始前按长度分档生成好，压测过程中不再调用 tokenize。
+ */
+public final class BenchmarkLoadRunner {
+
+	private static final Logger logger = LoggerFactory.getLogger(BenchmarkLoadRunner.class);
+
+	private static final byte[] DATA_PREFIX = "data:".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] DATA_PREFIX_SPACE = "data: ".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] DONE = "[DONE]".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] CONTENT = "\"content\":\"".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] EMPTY_CONTENT = "\"content\":\"\"".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] ARGUMENTS = "\"arguments\":\"".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] TIMINGS = "\"timings\"".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] USAGE = "\"usage\":{".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] ERROR = "{\"error\"".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * 	最多保留的错误信息条数。
+	 */
+	private static final int MAX_ERROR_SAMPLES = 10;
+
+	private static final long FAILURE_BACKOFF_MS = 100L;
+
+	public static class LoadOptions {
+		public int concurrency = 4;
+		public int rampUpSeconds = 0;
+		public int durationSeconds = 60;
+		/**
+		 * 	总请求数上限，<=0 表示只按时间。
+		 */
+		public int maxRequests = 0;
+		public int promptTokensMin = 512;
+		public int promptTokensMax = 512;
+		public int maxTokensMin = 128;
+		public int maxTokensMax = 128;
+		/**
+		 * 	提示词长度在 [min, max] 之间均匀取几档。
+		 */
+		public int promptVariants = 4;
+		/**
+		 * 	在每个请求的提示词前加上序号，避免命中 llama.cpp 的提示词缓存。
+		 */
+		public boolean uniquePrompts = true;
+		public int requestTimeoutSeconds = 600;
+	}
+
+	/**
+	 * 	按目标 token 数生成 messages。
+	 */
+	@FunctionalInterface
+	public interface PromptSource {
+		JsonArray messagesFor(int promptTokens);
+	}
+
+	private final String targetUrl;
+	private final String apiKey;
+	private final String modelId;
+	private final LoadOptions options;
+	private final PromptSource promptSource;
+
+	private final Set<HttpURLConnection> openConnections = ConcurrentHashMap.newKeySet();
+	private volatile boolean cancelled;
+
+	/**
+	 *
+	 * @param targetUrl 完整的 /v1/chat/completions 地址
+	 * @param apiKey 为空时不带 Authorization 头
+	 * @param modelId 请求体里的 model 字段
+	 * @param options
+	 * @param promptSource
+	 */
+	public BenchmarkLoadRunner(String targetUrl, String apiKey, String modelId, LoadOptions options, PromptSource promptSource) {
+		this.targetUrl = targetUrl;
+		this.apiKey = apiKey;
+		this.modelId = modelId;
+		this.options = options;
+		this.promptSource = promptSource;
+	}
+
+	/**
+	 * 	中止压测：正在进行的请求会被断开，{@link #run()} 尽快返回已经收集到的结果。
+	 */
+	public void cancel() {
+		this.cancelled = true;
+		for (HttpURLConnection conn : this.openConnections) {
+			try {
+				conn.disconnect();
+			} catch (Exception ignore) {
+			}
+		}
+	}
+
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	/**
+	 * 	执行压测，阻塞到所有客户端结束。
+	 * @return 统计结果
+	 * @throws InterruptedException
+	 */
+	public Map<String, Object> run() throws InterruptedException {
+		LoadOptions opt = this.options;
+		int[] promptLengths = promptLengths(opt);
+		List<JsonArray> prompts = new ArrayList<>(promptLengths.length);
+		for (int n : promptLengths) {
+			prompts.add(this.promptSource.messagesFor(n));
+		}
+
+		ClientStats[] stats = new ClientStats[opt.concurrency];
+		Thread[] clients = new Thread[opt.concurrency];
+		AtomicInteger issued = new AtomicInteger();
+		long startNanos = System.nanoTime();
+		long deadline = startNanos + TimeUnit.SECONDS.toNanos(opt.durationSeconds);
+		for (int i = 0; i < opt.concurrency; i++) {
+			ClientStats s = new ClientStats();
+			stats[i] = s;
+			long delayNanos = TimeUnit.SECONDS.toNanos(opt.rampUpSeconds) * i / opt.concurrency;
+			clients[i] = Thread.ofVirtual().name("benchmark-load-" + i).start(() -> {
+				try {
+					if (delayNanos > 0) {
+						TimeUnit.NANOSECONDS.sleep(delayNanos);
+					}
+					while (!this.cancelled && System.nanoTime() < deadline) {
+						int seq = issued.getAndIncrement();
+						if (opt.maxRequests > 0 && seq >= opt.maxRequests) {
+							break;
+						}
+						int variant = ThreadLocalRandom.current().nextInt(prompts.size());
+						int maxTokens = opt.maxTokensMin >= opt.maxTokensMax ? opt.maxTokensMin
+								: ThreadLocalRandom.current().nextInt(opt.maxTokensMin, opt.maxTokensMax + 1);
+						if (!this.sendOne(seq, prompts.get(variant), maxTokens, s) && !this.cancelled) {
+							// 失败的请求通常很快返回，稍等一下，避免在出错的服务上空转
+							TimeUnit.MILLISECONDS.sleep(FAILURE_BACKOFF_MS);
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+		try {
+			for (Thread t : clients) {
+				t.join();
+			}
+		} catch (InterruptedException e) {
+			this.cancel();
+			throw e;
+		}
+		long wallNanos = System.nanoTime() - startNanos;
+		return this.report(stats, wallNanos, promptLengths);
+	}
+
+	/**
+	 * 	发送一个流式请求并记录时间点。
+	 * @param seq
+	 * @param messages
+	 * @param maxTokens
+	 * @param s
+	 * @return 是否成功
+	 */
+	private boolean sendOne(int seq, JsonArray messages, int maxTokens, ClientStats s) {
+		JsonObject body = new JsonObject();
+		body.addProperty("model", this.modelId);
+		body.add("messages", this.options.uniquePrompts ? withPrefix(messages, "[" + seq + "] ") : messages);
+		body.addProperty("max_tokens", maxTokens);
+		// 让 llama.cpp 生成满 max_tokens，输出长度才可控
+		body.addProperty("ignore_eos", true);
+		body.addProperty("stream", true);
+		byte[] payload = JsonUtil.toJson(body).getBytes(StandardCharsets.UTF_8);
+
+		HttpURLConnection connection = null;
+		long t0 = System.nanoTime();
+		long firstToken = 0L;
+		long lastToken = 0L;
+		int chunks = 0;
+		long completionTokens = -1L;
+		long promptTokens = -1L;
+		long[] itl = new long[Math.max(16, Math.min(maxTokens, 4096))];
+		int itlCount = 0;
+		try {
+			connection = (HttpURLConnection) URI.create(this.targetUrl).toURL().openConnection();
+			if (connection instanceof HttpsURLConnection https) {
+				NodeManager.trustAllCerts(https);
+			}
+			this.openConnections.add(connection);
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setConnectTimeout(30000);
+			connection.setReadTimeout(this.options.requestTimeoutSeconds * 1000);
+			connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+			connection.setRequestProperty("Accept", "text/event-stream");
+			if (this.apiKey != null && !this.apiKey.isBlank()) {
+				connection.setRequestProperty("Authorization", "Bearer " + this.apiKey);
+			}
+			connection.setFixedLengthStreamingMode(payload.length);
+			try (OutputStream os = connection.getOutputStream()) {
+				os.write(payload);
+			}
+			int code = connection.getResponseCode();
+			if (code < 200 || code >= 300) {
+				s.fail("HTTP " + code + ": " + abbreviate(readError(connection)));
+				return false;
+			}
+			try (InputStream in = connection.getInputStream()) {
+				SseLineReader reader = new SseLineReader(in);
+				while (reader.next()) {
+					if (!reader.startsWith(DATA_PREFIX)) {
+						continue;
+					}
+					int offset = reader.startsWith(DATA_PREFIX_SPACE) ? DATA_PREFIX_SPACE.length : DATA_PREFIX.length;
+					if (reader.equalsAt(offset, DONE)) {
+						break;
+					}
+					if (reader.contains(ERROR, offset) && reader.toString(offset).startsWith("{\"error\"")) {
+						s.fail(abbreviate(reader.toString(offset)));
+						return false;
+					}
+					boolean token = (reader.contains(CONTENT, offset) && !reader.contains(EMPTY_CONTENT, offset))
+							|| reader.contains(ARGUMENTS, offset);
+					if (token) {
+						long now = System.nanoTime();
+						if (firstToken == 0L) {
+							firstToken = now;
+						} else {
+							if (itlCount == itl.length) {
+								itl = Arrays.copyOf(itl, itl.length * 2);
+							}
+							itl[itlCount++] = now - lastToken;
+						}
+						lastToken = now;
+						chunks++;
+					}
+					if (reader.contains(TIMINGS, offset) || reader.contains(USAGE, offset)) {
+						JsonObject obj = JsonUtil.tryParseObject(reader.toString(offset));
+						long[] counts = readTokenCounts(obj);
+						if (counts[0] >= 0) promptTokens = counts[0];
+						if (counts[1] >= 0) completionTokens = counts[1];
+					}
+				}
+			}
+			long end = System.nanoTime();
+			if (firstToken == 0L) {
+				s.fail("响应中没有任何token");
+				return false;
+			}
+			s.succeed(firstToken - t0, end - t0, itl, itlCount,
+					completionTokens >= 0 ? completionTokens : chunks, Math.max(promptTokens, 0L));
+			return true;
+		} catch (Exception e) {
+			if (this.cancelled) {
+				s.cancelled++;
+			} else {
+				s.fail(e.getClass().getSimpleName() + ": " + abbreviate(e.getMessage()));
+			}
+			return false;
+		} finally {
+			if (connection != null) {
+				this.openConnections.remove(connection);
+				connection.disconnect();
+			}
+		}
+	}
+
+	private Map<String, Object> report(ClientStats[] stats, long wallNanos, int[] promptLengths) {
+		int succeeded = 0;
+		int failed = 0;
+		int cancelled = 0;
+		long completionTokens = 0L;
+		long promptTokens = 0L;
+		int ttftCount = 0;
+		int itlCount = 0;
+		for (ClientStats s : stats) {
+			succeeded += s.succeeded;
+			failed += s.failed;
+			cancelled += s.cancelled;
+			completionTokens += s.completionTokens;
+			promptTokens += s.promptTokens;
+			ttftCount += s.ttft.size;
+			itlCount += s.itl.size;
+		}
+		long[] ttft = new long[ttftCount];
+		long[] e2e = new long[ttftCount];
+		long[] itl = new long[itlCount];
+		List<String> errors = new ArrayList<>();
+		int p1 = 0;
+		int p2 = 0;
+		for (ClientStats s : stats) {
+			System.arraycopy(s.ttft.values, 0, ttft, p1, s.ttft.size);
+			System.arraycopy(s.e2e.values, 0, e2e, p1, s.e2e.size);
+			p1 += s.ttft.size;
+			System.arraycopy(s.itl.values, 0, itl, p2, s.itl.size);
+			p2 += s.itl.size;
+			for (String err : s.errors) {
+				if (errors.size() < MAX_ERROR_SAMPLES) {
+					errors.add(err);
+				}
+			}
+		}
+		int total = succeeded + failed;
+		double wallSeconds = wallNanos / 1e9;
+
+		Map<String, Object> out = new LinkedHashMap<>();
+		out.put("requests", total);
+		out.put("succeeded", succeeded);
+		out.put("failed", failed);
+		out.put("cancelled", cancelled);
+		out.put("errorRate", total == 0 ? 0.0 : round((double) failed / total, 4));
+		out.put("wallSeconds", round(wallSeconds, 3));
+		out.put("completionTokens", completionTokens);
+		out.put("promptTokens", promptTokens);
+		out.put("tokensPerSecond", wallSeconds <= 0 ? 0.0 : round(completionTokens / wallSeconds, 2));
+		out.put("requestsPerSecond", wallSeconds <= 0 ? 0.0 : round(succeeded / wallSeconds, 3));
+		out.put("ttftMs", percentiles(ttft));
+		out.put("itlMs", percentiles(itl));
+		out.put("e2eMs", percentiles(e2e));
+		List<Integer> lengths = new ArrayList<>(promptLengths.length);
+		for (int n : promptLengths) {
+			lengths.add(n);
+		}
+		out.put("promptLengths", lengths);
+		out.put("errors", errors);
+		if (failed > 0) {
+			logger.info("压测结束，{} 个请求中有 {} 个失败，例如: {}", total, failed, errors.isEmpty() ? "" : errors.get(0));
+		}
+		return out;
+	}
+
+	/**
+	 * 	提示词长度分档：min 到 max 之间等距取 promptVariants 个值。
+	 * @param opt
+	 * @return
+	 */
+	private static int[] promptLengths(LoadOptions opt) {
+		int min = opt.promptTokensMin;
+		int max = Math.max(opt.promptTokensMax, min);
+		int n = min == max ? 1 : Math.max(2, Math.min(opt.promptVariants, max - min + 1));
+		int[] out = new int[n];
+		for (int i = 0; i < n; i++) {
+			out[i] = n == 1 ? min : (int) (min + (long) (max - min) * i / (n - 1));
+		}
+		return out;
+	}
+
+	/**
+	 * 	拷贝 messages，并在最后一条 user 消息的内容前加上前缀。只复制被改动的那条消息。
+	 */
+	private static JsonArray withPrefix(JsonArray messages, String prefix) {
+		JsonArray out = new JsonArray(messages.size());
+		int target = -1;
+		for (int i = messages.size() - 1; i >= 0; i--) {
+			JsonElement el = messages.get(i);
+			if (el.isJsonObject() && "user".equals(JsonUtil.getJsonString(el.getAsJsonObject(), "role", null))) {
+				target = i;
+				break;
+			}
+		}
+		for (int i = 0; i < messages.size(); i++) {
+			JsonElement el = messages.get(i);
+			if (i == target) {
+				JsonObject msg = el.getAsJsonObject().deepCopy();
+				JsonElement content = msg.get("content");
+				if (content != null && content.isJsonPrimitive()) {
+					msg.addProperty("content", prefix + content.getAsString());
+				}
+				out.add(msg);
+			} else {
+				out.add(el);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * 	从最后一个数据块里取 token 数：llama.cpp 的 timings，或者 OpenAI 的 usage。
+	 * @param obj
+	 * @return [prompt, completion]，没有的为 -1
+	 */
+	private static long[] readTokenCounts(JsonObject obj) {
+		long[] out = { -1L, -1L };
+		if (obj == null) {
+			return out;
+		}
+		if (obj.has("timings") && obj.get("timings").isJsonObject()) {
+			JsonObject t = obj.getAsJsonObject("timings");
+			out[0] = readLong(t, "prompt_n");
+			out[1] = readLong(t, "predicted_n");
+		}
+		if (obj.has("usage") && obj.get("usage").isJsonObject()) {
+			JsonObject u = obj.getAsJsonObject("usage");
+			if (out[0] < 0) out[0] = readLong(u, "prompt_tokens");
+			if (out[1] < 0) out[1] = readLong(u, "completion_tokens");
+		}
+		return out;
+	}
+
+	private static long readLong(JsonObject obj, String key) {
+		try {
+			JsonElement el = obj.get(key);
+			return el == null || el.isJsonNull() ? -1L : el.getAsLong();
+		} catch (Exception e) {
+			return -1L;
+		}
+	}
+
+	/**
+	 * 	p50/p90/p99/平均/最大，单位毫秒。
+	 * @param nanos 会被排序
+	 * @return
+	 */
+	static Map<String, Object> percentiles(long[] nanos) {
+		Map<String, Object> out = new LinkedHashMap<>();
+		out.put("count", nanos.length);
+		if (nanos.length == 0) {
+			out.put("p50", null);
+			out.put("p90", null);
+			out.put("p99", null);
+			out.put("mean", null);
+			out.put("max", null);
+			return out;
+		}
+		Arrays.sort(nanos);
+		double sum = 0;
+		for (long v : nanos) {
+			sum += v;
+		}
+		out.put("p50", toMs(nearestRank(nanos, 50)));
+		out.put("p90", toMs(nearestRank(nanos, 90)));
+		out.put("p99", toMs(nearestRank(nanos, 99)));
+		out.put("mean", round(sum / nanos.length / 1e6, 2));
+		out.put("max", toMs(nanos[nanos.length - 1]));
+		return out;
+	}
+
+	private static long nearestRank(long[] sorted, int p) {
+		int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+	}
+
+	private static double toMs(long nanos) {
+		return round(nanos / 1e6, 2);
+	}
+
+	private static double round(double v, int scale) {
+		double f = Math.pow(10, scale);
+		return Math.round(v * f) / f;
+	}
+
+	private static String readError(HttpURLConnection connection) {
+		try (InputStream in = connection.getErrorStream()) {
+			return in == null ? "" : new String(in.readNBytes(4096), StandardCharsets.UTF_8);
+		} catch (Exception e) {
+			return "";
+		}
+	}
+
+	private static String abbreviate(String s) {
+		if (s == null) {
+			return "";
+		}
+		return s.length() > 300 ? s.substring(0, 300) + "..." : s;
+	}
+
+	/**
+	 * 	压测参数，写入记录时使用。
+	 * @return
+	 */
+	public Map<String, Object> describeOptions() {
+		LoadOptions opt = this.options;
+		Map<String, Object> out = new LinkedHashMap<>();
+		out.put("concurrency", opt.concurrency);
+		out.put("rampUpSeconds", opt.rampUpSeconds);
+		out.put("durationSeconds", opt.durationSeconds);
+		out.put("maxRequests", opt.maxRequests);
+		Map<String, Object> prompt = new HashMap<>();
+		prompt.put("min", opt.promptTokensMin);
+		prompt.put("max", opt.promptTokensMax);
+		out.put("promptTokens", prompt);
+		Map<String, Object> max = new HashMap<>();
+		max.put("min", opt.maxTokensMin);
+		max.put("max", opt.maxTokensMax);
+		out.put("maxTokens", max);
+		out.put("uniquePrompts", opt.uniquePrompts);
+		return out;
+	}
+
+	/**
+	 * 	一个客户端的统计，只被它自己的线程写，结束后再合并。
+	 */
+	private static final class ClientStats {
+		final LongList ttft = new LongList();
+		final LongList e2e = new LongList();
+		final LongList itl = new LongList();
+		final List<String> errors = new ArrayList<>();
+		int succeeded;
+		int failed;
+		int cancelled;
+		long completionTokens;
+		long promptTokens;
+
+		void succeed(long ttftNanos, long e2eNanos, long[] itlNanos, int itlCount, long completion, long prompt) {
+			this.succeeded++;
+			this.ttft.add(ttftNanos);
+			this.e2e.add(e2eNanos);
+			this.itl.addAll(itlNanos, itlCount);
+			this.completionTokens += completion;
+			this.promptTokens += prompt;
+		}
+
+		void fail(String message) {
+			this.failed++;
+			if (this.errors.size() < MAX_ERROR_SAMPLES) {
+				this.errors.add(message);
+			}
+		}
+	}
+
+	private static final class LongList {
+		long[] values = new long[64];
+		int size;
+
+		void add(long v) {
+			if (this.size == this.values.length) {
+				this.values = Arrays.copyOf(this.values, this.size * 2);
+			}
+			this.values[this.size++] = v;
+		}
+
+		void addAll(long[] src, int n) {
+			if (this.size + n > this.values.length) {
+				this.values = Arrays.copyOf(this.values, Math.max(this.values.length * 2, this.size + n));
+			}
+			System.arraycopy(src, 0, this.values, this.size, n);
+			this.size += n;
+		}
+	}
+}
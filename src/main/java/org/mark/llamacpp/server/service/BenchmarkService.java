@@ -23,6 +23,7 @@ import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.mark.llamacpp.server.LlamaCppProcess;
+import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.slf4j.Logger;
@@ -68,6 +69,15 @@ public class BenchmarkService {
 	 */
 	private ConcurrentHashMap<ChannelHandlerContext, HttpURLConnection> connections = new ConcurrentHashMap<>();
 	
+	/**
+	 * 	正在进行的并发压测，连接断开时中止。
+	 */
+	private ConcurrentHashMap<ChannelHandlerContext, BenchmarkLoadRunner> loadRunners = new ConcurrentHashMap<>();
+	
+	private static final int MAX_LOAD_CONCURRENCY = 256;
+	
+	private static final int MAX_LOAD_DURATION_SECONDS = 3600;
+	
 	
 	public BenchmarkService() {
 		
@@ -112,21 +122,7 @@ public class BenchmarkService {
 			// 查找启动参数中，是否包含--device参数，如果有，则要单独列出来
 			List<String> deviceList = this.findDevicesInUse(process);
 			
-			BenchmarkTokenOptions options = new BenchmarkTokenOptions();
-			if (promptTokens.intValue() >= 8192) {
-				options.maxUnitsPerMessage = 4096;
-			}
-			JsonObject bench = this.generatePromptForTargetTokens(modelId, null, promptTokens.intValue() - 1, options);
-			JsonArray messages = bench != null && bench.has("messages") && bench.get("messages").isJsonArray()
-					? bench.getAsJsonArray("messages").deepCopy()
-					: new JsonArray();
-			if (messages.size() <= 0) {
-				String contentText = bench != null && bench.has("content") && !bench.get("content").isJsonNull()
-						? bench.get("content").getAsString()
-						: "";
-				JsonObject userMsg = this.ensureUserMessage(messages);
-				userMsg.addProperty("content", contentText);
-			}
+			JsonArray messages = this.buildBenchmarkMessages(modelId, promptTokens.intValue());
 			
 			JsonObject forward = new JsonObject();
 			forward.addProperty("model", modelId);
@@ -206,16 +202,197 @@ public class BenchmarkService {
 		}
 	}
 
+	/**
+	 * 	处理并发压测的请求：多个客户端同时通过本服务的 /v1/chat/completions 发送流式请求。
+	 * @param ctx
+	 * @param json
+	 * @return
+	 */
+	public Map<String, Object> handleLoadBenchmark(ChannelHandlerContext ctx, JsonObject json) {
+		BenchmarkLoadRunner runner = null;
+		try {
+			if (json == null) {
+				throw new IllegalArgumentException("请求体解析失败");
+			}
+			String modelId = JsonUtil.getJsonString(json, "modelId", null);
+			if (modelId != null) modelId = modelId.trim();
+			if (modelId == null || modelId.isEmpty()) {
+				throw new IllegalArgumentException("缺少必需的modelId参数");
+			}
+			BenchmarkLoadRunner.LoadOptions options = this.parseLoadOptions(json);
+
+			LlamaServerManager manager = LlamaServerManager.getInstance();
+			if (!manager.getLoadedProcesses().containsKey(modelId)) {
+				throw new IllegalStateException("模型未加载: " + modelId);
+			}
+			Integer port = manager.getModelPort(modelId);
+			if (port == null) {
+				throw new IllegalStateException("未找到模型端口: " + modelId);
+			}
+			LlamaCppProcess process = manager.getLoadedProcesses().get(modelId);
+			final String llamaBinPath = process == null ? null : process.getLlamaBinPath();
+			List<String> deviceList = this.findDevicesInUse(process);
+
+			// 默认走本服务的转发路径，和真实客户端一样经过路由、排队和转发；direct=true 时直接请求llamacpp
+			boolean direct = json.has("direct") && json.get("direct").isJsonPrimitive() && json.get("direct").getAsBoolean();
+			String targetUrl;
+			String apiKey = null;
+			if (direct) {
+				targetUrl = String.format("http://localhost:%d/v1/chat/completions", port.intValue());
+			} else {
+				targetUrl = String.format("%s://localhost:%d/v1/chat/completions",
+						LlamaServer.isHttpsEnabled() ? "https" : "http", LlamaServer.getWebPort());
+				if (LlamaServer.isApiKeyValidationEnabled()) {
+					apiKey = LlamaServer.getApiKey();
+				}
+			}
+
+			final String id = modelId;
+			runner = new BenchmarkLoadRunner(targetUrl, apiKey, modelId, options, n -> this.buildBenchmarkMessages(id, n));
+			if (ctx != null) {
+				this.loadRunners.put(ctx, runner);
+			}
+			logger.info("开始并发压测: model={}, concurrency={}, duration={}s, url={}", modelId, options.concurrency,
+					options.durationSeconds, targetUrl);
+			Map<String, Object> results = runner.run();
+			if (runner.isCancelled()) {
+				throw new IllegalStateException("压测已取消");
+			}
+
+			Map<String, Object> load = runner.describeOptions();
+			load.put("path", direct ? "direct" : "proxy");
+			String cpu = ComputerService.getCPUModel();
+			Long ram = this.toGbFromKb(ComputerService.getPhysicalMemoryKB());
+			String cmd = process == null ? null : process.getCmd();
+
+			Map<String, Object> data = new HashMap<>();
+			data.put("mode", "load");
+			data.put("modelId", modelId);
+			data.put("load", load);
+			data.put("results", results);
+			data.put("devices", deviceList);
+			data.put("cpu", cpu);
+			data.put("ram", ram);
+			data.put("cmd", cmd);
+			data.put("llamaBinPath", llamaBinPath);
+
+			try {
+				JsonObject record = this.newBenchmarkV2Record(modelId, options.promptTokensMax, options.maxTokensMax,
+						llamaBinPath, deviceList, cpu, ram, cmd);
+				record.addProperty("mode", "load");
+				record.add("load", JsonUtil.fromJson(JsonUtil.toJson(load), JsonObject.class));
+				record.add("results", JsonUtil.fromJson(JsonUtil.toJson(results), JsonObject.class));
+				// 列表页按timings展示，这里放汇总后的吞吐
+				JsonObject timings = new JsonObject();
+				timings.addProperty("predicted_n", ((Number) results.get("completionTokens")).longValue());
+				timings.addProperty("predicted_per_second", ((Number) results.get("tokensPerSecond")).doubleValue());
+				record.add("timings", timings);
+				File outFile = this.appendBenchmarkV2Record(modelId, record);
+				data.put("savedPath", outFile.getAbsolutePath());
+			} catch (Exception ex) {
+				logger.info("保存并发压测结果到文件失败", ex);
+			}
+			return data;
+		} catch (IllegalArgumentException | IllegalStateException e) {
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("压测被中断");
+		} catch (Exception e) {
+			logger.info("执行并发压测时发生错误", e);
+			throw new RuntimeException("执行模型基准测试失败: " + e.getMessage(), e);
+		} finally {
+			if (ctx != null && runner != null) {
+				this.loadRunners.remove(ctx, runner);
+			}
+		}
+	}
+
+	/**
+	 * 	解析压测参数。promptTokens/maxTokens 可以是固定值，也可以用 xxxMin/xxxMax 给出范围。
+	 * @param json
+	 * @return
+	 */
+	private BenchmarkLoadRunner.LoadOptions parseLoadOptions(JsonObject json) {
+		BenchmarkLoadRunner.LoadOptions options = new BenchmarkLoadRunner.LoadOptions();
+		options.concurrency = JsonUtil.getJsonInt(json, "concurrency", options.concurrency);
+		options.rampUpSeconds = JsonUtil.getJsonInt(json, "rampUpSeconds", options.rampUpSeconds);
+		options.durationSeconds = JsonUtil.getJsonInt(json, "durationSeconds", options.durationSeconds);
+		options.maxRequests = JsonUtil.getJsonInt(json, "maxRequests", options.maxRequests);
+		options.promptVariants = JsonUtil.getJsonInt(json, "promptVariants", options.promptVariants);
+		options.requestTimeoutSeconds = JsonUtil.getJsonInt(json, "requestTimeoutSeconds", options.requestTimeoutSeconds);
+		if (json.has("uniquePrompts") && json.get("uniquePrompts").isJsonPrimitive()) {
+			options.uniquePrompts = json.get("uniquePrompts").getAsBoolean();
+		}
+		Integer promptTokens = JsonUtil.getJsonInt(json, "promptTokens", null);
+		options.promptTokensMin = JsonUtil.getJsonInt(json, "promptTokensMin", promptTokens == null ? options.promptTokensMin : promptTokens);
+		options.promptTokensMax = JsonUtil.getJsonInt(json, "promptTokensMax", promptTokens == null ? options.promptTokensMin : promptTokens);
+		Integer maxTokens = JsonUtil.getJsonInt(json, "maxTokens", null);
+		options.maxTokensMin = JsonUtil.getJsonInt(json, "maxTokensMin", maxTokens == null ? options.maxTokensMin : maxTokens);
+		options.maxTokensMax = JsonUtil.getJsonInt(json, "maxTokensMax", maxTokens == null ? options.maxTokensMin : maxTokens);
+
+		if (options.concurrency <= 0 || options.concurrency > MAX_LOAD_CONCURRENCY) {
+			throw new IllegalArgumentException("concurrency必须在1到" + MAX_LOAD_CONCURRENCY + "之间");
+		}
+		if (options.durationSeconds <= 0 || options.durationSeconds > MAX_LOAD_DURATION_SECONDS) {
+			throw new IllegalArgumentException("durationSeconds必须在1到" + MAX_LOAD_DURATION_SECONDS + "之间");
+		}
+		if (options.rampUpSeconds < 0 || options.rampUpSeconds >= options.durationSeconds) {
+			throw new IllegalArgumentException("rampUpSeconds必须小于durationSeconds");
+		}
+		if (options.promptTokensMin <= 1 || options.promptTokensMax < options.promptTokensMin) {
+			throw new IllegalArgumentException("promptTokens范围无效");
+		}
+		if (options.maxTokensMin <= 0 || options.maxTokensMax < options.maxTokensMin) {
+			throw new IllegalArgumentException("maxTokens范围无效");
+		}
+		if (options.promptVariants <= 0) {
+			options.promptVariants = 1;
+		}
+		if (options.requestTimeoutSeconds <= 0) {
+			options.requestTimeoutSeconds = 600;
+		}
+		return options;
+	}
+
+	/**
+	 * 	生成指定token数的测试消息。
+	 * @param modelId
+	 * @param promptTokens
+	 * @return
+	 */
+	private JsonArray buildBenchmarkMessages(String modelId, int promptTokens) {
+		BenchmarkTokenOptions options = new BenchmarkTokenOptions();
+		if (promptTokens >= 8192) {
+			options.maxUnitsPerMessage = 4096;
+		}
+		JsonObject bench = this.generatePromptForTargetTokens(modelId, null, promptTokens - 1, options);
+		JsonArray messages = bench != null && bench.has("messages") && bench.get("messages").isJsonArray()
+				? bench.getAsJsonArray("messages").deepCopy()
+				: new JsonArray();
+		if (messages.size() <= 0) {
+			String contentText = bench != null && bench.has("content") && !bench.get("content").isJsonNull()
+					? bench.get("content").getAsString()
+					: "";
+			JsonObject userMsg = this.ensureUserMessage(messages);
+			userMsg.addProperty("content", contentText);
+		}
+		return messages;
+	}
+
 	private File saveBenchmarkV2Record(String modelId, int promptTokens, int maxTokens, String llamaBinPath,
 			JsonObject timingsObj, List<String> deviceList, String cpu, Long ram, String cmd) throws Exception {
-		String safeModelId = (modelId == null ? "unknown" : modelId).replaceAll("[^a-zA-Z0-9-_\\.]", "_");
+		JsonObject record = this.newBenchmarkV2Record(modelId, promptTokens, maxTokens, llamaBinPath, deviceList, cpu, ram, cmd);
+		record.add("timings", timingsObj == null ? new JsonObject() : timingsObj.deepCopy());
+		return this.appendBenchmarkV2Record(modelId, record);
+	}
+
+	/**
+	 * 	V2记录的公共字段。
+	 */
+	private JsonObject newBenchmarkV2Record(String modelId, int promptTokens, int maxTokens, String llamaBinPath,
+			List<String> deviceList, String cpu, Long ram, String cmd) {
 		String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-		String fileName = safeModelId + "_V2.jsonl";
-		File dir = new File("benchmarks");
-		if (!dir.exists()) {
-			dir.mkdirs();
-		}
-		File outFile = new File(dir, fileName);
 		JsonObject record = new JsonObject();
 		record.addProperty("timestamp", timestamp);
 		record.addProperty("modelId", modelId);
@@ -236,7 +413,20 @@ public class BenchmarkService {
 			}
 		}
 		record.add("devices", devices);
-		record.add("timings", timingsObj == null ? new JsonObject() : timingsObj.deepCopy());
+		return record;
+	}
+
+	/**
+	 * 	追加一条记录到 benchmarks/{modelId}_V2.jsonl。
+	 */
+	private File appendBenchmarkV2Record(String modelId, JsonObject record) throws Exception {
+		String safeModelId = (modelId == null ? "unknown" : modelId).replaceAll("[^a-zA-Z0-9-_\\.]", "_");
+		String fileName = safeModelId + "_V2.jsonl";
+		File dir = new File("benchmarks");
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		File outFile = new File(dir, fileName);
 		try (FileOutputStream fos = new FileOutputStream(outFile, true)) {
 			String line = JsonUtil.toJson(record) + System.lineSeparator();
 			fos.write(line.getBytes(StandardCharsets.UTF_8));
@@ -673,6 +863,10 @@ public class BenchmarkService {
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
 		// 如果不为null，就关闭连接
 		if (ctx == null) return;
+		BenchmarkLoadRunner runner = this.loadRunners.remove(ctx);
+		if (runner != null) {
+			runner.cancel();
+		}
 		HttpURLConnection conn = this.connections.remove(ctx);
 		if (conn == null) return;
 		try {
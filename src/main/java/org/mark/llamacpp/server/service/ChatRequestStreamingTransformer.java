@@ -1,5 +1,6 @@
 package org.mark.llamacpp.server.service;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -8,6 +9,8 @@ import java.io.PushbackInputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.PrefixFingerprint;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.tools.ParamTool;
 import org.slf4j.Logger;
@@ -22,17 +25,27 @@ import com.google.gson.JsonPrimitive;
 
 /**
  * 	OH天哪，是无敌的流式解析。
+ * 	<p>
+ * 	按 {@link StreamingEndpoint} 区分端点：端点列出的大字段原样透传，其余顶层小字段缓冲下来做注入。
  */
 public class ChatRequestStreamingTransformer {
 
 	private static final Logger logger = LoggerFactory.getLogger(ChatRequestStreamingTransformer.class);
 
+	static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private final StreamingEndpoint endpoint;
 	private final int maxFieldBytes;
 	private final int maxBufferedBytes;
 	
 	
 	
 	public ChatRequestStreamingTransformer(int maxFieldBytes, int maxBufferedBytes) {
+		this(StreamingEndpoint.CHAT_COMPLETIONS, maxFieldBytes, maxBufferedBytes);
+	}
+	
+	public ChatRequestStreamingTransformer(StreamingEndpoint endpoint, int maxFieldBytes, int maxBufferedBytes) {
+		this.endpoint = endpoint;
 		this.maxFieldBytes = maxFieldBytes;
 		this.maxBufferedBytes = maxBufferedBytes;
 	}
@@ -40,22 +53,26 @@ public class ChatRequestStreamingTransformer {
 	
 	/**
 	 * 	变形金刚。错误的，其实是解析输入流。
+	 * 	输出的 JSON 对象不带结尾的 '}'，路由确定以后由 {@link #finish} 补上，中间可以追加 id_slot。
 	 * @param input
 	 * @param output
 	 * @param callback
 	 * @return
 	 * @throws IOException
 	 */
-	public TransformResult transform(InputStream input, OutputStream output, ModelResolvedCallback callback) throws IOException {
+	public TransformResult transform(InputStream input, OutputStream target, ModelResolvedCallback callback) throws IOException {
+		// 大字段逐字节拷贝，先攒一下再写到 target
+		OutputStream output = new BufferedOutputStream(target, COPY_BUFFER_SIZE);
 		JsonObject bufferedFields = new JsonObject();
 		int totalBufferedBytes = 0;
 		String modelName = null;
 		String nodeId = null;
 		boolean isStream = false;
 		boolean modelResolved = false;
+		PrefixFingerprint.Builder fingerprint = new PrefixFingerprint.Builder();
 
 		// 这里只解析顶层结构：
-		// 1. messages 直接按字节流透传，避免超大 base64 进入 Java String
+		// 1. messages / prompt / input 等大字段直接按字节流透传，避免超大 base64 或批量文本进入 Java String
 		// 2. 其它顶层小字段缓冲到 bufferedFields，后续在这里做 thinking / sampling 覆盖
 		PushbackInputStream stream = new PushbackInputStream(input, 1);
 		int firstToken = this.nextNonWhitespace(stream);
@@ -94,13 +111,23 @@ public class ChatRequestStreamingTransformer {
 				throw new StreamingRequestException(400, "Request body is not a valid JSON object", null);
 			}
 
-			// messages 是大字段热点，保持原样流式拷贝，不走 JsonObject 解析。
-			if ("messages".equals(fieldName)) {
+			// 大字段热点，保持原样流式拷贝，不走 JsonObject 解析。
+			if (this.endpoint.isPassthrough(fieldName)) {
+				if (callback != null) {
+					output.flush();
+					callback.beforePassthrough(fieldName, modelName, nodeId);
+				}
 				if (!firstOutputField) {
 					output.write(',');
 				}
-				output.write(MESSAGES_FIELD_PREFIX);
-				this.copyValue(stream, valueStart, output);
+				output.write(JsonUtil.toJson(fieldName).getBytes(StandardCharsets.UTF_8));
+				output.write(':');
+				if ("messages".equals(fieldName) && this.endpoint.isSlotAffinity()) {
+					// 顺便算前缀指纹，给槽位亲和用
+					this.copyValue(stream, valueStart, new TeeOutputStream(output, fingerprint));
+				} else {
+					this.copyValue(stream, valueStart, output);
+				}
 				output.flush();
 				firstOutputField = false;
 				continue;
@@ -142,10 +169,21 @@ public class ChatRequestStreamingTransformer {
 				nodeId = element.getAsString();
 			}
 		}
-		// 注入请求体中的思维链开关
-		this.applyThinkingInjection(bufferedFields);
+		boolean chat = this.endpoint == StreamingEndpoint.CHAT_COMPLETIONS;
+		if (chat) {
+			// 注入请求体中的思维链开关
+			this.applyThinkingInjection(bufferedFields);
+		}
 
 		modelName = this.readModelName(bufferedFields.get("model"));
+		if (modelName == null && !this.endpoint.isModelRequired()) {
+			// 没有 model 字段时取用第一个已加载的模型
+			modelName = LlamaServerManager.getInstance().getFirstModelName();
+			if (modelName == null) {
+				throw new StreamingRequestException(404, "No models are currently loaded", null);
+			}
+			bufferedFields.addProperty("model", modelName);
+		}
 		if (modelName == null) {
 			throw new StreamingRequestException(400, "Missing required parameter: model", "model");
 		}
@@ -153,10 +191,14 @@ public class ChatRequestStreamingTransformer {
 			throw new StreamingRequestException(400, "Invalid parameter: model", "model");
 		}
 
-		// 这里做chat-template-kwargs注入
-		this.applyChatTemplateKwargsInjection(bufferedFields, modelName);
-		// 这里做采样覆盖操作。
-		this.applySamplingInjection(bufferedFields, modelName);
+		if (chat) {
+			// 这里做chat-template-kwargs注入
+			this.applyChatTemplateKwargsInjection(bufferedFields, modelName);
+		}
+		if (chat || this.endpoint == StreamingEndpoint.COMPLETIONS) {
+			// 这里做采样覆盖操作。
+			this.applySamplingInjection(bufferedFields, modelName);
+		}
 		
 		Boolean streamValue = this.readBooleanLenient(bufferedFields.get("stream"));
 		if (streamValue != null) {
@@ -171,12 +213,26 @@ public class ChatRequestStreamingTransformer {
 			this.writeBufferedField(output, entry.getKey(), entry.getValue());
 			firstOutputField = false;
 		}
-		output.write('}');
 		output.flush();
-		return new TransformResult(modelName, isStream, nodeId);
+		// 客户端自己指定了 id_slot 时不做亲和
+		fingerprint.setTools(bufferedFields.get("tools"));
+		long[] prefix = !this.endpoint.isSlotAffinity() || bufferedFields.has("id_slot") ? new long[0] : fingerprint.build();
+		return new TransformResult(modelName, isStream, nodeId, prefix);
 	}
 	
-	private static final byte[] MESSAGES_FIELD_PREFIX = "\"messages\":".getBytes(StandardCharsets.UTF_8);
+	/**
+	 * 	补上请求体结尾。{@link #transform} 至少写出了 model 字段，这里直接用逗号追加。
+	 * @param output
+	 * @param idSlot 大于等于0时写入 id_slot
+	 * @throws IOException
+	 */
+	public void finish(OutputStream output, int idSlot) throws IOException {
+		if (idSlot >= 0) {
+			output.write((",\"id_slot\":" + idSlot).getBytes(StandardCharsets.UTF_8));
+		}
+		output.write('}');
+		output.flush();
+	}
 	
 	/**
 	 * 	
@@ -186,8 +242,21 @@ public class ChatRequestStreamingTransformer {
 	 * @return
 	 * @throws IOException
 	 */
-	private byte[] readCurrentValue(PushbackInputStream input, int firstByte, String fieldName) throws IOException {
-		LimitedByteArrayOutputStream out = new LimitedByteArrayOutputStream(maxFieldBytes, fieldName);
+	byte[] readCurrentValue(PushbackInputStream input, int firstByte, String fieldName) throws IOException {
+		return this.readCurrentValue(input, firstByte, fieldName, this.maxFieldBytes);
+	}
+	
+	/**
+	 * 	读出当前值的原始字节，超过 limit 时返回 400。
+	 * @param input
+	 * @param firstByte
+	 * @param fieldName
+	 * @param limit
+	 * @return
+	 * @throws IOException
+	 */
+	byte[] readCurrentValue(PushbackInputStream input, int firstByte, String fieldName, int limit) throws IOException {
+		LimitedByteArrayOutputStream out = new LimitedByteArrayOutputStream(limit, fieldName);
 		try {
 			this.copyValue(input, firstByte, out);
 		} catch (IllegalStateException e) {
@@ -203,7 +272,7 @@ public class ChatRequestStreamingTransformer {
 	 * @param output
 	 * @throws IOException
 	 */
-	private void copyValue(PushbackInputStream input, int firstByte, OutputStream output) throws IOException {
+	void copyValue(PushbackInputStream input, int firstByte, OutputStream output) throws IOException {
 		if (firstByte == '"') {
 			this.copyString(input, output);
 			return;
@@ -321,7 +390,7 @@ public class ChatRequestStreamingTransformer {
 		return value == ',' || value == '}' || value == ']' || value == ' ' || value == '\t' || value == '\r' || value == '\n';
 	}
 	
-	private int nextNonWhitespace(PushbackInputStream input) throws IOException {
+	int nextNonWhitespace(PushbackInputStream input) throws IOException {
 		while (true) {
 			int b = input.read();
 			if (b < 0) {
@@ -333,7 +402,7 @@ public class ChatRequestStreamingTransformer {
 		}
 	}
 	
-	private String readJsonString(PushbackInputStream input) throws IOException {
+	String readJsonString(PushbackInputStream input) throws IOException {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		out.write('"');
 		boolean escaped = false;
@@ -362,7 +431,7 @@ public class ChatRequestStreamingTransformer {
 		}
 	}
 	
-	private void writeBufferedField(OutputStream output, String fieldName, JsonElement value) throws IOException {
+	void writeBufferedField(OutputStream output, String fieldName, JsonElement value) throws IOException {
 		output.write(JsonUtil.toJson(fieldName).getBytes(StandardCharsets.UTF_8));
 		output.write(':');
 		output.write(JsonUtil.toJson(value).getBytes(StandardCharsets.UTF_8));
@@ -397,7 +466,7 @@ public class ChatRequestStreamingTransformer {
 	 * @param modelElement
 	 * @return
 	 */
-	private String readModelName(JsonElement modelElement) {
+	String readModelName(JsonElement modelElement) {
 		if (modelElement == null || modelElement.isJsonNull() || !modelElement.isJsonPrimitive()) {
 			return null;
 		}
@@ -413,7 +482,7 @@ public class ChatRequestStreamingTransformer {
 	 * @param element
 	 * @return
 	 */
-	private Boolean readBooleanLenient(JsonElement element) {
+	Boolean readBooleanLenient(JsonElement element) {
 		if (element == null || element.isJsonNull() || !element.isJsonPrimitive()) {
 			return null;
 		}
@@ -444,6 +513,18 @@ public class ChatRequestStreamingTransformer {
 	 */
 	public interface ModelResolvedCallback {
 		void onModelResolved(String modelName) throws IOException;
+		
+		/**
+		 * 	开始透传大字段之前调用，此时已经解析到的 model、nodeId 可能为 null。
+		 * 	不需要槽位亲和的端点可以在这里提前建立上游连接，让大字段边收边发。
+		 * @param fieldName
+		 * @param modelName
+		 * @param nodeId
+		 * @throws IOException
+		 */
+		default void beforePassthrough(String fieldName, String modelName, String nodeId) throws IOException {
+			
+		}
 	}
 	
 	/**
@@ -454,15 +535,21 @@ public class ChatRequestStreamingTransformer {
 		private final String modelName;
 		private final boolean stream;
 		private final String nodeId;
+		private final long[] prefix;
 
 		public TransformResult(String modelName, boolean stream) {
 			this(modelName, stream, null);
 		}
 
 		public TransformResult(String modelName, boolean stream, String nodeId) {
+			this(modelName, stream, nodeId, new long[0]);
+		}
+
+		public TransformResult(String modelName, boolean stream, String nodeId, long[] prefix) {
 			this.modelName = modelName;
 			this.stream = stream;
 			this.nodeId = nodeId;
+			this.prefix = prefix;
 		}
 
 		public String getModelName() {
@@ -476,6 +563,14 @@ public class ChatRequestStreamingTransformer {
 		public String getNodeId() {
 			return this.nodeId;
 		}
+
+		/**
+		 * 	messages 的前缀指纹，见 {@link PrefixFingerprint}。
+		 * @return
+		 */
+		public long[] getPrefix() {
+			return this.prefix;
+		}
 	}
 	
 	
@@ -504,6 +599,37 @@ public class ChatRequestStreamingTransformer {
 		}
 	}
 	
+	/**
+	 * 	同时写到两个输出流。
+	 */
+	static class TeeOutputStream extends OutputStream {
+
+		private final OutputStream first;
+		private final OutputStream second;
+
+		TeeOutputStream(OutputStream first, OutputStream second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.first.write(b);
+			this.second.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.first.write(b, off, len);
+			this.second.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.first.flush();
+		}
+	}
+	
 	/**
 	 * 	
 	 */
@@ -6,7 +6,6 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -14,24 +13,32 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.mark.llamacpp.server.LlamaHubNode;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ModelAdmissionQueue;
+import org.mark.llamacpp.server.ModelAutoLoader;
+import org.mark.llamacpp.server.ModelRoutingTable;
 import org.mark.llamacpp.server.NodeManager;
-import org.mark.llamacpp.server.struct.ActiveRequest;
+import org.mark.llamacpp.server.SlotAffinityTable;
+import org.mark.llamacpp.server.exception.AdmissionRejectedException;
 import org.mark.llamacpp.server.io.BoundedQueueInputStream;
-import org.mark.llamacpp.server.tools.JsonUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
 
 
 
 /**
  * 	这东西挺重要的，用于把聊天补全的JSON流式处理给llamacpp进程。
+ * 	<p>
+ * 	除了聊天补全，{@link StreamingEndpoint} 里的其它端点也走这里。不需要槽位亲和的端点（completions、embeddings 等）
+ * 	在开始透传大字段之前如果已经拿到 model，就提前连上 llama.cpp，大字段边收边发；否则和聊天补全一样先缓冲，路由确定后再发。
+ * 	这种情况下 nodeId 要写在大字段之前才参与路由。
  */
 public class ChatStreamSession {
 
@@ -43,12 +50,20 @@ public class ChatStreamSession {
 	private static final ExecutorService worker = Executors.newVirtualThreadPerTaskExecutor();
 
 	private static final int INPUT_QUEUE_CAPACITY = 32;
+	/**
+	 * 	剩余空间不超过这么多块时暂停读取，一次读取最多拆出 64KB / 8KB 块
+	 */
+	private static final int INPUT_QUEUE_RESERVE = 16;
 	private static final int MAX_SMALL_FIELD_BYTES = 1024 * 1024;
 	private static final int MAX_BUFFERED_FIELD_BYTES = 4 * 1024 * 1024;
+	private static final int MAX_ANTHROPIC_MESSAGE_BYTES = 16 * 1024 * 1024;
 	private static final int DEFERRED_MEMORY_LIMIT = 1024 * 1024;
 
 	private final ChannelHandlerContext ctx;
 	private final OpenAIService openAIService;
+	private final AnthropicService anthropicService;
+	private final StreamingEndpoint endpoint;
+	private final String uri;
 	private final HttpMethod method;
 	private final Map<String, String> headers;
 	private final BoundedQueueInputStream requestBodyStream = new BoundedQueueInputStream(INPUT_QUEUE_CAPACITY);
@@ -57,8 +72,7 @@ public class ChatStreamSession {
 	/**
 	 * 	流式解析请求体
 	 */
-	private final ChatRequestStreamingTransformer transformer =
-			new ChatRequestStreamingTransformer(MAX_SMALL_FIELD_BYTES, MAX_BUFFERED_FIELD_BYTES);
+	private final ChatRequestStreamingTransformer transformer;
 	
 	
 	private final DeferredConnectionOutputStream deferredOutput = new DeferredConnectionOutputStream(DEFERRED_MEMORY_LIMIT);
@@ -70,21 +84,60 @@ public class ChatStreamSession {
 	private volatile String requestId;
 	private volatile boolean receivedBody;
 	private volatile String routingNodeId;
+	/**
+	 * 	远程节点的密钥，Anthropic 请求转发时带上
+	 */
+	private volatile String routingApiKey;
+	/**
+	 * 	本机模型的准入许可，响应写完后归还
+	 */
+	private volatile ModelAdmissionQueue.Permit permit;
+	/**
+	 * 	本机模型按前缀选定的槽位，响应写完后归还
+	 */
+	private volatile SlotAffinityTable.Lease lease;
+	/**
+	 * 	正在准入队列里等待的线程，客户端断开时中断它
+	 */
+	private volatile Thread queuedThread;
 	
 	
 	
 	/**
-	 * 	初始化一个流式会话。
+	 * 	初始化一个聊天补全的流式会话。
 	 * @param ctx
 	 * @param openAIService
 	 * @param method
 	 * @param headers
 	 */
 	public ChatStreamSession(ChannelHandlerContext ctx, OpenAIService openAIService, HttpMethod method, Map<String, String> headers) {
+		this(ctx, openAIService, null, StreamingEndpoint.CHAT_COMPLETIONS, null, method, headers);
+	}
+	
+	/**
+	 * 	初始化一个流式会话。
+	 * @param ctx
+	 * @param openAIService
+	 * @param anthropicService Anthropic 端点用来转换请求和响应，其它端点可以为 null
+	 * @param endpoint
+	 * @param uri 请求路径，决定转发到 llama.cpp 的路径
+	 * @param method
+	 * @param headers
+	 */
+	public ChatStreamSession(ChannelHandlerContext ctx, OpenAIService openAIService, AnthropicService anthropicService,
+			StreamingEndpoint endpoint, String uri, HttpMethod method, Map<String, String> headers) {
 		this.ctx = ctx;
 		this.openAIService = openAIService;
+		this.anthropicService = anthropicService;
+		this.endpoint = endpoint;
+		this.uri = uri;
 		this.method = method;
 		this.headers = headers;
+		if (endpoint == StreamingEndpoint.ANTHROPIC_MESSAGES) {
+			this.transformer = new AnthropicRequestStreamingTransformer(anthropicService, MAX_SMALL_FIELD_BYTES, MAX_BUFFERED_FIELD_BYTES, MAX_ANTHROPIC_MESSAGE_BYTES);
+		} else {
+			this.transformer = new ChatRequestStreamingTransformer(endpoint, MAX_SMALL_FIELD_BYTES, MAX_BUFFERED_FIELD_BYTES);
+		}
 	}
 	
 	
@@ -113,6 +166,22 @@ public class ChatStreamSession {
 		this.requestBodyStream.offer(bytes);
 	}
 	
+	/**
+	 * 	输入队列快满了，调用方应暂停读取，并用 {@link #onDrained} 恢复。
+	 * @return
+	 */
+	public boolean isSaturated() {
+		return this.requestBodyStream.isNearlyFull(INPUT_QUEUE_RESERVE);
+	}
+	
+	/**
+	 * 	输入队列消费到一半以下（或者会话已经不再读取）时调用一次。
+	 * @param listener
+	 */
+	public void onDrained(Runnable listener) {
+		this.requestBodyStream.onDrained(listener);
+	}
+	
 	/**
 	 * 	完成了，需要显式地调用这个表明任务正常结束了。
 	 */
@@ -128,6 +197,11 @@ public class ChatStreamSession {
 	public void cancel() {
 		if (this.cancelled.compareAndSet(false, true)) {
 			ModelRequestTracker.getInstance().removeRequest(this.requestId);
+			Thread queued = this.queuedThread;
+			if (queued != null) {
+				queued.interrupt();
+			}
+			this.requestBodyStream.discard();
 			this.requestBodyStream.fail(new IOException("client disconnected"));
 			if (this.connection != null) {
 				this.connection.disconnect();
@@ -145,64 +219,141 @@ public class ChatStreamSession {
 	private void run() {
 		try {
 			if (this.method != HttpMethod.POST) {
-				this.openAIService.sendOpenAIErrorResponseWithCleanup(ctx, 405, null, "Only POST method is supported", "method");
+				this.sendError(405, "Only POST method is supported", "method");
 				return;
 			}
 			// 这里等待解析出model的名称，一旦拿到了名称，就去建立和llamacpp的连接。
-			ChatRequestStreamingTransformer.TransformResult result = this.transformer.transform(
-					this.requestBodyStream,
-					this.deferredOutput,
-					modelName -> logger.info("聊天流式请求已解析到模型字段，等待完整解析后路由: {}", modelName));
+			ChatRequestStreamingTransformer.TransformResult result;
+			try {
+				result = this.transformer.transform(
+						this.requestBodyStream,
+						this.deferredOutput,
+						new ChatRequestStreamingTransformer.ModelResolvedCallback() {
+							@Override
+							public void onModelResolved(String modelName) {
+								logger.info("流式请求已解析到模型字段，等待完整解析后路由: {}", modelName);
+							}
+							
+							@Override
+							public void beforePassthrough(String fieldName, String modelName, String nodeId) throws IOException {
+								ChatStreamSession.this.connectEarly(modelName, nodeId);
+							}
+						});
+			} catch (EarlyConnectException e) {
+				if (e.getCause() instanceof AdmissionRejectedException rejected) {
+					throw rejected;
+				}
+				throw (InterruptedException) e.getCause();
+			}
 
 			if (!this.receivedBody) {
-				this.openAIService.sendOpenAIErrorResponseWithCleanup(this.ctx, 400, null, "Request body is empty", "messages");
+				this.sendError(400, "Request body is empty", this.endpoint.getBodyParam());
 				return;
 			}
 
-			this.openConnectionForModel(result.getModelName(), result.getNodeId());
-			this.deferredOutput.close();
+			if (this.connection == null) {
+				this.openConnectionForModel(result.getModelName(), result.getNodeId(), result.getPrefix());
+			}
 			if (this.connection == null) {
 				throw new IOException("llama.cpp connection was not created");
 			}
+			SlotAffinityTable.Lease l = this.lease;
+			this.transformer.finish(this.deferredOutput, l == null ? -1 : l.getSlot());
+			this.deferredOutput.close();
 
-			this.requestId = ModelRequestTracker.getInstance().createRequest(result.getModelName(), "/v1/chat/completions");
+			String trackedEndpoint = this.endpoint == StreamingEndpoint.ANTHROPIC_MESSAGES ? "/v1/messages" : this.endpoint.getUpstreamPath(this.uri);
+			this.requestId = ModelRequestTracker.getInstance().createRequest(this.ctx, result.getModelName(), trackedEndpoint, this.routingNodeId);
 			int responseCode = this.connection.getResponseCode();
-			ModelRequestTracker.getInstance().updatePhase(this.requestId, ActiveRequest.Phase.GENERATION);
-			this.openAIService.handleProxyResponse(this.ctx, this.connection, responseCode, result.isStream(), result.getModelName(), this.requestId, this.routingNodeId);
+			ModelRequestTracker.getInstance().onUpstreamResponse(this.requestId, responseCode);
+			if (this.endpoint == StreamingEndpoint.ANTHROPIC_MESSAGES) {
+				this.anthropicService.handleChatCompletionsResponse(this.ctx, this.connection, responseCode, result.isStream(), result.getModelName(), this.requestId);
+			} else {
+				this.openAIService.handleProxyResponse(this.ctx, this.connection, responseCode, result.isStream(), result.getModelName(), this.requestId, this.routingNodeId);
+			}
 		} catch (ChatRequestStreamingTransformer.StreamingRequestException e) {
 			if (!this.cancelled.get()) {
-				this.openAIService.sendOpenAIErrorResponseWithCleanup(this.ctx, e.getHttpStatus(), null, e.getMessage(), e.getParam());
+				this.sendError(e.getHttpStatus(), e.getMessage(), e.getParam());
+			}
+		} catch (AdmissionRejectedException e) {
+			logger.info("模型请求队列拒绝: {}", e.getMessage());
+			if (this.endpoint == StreamingEndpoint.ANTHROPIC_MESSAGES) {
+				this.anthropicService.sendRateLimitError(this.ctx, e);
+			} else {
+				this.openAIService.sendOpenAIRateLimitResponse(this.ctx, e);
 			}
 		} catch (IOException e) {
 			if (this.cancelled.get()) {
-				logger.info("聊天流式会话已取消: {}", e.getMessage());
+				logger.info("流式会话已取消: {}", e.getMessage());
 				return;
 			}
 			if (!this.receivedBody) {
-				this.openAIService.sendOpenAIErrorResponseWithCleanup(this.ctx, 400, null, "Request body is empty", "messages");
+				this.sendError(400, "Request body is empty", this.endpoint.getBodyParam());
 				return;
 			}
-			logger.info("处理聊天流式请求时发生错误 [{}]", this.resolveNodeName(this.routingNodeId), e);
-			this.openAIService.sendOpenAIErrorResponseWithCleanup(this.ctx, 500, null, e.getMessage(), null);
+			logger.info("处理流式请求时发生错误 [{}]", this.resolveNodeName(this.routingNodeId), e);
+			this.sendError(500, e.getMessage(), null);
 		} catch (Exception e) {
 			if (this.cancelled.get()) {
-				logger.info("聊天流式会话已取消: {}", e.getMessage());
+				logger.info("流式会话已取消: {}", e.getMessage());
 				return;
 			}
-			logger.info("处理聊天流式请求时发生错误 [{}]", this.resolveNodeName(this.routingNodeId), e);
-			this.openAIService.sendOpenAIErrorResponseWithCleanup(this.ctx, 500, null, e.getMessage(), null);
+			logger.info("处理流式请求时发生错误 [{}]", this.resolveNodeName(this.routingNodeId), e);
+			this.sendError(500, e.getMessage(), null);
 		} catch (Throwable t) {
 			logger.error("虚拟线程异常已兜底: {}", t.getMessage(), t);
 		} finally {
+			// 出错提前结束时请求体可能还没收完，剩下的丢掉，同时恢复读取
+			this.requestBodyStream.discard();
 			ModelRequestTracker.getInstance().removeRequest(this.requestId);
 			try {
 				this.deferredOutput.close();
 			} catch (IOException e) {
 			}
 			this.openAIService.cleanupTrackedConnection(this.ctx, this.connection);
+			SlotAffinityTable.Lease l = this.lease;
+			if (l != null) {
+				l.close();
+			}
+			ModelAdmissionQueue.Permit p = this.permit;
+			if (p != null) {
+				p.close();
+			}
 		}
 	}
 	
+	/**
+	 * 	按端点的格式返回错误。
+	 * @param status
+	 * @param message
+	 * @param param
+	 */
+	private void sendError(int status, String message, String param) {
+		if (this.endpoint == StreamingEndpoint.ANTHROPIC_MESSAGES) {
+			this.anthropicService.sendError(this.ctx, HttpResponseStatus.valueOf(status), message);
+		} else {
+			this.openAIService.sendOpenAIErrorResponseWithCleanup(this.ctx, status, null, message, param);
+		}
+	}
+	
+	/**
+	 * 	开始透传大字段之前，不需要槽位亲和的端点如果已经拿到 model 就提前连上，让大字段边收边发。
+	 * 	需要亲和的端点要等 messages 的前缀指纹算完才能选槽位，只能先缓冲。
+	 * @param modelName
+	 * @param nodeId
+	 * @throws IOException
+	 */
+	private void connectEarly(String modelName, String nodeId) throws IOException {
+		if (this.endpoint.isSlotAffinity() || this.connection != null || modelName == null || modelName.isBlank()) {
+			return;
+		}
+		try {
+			this.openConnectionForModel(modelName, nodeId, null);
+		} catch (AdmissionRejectedException | InterruptedException e) {
+			throw new EarlyConnectException(e);
+		}
+		logger.info("流式请求提前连接，请求体边收边发: model={}", modelName);
+	}
+	
 	/**
 	 * 解析节点名称
 	 */
@@ -219,14 +370,16 @@ public class ChatStreamSession {
 	}
 
 	/**
-	 * 	连接到指定的llamacpp进程。
+	 * 	连接到指定的llamacpp进程，把已经缓冲的请求体发过去。本机模型先经过准入队列，需要亲和的端点再按前缀选槽位，
+	 * 	只在 run 的虚拟线程里调用，排队时不能持有监视器锁，否则会钉住载体线程。
 	 * @param modelName
+	 * @param nodeIdFromBody
+	 * @param prefix 请求的前缀指纹，提前连接时为 null
 	 * @throws IOException
+	 * @throws AdmissionRejectedException 本机模型的请求队列已满或排队超时
+	 * @throws InterruptedException 排队时客户端断开
 	 */
-	private synchronized void openConnectionForModel(String modelName, String nodeIdFromBody) throws IOException {
-		if (this.connection != null) {
-			return;
-		}
+	private void openConnectionForModel(String modelName, String nodeIdFromBody, long[] prefix) throws IOException, AdmissionRejectedException, InterruptedException {
 		if (modelName == null) {
 			return;
 		}
@@ -250,6 +403,20 @@ public class ChatStreamSession {
 					this.routingNodeId = remote[1];
 				}
 			}
+			if (targetUrl == null) {
+				// 本地和远程都没有加载，按需加载本地模型，会等到加载结束
+				ModelRoutingTable.Route route = ModelAutoLoader.getInstance().awaitRoute(modelName);
+				if (route == null && this.endpoint == StreamingEndpoint.ANTHROPIC_MESSAGES) {
+					// 和 AnthropicService 一样，只加载了一个模型时用它兜底
+					ModelRoutingTable routing = LlamaServerManager.getInstance().getRoutingTable();
+					if (routing.size() == 1) {
+						route = routing.getFirstRoute();
+					}
+				}
+				if (route != null) {
+					targetUrl = String.format("http://localhost:%d%s", route.getPort(), this.endpoint.getUpstreamPath(this.uri));
+				}
+			}
 		}
 
 		if (targetUrl == null) {
@@ -258,9 +425,35 @@ public class ChatStreamSession {
 		}
 
 		logger.info("[Node路由] 路由成功: model={}, target={}", modelName, targetUrl);
-		this.connection = this.openAIService.openTrackedConnection(this.ctx, targetUrl, this.method, this.headers, true);
-		this.deferredOutput.attach(this.connection.getOutputStream());
-		logger.info("[Node路由] 聊天流式请求已连接到模型: {}, target: {}", modelName, targetUrl);
+		if (this.routingNodeId == null) {
+			if (this.cancelled.get()) {
+				throw new IOException("client disconnected");
+			}
+			this.queuedThread = Thread.currentThread();
+			try {
+				this.permit = ModelAdmissionQueue.getInstance().acquire(modelName, ModelAdmissionQueue.clientKeyOf(this.ctx, this.headers));
+			} finally {
+				this.queuedThread = null;
+			}
+			if (this.endpoint.isSlotAffinity() && prefix != null) {
+				this.lease = SlotAffinityTable.getInstance().assign(modelName, prefix);
+			}
+		}
+		HttpURLConnection conn = this.openAIService.openTrackedConnection(this.ctx, targetUrl, this.method, this.headers, true);
+		if (this.endpoint == StreamingEndpoint.ANTHROPIC_MESSAGES) {
+			conn.setRequestProperty(HttpHeaderNames.CONTENT_TYPE.toString(), "application/json");
+			String apiKey = this.routingApiKey;
+			if (apiKey != null && !apiKey.isBlank()) {
+				conn.setRequestProperty("Authorization", "Bearer " + apiKey);
+			}
+		}
+		this.connection = conn;
+		this.deferredOutput.attach(conn.getOutputStream());
+		SlotAffinityTable.Lease l = this.lease;
+		if (l != null) {
+			logger.info("槽位亲和: model={}, id_slot={}, 命中前缀消息数={}", modelName, l.getSlot(), l.getMatchedMessages());
+		}
+		logger.info("[Node路由] 流式请求已连接到模型: {}, target: {}", modelName, targetUrl);
 	}
 
 	/**
@@ -269,16 +462,13 @@ public class ChatStreamSession {
 	private String resolveLocalModelUrl(String modelName) {
 		try {
 			LlamaServerManager manager = LlamaServerManager.getInstance();
-			if (!manager.getLoadedProcesses().containsKey(modelName)) {
-				logger.info("[Node路由] 本地模型未加载: model={}, loadedModels={}", modelName, manager.getLoadedProcesses().keySet());
-				return null;
-			}
-			Integer modelPort = manager.getModelPort(modelName);
-			if (modelPort == null) {
-				logger.warn("[Node路由] 本地模型端口未找到: model={}", modelName);
+			ModelRoutingTable routing = manager.getRoutingTable();
+			ModelRoutingTable.Route route = routing.resolve(modelName);
+			if (route == null) {
+				logger.info("[Node路由] 本地模型未加载: model={}, loadedModels={}", modelName, routing.getProcesses().keySet());
 				return null;
 			}
-			return String.format("http://localhost:%d/v1/chat/completions", modelPort.intValue());
+			return String.format("http://localhost:%d%s", route.getPort(), this.endpoint.getUpstreamPath(this.uri));
 		} catch (Exception e) {
 			logger.warn("[Node路由] 解析本地模型异常: model={}, error={}", modelName, e.getMessage());
 			return null;
@@ -289,43 +479,14 @@ public class ChatStreamSession {
 	 * 从远程节点中查找模型
 	 */
 	private String[] resolveFromRemoteNodes(String modelName) {
-		NodeManager nodeManager = NodeManager.getInstance();
-		List<LlamaHubNode> enabledNodes = nodeManager.listEnabledNodes();
-		logger.info("[Node路由] 远程节点列表: count={}", enabledNodes.size());
-
-		for (LlamaHubNode node : enabledNodes) {
-			logger.info("[Node路由] 检查远程节点: nodeId={}, nodeName={}, baseUrl={}", node.getNodeId(), node.getName(), node.getBaseUrl());
-			try {
-				NodeManager.HttpResult result = nodeManager.callRemoteApi(node.getNodeId(), "GET", "/v1/models", null);
-				logger.info("[Node路由] 远程节点响应: nodeId={}, code={}", node.getNodeId(), result.getStatusCode());
-				if (!result.isSuccess()) {
-					logger.warn("[Node路由] 远程节点请求失败: nodeId={}, body={}", node.getNodeId(), result.getBody());
-					continue;
-				}
-
-				JsonObject root = JsonUtil.fromJson(result.getBody(), JsonObject.class);
-				if (root == null) continue;
-
-				if (root.has("models") && root.get("models").isJsonArray()) {
-					JsonArray remoteModels = root.getAsJsonArray("models");
-					for (com.google.gson.JsonElement el : remoteModels) {
-						if (!el.isJsonObject()) continue;
-						com.google.gson.JsonObject m = el.getAsJsonObject();
-						String remoteModelKey = JsonUtil.getJsonString(m, "model");
-						if (remoteModelKey.isEmpty()) remoteModelKey = JsonUtil.getJsonString(m, "name");
-						logger.info("[Node路由] 远程模型条目: nodeId={}, remoteModelKey={}", node.getNodeId(), remoteModelKey);
-						if (modelName.equals(remoteModelKey)) {
-							logger.info("[Node路由] 远程节点匹配成功: model={}, nodeId={}", modelName, node.getNodeId());
-							return new String[]{ node.getBaseUrl() + "/v1/chat/completions", node.getNodeId() };
-						}
-					}
-				}
-			} catch (Exception e) {
-				logger.warn("[Node路由] 检查远程节点异常: nodeId={}, error={}", node.getNodeId(), e.getMessage());
-			}
+		LlamaHubNode node = NodeManager.getInstance().resolveRemoteModel(modelName);
+		if (node == null) {
+			logger.warn("[Node路由] 集群模型索引中未找到模型: model={}", modelName);
+			return null;
 		}
-		logger.warn("[Node路由] 所有远程节点均未找到模型: model={}", modelName);
-		return null;
+		logger.info("[Node路由] 远程节点匹配成功: model={}, nodeId={}", modelName, node.getNodeId());
+		this.routingApiKey = node.getApiKey();
+		return new String[]{ node.getBaseUrl() + this.endpoint.getUpstreamPath(this.uri), node.getNodeId() };
 	}
 
 	/**
@@ -338,7 +499,20 @@ public class ChatStreamSession {
 			logger.warn("[Node路由] 远程节点不存在或未启用: nodeId={}", nodeId);
 			return null;
 		}
-		return node.getBaseUrl() + "/v1/chat/completions";
+		this.routingApiKey = node.getApiKey();
+		return node.getBaseUrl() + this.endpoint.getUpstreamPath(this.uri);
+	}
+	
+	/**
+	 * 	提前连接时排队被拒绝或者被中断，借 IOException 从 transform 里带出来。
+	 */
+	private static class EarlyConnectException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private EarlyConnectException(Exception cause) {
+			super(cause.getMessage(), cause);
+		}
 	}
 
 	private static class DeferredConnectionOutputStream extends OutputStream {
@@ -0,0 +1,491 @@
+package org.mark.llamacpp.server.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import org.mark.llamacpp.server.EmbeddingCache;
+import org.mark.llamacpp.server.ModelAdmissionQueue;
+import org.mark.llamacpp.server.ModelRoutingTable;
+import org.mark.llamacpp.server.NodeManager;
+import org.mark.llamacpp.server.exception.AdmissionRejectedException;
+import org.mark.llamacpp.server.io.UpstreamConnectionPool;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+
+/**
+ * 	带缓存的嵌入请求，OpenAI /v1/embeddings 和 Ollama /api/embed 共用。
+ * 	<p>
+ * 	input 是字符串或字符串数组时逐条查 {@link EmbeddingCache}，只把没命中的（同一批里重复的只算一次）发给 llama-server，
+ * 	结果按原来的顺序合并。上游总是返回 float 数组，encoding_format 为 base64 时由这里编码。
+ * 	usage 只统计实际发给上游的部分，全部命中时为 0。token 数组形式的 input 不缓存，由调用方照原样转发。
+ */
+public class EmbeddingService {
+
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddingService.class);
+
+	/**
+	 * 	请求体不超过这个大小时才走缓存，更大的请求体仍然流式转发
+	 */
+	public static final int MAX_CACHEABLE_BODY_BYTES = 8 * 1024 * 1024;
+
+	/**
+	 * 	不影响向量的字段，不参与缓存键
+	 */
+	private static final Set<String> NON_OPTION_FIELDS = Set.of("model", "input", "encoding_format", "user", "nodeId");
+
+	private static final EmbeddingService INSTANCE = new EmbeddingService(EmbeddingCache.getInstance());
+
+	public static EmbeddingService getInstance() {
+		return INSTANCE;
+	}
+
+	private final EmbeddingCache cache;
+
+	public EmbeddingService(EmbeddingCache cache) {
+		this.cache = cache;
+	}
+
+	public EmbeddingCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * 	流式接管前判断：请求体长度已知且不大时交给聚合后的处理，才能看到完整的 input。
+	 * @param request
+	 * @return
+	 */
+	public boolean accepts(HttpRequest request) {
+		if (!this.cache.isEnabled() || request.method() != HttpMethod.POST) {
+			return false;
+		}
+		long length = HttpUtil.getContentLength(request, -1L);
+		return length >= 0 && length <= MAX_CACHEABLE_BODY_BYTES;
+	}
+
+	/**
+	 * 	请求能不能走缓存：缓存开着、模型在本机、input 全是字符串。
+	 * @param route
+	 * @param request OpenAI 格式的请求体
+	 * @return
+	 */
+	public boolean isCacheable(ModelRoutingTable.Route route, JsonObject request) {
+		return this.cache.isEnabled() && textInputs(request) != null && EmbeddingCache.modelIdentity(route) != null;
+	}
+
+	/**
+	 * 	本机模型的嵌入。
+	 * @param route
+	 * @param request OpenAI 格式的请求体
+	 * @param clientKey 不为 null 时发给上游前先在 {@link ModelAdmissionQueue} 排队，全部命中时不排队
+	 * @return 不能走缓存时返回 null
+	 */
+	public Result embed(ModelRoutingTable.Route route, JsonObject request, String clientKey)
+			throws IOException, AdmissionRejectedException, InterruptedException {
+		String identity = EmbeddingCache.modelIdentity(route);
+		if (identity == null) {
+			return null;
+		}
+		String targetUrl = String.format("http://localhost:%d/v1/embeddings", route.getPort());
+		return this.embed(identity, route.getModelId(), targetUrl, null, request, clientKey);
+	}
+
+	/**
+	 *
+	 * @param modelIdentity {@link EmbeddingCache#modelIdentity}
+	 * @param modelName 排队和响应里用的模型名
+	 * @param targetUrl 上游的 /v1/embeddings
+	 * @param apiKey 上游的密钥，可以为 null
+	 * @param request OpenAI 格式的请求体
+	 * @param clientKey 见 {@link #embed(ModelRoutingTable.Route, JsonObject, String)}
+	 * @return input 不全是字符串时返回 null
+	 */
+	public Result embed(String modelIdentity, String modelName, String targetUrl, String apiKey, JsonObject request, String clientKey)
+			throws IOException, AdmissionRejectedException, InterruptedException {
+		List<String> inputs = textInputs(request);
+		if (inputs == null) {
+			return null;
+		}
+		String options = options(request);
+		float[][] vectors = new float[inputs.size()][];
+		// 没命中的键 -> 在 inputs 里的位置，同一个文本只发一次
+		Map<String, List<Integer>> missing = new LinkedHashMap<>();
+		List<String> missingTexts = new ArrayList<>();
+		int hits = 0;
+		for (int i = 0; i < inputs.size(); i++) {
+			String key = EmbeddingCache.key(modelIdentity, options, inputs.get(i));
+			List<Integer> positions = missing.get(key);
+			if (positions != null) {
+				positions.add(i);
+				continue;
+			}
+			float[] cached = this.cache.get(key);
+			if (cached != null) {
+				vectors[i] = cached;
+				hits++;
+				continue;
+			}
+			positions = new ArrayList<>(1);
+			positions.add(i);
+			missing.put(key, positions);
+			missingTexts.add(inputs.get(i));
+		}
+
+		Result result = new Result();
+		result.model = modelName;
+		result.cachedCount = hits;
+		if (!missingTexts.isEmpty()) {
+			JsonObject upstream = request.deepCopy();
+			upstream.remove("encoding_format");
+			upstream.remove("nodeId");
+			JsonArray input = new JsonArray();
+			for (String text : missingTexts) {
+				input.add(text);
+			}
+			upstream.add("input", input);
+			byte[] body = JsonUtil.toJson(upstream).getBytes(StandardCharsets.UTF_8);
+
+			UpstreamResponse response;
+			if (clientKey != null) {
+				ModelAdmissionQueue.Permit permit = ModelAdmissionQueue.getInstance().acquire(modelName, clientKey);
+				try {
+					response = this.post(targetUrl, apiKey, body);
+				} finally {
+					permit.close();
+				}
+			} else {
+				response = this.post(targetUrl, apiKey, body);
+			}
+			if (response.errorBody != null) {
+				result.statusCode = response.statusCode;
+				result.errorBody = response.errorBody;
+				return result;
+			}
+			if (response.vectors.size() != missingTexts.size()) {
+				throw new IOException("upstream returned " + response.vectors.size() + " embeddings for " + missingTexts.size() + " inputs");
+			}
+			int n = 0;
+			for (Map.Entry<String, List<Integer>> entry : missing.entrySet()) {
+				float[] vector = response.vectors.get(n++);
+				this.cache.put(entry.getKey(), vector);
+				for (int position : entry.getValue()) {
+					vectors[position] = vector;
+				}
+			}
+			if (response.model != null && !response.model.isBlank()) {
+				result.model = response.model;
+			}
+			result.promptTokens = response.promptTokens;
+		}
+		logger.info("嵌入缓存: model={}, 输入 {} 条, 命中 {} 条", modelName, inputs.size(), result.cachedCount);
+		result.statusCode = 200;
+		result.vectors = vectors;
+		return result;
+	}
+
+	/**
+	 * 	input 是字符串或全是字符串的数组时返回文本列表，否则返回 null。
+	 * @param request
+	 * @return
+	 */
+	public static List<String> textInputs(JsonObject request) {
+		JsonElement input = request == null ? null : request.get("input");
+		if (input == null || input.isJsonNull()) {
+			return null;
+		}
+		if (input.isJsonPrimitive()) {
+			return input.getAsJsonPrimitive().isString() ? List.of(input.getAsString()) : null;
+		}
+		if (!input.isJsonArray() || input.getAsJsonArray().size() == 0) {
+			return null;
+		}
+		List<String> texts = new ArrayList<>(input.getAsJsonArray().size());
+		for (JsonElement e : input.getAsJsonArray()) {
+			if (e == null || !e.isJsonPrimitive() || !e.getAsJsonPrimitive().isString()) {
+				return null;
+			}
+			texts.add(e.getAsString());
+		}
+		return texts;
+	}
+
+	/**
+	 * 	除了 model、input 等之外的字段，按键排序后的 JSON。
+	 */
+	private static String options(JsonObject request) {
+		Map<String, JsonElement> sorted = new TreeMap<>();
+		for (Map.Entry<String, JsonElement> entry : request.entrySet()) {
+			if (!NON_OPTION_FIELDS.contains(entry.getKey())) {
+				sorted.put(entry.getKey(), entry.getValue());
+			}
+		}
+		JsonObject options = new JsonObject();
+		for (Map.Entry<String, JsonElement> entry : sorted.entrySet()) {
+			options.add(entry.getKey(), entry.getValue());
+		}
+		return options.toString();
+	}
+
+	private UpstreamResponse post(String targetUrl, String apiKey, byte[] body) throws IOException {
+		HttpURLConnection connection = UpstreamConnectionPool.getInstance().openConnection(URI.create(targetUrl).toURL());
+		try {
+			if (connection instanceof HttpsURLConnection) {
+				try {
+					NodeManager.trustAllCerts((HttpsURLConnection) connection);
+				} catch (Exception e) {
+					throw new IOException("failed to configure TLS for " + targetUrl, e);
+				}
+			}
+			connection.setRequestMethod("POST");
+			connection.setConnectTimeout(36000 * 1000);
+			connection.setReadTimeout(36000 * 1000);
+			connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+			if (apiKey != null && !apiKey.isBlank()) {
+				connection.setRequestProperty("Authorization", "Bearer " + apiKey);
+			}
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Length", String.valueOf(body.length));
+			try (OutputStream os = connection.getOutputStream()) {
+				os.write(body);
+			}
+			int responseCode = connection.getResponseCode();
+			UpstreamResponse response = new UpstreamResponse();
+			response.statusCode = responseCode;
+			if (responseCode < 200 || responseCode >= 300) {
+				InputStream err = connection.getErrorStream();
+				response.errorBody = err == null ? "" : new String(err.readAllBytes(), StandardCharsets.UTF_8);
+				return response;
+			}
+			try (JsonReader reader = new JsonReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+				parseResponse(reader, response);
+			}
+			return response;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * 	边读边解析上游的响应，向量直接读成 float[]，不经过 JsonArray。
+	 */
+	private static void parseResponse(JsonReader reader, UpstreamResponse response) throws IOException {
+		Map<Integer, float[]> byIndex = new TreeMap<>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if ("model".equals(name) && reader.peek() == JsonToken.STRING) {
+				response.model = reader.nextString();
+			} else if ("usage".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					if ("prompt_tokens".equals(reader.nextName()) && reader.peek() == JsonToken.NUMBER) {
+						response.promptTokens = reader.nextInt();
+					} else {
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+			} else if ("data".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				int position = 0;
+				while (reader.hasNext()) {
+					int index = position++;
+					float[] vector = null;
+					reader.beginObject();
+					while (reader.hasNext()) {
+						String field = reader.nextName();
+						if ("index".equals(field) && reader.peek() == JsonToken.NUMBER) {
+							index = reader.nextInt();
+						} else if ("embedding".equals(field)) {
+							vector = readVector(reader);
+						} else {
+							reader.skipValue();
+						}
+					}
+					reader.endObject();
+					if (vector == null) {
+						throw new IOException("upstream embedding without vector");
+					}
+					byIndex.put(index, vector);
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		response.vectors = new ArrayList<>(byIndex.values());
+	}
+
+	private static float[] readVector(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.STRING) {
+			ByteBuffer buf = ByteBuffer.wrap(Base64.getDecoder().decode(reader.nextString())).order(ByteOrder.LITTLE_ENDIAN);
+			float[] vector = new float[buf.remaining() / 4];
+			buf.asFloatBuffer().get(vector);
+			return vector;
+		}
+		float[] vector = new float[1024];
+		int n = 0;
+		reader.beginArray();
+		while (reader.hasNext()) {
+			if (reader.peek() != JsonToken.NUMBER) {
+				// pooling none 时每个 token 一个向量，不是这里能缓存的形式
+				throw new IOException("unexpected embedding element: " + reader.peek());
+			}
+			if (n == vector.length) {
+				vector = Arrays.copyOf(vector, n * 2);
+			}
+			vector[n++] = (float) reader.nextDouble();
+		}
+		reader.endArray();
+		return n == vector.length ? vector : Arrays.copyOf(vector, n);
+	}
+
+	private static class UpstreamResponse {
+		private int statusCode;
+		private String errorBody;
+		private String model;
+		private int promptTokens;
+		private List<float[]> vectors = new ArrayList<>();
+	}
+
+	/**
+	 * 	一次嵌入请求的结果。
+	 */
+	public static class Result {
+
+		private int statusCode;
+		private String errorBody;
+		private String model;
+		private float[][] vectors;
+		private int promptTokens;
+		private int cachedCount;
+
+		public boolean isSuccess() {
+			return this.errorBody == null;
+		}
+
+		/**
+		 * 	上游的状态码，成功时为 200。
+		 * @return
+		 */
+		public int getStatusCode() {
+			return this.statusCode;
+		}
+
+		/**
+		 * 	上游返回的错误响应体，成功时为 null。
+		 * @return
+		 */
+		public String getErrorBody() {
+			return this.errorBody;
+		}
+
+		public String getModel() {
+			return this.model;
+		}
+
+		/**
+		 * 	和 input 一一对应的向量，缓存里的数组，不要修改。
+		 * @return
+		 */
+		public float[][] getVectors() {
+			return this.vectors;
+		}
+
+		/**
+		 * 	实际发给上游的 token 数。
+		 * @return
+		 */
+		public int getPromptTokens() {
+			return this.promptTokens;
+		}
+
+		/**
+		 * 	从缓存里取到的条数。
+		 * @return
+		 */
+		public int getCachedCount() {
+			return this.cachedCount;
+		}
+
+		/**
+		 * 	OpenAI 格式的响应体，字段顺序和 llama-server 一样。
+		 * @param base64 encoding_format 是否为 base64
+		 * @return
+		 */
+		public String toOpenAIJson(boolean base64) {
+			StringBuilder sb = new StringBuilder(64 + this.vectors.length * (base64 ? 64 : 1024));
+			sb.append("{\"model\":").append(JsonUtil.toJson(this.model == null ? "" : this.model));
+			sb.append(",\"object\":\"list\",\"usage\":{\"prompt_tokens\":").append(this.promptTokens);
+			sb.append(",\"total_tokens\":").append(this.promptTokens).append("},\"data\":[");
+			for (int i = 0; i < this.vectors.length; i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append("{\"embedding\":");
+				float[] vector = this.vectors[i];
+				if (base64) {
+					ByteBuffer buf = ByteBuffer.allocate(vector.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+					buf.asFloatBuffer().put(vector);
+					sb.append('"').append(Base64.getEncoder().encodeToString(buf.array())).append('"');
+				} else {
+					sb.append('[');
+					for (int j = 0; j < vector.length; j++) {
+						if (j > 0) {
+							sb.append(',');
+						}
+						sb.append(vector[j]);
+					}
+					sb.append(']');
+				}
+				sb.append(",\"index\":").append(i).append(",\"object\":\"embedding\"}");
+			}
+			sb.append("]}");
+			return sb.toString();
+		}
+
+		/**
+		 * 	Ollama 响应里的 embeddings，数值取 float 的最短十进制表示。
+		 * @return
+		 */
+		public List<List<Double>> toDoubleLists() {
+			List<List<Double>> out = new ArrayList<>(this.vectors.length);
+			for (float[] vector : this.vectors) {
+				List<Double> list = new ArrayList<>(vector.length);
+				for (float v : vector) {
+					list.add(Double.valueOf(Float.toString(v)));
+				}
+				out.add(list);
+			}
+			return out;
+		}
+	}
+}
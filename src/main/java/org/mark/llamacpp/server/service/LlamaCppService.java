@@ -278,7 +278,7 @@ public class LlamaCppService {
 			rawResp.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
 			rawResp.headers().set(HttpHeaderNames.CONTENT_LENGTH, rawBytes.length);
 			rawResp.content().writeBytes(rawBytes);
-			ctx.writeAndFlush(rawResp).addListener(f -> ctx.close());
+			ctx.writeAndFlush(rawResp);
 			return;
 		}
 		
@@ -345,7 +345,7 @@ public class LlamaCppService {
 		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, outBytes.length);
 		response.content().writeBytes(outBytes);
 		
-		ctx.writeAndFlush(response).addListener(f -> ctx.close());
+		ctx.writeAndFlush(response);
 	}
 	
 	private void handleStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
@@ -542,7 +542,7 @@ public class LlamaCppService {
 		}
 		
 		LastHttpContent last = LastHttpContent.EMPTY_LAST_CONTENT;
-		ctx.writeAndFlush(last).addListener(f -> ctx.close());
+		ctx.writeAndFlush(last);
 	}
 	
 	private String safeString(JsonElement el) {
@@ -577,7 +577,7 @@ public class LlamaCppService {
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, POST, PUT, DELETE, OPTIONS");
 		response.content().writeBytes(content);
-		ctx.writeAndFlush(response).addListener(f -> ctx.close());
+		ctx.writeAndFlush(response);
 	}
 	
 	
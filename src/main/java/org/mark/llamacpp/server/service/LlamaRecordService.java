@@ -6,31 +6,78 @@ import com.google.gson.JsonParser;
 import org.mark.llamacpp.server.struct.ActiveRequest;
 import org.mark.llamacpp.server.struct.Timing;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.LinkedHashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Stream;
 
 /**
  * 处理 llama.cpp 响应中的 timings 性能参数，并持久化累计记录。
+ * <p>
+ * 请求线程只把记录放进无锁队列，由一个后台线程统一处理：累加、批量追加 .log / .requests.log（每批每个文件一次写入并落盘），
+ * 累计的 .json 每隔 {@link #SUMMARY_FLUSH_INTERVAL_MS} 毫秒或退出时通过临时文件原子替换，写到一半崩溃也不会损坏。
  */
 public class LlamaRecordService {
 	
-	private static final LlamaRecordService INSTANCE = new LlamaRecordService();
+	private static final LlamaRecordService INSTANCE = create();
 	private final Gson gson = new Gson();
 	private static final String RECORD_DIR = "cache/record/";
+	
+	/**
+	 * 	累计记录写盘的间隔。
+	 */
+	private static final long SUMMARY_FLUSH_INTERVAL_MS = 2000;
+	
+	/**
+	 * 	每批最多处理的记录数。
+	 */
+	private static final int MAX_BATCH = 4096;
+	
+	/**
+	 * 	模型ID -> 累计记录。只由写线程替换，读到的对象不会再被修改。
+	 */
 	private final Map<String, Timing> recordMap = new ConcurrentHashMap<>();
+	
+	private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicLong enqueued = new AtomicLong();
+	private volatile long processed;
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+	private volatile boolean running = true;
+	private Thread writer;
 
 	public static LlamaRecordService getInstance() {
 		return INSTANCE;
 	}
 
-	public LlamaRecordService() {
+	/**
+	 * 	加载已有记录，启动写线程并注册退出时的落盘。
+	 */
+	private static LlamaRecordService create() {
+		LlamaRecordService service = new LlamaRecordService();
+		service.writer = new Thread(service::writeLoop, "llama-record-writer");
+		service.writer.setDaemon(true);
+		service.writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(service::shutdown, "llama-record-shutdown"));
+		return service;
+	}
+
+	private LlamaRecordService() {
 		try {
 			Files.createDirectories(Paths.get(RECORD_DIR));
 			loadRecords();
@@ -61,37 +108,26 @@ public class LlamaRecordService {
 	}
 
 	/**
-	 * 处理流式响应中的 timings 数据，将其累加到对应模型的记录中并持久化。
+	 * 处理流式响应中的 timings 数据，将其累加到对应模型的记录中并持久化（异步）。
 	 * 
 	 * @param modelId 模型唯一标识
 	 * @param json    包含 timings 数据的 JSON 字符串
 	 * @return 解析出的本次 Timing 数据
 	 */
 	public Timing handleStream(String modelId, String json) {
-		synchronized (this) {
-			Timing timing = this.recordMap.computeIfAbsent(modelId, k -> new Timing());
-			Timing data = null;
-			try {
-				JsonObject root = JsonParser.parseString(json).getAsJsonObject();
-				if (root.has("timings")) {
-					data = this.gson.fromJson(root.get("timings"), Timing.class);
-					
-					timing.setCache_n(timing.getCache_n() + data.getCache_n());
-					timing.setPrompt_n(timing.getPrompt_n() + data.getPrompt_n());
-					timing.setPrompt_ms(timing.getPrompt_ms() + data.getPrompt_ms());
-					timing.setPrompt_per_token_ms(timing.getPrompt_per_token_ms() + data.getPrompt_per_token_ms());
-					timing.setPrompt_per_second(timing.getPrompt_per_second() + data.getPrompt_per_second());
-					timing.setPredicted_n(timing.getPredicted_n() + data.getPredicted_n());
-					timing.setPredicted_ms(timing.getPredicted_ms() + data.getPredicted_ms());
-					timing.setPredicted_per_token_ms(timing.getPredicted_per_token_ms() + data.getPredicted_per_token_ms());
-					timing.setPredicted_per_second(timing.getPredicted_per_second() + data.getPredicted_per_second());
-					this.recordTiming(modelId, timing, data);
+		Timing data = null;
+		try {
+			JsonObject root = JsonParser.parseString(json).getAsJsonObject();
+			if (root.has("timings")) {
+				data = this.gson.fromJson(root.get("timings"), Timing.class);
+				if (modelId != null && data != null) {
+					this.enqueue(new TimingEvent(modelId, data));
 				}
-			} catch (Exception e) {
-				e.printStackTrace();
 			}
-			return data;
+		} catch (Exception e) {
+			e.printStackTrace();
 		}
+		return data;
 	}
 
 	/**
@@ -106,64 +142,183 @@ public class LlamaRecordService {
 
 	/**
 	 * 记录一次完整的请求记录，包含包裹了 Timing 的 ActiveRequest。
-	 * 追加写入 cache/record/{modelId}.requests.log，每行一个 JSON 对象。
+	 * 追加写入 cache/record/{modelId}.requests.log，每行一个 JSON 对象（异步）。
 	 */
 	public void recordRequest(ActiveRequest request) {
 		if (request == null || request.getModelId() == null) return;
-		String logPath = RECORD_DIR + request.getModelId() + ".requests.log";
-		try {
-			Map<String, Object> record = new LinkedHashMap<>();
-			record.put("requestId", request.getRequestId());
-			record.put("modelId", request.getModelId());
-			record.put("endpoint", request.getEndpoint());
-			record.put("startTime", request.getStartTime());
-			record.put("elapsedMs", request.elapsedMs());
-			record.put("status", request.getStatus().name());
-			record.put("phase", request.getPhase().name());
-			if (request.getTiming() != null) {
-				record.put("timing", request.getTiming());
-			}
-			String line = this.gson.toJson(record);
-			try (BufferedWriter writer = new BufferedWriter(new FileWriter(logPath, true))) {
-				writer.write(line);
-				writer.newLine();
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
+		Map<String, Object> record = new LinkedHashMap<>();
+		record.put("requestId", request.getRequestId());
+		record.put("modelId", request.getModelId());
+		record.put("endpoint", request.getEndpoint());
+		record.put("startTime", request.getStartTime());
+		record.put("elapsedMs", request.elapsedMs());
+		record.put("status", request.getStatus().name());
+		record.put("phase", request.getPhase().name());
+		if (request.getTiming() != null) {
+			record.put("timing", request.getTiming());
 		}
+		this.enqueue(new RequestEvent(request.getModelId(), record));
 	}
 
 	/**
-	 * 将累积的 timings 数据以 JSON 格式覆盖写入本地文件。
-	 * 同时将本次请求的 timings 逐行追加到日志文件。
+	 * 等待队列里已有的记录全部写完，并把累计记录写盘。
 	 * 
-	 * @param modelId    模型ID，用作文件名
-	 * @param timing     累计的性能数据，写入 .json
-	 * @param requestTiming 本次请求的原始性能数据，逐行追加到 .log
+	 * @param timeoutMs 最多等待的毫秒数
+	 * @return 是否在超时前完成
 	 */
-	private void recordTiming(String modelId, Timing timing, Timing requestTiming) {
-		if (modelId == null || timing == null) {
-			return;
+	public boolean flush(long timeoutMs) {
+		long target = this.enqueued.get();
+		this.flushRequested.set(true);
+		LockSupport.unpark(this.writer);
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (this.processed < target || this.flushRequested.get()) {
+			if (!this.writer.isAlive() || System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(2));
 		}
-		// 累计计算
-		String filePath = RECORD_DIR + modelId + ".json";
-		String content = this.gson.toJson(timing);
-		
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath, false))) {
-			writer.write(content);
-		} catch (IOException e) {
-			e.printStackTrace();
+		return true;
+	}
+
+	private void enqueue(Object event) {
+		this.queue.offer(event);
+		this.enqueued.incrementAndGet();
+		LockSupport.unpark(this.writer);
+	}
+
+	private void shutdown() {
+		this.flush(5000);
+		this.running = false;
+		LockSupport.unpark(this.writer);
+	}
+
+	//================================================================================================
+
+	/**
+	 * 写线程：批量取出记录，按文件合并追加，定时写累计记录。
+	 */
+	private void writeLoop() {
+		Map<String, StringBuilder> appends = new LinkedHashMap<>();
+		Set<String> dirty = new HashSet<>();
+		long lastSummaryFlush = System.currentTimeMillis();
+		while (this.running) {
+			int n = 0;
+			try {
+				Object event;
+				while (n < MAX_BATCH && (event = this.queue.poll()) != null) {
+					n++;
+					this.apply(event, appends, dirty);
+				}
+				if (!appends.isEmpty()) {
+					this.writeAppends(appends);
+				}
+				long now = System.currentTimeMillis();
+				boolean flush = this.flushRequested.get() && this.queue.isEmpty();
+				if (!dirty.isEmpty() && (flush || now - lastSummaryFlush >= SUMMARY_FLUSH_INTERVAL_MS)) {
+					this.writeSummaries(dirty);
+					lastSummaryFlush = now;
+				}
+				if (flush) {
+					this.flushRequested.set(false);
+				}
+			} catch (Throwable e) {
+				e.printStackTrace();
+				appends.clear();
+			} finally {
+				this.processed += n;
+			}
+			if (n == 0 && this.queue.isEmpty() && !this.flushRequested.get()) {
+				long wait = dirty.isEmpty() ? SUMMARY_FLUSH_INTERVAL_MS
+						: Math.max(1, SUMMARY_FLUSH_INTERVAL_MS - (System.currentTimeMillis() - lastSummaryFlush));
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(wait));
+			}
 		}
-		// 请求记录，以模型名字.log 逐行追加
-		if (requestTiming != null) {
-			String logPath = RECORD_DIR + modelId + ".log";
-			String logLine = this.gson.toJson(requestTiming);
-			try (BufferedWriter writer = new BufferedWriter(new FileWriter(logPath, true))) {
-				writer.write(logLine);
-				writer.newLine();
+	}
+
+	private void apply(Object event, Map<String, StringBuilder> appends, Set<String> dirty) {
+		if (event instanceof TimingEvent e) {
+			Timing data = e.timing;
+			Timing old = this.recordMap.get(e.modelId);
+			// 每次生成新对象再替换，读取方拿到的对象不会被修改
+			Timing timing = new Timing();
+			if (old != null) {
+				timing.setCache_n(old.getCache_n());
+				timing.setPrompt_n(old.getPrompt_n());
+				timing.setPrompt_ms(old.getPrompt_ms());
+				timing.setPrompt_per_token_ms(old.getPrompt_per_token_ms());
+				timing.setPrompt_per_second(old.getPrompt_per_second());
+				timing.setPredicted_n(old.getPredicted_n());
+				timing.setPredicted_ms(old.getPredicted_ms());
+				timing.setPredicted_per_token_ms(old.getPredicted_per_token_ms());
+				timing.setPredicted_per_second(old.getPredicted_per_second());
+			}
+			timing.setCache_n(timing.getCache_n() + data.getCache_n());
+			timing.setPrompt_n(timing.getPrompt_n() + data.getPrompt_n());
+			timing.setPrompt_ms(timing.getPrompt_ms() + data.getPrompt_ms());
+			timing.setPrompt_per_token_ms(timing.getPrompt_per_token_ms() + data.getPrompt_per_token_ms());
+			timing.setPrompt_per_second(timing.getPrompt_per_second() + data.getPrompt_per_second());
+			timing.setPredicted_n(timing.getPredicted_n() + data.getPredicted_n());
+			timing.setPredicted_ms(timing.getPredicted_ms() + data.getPredicted_ms());
+			timing.setPredicted_per_token_ms(timing.getPredicted_per_token_ms() + data.getPredicted_per_token_ms());
+			timing.setPredicted_per_second(timing.getPredicted_per_second() + data.getPredicted_per_second());
+			this.recordMap.put(e.modelId, timing);
+			dirty.add(e.modelId);
+			// 请求记录，以模型名字.log 逐行追加
+			appends.computeIfAbsent(RECORD_DIR + e.modelId + ".log", k -> new StringBuilder())
+					.append(this.gson.toJson(data)).append('\n');
+		} else if (event instanceof RequestEvent e) {
+			appends.computeIfAbsent(RECORD_DIR + e.modelId + ".requests.log", k -> new StringBuilder())
+					.append(this.gson.toJson(e.record)).append('\n');
+		}
+	}
+
+	/**
+	 * 每个文件一次追加写入整批的行，然后落盘。
+	 */
+	private void writeAppends(Map<String, StringBuilder> appends) {
+		for (Map.Entry<String, StringBuilder> entry : appends.entrySet()) {
+			ByteBuffer buf = ByteBuffer.wrap(entry.getValue().toString().getBytes(StandardCharsets.UTF_8));
+			try (FileChannel ch = FileChannel.open(Paths.get(entry.getKey()),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				while (buf.hasRemaining()) {
+					ch.write(buf);
+				}
+				ch.force(false);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
+		appends.clear();
+	}
+
+	/**
+	 * 将累积的 timings 数据以 JSON 格式写入本地文件：先写临时文件，再原子替换。
+	 */
+	private void writeSummaries(Set<String> dirty) {
+		for (String modelId : dirty) {
+			Timing timing = this.recordMap.get(modelId);
+			if (timing == null) {
+				continue;
+			}
+			Path target = Paths.get(RECORD_DIR + modelId + ".json");
+			Path tmp = Paths.get(RECORD_DIR + modelId + ".json.tmp");
+			try {
+				Files.write(tmp, this.gson.toJson(timing).getBytes(StandardCharsets.UTF_8));
+				try {
+					Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException e) {
+					Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		dirty.clear();
+	}
+
+	private record TimingEvent(String modelId, Timing timing) {
+	}
+
+	private record RequestEvent(String modelId, Map<String, Object> record) {
 	}
 }
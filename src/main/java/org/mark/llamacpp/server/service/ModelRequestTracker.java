@@ -8,6 +8,10 @@ import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import org.mark.llamacpp.server.ModelAdmissionQueue;
+import org.mark.llamacpp.server.channel.HttpKeepAliveHandler;
+import org.mark.llamacpp.server.metrics.HubMetrics;
+import org.mark.llamacpp.server.metrics.RequestMetrics;
 import org.mark.llamacpp.server.struct.ActiveRequest;
 import org.mark.llamacpp.server.struct.ActiveRequest.Phase;
 import org.mark.llamacpp.server.struct.Timing;
@@ -16,22 +20,38 @@ import org.mark.llamacpp.server.tools.JsonUtil;
 
 import com.google.gson.JsonObject;
 
+import io.netty.channel.ChannelHandlerContext;
+
 public class ModelRequestTracker {
 
     private static final ModelRequestTracker INSTANCE = new ModelRequestTracker();
 
     private final ConcurrentMap<String, Set<String>> modelActiveRequests = new ConcurrentHashMap<>();
     private final ConcurrentMap<String, ActiveRequest> allActiveRequests = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> lastActivity = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RequestMetrics> requestMetrics = new ConcurrentHashMap<>();
 
     public static ModelRequestTracker getInstance() {
         return INSTANCE;
     }
 
     public String createRequest(String modelId, String endpoint) {
+        return createRequest(null, modelId, endpoint, null);
+    }
+
+    /**
+     * 创建请求并开始记录指标，排队时间从 ctx 上收到请求的时间算起
+     *
+     * @param ctx    客户端连接，可以为 null
+     * @param nodeId 转发到的远程节点，null 表示本机
+     */
+    public String createRequest(ChannelHandlerContext ctx, String modelId, String endpoint, String nodeId) {
         String requestId = UUID.randomUUID().toString();
         ActiveRequest req = new ActiveRequest(requestId, modelId, endpoint);
+        requestMetrics.put(requestId, HubMetrics.getInstance().start(modelId, endpoint, nodeId, HttpKeepAliveHandler.getRequestReceivedNanos(ctx)));
         allActiveRequests.put(requestId, req);
         modelActiveRequests.computeIfAbsent(modelId, k -> ConcurrentHashMap.newKeySet()).add(requestId);
+        touch(modelId);
         broadcastBusy(modelId, true);
         return requestId;
     }
@@ -40,7 +60,12 @@ public class ModelRequestTracker {
         if (requestId == null) return;
         ActiveRequest req = allActiveRequests.remove(requestId);
         if (req == null) return;
+        RequestMetrics metrics = requestMetrics.remove(requestId);
+        if (metrics != null) {
+            metrics.finish();
+        }
         String modelId = req.getModelId();
+        touch(modelId);
         Set<String> reqs = modelActiveRequests.get(modelId);
         if (reqs != null) {
             reqs.remove(requestId);
@@ -67,6 +92,24 @@ public class ModelRequestTracker {
         }
     }
 
+    /**
+     * 上游返回了响应头：记录指标并进入生成阶段
+     */
+    public void onUpstreamResponse(String requestId, int responseCode) {
+        if (requestId == null) return;
+        getMetrics(requestId).onUpstreamResponse(responseCode);
+        updatePhase(requestId, Phase.GENERATION);
+    }
+
+    /**
+     * 请求的指标记录器，请求不存在时返回 {@link RequestMetrics#NOOP}
+     */
+    public RequestMetrics getMetrics(String requestId) {
+        if (requestId == null) return RequestMetrics.NOOP;
+        RequestMetrics metrics = requestMetrics.get(requestId);
+        return metrics == null ? RequestMetrics.NOOP : metrics;
+    }
+
     public void updatePhase(String requestId, Phase phase) {
         if (requestId == null || phase == null) return;
         ActiveRequest req = allActiveRequests.get(requestId);
@@ -94,6 +137,38 @@ public class ModelRequestTracker {
         return reqs != null && !reqs.isEmpty();
     }
 
+    /**
+     * 模型最近一次开始或结束请求的时间，没有记录时返回 0
+     */
+    public long getLastActivityTime(String modelId) {
+        if (modelId == null) return 0L;
+        Long t = lastActivity.get(modelId);
+        return t == null ? 0L : t.longValue();
+    }
+
+    /**
+     * 记录模型活跃时间，模型刚加载完成时也会调用
+     */
+    public void touch(String modelId) {
+        if (modelId == null) return;
+        lastActivity.put(modelId, System.currentTimeMillis());
+    }
+
+    /**
+     * 模型在准入队列里排队的请求数，见 {@link ModelAdmissionQueue}
+     */
+    public int getModelQueuedCount(String modelId) {
+        return ModelAdmissionQueue.getInstance().getQueuedCount(modelId);
+    }
+
+    /**
+     * 准入队列的排队数变化时调用，广播最新的排队数
+     */
+    public void onQueueChanged(String modelId) {
+        if (modelId == null) return;
+        broadcastBusy(modelId, isModelBusy(modelId) || getModelQueuedCount(modelId) > 0);
+    }
+
     public Set<String> getBusyModels() {
         return Collections.unmodifiableSet(modelActiveRequests.keySet());
     }
@@ -125,6 +200,7 @@ public class ModelRequestTracker {
             event.addProperty("modelId", modelId == null ? "" : modelId);
             event.addProperty("busy", busy);
             event.addProperty("activeCount", getModelActiveCount(modelId));
+            event.addProperty("queuedCount", getModelQueuedCount(modelId));
             WebSocketManager.getInstance().broadcast(JsonUtil.toJson(event));
         } catch (Exception e) {
         }
@@ -2,13 +2,12 @@ package org.mark.llamacpp.server.service;
 
 import com.google.gson.JsonObject;
 import io.netty.buffer.ByteBuf;
-import io.netty.handler.codec.http.DefaultHttpContent;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import org.mark.llamacpp.server.LlamaHubNode;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.NodeManager;
+import org.mark.llamacpp.server.io.StreamRelayWriter;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,7 +59,7 @@ public class NodeProxyService {
 
                 response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
                 response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
-                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                ctx.writeAndFlush(response);
             } catch (Exception e) {
                 logger.warn("代理请求失败: nodeId={}, path={}, error={}", nodeId, path, e.getMessage());
                 LlamaServer.sendJsonResponse(ctx,
@@ -139,10 +138,11 @@ public class NodeProxyService {
                 java.io.InputStream inputStream = (responseCode >= 200 && responseCode < 300)
                         ? connection.getInputStream() : connection.getErrorStream();
 
+                StreamRelayWriter writer = new StreamRelayWriter(ctx, null);
                 try (BufferedReader br = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
                     String line;
                     while ((line = br.readLine()) != null) {
-                        if (!ctx.channel().isActive() || !ctx.channel().isWritable()) {
+                        if (!ctx.channel().isActive()) {
                             break;
                         }
 
@@ -163,28 +163,28 @@ public class NodeProxyService {
                             ByteBuf content = ctx.alloc().buffer();
                             content.writeBytes(outLine.getBytes(StandardCharsets.UTF_8));
                             content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-                            ctx.writeAndFlush(new DefaultHttpContent(content));
+                            writer.append(content);
                         } else if (line.startsWith("event: ")) {
                             ByteBuf content = ctx.alloc().buffer();
                             content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
                             content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-                            ctx.writeAndFlush(new DefaultHttpContent(content));
+                            writer.append(content);
                         } else if (line.isEmpty()) {
                             ByteBuf content = ctx.alloc().buffer();
                             content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-                            ctx.writeAndFlush(new DefaultHttpContent(content));
+                            writer.append(content);
+                        }
+                        if (writer.shouldFlush(br.ready())) {
+                            writer.flush();
                         }
                     }
+                    writer.flush();
+                } finally {
+                    writer.close();
                 }
 
                 LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-                ctx.writeAndFlush(lastContent).addListener(f -> {
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException ignored) {
-                    }
-                    ctx.close();
-                });
+                ctx.writeAndFlush(lastContent);
             } catch (IOException e) {
                 logger.warn("流式代理失败: nodeId={}, path={}, error={}", nodeId, path, e.getMessage());
                 LlamaServer.sendJsonResponse(ctx,
@@ -2,6 +2,7 @@ package org.mark.llamacpp.server.service;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
@@ -22,8 +23,17 @@ import java.util.concurrent.Executors;
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaHubNode;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ModelAdmissionQueue;
+import org.mark.llamacpp.server.ModelAutoLoader;
+import org.mark.llamacpp.server.ModelRoutingTable;
 import org.mark.llamacpp.server.NodeManager;
-import org.mark.llamacpp.server.struct.ActiveRequest;
+import org.mark.llamacpp.server.PrefixFingerprint;
+import org.mark.llamacpp.server.SlotAffinityTable;
+import org.mark.llamacpp.server.exception.AdmissionRejectedException;
+import org.mark.llamacpp.server.io.SseLineReader;
+import org.mark.llamacpp.server.io.StreamRelayWriter;
+import org.mark.llamacpp.server.io.UpstreamConnectionPool;
+import org.mark.llamacpp.server.metrics.RequestMetrics;
 import org.mark.llamacpp.server.struct.Timing;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.tools.ParamTool;
@@ -35,15 +45,12 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
@@ -74,6 +81,23 @@ public class OpenAIService {
 	 */
 	private static final ExecutorService worker = Executors.newVirtualThreadPerTaskExecutor();
 	
+	private static final byte[] SSE_DATA_PREFIX = "data: ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] SSE_EVENT_PREFIX = "event: ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] SSE_DONE = "[DONE]".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] SSE_TIMINGS = "\"timings\"".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] SSE_TOOL_CALLS = "\"tool_calls\"".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] SSE_CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+	
+	/**
+	 * 	流式写入失败时关闭连接，多半是客户端已经断开。所有数据块共用一个实例。
+	 */
+	private final ChannelFutureListener streamWriteListener = future -> {
+		if (!future.isSuccess()) {
+			logger.info("写入流式数据失败，可能是客户端断开连接: {}", future.cause().getMessage());
+			future.channel().close();
+		}
+	};
+	
 	/**
 	 * 	给响应头做时间转换
 	 */
@@ -310,19 +334,17 @@ public class OpenAIService {
 			// 获取LlamaServerManager实例
 			LlamaServerManager manager = LlamaServerManager.getInstance();
 
-			String body = JsonUtil.toJson(requestJson);
 			String bodyNodeId = JsonUtil.getJsonString(requestJson, "nodeId", "");
 			if (bodyNodeId != null && !bodyNodeId.isBlank()) {
 				requestJson.remove("nodeId");
-				body = JsonUtil.toJson(requestJson);
 				NodeProxyService.getInstance().proxyStreamRequest(ctx, request, bodyNodeId, "v1/chat/completions", requestJson);
-			} else if (manager.getLoadedProcesses().containsKey(modelName)) {
-				Integer modelPort = manager.getModelPort(modelName);
-				if (modelPort == null) {
-					this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
-					return;
-				}
-				this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, "/v1/chat/completions", isStream, body);
+				return;
+			}
+			// 模型未加载时按需加载，这里会等到加载结束
+			ModelRoutingTable.Route route = ModelAutoLoader.getInstance().awaitRoute(modelName);
+			if (route != null) {
+				// 请求体在拿到准入许可、选好槽位之后再序列化
+				this.forwardRequestToLlamaCpp(ctx, request, route.getModelId(), route.getPort(), "/v1/chat/completions", isStream, null, requestJson);
 			} else {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
 			}
@@ -396,10 +418,12 @@ public class OpenAIService {
 			}
 
 			// 检查模型是否已加载
-			if (!manager.getLoadedProcesses().containsKey(modelName)) {
+			ModelRoutingTable.Route route = ModelAutoLoader.getInstance().awaitRoute(modelName);
+			if (route == null) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
 				return;
 			}
+			modelName = route.getModelId();
 			ModelSamplingService service = ModelSamplingService.getInstance();
 			service.handleOpenAI(requestJson);
 			
@@ -408,11 +432,7 @@ public class OpenAIService {
 			//if(body == null)
 				//return;
 			// 获取模型端口
-			Integer modelPort = manager.getModelPort(modelName);
-			if (modelPort == null) {
-				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
-				return;
-			}
+			int modelPort = route.getPort();
 			// 转发请求到对应的llama.cpp进程
 			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, "/v1/completions", isStream, JsonUtil.toJson(requestJson));
 		} catch (Exception e) {
@@ -438,6 +458,13 @@ public class OpenAIService {
 				return;
 			}
 			JsonObject requestJson = JsonUtil.fromJson(content, JsonObject.class);
+			// 和流式转发一样，先看 nodeId，再看本机，最后看远程节点
+			String bodyNodeId = JsonUtil.getJsonString(requestJson, "nodeId", "");
+			if (bodyNodeId != null && !bodyNodeId.isBlank()) {
+				requestJson.remove("nodeId");
+				NodeProxyService.getInstance().proxyRequest(ctx, request, bodyNodeId, "v1/embeddings", requestJson);
+				return;
+			}
 			LlamaServerManager manager = LlamaServerManager.getInstance();
 			String modelName = null;
 			if (!requestJson.has("model")) {
@@ -449,15 +476,24 @@ public class OpenAIService {
 			} else {
 				modelName = requestJson.get("model").getAsString();
 			}
-			if (!manager.getLoadedProcesses().containsKey(modelName)) {
+			if (manager.findRoute(modelName) == null) {
+				LlamaHubNode node = NodeManager.getInstance().resolveRemoteModel(modelName);
+				if (node != null) {
+					NodeProxyService.getInstance().proxyRequest(ctx, request, node.getNodeId(), "v1/embeddings", requestJson);
+					return;
+				}
+			}
+			ModelRoutingTable.Route route = ModelAutoLoader.getInstance().awaitRoute(modelName);
+			if (route == null) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
 				return;
 			}
-			Integer modelPort = manager.getModelPort(modelName);
-			if (modelPort == null) {
-				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
+			if (EmbeddingService.getInstance().isCacheable(route, requestJson)) {
+				this.handleCachedEmbeddings(ctx, request, route, requestJson);
 				return;
 			}
+			modelName = route.getModelId();
+			int modelPort = route.getPort();
 			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, "/v1/embeddings", false, request.content().toString(StandardCharsets.UTF_8));
 		} catch (Exception e) {
 			logger.info("处理OpenAI嵌入请求时发生错误", e);
@@ -465,6 +501,43 @@ public class OpenAIService {
 		}
 	}
 	
+	/**
+	 * 	经过 {@link EmbeddingService} 处理嵌入请求，只有缓存里没有的输入才发给 llama.cpp。
+	 * @param ctx
+	 * @param request
+	 * @param route
+	 * @param requestJson
+	 */
+	private void handleCachedEmbeddings(ChannelHandlerContext ctx, FullHttpRequest request, ModelRoutingTable.Route route, JsonObject requestJson) {
+		Map<String, String> headers = new HashMap<>();
+		for (Map.Entry<String, String> entry : request.headers()) {
+			headers.put(entry.getKey(), entry.getValue());
+		}
+		boolean base64 = "base64".equals(JsonUtil.getJsonString(requestJson, "encoding_format", ""));
+		worker.execute(() -> {
+			String requestId = ModelRequestTracker.getInstance().createRequest(ctx, route.getModelId(), "/v1/embeddings", null);
+			try {
+				EmbeddingService.Result result = EmbeddingService.getInstance().embed(route, requestJson, ModelAdmissionQueue.clientKeyOf(ctx, headers));
+				ModelRequestTracker.getInstance().onUpstreamResponse(requestId, result.getStatusCode());
+				if (!result.isSuccess()) {
+					this.sendOpenAIJsonText(ctx, result.getErrorBody(), HttpResponseStatus.valueOf(result.getStatusCode()));
+					return;
+				}
+				this.sendOpenAIJsonText(ctx, result.toOpenAIJson(base64), HttpResponseStatus.OK);
+			} catch (AdmissionRejectedException e) {
+				logger.info("模型请求队列拒绝: {}", e.getMessage());
+				this.sendOpenAIRateLimitResponse(ctx, e);
+			} catch (Exception e) {
+				logger.info("处理OpenAI嵌入请求时发生错误", e);
+				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
+			} catch (Throwable t) {
+				logger.error("虚拟线程异常已兜底: {}", t.getMessage(), t);
+			} finally {
+				ModelRequestTracker.getInstance().removeRequest(requestId);
+			}
+		});
+	}
+	
 	/**
 	 * 	转发rerank请求，重排序用。
 	 * @param ctx
@@ -493,15 +566,13 @@ public class OpenAIService {
 			} else {
 				modelName = requestJson.get("model").getAsString();
 			}
-			if (!manager.getLoadedProcesses().containsKey(modelName)) {
+			ModelRoutingTable.Route route = ModelAutoLoader.getInstance().awaitRoute(modelName);
+			if (route == null) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
 				return;
 			}
-			Integer modelPort = manager.getModelPort(modelName);
-			if (modelPort == null) {
-				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
-				return;
-			}
+			modelName = route.getModelId();
+			int modelPort = route.getPort();
 
 			String endpoint = request.uri();
 			if (endpoint != null && endpoint.startsWith("/rerank")) {
@@ -553,15 +624,13 @@ public class OpenAIService {
 				isStream = requestJson.get("stream").getAsBoolean();
 			}
 
-			if (!manager.getLoadedProcesses().containsKey(modelName)) {
+			ModelRoutingTable.Route route = ModelAutoLoader.getInstance().awaitRoute(modelName);
+			if (route == null) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
 				return;
 			}
-			Integer modelPort = manager.getModelPort(modelName);
-			if (modelPort == null) {
-				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
-				return;
-			}
+			modelName = route.getModelId();
+			int modelPort = route.getPort();
 
 			String endpoint = request.uri();
 			if (endpoint != null && endpoint.startsWith("/responses")) {
@@ -594,6 +663,21 @@ public class OpenAIService {
 	}
 	
 	private void forwardRequestToLlamaCpp(ChannelHandlerContext ctx, FullHttpRequest request, String modelName, int port, String endpoint, boolean isStream, byte[] requestBodyBytes) {
+		this.forwardRequestToLlamaCpp(ctx, request, modelName, port, endpoint, isStream, requestBodyBytes, null);
+	}
+	
+	/**
+	 * 	转发请求到对应的llama.cpp进程。
+	 * @param ctx
+	 * @param request
+	 * @param modelName
+	 * @param port
+	 * @param endpoint
+	 * @param isStream
+	 * @param bodyBytes 原样转发的请求体，chatRequest 不为 null 时忽略
+	 * @param chatRequest 聊天请求，按前缀选好槽位、写入 id_slot 之后再序列化
+	 */
+	private void forwardRequestToLlamaCpp(ChannelHandlerContext ctx, FullHttpRequest request, String modelName, int port, String endpoint, boolean isStream, byte[] bodyBytes, JsonObject chatRequest) {
 		// 在异步执行前先读取请求体，避免ByteBuf引用计数问题
 		HttpMethod method = request.method();
 		// 复制请求头，避免在异步任务中访问已释放的请求对象
@@ -602,13 +686,28 @@ public class OpenAIService {
 			headers.put(entry.getKey(), entry.getValue());
 		}
 
-		int requestBodyLength = requestBodyBytes == null ? 0 : requestBodyBytes.length;
-		logger.info("转发请求到llama.cpp进程: {} {} 端口: {} 请求体长度: {}", method.name(), endpoint, port, requestBodyLength);
+		logger.info("转发请求到llama.cpp进程: {} {} 端口: {}", method.name(), endpoint, port);
+		// 客户端自己指定了 id_slot 时不做亲和
+		long[] prefix = chatRequest == null || chatRequest.has("id_slot") ? null : PrefixFingerprint.of(chatRequest);
 		
 		worker.execute(() -> {
-			String requestId = ModelRequestTracker.getInstance().createRequest(modelName, endpoint);
+			String requestId = null;
+			ModelAdmissionQueue.Permit permit = null;
+			SlotAffinityTable.Lease lease = null;
 			HttpURLConnection connection = null;
 			try {
+				// 槽位满了在这里排队，放行之后才算开始处理
+				permit = ModelAdmissionQueue.getInstance().acquire(modelName, ModelAdmissionQueue.clientKeyOf(ctx, headers));
+				byte[] requestBodyBytes = bodyBytes;
+				if (chatRequest != null) {
+					lease = SlotAffinityTable.getInstance().assign(modelName, prefix);
+					if (lease != null) {
+						chatRequest.addProperty("id_slot", lease.getSlot());
+						logger.info("槽位亲和: model={}, id_slot={}, 命中前缀消息数={}", modelName, lease.getSlot(), lease.getMatchedMessages());
+					}
+					requestBodyBytes = JsonUtil.toJson(chatRequest).getBytes(StandardCharsets.UTF_8);
+				}
+				requestId = ModelRequestTracker.getInstance().createRequest(ctx, modelName, endpoint, null);
 				String targetUrl = String.format("http://localhost:%d%s", port, endpoint);
 				logger.info("连接到llama.cpp进程: {}", targetUrl);
 				connection = this.openTrackedConnection(ctx, targetUrl, method, headers, false);
@@ -622,8 +721,11 @@ public class OpenAIService {
 				long t = System.currentTimeMillis();
 				int responseCode = connection.getResponseCode();
 				logger.info("llama.cpp进程响应码: {}，等待时间：{}", responseCode, System.currentTimeMillis() - t);
-				ModelRequestTracker.getInstance().updatePhase(requestId, ActiveRequest.Phase.GENERATION);
+				ModelRequestTracker.getInstance().onUpstreamResponse(requestId, responseCode);
 				this.handleProxyResponse(ctx, connection, responseCode, isStream, modelName, requestId);
+			} catch (AdmissionRejectedException e) {
+				logger.info("模型请求队列拒绝: {}", e.getMessage());
+				this.sendOpenAIRateLimitResponse(ctx, e);
 			} catch (Exception e) {
 				logger.info("转发请求到llama.cpp进程时发生错误", e);
 				if (e.getMessage() != null && e.getMessage().contains("Connection reset by peer")) {
@@ -635,6 +737,12 @@ public class OpenAIService {
 			} finally {
 				ModelRequestTracker.getInstance().removeRequest(requestId);
 				this.cleanupTrackedConnection(ctx, connection);
+				if (lease != null) {
+					lease.close();
+				}
+				if (permit != null) {
+					permit.close();
+				}
 			}
 		});
 	}
@@ -667,16 +775,14 @@ public class OpenAIService {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "No models are currently loaded", "model");
 				return;
 			}
-			if (!manager.getLoadedProcesses().containsKey(modelName)) {
+			ModelRoutingTable.Route route = ModelAutoLoader.getInstance().awaitRoute(modelName);
+			if (route == null) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
 				return;
 			}
+			modelName = route.getModelId();
 			
-			Integer modelPort = manager.getModelPort(modelName);
-			if (modelPort == null) {
-				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
-				return;
-			}
+			int modelPort = route.getPort();
 			
 			byte[] bodyBytes = new byte[requestContent.readableBytes()];
 			requestContent.getBytes(requestContent.readerIndex(), bodyBytes);
@@ -742,7 +848,7 @@ public class OpenAIService {
 
 	public HttpURLConnection openTrackedConnection(ChannelHandlerContext ctx, String targetUrl, HttpMethod method, Map<String, String> headers, boolean chunkedStreaming) throws IOException {
 		URL url = URI.create(targetUrl).toURL();
-		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		HttpURLConnection connection = UpstreamConnectionPool.getInstance().openConnection(url);
 
 		if (connection instanceof javax.net.ssl.HttpsURLConnection) {
 			try {
@@ -860,12 +966,8 @@ public class OpenAIService {
 		response.content().writeBytes(responseBytes);
 		
 		// 发送响应
-		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(response);
+		ModelRequestTracker.getInstance().getMetrics(requestId).addBytes(responseBytes.length);
 		// 缓存生成信息。
 		Timing timing = LlamaRecordService.getInstance().handleStream(modelName, responseBody);
 		if (requestId != null && timing != null) {
@@ -889,119 +991,104 @@ public class OpenAIService {
 		
 		logger.info("开始处理流式响应，响应码: {}", responseCode);
 		
-		// 读取流式响应
-		try (BufferedReader br = new BufferedReader(
-			new InputStreamReader(
-				responseCode >= 200 && responseCode < 300 ?
-					connection.getInputStream() : connection.getErrorStream(),
-				StandardCharsets.UTF_8
-			)
-		)) {
-			String line;
+		// 读取流式响应。按字节转发，只有带 tool_calls 或 timings 的块才解码成字符串处理
+		// 客户端接收慢时由 writer 暂停读上游，恢复可写后把积攒的行合并写出
+		StreamRelayWriter writer = new StreamRelayWriter(ctx, this.streamWriteListener);
+		try (InputStream in = responseCode >= 200 && responseCode < 300 ?
+				connection.getInputStream() : connection.getErrorStream()) {
+			SseLineReader reader = new SseLineReader(in);
+			RequestMetrics metrics = ModelRequestTracker.getInstance().getMetrics(requestId);
 			int chunkCount = 0;
 			Map<Integer, String> toolCallIds = new HashMap<>();
-			while ((line = br.readLine()) != null) {
+			while (reader.next()) {
 				// 检查客户端连接是否仍然活跃
-				if (!ctx.channel().isActive() || !ctx.channel().isWritable()) {
+				if (!ctx.channel().isActive()) {
 					logger.info("检测到客户端连接已断开，停止流式响应处理");
 					if (connection != null) {
 						connection.disconnect();
 					}
 					break;
 				}
+				ByteBuf content;
+				boolean token = false;
 				// 处理SSE格式的数据行
-				if (line.startsWith("data: ")) {
-					String data = line.substring(6); // 去掉 "data: " 前缀
+				if (reader.startsWith(SSE_DATA_PREFIX)) {
+					int offset = SSE_DATA_PREFIX.length;
 					// 检查是否为结束标记
-					if (data.equals("[DONE]")) {
+					if (reader.equalsAt(offset, SSE_DONE)) {
 						logger.info("收到流式响应结束标记");
 						break;
 					}
-					else 
 					// 统计生成信息 — timings 只在最后一个 chunk 出现，天然作为结束标记
-					if(data.contains("\"timings\"")) {
-						Timing timing = LlamaRecordService.getInstance().handleStream(modelName, data);
+					if (reader.contains(SSE_TIMINGS, offset)) {
+						Timing timing = LlamaRecordService.getInstance().handleStream(modelName, reader.toString(offset));
 						if (requestId != null && timing != null) {
 							ModelRequestTracker.getInstance().updateTiming(requestId, timing);
 						}
 					}
-					
-					String outLine = line;
-					JsonObject parsed = JsonUtil.tryParseObject(data);
-					if (parsed != null) {
-						boolean changed = JsonUtil.ensureToolCallIds(parsed, toolCallIds);
-						if (changed) {
+					String outLine = null;
+					if (reader.contains(SSE_TOOL_CALLS, offset)) {
+						JsonObject parsed = JsonUtil.tryParseObject(reader.toString(offset));
+						if (parsed != null && JsonUtil.ensureToolCallIds(parsed, toolCallIds)) {
 							outLine = "data: " + JsonUtil.toJson(parsed);
 						}
 					}
-					
-					// 创建数据块
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(outLine.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					// 创建HTTP内容块
-					HttpContent httpContent = new DefaultHttpContent(content);
-					
-					// 发送数据块，并添加监听器检查写入是否成功
-					ChannelFuture future = ctx.writeAndFlush(httpContent);
-					
-					// 检查写入是否失败，如果失败可能是客户端断开连接
-					future.addListener((ChannelFutureListener) channelFuture -> {
-						if (!channelFuture.isSuccess()) {
-							logger.info("写入流式数据失败，可能是客户端断开连接: {}", channelFuture.cause().getMessage());
-							ctx.close();
-						}
-					});
-					
-					chunkCount++;
-					
-					// 每发送10个数据块记录一次日志
-					if (chunkCount % 10 == 0) {
-						//logger.info("已发送 {} 个流式数据块", chunkCount);
+					if (outLine != null) {
+						content = ctx.alloc().buffer();
+						content.writeCharSequence(outLine, StandardCharsets.UTF_8);
+					} else {
+						// 原样拷贝
+						content = ctx.alloc().buffer(reader.length() + SSE_CRLF.length);
+						reader.writeTo(content);
 					}
-				} else if (line.startsWith("event: ")) {
+					chunkCount++;
+					token = true;
+				} else if (reader.startsWith(SSE_EVENT_PREFIX)) {
 					// 处理事件行
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
-				} else if (line.isEmpty()) {
+					content = ctx.alloc().buffer(reader.length() + SSE_CRLF.length);
+					reader.writeTo(content);
+				} else if (reader.isEmpty()) {
 					// 发送空行作为分隔符
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
+					content = ctx.alloc().buffer(SSE_CRLF.length);
+				} else {
+					continue;
+				}
+				content.writeBytes(SSE_CRLF);
+				if (token) {
+					metrics.onChunk(content.readableBytes());
+				} else {
+					metrics.addBytes(content.readableBytes());
+				}
+				writer.append(content);
+				// 上游已经没有缓冲的数据时再写出，同一批到达的行合并成一次写；
+				// 客户端接收慢时 flush 会等到写缓冲回落到低水位以下
+				if (writer.shouldFlush(reader.hasBuffered())) {
+					writer.flush();
 				}
 			}
+			writer.flush();
 			
 			logger.info("流式响应处理完成，共发送 {} 个数据块", chunkCount);
 		} catch (Exception e) {
 			String nodeCtx = this.resolveNodeName(nodeId);
 			logger.info("处理流式响应时发生错误 [{}]", nodeCtx, e);
 			// 检查是否是客户端断开连接导致的异常
-			if (e.getMessage() != null &&
+			if (!ctx.channel().isActive() || (e.getMessage() != null &&
 				(e.getMessage().contains("Connection reset by peer") ||
 				 e.getMessage().contains("Broken pipe") ||
-				 e.getMessage().contains("Connection closed"))) {
+				 e.getMessage().contains("Connection closed")))) {
 				logger.info("检测到客户端断开连接，尝试断开与llama.cpp的连接");
 				if (connection != null) {
 					connection.disconnect();
 				}
 			}
+		} finally {
+			writer.close();
 		}
 		
 		// 发送结束标记
 		LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-		ctx.writeAndFlush(lastContent).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(lastContent);
 	}
 
 //	private static String safeString(JsonObject obj, String key) {
@@ -1058,12 +1145,27 @@ public class OpenAIService {
 		
 		response.content().writeBytes(content);
 
-		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(response);
+	}
+	
+	/**
+	 * 	发送已经序列化好的JSON响应
+	 * @param ctx
+	 * @param json
+	 * @param status
+	 */
+	private void sendOpenAIJsonText(ChannelHandlerContext ctx, String json, HttpResponseStatus status) {
+		byte[] content = json.getBytes(StandardCharsets.UTF_8);
+
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=utf-8");
+		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
+		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
+		response.headers().set(HttpHeaderNames.DATE, this.sdf.format(new Date()));
+		response.content().writeBytes(content);
+
+		ctx.writeAndFlush(response);
 	}
 	
 	/**
@@ -1105,6 +1207,24 @@ public class OpenAIService {
 	}
 	
 	
+	/**
+	 * 	模型请求队列已满或排队超时，返回 429 并带上 Retry-After。
+	 * @param ctx
+	 * @param e
+	 */
+	public void sendOpenAIRateLimitResponse(ChannelHandlerContext ctx, AdmissionRejectedException e) {
+		Map<String, Object> error = new HashMap<>();
+		error.put("message", e.getMessage());
+		error.put("type", "rate_limit_error");
+		error.put("code", "model_overloaded");
+		error.put("param", null);
+
+		Map<String, Object> response = new HashMap<>();
+		response.put("error", error);
+		sendOpenAIJsonResponseWithCleanup(ctx, response, HttpResponseStatus.TOO_MANY_REQUESTS, e.getRetryAfterSeconds());
+	}
+	
+	
 	/**
 	 * 	发送OpenAI格式的JSON响应并清理资源
 	 * @param ctx
@@ -1112,6 +1232,13 @@ public class OpenAIService {
 	 * @param httpStatus
 	 */
 	private void sendOpenAIJsonResponseWithCleanup(ChannelHandlerContext ctx, Object data, HttpResponseStatus httpStatus) {
+		this.sendOpenAIJsonResponseWithCleanup(ctx, data, httpStatus, 0);
+	}
+	
+	/**
+	 * 	发送OpenAI格式的JSON响应并清理资源，retryAfterSeconds 大于0时带上 Retry-After
+	 */
+	private void sendOpenAIJsonResponseWithCleanup(ChannelHandlerContext ctx, Object data, HttpResponseStatus httpStatus, int retryAfterSeconds) {
 		String json = JsonUtil.toJson(data);
 		byte[] content = json.getBytes(StandardCharsets.UTF_8);
 
@@ -1126,16 +1253,13 @@ public class OpenAIService {
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
 		response.headers().set(HttpHeaderNames.CONNECTION, "alive");
 		response.headers().set(HttpHeaderNames.DATE, this.sdf.format(new Date()));
-		
+		if (retryAfterSeconds > 0) {
+			response.headers().set(HttpHeaderNames.RETRY_AFTER, retryAfterSeconds);
+		}
 		
 		response.content().writeBytes(content);
 
-		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		ctx.writeAndFlush(response);
 	}
 	
 	/**
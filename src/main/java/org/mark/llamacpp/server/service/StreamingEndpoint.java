@@ -0,0 +1,120 @@
+package org.mark.llamacpp.server.service;
+
+import java.util.Set;
+
+/**
+ * 	可以边收边转发请求体的端点，由 {@link org.mark.llamacpp.server.channel.OpenAIChatStreamingHandler} 在聚合之前接管。
+ * 	<p>
+ * 	每个端点列出体积大的顶层字段（消息、提示词、待嵌入的文本、待排序的文档），这些字段按原始字节透传，不进 Java 字符串；
+ * 	其余小字段缓冲下来，做模型路由和参数注入后再写出去。
+ */
+public enum StreamingEndpoint {
+
+	CHAT_COMPLETIONS("/v1/chat/completions", "messages"),
+
+	COMPLETIONS("/v1/completions", "prompt"),
+
+	EMBEDDINGS("/v1/embeddings", "input", "content"),
+
+	RERANK("/v1/rerank", "documents"),
+
+	RESPONSES("/v1/responses", "input"),
+
+	/**
+	 * 	Anthropic /v1/messages，按条转换成 OpenAI 格式后发给 /v1/chat/completions。
+	 */
+	ANTHROPIC_MESSAGES("/v1/chat/completions", "messages");
+
+	private final String upstreamPath;
+
+	private final Set<String> passthroughFields;
+
+	StreamingEndpoint(String upstreamPath, String... passthroughFields) {
+		this.upstreamPath = upstreamPath;
+		this.passthroughFields = Set.of(passthroughFields);
+	}
+
+	/**
+	 * 	按请求路径识别端点，路径和 LlamaRouterHandler 里的一致。
+	 * @param uri
+	 * @return 不是这些端点时返回 null
+	 */
+	public static StreamingEndpoint of(String uri) {
+		if (uri == null) {
+			return null;
+		}
+		if (uri.startsWith("/v1/chat/completions") || uri.startsWith("/v1/chat/completion") || uri.startsWith("/chat/completion")) {
+			return CHAT_COMPLETIONS;
+		}
+		if (uri.startsWith("/v1/completions") || uri.startsWith("/completions")) {
+			return COMPLETIONS;
+		}
+		if (uri.startsWith("/v1/embeddings") || uri.startsWith("/embeddings")) {
+			return EMBEDDINGS;
+		}
+		if (uri.startsWith("/v1/rerank") || uri.startsWith("/rerank")) {
+			return RERANK;
+		}
+		if (uri.startsWith("/v1/responses") || uri.startsWith("/responses")) {
+			return RESPONSES;
+		}
+		if (uri.startsWith("/v1/messages") && !uri.startsWith("/v1/messages/count_tokens")) {
+			return ANTHROPIC_MESSAGES;
+		}
+		return null;
+	}
+
+	/**
+	 * 	转发到 llama-server 的路径。rerank 和 responses 保留客户端的写法（/v1/reranking 等），补上 /v1 前缀。
+	 * @param uri
+	 * @return
+	 */
+	public String getUpstreamPath(String uri) {
+		if ((this == RERANK || this == RESPONSES) && uri != null && !uri.isBlank()) {
+			return uri.startsWith("/v1") ? uri : "/v1" + uri;
+		}
+		return this.upstreamPath;
+	}
+
+	/**
+	 * 	是否按原始字节透传的大字段。
+	 * @param fieldName
+	 * @return
+	 */
+	public boolean isPassthrough(String fieldName) {
+		return this.passthroughFields.contains(fieldName);
+	}
+
+	/**
+	 * 	是否按 messages 前缀选槽位，只有聊天请求有。
+	 * @return
+	 */
+	public boolean isSlotAffinity() {
+		return this == CHAT_COMPLETIONS || this == ANTHROPIC_MESSAGES;
+	}
+
+	/**
+	 * 	是否必须带 model 字段。其余端点和原来的处理一样，没有 model 时用第一个已加载的模型。
+	 * @return
+	 */
+	public boolean isModelRequired() {
+		return this == CHAT_COMPLETIONS;
+	}
+
+	/**
+	 * 	请求体为空时报错里的参数名，和原来各端点的一致。
+	 * @return
+	 */
+	public String getBodyParam() {
+		switch (this) {
+		case EMBEDDINGS:
+		case CHAT_COMPLETIONS:
+		case COMPLETIONS:
+			return "messages";
+		case RERANK:
+			return "query";
+		default:
+			return "input";
+		}
+	}
+}
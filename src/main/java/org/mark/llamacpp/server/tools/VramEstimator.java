@@ -3,11 +3,6 @@ package org.mark.llamacpp.server.tools;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -20,6 +15,9 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.mark.llamacpp.gguf.GGUFFile;
+import org.mark.llamacpp.gguf.GGUFMetadataCache;
+
 
 @Deprecated
 public final class VramEstimator {
@@ -283,34 +281,13 @@ public final class VramEstimator {
 
 	private static void scanPartForLayers(File ggufFile, boolean[] outputHit, boolean[] kvHit, boolean[] qkvHit)
 			throws IOException {
-		try (RandomAccessFile raf = new RandomAccessFile(ggufFile, "r"); FileChannel ch = raf.getChannel()) {
-			long fileSize = ch.size();
-			LeReader r = new LeReader(ch, Math.min(512L * 1024, fileSize));
-
-			byte[] magic = r.readBytes(4);
-			String m = new String(magic, StandardCharsets.US_ASCII);
-			if (!"GGUF".equals(m)) {
+		try (GGUFFile gguf = GGUFFile.open(ggufFile)) {
+			if (gguf == null) {
 				return;
 			}
-
-			r.readI32();
-			long tensorCount = r.readU64();
-			long kvCount = r.readU64();
-
-			for (long i = 0; i < kvCount; i++) {
-				r.skipGgufString();
-				int type = r.readI32();
-				r.skipGgufValue(type);
-			}
-
-			for (long i = 0; i < tensorCount; i++) {
-				String name = r.readGgufString();
-				int nDims = r.readI32();
-				for (int d = 0; d < nDims; d++) {
-					r.readU64();
-				}
-				r.readI32();
-				r.readU64();
+			int tensorCount = (int) gguf.getTensorCount();
+			for (int i = 0; i < tensorCount; i++) {
+				String name = gguf.getTensorName(i);
 
 				int idx = extractLayerIndex(name);
 				if (idx < 0 || idx >= outputHit.length) {
@@ -535,52 +512,25 @@ public final class VramEstimator {
 	}
 
 	private static Map<String, Object> readGgufMetadata(File ggufFile) throws IOException {
-		try (RandomAccessFile raf = new RandomAccessFile(ggufFile, "r"); FileChannel ch = raf.getChannel()) {
-			LeReader r = new LeReader(ch, Math.min(256L * 1024, ch.size()));
-			byte[] magic = r.readBytes(4);
-			String m = new String(magic, StandardCharsets.US_ASCII);
-			if (!"GGUF".equals(m)) {
-				throw new IllegalArgumentException("不是有效GGUF文件: " + ggufFile.getAbsolutePath());
+		GGUFMetadataCache.Entry entry = GGUFMetadataCache.getInstance().get(ggufFile);
+		if (entry == null) {
+			throw new IllegalArgumentException("不是有效GGUF文件: " + ggufFile.getAbsolutePath());
+		}
+		Map<String, Object> out = new HashMap<>(32);
+		out.put("__tensor_count", entry.getTensorCount());
+		out.put("__kv_count", entry.getKvCount());
+		for (Map.Entry<String, Object> e : entry.getMetadata().entrySet()) {
+			if (isRequiredMetadataKey(e.getKey())) {
+				out.put(e.getKey(), e.getValue());
 			}
-			r.readI32();
-			long tensorCount = r.readU64();
-			long kvCount = r.readU64();
-
-			Map<String, Object> out = new HashMap<>(32);
-			out.put("__tensor_count", tensorCount);
-			out.put("__kv_count", kvCount);
-
-			for (long i = 0; i < kvCount; i++) {
-				String key = r.readGgufString();
-				int type = r.readI32();
-				boolean keep = isRequiredMetadataKey(key);
-				if (type == 9) {
-					int elemType = r.readI32();
-					long len = r.readU64();
-					if (keep && len <= 4096 && len <= Integer.MAX_VALUE) {
-						List<Object> arr = new ArrayList<>((int) len);
-						for (long j = 0; j < len; j++) {
-							arr.add(r.readGgufValue(elemType));
-						}
-						out.put(key, arr);
-					} else {
-						for (long j = 0; j < len; j++) {
-							r.skipGgufValue(elemType);
-						}
-						if (keep) {
-							out.put(key + ".size", len);
-						}
-					}
-				} else if (keep) {
-					Object val = r.readGgufValue(type);
-					out.put(key, val);
-				} else {
-					r.skipGgufValue(type);
-				}
+		}
+		// 缓存里没有解码的长数组只记长度
+		for (Map.Entry<String, Long> e : entry.getArrayLengths().entrySet()) {
+			if (isRequiredMetadataKey(e.getKey())) {
+				out.put(e.getKey() + ".size", e.getValue());
 			}
-
-			return out;
 		}
+		return out;
 	}
 
 	private static ModelParams extractModelParams(Map<String, Object> meta) {
@@ -652,49 +602,16 @@ public final class VramEstimator {
 	}
 
 	private static Long tryEstimateTensorDataBytesMonotonic(File ggufFile) throws IOException {
-		try (RandomAccessFile raf = new RandomAccessFile(ggufFile, "r"); FileChannel ch = raf.getChannel()) {
-			long fileSize = ch.size();
-			LeReader r = new LeReader(ch, Math.min(512L * 1024, fileSize));
-
-			byte[] magic = r.readBytes(4);
-			String m = new String(magic, StandardCharsets.US_ASCII);
-			if (!"GGUF".equals(m)) {
+		try (GGUFFile gguf = GGUFFile.open(ggufFile)) {
+			if (gguf == null) {
 				return ggufFile.length();
 			}
-
-			r.readI32();
-			long tensorCount = r.readU64();
-			long kvCount = r.readU64();
-
-			long alignment = 32;
-
-			for (long i = 0; i < kvCount; i++) {
-				String key = r.readGgufString();
-				int type = r.readI32();
-				if ("general.alignment".equals(key)) {
-					Object val = r.readGgufValue(type);
-					if (val instanceof Number) {
-						long a = ((Number) val).longValue();
-						if (a > 0) {
-							alignment = a;
-						}
-					}
-				} else {
-					r.skipGgufValue(type);
-				}
-			}
-
+			int tensorCount = (int) gguf.getTensorCount();
 			long prevOff = -1;
 			long sum = 0;
 			long count = 0;
-			for (long i = 0; i < tensorCount; i++) {
-				r.skipGgufString();
-				int nDims = r.readI32();
-				for (int d = 0; d < nDims; d++) {
-					r.readU64();
-				}
-				r.readI32();
-				long off = r.readU64();
+			for (int i = 0; i < tensorCount; i++) {
+				long off = gguf.getTensorOffset(i);
 				if (count == 0) {
 					prevOff = off;
 				} else {
@@ -710,9 +627,7 @@ public final class VramEstimator {
 				count++;
 			}
 
-			long pos = r.position();
-			long dataStart = alignUp(pos, alignment);
-			long dataLen = fileSize - dataStart;
+			long dataLen = gguf.getFileSize() - gguf.getDataOffset();
 			if (dataLen <= 0 || count == 0) {
 				return ggufFile.length();
 			}
@@ -726,54 +641,17 @@ public final class VramEstimator {
 	}
 
 	private static long estimateTensorDataBytesWithSort(File ggufFile) throws IOException {
-		try (RandomAccessFile raf = new RandomAccessFile(ggufFile, "r"); FileChannel ch = raf.getChannel()) {
-			long fileSize = ch.size();
-			LeReader r = new LeReader(ch, Math.min(512L * 1024, fileSize));
-
-			byte[] magic = r.readBytes(4);
-			String m = new String(magic, StandardCharsets.US_ASCII);
-			if (!"GGUF".equals(m)) {
+		try (GGUFFile gguf = GGUFFile.open(ggufFile)) {
+			if (gguf == null) {
 				return ggufFile.length();
 			}
-
-			r.readI32();
-			long tensorCount = r.readU64();
-			long kvCount = r.readU64();
-
-			long alignment = 32;
-
-			for (long i = 0; i < kvCount; i++) {
-				String key = r.readGgufString();
-				int type = r.readI32();
-				if ("general.alignment".equals(key)) {
-					Object val = r.readGgufValue(type);
-					if (val instanceof Number) {
-						long a = ((Number) val).longValue();
-						if (a > 0) {
-							alignment = a;
-						}
-					}
-				} else {
-					r.skipGgufValue(type);
-				}
-			}
-
-			long[] offsets = new long[(int) Math.min(tensorCount, Integer.MAX_VALUE)];
-			int count = 0;
-			for (long i = 0; i < tensorCount && count < offsets.length; i++) {
-				r.skipGgufString();
-				int nDims = r.readI32();
-				for (int d = 0; d < nDims; d++) {
-					r.readU64();
-				}
-				r.readI32();
-				long off = r.readU64();
-				offsets[count++] = off;
+			int count = (int) gguf.getTensorCount();
+			long[] offsets = new long[count];
+			for (int i = 0; i < count; i++) {
+				offsets[i] = gguf.getTensorOffset(i);
 			}
 
-			long pos = r.position();
-			long dataStart = alignUp(pos, alignment);
-			long dataLen = fileSize - dataStart;
+			long dataLen = gguf.getFileSize() - gguf.getDataOffset();
 			if (dataLen <= 0 || count == 0) {
 				return ggufFile.length();
 			}
@@ -792,17 +670,6 @@ public final class VramEstimator {
 		}
 	}
 
-	private static long alignUp(long value, long alignment) {
-		if (alignment <= 0) {
-			return value;
-		}
-		long r = value % alignment;
-		if (r == 0) {
-			return value;
-		}
-		return value + (alignment - r);
-	}
-
 	private static long safeAdd(long a, long b) {
 		long r = a + b;
 		if (((a ^ r) & (b ^ r)) < 0) {
@@ -905,209 +772,4 @@ public final class VramEstimator {
 				|| key.endsWith(".attention.key_length") || key.endsWith(".attention.value_length")
 				|| key.endsWith(".attention.sliding_window");
 	}
-
-	private static final class LeReader {
-		private final FileChannel ch;
-		private ByteBuffer buf;
-		private long pos;
-
-		LeReader(FileChannel ch, long bufferSize) {
-			this.ch = ch;
-			int cap = (int) Math.min(Integer.MAX_VALUE, Math.max(8192, bufferSize));
-			this.buf = ByteBuffer.allocate(cap);
-			this.buf.order(ByteOrder.LITTLE_ENDIAN);
-			this.buf.limit(0);
-			this.pos = 0;
-		}
-
-		long position() {
-			return pos;
-		}
-
-		private void ensure(int n) throws IOException {
-			if (n <= buf.remaining()) {
-				return;
-			}
-			if (n > buf.capacity()) {
-				int cap = buf.capacity();
-				int newCap = (int) Math.min(Integer.MAX_VALUE, Math.max((long) n, (long) cap * 2));
-				ByteBuffer nb = ByteBuffer.allocate(newCap);
-				nb.order(ByteOrder.LITTLE_ENDIAN);
-				nb.put(buf);
-				nb.flip();
-				buf = nb;
-			}
-			while (buf.remaining() < n) {
-				buf.compact();
-				int read = ch.read(buf);
-				buf.flip();
-				if (read < 0) {
-					throw new EOFException();
-				}
-			}
-		}
-
-		byte[] readBytes(int n) throws IOException {
-			ensure(n);
-			byte[] b = new byte[n];
-			buf.get(b);
-			pos += n;
-			return b;
-		}
-
-		int readI32() throws IOException {
-			ensure(4);
-			pos += 4;
-			return buf.getInt();
-		}
-
-		long readU64() throws IOException {
-			ensure(8);
-			pos += 8;
-			return buf.getLong();
-		}
-
-		float readF32() throws IOException {
-			ensure(4);
-			pos += 4;
-			return buf.getFloat();
-		}
-
-		double readF64() throws IOException {
-			ensure(8);
-			pos += 8;
-			return buf.getDouble();
-		}
-
-		boolean readBool() throws IOException {
-			ensure(1);
-			pos += 1;
-			return buf.get() != 0;
-		}
-
-		String readGgufString() throws IOException {
-			long len = readU64();
-			if (len <= 0) {
-				return "";
-			}
-			if (len > Integer.MAX_VALUE) {
-				throw new IllegalArgumentException("GGUF string 太长: " + len);
-			}
-			byte[] b = readBytes((int) len);
-			return new String(b, StandardCharsets.UTF_8);
-		}
-
-		Object readGgufValue(int type) throws IOException {
-			return switch (type) {
-			case 0 -> readU8();
-			case 1 -> readI8();
-			case 2 -> readU16();
-			case 3 -> readI16();
-			case 4 -> readU32();
-			case 5 -> readI32();
-			case 6 -> readF32();
-			case 7 -> readBool();
-			case 8 -> readGgufString();
-			case 9 -> readArray();
-			case 10 -> readU64();
-			case 11 -> readI64();
-			case 12 -> readF64();
-			default -> throw new IllegalArgumentException("未知GGUF value type: " + type);
-			};
-		}
-
-		void skipGgufValue(int type) throws IOException {
-			switch (type) {
-			case 0 -> skip(1);
-			case 1 -> skip(1);
-			case 2 -> skip(2);
-			case 3 -> skip(2);
-			case 4 -> skip(4);
-			case 5 -> skip(4);
-			case 6 -> skip(4);
-			case 7 -> skip(1);
-			case 8 -> skipGgufString();
-			case 9 -> skipArray();
-			case 10 -> skip(8);
-			case 11 -> skip(8);
-			case 12 -> skip(8);
-			default -> throw new IllegalArgumentException("未知GGUF value type: " + type);
-			}
-		}
-
-		private int readU8() throws IOException {
-			ensure(1);
-			pos += 1;
-			return Byte.toUnsignedInt(buf.get());
-		}
-
-		private int readI8() throws IOException {
-			ensure(1);
-			pos += 1;
-			return buf.get();
-		}
-
-		private int readU16() throws IOException {
-			ensure(2);
-			pos += 2;
-			return Short.toUnsignedInt(buf.getShort());
-		}
-
-		private int readI16() throws IOException {
-			ensure(2);
-			pos += 2;
-			return buf.getShort();
-		}
-
-		private long readU32() throws IOException {
-			ensure(4);
-			pos += 4;
-			return Integer.toUnsignedLong(buf.getInt());
-		}
-
-		private long readI64() throws IOException {
-			ensure(8);
-			pos += 8;
-			return buf.getLong();
-		}
-
-		private Object readArray() throws IOException {
-			int elemType = readI32();
-			long len = readU64();
-			List<Object> out = new ArrayList<>();
-			for (long i = 0; i < len; i++) {
-				out.add(readGgufValue(elemType));
-			}
-			return out;
-		}
-
-		private void skip(int n) throws IOException {
-			if (n <= 0) {
-				return;
-			}
-			ensure(n);
-			buf.position(buf.position() + n);
-			pos += n;
-		}
-
-		void skipGgufString() throws IOException {
-			long len = readU64();
-			if (len <= 0) {
-				return;
-			}
-			if (len > Integer.MAX_VALUE) {
-				throw new IllegalArgumentException("GGUF string 太长: " + len);
-			}
-			skip((int) len);
-		}
-
-		private void skipArray() throws IOException {
-			int elemType = readI32();
-			long len = readU64();
-			for (long i = 0; i < len; i++) {
-				skipGgufValue(elemType);
-			}
-		}
-	}
 }
-
@@ -3,6 +3,7 @@ package org.mark.llamacpp.server.websocket;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+import org.mark.llamacpp.server.NodeManager;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -259,6 +260,12 @@ public class RemoteWebSocketClient {
                 return;
             }
 
+            if ("modelLoad".equals(type) || "modelStop".equals(type)) {
+                String modelId = json.has("modelId") && json.get("modelId").isJsonPrimitive() ? json.get("modelId").getAsString() : null;
+                boolean success = json.has("success") && json.get("success").isJsonPrimitive() && json.get("success").getAsBoolean();
+                NodeManager.getInstance().onRemoteModelEvent(nodeId, type, modelId, success);
+            }
+
             json.addProperty("nodeId", nodeId);
 
             if ("console".equals(type)) {
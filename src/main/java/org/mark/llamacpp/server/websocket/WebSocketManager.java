@@ -229,13 +229,14 @@ public class WebSocketManager {
         broadcast(JsonUtil.toJson(event));
     }
     
-    public void sendConsoleLineEvent(String modelId, String line) {
+    public void sendConsoleLineEvent(String modelId, String line, long seq) {
         byte[] bytes = line == null ? new byte[0] : line.getBytes(StandardCharsets.UTF_8);
         String b64 = Base64.getEncoder().encodeToString(bytes);
         String eventMessage = String.format(
-            "{\"type\":\"console\",\"modelId\":\"%s\",\"line64\":\"%s\",\"timestamp\":%d}",
+            "{\"type\":\"console\",\"modelId\":\"%s\",\"line64\":\"%s\",\"seq\":%d,\"timestamp\":%d}",
             modelId != null ? modelId.replace("\"", "\\\"") : "",
             b64,
+            seq,
             System.currentTimeMillis()
         );
         broadcast(eventMessage);
@@ -5,6 +5,7 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.mark.llamacpp.server.channel.NettyTransport;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.test.mcp.struct.McpSession;
 import org.slf4j.Logger;
@@ -13,17 +14,11 @@ import org.slf4j.LoggerFactory;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
-import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultHttpResponse;
@@ -47,8 +42,6 @@ public class NettySseMcpServer {
 	private final LegacySseTransportHandler legacySseTransportHandler;
 	private final StreamableHttpTransportHandler streamableHttpTransportHandler;
 
-	private NioEventLoopGroup bossGroup;
-	private NioEventLoopGroup workerGroup;
 	private ChannelFuture bindFuture;
 	private volatile boolean running;
 
@@ -62,25 +55,15 @@ public class NettySseMcpServer {
 		if (this.running) {
 			return;
 		}
-		this.bossGroup = new NioEventLoopGroup(1);
-		this.workerGroup = new NioEventLoopGroup();
 		try {
-			ServerBootstrap bootstrap = new ServerBootstrap();
-			bootstrap.group(this.bossGroup, this.workerGroup).channel(NioServerSocketChannel.class)
-					.option(ChannelOption.SO_BACKLOG, 1024).childOption(ChannelOption.SO_KEEPALIVE, true)
-					.childHandler(new ChannelInitializer<SocketChannel>() {
-						@Override
-						protected void initChannel(SocketChannel ch) throws Exception {
-							ch.pipeline().addLast(new HttpServerCodec()).addLast(new HttpObjectAggregator(2 * 1024 * 1024))
-									.addLast(new ChunkedWriteHandler()).addLast(new McpRouterHandler(NettySseMcpServer.this));
-						}
-					});
-			this.bindFuture = bootstrap.bind(this.port).sync();
+			this.bindFuture = NettyTransport.getInstance().bind("MCP", this.port, null, (ch, pipeline) -> {
+				pipeline.addLast(new HttpServerCodec()).addLast(new HttpObjectAggregator(2 * 1024 * 1024))
+						.addLast(new ChunkedWriteHandler()).addLast(new McpRouterHandler(NettySseMcpServer.this));
+			}).sync();
 			this.running = true;
 			this.bindFuture.channel().closeFuture().addListener(future -> this.running = false);
 			logger.info("MCP测试服务启动成功: http://localhost:{}", this.port);
 		} catch (Exception e) {
-			this.shutdownEventLoopGroups();
 			this.bindFuture = null;
 			this.running = false;
 			throw e;
@@ -92,7 +75,6 @@ public class NettySseMcpServer {
 		if (this.bindFuture != null && this.bindFuture.channel() != null) {
 			this.bindFuture.channel().close().syncUninterruptibly();
 		}
-		this.shutdownEventLoopGroups();
 		this.bindFuture = null;
 		this.running = false;
 	}
@@ -112,17 +94,6 @@ public class NettySseMcpServer {
 		return this.port;
 	}
 
-	private void shutdownEventLoopGroups() {
-		if (this.bossGroup != null) {
-			this.bossGroup.shutdownGracefully().syncUninterruptibly();
-			this.bossGroup = null;
-		}
-		if (this.workerGroup != null) {
-			this.workerGroup.shutdownGracefully().syncUninterruptibly();
-			this.workerGroup = null;
-		}
-	}
-
 	public void handleLegacySseConnect(ChannelHandlerContext ctx, String serviceKey) {
 		this.legacySseTransportHandler.handleConnect(ctx, serviceKey);
 	}
@@ -10,6 +10,13 @@
     let snapshotInFlight = false;
     let remotePending = {};
     let remoteSnapshotInFlight = {};
+    // 已经显示的最后一行的序号，刷新时只取这之后的行
+    let consoleSeq = 0;
+    let snapshotLoaded = false;
+    // 和服务端控制台缓冲（LlamaServer.CONSOLE_BUFFER_MAX_BYTES）一样的上限，超出后从最旧的行开始丢弃
+    const CONSOLE_MAX_CHARS = 2 * 1024 * 1024;
+    // 推送的行比已显示的序号小这么多，说明服务端重启过、序号重新开始了
+    const CONSOLE_SEQ_RESTART_GAP = 1000;
 
     function nearBottom() {
         if (!logContainer) return true;
@@ -25,15 +32,29 @@
         if (consoleStatusText) consoleStatusText.textContent = '加载中...';
         snapshotInFlight = true;
         try {
-            const res = await fetch('/api/sys/console');
-            const text = await res.text();
+            let data = await fetchConsoleSlice(snapshotLoaded ? consoleSeq : 0);
+            if (snapshotLoaded && (data.lastSeq < consoleSeq || data.latestSeq < consoleSeq)) {
+                // 服务端重启过，序号从头开始，重新拉取全部内容
+                snapshotLoaded = false;
+                consoleSeq = 0;
+                data = await fetchConsoleSlice(0);
+            }
+            const text = data.lines.length ? data.lines.join('\n') + '\n' : '';
             const atBottom = nearBottom();
-            if (logEl) logEl.textContent = text;
+            if (!snapshotLoaded || data.truncated) {
+                // 第一次或者中间有行已经被丢弃，整体替换
+                if (logEl) logEl.textContent = text;
+                consoleSeq = data.lastSeq;
+                snapshotLoaded = true;
+            } else {
+                if (logEl && text) appendConsoleText(text);
+                if (data.lastSeq > consoleSeq) consoleSeq = data.lastSeq;
+            }
             snapshotInFlight = false;
             flushPendingLogs();
             if (atBottom) scrollBottom();
             if (consoleStatusText) {
-                consoleStatusText.textContent = '已更新 · ' + new Date().toLocaleTimeString() + ' · Size: ' + text.length;
+                consoleStatusText.textContent = '已更新 · ' + new Date().toLocaleTimeString() + ' · Size: ' + (logEl ? logEl.textContent.length : 0);
             }
         } catch (e) {
             snapshotInFlight = false;
@@ -41,6 +62,24 @@
         }
     }
 
+    async function fetchConsoleSlice(after) {
+        const res = await fetch('/api/sys/console?after=' + after);
+        const json = await res.json();
+        const data = json && json.success ? json.data : null;
+        if (!data) throw new Error((json && json.error) || 'invalid response');
+        return data;
+    }
+
+    // 追加到本地日志，超出上限时从开头整行丢弃
+    function appendConsoleText(text) {
+        let all = logEl.textContent + text;
+        if (all.length > CONSOLE_MAX_CHARS) {
+            const cut = all.indexOf('\n', all.length - CONSOLE_MAX_CHARS);
+            all = cut < 0 ? '' : all.substring(cut + 1);
+        }
+        logEl.textContent = all;
+    }
+
     function openConsoleModal() {
         initConsoleTabs();
         fetchConsole();
@@ -55,12 +94,12 @@
         }, 100);
     }
 
-    function appendLogLine(line, timestamp) {
+    function appendLogLine(line, timestamp, seq) {
         if (!logEl) return;
         const clean = (line || '').replace(/\r/g, '');
         const withNl = clean.endsWith('\n') ? clean : clean + '\n';
         pendingLogs.push(withNl);
-        pendingLogsWithTs.push({ text: withNl, ts: typeof timestamp === 'number' ? timestamp : 0 });
+        pendingLogsWithTs.push({ text: withNl, ts: typeof timestamp === 'number' ? timestamp : 0, seq: typeof seq === 'number' ? seq : 0 });
         if (snapshotInFlight) return;
         scheduleFlush();
     }
@@ -78,14 +117,32 @@
         flushScheduled = false;
         if (!snapshotInFlight && pendingLogs.length && logEl) {
             const atBottom = nearBottom();
-            pendingLogsWithTs.sort(function (a, b) { return a.ts - b.ts; });
+            pendingLogsWithTs.sort(function (a, b) { return (a.seq - b.seq) || (a.ts - b.ts); });
             var chunk = '';
+            var restarted = false;
             for (var i = 0; i < pendingLogsWithTs.length; i++) {
-                chunk += pendingLogsWithTs[i].text;
+                var item = pendingLogsWithTs[i];
+                // 刷新时已经拉到的行不再重复追加
+                if (item.seq) {
+                    if (snapshotLoaded && item.seq + CONSOLE_SEQ_RESTART_GAP < consoleSeq) {
+                        restarted = true;
+                        break;
+                    }
+                    if (item.seq <= consoleSeq) continue;
+                    consoleSeq = item.seq;
+                }
+                chunk += item.text;
             }
             pendingLogs = [];
             pendingLogsWithTs = [];
-            logEl.textContent += chunk;
+            if (restarted) {
+                // 服务端重启过，序号从头开始，丢掉推送的行重新拉取全部内容
+                snapshotLoaded = false;
+                consoleSeq = 0;
+                fetchConsole();
+                return;
+            }
+            if (chunk) appendConsoleText(chunk);
             if (atBottom) scrollBottom();
         }
         for (var nid in remotePending) {
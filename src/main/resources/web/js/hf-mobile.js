@@ -83,6 +83,9 @@
         };
     }
 
+    // 下载链接 -> LFS oid（文件的 SHA-256），创建下载任务时交给服务端校验
+    const lfsOidByUrl = new Map();
+
     function groupFiles(files) {
         const list = Array.isArray(files) ? files : [];
         const normal = [];
@@ -93,6 +96,7 @@
             const path = f.path != null ? String(f.path) : '';
             const dl = f.downloadUrl != null ? String(f.downloadUrl) : '';
             if (!path || !dl) continue;
+            if (f.lfsOid) lfsOidByUrl.set(dl, String(f.lfsOid));
             const si = shardInfo(path);
             if (!si) {
                 normal.push({
@@ -381,6 +385,9 @@
             path: group.displayPath || group.key || ''
         };
         if (group.displayPath) payload.name = group.displayPath.split('/').pop();
+        if (payload.downloadUrl.some((u) => lfsOidByUrl.has(u))) {
+            payload.lfsOids = payload.downloadUrl.map((u) => lfsOidByUrl.get(u) || '');
+        }
 
         try {
             const resp = await fetch('/api/downloads/model/create', {
@@ -408,6 +408,12 @@ async function downloadModel(groupIndex) {
     const ggufPath = (g.displayPath || '') || ((g.files && g.files[0] && g.files[0].path != null) ? String(g.files[0].path) : '') || (g.key || '');
     const fileName = getFileNameFromPath(ggufPath || (g.displayPath || g.key || ''));
     const payload = { author: repo.author, modelId: repo.modelId, downloadUrl };
+    // LFS oid 就是文件的 SHA-256，和 downloadUrl 按顺序对应，下载完成后由服务端校验
+    const oidByUrl = new Map();
+    for (const f of [...(g.files || []), ...((bestMmproj && bestMmproj.files) || [])]) {
+        if (f && f.downloadUrl && f.lfsOid) oidByUrl.set(String(f.downloadUrl).trim(), String(f.lfsOid));
+    }
+    if (oidByUrl.size) payload.lfsOids = downloadUrl.map(u => oidByUrl.get(u) || '');
     if (fileName) payload.name = fileName;
     if (ggufPath) payload.path = ggufPath;
 
@@ -89,7 +89,8 @@ function loadModels() {
                                 isLoaded: !!loadedModel,
                                 status: loadedModel ? (loadedModel.status || 'loaded') : 'stopped',
                                 port: loadedModel ? loadedModel.port : null,
-                                busy: loadedModel ? !!loadedModel.busy : false
+                                busy: loadedModel ? !!loadedModel.busy : false,
+                                queuedCount: loadedModel ? (Number(loadedModel.queuedCount) || 0) : 0
                             };
                         });
                         currentModelsData = modelsWithStatus;
@@ -454,7 +455,7 @@ function renderModelsList(models) {
                         </div>
                         <div class="model-status-badge ${statusClass}">
                             <i class="fas ${statusIcon}"></i> <span>${statusText}</span>
-                            ${model.busy && model.isLoaded ? '<span class="model-busy-indicator"><i class="fas fa-sync-alt fa-spin"></i> ' + t('page.model.status.busy', '工作中') + '</span>' : ''}
+                            ${model.busy && model.isLoaded ? '<span class="model-busy-indicator"><i class="fas fa-sync-alt fa-spin"></i> ' + t('page.model.status.busy', '工作中') + (model.queuedCount > 0 ? ' · ' + t('page.model.status.queued', '排队 {count}').replace('{count}', model.queuedCount) : '') + '</span>' : ''}
                         </div>
                         <div class="model-actions">${actionButtons}</div>
                     </div>
@@ -104,7 +104,7 @@ function handleWebSocketMessage(message) {
                         if (data.nodeId && typeof appendRemoteLogLine === 'function') {
                             appendRemoteLogLine(data.nodeId, text);
                         } else if (typeof appendLogLine === 'function') {
-                            appendLogLine(text, data.timestamp);
+                            appendLogLine(text, data.timestamp, data.seq);
                         }
                     }
                     break;
@@ -200,5 +200,7 @@ function handleModelSlotsUpdate(data) {
 
 function handleModelBusyEvent(data) {
     if (!data || !data.modelId) return;
-    applyModelPatch(data.modelId, { busy: !!data.busy }, data.nodeId);
+    const patch = { busy: !!data.busy };
+    if (data.queuedCount != null) patch.queuedCount = Number(data.queuedCount) || 0;
+    applyModelPatch(data.modelId, patch, data.nodeId);
 }